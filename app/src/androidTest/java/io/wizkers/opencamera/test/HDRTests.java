@@ -61,6 +61,7 @@ public class HDRTests {
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDR42"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDR43"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDR44"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRTonemapLUT"));
 		// don't include testHDR45, this is tested as part of HDRNTests
 		// don't include testHDR46, this is tested as part of HDRNTests
 		// don't include testHDR47, this is tested as part of HDRNTests
@@ -1,5 +1,6 @@
 package io.wizkers.opencamera.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -10,13 +11,23 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
+import io.wizkers.opencamera.AffineResampler;
+import io.wizkers.opencamera.AvgAccumulator;
+import io.wizkers.opencamera.BitmapDecodePool;
 import io.wizkers.opencamera.CameraController.CameraController2;
 import io.wizkers.opencamera.HDRProcessor;
+import io.wizkers.opencamera.HDRProcessorCPU;
 import io.wizkers.opencamera.HDRProcessorException;
+import io.wizkers.opencamera.ImageSaver;
+import io.wizkers.opencamera.JpegBuffer;
 import io.wizkers.opencamera.MainActivity;
 import io.wizkers.opencamera.MyApplicationInterface;
 import io.wizkers.opencamera.PreferenceKeys;
+import io.wizkers.opencamera.ResponseFunctionFitter;
+import io.wizkers.opencamera.TonemapLUT;
 import io.wizkers.opencamera.Preview.VideoProfile;
 import io.wizkers.opencamera.SaveLocationHistory;
 import io.wizkers.opencamera.CameraController.CameraController;
@@ -44,6 +55,7 @@ import android.media.CamcorderProfile;
 import android.media.ExifInterface;
 import android.media.MediaScannerConnection;
 import android.os.Build;
+import android.os.Debug;
 import android.os.Environment;
 //import android.os.Environment;
 import android.preference.PreferenceManager;
@@ -2669,6 +2681,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		boolean is_hdr = mActivity.supportsHDR() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_hdr");
 		boolean is_expo = mActivity.supportsExpoBracketing() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_expo_bracketing");
 		boolean is_focus_bracketing = mActivity.supportsFocusBracketing() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_focus_bracketing");
+		boolean is_focus_stack = is_focus_bracketing && mActivity.getApplicationInterface().isFocusBracketingStackPref();
 		boolean is_fast_burst = mActivity.supportsFastBurst() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_fast_burst");
 		String n_expo_images_s = sharedPreferences.getString(PreferenceKeys.ExpoBracketingNImagesPreferenceKey, "3");
 		int n_expo_images = Integer.parseInt(n_expo_images_s);
@@ -2689,7 +2702,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		else if( is_expo )
 			exp_n_new_files = n_expo_images;
 		else if( is_focus_bracketing )
-			exp_n_new_files = n_focus_bracketing_images;
+			exp_n_new_files = is_focus_stack ? n_focus_bracketing_images+1 : n_focus_bracketing_images;
 		else if( is_fast_burst )
 			exp_n_new_files = n_fast_burst_images;
 		else
@@ -2705,6 +2718,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		boolean is_fast_burst = mActivity.supportsFastBurst() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_fast_burst");
 		boolean is_expo = mActivity.supportsExpoBracketing() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_expo_bracketing");
 		boolean is_focus_bracketing = mActivity.supportsFocusBracketing() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_focus_bracketing");
+		boolean is_focus_stack = is_focus_bracketing && mActivity.getApplicationInterface().isFocusBracketingStackPref();
 
 		// check files have names as expected
 		String filename_jpeg = null;
@@ -2729,6 +2743,11 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 						if( filename.contains("_HDR") )
 							filename_jpeg = filename;
 					}
+					else if( is_focus_stack ) {
+						// only look for the "_STACK" image
+						if( filename.contains("_STACK") )
+							filename_jpeg = filename;
+					}
 					else if( is_expo || is_focus_bracketing ) {
 						if( filename_jpeg != null ) {
 							// check same root
@@ -2859,6 +2878,7 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		boolean is_nr = mActivity.supportsNoiseReduction() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_noise_reduction");
 		boolean is_expo = mActivity.supportsExpoBracketing() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_expo_bracketing");
 		boolean is_focus_bracketing = mActivity.supportsFocusBracketing() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_focus_bracketing");
+		boolean is_focus_stack = is_focus_bracketing && mActivity.getApplicationInterface().isFocusBracketingStackPref();
 		boolean is_fast_burst = mActivity.supportsFastBurst() && sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std").equals("preference_photo_mode_fast_burst");
 		String n_expo_images_s = sharedPreferences.getString(PreferenceKeys.ExpoBracketingNImagesPreferenceKey, "3");
 		int n_expo_images = Integer.parseInt(n_expo_images_s);
@@ -2948,6 +2968,10 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		else if( is_nr ) {
 			suffix = "_NR";
 		}
+		else if( is_focus_stack ) {
+			suffix = "_STACK";
+			max_time_s = 3; // takes longer to merge the images
+		}
 		else if( is_expo || is_focus_bracketing ) {
 			//suffix = "_EXP" + (n_expo_images-1);
 			suffix = "_" + (n_expo_images-1);
@@ -8602,6 +8626,49 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		}
 	}
 
+	/** Tests that for HDR, a low resolution version of the HDR image is shown as the thumbnail before
+	 *  the full resolution image has been saved.
+	 */
+	public void testTakePhotoHDRThumbnailPreview() throws InterruptedException {
+		Log.d(TAG, "testTakePhotoHDRThumbnailPreview");
+
+		setToDefault();
+
+		if( !mActivity.supportsHDR() ) {
+			return;
+		}
+		else if( Build.VERSION.SDK_INT < Build.VERSION_CODES.N ) {
+			// thumbnail preview requires Android 7
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_hdr");
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.HDR );
+		subTestTakePhoto(false, false, true, true, false, false, false, false);
+		ImageSaver imageSaver = mActivity.getApplicationInterface().getImageSaver();
+		Log.d(TAG, "test_hdr_preview_time_ms: " + imageSaver.test_hdr_preview_time_ms);
+		Log.d(TAG, "test_hdr_full_time_ms: " + imageSaver.test_hdr_full_time_ms);
+		assertTrue( imageSaver.test_hdr_preview_time_ms >= 0 );
+		assertTrue( imageSaver.test_hdr_full_time_ms >= imageSaver.test_hdr_preview_time_ms );
+
+		// now check we don't show the preview if disabled
+		imageSaver.setHDRThumbnailPreview(false);
+		try {
+			subTestTakePhoto(false, false, true, true, false, false, false, false);
+			Log.d(TAG, "test_hdr_full_time_ms: " + imageSaver.test_hdr_full_time_ms);
+			assertTrue( imageSaver.test_hdr_preview_time_ms == -1 );
+			assertTrue( imageSaver.test_hdr_full_time_ms >= 0 );
+		}
+		finally {
+			imageSaver.setHDRThumbnailPreview(true);
+		}
+	}
+
 	public void testTakePhotoHDRSaveExpo() throws InterruptedException {
 		Log.d(TAG, "testTakePhotoHDRSaveExpo");
 
@@ -8626,6 +8693,85 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		}
 	}
 
+	/** Tests that the debugging options for HDR processing are applied to the HDRProcessor.
+	 */
+	public void testHDRProcessorSettings() {
+		Log.d(TAG, "testHDRProcessorSettings");
+
+		setToDefault();
+
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		assertEquals(HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT, hdrProcessor.getHDRBackend());
+		assertFalse(hdrProcessor.getUsePyramidAlignment());
+		assertEquals(AvgAccumulator.Format.FORMAT_FLOAT32, hdrProcessor.getAvgFormat());
+		assertFalse(hdrProcessor.getUseCLAHECPU());
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putBoolean(PreferenceKeys.HDRCPUPreferenceKey, true);
+		editor.putBoolean(PreferenceKeys.HDRPyramidAlignmentPreferenceKey, true);
+		editor.putBoolean(PreferenceKeys.NRFixed16PreferenceKey, true);
+		editor.putBoolean(PreferenceKeys.CLAHECPUPreferenceKey, true);
+		editor.apply();
+		updateForSettings();
+		assertEquals(HDRProcessor.HDRBackend.HDRBACKEND_CPU, hdrProcessor.getHDRBackend());
+		assertTrue(hdrProcessor.getUsePyramidAlignment());
+		assertEquals(AvgAccumulator.Format.FORMAT_FIXED16, hdrProcessor.getAvgFormat());
+		assertTrue(hdrProcessor.getUseCLAHECPU());
+
+		editor = settings.edit();
+		editor.putBoolean(PreferenceKeys.HDRCPUPreferenceKey, false);
+		editor.putBoolean(PreferenceKeys.HDRPyramidAlignmentPreferenceKey, false);
+		editor.putBoolean(PreferenceKeys.NRFixed16PreferenceKey, false);
+		editor.putBoolean(PreferenceKeys.CLAHECPUPreferenceKey, false);
+		editor.apply();
+		updateForSettings();
+		assertEquals(HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT, hdrProcessor.getHDRBackend());
+		assertFalse(hdrProcessor.getUsePyramidAlignment());
+		assertEquals(AvgAccumulator.Format.FORMAT_FLOAT32, hdrProcessor.getAvgFormat());
+		assertFalse(hdrProcessor.getUseCLAHECPU());
+
+		// FORMAT_FLOAT16 is only supported by AvgAccumulator
+		try {
+			hdrProcessor.setAvgFormat(AvgAccumulator.Format.FORMAT_FLOAT16);
+			fail();
+		}
+		catch(RuntimeException e) {
+			// expected
+		}
+		assertEquals(AvgAccumulator.Format.FORMAT_FLOAT32, hdrProcessor.getAvgFormat());
+	}
+
+	/** Take photo in HDR mode, and check that the images were decoded with the ImageSaver's decode pool, and that the
+	 *  pool no longer retains any bitmaps once all images are saved.
+	 */
+	public void testTakePhotoHDRDecodePool() throws InterruptedException {
+		Log.d(TAG, "testTakePhotoHDRDecodePool");
+
+		setToDefault();
+
+		if( !mActivity.supportsHDR() ) {
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_hdr");
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.HDR );
+		BitmapDecodePool decode_pool = mActivity.getApplicationInterface().getImageSaver().getDecodePool();
+		int n_decodes = decode_pool.getNDecodes();
+		subTestTakePhoto(false, false, true, true, false, false, false, false);
+		mActivity.waitUntilImageQueueEmpty();
+		Thread.sleep(500); // the pool is cleared after the last output is written, which may be just after waitUntilImageQueueEmpty() returns
+		Log.d(TAG, "decode pool: " + decode_pool.getSummary());
+		assertTrue( decode_pool.getNDecodes() >= n_decodes + 3 );
+		assertTrue( decode_pool.getSummary() != null );
+		assertEquals( 0, decode_pool.getRetainedBytes() );
+	}
+
 	/** Take photo in HDR mode with front camera.
 	 *  Note that this fails on OnePlus 3T with old camera API, due to bug where photo resolution changes when
 	 *  exposure compensation set for front camera.
@@ -8805,6 +8951,217 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		}
 	}
 
+	/** Tests taking a photo in focus bracketing mode, with the images merged into a focus stacked
+	 *  image.
+	 */
+	public void testTakePhotoFocusBracketingStack() throws InterruptedException {
+		Log.d(TAG, "testTakePhotoFocusBracketingStack");
+
+		setToDefault();
+
+		if( !mActivity.supportsFocusBracketing() ) {
+			return;
+		}
+		else if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_focus_bracketing");
+		editor.putBoolean(PreferenceKeys.FocusBracketingStackPreferenceKey, true);
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.FocusBracketing );
+		assertTrue( mActivity.getApplicationInterface().isFocusBracketingStackPref() );
+
+		SeekBar focusSeekBar = mActivity.findViewById(io.wizkers.opencamera.R.id.focus_seekbar);
+		assertTrue(focusSeekBar.getVisibility() == View.VISIBLE);
+		focusSeekBar.setProgress( (int)(0.75*(focusSeekBar.getMax()-1)) );
+		SeekBar focusTargetSeekBar = mActivity.findViewById(io.wizkers.opencamera.R.id.focus_bracketing_target_seekbar);
+		assertTrue(focusTargetSeekBar.getVisibility() == View.VISIBLE);
+		focusTargetSeekBar.setProgress( (int)(0.5*(focusTargetSeekBar.getMax()-1)) );
+
+		subTestTakePhoto(false, false, true, true, false, false, false, false);
+		if( mPreview.usingCamera2API() ) {
+			Log.d(TAG, "test_capture_results: " + mPreview.getCameraController().test_capture_results);
+			assertTrue(mPreview.getCameraController().test_capture_results == 1);
+		}
+	}
+
+	/** Takes a photo with the slow burst (i.e., not using captureBurst()) for each of 1, 2 and 3 captures in flight,
+	 *  checking the number of images saved and the captures that were in flight, and returns the times taken.
+	 *  The photo mode should already be set to expo or focus bracketing.
+	 */
+	private long [] subTestTakePhotoSlowBurstInFlight(boolean focus_bracketing) throws InterruptedException {
+		final int [] in_flight_values = new int[]{1, 2, 3};
+		long [] times = new long[in_flight_values.length];
+		for(int i=0;i<in_flight_values.length;i++) {
+			int in_flight = in_flight_values[i];
+			Log.d(TAG, "in flight: " + in_flight);
+			SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+			SharedPreferences.Editor editor = settings.edit();
+			editor.putString(PreferenceKeys.Camera2BurstInFlightPreferenceKey, "" + in_flight);
+			editor.apply();
+			updateForSettings();
+			assertEquals(in_flight, mActivity.getApplicationInterface().getBurstCapturesInFlight());
+
+			File folder = mActivity.getImageFolder();
+			int n_files = getNFiles(folder);
+			int exp_n_new_files = getExpNNewFiles(false);
+			Log.d(TAG, "exp_n_new_files: " + exp_n_new_files);
+
+			View takePhotoButton = mActivity.findViewById(io.wizkers.opencamera.R.id.take_photo);
+			long time_s = System.currentTimeMillis();
+			clickView(takePhotoButton);
+			waitForTakePhoto();
+			times[i] = System.currentTimeMillis() - time_s;
+			Log.d(TAG, "time taken: " + times[i]);
+			mActivity.waitUntilImageQueueEmpty();
+
+			int n_new_files = getNFiles(folder) - n_files;
+			Log.d(TAG, "n_new_files: " + n_new_files);
+			assertEquals(exp_n_new_files, n_new_files);
+
+			int max_in_flight = mPreview.getCameraController().test_max_slow_burst_in_flight;
+			Log.d(TAG, "max_in_flight: " + max_in_flight);
+			if( focus_bracketing ) {
+				// the lens has to be moved before each capture
+				assertEquals(1, max_in_flight);
+			}
+			else {
+				// also limited by CameraController2.picture_max_images_c (3)
+				assertEquals(Math.min(in_flight, Math.min(exp_n_new_files, 3)), max_in_flight);
+			}
+			Thread.sleep(1000);
+		}
+		return times;
+	}
+
+	/** Tests expo bracketing with the slow burst, with 1, 2 and 3 captures in flight.
+	 */
+	public void testTakePhotoExpoSlowBurstInFlight() throws InterruptedException {
+		Log.d(TAG, "testTakePhotoExpoSlowBurstInFlight");
+
+		setToDefault();
+
+		if( !mPreview.usingCamera2API() ) {
+			return;
+		}
+		else if( !mActivity.supportsExpoBracketing() ) {
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_expo_bracketing");
+		editor.putString(PreferenceKeys.ExpoBracketingNImagesPreferenceKey, "5");
+		editor.putBoolean(PreferenceKeys.Camera2FastBurstPreferenceKey, false);
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.ExpoBracketing );
+		assertFalse( mActivity.getApplicationInterface().useCamera2FastBurst() );
+		long [] times = subTestTakePhotoSlowBurstInFlight(false);
+		Log.d(TAG, "time for 1 in flight: " + times[0]);
+		Log.d(TAG, "time for 2 in flight: " + times[1]);
+		Log.d(TAG, "time for 3 in flight: " + times[2]);
+		// allow a margin, as the time is also affected by the preview restarting and saving
+		assertTrue( times[1] <= times[0] + 500 );
+		assertTrue( times[2] <= times[0] + 500 );
+	}
+
+	/** Tests focus bracketing (which always uses the slow burst) with 1, 2 and 3 captures in flight - this should
+	 *  always have only 1 capture in flight.
+	 */
+	public void testTakePhotoFocusBracketingSlowBurstInFlight() throws InterruptedException {
+		Log.d(TAG, "testTakePhotoFocusBracketingSlowBurstInFlight");
+
+		setToDefault();
+
+		if( !mPreview.usingCamera2API() ) {
+			return;
+		}
+		else if( !mActivity.supportsFocusBracketing() ) {
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_focus_bracketing");
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.FocusBracketing );
+		SeekBar focusSeekBar = mActivity.findViewById(io.wizkers.opencamera.R.id.focus_seekbar);
+		assertTrue(focusSeekBar.getVisibility() == View.VISIBLE);
+		focusSeekBar.setProgress( (int)(0.75*(focusSeekBar.getMax()-1)) );
+		SeekBar focusTargetSeekBar = mActivity.findViewById(io.wizkers.opencamera.R.id.focus_bracketing_target_seekbar);
+		assertTrue(focusTargetSeekBar.getVisibility() == View.VISIBLE);
+		focusTargetSeekBar.setProgress( (int)(0.5*(focusTargetSeekBar.getMax()-1)) );
+
+		long [] times = subTestTakePhotoSlowBurstInFlight(true);
+		Log.d(TAG, "time for 1 in flight: " + times[0]);
+		Log.d(TAG, "time for 2 in flight: " + times[1]);
+		Log.d(TAG, "time for 3 in flight: " + times[2]);
+		// the number in flight shouldn't make a difference for focus bracketing, other than noise
+		assertTrue( Math.abs(times[1] - times[0]) <= 1000 );
+		assertTrue( Math.abs(times[2] - times[0]) <= 1000 );
+	}
+
+	/** Tests a slow burst capture failing without an image partway through expo bracketing: the burst should be
+	 *  abandoned rather than waiting forever for the image, and the next photo should still save all of its images
+	 *  (i.e., the failed burst mustn't hold any of the image reader's slots).
+	 */
+	public void testTakePhotoExpoSlowBurstCaptureFailure() throws InterruptedException {
+		Log.d(TAG, "testTakePhotoExpoSlowBurstCaptureFailure");
+
+		setToDefault();
+
+		if( !mPreview.usingCamera2API() ) {
+			return;
+		}
+		else if( !mActivity.supportsExpoBracketing() ) {
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_expo_bracketing");
+		editor.putBoolean(PreferenceKeys.Camera2FastBurstPreferenceKey, false);
+		editor.putString(PreferenceKeys.Camera2BurstInFlightPreferenceKey, "2");
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.ExpoBracketing );
+		File folder = mActivity.getImageFolder();
+		View takePhotoButton = mActivity.findViewById(io.wizkers.opencamera.R.id.take_photo);
+
+		int n_files = getNFiles(folder);
+		int count_take_picture = mPreview.count_cameraTakePicture;
+		mPreview.getCameraController().test_fail_slow_burst_capture = 1;
+		clickView(takePhotoButton);
+		waitForTakePhoto();
+		mActivity.waitUntilImageQueueEmpty();
+		int n_new_files = getNFiles(folder) - n_files;
+		Log.d(TAG, "n_new_files after failure: " + n_new_files);
+		assertEquals(0, n_new_files);
+		assertEquals(count_take_picture, mPreview.count_cameraTakePicture); // cancelled out by the error callback
+		assertTrue(mPreview.isPreviewStarted());
+
+		Thread.sleep(1000); // allow images from the captures that succeeded to arrive, so they're discarded
+		n_files = getNFiles(folder);
+		mPreview.getCameraController().test_fail_slow_burst_capture = -1;
+		clickView(takePhotoButton);
+		waitForTakePhoto();
+		mActivity.waitUntilImageQueueEmpty();
+		n_new_files = getNFiles(folder) - n_files;
+		Log.d(TAG, "n_new_files after recovery: " + n_new_files);
+		assertEquals(getExpNNewFiles(false), n_new_files);
+		assertEquals(count_take_picture+1, mPreview.count_cameraTakePicture);
+	}
+
 	/** Tests NR photo mode.
 	 */
 	public void testTakePhotoNR() throws InterruptedException {
@@ -8860,6 +9217,113 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
 		assertTrue(mPreview.getCameraController().test_capture_results == 1);
 	}
 
+	/** Tests NR photo mode where one of the images fails to decode when averaging the images as they
+	 *  arrive: the NR image should still be saved from the remaining images.
+	 */
+	public void testTakePhotoNRFrameDecodeFailure() throws InterruptedException {
+		Log.d(TAG, "testTakePhotoNRFrameDecodeFailure");
+
+		setToDefault();
+
+		if( !mActivity.supportsNoiseReduction() ) {
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_noise_reduction");
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.NoiseReduction );
+
+		ImageSaver imageSaver = mActivity.getApplicationInterface().getImageSaver();
+		int n_saving_images = mActivity.test_n_saving_images;
+		imageSaver.test_fail_average_frame = 1;
+		// checks that the NR image is saved
+		subTestTakePhoto(false, false, true, true, false, false, false, false);
+		imageSaver.test_fail_average_frame = -1;
+		mActivity.waitUntilImageQueueEmpty();
+		Log.d(TAG, "test_n_avg_data: " + imageSaver.test_n_avg_data);
+		Log.d(TAG, "test_n_saving_images: " + mActivity.test_n_saving_images);
+		assertEquals(0, imageSaver.test_n_avg_data);
+		assertEquals(n_saving_images, mActivity.test_n_saving_images);
+	}
+
+	/** Starts averaging images for NR photo mode as if some of the images had been received from the
+	 *  camera, then abandons the capture either with onPhotoError() or by closing the camera. Checks
+	 *  that the average is discarded without saving an image, and that savingImage() is balanced.
+	 */
+	private void subTestImageAverageAbort(boolean camera_closed) throws InterruptedException {
+		setToDefault();
+
+		if( !mActivity.supportsNoiseReduction() ) {
+			return;
+		}
+
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mActivity);
+		SharedPreferences.Editor editor = settings.edit();
+		editor.putString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_noise_reduction");
+		editor.apply();
+		updateForSettings();
+
+		assertTrue( mActivity.getApplicationInterface().getPhotoMode() == MyApplicationInterface.PhotoMode.NoiseReduction );
+
+		final MyApplicationInterface applicationInterface = mActivity.getApplicationInterface();
+		ImageSaver imageSaver = applicationInterface.getImageSaver();
+		File folder = mActivity.getImageFolder();
+		int n_files = getNFiles(folder);
+		int n_saving_images = mActivity.test_n_saving_images;
+		assertEquals(0, imageSaver.test_n_avg_data);
+
+		// 3 of the NR images arrive, but not the rest
+		applicationInterface.onCaptureStarted();
+		Date current_date = new Date();
+		for(int i=0;i<3;i++) {
+			applicationInterface.onPictureTaken(compressToJpeg(createAvgBenchmarkBitmap(640, 480, i)), current_date);
+		}
+		mActivity.waitUntilImageQueueEmpty();
+		Log.d(TAG, "test_n_avg_data: " + imageSaver.test_n_avg_data);
+		Log.d(TAG, "test_n_saving_images: " + mActivity.test_n_saving_images);
+		assertEquals(1, imageSaver.test_n_avg_data);
+		assertEquals(n_saving_images+1, mActivity.test_n_saving_images);
+
+		if( camera_closed ) {
+			// calls cameraClosed()
+			pauseAndResume();
+		}
+		else {
+			mActivity.runOnUiThread(new Runnable() {
+				public void run() {
+					applicationInterface.onPhotoError();
+				}
+			});
+			this.getInstrumentation().waitForIdleSync();
+		}
+		mActivity.waitUntilImageQueueEmpty();
+		Log.d(TAG, "test_n_avg_data: " + imageSaver.test_n_avg_data);
+		Log.d(TAG, "test_n_saving_images: " + mActivity.test_n_saving_images);
+		assertEquals(0, imageSaver.test_n_avg_data);
+		assertEquals(n_saving_images, mActivity.test_n_saving_images);
+		int n_new_files = getNFiles(folder) - n_files;
+		Log.d(TAG, "n_new_files: " + n_new_files);
+		assertEquals(0, n_new_files);
+	}
+
+	/** Tests that an NR capture abandoned by onPhotoError() discards the images averaged so far.
+	 */
+	public void testImageAverageAbortPhotoError() throws InterruptedException {
+		Log.d(TAG, "testImageAverageAbortPhotoError");
+		subTestImageAverageAbort(false);
+	}
+
+	/** Tests that an NR capture abandoned by the camera closing discards the images averaged so far.
+	 */
+	public void testImageAverageAbortCameraClosed() throws InterruptedException {
+		Log.d(TAG, "testImageAverageAbortCameraClosed");
+		subTestImageAverageAbort(true);
+	}
+
 	/** Tests fast burst with 20 images.
      */
 	public void testTakePhotoFastBurst() throws InterruptedException {
@@ -10743,6 +11207,1042 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         checkHistogramDetails(hdrHistogramDetails, 0, 72, 244);
 	}
 
+	/** Compares the HDRProcessorCPU backend with the RenderScript backend on the supplied images,
+	 *  and times the CPU backend for a range of tile sizes and thread counts.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void subTestHDRCPUBackend(List<Bitmap> inputs) throws InterruptedException {
+		Log.d(TAG, "subTestHDRCPUBackend");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "renderscript requires Android Lollipop or better");
+			return;
+		}
+
+		Thread.sleep(1000); // wait for camera to open
+
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		int width = inputs.get(0).getWidth();
+		int height = inputs.get(0).getHeight();
+		Bitmap output_rs = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Bitmap output_cpu = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		try {
+			// hdr_alpha of 0, so we only compare the merging and tonemapping
+			hdrProcessor.setHDRBackend(HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT);
+			long time_s = System.currentTimeMillis();
+			hdrProcessor.processHDR(inputs, false, output_rs, true, null, 0.0f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
+			Log.d(TAG, "HDR time (renderscript): " + (System.currentTimeMillis() - time_s));
+
+			hdrProcessor.setHDRBackend(HDRProcessor.HDRBackend.HDRBACKEND_CPU);
+			final int [] tile_sizes = {64, 256, 1024};
+			final int n_processors = Runtime.getRuntime().availableProcessors();
+			final int [] n_threads = {1, 2, 4, n_processors};
+			for(int tile_size : tile_sizes) {
+				for(int n_thread : n_threads) {
+					if( n_thread > n_processors )
+						continue;
+					ForkJoinPool pool = new ForkJoinPool(n_thread);
+					hdrProcessor.setHDRProcessorCPU(new HDRProcessorCPU(pool, tile_size));
+					time_s = System.currentTimeMillis();
+					hdrProcessor.processHDR(inputs, false, output_cpu, true, null, 0.0f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
+					Log.d(TAG, "HDR time (cpu, tile size " + tile_size + ", threads " + n_thread + "): " + (System.currentTimeMillis() - time_s));
+					pool.shutdown();
+				}
+			}
+		}
+		catch(HDRProcessorException e) {
+			e.printStackTrace();
+			throw new RuntimeException();
+		}
+		finally {
+			hdrProcessor.setHDRBackend(HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT);
+			hdrProcessor.setHDRProcessorCPU(null);
+		}
+
+		// the results should only differ due to floating point differences
+		int [] row_rs = new int[width];
+		int [] row_cpu = new int[width];
+		int max_diff = 0;
+		long sum_diff = 0;
+		for(int y=0;y<height;y++) {
+			output_rs.getPixels(row_rs, 0, width, 0, y, width, 1);
+			output_cpu.getPixels(row_cpu, 0, width, 0, y, width, 1);
+			for(int x=0;x<width;x++) {
+				int diff_r = Math.abs(Color.red(row_rs[x]) - Color.red(row_cpu[x]));
+				int diff_g = Math.abs(Color.green(row_rs[x]) - Color.green(row_cpu[x]));
+				int diff_b = Math.abs(Color.blue(row_rs[x]) - Color.blue(row_cpu[x]));
+				int diff = Math.max(diff_r, Math.max(diff_g, diff_b));
+				max_diff = Math.max(max_diff, diff);
+				sum_diff += diff;
+			}
+		}
+		Log.d(TAG, "max_diff: " + max_diff);
+		Log.d(TAG, "mean diff: " + (sum_diff / (double)(width*height)));
+		assertTrue(max_diff <= 2);
+
+		output_rs.recycle();
+		output_cpu.recycle();
+		for(Bitmap bitmap : inputs) {
+			bitmap.recycle();
+		}
+		inputs.clear();
+		Thread.sleep(500);
+	}
+
+	/** Tests the HDRProcessorCPU backend on test samples "saintpaul".
+	 */
+	public void testHDRCPUBackend() throws IOException, InterruptedException {
+		Log.d(TAG, "testHDRCPUBackend");
+
+		setToDefault();
+
+		// list assets
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input2.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input3.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input4.jpg") );
+
+		subTestHDRCPUBackend(inputs);
+	}
+
+	/** Tests the HDRProcessorCPU backend on test samples "testHDR49", with 5 images.
+	 */
+	public void testHDRCPUBackend_exp5() throws IOException, InterruptedException {
+		Log.d(TAG, "testHDRCPUBackend_exp5");
+
+		setToDefault();
+
+		// list assets
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input0.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input1.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input2.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input3.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input4.jpg") );
+
+		subTestHDRCPUBackend(inputs);
+	}
+
+	/** Runs HDR with both MTBPyramidAligner and the RenderScript alignment, checking the offsets
+	 *  are as expected, and logging the times.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void subTestHDRPyramidAlignment(List<Bitmap> inputs, int [] exp_offsets_x, int [] exp_offsets_y) throws InterruptedException {
+		Log.d(TAG, "subTestHDRPyramidAlignment");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "renderscript requires Android Lollipop or better");
+			return;
+		}
+
+		Thread.sleep(1000); // wait for camera to open
+
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		Bitmap output_bitmap = Bitmap.createBitmap(inputs.get(0).getWidth(), inputs.get(0).getHeight(), Bitmap.Config.ARGB_8888);
+		try {
+			for(int i=0;i<2;i++) {
+				boolean use_pyramid_alignment = i == 0;
+				hdrProcessor.setUsePyramidAlignment(use_pyramid_alignment);
+				long time_s = System.currentTimeMillis();
+				hdrProcessor.processHDR(inputs, false, output_bitmap, true, null, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
+				Log.d(TAG, "HDR time (" + (use_pyramid_alignment ? "pyramid" : "renderscript") + " alignment): " + (System.currentTimeMillis() - time_s));
+				checkHDROffsets(exp_offsets_x, exp_offsets_y);
+			}
+		}
+		catch(HDRProcessorException e) {
+			e.printStackTrace();
+			throw new RuntimeException();
+		}
+		finally {
+			hdrProcessor.setUsePyramidAlignment(false);
+		}
+
+		output_bitmap.recycle();
+		for(Bitmap bitmap : inputs) {
+			bitmap.recycle();
+		}
+		inputs.clear();
+		Thread.sleep(500);
+	}
+
+	/** Tests MTBPyramidAligner on test samples "testHDR4".
+	 */
+	public void testHDRPyramidAlignment() throws IOException, InterruptedException {
+		Log.d(TAG, "testHDRPyramidAlignment");
+
+		setToDefault();
+
+		// list assets
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR4/input0.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR4/input1.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR4/input2.jpg") );
+
+		int [] exp_offsets_x = {-2, 0, 2};
+		int [] exp_offsets_y = {-1, 0, 1};
+		subTestHDRPyramidAlignment(inputs, exp_offsets_x, exp_offsets_y);
+	}
+
+	/** Tests MTBPyramidAligner on test samples "testHDR12", which needs a larger offset.
+	 */
+	public void testHDRPyramidAlignment_large() throws IOException, InterruptedException {
+		Log.d(TAG, "testHDRPyramidAlignment_large");
+
+		setToDefault();
+
+		// list assets
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR12/input0.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR12/input1.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR12/input2.jpg") );
+
+		int [] exp_offsets_x = {0, 0, 7};
+		int [] exp_offsets_y = {0, 0, 8};
+		subTestHDRPyramidAlignment(inputs, exp_offsets_x, exp_offsets_y);
+	}
+
+	/** Collects the response function samples as HDRProcessor did before ResponseFunctionFitter
+	 *  was introduced, with one getPixel() call per sample and boxed lists, for comparison.
+	 */
+	private void collectResponseSamplesReference(Bitmap in_bitmap, Bitmap out_bitmap, List<Double> x_samples, List<Double> y_samples) {
+		final int n_samples_c = 100;
+		final int n_w_samples = (int)Math.sqrt(n_samples_c);
+		final int n_h_samples = n_samples_c/n_w_samples;
+		for(int y=0;y<n_h_samples;y++) {
+			double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
+			int y_coord = (int)(alpha * in_bitmap.getHeight());
+			for(int x=0;x<n_w_samples;x++) {
+				double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
+				int x_coord = (int)(beta * in_bitmap.getWidth());
+				int in_col = in_bitmap.getPixel(x_coord, y_coord);
+				int out_col = out_bitmap.getPixel(x_coord, y_coord);
+				x_samples.add((Color.red(in_col) + Color.green(in_col) + Color.blue(in_col))/3.0);
+				y_samples.add((Color.red(out_col) + Color.green(out_col) + Color.blue(out_col))/3.0);
+			}
+		}
+	}
+
+	/** Compares the time and number of allocations for creating the response functions with
+	 *  ResponseFunctionFitter, against per-pixel sampling into boxed lists. Also checks that the
+	 *  same samples are collected.
+	 */
+	@SuppressWarnings("deprecation")
+	private void subTestHDRResponseFunctionBenchmark(List<Bitmap> inputs) throws InterruptedException {
+		Log.d(TAG, "subTestHDRResponseFunctionBenchmark");
+
+		final int n_bitmaps = inputs.size();
+		final int base_bitmap = n_bitmaps/2;
+		final int [] offsets_x = new int[n_bitmaps];
+		final int [] offsets_y = new int[n_bitmaps];
+		final int n_iterations = 20;
+		float [] result = new float[2];
+
+		// check the samples match
+		ResponseFunctionFitter fitter = HDRProcessor.createResponseFunctionFitter(inputs, base_bitmap, offsets_x, offsets_y);
+		for(int i=0;i<n_bitmaps;i++) {
+			if( i == base_bitmap )
+				continue;
+			List<Double> x_samples = new ArrayList<>();
+			List<Double> y_samples = new ArrayList<>();
+			collectResponseSamplesReference(inputs.get(i), inputs.get(base_bitmap), x_samples, y_samples);
+			assertEquals(x_samples.size(), fitter.getNSamples(i));
+			for(int j=0;j<x_samples.size();j++) {
+				assertEquals(x_samples.get(j), fitter.getXSamples(i)[j], 1.0e-5);
+				assertEquals(y_samples.get(j), fitter.getYSamples(i)[j], 1.0e-5);
+			}
+		}
+
+		for(int test=0;test<2;test++) {
+			boolean use_fitter = test == 1;
+			System.gc();
+			Thread.sleep(500);
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			Debug.startAllocCounting();
+			long time_s = System.nanoTime();
+			for(int iter=0;iter<n_iterations;iter++) {
+				if( use_fitter ) {
+					fitter = HDRProcessor.createResponseFunctionFitter(inputs, base_bitmap, offsets_x, offsets_y);
+					for(int i=0;i<n_bitmaps;i++) {
+						if( i != base_bitmap )
+							fitter.fit(i, result);
+					}
+				}
+				else {
+					for(int i=0;i<n_bitmaps;i++) {
+						if( i == base_bitmap )
+							continue;
+						List<Double> x_samples = new ArrayList<>();
+						List<Double> y_samples = new ArrayList<>();
+						List<Double> weights = new ArrayList<>();
+						collectResponseSamplesReference(inputs.get(i), inputs.get(base_bitmap), x_samples, y_samples);
+						double [] xs = new double[x_samples.size()];
+						double [] ys = new double[y_samples.size()];
+						double [] ws = new double[x_samples.size()];
+						for(int j=0;j<x_samples.size();j++) {
+							// weights don't matter for the benchmark, but should still be boxed
+							weights.add(1.0);
+							xs[j] = x_samples.get(j);
+							ys[j] = y_samples.get(j);
+							ws[j] = weights.get(j);
+						}
+						ResponseFunctionFitter.fitLinear(xs, ys, ws, xs.length, result);
+					}
+				}
+			}
+			long time_ns = System.nanoTime() - time_s;
+			Debug.stopAllocCounting();
+			Log.d(TAG, (use_fitter ? "ResponseFunctionFitter" : "reference") + ": time per capture: " + (time_ns/n_iterations/1000) + "us");
+			Log.d(TAG, (use_fitter ? "ResponseFunctionFitter" : "reference") + ": allocations per capture: " + (Debug.getThreadAllocCount()/n_iterations) + " objects, " + (Debug.getThreadAllocSize()/n_iterations) + " bytes");
+		}
+
+		for(Bitmap bitmap : inputs) {
+			bitmap.recycle();
+		}
+		inputs.clear();
+		Thread.sleep(500);
+	}
+
+	/** Benchmarks creating the HDR response functions on test samples "saintpaul".
+	 */
+	public void testHDRResponseFunctionBenchmark() throws IOException, InterruptedException {
+		Log.d(TAG, "testHDRResponseFunctionBenchmark");
+
+		setToDefault();
+
+		// list assets
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input2.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input3.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input4.jpg") );
+
+		subTestHDRResponseFunctionBenchmark(inputs);
+	}
+
+	/** Benchmarks creating the HDR response functions on test samples "testHDR49", with 5 images.
+	 */
+	public void testHDRResponseFunctionBenchmark_exp5() throws IOException, InterruptedException {
+		Log.d(TAG, "testHDRResponseFunctionBenchmark_exp5");
+
+		setToDefault();
+
+		// list assets
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input0.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input1.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input2.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input3.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "testHDR49/input4.jpg") );
+
+		subTestHDRResponseFunctionBenchmark(inputs);
+	}
+
+	private static JpegBuffer compressToJpeg(Bitmap bitmap) {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+		return JpegBuffer.wrap(outputStream.toByteArray());
+	}
+
+	/** Tests BitmapDecodePool: reusing released bitmaps only for decodes of the same size and config, limiting the bytes
+	 *  retained, clearing, and the failure case for decodeAll().
+	 */
+	public void testBitmapDecodePool() {
+		Log.d(TAG, "testBitmapDecodePool");
+
+		final int width = 640, height = 480;
+		final long bitmap_bytes = width*height*4;
+		JpegBuffer jpeg_large = compressToJpeg(createAvgBenchmarkBitmap(width, height, 0));
+		JpegBuffer jpeg_small = compressToJpeg(createAvgBenchmarkBitmap(width/2, height/2, 1));
+		BitmapDecodePool decode_pool = new BitmapDecodePool(2, 2*bitmap_bytes);
+		try {
+			// nothing released yet, so a miss; unscaled decodes are always mutable, so they can be reused later
+			Bitmap bitmap0 = decode_pool.decode(jpeg_large, new BitmapFactory.Options());
+			assertNotNull(bitmap0);
+			assertTrue( bitmap0.isMutable() );
+			assertEquals( 0, decode_pool.getNHits() );
+			assertEquals( 1, decode_pool.getNMisses() );
+			decode_pool.release(bitmap0);
+			assertEquals( bitmap_bytes, decode_pool.getRetainedBytes() );
+			decode_pool.release(bitmap0); // releasing twice should have no effect
+			assertEquals( bitmap_bytes, decode_pool.getRetainedBytes() );
+
+			// same size and config, so the released bitmap is reused
+			Bitmap bitmap1 = decode_pool.decode(jpeg_large, new BitmapFactory.Options());
+			assertSame( bitmap0, bitmap1 );
+			assertEquals( 1, decode_pool.getNHits() );
+			assertEquals( 0, decode_pool.getRetainedBytes() );
+			decode_pool.release(bitmap1);
+
+			// different size, so a miss, and the released bitmap is still retained
+			Bitmap bitmap_small = decode_pool.decode(jpeg_small, new BitmapFactory.Options());
+			assertNotNull(bitmap_small);
+			assertNotSame( bitmap1, bitmap_small );
+			assertEquals( width/2, bitmap_small.getWidth() );
+			assertEquals( 2, decode_pool.getNMisses() );
+			assertEquals( bitmap_bytes, decode_pool.getRetainedBytes() );
+
+			// different config, so a miss
+			BitmapFactory.Options options_565 = new BitmapFactory.Options();
+			options_565.inPreferredConfig = Bitmap.Config.RGB_565;
+			Bitmap bitmap_565 = decode_pool.decode(jpeg_large, options_565);
+			assertNotNull(bitmap_565);
+			assertNotSame( bitmap1, bitmap_565 );
+			assertEquals( 3, decode_pool.getNMisses() );
+			assertEquals( bitmap_bytes, decode_pool.getRetainedBytes() );
+			assertFalse( bitmap1.isRecycled() );
+			bitmap_565.recycle();
+
+			// scaled decodes don't try to use the pool
+			BitmapFactory.Options options_scaled = new BitmapFactory.Options();
+			options_scaled.inSampleSize = 2;
+			Bitmap bitmap_scaled = decode_pool.decode(jpeg_large, options_scaled);
+			assertNotNull(bitmap_scaled);
+			assertEquals( width/2, bitmap_scaled.getWidth() );
+			assertEquals( 1, decode_pool.getNHits() );
+			assertEquals( 3, decode_pool.getNMisses() );
+			bitmap_scaled.recycle();
+
+			// retained bytes are limited, with the least recently released bitmap being recycled first
+			Bitmap bitmap2 = decode_pool.decode(jpeg_large, new BitmapFactory.Options()); // reuses bitmap1
+			Bitmap bitmap3 = decode_pool.decode(jpeg_large, new BitmapFactory.Options());
+			Bitmap bitmap4 = decode_pool.decode(jpeg_large, new BitmapFactory.Options());
+			assertEquals( 0, decode_pool.getRetainedBytes() );
+			decode_pool.release(bitmap2);
+			decode_pool.release(bitmap3);
+			assertEquals( 2*bitmap_bytes, decode_pool.getRetainedBytes() );
+			decode_pool.release(bitmap4);
+			assertEquals( 2*bitmap_bytes, decode_pool.getRetainedBytes() );
+			assertTrue( bitmap2.isRecycled() );
+			assertFalse( bitmap3.isRecycled() );
+			assertFalse( bitmap4.isRecycled() );
+
+			// a bitmap larger than the limit is recycled rather than retained
+			Bitmap bitmap_huge = Bitmap.createBitmap(2*width, 2*height, Bitmap.Config.ARGB_8888);
+			decode_pool.release(bitmap_huge);
+			assertTrue( bitmap_huge.isRecycled() );
+			assertEquals( 2*bitmap_bytes, decode_pool.getRetainedBytes() );
+
+			// immutable bitmaps can't be reused
+			Bitmap bitmap_immutable = bitmap_small.copy(Bitmap.Config.ARGB_8888, false);
+			decode_pool.release(bitmap_immutable);
+			assertTrue( bitmap_immutable.isRecycled() );
+			decode_pool.release(bitmap_small);
+			assertTrue( bitmap3.isRecycled() ); // recycled to make room
+			assertEquals( bitmap_bytes + bitmap_bytes/4, decode_pool.getRetainedBytes() );
+
+			decode_pool.clear();
+			assertEquals( 0, decode_pool.getRetainedBytes() );
+			assertTrue( bitmap4.isRecycled() );
+			assertTrue( bitmap_small.isRecycled() );
+
+			// if any image fails to decode, decodeAll() returns null, and releases the images that were decoded
+			List<JpegBuffer> jpegs = new ArrayList<>();
+			List<BitmapFactory.Options> options_list = new ArrayList<>();
+			jpegs.add(jpeg_large);
+			jpegs.add(JpegBuffer.wrap(new byte[]{0, 1, 2, 3}));
+			jpegs.add(jpeg_large);
+			for(int i=0;i<jpegs.size();i++) {
+				options_list.add(new BitmapFactory.Options());
+			}
+			assertNull( decode_pool.decodeAll(jpegs, options_list) );
+			assertEquals( 2*bitmap_bytes, decode_pool.getRetainedBytes() );
+
+			// and succeeds otherwise, reusing the released bitmaps
+			jpegs.set(1, jpeg_large);
+			int n_hits = decode_pool.getNHits();
+			List<Bitmap> bitmaps = decode_pool.decodeAll(jpegs, options_list);
+			assertNotNull(bitmaps);
+			assertEquals( 3, bitmaps.size() );
+			assertEquals( n_hits + 2, decode_pool.getNHits() );
+			for(Bitmap bitmap : bitmaps) {
+				assertEquals( width, bitmap.getWidth() );
+				assertEquals( height, bitmap.getHeight() );
+				decode_pool.release(bitmap);
+			}
+
+			Log.d(TAG, "decode pool: " + decode_pool.getSummary());
+			assertEquals( decode_pool.getNHits() + decode_pool.getNMisses() + 2, decode_pool.getNDecodes() ); // +2 for the scaled decode and the invalid jpeg
+			assertTrue( decode_pool.getHitRate() > 0.0f );
+			assertTrue( decode_pool.getMaxDecodeTimeMs() >= decode_pool.getMeanDecodeTimeMs() );
+		}
+		finally {
+			decode_pool.onDestroy();
+		}
+	}
+
+	/** Creates a test image for benchmarking noise reduction, with a smooth pattern plus noise.
+	 */
+	private Bitmap createAvgBenchmarkBitmap(int width, int height, long seed) {
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Random random = new Random(seed);
+		int [] row = new int[width];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int r = (x * 255) / width + random.nextInt(17) - 8;
+				int g = (y * 255) / height + random.nextInt(17) - 8;
+				int b = ((x/64 + y/64) % 2 == 0 ? 64 : 192) + random.nextInt(17) - 8;
+				r = Math.max(0, Math.min(255, r));
+				g = Math.max(0, Math.min(255, g));
+				b = Math.max(0, Math.min(255, b));
+				row[x] = Color.argb(255, r, g, b);
+			}
+			bitmap.setPixels(row, 0, width, 0, y, width, 1);
+		}
+		return bitmap;
+	}
+
+	/** Runs noise reduction on synthetic images at 8, 12 and 16 megapixels, storing the averaged image
+	 *  as 32-bit float and as 16-bit fixed point, and logs the bytes per pixel and merge times. Also
+	 *  checks that the results are almost identical.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void testAvgFormatBenchmark() throws InterruptedException {
+		Log.d(TAG, "testAvgFormatBenchmark");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "renderscript requires Android Lollipop or better");
+			return;
+		}
+
+		setToDefault();
+		Thread.sleep(1000); // wait for camera to open
+
+		final int n_images = 4;
+		final int iso = 800;
+		final int [][] resolutions = {{3264, 2448}, {4000, 3000}, {4608, 3456}};
+		final AvgAccumulator.Format [] formats = {AvgAccumulator.Format.FORMAT_FLOAT32, AvgAccumulator.Format.FORMAT_FIXED16};
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		try {
+			for(int [] resolution : resolutions) {
+				int width = resolution[0];
+				int height = resolution[1];
+				Bitmap [] sources = new Bitmap[2];
+				sources[0] = createAvgBenchmarkBitmap(width, height, 0);
+				sources[1] = createAvgBenchmarkBitmap(width, height, 1);
+				Bitmap [] nr_bitmaps = new Bitmap[formats.length];
+				for(int f=0;f<formats.length;f++) {
+					hdrProcessor.setAvgFormat(formats[f]);
+					System.gc();
+					Thread.sleep(500);
+					long time_s = System.currentTimeMillis();
+					// processAvg and updateAvg recycle their inputs, so pass copies
+					HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(sources[0].copy(sources[0].getConfig(), false), sources[1].copy(sources[1].getConfig(), false), 1.0f, iso);
+					for(int i=2;i<n_images;i++) {
+						hdrProcessor.updateAvg(avg_data, width, height, sources[i % 2].copy(sources[i % 2].getConfig(), false), (float)i, iso);
+					}
+					long merge_time = System.currentTimeMillis() - time_s;
+					long bytes_per_pixel = avg_data.allocation_out.getBytesSize() / ((long)width*height);
+					time_s = System.currentTimeMillis();
+					nr_bitmaps[f] = hdrProcessor.avgBrighten(avg_data.allocation_out, width, height, iso);
+					long brighten_time = System.currentTimeMillis() - time_s;
+					avg_data.destroy();
+					Log.d(TAG, (width*height/1000000) + "MP " + formats[f] + ": bytes per pixel: " + bytes_per_pixel + " (expected " + AvgAccumulator.getAllocationBytesPerPixel(formats[f]) + ")");
+					Log.d(TAG, (width*height/1000000) + "MP " + formats[f] + ": merge time for " + n_images + " images: " + merge_time + "ms, brighten time: " + brighten_time + "ms");
+					assertEquals(AvgAccumulator.getAllocationBytesPerPixel(formats[f]), bytes_per_pixel);
+				}
+				sources[0].recycle();
+				sources[1].recycle();
+
+				// compare with the 32-bit float result
+				int [] row0 = new int[width];
+				int [] row1 = new int[width];
+				for(int f=1;f<formats.length;f++) {
+					long n_large_diffs = 0;
+					int max_diff = 0;
+					for(int y=0;y<height;y++) {
+						nr_bitmaps[0].getPixels(row0, 0, width, 0, y, width, 1);
+						nr_bitmaps[f].getPixels(row1, 0, width, 0, y, width, 1);
+						for(int x=0;x<width;x++) {
+							int diff = Math.abs(Color.red(row0[x]) - Color.red(row1[x]));
+							diff = Math.max(diff, Math.abs(Color.green(row0[x]) - Color.green(row1[x])));
+							diff = Math.max(diff, Math.abs(Color.blue(row0[x]) - Color.blue(row1[x])));
+							max_diff = Math.max(max_diff, diff);
+							if( diff > 2 )
+								n_large_diffs++;
+						}
+					}
+					Log.d(TAG, formats[f] + ": max_diff: " + max_diff + " n_large_diffs: " + n_large_diffs);
+					// differences larger than rounding can occur where a small change crosses a threshold (e.g., for sharpening)
+					assertTrue(n_large_diffs <= (long)width*height/1000);
+				}
+				for(Bitmap nr_bitmap : nr_bitmaps) {
+					nr_bitmap.recycle();
+				}
+			}
+		}
+		catch(HDRProcessorException e) {
+			e.printStackTrace();
+			throw new RuntimeException();
+		}
+		finally {
+			hdrProcessor.setAvgFormat(AvgAccumulator.Format.FORMAT_FLOAT32);
+		}
+	}
+
+	/** Runs the local histogram equalisation used for DRO and HDR on synthetic images, for a range
+	 *  of resolutions and numbers of tiles, with both the RenderScript implementation and
+	 *  CLAHEProcessor, and logs the times. Also checks that the results are almost identical.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void testCLAHEBenchmark() throws InterruptedException {
+		Log.d(TAG, "testCLAHEBenchmark");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "renderscript requires Android Lollipop or better");
+			return;
+		}
+
+		setToDefault();
+		Thread.sleep(1000); // wait for camera to open
+
+		final int n_repeats = 3;
+		final int [][] resolutions = {{1632, 1224}, {3264, 2448}, {4000, 3000}};
+		final int [] n_tiles_values = {1, 2, 4, 8, 16};
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		try {
+			for(int [] resolution : resolutions) {
+				int width = resolution[0];
+				int height = resolution[1];
+				Bitmap source = createAvgBenchmarkBitmap(width, height, 0);
+				Bitmap output_rs = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+				Bitmap output_cpu = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+				List<Bitmap> inputs = new ArrayList<>();
+				inputs.add(source);
+				for(int n_tiles : n_tiles_values) {
+					long [] times = new long[2];
+					for(int backend=0;backend<2;backend++) {
+						hdrProcessor.setUseCLAHECPU(backend == 1);
+						Bitmap output_bitmap = backend == 1 ? output_cpu : output_rs;
+						// first run is a warm up
+						hdrProcessor.processHDR(inputs, false, output_bitmap, true, null, 0.5f, n_tiles, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
+						long time_s = System.currentTimeMillis();
+						for(int i=0;i<n_repeats;i++) {
+							hdrProcessor.processHDR(inputs, false, output_bitmap, true, null, 0.5f, n_tiles, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD);
+						}
+						times[backend] = (System.currentTimeMillis() - time_s)/n_repeats;
+					}
+					Log.d(TAG, width + "x" + height + " n_tiles " + n_tiles + ": renderscript time: " + times[0] + "ms, CLAHEProcessor time: " + times[1] + "ms");
+
+					int [] row0 = new int[width];
+					int [] row1 = new int[width];
+					long n_large_diffs = 0;
+					int max_diff = 0;
+					for(int y=0;y<height;y++) {
+						output_rs.getPixels(row0, 0, width, 0, y, width, 1);
+						output_cpu.getPixels(row1, 0, width, 0, y, width, 1);
+						for(int x=0;x<width;x++) {
+							int diff = Math.abs(Color.red(row0[x]) - Color.red(row1[x]));
+							diff = Math.max(diff, Math.abs(Color.green(row0[x]) - Color.green(row1[x])));
+							diff = Math.max(diff, Math.abs(Color.blue(row0[x]) - Color.blue(row1[x])));
+							max_diff = Math.max(max_diff, diff);
+							if( diff > 1 )
+								n_large_diffs++;
+						}
+					}
+					Log.d(TAG, "    max_diff: " + max_diff + " n_large_diffs: " + n_large_diffs);
+					// renderscript may use relaxed floating point precision, which can change the
+					// rounding of the blended equalisation values
+					assertTrue(max_diff <= 4);
+					assertTrue(n_large_diffs <= (long)width*height/1000);
+				}
+				source.recycle();
+				output_rs.recycle();
+				output_cpu.recycle();
+			}
+		}
+		catch(HDRProcessorException e) {
+			e.printStackTrace();
+			throw new RuntimeException();
+		}
+		finally {
+			hdrProcessor.setUseCLAHECPU(false);
+		}
+	}
+
+	/** Times the tonemapping curves for each algorithm, evaluating the curve for every pixel versus
+	 *  using a TonemapLUT, both for the tonemapping on its own (reporting the cost per pixel) and for
+	 *  the full HDR algorithm with the RenderScript backend on test samples "saintpaul". Also checks
+	 *  that the results are almost identical.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void testTonemapLUTBenchmark() throws IOException, InterruptedException {
+		Log.d(TAG, "testTonemapLUTBenchmark");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "renderscript requires Android Lollipop or better");
+			return;
+		}
+
+		setToDefault();
+		Thread.sleep(1000); // wait for camera to open
+
+		final HDRProcessor.TonemappingAlgorithm [] algorithms = HDRProcessor.TonemappingAlgorithm.values();
+
+		// tonemapping on its own
+		final float max_value = 1020.0f;
+		final int n_pixels = 1000000;
+		float [] hdr = new float[3*n_pixels];
+		Random random = new Random(0);
+		for(int i=0;i<hdr.length;i++) {
+			hdr[i] = random.nextFloat() * max_value;
+		}
+		for(HDRProcessor.TonemappingAlgorithm algorithm : algorithms) {
+			HDRProcessorCPU.TonemapParameters tonemap = new HDRProcessorCPU.TonemapParameters(algorithm, 255.0f, (max_value + 255.0f) / max_value, HDRProcessorCPU.filmic_exposure_bias_c * max_value);
+			TonemapLUT.clearCache();
+			long time_s = System.nanoTime();
+			TonemapLUT lut = TonemapLUT.getCached(tonemap, max_value);
+			long create_time = System.nanoTime() - time_s;
+			int checksum = 0;
+			int n_diffs = 0;
+			long [] times = new long[2];
+			for(int pass=0;pass<2;pass++) {
+				// first pass is a warm up
+				time_s = System.nanoTime();
+				for(int i=0;i<n_pixels;i++) {
+					checksum ^= lut.tonemapDirect(hdr[3*i], hdr[3*i+1], hdr[3*i+2]);
+				}
+				times[0] = System.nanoTime() - time_s;
+				time_s = System.nanoTime();
+				for(int i=0;i<n_pixels;i++) {
+					checksum ^= lut.tonemap(hdr[3*i], hdr[3*i+1], hdr[3*i+2]);
+				}
+				times[1] = System.nanoTime() - time_s;
+			}
+			for(int i=0;i<n_pixels;i++) {
+				if( lut.tonemapDirect(hdr[3*i], hdr[3*i+1], hdr[3*i+2]) != lut.tonemap(hdr[3*i], hdr[3*i+1], hdr[3*i+2]) )
+					n_diffs++;
+			}
+			Log.d(TAG, algorithm + ": per pixel cost without lookup table: " + (times[0] / (double)n_pixels) + "ns, with lookup table: " + (times[1] / (double)n_pixels) + "ns");
+			Log.d(TAG, algorithm + ": time to create lookup table: " + (create_time / 1000) + "us, n_diffs: " + n_diffs + " (checksum " + checksum + ")");
+			assertTrue(n_diffs <= n_pixels/100);
+		}
+		TonemapLUT.clearCache();
+
+		// full HDR algorithm
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input2.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input3.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input4.jpg") );
+		int width = inputs.get(0).getWidth();
+		int height = inputs.get(0).getHeight();
+		Bitmap [] outputs = new Bitmap[2];
+		outputs[0] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		outputs[1] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		try {
+			for(HDRProcessor.TonemappingAlgorithm algorithm : algorithms) {
+				long [] times = new long[2];
+				for(int i=0;i<2;i++) {
+					hdrProcessor.setUseTonemapLUT(i == 1);
+					// hdr_alpha of 0, so we only time the merging and tonemapping
+					long time_s = System.currentTimeMillis();
+					hdrProcessor.processHDR(inputs, false, outputs[i], true, null, 0.0f, 4, algorithm);
+					times[i] = System.currentTimeMillis() - time_s;
+				}
+				int [] row0 = new int[width];
+				int [] row1 = new int[width];
+				int max_diff = 0;
+				for(int y=0;y<height;y++) {
+					outputs[0].getPixels(row0, 0, width, 0, y, width, 1);
+					outputs[1].getPixels(row1, 0, width, 0, y, width, 1);
+					for(int x=0;x<width;x++) {
+						int diff = Math.abs(Color.red(row0[x]) - Color.red(row1[x]));
+						diff = Math.max(diff, Math.abs(Color.green(row0[x]) - Color.green(row1[x])));
+						diff = Math.max(diff, Math.abs(Color.blue(row0[x]) - Color.blue(row1[x])));
+						max_diff = Math.max(max_diff, diff);
+					}
+				}
+				Log.d(TAG, algorithm + ": HDR time without lookup table: " + times[0] + "ms, with lookup table: " + times[1] + "ms, max_diff: " + max_diff);
+				assertTrue(max_diff <= 1);
+			}
+		}
+		catch(HDRProcessorException e) {
+			e.printStackTrace();
+			throw new RuntimeException();
+		}
+		finally {
+			hdrProcessor.setUseTonemapLUT(true);
+		}
+
+		outputs[0].recycle();
+		outputs[1].recycle();
+		for(Bitmap bitmap : inputs) {
+			bitmap.recycle();
+		}
+		inputs.clear();
+	}
+
+	/** Tests that tonemapping with a TonemapLUT (the default) gives almost the same results as evaluating the tonemapping
+	 *  curve for every pixel, for each tonemapping algorithm and both HDR backends, on test samples "saintpaul".
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void testHDRTonemapLUT() throws IOException, InterruptedException {
+		Log.d(TAG, "testHDRTonemapLUT");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "renderscript requires Android Lollipop or better");
+			return;
+		}
+
+		setToDefault();
+		Thread.sleep(1000); // wait for camera to open
+
+		List<Bitmap> inputs = new ArrayList<>();
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input2.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input3.jpg") );
+		inputs.add( getBitmapFromFile(hdr_images_path + "saintpaul/input4.jpg") );
+		int width = inputs.get(0).getWidth();
+		int height = inputs.get(0).getHeight();
+		Bitmap output_direct = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Bitmap output_lut = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		int [] row_direct = new int[width];
+		int [] row_lut = new int[width];
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		try {
+			for(HDRProcessor.HDRBackend backend : HDRProcessor.HDRBackend.values()) {
+				hdrProcessor.setHDRBackend(backend);
+				for(HDRProcessor.TonemappingAlgorithm algorithm : HDRProcessor.TonemappingAlgorithm.values()) {
+					// hdr_alpha of 0, so we only compare the merging and tonemapping
+					hdrProcessor.setUseTonemapLUT(false);
+					hdrProcessor.processHDR(inputs, false, output_direct, true, null, 0.0f, 4, algorithm);
+					hdrProcessor.setUseTonemapLUT(true);
+					hdrProcessor.processHDR(inputs, false, output_lut, true, null, 0.0f, 4, algorithm);
+
+					int max_diff = 0;
+					long sum_diff = 0;
+					for(int y=0;y<height;y++) {
+						output_direct.getPixels(row_direct, 0, width, 0, y, width, 1);
+						output_lut.getPixels(row_lut, 0, width, 0, y, width, 1);
+						for(int x=0;x<width;x++) {
+							int diff = Math.abs(Color.red(row_direct[x]) - Color.red(row_lut[x]));
+							diff = Math.max(diff, Math.abs(Color.green(row_direct[x]) - Color.green(row_lut[x])));
+							diff = Math.max(diff, Math.abs(Color.blue(row_direct[x]) - Color.blue(row_lut[x])));
+							max_diff = Math.max(max_diff, diff);
+							sum_diff += diff;
+						}
+					}
+					double mean_diff = sum_diff / (double)(width*height);
+					Log.d(TAG, backend + " " + algorithm + ": max_diff: " + max_diff + " mean_diff: " + mean_diff);
+					assertTrue(max_diff <= 1);
+					assertTrue(mean_diff < 0.05);
+				}
+			}
+		}
+		catch(HDRProcessorException e) {
+			e.printStackTrace();
+			throw new RuntimeException();
+		}
+		finally {
+			hdrProcessor.setHDRBackend(HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT);
+			hdrProcessor.setUseTonemapLUT(true);
+		}
+
+		output_direct.recycle();
+		output_lut.recycle();
+		for(Bitmap bitmap : inputs) {
+			bitmap.recycle();
+		}
+		inputs.clear();
+		Thread.sleep(500);
+	}
+
+	/** Compares the performance of HDRALGORITHM_EXPOSURE_FUSION with HDRALGORITHM_STANDARD on some
+	 *  of the HDR test samples. The exposure fusion results are saved so they can be compared with
+	 *  the testHDRX outputs.
+	 */
+	public void testExposureFusionBenchmark() throws IOException, InterruptedException {
+		Log.d(TAG, "testExposureFusionBenchmark");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "renderscript requires Android Lollipop or better");
+			return;
+		}
+
+		setToDefault();
+		Thread.sleep(1000); // wait for camera to open
+
+		final String [][] test_sets = {
+				{"saintpaul/input2.jpg", "saintpaul/input3.jpg", "saintpaul/input4.jpg"},
+				{"testHDR10/input0.jpg", "testHDR10/input1.jpg", "testHDR10/input2.jpg"},
+				{"testHDR11/input0.jpg", "testHDR11/input1.jpg", "testHDR11/input2.jpg"},
+				{"testHDR20/input0.jpg", "testHDR20/input1.jpg", "testHDR20/input2.jpg"},
+				{"testHDR21/input0.jpg", "testHDR21/input1.jpg", "testHDR21/input2.jpg"},
+				{"testHDR22/input0.jpg", "testHDR22/input1.jpg", "testHDR22/input2.jpg"}
+		};
+		final HDRProcessor.HDRAlgorithm [] algorithms = {HDRProcessor.HDRAlgorithm.HDRALGORITHM_STANDARD, HDRProcessor.HDRAlgorithm.HDRALGORITHM_EXPOSURE_FUSION};
+		HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+		long [] total_times = new long[algorithms.length];
+		for(String [] test_set : test_sets) {
+			List<Bitmap> inputs = new ArrayList<>();
+			for(String filename : test_set) {
+				inputs.add( getBitmapFromFile(hdr_images_path + filename) );
+			}
+			int width = inputs.get(0).getWidth();
+			int height = inputs.get(0).getHeight();
+			Bitmap output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			for(int i=0;i<algorithms.length;i++) {
+				long time_s = System.currentTimeMillis();
+				try {
+					hdrProcessor.processHDR(inputs, false, output, true, null, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, algorithms[i]);
+				}
+				catch(HDRProcessorException e) {
+					e.printStackTrace();
+					throw new RuntimeException();
+				}
+				long time = System.currentTimeMillis() - time_s;
+				total_times[i] += time;
+				Log.d(TAG, test_set[0] + ": " + algorithms[i] + " time: " + time + "ms");
+				HistogramDetails histogramDetails = checkHistogram(output);
+				assertTrue(histogramDetails.max_value > histogramDetails.min_value);
+				if( algorithms[i] == HDRProcessor.HDRAlgorithm.HDRALGORITHM_EXPOSURE_FUSION ) {
+					String output_name = "testExposureFusion_" + test_set[0].substring(0, test_set[0].indexOf('/')) + "_output.jpg";
+					File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM) + "/" + output_name);
+					OutputStream outputStream = new FileOutputStream(file);
+					output.compress(Bitmap.CompressFormat.JPEG, 90, outputStream);
+					outputStream.close();
+					mActivity.getStorageUtils().broadcastFile(file, true, false, true);
+				}
+			}
+			output.recycle();
+			for(Bitmap bitmap : inputs) {
+				bitmap.recycle();
+			}
+			inputs.clear();
+		}
+		for(int i=0;i<algorithms.length;i++) {
+			Log.d(TAG, algorithms[i] + ": total time: " + total_times[i] + "ms");
+		}
+	}
+
+	/** Compares the time and peak memory for rotating (for the exif orientation), auto-stabilising,
+	 *  cropping and mirroring a photo with a chain of Bitmap.createBitmap() calls (as ImageSaver used to
+	 *  do), against composing these into a single transform applied with AffineResampler.
+	 *  The peak memory is the largest total size of the bitmaps held at once (including the input).
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void testGeometryBenchmark() throws IOException, InterruptedException {
+		Log.d(TAG, "testGeometryBenchmark");
+
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+			Log.d(TAG, "ForkJoinPool requires Android Lollipop or better");
+			return;
+		}
+
+		setToDefault();
+		Thread.sleep(1000); // wait for camera to open
+
+		final String [] test_images = {
+				"saintpaul/input3.jpg",
+				"testHDR10/input1.jpg",
+				"testHDR20/input1.jpg"
+		};
+		final float level_angle = 5.0f;
+		final int n_iterations = 5;
+		AffineResampler affineResampler = new AffineResampler(null, AffineResampler.default_tile_size_c);
+		long total_chain_time = 0, total_fused_time = 0;
+		for(String test_image : test_images) {
+			Bitmap input = getBitmapFromFile(hdr_images_path + test_image);
+			final int width = input.getWidth();
+			final int height = input.getHeight();
+			final long input_bytes = input.getByteCount();
+
+			// the fused transform; the crop is just for benchmarking, rather than the exact auto-stabilise crop
+			AffineResampler.Transform transform = new AffineResampler.Transform(width, height);
+			transform.rotate(90);
+			float scale = 0.95f;
+			transform.scale(scale);
+			transform.rotate(level_angle);
+			int crop_w = (int)(0.9f*height*scale), crop_h = (int)(0.9f*width*scale);
+			int crop_x = (transform.getWidth()-crop_w)/2, crop_y = (transform.getHeight()-crop_h)/2;
+			transform.crop(crop_x, crop_y, crop_w, crop_h);
+			transform.mirror();
+
+			long chain_time = 0, fused_time = 0;
+			long chain_peak_bytes = 0, fused_peak_bytes = 0;
+			Bitmap chain_output = null, fused_output = null;
+			for(int it=0;it<n_iterations;it++) {
+				if( chain_output != null ) {
+					chain_output.recycle();
+				}
+				// the chain, one createBitmap() per step
+				long time_s = System.currentTimeMillis();
+				Matrix matrix = new Matrix();
+				matrix.setRotate(90, width * 0.5f, height * 0.5f);
+				Bitmap rotated = Bitmap.createBitmap(input, 0, 0, width, height, matrix, true);
+				long peak_bytes = input_bytes + rotated.getByteCount();
+				matrix = new Matrix();
+				matrix.postScale(scale, scale);
+				matrix.postRotate(level_angle);
+				Bitmap levelled = Bitmap.createBitmap(rotated, 0, 0, rotated.getWidth(), rotated.getHeight(), matrix, true);
+				peak_bytes = Math.max(peak_bytes, input_bytes + rotated.getByteCount() + levelled.getByteCount());
+				rotated.recycle();
+				Bitmap cropped = Bitmap.createBitmap(levelled, crop_x, crop_y, crop_w, crop_h);
+				peak_bytes = Math.max(peak_bytes, input_bytes + levelled.getByteCount() + cropped.getByteCount());
+				levelled.recycle();
+				matrix = new Matrix();
+				matrix.preScale(-1.0f, 1.0f);
+				chain_output = Bitmap.createBitmap(cropped, 0, 0, crop_w, crop_h, matrix, true);
+				peak_bytes = Math.max(peak_bytes, input_bytes + cropped.getByteCount() + chain_output.getByteCount());
+				cropped.recycle();
+				chain_time += System.currentTimeMillis() - time_s;
+				chain_peak_bytes = Math.max(chain_peak_bytes, peak_bytes);
+
+				if( fused_output != null ) {
+					fused_output.recycle();
+				}
+				// the fused transform
+				time_s = System.currentTimeMillis();
+				final Bitmap input_bitmap = input;
+				final Bitmap output_bitmap = Bitmap.createBitmap(transform.getWidth(), transform.getHeight(), Bitmap.Config.ARGB_8888);
+				affineResampler.process(transform, new AffineResampler.PixelSource() {
+					@Override
+					public void readPixels(int x, int y, int width, int height, int [] argb) {
+						input_bitmap.getPixels(argb, 0, width, x, y, width, height);
+					}
+				}, new AffineResampler.PixelSink() {
+					@Override
+					public void writePixels(int x, int y, int width, int height, int [] argb) {
+						synchronized( output_bitmap ) {
+							output_bitmap.setPixels(argb, 0, width, x, y, width, height);
+						}
+					}
+				});
+				fused_output = output_bitmap;
+				fused_time += System.currentTimeMillis() - time_s;
+				fused_peak_bytes = Math.max(fused_peak_bytes, input_bytes + fused_output.getByteCount());
+			}
+
+			assertEquals(chain_output.getWidth(), fused_output.getWidth());
+			assertEquals(chain_output.getHeight(), fused_output.getHeight());
+			// the results should match, other than small differences from the filtering
+			int n_diff = 0;
+			for(int y=0;y<fused_output.getHeight();y+=16) {
+				for(int x=0;x<fused_output.getWidth();x+=16) {
+					int c0 = chain_output.getPixel(x, y);
+					int c1 = fused_output.getPixel(x, y);
+					int diff = Math.abs(Color.red(c0) - Color.red(c1)) + Math.abs(Color.green(c0) - Color.green(c1)) + Math.abs(Color.blue(c0) - Color.blue(c1));
+					if( diff > 48 )
+						n_diff++;
+				}
+			}
+			int n_samples = ((fused_output.getWidth()+15)/16) * ((fused_output.getHeight()+15)/16);
+			Log.d(TAG, test_image + ": " + n_diff + " of " + n_samples + " sampled pixels differ");
+			assertTrue(n_diff < n_samples/20);
+
+			Log.d(TAG, test_image + ": " + width + " x " + height + " to " + fused_output.getWidth() + " x " + fused_output.getHeight());
+			Log.d(TAG, test_image + ": chain time: " + (chain_time/n_iterations) + "ms, peak bitmap memory: " + (chain_peak_bytes/(1024*1024)) + "MB");
+			Log.d(TAG, test_image + ": fused time: " + (fused_time/n_iterations) + "ms, peak bitmap memory: " + (fused_peak_bytes/(1024*1024)) + "MB");
+			total_chain_time += chain_time;
+			total_fused_time += fused_time;
+
+			chain_output.recycle();
+			fused_output.recycle();
+			input.recycle();
+		}
+		Log.d(TAG, "chain: total time: " + total_chain_time + "ms");
+		Log.d(TAG, "fused: total time: " + total_fused_time + "ms");
+	}
+
 	/** Tests HDR algorithm on test samples "testHDRtemp".
 	 *  Used for one-off testing, or to recreate HDR images from the base exposures to test an updated alorithm.
 	 *  The test images should be copied to the test device into DCIM/testOpenCamera/testdata/hdrsamples/testHDRtemp/ .
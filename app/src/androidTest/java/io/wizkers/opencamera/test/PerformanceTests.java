@@ -0,0 +1,27 @@
+package io.wizkers.opencamera.test;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+public class PerformanceTests {
+	/** Tests for timing and comparing alternative implementations of the image processing algorithms.
+	 *  Timings are written to the log, so should be looked over manually.
+	 *  As with HDRTests, the testdata/ subfolder should be manually copied to the test device in the
+	 *  DCIM/testOpenCamera/ folder.
+	 */
+	public static Test suite() {
+		TestSuite suite = new TestSuite(MainTests.class.getName());
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRCPUBackend"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRCPUBackend_exp5"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRPyramidAlignment"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRPyramidAlignment_large"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRResponseFunctionBenchmark"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testHDRResponseFunctionBenchmark_exp5"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testAvgFormatBenchmark"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testCLAHEBenchmark"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTonemapLUTBenchmark"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testExposureFusionBenchmark"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testGeometryBenchmark"));
+		return suite;
+	}
+}
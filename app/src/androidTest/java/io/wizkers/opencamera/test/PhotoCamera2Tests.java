@@ -18,8 +18,15 @@ public class PhotoCamera2Tests {
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoPreviewPausedTrashRaw2"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoExpo5"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFocusBracketing"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoExpoSlowBurstInFlight"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFocusBracketingSlowBurstInFlight"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoExpoSlowBurstCaptureFailure"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFocusBracketingStack"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFastBurst"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoNR"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoNRFrameDecodeFailure"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testImageAverageAbortPhotoError"));
+		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testImageAverageAbortCameraClosed"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFlashAutoFakeMode"));
 		suite.addTest(TestSuite.createTest(MainActivityTest.class, "testTakePhotoFlashOnFakeMode"));
         return suite;
@@ -0,0 +1,365 @@
+package io.wizkers.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Applies an affine transform (e.g., the rotation for the exif orientation, auto-stabilise and
+ *  mirroring, followed by a crop) to an image in a single resampling pass, rather than creating a
+ *  new image for each step.
+ *  The transform is built up with a Transform, where each step behaves as
+ *  Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true) would (so the result of each
+ *  step is translated to start at 0, 0, with the size of its bounding box), and the output is
+ *  computed with bilinear filtering.
+ *  The output is split into square tiles, which are computed in parallel on a ForkJoinPool. For
+ *  each tile, only the region of the input that maps to that tile is read from a PixelSource, and
+ *  the output is written to a PixelSink - so the working set is a tile for each task, rather than
+ *  further copies of the whole image.
+ */
+public class AffineResampler {
+	private static final String TAG = "AffineResampler";
+
+	public static final int default_tile_size_c = 128;
+
+	/** Supplies regions of the input image.
+	 */
+	public interface PixelSource {
+		/** Reads the region [x, x+width) x [y, y+height) of the input image into argb, in ARGB
+		 *  format, with width pixels per row. The region will always be within the image. May be
+		 *  called from multiple threads at once.
+		 */
+		void readPixels(int x, int y, int width, int height, int [] argb);
+	}
+
+	/** Receives regions of the output image.
+	 */
+	public interface PixelSink {
+		/** Called with the region [x, x+width) x [y, y+height) of the output image, in ARGB format,
+		 *  with width pixels per row. May be called from multiple threads at once, though the regions
+		 *  never overlap. argb is only valid until this method returns.
+		 */
+		void writePixels(int x, int y, int width, int height, int [] argb);
+	}
+
+	/** An affine transform from the input image to an output image, built up from a series of
+	 *  steps.
+	 */
+	public static class Transform {
+		private final int input_width, input_height;
+		// maps the input (x, y) to (m[0]*x + m[1]*y + m[2], m[3]*x + m[4]*y + m[5]), in the same order
+		// as android.graphics.Matrix.getValues(); coordinates are continuous, so pixel (i, j) has its
+		// centre at (i+0.5, j+0.5)
+		private final double [] m = {1.0, 0.0, 0.0, 0.0, 1.0, 0.0};
+		private int width, height;
+
+		public Transform(int input_width, int input_height) {
+			if( input_width <= 0 || input_height <= 0 ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "invalid input size: " + input_width + " x " + input_height);
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+			}
+			this.input_width = input_width;
+			this.input_height = input_height;
+			this.width = input_width;
+			this.height = input_height;
+		}
+
+		public int getInputWidth() {
+			return input_width;
+		}
+
+		public int getInputHeight() {
+			return input_height;
+		}
+
+		/** Returns the width of the output image, after the steps so far.
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/** Returns the height of the output image, after the steps so far.
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/** Returns a copy of the transform, as the first two rows of a 3x3 matrix in row major
+		 *  order, as for android.graphics.Matrix.setValues().
+		 */
+		public double [] getMatrix() {
+			return m.clone();
+		}
+
+		/** Whether the output is identical to the input.
+		 */
+		public boolean isIdentity() {
+			return width == input_width && height == input_height &&
+					m[0] == 1.0 && m[1] == 0.0 && m[2] == 0.0 &&
+					m[3] == 0.0 && m[4] == 1.0 && m[5] == 0.0;
+		}
+
+		/** Rotates clockwise by the supplied angle, as Matrix.postRotate().
+		 */
+		public Transform rotate(double degrees) {
+			double sin, cos;
+			if( degrees % 90.0 == 0.0 ) {
+				// avoid rounding errors for the rotations used for the exif orientation
+				int quadrant = (((int)(degrees / 90.0)) % 4 + 4) % 4;
+				sin = quadrant == 1 ? 1.0 : quadrant == 3 ? -1.0 : 0.0;
+				cos = quadrant == 0 ? 1.0 : quadrant == 2 ? -1.0 : 0.0;
+			}
+			else {
+				double rad = Math.toRadians(degrees);
+				sin = Math.sin(rad);
+				cos = Math.cos(rad);
+			}
+			concat(cos, -sin, sin, cos);
+			return this;
+		}
+
+		/** Scales by the supplied factor, as Matrix.postScale().
+		 */
+		public Transform scale(double scale) {
+			if( scale <= 0.0 ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "invalid scale: " + scale);
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+			}
+			concat(scale, 0.0, 0.0, scale);
+			return this;
+		}
+
+		/** Mirrors horizontally.
+		 */
+		public Transform mirror() {
+			concat(-1.0, 0.0, 0.0, 1.0);
+			return this;
+		}
+
+		/** Crops to the region [x, x+width) x [y, y+height) of the output so far, as
+		 *  Bitmap.createBitmap(bitmap, x, y, width, height).
+		 */
+		public Transform crop(int x, int y, int width, int height) {
+			if( x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > this.width || y + height > this.height ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "invalid crop: " + x + " , " + y + " , " + width + " x " + height + " for size " + this.width + " x " + this.height);
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+			}
+			m[2] -= x;
+			m[5] -= y;
+			this.width = width;
+			this.height = height;
+			return this;
+		}
+
+		/** Applies the linear transform (a, b; c, d) after the current transform, then translates so
+		 *  that the bounding box of the result starts at 0, 0.
+		 */
+		private void concat(double a, double b, double c, double d) {
+			double m0 = a*m[0] + b*m[3], m1 = a*m[1] + b*m[4], m2 = a*m[2] + b*m[5];
+			double m3 = c*m[0] + d*m[3], m4 = c*m[1] + d*m[4], m5 = c*m[2] + d*m[5];
+			m[0] = m0; m[1] = m1; m[2] = m2;
+			m[3] = m3; m[4] = m4; m[5] = m5;
+
+			// the bounding box of the current output rectangle, under the new transform
+			double min_x = Double.MAX_VALUE, max_x = -Double.MAX_VALUE;
+			double min_y = Double.MAX_VALUE, max_y = -Double.MAX_VALUE;
+			for(int i=0;i<4;i++) {
+				double x = (i & 1) == 0 ? 0.0 : width;
+				double y = (i & 2) == 0 ? 0.0 : height;
+				double tx = a*x + b*y;
+				double ty = c*x + d*y;
+				min_x = Math.min(min_x, tx);
+				max_x = Math.max(max_x, tx);
+				min_y = Math.min(min_y, ty);
+				max_y = Math.max(max_y, ty);
+			}
+			m[2] -= min_x;
+			m[5] -= min_y;
+			width = Math.max(1, (int)Math.round(max_x - min_x));
+			height = Math.max(1, (int)Math.round(max_y - min_y));
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int tile_size;
+
+	/**
+	 * @param pool      The pool to run the processing on. If null, a new pool is created with
+	 *                  parallelism equal to the number of available processors.
+	 * @param tile_size The width and height of the output tiles.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public AffineResampler(ForkJoinPool pool, int tile_size) {
+		if( tile_size <= 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "invalid tile_size: " + tile_size);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.pool = pool != null ? pool : new ForkJoinPool();
+		this.tile_size = tile_size;
+	}
+
+	/** Computes the output tiles [start_tile, stop_tile), where tiles are numbered in row order.
+	 */
+	private static class ResampleTask extends RecursiveAction {
+		private final PixelSource source;
+		private final PixelSink sink;
+		private final int input_width, input_height;
+		private final int width, height;
+		private final double [] inv; // maps the output to the input
+		private final int tile_size;
+		private final int n_tiles_x;
+		private final int start_tile, stop_tile;
+
+		ResampleTask(PixelSource source, PixelSink sink, Transform transform, double [] inv, int tile_size, int n_tiles_x, int start_tile, int stop_tile) {
+			this.source = source;
+			this.sink = sink;
+			this.input_width = transform.getInputWidth();
+			this.input_height = transform.getInputHeight();
+			this.width = transform.getWidth();
+			this.height = transform.getHeight();
+			this.inv = inv;
+			this.tile_size = tile_size;
+			this.n_tiles_x = n_tiles_x;
+			this.start_tile = start_tile;
+			this.stop_tile = stop_tile;
+		}
+
+		@Override
+		protected void compute() {
+			int [] output = new int[tile_size*tile_size];
+			int [] input = new int[0];
+			for(int tile=start_tile;tile<stop_tile;tile++) {
+				int start_x = (tile % n_tiles_x) * tile_size;
+				int start_y = (tile / n_tiles_x) * tile_size;
+				int tile_width = Math.min(tile_size, width - start_x);
+				int tile_height = Math.min(tile_size, height - start_y);
+
+				// find the region of the input needed for this tile - since the transform is affine,
+				// this is the bounding box of the corners, expanded by a pixel for the filtering
+				double min_x = Double.MAX_VALUE, max_x = -Double.MAX_VALUE;
+				double min_y = Double.MAX_VALUE, max_y = -Double.MAX_VALUE;
+				for(int i=0;i<4;i++) {
+					double x = (i & 1) == 0 ? start_x : start_x + tile_width;
+					double y = (i & 2) == 0 ? start_y : start_y + tile_height;
+					double ix = inv[0]*x + inv[1]*y + inv[2];
+					double iy = inv[3]*x + inv[4]*y + inv[5];
+					min_x = Math.min(min_x, ix);
+					max_x = Math.max(max_x, ix);
+					min_y = Math.min(min_y, iy);
+					max_y = Math.max(max_y, iy);
+				}
+				int region_x0 = clamp((int)Math.floor(min_x) - 1, 0, input_width-1);
+				int region_x1 = clamp((int)Math.ceil(max_x) + 1, 0, input_width-1);
+				int region_y0 = clamp((int)Math.floor(min_y) - 1, 0, input_height-1);
+				int region_y1 = clamp((int)Math.ceil(max_y) + 1, 0, input_height-1);
+				int region_width = region_x1 - region_x0 + 1;
+				int region_height = region_y1 - region_y0 + 1;
+				if( input.length < region_width*region_height ) {
+					input = new int[region_width*region_height];
+				}
+				source.readPixels(region_x0, region_y0, region_width, region_height, input);
+
+				for(int y=0;y<tile_height;y++) {
+					// input position of the centre of the first pixel of this row, shifted so that
+					// input pixel (i, j) is at (i, j) for the filtering
+					double cy = start_y + y + 0.5;
+					double cx = start_x + 0.5;
+					double ix = inv[0]*cx + inv[1]*cy + inv[2] - 0.5;
+					double iy = inv[3]*cx + inv[4]*cy + inv[5] - 0.5;
+					int output_row = y*tile_width;
+					for(int x=0;x<tile_width;x++) {
+						output[output_row + x] = sample(input, region_x0, region_y0, region_width, region_height, ix, iy);
+						ix += inv[0];
+						iy += inv[3];
+					}
+				}
+				sink.writePixels(start_x, start_y, tile_width, tile_height, output);
+			}
+		}
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/** Returns the bilinearly filtered colour at input position (x, y), where input holds the region
+	 *  starting at region_x0, region_y0. Positions outside the region are clamped to its edges.
+	 */
+	private static int sample(int [] input, int region_x0, int region_y0, int region_width, int region_height, double x, double y) {
+		x -= region_x0;
+		y -= region_y0;
+		int x0 = (int)Math.floor(x);
+		int y0 = (int)Math.floor(y);
+		// weights in 1/256ths, so that integer positions (e.g., for rotations by multiples of 90
+		// degrees, or mirroring) give exact copies of the input pixels
+		int fx = (int)((x - x0) * 256.0 + 0.5);
+		int fy = (int)((y - y0) * 256.0 + 0.5);
+		int x1 = clamp(x0+1, 0, region_width-1);
+		int y1 = clamp(y0+1, 0, region_height-1);
+		x0 = clamp(x0, 0, region_width-1);
+		y0 = clamp(y0, 0, region_height-1);
+		int row0 = y0*region_width;
+		int row1 = y1*region_width;
+		int top = lerp(input[row0 + x0], input[row0 + x1], fx);
+		int bottom = lerp(input[row1 + x0], input[row1 + x1], fx);
+		return lerp(top, bottom, fy);
+	}
+
+	/** Linearly interpolates between the ARGB colours c0 and c1 with weight w/256 for c1, for all
+	 *  four channels at once (two channels in each of two integers).
+	 */
+	private static int lerp(int c0, int c1, int w) {
+		int iw = 256 - w;
+		int rb = (((c0 & 0x00ff00ff) * iw + (c1 & 0x00ff00ff) * w + 0x00800080) >>> 8) & 0x00ff00ff;
+		int ag = ((((c0 >>> 8) & 0x00ff00ff) * iw + ((c1 >>> 8) & 0x00ff00ff) * w + 0x00800080)) & 0xff00ff00;
+		return ag | rb;
+	}
+
+	/** Computes the output of the transform, reading the input from source and writing the output to
+	 *  sink, with size transform.getWidth() x transform.getHeight().
+	 */
+	public void process(Transform transform, PixelSource source, PixelSink sink) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "process: " + transform.getInputWidth() + " x " + transform.getInputHeight() + " to " + transform.getWidth() + " x " + transform.getHeight());
+		double [] m = transform.getMatrix();
+		double det = m[0]*m[4] - m[1]*m[3];
+		if( det == 0.0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "transform isn't invertible");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		double [] inv = new double[6];
+		inv[0] = m[4]/det;
+		inv[1] = -m[1]/det;
+		inv[2] = -(inv[0]*m[2] + inv[1]*m[5]);
+		inv[3] = -m[3]/det;
+		inv[4] = m[0]/det;
+		inv[5] = -(inv[3]*m[2] + inv[4]*m[5]);
+
+		int n_tiles_x = (transform.getWidth() + tile_size - 1) / tile_size;
+		int n_tiles_y = (transform.getHeight() + tile_size - 1) / tile_size;
+		int n_tiles = n_tiles_x * n_tiles_y;
+		int n_tasks = Math.max(1, Math.min(n_tiles, 2*pool.getParallelism()));
+		ResampleTask [] tasks = new ResampleTask[n_tasks];
+		for(int i=0;i<n_tasks;i++) {
+			int start_tile = (i*n_tiles)/n_tasks;
+			int stop_tile = ((i+1)*n_tiles)/n_tasks;
+			tasks[i] = new ResampleTask(source, sink, transform, inv, tile_size, n_tiles_x, start_tile, stop_tile);
+			pool.execute(tasks[i]);
+		}
+		for(ResampleTask task : tasks) {
+			task.join();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+/** Java reference implementation of the running average used for noise reduction (see
+ *  process_avg.rs and HDRProcessor.processAvg()), where the averaged image can be stored in one of
+ *  several formats. This is used to check the accuracy of the reduced precision formats, and to
+ *  compare their memory requirements.
+ */
+public class AvgAccumulator {
+	private static final String TAG = "AvgAccumulator";
+
+	public enum Format {
+		FORMAT_FLOAT32, // 32-bit float per channel, as with RenderScript Element.F32_3
+		FORMAT_FIXED16, // 16-bit unsigned fixed point per channel, with 8 fractional bits
+		FORMAT_FLOAT16 // IEEE 754 half precision float per channel; for comparison only, as not supported by HDRProcessor
+	}
+
+	private static final float fixed16_scale_c = 256.0f;
+
+	private final Format format;
+	private final int width;
+	private final int height;
+	// only one of these is used, depending on the format; 3 channels per pixel
+	private final float [] data_f;
+	private final short [] data_s;
+
+	public AvgAccumulator(Format format, int width, int height) {
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		if( format == Format.FORMAT_FLOAT32 ) {
+			this.data_f = new float[3*width*height];
+			this.data_s = null;
+		}
+		else {
+			this.data_f = null;
+			this.data_s = new short[3*width*height];
+		}
+	}
+
+	/** Returns the number of bytes per pixel needed to store the averaged image in the supplied
+	 *  format with RenderScript, where 3 component vectors are padded to 4 components.
+	 */
+	public static int getAllocationBytesPerPixel(Format format) {
+		return format == Format.FORMAT_FLOAT32 ? 16 : 8;
+	}
+
+	/** Returns the number of bytes per pixel used by this class to store the averaged image.
+	 */
+	public int getBytesPerPixel() {
+		return format == Format.FORMAT_FLOAT32 ? 12 : 6;
+	}
+
+	/** Returns the maximum error introduced by storing a value from 0 to 255 in the supplied
+	 *  format.
+	 */
+	public static float getStoreErrorBound(Format format) {
+		switch( format ) {
+			case FORMAT_FIXED16:
+				return 0.5f/fixed16_scale_c;
+			case FORMAT_FLOAT16:
+				// 11 bits of precision, and values up to 255 have exponent at most 7
+				return 128.0f/2048.0f;
+			default:
+				// 24 bits of precision
+				return 128.0f/(1 << 24);
+		}
+	}
+
+	/** Converts a value from 0 to 255 to the fixed point format, rounding to nearest.
+	 */
+	public static short toFixed16(float value) {
+		float scaled = value * fixed16_scale_c + 0.5f;
+		scaled = Math.max(scaled, 0.0f);
+		scaled = Math.min(scaled, 65535.0f);
+		return (short)(int)scaled;
+	}
+
+	public static float fromFixed16(short value) {
+		return (value & 0xffff) / fixed16_scale_c;
+	}
+
+	/** Converts a float to IEEE 754 half precision, rounding to nearest even. Values too large
+	 *  are converted to infinity, and NaN is preserved.
+	 */
+	public static short toFloat16(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		if( exponent == 0xff ) {
+			// infinity or NaN
+			return (short)(sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		int new_exponent = exponent - 127 + 15;
+		if( new_exponent >= 0x1f ) {
+			// overflow
+			return (short)(sign | 0x7c00);
+		}
+		if( new_exponent <= 0 ) {
+			// subnormal, or underflow to zero
+			if( new_exponent < -10 )
+				return (short)sign;
+			mantissa |= 0x800000; // implicit leading bit
+			int shift = 14 - new_exponent;
+			int result = mantissa >> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if( remainder > halfway || (remainder == halfway && (result & 1) != 0) )
+				result++;
+			return (short)(sign | result);
+		}
+		int result = (new_exponent << 10) | (mantissa >> 13);
+		int remainder = mantissa & 0x1fff;
+		if( remainder > 0x1000 || (remainder == 0x1000 && (result & 1) != 0) )
+			result++; // n.b., may carry into the exponent, which correctly rounds up to the next power of 2 or infinity
+		return (short)(sign | result);
+	}
+
+	public static float fromFloat16(short value) {
+		int bits = value & 0xffff;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1f;
+		int mantissa = bits & 0x3ff;
+		if( exponent == 0x1f ) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		if( exponent == 0 ) {
+			// zero or subnormal
+			float result = mantissa / (float)(1 << 24);
+			return sign != 0 ? -result : result;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	private float load(int index) {
+		switch( format ) {
+			case FORMAT_FIXED16:
+				return fromFixed16(data_s[index]);
+			case FORMAT_FLOAT16:
+				return fromFloat16(data_s[index]);
+			default:
+				return data_f[index];
+		}
+	}
+
+	private void store(int index, float value) {
+		switch( format ) {
+			case FORMAT_FIXED16:
+				data_s[index] = toFixed16(value);
+				break;
+			case FORMAT_FLOAT16:
+				data_s[index] = toFloat16(value);
+				break;
+			default:
+				data_f[index] = value;
+				break;
+		}
+	}
+
+	/** Returns the averaged value for channel (0 to 2, for red, green, blue) of pixel (x, y).
+	 */
+	public float get(int x, int y, int channel) {
+		return load(3*(y*width + x) + channel);
+	}
+
+	/** Initialises the average from a single image.
+	 * @param argb The image, in ARGB format, of size width*height.
+	 */
+	public void set(int [] argb) {
+		if( argb.length != width*height ) {
+			Log.e(TAG, "image is wrong size: " + argb.length);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		for(int i=0;i<width*height;i++) {
+			int color = argb[i];
+			store(3*i, (color >> 16) & 0xff);
+			store(3*i+1, (color >> 8) & 0xff);
+			store(3*i+2, color & 0xff);
+		}
+	}
+
+	/** Merges a new image into the average, as done by the avg_f kernel in process_avg.rs.
+	 * @param argb            The new image, in ARGB format, of size width*height.
+	 * @param offset_x        The offset of the new image, as computed by alignment.
+	 * @param offset_y        The offset of the new image, as computed by alignment.
+	 * @param avg_factor      The weighting factor for the average so far.
+	 * @param wiener_C        The Wiener filter constant.
+	 * @param wiener_C_cutoff Pixels that differ by more than this aren't merged.
+	 */
+	public void merge(int [] argb, int offset_x, int offset_y, float avg_factor, float wiener_C, float wiener_C_cutoff) {
+		if( argb.length != width*height ) {
+			Log.e(TAG, "image is wrong size: " + argb.length);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		for(int y=0;y<height;y++) {
+			int ny = y + offset_y;
+			if( ny < 0 || ny >= height )
+				continue;
+			for(int x=0;x<width;x++) {
+				int nx = x + offset_x;
+				if( nx < 0 || nx >= width )
+					continue;
+				int index = 3*(y*width + x);
+				float avg_r = load(index);
+				float avg_g = load(index+1);
+				float avg_b = load(index+2);
+				int color = argb[ny*width + nx];
+				float new_r = (color >> 16) & 0xff;
+				float new_g = (color >> 8) & 0xff;
+				float new_b = color & 0xff;
+
+				float diff_r = avg_r - new_r;
+				float diff_g = avg_g - new_g;
+				float diff_b = avg_b - new_b;
+				float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+				if( L > wiener_C_cutoff ) {
+					// error too large, so no contribution for new image pixel
+					continue;
+				}
+				float weight = L/(L+wiener_C);
+				new_r = weight * avg_r + (1.0f-weight) * new_r;
+				new_g = weight * avg_g + (1.0f-weight) * new_g;
+				new_b = weight * avg_b + (1.0f-weight) * new_b;
+
+				store(index, (avg_factor*avg_r + new_r)/(avg_factor+1.0f));
+				store(index+1, (avg_factor*avg_g + new_g)/(avg_factor+1.0f));
+				store(index+2, (avg_factor*avg_b + new_b)/(avg_factor+1.0f));
+			}
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package io.wizkers.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Decodes JPEGs to bitmaps for the ImageSaver, using a fixed pool of worker threads for decoding
+ *  several images at once (e.g., for HDR, expo bracketing or NR bursts), and reusing the memory of
+ *  bitmaps that are no longer needed (via BitmapFactory.Options.inBitmap). Since photos in a burst
+ *  usually have the same resolution, this avoids repeatedly allocating and garbage collecting
+ *  large bitmaps.
+ *  Bitmaps should be passed to release() rather than being recycled, if they may be reused. Released
+ *  bitmaps are kept whilst the bytes retained is below the limit, with the least recently released
+ *  bitmaps being recycled first. A bitmap is only reused for a decode with the same dimensions and
+ *  config, and without any scaling. Unscaled bitmaps are always decoded as mutable, so that they can
+ *  be reused.
+ *  Counts of pool hits and misses, the bytes retained, and decode times are kept as metrics, see
+ *  getSummary().
+ */
+public class BitmapDecodePool {
+	private static final String TAG = "BitmapDecodePool";
+
+	private final ExecutorService executor;
+	private final long max_bytes;
+	private final LinkedList<Bitmap> pool = new LinkedList<>(); // in order of release, least recent first; access must be synchronized on this
+	private long retained_bytes;
+
+	// metrics; access must be synchronized on this
+	private int n_hits;
+	private int n_misses;
+	private int n_decodes;
+	private long total_decode_time_ms;
+	private long max_decode_time_ms;
+
+	/**
+	 * @param n_threads The number of worker threads for decodeAll().
+	 * @param max_bytes The maximum number of bytes of released bitmaps to retain for reuse.
+	 */
+	public BitmapDecodePool(int n_threads, long max_bytes) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "n_threads: " + n_threads + " max_bytes: " + max_bytes);
+		this.executor = Executors.newFixedThreadPool(Math.max(n_threads, 1));
+		this.max_bytes = max_bytes;
+	}
+
+	/** Decodes a single jpeg, on the calling thread.
+	 * @param options The options for decoding. If options.inBitmap is null, a released bitmap of the
+	 *                right size may be used. Note that if no scaling is requested, the returned bitmap
+	 *                will be mutable even if options.inMutable is false.
+	 * @return The bitmap, or null if the jpeg failed to decode.
+	 */
+	@SuppressWarnings("deprecation")
+	public Bitmap decode(JpegBuffer jpeg, BitmapFactory.Options options) {
+		long time_s = System.currentTimeMillis();
+		Bitmap reuse_bitmap = null;
+		boolean can_reuse = options.inBitmap == null && options.inDensity == 0 && options.inSampleSize <= 1;
+		if( can_reuse ) {
+			// read the resolution without decompressing
+			BitmapFactory.Options bounds_options = new BitmapFactory.Options();
+			bounds_options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(jpeg.getArray(), 0, jpeg.getLength(), bounds_options);
+			if( bounds_options.outWidth > 0 && bounds_options.outHeight > 0 ) {
+				reuse_bitmap = acquire(bounds_options.outWidth, bounds_options.outHeight, options.inPreferredConfig);
+			}
+		}
+
+		Bitmap bitmap = null;
+		if( reuse_bitmap != null ) {
+			BitmapFactory.Options reuse_options = copyOptions(options);
+			reuse_options.inBitmap = reuse_bitmap;
+			reuse_options.inMutable = true; // required for inBitmap
+			if( Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT ) {
+				// inPurgeable can't be used with inBitmap
+				reuse_options.inPurgeable = false;
+			}
+			try {
+				bitmap = BitmapFactory.decodeByteArray(jpeg.getArray(), 0, jpeg.getLength(), reuse_options);
+			}
+			catch(IllegalArgumentException e) {
+				// the bitmap couldn't be reused after all
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to decode into reused bitmap: " + e.getMessage());
+				e.printStackTrace();
+			}
+			if( bitmap != reuse_bitmap ) {
+				if( bitmap != null ) {
+					// shouldn't happen, BitmapFactory should either reuse the bitmap or fail
+					bitmap.recycle();
+					bitmap = null;
+				}
+				reuse_bitmap.recycle();
+			}
+		}
+		if( bitmap == null ) {
+			if( can_reuse && !options.inMutable ) {
+				// decode as mutable, so that the memory can be reused once the bitmap is released
+				BitmapFactory.Options mutable_options = copyOptions(options);
+				mutable_options.inMutable = true;
+				bitmap = BitmapFactory.decodeByteArray(jpeg.getArray(), 0, jpeg.getLength(), mutable_options);
+			}
+			else {
+				bitmap = BitmapFactory.decodeByteArray(jpeg.getArray(), 0, jpeg.getLength(), options);
+			}
+		}
+		if( bitmap == null ) {
+			Log.e(TAG, "failed to decode bitmap");
+		}
+
+		long decode_time_ms = System.currentTimeMillis() - time_s;
+		synchronized( this ) {
+			n_decodes++;
+			total_decode_time_ms += decode_time_ms;
+			max_decode_time_ms = Math.max(max_decode_time_ms, decode_time_ms);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "decode time: " + decode_time_ms + " reused: " + (reuse_bitmap != null && bitmap == reuse_bitmap));
+		return bitmap;
+	}
+
+	/** Decodes the jpegs in parallel on the worker threads.
+	 * @param options The options for decoding each jpeg, see decode().
+	 * @return The bitmaps, or null if any of the jpegs failed to decode (in which case any bitmaps
+	 *         that were decoded are released).
+	 */
+	public List<Bitmap> decodeAll(List<JpegBuffer> jpegs, List<BitmapFactory.Options> options) {
+		if( jpegs.size() != options.size() ) {
+			Log.e(TAG, "jpegs size " + jpegs.size() + " doesn't match options size " + options.size());
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		List<Future<Bitmap>> futures = new ArrayList<>();
+		for(int i=0;i<jpegs.size();i++) {
+			final JpegBuffer jpeg = jpegs.get(i);
+			final BitmapFactory.Options this_options = options.get(i);
+			futures.add(executor.submit(new Callable<Bitmap>() {
+				public Bitmap call() {
+					return decode(jpeg, this_options);
+				}
+			}));
+		}
+
+		boolean ok = true;
+		List<Bitmap> bitmaps = new ArrayList<>();
+		for(int i=0;i<futures.size();i++) {
+			Bitmap bitmap = null;
+			try {
+				bitmap = futures.get(i).get();
+			}
+			catch(InterruptedException e) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "decode interrupted");
+				e.printStackTrace();
+			}
+			catch(ExecutionException e) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "decode failed: " + e.getMessage());
+				e.printStackTrace();
+			}
+			if( bitmap == null ) {
+				Log.e(TAG, "failed to decode bitmap: " + i);
+				ok = false;
+			}
+			// still add null bitmaps, so that we wait for all of the decodes to finish
+			bitmaps.add(bitmap);
+		}
+
+		if( !ok ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "cleanup from failure");
+			for(Bitmap bitmap : bitmaps) {
+				if( bitmap != null ) {
+					release(bitmap);
+				}
+			}
+			return null;
+		}
+		return bitmaps;
+	}
+
+	private static BitmapFactory.Options copyOptions(BitmapFactory.Options options) {
+		BitmapFactory.Options copy = new BitmapFactory.Options();
+		copy.inMutable = options.inMutable;
+		copy.inPreferredConfig = options.inPreferredConfig;
+		copy.inDensity = options.inDensity;
+		copy.inTargetDensity = options.inTargetDensity;
+		copy.inSampleSize = options.inSampleSize;
+		return copy;
+	}
+
+	/** Removes and returns a released bitmap with the supplied dimensions and config, or returns
+	 *  null if there isn't one.
+	 */
+	private synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+		if( config == null ) {
+			config = Bitmap.Config.ARGB_8888; // default for BitmapFactory
+		}
+		for(Iterator<Bitmap> iter = pool.descendingIterator(); iter.hasNext(); ) {
+			Bitmap bitmap = iter.next();
+			if( bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config ) {
+				iter.remove();
+				retained_bytes -= bitmap.getByteCount();
+				n_hits++;
+				return bitmap;
+			}
+		}
+		n_misses++;
+		return null;
+	}
+
+	/** Returns a bitmap that's no longer needed to the pool, so that its memory may be reused by a
+	 *  later decode. If the bitmap can't be reused, or the pool is full, it is recycled. The caller
+	 *  should not use the bitmap afterwards.
+	 */
+	public void release(Bitmap bitmap) {
+		if( bitmap.isRecycled() ) {
+			return;
+		}
+		if( !bitmap.isMutable() || bitmap.getByteCount() > max_bytes ) {
+			bitmap.recycle();
+			return;
+		}
+		synchronized( this ) {
+			if( pool.contains(bitmap) ) {
+				// already released
+				return;
+			}
+			pool.addLast(bitmap);
+			retained_bytes += bitmap.getByteCount();
+			while( retained_bytes > max_bytes ) {
+				Bitmap eldest = pool.removeFirst();
+				retained_bytes -= eldest.getByteCount();
+				eldest.recycle();
+			}
+		}
+	}
+
+	/** Recycles all of the released bitmaps.
+	 */
+	public synchronized void clear() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "clear: " + pool.size() + " bitmaps, " + retained_bytes + " bytes");
+		for(Bitmap bitmap : pool) {
+			bitmap.recycle();
+		}
+		pool.clear();
+		retained_bytes = 0;
+	}
+
+	/** Recycles all of the released bitmaps, and stops the worker threads. This object should not
+	 *  be used afterwards.
+	 */
+	public void onDestroy() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onDestroy");
+		clear();
+		executor.shutdown();
+	}
+
+	public synchronized long getRetainedBytes() {
+		return retained_bytes;
+	}
+
+	public synchronized int getNHits() {
+		return n_hits;
+	}
+
+	public synchronized int getNMisses() {
+		return n_misses;
+	}
+
+	/** Returns the proportion of decodes that reused a released bitmap, or 0 if no decodes have
+	 *  tried to reuse a bitmap.
+	 */
+	public synchronized float getHitRate() {
+		int n = n_hits + n_misses;
+		return n == 0 ? 0.0f : n_hits / (float)n;
+	}
+
+	public synchronized int getNDecodes() {
+		return n_decodes;
+	}
+
+	/** Returns the mean time taken to decode a jpeg, in milliseconds.
+	 */
+	public synchronized float getMeanDecodeTimeMs() {
+		return n_decodes == 0 ? 0.0f : total_decode_time_ms / (float)n_decodes;
+	}
+
+	public synchronized long getMaxDecodeTimeMs() {
+		return max_decode_time_ms;
+	}
+
+	/** Returns a single line summary of the metrics, e.g., for display on screen, or null if no
+	 *  jpegs have been decoded.
+	 */
+	public synchronized String getSummary() {
+		if( n_decodes == 0 )
+			return null;
+		final long MB = 1024*1024;
+		return String.format(Locale.US, "decode: %d, hits %d%%, retained %dMB, mean %dms, max %dms", n_decodes, (int)(100.0f*getHitRate()), retained_bytes/MB, (int)getMeanDecodeTimeMs(), max_decode_time_ms);
+	}
+}
@@ -0,0 +1,328 @@
+package io.wizkers.opencamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Pure Java implementation of the Contrast Limited Adaptive Histogram Equalisation done by
+ *  HDRProcessor.adjustHistogram() and histogram_adjust.rs, used for both HDR and DRO. The
+ *  histograms for each tile are computed in parallel (with large tiles further split into bands of
+ *  rows), then the output is computed in a single pass over the image, split into bands of rows,
+ *  blending between the equalisation functions of the nearest tiles. The results should match the
+ *  RenderScript implementation, other than differences due to floating point precision.
+ *  As the adjustment depends only on the maximum of the red, green and blue values, and scales
+ *  those channels equally, the red and blue channels may be in either order.
+ */
+public class CLAHEProcessor {
+	private static final String TAG = "CLAHEProcessor";
+
+	private static final int min_rows_per_task_c = 16; // don't split the work into bands smaller than this
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param pool The pool to run the processing on. If null, a new pool is created with
+	 *             parallelism equal to the number of available processors.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public CLAHEProcessor(ForkJoinPool pool) {
+		this.pool = pool != null ? pool : new ForkJoinPool();
+	}
+
+	/** Returns the first pixel (in x or y) of tile i, as in HDRProcessor.adjustHistogram().
+	 */
+	static int getTileStart(int i, int n_tiles, int size) {
+		double a = ((double)i)/(double)n_tiles;
+		return (int)(a * size);
+	}
+
+	/** Computes the histogram of max(r, g, b) for the pixels in [start_x, stop_x) x [start_y, stop_y).
+	 */
+	private static class HistogramTask extends RecursiveAction {
+		private final int [] argb;
+		private final int width;
+		private final int start_x, stop_x;
+		private final int start_y, stop_y;
+		final int [] histogram = new int[256];
+
+		HistogramTask(int [] argb, int width, int start_x, int stop_x, int start_y, int stop_y) {
+			this.argb = argb;
+			this.width = width;
+			this.start_x = start_x;
+			this.stop_x = stop_x;
+			this.start_y = start_y;
+			this.stop_y = stop_y;
+		}
+
+		@Override
+		protected void compute() {
+			for(int y=start_y;y<stop_y;y++) {
+				int row = y*width;
+				for(int x=start_x;x<stop_x;x++) {
+					int color = argb[row + x];
+					int r = (color >> 16) & 0xff;
+					int g = (color >> 8) & 0xff;
+					int b = color & 0xff;
+					histogram[Math.max(r, Math.max(g, b))]++;
+				}
+			}
+		}
+	}
+
+	/** Clips the histogram for a tile of n_pixels pixels, redistributing the clipped pixels, and
+	 *  stores the cumulative histogram at c_histogram[histogram_offset]. This is the same
+	 *  calculation as in HDRProcessor.adjustHistogram().
+	 */
+	static void clipHistogram(int [] histogram, int n_pixels, int [] c_histogram, int histogram_offset) {
+		int clip_limit = (5 * n_pixels) / 256;
+		{
+			// find real clip limit
+			int bottom = 0, top = clip_limit;
+			while( top - bottom > 1 ) {
+				int middle = (top + bottom)/2;
+				int sum = 0;
+				for(int x=0;x<256;x++) {
+					if( histogram[x] > middle ) {
+						sum += (histogram[x] - clip_limit);
+					}
+				}
+				if( sum > (clip_limit - middle) * 256 )
+					top = middle;
+				else
+					bottom = middle;
+			}
+			clip_limit = (top + bottom)/2;
+		}
+		int n_clipped = 0;
+		for(int x=0;x<256;x++) {
+			if( histogram[x] > clip_limit ) {
+				n_clipped += (histogram[x] - clip_limit);
+				histogram[x] = clip_limit;
+			}
+		}
+		int n_clipped_per_bucket = n_clipped / 256;
+		for(int x=0;x<256;x++) {
+			histogram[x] += n_clipped_per_bucket;
+		}
+
+		c_histogram[histogram_offset] = histogram[0];
+		for(int x=1;x<256;x++) {
+			c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
+		}
+	}
+
+	/** Computes the cumulative clipped histograms for each tile, stored in the same layout as used
+	 *  by histogram_adjust.rs: the histogram for tile (i, j) starts at 256*(i*n_tiles+j). Tiles
+	 *  with no pixels are left as 0.
+	 */
+	int [] computeHistograms(int [] argb, int width, int height, int n_tiles) {
+		// split tiles into bands of rows, so that we still make use of all the threads when there
+		// are only a few tiles
+		int n_bands = Math.max(1, (2*pool.getParallelism() + n_tiles*n_tiles - 1) / (n_tiles*n_tiles));
+		List<HistogramTask> tasks = new ArrayList<>();
+		int [] task_start = new int[n_tiles*n_tiles+1]; // tasks for tile k are task_start[k] to task_start[k+1]-1
+		for(int i=0;i<n_tiles;i++) {
+			int start_x = getTileStart(i, n_tiles, width);
+			int stop_x = getTileStart(i+1, n_tiles, width);
+			for(int j=0;j<n_tiles;j++) {
+				int start_y = getTileStart(j, n_tiles, height);
+				int stop_y = getTileStart(j+1, n_tiles, height);
+				task_start[i*n_tiles+j] = tasks.size();
+				if( stop_x == start_x || stop_y == start_y )
+					continue;
+				int this_n_bands = Math.max(1, Math.min(n_bands, (stop_y - start_y)/min_rows_per_task_c));
+				for(int k=0;k<this_n_bands;k++) {
+					int band_start_y = start_y + (k*(stop_y - start_y))/this_n_bands;
+					int band_stop_y = start_y + ((k+1)*(stop_y - start_y))/this_n_bands;
+					tasks.add(new HistogramTask(argb, width, start_x, stop_x, band_start_y, band_stop_y));
+				}
+			}
+		}
+		task_start[n_tiles*n_tiles] = tasks.size();
+		for(HistogramTask task : tasks) {
+			pool.execute(task);
+		}
+
+		int [] c_histogram = new int[n_tiles*n_tiles*256];
+		int [] histogram = new int[256];
+		for(int i=0;i<n_tiles;i++) {
+			int n_pixels_x = getTileStart(i+1, n_tiles, width) - getTileStart(i, n_tiles, width);
+			for(int j=0;j<n_tiles;j++) {
+				int tile = i*n_tiles+j;
+				if( task_start[tile] == task_start[tile+1] )
+					continue;
+				int n_pixels = n_pixels_x * (getTileStart(j+1, n_tiles, height) - getTileStart(j, n_tiles, height));
+				for(int x=0;x<256;x++) {
+					histogram[x] = 0;
+				}
+				for(int k=task_start[tile];k<task_start[tile+1];k++) {
+					HistogramTask task = tasks.get(k);
+					task.join();
+					for(int x=0;x<256;x++) {
+						histogram[x] += task.histogram[x];
+					}
+				}
+				clipHistogram(histogram, n_pixels, c_histogram, 256*tile);
+			}
+		}
+		return c_histogram;
+	}
+
+	/** Converts the cumulative histograms to the value to choose to fully equalise each tile, for
+	 *  each input value, as computed by getEqualValue() in histogram_adjust.rs.
+	 */
+	static int [] computeEqualValues(int [] c_histogram) {
+		int [] equal_values = new int[c_histogram.length];
+		for(int offset=0;offset<c_histogram.length;offset+=256) {
+			int cdf_0 = c_histogram[offset];
+			int n_pixels = c_histogram[offset+255];
+			float den = (float)(n_pixels - cdf_0);
+			for(int x=0;x<256;x++) {
+				float num = (float)(c_histogram[offset+x] - cdf_0);
+				// n.b., 0/0 gives NaN, which is converted to 0
+				equal_values[offset+x] = (int)( 255.0f * (num/den) );
+			}
+		}
+		return equal_values;
+	}
+
+	/** Applies the histogram adjustment to a band of rows, as done by the histogram_adjust kernel
+	 *  in histogram_adjust.rs.
+	 */
+	private static class AdjustTask extends RecursiveAction {
+		private final int [] argb_in;
+		private final int [] argb_out;
+		private final int width, height;
+		private final int start_y, stop_y;
+		private final int [] equal_values;
+		private final int n_tiles;
+		private final float hdr_alpha;
+
+		AdjustTask(int [] argb_in, int [] argb_out, int width, int height, int start_y, int stop_y, int [] equal_values, int n_tiles, float hdr_alpha) {
+			this.argb_in = argb_in;
+			this.argb_out = argb_out;
+			this.width = width;
+			this.height = height;
+			this.start_y = start_y;
+			this.stop_y = stop_y;
+			this.equal_values = equal_values;
+			this.n_tiles = n_tiles;
+			this.hdr_alpha = hdr_alpha;
+		}
+
+		@Override
+		protected void compute() {
+			for(int y=start_y;y<stop_y;y++) {
+				float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+				int iy = (int)Math.floor(ty);
+				float beta = ty - iy;
+				boolean inside_y = iy >= 0 && iy < n_tiles-1;
+				int this_y = (iy<0) ? iy+1 : iy;
+				int row = y*width;
+				for(int x=0;x<width;x++) {
+					int color = argb_in[row + x];
+					int in_r = (color >> 16) & 0xff;
+					int in_g = (color >> 8) & 0xff;
+					int in_b = color & 0xff;
+					int value = Math.max(in_r, Math.max(in_g, in_b));
+
+					float tx = ((float)x*n_tiles)/(float)width - 0.5f;
+					int ix = (int)Math.floor(tx);
+					boolean inside_x = ix >= 0 && ix < n_tiles-1;
+					int equal_value;
+					if( inside_x && inside_y ) {
+						int equal_value00 = equal_values[256*(ix*n_tiles+iy) + value];
+						int equal_value10 = equal_values[256*((ix+1)*n_tiles+iy) + value];
+						int equal_value01 = equal_values[256*(ix*n_tiles+iy+1) + value];
+						int equal_value11 = equal_values[256*((ix+1)*n_tiles+iy+1) + value];
+						float alpha = tx - ix;
+						float equal_value0 = (1.0f-alpha)*equal_value00 + alpha*equal_value10;
+						float equal_value1 = (1.0f-alpha)*equal_value01 + alpha*equal_value11;
+						equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+					}
+					else if( inside_x ) {
+						int equal_value0 = equal_values[256*(ix*n_tiles+this_y) + value];
+						int equal_value1 = equal_values[256*((ix+1)*n_tiles+this_y) + value];
+						float alpha = tx - ix;
+						equal_value = (int)((1.0f-alpha)*equal_value0 + alpha*equal_value1);
+					}
+					else if( inside_y ) {
+						int this_x = (ix<0) ? ix+1 : ix;
+						int equal_value0 = equal_values[256*(this_x*n_tiles+iy) + value];
+						int equal_value1 = equal_values[256*(this_x*n_tiles+iy+1) + value];
+						equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+					}
+					else {
+						int this_x = (ix<0) ? ix+1 : ix;
+						equal_value = equal_values[256*(this_x*n_tiles+this_y) + value];
+					}
+
+					int new_value = (int)( (1.0f-hdr_alpha) * value + hdr_alpha * equal_value );
+					// n.b., if value is 0, scale is NaN, but then so are the products below, which are
+					// converted to 0
+					float scale = ((float)new_value) / (float)value;
+					int out_r = Math.min(255, (int)(in_r * scale + 0.5f));
+					int out_g = Math.min(255, (int)(in_g * scale + 0.5f));
+					int out_b = Math.min(255, (int)(in_b * scale + 0.5f));
+					argb_out[row + x] = 0xff000000 | (out_r << 16) | (out_g << 8) | out_b;
+				}
+			}
+		}
+	}
+
+	/** Applies contrast limited adaptive histogram equalisation to an image. This gives the same
+	 *  results as HDRProcessor.adjustHistogram().
+	 * @param argb_in   The input image, in ARGB format, of size width*height.
+	 * @param argb_out  The output image, in ARGB format, of size width*height. May be the same array
+	 *                  as argb_in. The alpha channel is set to 255.
+	 * @param hdr_alpha How much to equalise the image, from 0.0 (no change) to 1.0 (fully
+	 *                  equalised).
+	 * @param n_tiles   The image is divided into n_tiles x n_tiles tiles for computing histograms.
+	 */
+	public void adjustHistogram(int [] argb_in, int [] argb_out, int width, int height, float hdr_alpha, int n_tiles) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "adjustHistogram");
+			Log.d(TAG, "width: " + width);
+			Log.d(TAG, "height: " + height);
+			Log.d(TAG, "hdr_alpha: " + hdr_alpha);
+			Log.d(TAG, "n_tiles: " + n_tiles);
+		}
+		if( argb_in.length != width*height || argb_out.length != width*height ) {
+			Log.e(TAG, "image is wrong size");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		else if( n_tiles <= 0 ) {
+			Log.e(TAG, "invalid n_tiles: " + n_tiles);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		long time_s = System.currentTimeMillis();
+
+		int [] c_histogram = computeHistograms(argb_in, width, height, n_tiles);
+		int [] equal_values = computeEqualValues(c_histogram);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after creating histograms: " + (System.currentTimeMillis() - time_s));
+
+		// n.b., we must have computed all the histograms before writing any output, in case argb_out
+		// is the same as argb_in
+		int n_tasks = Math.max(1, Math.min(4*pool.getParallelism(), height/min_rows_per_task_c));
+		AdjustTask [] tasks = new AdjustTask[n_tasks];
+		for(int i=0;i<n_tasks;i++) {
+			int start_y = (i*height)/n_tasks;
+			int stop_y = ((i+1)*height)/n_tasks;
+			tasks[i] = new AdjustTask(argb_in, argb_out, width, height, start_y, stop_y, equal_values, n_tiles, hdr_alpha);
+			pool.execute(tasks[i]);
+		}
+		for(AdjustTask task : tasks) {
+			task.join();
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for adjustHistogram: " + (System.currentTimeMillis() - time_s));
+	}
+}
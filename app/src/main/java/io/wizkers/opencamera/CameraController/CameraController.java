@@ -1,6 +1,8 @@
 package io.wizkers.opencamera.CameraController;
 
+import io.wizkers.opencamera.JpegBuffer;
 import io.wizkers.opencamera.MyDebug;
+import io.wizkers.opencamera.PreviewAnalyzer;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -48,6 +50,8 @@ public abstract class CameraController {
 	public volatile int test_fake_flash_photo; // for Camera2 API, records torch turning on for fake flash for photo capture
 	public volatile int test_af_state_null_focus; // for Camera2 API, records af_state being null even when we've requested autofocus
 	public volatile boolean test_used_tonemap_curve;
+	public volatile int test_max_slow_burst_in_flight; // for Camera2 API, the maximum number of slow burst captures that were awaiting their capture results
+	public int test_fail_slow_burst_capture = -1; // for Camera2 API, if set, the slow burst capture with this index fails without an image being captured
 
 	public static class CameraFeatures {
 		public boolean is_zoom_supported;
@@ -220,14 +224,17 @@ public abstract class CameraController {
 	public interface PictureCallback {
 		void onStarted(); // called immediately before we start capturing the picture
 		void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
-		void onPictureTaken(byte[] data);
+		/** Caller should call data.release() when done with the image (see JpegBuffer).
+		 */
+		void onPictureTaken(JpegBuffer data);
 		/** Only called if RAW is requested.
 		 *  Caller should call raw_image.close() when done with the image.
 		 */
 		void onRawPictureTaken(RawImage raw_image);
 		/** Only called if burst is requested.
+		 *  Caller should call release() on each image when done with it (see JpegBuffer).
 		 */
-		void onBurstPictureTaken(List<byte[]> images);
+		void onBurstPictureTaken(List<JpegBuffer> images);
 		/* This is called for flash_frontscreen_auto or flash_frontscreen_on mode to indicate the caller should light up the screen
 		 * (for flash_frontscreen_auto it will only be called if the scene is considered dark enough to require the screen flash).
 		 * The screen flash can be removed when or after onCompleted() is called.
@@ -367,6 +374,14 @@ public abstract class CameraController {
 	 */
 	public abstract void setExpoBracketingStops(double stops);
 	public abstract void setUseExpoFastBurst(boolean use_expo_fast_burst);
+	/** Only relevant for bursts that aren't taken with a single request, i.e., expo bursts where
+	 *  setUseExpoFastBurst() is false, and focus bracketing. Sets the maximum number of captures that
+	 *  are requested ahead of the capture results being received, so that the camera can start the
+	 *  next exposure whilst the previous image is still being processed. A value of 1 means that
+	 *  each capture is only requested once the previous one has completed.
+	 */
+	public void setBurstCapturesInFlight(int n_captures) {
+	}
 	public abstract boolean isBurstOrExpo();
 	/** If optimise_ae_for_dro is true, then this is a hint that if in auto-exposure mode and flash/torch
 	 *  is not on, the CameraController should try to optimise for a DRO (dynamic range optimisation) mode.
@@ -402,6 +417,40 @@ public abstract class CameraController {
 	public boolean getUseCamera2FakeFlash() {
 		return false;
 	}
+	/**
+	 * setZeroShutterLag() should be called after creating the CameraController, and before starting the preview.
+	 * "Zero shutter lag" keeps the most recent full resolution frames from the preview, so that when a photo is taken
+	 * without needing flash or a burst, the frame closest to the time of the press can be returned instead of starting
+	 * a new capture.
+	 * @param budget_bytes The maximum number of bytes of frames to hold, or 0 to disable.
+	 */
+	public void setZeroShutterLag(long budget_bytes) {
+	}
+	public long getZeroShutterLag() {
+		return 0;
+	}
+	/** Returns a single line summary of the lag from takePicture() being called to the photo being
+	 *  exposed, or null if not available.
+	 */
+	public String getShutterLagSummary() {
+		return null;
+	}
+	/**
+	 * setPreviewAnalysis() should be called after creating the CameraController, and before starting the preview.
+	 * Preview analysis requests an additional low resolution stream alongside the preview, which is analysed on a
+	 * background thread for the on screen histogram, zebra stripes and focus peaking, see getPreviewAnalyzer().
+	 */
+	public void setPreviewAnalysis(boolean enabled) {
+	}
+	public boolean getPreviewAnalysis() {
+		return false;
+	}
+	/** Returns the analyzer for the preview frames, or null if preview analysis isn't enabled or supported. The
+	 *  options of what to analyse should be set on the returned analyzer.
+	 */
+	public PreviewAnalyzer getPreviewAnalyzer() {
+		return null;
+	}
 	public abstract void setVideoStabilization(boolean enabled);
 	public abstract boolean getVideoStabilization();
 	public abstract void setLogProfile(boolean use_log_profile, float log_profile_strength);
@@ -529,6 +578,14 @@ public abstract class CameraController {
 	public long captureResultFrameDuration() {
 		return 0;
 	}
+	/** Reads the capture result of the frame with the supplied sensor timestamp (e.g., see
+	 *  JpegBuffer.getTimestamp()) into record, so that a photo can use the values of the frame that
+	 *  produced it.
+	 * @return Whether the capture result was found.
+	 */
+	public boolean getCaptureResult(long timestamp, CaptureResultCache.Record record) {
+		return false;
+	}
 	/*public boolean captureResultHasFocusDistance() {
 		return false;
 	}*/
@@ -1,5 +1,6 @@
 package io.wizkers.opencamera.CameraController;
 
+import io.wizkers.opencamera.JpegBuffer;
 import io.wizkers.opencamera.MyDebug;
 
 import java.io.IOException;
@@ -1621,7 +1622,7 @@ public class CameraController1 extends CameraController {
 							images.add(pending_burst_images.get(n_half_images+1));
 						}
 
-						picture.onBurstPictureTaken(images);
+						picture.onBurstPictureTaken(JpegBuffer.wrapAll(images));
 						pending_burst_images.clear();
 						picture.onCompleted();
 					}
@@ -1656,7 +1657,7 @@ public class CameraController1 extends CameraController {
 					}
 				}
 				else {
-					picture.onPictureTaken(data);
+					picture.onPictureTaken(JpegBuffer.wrap(data));
 					picture.onCompleted();
 				}
     	    }
@@ -1,6 +1,9 @@
 package io.wizkers.opencamera.CameraController;
 
+import io.wizkers.opencamera.JpegBuffer;
+import io.wizkers.opencamera.JpegBufferPool;
 import io.wizkers.opencamera.MyDebug;
+import io.wizkers.opencamera.PreviewAnalyzer;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -41,6 +44,7 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Range;
@@ -65,6 +69,7 @@ public class CameraController2 extends CameraController {
 	private CameraCharacteristics characteristics;
 	// cached characteristics (use this for values that need to be frequently accessed, e.g., per frame, to improve performance);
 	private int characteristics_sensor_orientation;
+	private boolean characteristics_timestamp_realtime; // whether sensor timestamps are in the time base of SystemClock.elapsedRealtimeNanos()
 	private boolean characteristics_is_front_facing;
 
 	private List<Integer> zoom_ratios;
@@ -114,9 +119,34 @@ public class CameraController2 extends CameraController {
 	//private CaptureRequest pending_request_when_ready;
 	private int n_burst; // number of expected burst images in this capture
 	private boolean burst_single_request; // if n_burst > 1: if true then the burst images are returned in a single call to onBurstPictureTaken(), if false, then multiple calls to onPictureTaken() are made as soon as the image is available
-	private final List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+	private final List<JpegBuffer> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+	// jpegs are copied from the ImageReader to arrays from this pool, which are returned when the application has saved them
+	private final JpegBufferPool jpeg_buffer_pool = new JpegBufferPool(Runtime.getRuntime().maxMemory()/8);
+	// for zero shutter lag, see setZeroShutterLag():
+	private final static int zsl_max_frames_c = 32;
+	private final static long zsl_max_lag_ns_c = 500000000L; // frames exposed further than this from the press aren't used
+	private ZslRingBuffer zsl_ring_buffer; // null if zero shutter lag is disabled
+	private boolean zsl_unsupported; // set if a capture session couldn't be created with the zero shutter lag stream
+	private ImageReader zslImageReader; // the stream of preview frames at picture size, only created if zero shutter lag is enabled
+	private HandlerThread zsl_thread; // frames are copied on their own thread, so they don't hold up the camera callbacks on handler
+	private Handler zsl_handler;
+	private long shutter_press_timestamp; // when takePicture() was last called, in the time base of the sensor timestamps, or 0 once the lag has been recorded
+	// for preview analysis, see setPreviewAnalysis():
+	private final static int analysis_min_width_c = 320; // minimum width of the analysis stream
+	private PreviewAnalyzer preview_analyzer; // null if preview analysis is disabled
+	private boolean preview_analysis_unsupported; // set if a capture session couldn't be created with the analysis stream
+	private ImageReader analysisImageReader; // the stream of low resolution preview frames, only created if preview analysis is enabled
+	private HandlerThread analysis_thread; // frames are analysed on their own thread, so they don't hold up the camera callbacks on handler
+	private Handler analysis_handler;
 	private List<CaptureRequest> slow_burst_capture_requests; // the set of burst capture requests - used when not using captureBurst() (e.g., when use_expo_fast_burst==false, or for focus bracketing)
 	private long slow_burst_start_ms = 0; // time when burst started (used for measuring performance of captures when not using captureBurst())
+	// slow burst captures are requested by submitSlowBurstCaptures(); access to these must be synchronized on image_reader_lock:
+	private int slow_burst_n_submitted; // number of slow_burst_capture_requests requested so far
+	private int slow_burst_n_completed; // number of slow_burst_capture_requests whose capture results (or failures) have been received
+	private boolean slow_burst_focus_pending; // for focus bracketing, whether the next capture is waiting for the lens to move
+	private int burst_captures_in_flight = 2; // see setBurstCapturesInFlight()
+	private final static int picture_max_images_c = 3; // maxImages for imageReader, which also bounds the slow burst captures whose images haven't been received
+	private final static long focus_bracketing_delay_ms_c = 500; // time for the lens to move to the next focus distance
 	private RawImage pending_raw_image;
 	private ErrorCallback take_picture_error_cb;
 	private boolean want_video_high_speed;
@@ -167,17 +197,11 @@ public class CameraController2 extends CameraController {
 	private boolean modified_from_camera_settings;
 		// if modified_from_camera_settings set to true, then we've temporarily requested captures with settings such as
 		// exposure modified from the normal ones in camera_settings
-	private boolean capture_result_has_white_balance_rggb;
-	private RggbChannelVector capture_result_white_balance_rggb;
-	private boolean capture_result_has_iso;
-	private int capture_result_iso;
-	private boolean capture_result_has_exposure_time;
-	private long capture_result_exposure_time;
-	private boolean capture_result_has_frame_duration;
-	private long capture_result_frame_duration;
-	/*private boolean capture_result_has_focus_distance;
-	private float capture_result_focus_distance_min;
-	private float capture_result_focus_distance_max;*/
+	// the metadata of recent capture results, see processCompleted(); the latest frame not captured with modified settings
+	// is used for the captureResult*() methods
+	private final static int capture_result_cache_size_c = 64;
+	private final CaptureResultCache capture_result_cache = new CaptureResultCache(capture_result_cache_size_c);
+	private final CaptureResultCache.Record capture_result_record = new CaptureResultCache.Record(); // only accessed by processCompleted()
 	
 	private enum RequestTag {
 		CAPTURE
@@ -289,11 +313,7 @@ public class CameraController2 extends CameraController {
 			setLogProfile(builder);
 
 			if( is_still ) {
-				if( location != null ) {
-					builder.set(CaptureRequest.JPEG_GPS_LOCATION, location);
-				}
-				builder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
-				builder.set(CaptureRequest.JPEG_QUALITY, jpeg_quality);
+				setJpegSettings(builder);
 			}
 
 			setEdgeMode(builder);
@@ -513,6 +533,17 @@ public class CameraController2 extends CameraController {
 			return changed;
 		}
 
+		/** Sets the settings for encoding jpegs - as well as for still captures, this is needed for the preview when
+		 *  zero shutter lag is enabled.
+		 */
+		private void setJpegSettings(CaptureRequest.Builder builder) {
+			if( location != null ) {
+				builder.set(CaptureRequest.JPEG_GPS_LOCATION, location);
+			}
+			builder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
+			builder.set(CaptureRequest.JPEG_QUALITY, jpeg_quality);
+		}
+
 		private boolean setAEMode(CaptureRequest.Builder builder, boolean is_still) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "setAEMode");
@@ -915,6 +946,11 @@ public class CameraController2 extends CameraController {
 			if( jpeg_cb == null ) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "no picture callback available");
+				// still acquire and close the image (e.g., from a burst that was abandoned), otherwise it would hold one
+				// of the picture_max_images_c slots, and be returned in place of the image for the next photo
+				Image image = reader.acquireNextImage();
+				if( image != null )
+					image.close();
 				return;
 			}
 			synchronized( image_reader_lock ) {
@@ -926,10 +962,11 @@ public class CameraController2 extends CameraController {
 				if( MyDebug.LOG )
 					Log.d(TAG, "image timestamp: " + image.getTimestamp());
 				ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-				byte [] bytes = new byte[buffer.remaining()];
+				JpegBuffer bytes = jpeg_buffer_pool.acquire(buffer.remaining());
 				if( MyDebug.LOG )
-					Log.d(TAG, "read " + bytes.length + " bytes");
-				buffer.get(bytes);
+					Log.d(TAG, "read " + bytes.getLength() + " bytes");
+				buffer.get(bytes.getArray(), 0, bytes.getLength());
+				bytes.setTimestamp(image.getTimestamp());
 				image.close();
 				if( burst_single_request && n_burst > 1 ) {
 					pending_burst_images.add(bytes);
@@ -944,7 +981,7 @@ public class CameraController2 extends CameraController {
 						jpeg_cb = null;
 						// no need to check raw_cb, as raw not supported for burst
 						// take a copy, so that we can clear pending_burst_images
-						List<byte []> images = new ArrayList<>(pending_burst_images);
+						List<JpegBuffer> images = new ArrayList<>(pending_burst_images);
 						cb.onBurstPictureTaken(images);
 						pending_burst_images.clear();
 						cb.onCompleted();
@@ -971,85 +1008,10 @@ public class CameraController2 extends CameraController {
 						if( MyDebug.LOG )
 							Log.d(TAG, "number of burst images is now: " + pending_burst_images.size());
 						if( slow_burst_capture_requests != null ) {
-							if( MyDebug.LOG ) {
-								Log.d(TAG, "need to execute the next capture");
+							if( MyDebug.LOG )
 								Log.d(TAG, "time since start: " + (System.currentTimeMillis() - slow_burst_start_ms));
-							}
-							if( burst_type != BurstType.BURSTTYPE_FOCUS ) {
-								try {
-									if( camera != null && captureSession != null ) { // make sure camera wasn't released in the meantime
-										captureSession.capture(slow_burst_capture_requests.get(pending_burst_images.size()), previewCaptureCallback, handler);
-									}
-								}
-								catch(CameraAccessException e) {
-									if( MyDebug.LOG ) {
-										Log.e(TAG, "failed to take next burst");
-										Log.e(TAG, "reason: " + e.getReason());
-										Log.e(TAG, "message: " + e.getMessage());
-									}
-									e.printStackTrace();
-									jpeg_cb = null;
-									if( take_picture_error_cb != null ) {
-										take_picture_error_cb.onError();
-										take_picture_error_cb = null;
-									}
-								}
-							}
-							else {
-								if( MyDebug.LOG )
-									Log.d(TAG, "focus bracketing");
-
-								// code for focus bracketing
-								try {
-									float focus_distance = slow_burst_capture_requests.get(pending_burst_images.size()).get(CaptureRequest.LENS_FOCUS_DISTANCE);
-									if( MyDebug.LOG ) {
-										Log.d(TAG, "prepare preview for next focus_distance: " + focus_distance);
-									}
-									previewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF);
-									previewBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, focus_distance);
-
-									setRepeatingRequest(previewBuilder.build());
-									//captureSession.capture(slow_burst_capture_requests.get(pending_burst_images.size()), previewCaptureCallback, handler);
-								}
-								catch(CameraAccessException e) {
-									if( MyDebug.LOG ) {
-										Log.e(TAG, "failed to take next burst");
-										Log.e(TAG, "reason: " + e.getReason());
-										Log.e(TAG, "message: " + e.getMessage());
-									}
-									e.printStackTrace();
-									jpeg_cb = null;
-									if( take_picture_error_cb != null ) {
-										take_picture_error_cb.onError();
-										take_picture_error_cb = null;
-									}
-								}
-								handler.postDelayed(new Runnable(){
-									@Override
-									public void run(){
-										if( MyDebug.LOG )
-											Log.d(TAG, "take picture after delay for next focus bracket");
-										if( camera != null && captureSession != null ) { // make sure camera wasn't released in the meantime
-											try {
-												captureSession.capture(slow_burst_capture_requests.get(pending_burst_images.size()), previewCaptureCallback, handler);
-											}
-											catch(CameraAccessException e) {
-												if( MyDebug.LOG ) {
-													Log.e(TAG, "failed to take next burst");
-													Log.e(TAG, "reason: " + e.getReason());
-													Log.e(TAG, "message: " + e.getMessage());
-												}
-												e.printStackTrace();
-												jpeg_cb = null;
-												if( take_picture_error_cb != null ) {
-													take_picture_error_cb.onError();
-													take_picture_error_cb = null;
-												}
-											}
-										}
-								   }
-								}, 500);
-							}
+							// now that the image has been received, there may be room for another capture
+							submitSlowBurstCaptures();
 						}
 					}
 				}
@@ -1083,6 +1045,47 @@ public class CameraController2 extends CameraController {
 		}
 	}
 
+	/** Copies each frame of the zero shutter lag stream to zsl_ring_buffer.
+	 */
+	private class OnZslImageAvailableListener implements ImageReader.OnImageAvailableListener {
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			Image image = reader.acquireLatestImage();
+			if( image == null ) {
+				return;
+			}
+			ZslRingBuffer zsl_ring_buffer = CameraController2.this.zsl_ring_buffer;
+			if( zsl_ring_buffer != null ) {
+				ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+				JpegBuffer bytes = jpeg_buffer_pool.acquire(buffer.remaining());
+				buffer.get(bytes.getArray(), 0, bytes.getLength());
+				bytes.setTimestamp(image.getTimestamp());
+				zsl_ring_buffer.addFrame(image.getTimestamp(), bytes);
+			}
+			image.close();
+		}
+	}
+
+	/** Passes each frame of the preview analysis stream to preview_analyzer. Only the latest frame is acquired, so
+	 *  frames are dropped if the analysis can't keep up with the preview.
+	 */
+	private class OnAnalysisImageAvailableListener implements ImageReader.OnImageAvailableListener {
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			Image image = reader.acquireLatestImage();
+			if( image == null ) {
+				return;
+			}
+			PreviewAnalyzer preview_analyzer = CameraController2.this.preview_analyzer;
+			if( preview_analyzer != null ) {
+				Image.Plane [] planes = image.getPlanes();
+				preview_analyzer.analyze(image.getWidth(), image.getHeight(), planes[0].getBuffer(), planes[0].getRowStride(),
+						planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(), image.getTimestamp());
+			}
+			image.close();
+		}
+	}
+
 	private class OnRawImageAvailableListener implements ImageReader.OnImageAvailableListener {
 		private CaptureResult capture_result;
 		private Image image;
@@ -1270,6 +1273,10 @@ public class CameraController2 extends CameraController {
 						// now read cached values
 						characteristics_sensor_orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
 						characteristics_is_front_facing = characteristics.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_FRONT;
+						if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ) {
+							Integer timestamp_source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+							characteristics_timestamp_realtime = timestamp_source != null && timestamp_source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+						}
 						if( MyDebug.LOG ) {
 							Log.d(TAG, "characteristics_sensor_orientation: " + characteristics_sensor_orientation);
 							Log.d(TAG, "characteristics_is_front_facing: " + characteristics_is_front_facing);
@@ -1514,6 +1521,31 @@ public class CameraController2 extends CameraController {
 			camera = null;
 		}
 		closePictureImageReader();
+		jpeg_buffer_pool.clear();
+		if( zsl_thread != null ) {
+			// quit safely, so that the zero shutter lag image reader is closed first, see closePictureImageReader()
+			zsl_thread.quitSafely();
+			try {
+				zsl_thread.join();
+				zsl_thread = null;
+				zsl_handler = null;
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if( analysis_thread != null ) {
+			// quit safely, so that the analysis image reader is closed first, see closePictureImageReader()
+			analysis_thread.quitSafely();
+			try {
+				analysis_thread.join();
+				analysis_thread = null;
+				analysis_handler = null;
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 		/*if( previewImageReader != null ) {
 			previewImageReader.close();
 			previewImageReader = null;
@@ -1545,6 +1577,46 @@ public class CameraController2 extends CameraController {
 			imageReaderRaw = null;
 			onRawImageAvailableListener = null;
 		}
+		if( zslImageReader != null ) {
+			if( previewBuilder != null ) {
+				previewBuilder.removeTarget(zslImageReader.getSurface());
+			}
+			// close on the zero shutter lag thread, so that the reader isn't closed whilst a frame is being copied
+			final ImageReader reader = zslImageReader;
+			final ZslRingBuffer ring_buffer = zsl_ring_buffer;
+			zslImageReader = null;
+			zsl_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if( MyDebug.LOG )
+						Log.d(TAG, "close zslImageReader");
+					reader.close();
+					if( ring_buffer != null ) {
+						// in case a frame was copied after the ring buffer was cleared below
+						ring_buffer.clear();
+					}
+				}
+			});
+		}
+		if( zsl_ring_buffer != null ) {
+			zsl_ring_buffer.clear();
+		}
+		if( analysisImageReader != null ) {
+			if( previewBuilder != null ) {
+				previewBuilder.removeTarget(analysisImageReader.getSurface());
+			}
+			// close on the analysis thread, so that the reader isn't closed whilst an image is being analysed
+			final ImageReader reader = analysisImageReader;
+			analysisImageReader = null;
+			analysis_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if( MyDebug.LOG )
+						Log.d(TAG, "close analysisImageReader");
+					reader.close();
+				}
+			});
+		}
 	}
 
 	private List<String> convertFocusModesToValues(int [] supported_focus_modes_arr, float minimum_focus_distance) {
@@ -3087,6 +3159,17 @@ public class CameraController2 extends CameraController {
 		this.use_expo_fast_burst = use_expo_fast_burst;
 	}
 
+	@Override
+	public void setBurstCapturesInFlight(int n_captures) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setBurstCapturesInFlight: " + n_captures);
+		n_captures = Math.max(n_captures, 1);
+		n_captures = Math.min(n_captures, picture_max_images_c);
+		synchronized( image_reader_lock ) {
+			this.burst_captures_in_flight = n_captures;
+		}
+	}
+
 	@Override
 	public boolean isBurstOrExpo() {
 		// not supported for CameraController1
@@ -3145,6 +3228,140 @@ public class CameraController2 extends CameraController {
 		return this.use_fake_precapture;
 	}
 
+	@Override
+	public void setZeroShutterLag(long budget_bytes) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setZeroShutterLag: " + budget_bytes);
+		if( captureSession != null ) {
+			// can only call this when captureSession not created - as the stream has to be included in the captureSession
+			if( MyDebug.LOG )
+				Log.e(TAG, "can't set zero shutter lag when captureSession running!");
+			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+		}
+		if( budget_bytes == getZeroShutterLag() ) {
+			return;
+		}
+		if( zsl_ring_buffer != null ) {
+			zsl_ring_buffer.clear();
+		}
+		zsl_ring_buffer = budget_bytes > 0 ? new ZslRingBuffer(budget_bytes, zsl_max_frames_c) : null;
+	}
+
+	@Override
+	public long getZeroShutterLag() {
+		return zsl_ring_buffer != null ? zsl_ring_buffer.getMaxBytes() : 0;
+	}
+
+	@Override
+	public String getShutterLagSummary() {
+		ZslRingBuffer zsl_ring_buffer = this.zsl_ring_buffer;
+		return zsl_ring_buffer != null ? zsl_ring_buffer.getSummary() : null;
+	}
+
+	@Override
+	public void setPreviewAnalysis(boolean enabled) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setPreviewAnalysis: " + enabled);
+		if( captureSession != null ) {
+			// can only call this when captureSession not created - as the stream has to be included in the captureSession
+			if( MyDebug.LOG )
+				Log.e(TAG, "can't set preview analysis when captureSession running!");
+			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+		}
+		if( enabled == (preview_analyzer != null) ) {
+			return;
+		}
+		preview_analyzer = enabled ? new PreviewAnalyzer() : null;
+	}
+
+	@Override
+	public boolean getPreviewAnalysis() {
+		return preview_analyzer != null;
+	}
+
+	@Override
+	public PreviewAnalyzer getPreviewAnalyzer() {
+		return preview_analysis_unsupported ? null : preview_analyzer;
+	}
+
+	/** Returns the size for the preview analysis stream: the smallest YUV size at least analysis_min_width_c wide, with
+	 *  the same aspect ratio as the preview (so that the results line up with the preview), or null if there isn't one.
+	 */
+	private android.util.Size chooseAnalysisSize() {
+		if( preview_width == 0 || preview_height == 0 ) {
+			return null;
+		}
+		StreamConfigurationMap configs;
+		try {
+			configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+		}
+		catch(IllegalArgumentException | NullPointerException e) {
+			// see comment for getCameraFeatures()
+			e.printStackTrace();
+			return null;
+		}
+		android.util.Size [] sizes = configs == null ? null : configs.getOutputSizes(ImageFormat.YUV_420_888);
+		if( sizes == null ) {
+			return null;
+		}
+		final double ASPECT_TOLERANCE = 0.05;
+		double preview_aspect = ((double)preview_width) / (double)preview_height;
+		android.util.Size best_size = null;
+		for(android.util.Size size : sizes) {
+			double aspect = ((double)size.getWidth()) / (double)size.getHeight();
+			if( size.getWidth() < analysis_min_width_c || Math.abs(aspect - preview_aspect) > ASPECT_TOLERANCE ) {
+				continue;
+			}
+			if( best_size == null || size.getWidth() < best_size.getWidth() ) {
+				best_size = size;
+			}
+		}
+		return best_size;
+	}
+
+	/** Returns the current time, in the time base of the sensor timestamps.
+	 */
+	private long getSensorTime() {
+		// if the time source is unknown, sensor timestamps are documented as being roughly in the same time base as
+		// SystemClock.uptimeMillis(), i.e., System.nanoTime()
+		return characteristics_timestamp_realtime ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+	}
+
+	/** Returns whether a JPEG stream at the picture size would stall the preview, in which case it can't be added to the
+	 *  repeating request for zero shutter lag without reducing the frame rate.
+	 */
+	private boolean zslStreamStalls() {
+		StreamConfigurationMap configs;
+		try {
+			configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+		}
+		catch(IllegalArgumentException | NullPointerException e) {
+			// see comment for getCameraFeatures()
+			e.printStackTrace();
+			return true;
+		}
+		if( configs == null ) {
+			return true;
+		}
+		long stall_duration;
+		try {
+			stall_duration = configs.getOutputStallDuration(ImageFormat.JPEG, new android.util.Size(picture_width, picture_height));
+		}
+		catch(IllegalArgumentException e) {
+			// picture size isn't a supported JPEG output size
+			e.printStackTrace();
+			return true;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "zsl jpeg stall duration: " + stall_duration);
+		if( stall_duration > 0 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "can't use zero shutter lag, as jpeg stream stalls");
+			return true;
+		}
+		return false;
+	}
+
 	private void createPictureImageReader() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "createPictureImageReader");
@@ -3160,8 +3377,9 @@ public class CameraController2 extends CameraController {
 				Log.e(TAG, "application needs to call setPictureSize()");
 			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
 		}
-		// maxImages only needs to be 2, as we always read the JPEG data and close the image straight away in the imageReader
-		imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, 2);
+		// maxImages doesn't need to be large, as we always read the JPEG data and close the image straight away in the imageReader;
+		// but allow for slow burst captures being requested before the previous images have been received
+		imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, picture_max_images_c);
 		//imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.YUV_420_888, 2);
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "created new imageReader: " + imageReader.toString());
@@ -3178,11 +3396,50 @@ public class CameraController2 extends CameraController {
 			}
 			imageReaderRaw.setOnImageAvailableListener(onRawImageAvailableListener = new OnRawImageAvailableListener(), null);
 		}
+		if( zsl_ring_buffer != null && !zsl_unsupported && !previewIsVideoMode && !zslStreamStalls() ) {
+			// we read the JPEG data and close the image straight away, as for imageReader
+			zslImageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, 2);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "created new zslImageReader: " + zslImageReader.toString());
+			}
+			if( zsl_thread == null ) {
+				zsl_thread = new HandlerThread("CameraZsl");
+				zsl_thread.start();
+				zsl_handler = new Handler(zsl_thread.getLooper());
+			}
+			// handle on its own thread, as this is called for every preview frame, and copying a picture size JPEG
+			// shouldn't delay the capture callbacks on handler
+			zslImageReader.setOnImageAvailableListener(new OnZslImageAvailableListener(), zsl_handler);
+		}
+		// devices are only guaranteed to support a limited number of streams, so preview analysis isn't used with zero
+		// shutter lag or RAW
+		if( preview_analyzer != null && !preview_analysis_unsupported && !previewIsVideoMode && zslImageReader == null && imageReaderRaw == null ) {
+			android.util.Size analysis_size = chooseAnalysisSize();
+			if( analysis_size == null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "no suitable size for preview analysis");
+			}
+			else {
+				if( analysis_thread == null ) {
+					analysis_thread = new HandlerThread("CameraAnalysis");
+					analysis_thread.start();
+					analysis_handler = new Handler(analysis_thread.getLooper());
+				}
+				// only the latest image is acquired, so 2 images allows the next frame to arrive whilst one is analysed
+				analysisImageReader = ImageReader.newInstance(analysis_size.getWidth(), analysis_size.getHeight(), ImageFormat.YUV_420_888, 2);
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "created new analysisImageReader: " + analysisImageReader.toString());
+					Log.d(TAG, "analysis size: " + analysis_size.getWidth() + " x " + analysis_size.getHeight());
+				}
+				analysisImageReader.setOnImageAvailableListener(new OnAnalysisImageAvailableListener(), analysis_handler);
+			}
+		}
 	}
 	
 	private void clearPending() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "clearPending");
+		JpegBuffer.releaseAll(pending_burst_images);
 		pending_burst_images.clear();
 		pending_raw_image = null;
 		if( onRawImageAvailableListener != null ) {
@@ -3192,6 +3449,197 @@ public class CameraController2 extends CameraController {
 		n_burst = 0;
 		burst_single_request = false;
 		slow_burst_start_ms = 0;
+		slow_burst_n_submitted = 0;
+		slow_burst_n_completed = 0;
+		slow_burst_focus_pending = false;
+	}
+
+	/** Requests the next of slow_burst_capture_requests, whilst fewer than burst_captures_in_flight are awaiting
+	 *  their capture results, and fewer than picture_max_images_c are awaiting their images. This is called when
+	 *  the burst starts, and then as capture results and images are received - so the camera can start the next
+	 *  exposure as soon as the previous one has completed, rather than waiting for its JPEG to be received.
+	 *  For focus bracketing, the lens has to be moved (with the preview) before each capture, so only one capture is
+	 *  in flight, but the lens is moved as soon as the previous capture has completed.
+	 *  Must be called with image_reader_lock held.
+	 */
+	private void submitSlowBurstCaptures() {
+		if( slow_burst_capture_requests == null || camera == null || captureSession == null ) {
+			return;
+		}
+		int max_in_flight = burst_type == BurstType.BURSTTYPE_FOCUS ? 1 : burst_captures_in_flight;
+		while( slow_burst_n_submitted < slow_burst_capture_requests.size() && !slow_burst_focus_pending &&
+				slow_burst_n_submitted - slow_burst_n_completed < max_in_flight &&
+				slow_burst_n_submitted - pending_burst_images.size() < picture_max_images_c ) {
+			if( burst_type == BurstType.BURSTTYPE_FOCUS && slow_burst_n_submitted > 0 ) {
+				prepareFocusBracket();
+				return;
+			}
+			if( !submitSlowBurstCapture() ) {
+				return;
+			}
+		}
+	}
+
+	/** Requests the next of slow_burst_capture_requests.
+	 *  Must be called with image_reader_lock held.
+	 * @return Whether the capture was requested successfully.
+	 */
+	private boolean submitSlowBurstCapture() {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "submit slow burst capture: " + slow_burst_n_submitted);
+			Log.d(TAG, "in flight: " + (slow_burst_n_submitted - slow_burst_n_completed));
+			Log.d(TAG, "time since start: " + (System.currentTimeMillis() - slow_burst_start_ms));
+		}
+		if( slow_burst_n_submitted == test_fail_slow_burst_capture ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "test failing slow burst capture: " + slow_burst_n_submitted);
+			final CaptureRequest request = slow_burst_capture_requests.get(slow_burst_n_submitted);
+			slow_burst_n_submitted++;
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					onSlowBurstCaptureFailed(request);
+				}
+			});
+			return true;
+		}
+		try {
+			captureSession.capture(slow_burst_capture_requests.get(slow_burst_n_submitted), previewCaptureCallback, handler);
+			slow_burst_n_submitted++;
+			test_max_slow_burst_in_flight = Math.max(test_max_slow_burst_in_flight, slow_burst_n_submitted - slow_burst_n_completed);
+			return true;
+		}
+		catch(CameraAccessException e) {
+			if( MyDebug.LOG ) {
+				Log.e(TAG, "failed to take next burst");
+				Log.e(TAG, "reason: " + e.getReason());
+				Log.e(TAG, "message: " + e.getMessage());
+			}
+			e.printStackTrace();
+			jpeg_cb = null;
+			if( take_picture_error_cb != null ) {
+				take_picture_error_cb.onError();
+				take_picture_error_cb = null;
+			}
+			return false;
+		}
+	}
+
+	/** For focus bracketing, moves the lens to the focus distance of the next capture with the preview, and requests
+	 *  the capture after a delay.
+	 *  Must be called with image_reader_lock held.
+	 */
+	private void prepareFocusBracket() {
+		float focus_distance = slow_burst_capture_requests.get(slow_burst_n_submitted).get(CaptureRequest.LENS_FOCUS_DISTANCE);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "prepare preview for next focus_distance: " + focus_distance);
+		}
+		try {
+			previewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF);
+			previewBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, focus_distance);
+			setRepeatingRequest(previewBuilder.build());
+		}
+		catch(CameraAccessException e) {
+			if( MyDebug.LOG ) {
+				Log.e(TAG, "failed to set focus distance for next burst");
+				Log.e(TAG, "reason: " + e.getReason());
+				Log.e(TAG, "message: " + e.getMessage());
+			}
+			e.printStackTrace();
+			jpeg_cb = null;
+			if( take_picture_error_cb != null ) {
+				take_picture_error_cb.onError();
+				take_picture_error_cb = null;
+			}
+			return;
+		}
+		slow_burst_focus_pending = true;
+		final List<CaptureRequest> requests = slow_burst_capture_requests;
+		handler.postDelayed(new Runnable(){
+			@Override
+			public void run(){
+				if( MyDebug.LOG )
+					Log.d(TAG, "take picture after delay for next focus bracket");
+				synchronized( image_reader_lock ) {
+					if( slow_burst_capture_requests != requests ) {
+						if( MyDebug.LOG )
+							Log.d(TAG, "burst no longer in progress");
+						return;
+					}
+					slow_burst_focus_pending = false;
+					if( camera != null && captureSession != null ) { // make sure camera wasn't released in the meantime
+						submitSlowBurstCapture();
+					}
+				}
+			}
+		}, focus_bracketing_delay_ms_c);
+	}
+
+	/** Called when the capture result (or failure) is received for a request, so that further slow burst captures can
+	 *  be requested.
+	 */
+	private void onSlowBurstCaptureCompleted(CaptureRequest request) {
+		synchronized( image_reader_lock ) {
+			if( !isSlowBurstCaptureSubmitted(request) ) {
+				return;
+			}
+			slow_burst_n_completed++;
+			if( MyDebug.LOG )
+				Log.d(TAG, "slow burst captures completed: " + slow_burst_n_completed);
+			submitSlowBurstCaptures();
+		}
+	}
+
+	/** Called when a slow burst capture fails without an image being captured. The burst can then never complete,
+	 *  so it's abandoned and the error callback called - rather than waiting forever for an image that will never
+	 *  arrive.
+	 */
+	private void onSlowBurstCaptureFailed(CaptureRequest request) {
+		synchronized( image_reader_lock ) {
+			if( !isSlowBurstCaptureSubmitted(request) ) {
+				return;
+			}
+			Log.e(TAG, "slow burst capture failed without an image, abandon burst");
+			boolean focus_bracketing = burst_type == BurstType.BURSTTYPE_FOCUS;
+			clearPending();
+			jpeg_cb = null;
+			if( focus_bracketing && camera != null && captureSession != null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "focus bracketing abandoned, reset manual focus");
+				camera_settings.setFocusDistance(previewBuilder);
+				try {
+					setRepeatingRequest();
+				}
+				catch(CameraAccessException e) {
+					if( MyDebug.LOG ) {
+						Log.e(TAG, "failed to set focus distance");
+						Log.e(TAG, "reason: " + e.getReason());
+						Log.e(TAG, "message: " + e.getMessage());
+					}
+					e.printStackTrace();
+				}
+			}
+			if( take_picture_error_cb != null ) {
+				take_picture_error_cb.onError();
+				take_picture_error_cb = null;
+			}
+		}
+	}
+
+	/** Whether the request is one of the slow burst captures that has been requested.
+	 *  Must be called with image_reader_lock held.
+	 */
+	private boolean isSlowBurstCaptureSubmitted(CaptureRequest request) {
+		if( slow_burst_capture_requests == null ) {
+			return false;
+		}
+		for(int i=0;i<slow_burst_n_submitted;i++) {
+			// compare by identity, as the requests of a burst may have equal settings
+			if( slow_burst_capture_requests.get(i) == request ) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	private void takePendingRaw() {
@@ -3729,6 +4177,27 @@ public class CameraController2 extends CameraController {
 
 	@Override
 	public void setRotation(int rotation) {
+		if( zslImageReader != null && previewBuilder != null && rotation != this.camera_settings.rotation ) {
+			// frames already held by the zero shutter lag stream were encoded with the old orientation
+			if( MyDebug.LOG )
+				Log.d(TAG, "update zero shutter lag orientation: " + rotation);
+			zsl_ring_buffer.clear();
+			previewBuilder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
+			if( state == STATE_NORMAL ) {
+				// otherwise the preview request will be set when the current operation completes
+				try {
+					setRepeatingRequest();
+				}
+				catch(CameraAccessException e) {
+					if( MyDebug.LOG ) {
+						Log.e(TAG, "failed to set zero shutter lag orientation");
+						Log.e(TAG, "reason: " + e.getReason());
+						Log.e(TAG, "message: " + e.getMessage());
+					}
+					e.printStackTrace();
+				}
+			}
+		}
 		this.camera_settings.rotation = rotation;
 	}
 
@@ -4190,6 +4659,13 @@ public class CameraController2 extends CameraController {
 	        		previewBuilder.addTarget(surface);
 	        		if( video_recorder != null )
 	        			previewBuilder.addTarget(video_recorder_surface);
+	        		else if( zslImageReader != null ) {
+	        			previewBuilder.addTarget(zslImageReader.getSurface());
+	        			camera_settings.setJpegSettings(previewBuilder);
+	        		}
+	        		if( video_recorder == null && analysisImageReader != null ) {
+	        			previewBuilder.addTarget(analysisImageReader.getSurface());
+	        		}
 	        		try {
 	        			setRepeatingRequest();
 	        		}
@@ -4270,6 +4746,14 @@ public class CameraController2 extends CameraController {
     		else {
         		surfaces = Arrays.asList(preview_surface, imageReader.getSurface());
     		}
+			if( video_recorder == null && zslImageReader != null ) {
+				surfaces = new ArrayList<>(surfaces);
+				surfaces.add(zslImageReader.getSurface());
+			}
+			if( video_recorder == null && analysisImageReader != null ) {
+				surfaces = new ArrayList<>(surfaces);
+				surfaces.add(analysisImageReader.getSurface());
+			}
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "texture: " + texture);
 				Log.d(TAG, "preview_surface: " + preview_surface);
@@ -4329,6 +4813,20 @@ public class CameraController2 extends CameraController {
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "created captureSession: " + captureSession);
 			}
+			if( captureSession == null && video_recorder == null && zslImageReader != null ) {
+				// devices needn't support the additional stream, so try again without zero shutter lag
+				Log.e(TAG, "failed to create capture session with zero shutter lag stream");
+				zsl_unsupported = true;
+				createCaptureSession(null, false);
+				return;
+			}
+			if( captureSession == null && video_recorder == null && analysisImageReader != null ) {
+				// similarly for the preview analysis stream
+				Log.e(TAG, "failed to create capture session with preview analysis stream");
+				preview_analysis_unsupported = true;
+				createCaptureSession(null, false);
+				return;
+			}
 			if( captureSession == null ) {
 				if( MyDebug.LOG )
 					Log.e(TAG, "failed to create capture session");
@@ -4719,16 +5217,16 @@ public class CameraController2 extends CameraController {
 			{
 				// set ISO
 				int iso = 800;
-				if( capture_result_has_iso )
-					iso = capture_result_iso;
+				if( captureResultHasIso() )
+					iso = captureResultIso();
 				// see https://sourceforge.net/p/opencamera/tickets/321/ - some devices may have auto ISO that's
 				// outside of the allowed manual iso range!
 				iso = Math.max(iso, iso_range.getLower());
 				iso = Math.min(iso, iso_range.getUpper());
 				stillBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso );
 			}
-			if( capture_result_has_frame_duration  )
-				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, capture_result_frame_duration);
+			if( captureResultHasFrameDuration()  )
+				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, captureResultFrameDuration());
 			else
 				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L/30);
 			stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure_time);
@@ -4777,11 +5275,11 @@ public class CameraController2 extends CameraController {
 				stillBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
 				test_fake_flash_photo++;
 			}
-			if( !camera_settings.has_iso && this.optimise_ae_for_dro && capture_result_has_exposure_time && (camera_settings.flash_value.equals("flash_off") || camera_settings.flash_value.equals("flash_auto") || camera_settings.flash_value.equals("flash_frontscreen_auto") ) ) {
+			if( !camera_settings.has_iso && this.optimise_ae_for_dro && captureResultHasExposureTime() && (camera_settings.flash_value.equals("flash_off") || camera_settings.flash_value.equals("flash_auto") || camera_settings.flash_value.equals("flash_frontscreen_auto") ) ) {
 				final double full_exposure_time_scale = Math.pow(2.0, -0.5);
 				final long fixed_exposure_time = 1000000000L/60; // we only scale the exposure time at all if it's less than this value
 				final long scaled_exposure_time = 1000000000L/120; // we only scale the exposure time by the full_exposure_time_scale if the exposure time is less than this value
-				long exposure_time = capture_result_exposure_time;
+				long exposure_time = captureResultExposureTime();
 				if( exposure_time <= fixed_exposure_time ) {
 					double exposure_time_scale = getScaleForExposureTime(exposure_time, fixed_exposure_time, scaled_exposure_time, full_exposure_time_scale);
 					exposure_time *= exposure_time_scale;
@@ -4971,24 +5469,24 @@ public class CameraController2 extends CameraController {
 				// OnePlus 3T bug where the reported ISO and exposure_time are wrong in dark scenes)
 				if( camera_settings.has_iso )
 					iso = camera_settings.iso;
-				else if( capture_result_has_iso )
-					iso = capture_result_iso;
+				else if( captureResultHasIso() )
+					iso = captureResultIso();
 				// see https://sourceforge.net/p/opencamera/tickets/321/ - some devices may have auto ISO that's
 				// outside of the allowed manual iso range!
 				iso = Math.max(iso, iso_range.getLower());
 				iso = Math.min(iso, iso_range.getUpper());
 				stillBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso );
 			}
-			if( capture_result_has_frame_duration  )
-				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, capture_result_frame_duration);
+			if( captureResultHasFrameDuration()  )
+				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, captureResultFrameDuration());
 			else
 				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L/30);
 
 			long base_exposure_time = 1000000000L/30;
 			if( camera_settings.has_iso )
 				base_exposure_time = camera_settings.exposure_time;
-			else if( capture_result_has_exposure_time )
-				base_exposure_time = capture_result_exposure_time;
+			else if( captureResultHasExposureTime() )
+				base_exposure_time = captureResultExposureTime();
 
 			int n_half_images = expo_bracketing_n_images/2;
 			long min_exposure_time = base_exposure_time;
@@ -5144,9 +5642,15 @@ public class CameraController2 extends CameraController {
 			else {
 				if( MyDebug.LOG )
 					Log.d(TAG, "using slow burst");
-				slow_burst_capture_requests = requests;
-				slow_burst_start_ms = System.currentTimeMillis();
-				captureSession.capture(requests.get(0), previewCaptureCallback, handler);
+				synchronized( image_reader_lock ) {
+					slow_burst_capture_requests = requests;
+					slow_burst_start_ms = System.currentTimeMillis();
+					slow_burst_n_submitted = 0;
+					slow_burst_n_completed = 0;
+					slow_burst_focus_pending = false;
+					test_max_slow_burst_in_flight = 0;
+					submitSlowBurstCaptures();
+				}
 			}
 
 			if( sounds_enabled ) // play shutter sound asap, otherwise user has the illusion of being slow to take photos
@@ -5223,11 +5727,11 @@ public class CameraController2 extends CameraController {
 					Log.d(TAG, "choose n_burst for burst_for_noise_reduction");
 				n_burst = 4;
 
-				if( capture_result_has_iso ) {
+				if( captureResultHasIso() ) {
 					// For Nexus 6, max reported ISO is 1196, so the limit for dark scenes shouldn't be more than this
 					// Nokia 8's max reported ISO is 1551
 					// Note that OnePlus 3T has max reported ISO of 800, but this is a device bug
-					if( capture_result_iso >= 1100 ) {
+					if( captureResultIso() >= 1100 ) {
 						if( MyDebug.LOG )
 							Log.d(TAG, "optimise for dark scene");
 						n_burst = 8;
@@ -5242,12 +5746,12 @@ public class CameraController2 extends CameraController {
 							setManualExposureTime(stillBuilder, exposure_time);
 						}
 					}
-					else if( capture_result_has_exposure_time ) {
+					else if( captureResultHasExposureTime() ) {
 						//final double full_exposure_time_scale = 0.5;
 						final double full_exposure_time_scale = Math.pow(2.0, -0.5);
 						final long fixed_exposure_time = 1000000000L/60; // we only scale the exposure time at all if it's less than this value
 						final long scaled_exposure_time = 1000000000L/120; // we only scale the exposure time by the full_exposure_time_scale if the exposure time is less than this value
-						long exposure_time = capture_result_exposure_time;
+						long exposure_time = captureResultExposureTime();
 						if( exposure_time <= fixed_exposure_time ) {
 							if( MyDebug.LOG )
 								Log.d(TAG, "optimise for bright scene");
@@ -5471,7 +5975,7 @@ public class CameraController2 extends CameraController {
 	private boolean fireAutoFlashFrontScreen() {
 		// iso_threshold fine-tuned for Nexus 6 - front camera ISO never goes above 805, but a threshold of 700 is too low
 		final int iso_threshold = 750;
-		return capture_result_has_iso && capture_result_iso >= iso_threshold;
+		return captureResultHasIso() && captureResultIso() >= iso_threshold;
 	}
 	
 	/** Used in use_fake_precapture mode when flash is auto, this returns whether we fire the flash.
@@ -5502,7 +6006,7 @@ public class CameraController2 extends CameraController {
 			case "flash_frontscreen_auto":
 				fake_precapture_use_flash = fireAutoFlashFrontScreen();
 				if(MyDebug.LOG)
-					Log.d(TAG, "    ISO was: " + capture_result_iso);
+					Log.d(TAG, "    ISO was: " + captureResultIso());
 				break;
 			default:
 				// shouldn't really be calling this function if not flash auto...
@@ -5524,6 +6028,54 @@ public class CameraController2 extends CameraController {
 		return fake_precapture_use_flash;
 	}
 	
+	/** Whether a photo can be taken from the frames of the zero shutter lag stream, rather than a new capture.
+	 */
+	private boolean canTakeZslPicture() {
+		if( zslImageReader == null || previewIsVideoMode || imageReaderRaw != null || burst_type != BurstType.BURSTTYPE_NONE ) {
+			return false;
+		}
+		// the preview frames won't have been exposed for flash, or with the reduced exposure of optimise_ae_for_dro
+		return !optimise_ae_for_dro && ( camera_settings.has_iso || camera_settings.flash_value.equals("flash_off") || camera_settings.flash_value.equals("flash_torch") );
+	}
+
+	/** Returns the frame of the zero shutter lag stream closest to the press as the photo. Returns false if there isn't a
+	 *  suitable frame, in which case a new capture should be taken.
+	 */
+	private boolean takeZslPicture() {
+		ZslRingBuffer.Frame frame = zsl_ring_buffer.takeClosest(shutter_press_timestamp, zsl_max_lag_ns_c);
+		if( frame == null ) {
+			return false;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "take zero shutter lag frame: " + frame.getTimestamp());
+			Log.d(TAG, "lag from press: " + (frame.getTimestamp() - shutter_press_timestamp)/1000000 + "ms");
+			if( frame.hasResult() ) {
+				Log.d(TAG, "exposure time: " + frame.getExposureTime());
+				Log.d(TAG, "iso: " + frame.getIso());
+				Log.d(TAG, "focus moving: " + frame.isFocusMoving());
+			}
+		}
+		shutter_press_timestamp = 0;
+		final JpegBuffer jpeg = frame.getJpeg();
+		final PictureCallback cb = jpeg_cb;
+		// need to set jpeg_cb etc to null before calling onCompleted, as that may reenter CameraController to take another photo
+		jpeg_cb = null;
+		raw_cb = null;
+		take_picture_error_cb = null;
+		cb.onStarted();
+		if( sounds_enabled )
+			media_action_sound.play(MediaActionSound.SHUTTER_CLICK);
+		// call back on the background thread, as for images from the ImageReaders, rather than reentering the caller
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				cb.onPictureTaken(jpeg);
+				cb.onCompleted();
+			}
+		});
+		return true;
+	}
+
 	@Override
 	public void takePicture(final PictureCallback picture, final ErrorCallback error) {
 		if( MyDebug.LOG )
@@ -5534,6 +6086,9 @@ public class CameraController2 extends CameraController {
 			error.onError();
 			return;
 		}
+		if( zsl_ring_buffer != null ) {
+			shutter_press_timestamp = getSensorTime();
+		}
 		// we store as two identical callbacks, so we can independently set each to null as the two callbacks occur
 		this.jpeg_cb = picture;
 		if( imageReaderRaw != null )
@@ -5548,7 +6103,11 @@ public class CameraController2 extends CameraController {
 			//throw new RuntimeException(); // debugging
 		}
 
-		{
+		if( canTakeZslPicture() && takeZslPicture() ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "took zero shutter lag photo");
+		}
+		else {
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "current flash value: " + camera_settings.flash_value);
 				Log.d(TAG, "use_fake_precapture_mode: " + use_fake_precapture_mode);
@@ -5730,43 +6289,52 @@ public class CameraController2 extends CameraController {
 
 	@Override
 	public boolean captureResultHasWhiteBalanceTemperature() {
-		return capture_result_has_white_balance_rggb;
+		return capture_result_cache.hasLatest(CaptureResultCache.FIELD_WB_RED);
 	}
 
 	@Override
 	public int captureResultWhiteBalanceTemperature() {
 		// for performance reasons, we don't convert from rggb to temperature in every frame, rather only when requested
-		return convertRggbToTemperature(capture_result_white_balance_rggb);
+		RggbChannelVector vector = new RggbChannelVector(capture_result_cache.getLatestFloat(CaptureResultCache.FIELD_WB_RED),
+				capture_result_cache.getLatestFloat(CaptureResultCache.FIELD_WB_GREEN_EVEN),
+				capture_result_cache.getLatestFloat(CaptureResultCache.FIELD_WB_GREEN_ODD),
+				capture_result_cache.getLatestFloat(CaptureResultCache.FIELD_WB_BLUE));
+		return convertRggbToTemperature(vector);
 	}
 
 	@Override
 	public boolean captureResultHasIso() {
-		return capture_result_has_iso;
+		return capture_result_cache.hasLatest(CaptureResultCache.FIELD_ISO);
 	}
 
 	@Override
 	public int captureResultIso() {
-		return capture_result_iso;
+		return (int)capture_result_cache.getLatest(CaptureResultCache.FIELD_ISO);
 	}
 	
 	@Override
 	public boolean captureResultHasExposureTime() {
-		return capture_result_has_exposure_time;
+		return capture_result_cache.hasLatest(CaptureResultCache.FIELD_EXPOSURE_TIME);
 	}
 
 	@Override
 	public long captureResultExposureTime() {
-		return capture_result_exposure_time;
+		return capture_result_cache.getLatest(CaptureResultCache.FIELD_EXPOSURE_TIME);
 	}
 
 	@Override
 	public boolean captureResultHasFrameDuration() {
-		return capture_result_has_frame_duration;
+		return capture_result_cache.hasLatest(CaptureResultCache.FIELD_FRAME_DURATION);
 	}
 
 	@Override
 	public long captureResultFrameDuration() {
-		return capture_result_frame_duration;
+		return capture_result_cache.getLatest(CaptureResultCache.FIELD_FRAME_DURATION);
+	}
+
+	@Override
+	public boolean getCaptureResult(long timestamp, CaptureResultCache.Record record) {
+		return capture_result_cache.getByTimestamp(timestamp, record);
 	}
 	
 	/*
@@ -5805,6 +6373,12 @@ public class CameraController2 extends CameraController {
 				Log.d(TAG, "was image captured?: " + failure.wasImageCaptured());
 				Log.d(TAG, "sequenceId: " + failure.getSequenceId());
 			}
+			if( slow_burst_capture_requests != null ) {
+				if( failure.wasImageCaptured() )
+					onSlowBurstCaptureCompleted(request);
+				else
+					onSlowBurstCaptureFailed(request); // otherwise we'd wait forever for the image
+			}
 			super.onCaptureFailed(session, request, failure); // API docs say this does nothing, but call it just to be safe
 		}
 
@@ -5837,6 +6411,12 @@ public class CameraController2 extends CameraController {
 				}
 				// n.b., we don't play the shutter sound here, as it typically sounds "too late"
 				// (if ever we changed this, would also need to fix for burst, where we only set the RequestTag.CAPTURE for the last image)
+				ZslRingBuffer zsl_ring_buffer = CameraController2.this.zsl_ring_buffer;
+				if( zsl_ring_buffer != null && shutter_press_timestamp != 0 ) {
+					// also record the lag for photos that couldn't be taken from the zero shutter lag stream, for comparison
+					zsl_ring_buffer.recordLag(timestamp - shutter_press_timestamp);
+					shutter_press_timestamp = 0;
+				}
 			}
 			/*else {
 				if( MyDebug.LOG ) {
@@ -5883,11 +6463,32 @@ public class CameraController2 extends CameraController {
 					Log.d(TAG, "frame duration: " + request.get(CaptureRequest.SENSOR_FRAME_DURATION));
 				}
 			}*/
+			if( zslImageReader != null && request.getTag() != RequestTag.CAPTURE ) {
+				tagZslFrame(result);
+			}
 			process(request, result);
 			processCompleted(request, result);
+			if( slow_burst_capture_requests != null ) {
+				onSlowBurstCaptureCompleted(request);
+			}
 			super.onCaptureCompleted(session, request, result); // API docs say this does nothing, but call it just to be safe (as with Google Camera)
 		}
 
+		/** Tags the frame of the zero shutter lag stream from this result with its exposure, ISO and focus state.
+		 */
+		private void tagZslFrame(CaptureResult result) {
+			ZslRingBuffer zsl_ring_buffer = CameraController2.this.zsl_ring_buffer;
+			Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+			if( zsl_ring_buffer == null || timestamp == null ) {
+				return;
+			}
+			Long exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+			Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+			Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+			boolean focus_moving = af_state != null && ( af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN || af_state == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN );
+			zsl_ring_buffer.setResult(timestamp, exposure_time != null ? exposure_time : 0, iso != null ? iso : 0, focus_moving);
+		}
+
 		/** Processes either a partial or total result.
 		 */
 		private void process(CaptureRequest request, CaptureResult result) {
@@ -6299,74 +6900,71 @@ public class CameraController2 extends CameraController {
 					Log.d(TAG, "has_received_frame now set to true");
 			}
 
-			if( modified_from_camera_settings ) {
-				// don't update capture results!
-				// otherwise have problem taking HDR photos twice in a row, the second one will pick up the exposure time as
-				// being from the long exposure of the previous HDR/expo burst!
+			CaptureResultCache.Record record = capture_result_record;
+			record.clear();
+			record.set(CaptureResultCache.FIELD_FRAME_NUMBER, result.getFrameNumber());
+			Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+			if( timestamp != null ) {
+				record.set(CaptureResultCache.FIELD_TIMESTAMP, timestamp);
 			}
-			else if( result.get(CaptureResult.SENSOR_SENSITIVITY) != null ) {
-				capture_result_has_iso = true;
-				capture_result_iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
-				/*if( MyDebug.LOG )
-					Log.d(TAG, "capture_result_iso: " + capture_result_iso);*/
-				/*if( camera_settings.has_iso && Math.abs(camera_settings.iso - capture_result_iso) > 10 && previewBuilder != null ) {
-					// ugly hack: problem (on Nexus 6 at least) that when we start recording video (video_recorder.start() call), this often causes the ISO setting to reset to the wrong value!
-					// seems to happen more often with shorter exposure time
-					// seems to happen on other camera apps with Camera2 API too
-					// update: allow some tolerance, as on OnePlus 3T it's normal to have some slight difference between requested and actual
-					// this workaround still means a brief flash with incorrect ISO, but is best we can do for now!
-					// check previewBuilder != null as we have had Google Play crashes from the setRepeatingRequest() call via here
-					// Update 20180326: can no longer reproduce original problem on Nexus 6 (at FullHD or 4K); no evidence of
-					// problems on OnePlus 3T or Nokia 8.
-					// Also note that this code was being activated whenever manual ISO is changed (since we don't immediately
-					// update to the new ISO). At the least, this should be restricted to when recording video, but best to
-					// disable completely now that we don't seem to need it.
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "ISO " + capture_result_iso + " different to requested ISO " + camera_settings.iso);
-						Log.d(TAG, "    requested ISO was: " + request.get(CaptureRequest.SENSOR_SENSITIVITY));
-						Log.d(TAG, "    requested AE mode was: " + request.get(CaptureRequest.CONTROL_AE_MODE));
-					}
-					try {
-						setRepeatingRequest();
-					}
-					catch(CameraAccessException e) {
+			long flags = 0;
+			if( request.getTag() == RequestTag.CAPTURE )
+				flags |= CaptureResultCache.FLAG_STILL;
+			if( modified_from_camera_settings )
+				flags |= CaptureResultCache.FLAG_MODIFIED;
+			record.set(CaptureResultCache.FIELD_FLAGS, flags);
+
+			{
+				Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+				if( iso != null ) {
+					record.set(CaptureResultCache.FIELD_ISO, iso);
+					/*if( MyDebug.LOG )
+						Log.d(TAG, "iso: " + iso);*/
+					/*if( camera_settings.has_iso && Math.abs(camera_settings.iso - iso) > 10 && previewBuilder != null ) {
+						// ugly hack: problem (on Nexus 6 at least) that when we start recording video (video_recorder.start() call), this often causes the ISO setting to reset to the wrong value!
+						// seems to happen more often with shorter exposure time
+						// seems to happen on other camera apps with Camera2 API too
+						// update: allow some tolerance, as on OnePlus 3T it's normal to have some slight difference between requested and actual
+						// this workaround still means a brief flash with incorrect ISO, but is best we can do for now!
+						// check previewBuilder != null as we have had Google Play crashes from the setRepeatingRequest() call via here
+						// Update 20180326: can no longer reproduce original problem on Nexus 6 (at FullHD or 4K); no evidence of
+						// problems on OnePlus 3T or Nokia 8.
+						// Also note that this code was being activated whenever manual ISO is changed (since we don't immediately
+						// update to the new ISO). At the least, this should be restricted to when recording video, but best to
+						// disable completely now that we don't seem to need it.
 						if( MyDebug.LOG ) {
-							Log.e(TAG, "failed to set repeating request after ISO hack");
-							Log.e(TAG, "reason: " + e.getReason());
-							Log.e(TAG, "message: " + e.getMessage());
+							Log.d(TAG, "ISO " + iso + " different to requested ISO " + camera_settings.iso);
+							Log.d(TAG, "    requested ISO was: " + request.get(CaptureRequest.SENSOR_SENSITIVITY));
+							Log.d(TAG, "    requested AE mode was: " + request.get(CaptureRequest.CONTROL_AE_MODE));
 						}
-						e.printStackTrace();
-					} 
-				}*/
-			}
-			else {
-				capture_result_has_iso = false;
+						try {
+							setRepeatingRequest();
+						}
+						catch(CameraAccessException e) {
+							if( MyDebug.LOG ) {
+								Log.e(TAG, "failed to set repeating request after ISO hack");
+								Log.e(TAG, "reason: " + e.getReason());
+								Log.e(TAG, "message: " + e.getMessage());
+							}
+							e.printStackTrace();
+						} 
+					}*/
+				}
 			}
 
-			if( modified_from_camera_settings ) {
-				// see note above
-			}
-			else if( result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null ) {
-				capture_result_has_exposure_time = true;
-				capture_result_exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-				if( capture_result_exposure_time <= 0 ) {
-					// wierd bug seen on Nokia 8
-					capture_result_has_exposure_time = false;
+			{
+				Long exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+				if( exposure_time != null && exposure_time > 0 ) {
+					// n.b., check for exposure_time <= 0 due to wierd bug seen on Nokia 8
+					record.set(CaptureResultCache.FIELD_EXPOSURE_TIME, exposure_time);
 				}
 			}
-			else {
-				capture_result_has_exposure_time = false;
-			}
 
-			if( modified_from_camera_settings ) {
-				// see note above
-			}
-			else if( result.get(CaptureResult.SENSOR_FRAME_DURATION) != null ) {
-				capture_result_has_frame_duration = true;
-				capture_result_frame_duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
-			}
-			else {
-				capture_result_has_frame_duration = false;
+			{
+				Long frame_duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+				if( frame_duration != null ) {
+					record.set(CaptureResultCache.FIELD_FRAME_DURATION, frame_duration);
+				}
 			}
 			/*if( MyDebug.LOG ) {
 				if( result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null ) {
@@ -6378,29 +6976,47 @@ public class CameraController2 extends CameraController {
 					Log.d(TAG, "capture_result_frame_duration: " + capture_result_frame_duration);
 				}
 			}*/
-			/*if( modified_from_camera_settings ) {
-				// see note above
-			}
-			else if( result.get(CaptureResult.LENS_FOCUS_RANGE) != null ) {
-				Pair<Float, Float> focus_range = result.get(CaptureResult.LENS_FOCUS_RANGE);
-				capture_result_has_focus_distance = true;
-				capture_result_focus_distance_min = focus_range.first;
-				capture_result_focus_distance_max = focus_range.second;
+
+			{
+				Float focus_distance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+				if( focus_distance != null ) {
+					record.setFloat(CaptureResultCache.FIELD_FOCUS_DISTANCE, focus_distance);
+				}
 			}
-			else {
-				capture_result_has_focus_distance = false;
-			}*/
+
 			{
 				RggbChannelVector vector = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
-				if( modified_from_camera_settings ) {
-					// see note above
+				if( vector != null ) {
+					record.setFloat(CaptureResultCache.FIELD_WB_RED, vector.getRed());
+					record.setFloat(CaptureResultCache.FIELD_WB_GREEN_EVEN, vector.getGreenEven());
+					record.setFloat(CaptureResultCache.FIELD_WB_GREEN_ODD, vector.getGreenOdd());
+					record.setFloat(CaptureResultCache.FIELD_WB_BLUE, vector.getBlue());
+				}
+				else if( !modified_from_camera_settings ) {
+					// keep reporting the last known white balance
+					for(int field=CaptureResultCache.FIELD_WB_RED;field<=CaptureResultCache.FIELD_WB_BLUE;field++) {
+						record.set(field, capture_result_cache.getLatest(field));
+					}
+				}
+			}
+
+			{
+				Integer ae_state = result.get(CaptureResult.CONTROL_AE_STATE);
+				if( ae_state != null ) {
+					record.set(CaptureResultCache.FIELD_AE_STATE, ae_state);
 				}
-				else if( vector != null ) {
-					capture_result_has_white_balance_rggb = true;
-					capture_result_white_balance_rggb = vector;
+				Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+				if( af_state != null ) {
+					record.set(CaptureResultCache.FIELD_AF_STATE, af_state);
 				}
 			}
 
+			// if modified_from_camera_settings, the frame is still cached (so that the photos of a burst can be matched to
+			// their own capture results), but isn't reported as the latest capture result - otherwise have problem taking
+			// HDR photos twice in a row, the second one will pick up the exposure time as being from the long exposure of
+			// the previous HDR/expo burst!
+			capture_result_cache.put(record, !modified_from_camera_settings);
+
 			/*if( MyDebug.LOG ) {
 				RggbChannelVector vector = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
 				if( vector != null ) {
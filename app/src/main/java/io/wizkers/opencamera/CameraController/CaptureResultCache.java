@@ -0,0 +1,232 @@
+package io.wizkers.opencamera.CameraController;
+
+import io.wizkers.opencamera.MyDebug;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Holds the metadata from the capture results of the most recent frames, so that a photo can be
+ *  matched to the values of the frame that produced it (by frame number, or by the sensor timestamp
+ *  of the image), rather than whatever the most recent preview frame happened to be.
+ *  Each frame is stored as a compact record of primitive fields (see the FIELD_ constants), in a ring
+ *  of fixed capacity indexed by frame number, so older frames are overwritten as new ones arrive.
+ *  A separate record holds the latest frame that should be reported to the user (e.g., excluding
+ *  frames captured with modified settings for an expo bracketing burst), for the on screen
+ *  information.
+ *  There must be a single writer (the camera's capture callback), but records can be read from any
+ *  thread without locking or allocating: each record has a sequence number which is odd whilst the
+ *  record is being written, and readers retry if the sequence number changed whilst they were
+ *  reading. Fields are held in an AtomicLongArray, so each value is read and written atomically.
+ */
+public class CaptureResultCache {
+	private static final String TAG = "CaptureResultCache";
+
+	/** The value of a field that isn't available for a frame. */
+	public static final long NOT_AVAILABLE = Long.MIN_VALUE;
+
+	public static final int FIELD_FRAME_NUMBER = 0;
+	public static final int FIELD_TIMESTAMP = 1; // sensor timestamp of the start of exposure, in nanoseconds
+	public static final int FIELD_FLAGS = 2; // see FLAG_ constants
+	public static final int FIELD_ISO = 3;
+	public static final int FIELD_EXPOSURE_TIME = 4; // in nanoseconds
+	public static final int FIELD_FRAME_DURATION = 5; // in nanoseconds
+	public static final int FIELD_FOCUS_DISTANCE = 6; // float, in diopters
+	public static final int FIELD_WB_RED = 7; // float
+	public static final int FIELD_WB_GREEN_EVEN = 8; // float
+	public static final int FIELD_WB_GREEN_ODD = 9; // float
+	public static final int FIELD_WB_BLUE = 10; // float
+	public static final int FIELD_AE_STATE = 11;
+	public static final int FIELD_AF_STATE = 12;
+	public static final int N_FIELDS = 13;
+
+	public static final long FLAG_STILL = 1; // the frame was a still capture, rather than from the preview
+	public static final long FLAG_MODIFIED = 2; // the frame was captured with settings modified from the camera settings
+
+	private static final int stride_c = N_FIELDS+1; // each record is preceded by its sequence number
+	private static final int max_spins_c = 100; // number of retries before yielding
+
+	/** A record of the fields for one frame. Records are reused by the writer and readers, to avoid
+	 *  allocating for every frame.
+	 */
+	public static class Record {
+		private final long [] values = new long[N_FIELDS];
+
+		public Record() {
+			clear();
+		}
+
+		/** Sets all fields to NOT_AVAILABLE.
+		 */
+		public void clear() {
+			Arrays.fill(values, NOT_AVAILABLE);
+		}
+
+		public boolean has(int field) {
+			return values[field] != NOT_AVAILABLE;
+		}
+
+		public long get(int field) {
+			return values[field];
+		}
+
+		public float getFloat(int field) {
+			return Float.intBitsToFloat((int)values[field]);
+		}
+
+		public boolean hasFlag(long flag) {
+			return has(FIELD_FLAGS) && (values[FIELD_FLAGS] & flag) != 0;
+		}
+
+		public void set(int field, long value) {
+			values[field] = value;
+		}
+
+		public void setFloat(int field, float value) {
+			values[field] = Float.floatToIntBits(value) & 0xffffffffL;
+		}
+	}
+
+	private final int capacity;
+	private final int mask;
+	private final int latest_slot; // the slot after the ring, holding the latest reported frame
+	private final AtomicLongArray slots;
+
+	/**
+	 * @param capacity The number of frames to hold, which must be a power of two.
+	 */
+	public CaptureResultCache(int capacity) {
+		if( capacity <= 0 || Integer.bitCount(capacity) != 1 ) {
+			Log.e(TAG, "capacity must be a power of two: " + capacity);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "capacity: " + capacity);
+		this.capacity = capacity;
+		this.mask = capacity-1;
+		this.latest_slot = capacity;
+		this.slots = new AtomicLongArray((capacity+1)*stride_c);
+		clear();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Removes all records. Should only be called by the writer.
+	 */
+	public void clear() {
+		for(int slot=0;slot<=capacity;slot++) {
+			int base = slot*stride_c;
+			long seq = slots.get(base);
+			slots.set(base, seq+1);
+			for(int i=0;i<N_FIELDS;i++) {
+				slots.set(base+1+i, NOT_AVAILABLE);
+			}
+			slots.set(base, seq+2);
+		}
+	}
+
+	/** Stores the record for a frame, overwriting the frame held capacity frames earlier. Should only
+	 *  be called by the single writer.
+	 * @param record The record, which must have FIELD_FRAME_NUMBER set. The record isn't retained,
+	 *               so can be reused by the caller.
+	 * @param latest Whether to also store this as the latest frame, see getLatest().
+	 */
+	public void put(Record record, boolean latest) {
+		long frame_number = record.get(FIELD_FRAME_NUMBER);
+		if( frame_number == NOT_AVAILABLE ) {
+			Log.e(TAG, "record has no frame number");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		write((int)(frame_number & mask), record);
+		if( latest ) {
+			write(latest_slot, record);
+		}
+	}
+
+	private void write(int slot, Record record) {
+		int base = slot*stride_c;
+		long seq = slots.get(base);
+		slots.set(base, seq+1); // odd whilst writing
+		for(int i=0;i<N_FIELDS;i++) {
+			slots.set(base+1+i, record.values[i]);
+		}
+		slots.set(base, seq+2);
+	}
+
+	/** Reads a consistent copy of the supplied slot into record.
+	 */
+	private void read(int slot, Record record) {
+		int base = slot*stride_c;
+		int n_spins = 0;
+		while( true ) {
+			long seq = slots.get(base);
+			if( (seq & 1) == 0 ) {
+				for(int i=0;i<N_FIELDS;i++) {
+					record.values[i] = slots.get(base+1+i);
+				}
+				if( slots.get(base) == seq ) {
+					return;
+				}
+			}
+			if( ++n_spins >= max_spins_c ) {
+				n_spins = 0;
+				Thread.yield();
+			}
+		}
+	}
+
+	/** Reads the record for the supplied frame number.
+	 * @return Whether the frame was found; if false, the contents of record are undefined.
+	 */
+	public boolean get(long frame_number, Record record) {
+		read((int)(frame_number & mask), record);
+		return record.get(FIELD_FRAME_NUMBER) == frame_number;
+	}
+
+	/** Reads the record for the frame with the supplied sensor timestamp, e.g., as returned by
+	 *  Image.getTimestamp().
+	 * @return Whether the frame was found; if false, the contents of record are undefined.
+	 */
+	public boolean getByTimestamp(long timestamp, Record record) {
+		if( timestamp == NOT_AVAILABLE ) {
+			return false;
+		}
+		for(int slot=0;slot<capacity;slot++) {
+			read(slot, record);
+			if( record.get(FIELD_TIMESTAMP) == timestamp ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Reads the record of the latest frame that was stored with latest set to true.
+	 * @return Whether there is such a frame.
+	 */
+	public boolean getLatest(Record record) {
+		read(latest_slot, record);
+		return record.has(FIELD_FRAME_NUMBER);
+	}
+
+	/** Returns a single field of the latest frame, see getLatest(Record), or NOT_AVAILABLE. Unlike
+	 *  getLatest(Record), separate calls may return fields from different frames.
+	 */
+	public long getLatest(int field) {
+		return slots.get(latest_slot*stride_c+1+field);
+	}
+
+	public boolean hasLatest(int field) {
+		return getLatest(field) != NOT_AVAILABLE;
+	}
+
+	/** As getLatest(int), but for fields that hold a float.
+	 */
+	public float getLatestFloat(int field) {
+		return Float.intBitsToFloat((int)getLatest(field));
+	}
+}
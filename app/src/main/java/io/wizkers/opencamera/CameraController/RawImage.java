@@ -47,6 +47,16 @@ public class RawImage {
         }
     }
 
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public int getHeight() {
+        return image.getHeight();
+    }
+
     /** Closes the image. Must be called to free up resources when no longer needed. After calling
      *  this method, this object should not be used.
      */
@@ -0,0 +1,270 @@
+package io.wizkers.opencamera.CameraController;
+
+import io.wizkers.opencamera.JpegBuffer;
+import io.wizkers.opencamera.MyDebug;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+
+/** Holds the most recent full resolution frames from the preview stream, for "zero shutter lag"
+ *  photos: when the shutter is pressed, the frame exposed closest to the time of the press is
+ *  returned, rather than starting a new capture.
+ *  Frames are kept whilst they fit within a budget of bytes (and a maximum number of frames), with
+ *  the oldest frames being released first. Each frame is tagged with the values from its capture
+ *  result (exposure time, ISO, whether focus was moving), which may arrive before or after the frame
+ *  itself; results are matched to frames by the sensor timestamp.
+ *  The lag from the shutter being pressed to the exposure of the photo is also recorded, for
+ *  reporting.
+ *  This class is thread safe.
+ */
+public class ZslRingBuffer {
+	private static final String TAG = "ZslRingBuffer";
+
+	private static final int max_pending_results_c = 8; // results for frames that haven't arrived yet
+
+	public static class Frame {
+		private final long timestamp; // sensor timestamp of the start of exposure, in nanoseconds
+		private final JpegBuffer jpeg;
+		private boolean has_result;
+		private long exposure_time;
+		private int iso;
+		private boolean focus_moving;
+
+		Frame(long timestamp, JpegBuffer jpeg) {
+			this.timestamp = timestamp;
+			this.jpeg = jpeg;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/** Returns the jpeg of the frame; once a frame has been taken from the ring buffer, the
+		 *  caller owns the jpeg, and should release it when done with it.
+		 */
+		public JpegBuffer getJpeg() {
+			return jpeg;
+		}
+
+		public boolean hasResult() {
+			return has_result;
+		}
+
+		public long getExposureTime() {
+			return exposure_time;
+		}
+
+		public int getIso() {
+			return iso;
+		}
+
+		public boolean isFocusMoving() {
+			return focus_moving;
+		}
+	}
+
+	private static class Result {
+		final long timestamp;
+		final long exposure_time;
+		final int iso;
+		final boolean focus_moving;
+
+		Result(long timestamp, long exposure_time, int iso, boolean focus_moving) {
+			this.timestamp = timestamp;
+			this.exposure_time = exposure_time;
+			this.iso = iso;
+			this.focus_moving = focus_moving;
+		}
+	}
+
+	private final long max_bytes;
+	private final int max_frames;
+	private final LinkedList<Frame> frames = new LinkedList<>(); // oldest first
+	private final LinkedList<Result> pending_results = new LinkedList<>(); // oldest first
+	private long bytes; // total size of the arrays holding the frames
+
+	// metrics
+	private int n_taken;
+	private int n_missed; // presses where no frame was close enough
+	private long last_lag_ns;
+	private long total_abs_lag_ns;
+	private long max_abs_lag_ns;
+
+	/**
+	 * @param max_bytes  The maximum number of bytes of jpegs to hold.
+	 * @param max_frames The maximum number of frames to hold.
+	 */
+	public ZslRingBuffer(long max_bytes, int max_frames) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "max_bytes: " + max_bytes + " max_frames: " + max_frames);
+		this.max_bytes = max_bytes;
+		this.max_frames = max_frames;
+	}
+
+	public long getMaxBytes() {
+		return max_bytes;
+	}
+
+	/** Adds a frame, releasing the oldest frames if the budget is exceeded. The ring buffer takes
+	 *  ownership of the jpeg.
+	 * @param timestamp The sensor timestamp of the frame, in nanoseconds.
+	 */
+	public synchronized void addFrame(long timestamp, JpegBuffer jpeg) {
+		Frame frame = new Frame(timestamp, jpeg);
+		for(Iterator<Result> iter = pending_results.iterator(); iter.hasNext(); ) {
+			Result result = iter.next();
+			if( result.timestamp == timestamp ) {
+				setResult(frame, result);
+				iter.remove();
+				break;
+			}
+		}
+		frames.addLast(frame);
+		bytes += jpeg.getArray().length;
+		while( !frames.isEmpty() && (bytes > max_bytes || frames.size() > max_frames) ) {
+			Frame eldest = frames.removeFirst();
+			bytes -= eldest.jpeg.getArray().length;
+			eldest.jpeg.release();
+		}
+	}
+
+	/** Tags the frame with the supplied timestamp with values from its capture result. If the frame
+	 *  hasn't arrived yet, the values are kept until it does.
+	 */
+	public synchronized void setResult(long timestamp, long exposure_time, int iso, boolean focus_moving) {
+		Result result = new Result(timestamp, exposure_time, iso, focus_moving);
+		// search from the newest, as results normally arrive before their frames
+		for(Iterator<Frame> iter = frames.descendingIterator(); iter.hasNext(); ) {
+			Frame frame = iter.next();
+			if( frame.timestamp == timestamp ) {
+				setResult(frame, result);
+				return;
+			}
+		}
+		pending_results.addLast(result);
+		if( pending_results.size() > max_pending_results_c ) {
+			pending_results.removeFirst();
+		}
+	}
+
+	private static void setResult(Frame frame, Result result) {
+		frame.has_result = true;
+		frame.exposure_time = result.exposure_time;
+		frame.iso = result.iso;
+		frame.focus_moving = result.focus_moving;
+	}
+
+	/** Removes and returns the frame exposed closest in time to press_timestamp, which should be in
+	 *  the same time base as the sensor timestamps. Frames where the focus was moving are only
+	 *  returned if there are no other candidates. The caller owns the returned frame's jpeg.
+	 *  The lag from the press to the exposure of the frame is recorded.
+	 * @param max_lag_ns The maximum time between the press and the exposure of the frame.
+	 * @return The frame, or null if there is no frame within max_lag_ns of the press.
+	 */
+	public synchronized Frame takeClosest(long press_timestamp, long max_lag_ns) {
+		Frame best = null;
+		long best_lag = 0;
+		for(Frame frame : frames) {
+			long lag = Math.abs(frame.timestamp - press_timestamp);
+			if( lag > max_lag_ns ) {
+				continue;
+			}
+			boolean better;
+			if( best == null )
+				better = true;
+			else if( best.focus_moving != frame.focus_moving )
+				better = best.focus_moving;
+			else
+				better = lag < best_lag;
+			if( better ) {
+				best = frame;
+				best_lag = lag;
+			}
+		}
+		if( best == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no frame close enough to press, from " + frames.size() + " frames");
+			n_missed++;
+			return null;
+		}
+		for(Iterator<Frame> iter = frames.iterator(); iter.hasNext(); ) {
+			if( iter.next() == best ) {
+				iter.remove();
+				break;
+			}
+		}
+		bytes -= best.jpeg.getArray().length;
+		recordLag(best.timestamp - press_timestamp);
+		return best;
+	}
+
+	/** Records the lag from a shutter press to the exposure of the photo, e.g., for photos that
+	 *  weren't taken from the ring buffer. A negative lag means the photo was exposed before the
+	 *  press.
+	 */
+	public synchronized void recordLag(long lag_ns) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "press to exposure lag: " + lag_ns/1000000 + "ms");
+		n_taken++;
+		last_lag_ns = lag_ns;
+		total_abs_lag_ns += Math.abs(lag_ns);
+		max_abs_lag_ns = Math.max(max_abs_lag_ns, Math.abs(lag_ns));
+	}
+
+	/** Releases all of the frames.
+	 */
+	public synchronized void clear() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "clear: " + frames.size() + " frames");
+		for(Frame frame : frames) {
+			frame.jpeg.release();
+		}
+		frames.clear();
+		pending_results.clear();
+		bytes = 0;
+	}
+
+	public synchronized int getNFrames() {
+		return frames.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getNTaken() {
+		return n_taken;
+	}
+
+	public synchronized int getNMissed() {
+		return n_missed;
+	}
+
+	/** Returns the lag of the most recent photo, in nanoseconds.
+	 */
+	public synchronized long getLastLag() {
+		return last_lag_ns;
+	}
+
+	/** Returns the mean of the absolute lags, in nanoseconds, or 0 if no photos have been taken.
+	 */
+	public synchronized long getMeanAbsLag() {
+		return n_taken == 0 ? 0 : total_abs_lag_ns / n_taken;
+	}
+
+	public synchronized long getMaxAbsLag() {
+		return max_abs_lag_ns;
+	}
+
+	/** Returns a single line summary of the lags, e.g., for display on screen, or null if no
+	 *  photos have been taken.
+	 */
+	public synchronized String getSummary() {
+		if( n_taken == 0 )
+			return null;
+		return String.format(Locale.US, "shutter lag: %d, last %dms, mean %dms, max %dms, missed %d", n_taken, last_lag_ns/1000000, getMeanAbsLag()/1000000, max_abs_lag_ns/1000000, n_missed);
+	}
+}
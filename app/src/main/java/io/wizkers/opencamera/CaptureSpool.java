@@ -0,0 +1,498 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/** An append-only journal on disk of photos waiting to be saved, so that photos that are still
+ *  queued or being processed when the application is killed can be saved when it next starts.
+ *  Each photo is journalled with append(), as some metadata (opaque to this class) plus one or more
+ *  images. The images can then be read back with readImages() when they're needed, so that they
+ *  don't have to be held on the heap whilst waiting to be processed. Once the photo has been saved,
+ *  complete() appends a record marking the entry as done.
+ *  open() reads the journal left behind by a previous instance, and returns the entries that were
+ *  never completed. A record that was only partly written (e.g., if the application was killed
+ *  whilst appending) is detected by its checksum, and the journal is truncated before it. Whenever
+ *  no entries are pending, the journal is truncated to be empty.
+ *  Each time an entry is returned by open(), this is also recorded in the journal (see
+ *  Entry.getNRecoveries()), so that the caller can give up on an entry that fails every time it's
+ *  recovered, rather than failing in the same way each time the application starts.
+ *  Records are written with FileChannel, and forced to the storage device before append() and
+ *  complete() return. The file is locked whilst open, so only one instance can use the journal at
+ *  a time.
+ */
+public class CaptureSpool {
+	private static final String TAG = "CaptureSpool";
+
+	private static final int record_magic_c = 0x4F435350; // "OCSP"
+	private static final byte record_entry_c = 1;
+	private static final byte record_complete_c = 2;
+	private static final byte record_recovered_c = 3; // the entry was returned by open()
+	private static final int header_size_c = 4 + 1 + 8 + 4; // magic, record type, id, payload length
+	private static final int crc_size_c = 4;
+	public static final long default_min_free_bytes_c = 256*1024*1024; // storage to leave free for saving the photos themselves
+
+	/** A photo journalled by append().
+	 */
+	public static class Entry {
+		private final long id;
+		private final byte [] metadata;
+		private final long [] image_offsets; // position in the file of each image
+		private final int [] image_lengths;
+		private int n_recoveries;
+
+		private Entry(long id, byte [] metadata, long [] image_offsets, int [] image_lengths) {
+			this.id = id;
+			this.metadata = metadata;
+			this.image_offsets = image_offsets;
+			this.image_lengths = image_lengths;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public byte [] getMetadata() {
+			return metadata;
+		}
+
+		/** Returns the number of times this entry was returned by open() before, not including the
+		 *  current time.
+		 */
+		public int getNRecoveries() {
+			return n_recoveries;
+		}
+
+		public int getNImages() {
+			return image_offsets.length;
+		}
+
+		/** Returns the total size of the images.
+		 */
+		public long getImageBytes() {
+			long bytes = 0;
+			for(int length : image_lengths) {
+				bytes += length;
+			}
+			return bytes;
+		}
+	}
+
+	private final File file;
+	private final long min_free_bytes;
+	private RandomAccessFile random_access_file;
+	private FileChannel channel;
+	private FileLock lock;
+	private final Map<Long, Entry> pending = new LinkedHashMap<>(); // entries not yet completed, in the order they were appended
+	private long next_id;
+
+	/**
+	 * @param file           The journal file. The file is created if it doesn't exist; its parent
+	 *                       directory must exist.
+	 * @param min_free_bytes The storage that should be left free after appending an entry, see
+	 *                       hasSpaceFor().
+	 */
+	public CaptureSpool(File file, long min_free_bytes) {
+		this.file = file;
+		this.min_free_bytes = min_free_bytes;
+	}
+
+	/** Opens the journal, and returns the entries that were appended but never completed by a
+	 *  previous instance, in the order they were appended. Returns null if the journal is already
+	 *  open by another instance (in which case this instance can't be used).
+	 */
+	public synchronized List<Entry> open() throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "open: " + file);
+		if( channel != null ) {
+			Log.e(TAG, "spool already open");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		random_access_file = new RandomAccessFile(file, "rw");
+		channel = random_access_file.getChannel();
+		try {
+			lock = channel.tryLock();
+		}
+		catch(OverlappingFileLockException e) {
+			// locked by another instance in this process
+			lock = null;
+		}
+		if( lock == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "spool is locked by another instance");
+			random_access_file.close();
+			random_access_file = null;
+			channel = null;
+			return null;
+		}
+		try {
+			recover();
+			if( !pending.isEmpty() ) {
+				long position = channel.size();
+				for(Entry entry : pending.values()) {
+					position += writeMarker(record_recovered_c, entry.id, position);
+				}
+				channel.force(false);
+			}
+		}
+		catch(IOException e) {
+			close();
+			throw e;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "recovered " + pending.size() + " pending entries, spool size " + channel.size());
+		return new ArrayList<>(pending.values());
+	}
+
+	/** Closes the journal. Entries that haven't been completed remain pending for the next instance.
+	 */
+	public synchronized void close() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "close");
+		if( channel == null ) {
+			return;
+		}
+		try {
+			if( lock != null ) {
+				lock.release();
+			}
+			random_access_file.close();
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to close spool: " + e.getMessage());
+			e.printStackTrace();
+		}
+		lock = null;
+		random_access_file = null;
+		channel = null;
+		pending.clear();
+	}
+
+	public synchronized boolean isOpen() {
+		return channel != null;
+	}
+
+	/** Whether the storage has space to append an entry with the supplied size, leaving
+	 *  min_free_bytes free.
+	 */
+	public boolean hasSpaceFor(long bytes) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		return dir.getUsableSpace() - bytes >= min_free_bytes;
+	}
+
+	/** Appends an entry to the journal. When this returns, the entry has been written to the storage
+	 *  device.
+	 * @param metadata Data to be returned by Entry.getMetadata().
+	 * @param images   The images for the entry, which can be read back with readImages().
+	 */
+	public Entry append(byte [] metadata, List<byte []> images) throws IOException {
+		return appendBuffers(metadata, JpegBuffer.wrapAll(images));
+	}
+
+	/** As append(), but for images held in JpegBuffers, which are written without being copied.
+	 */
+	public synchronized Entry appendBuffers(byte [] metadata, List<JpegBuffer> images) throws IOException {
+		checkOpen();
+		long id = next_id++;
+		int n_images = images.size();
+		long payload_length = 4 + metadata.length + 4 + 4L * n_images;
+		for(JpegBuffer image : images) {
+			payload_length += image.getLength();
+		}
+		if( payload_length > Integer.MAX_VALUE ) {
+			throw new IOException("entry too large: " + payload_length);
+		}
+
+		// the images are written directly from their arrays, with the header and the length of each image in separate buffers
+		ByteBuffer [] buffers = new ByteBuffer[2*n_images + 2];
+		CRC32 crc = new CRC32();
+		ByteBuffer header = ByteBuffer.allocate(header_size_c + 4 + metadata.length + 4);
+		header.putInt(record_magic_c);
+		header.put(record_entry_c);
+		header.putLong(id);
+		header.putInt((int)payload_length);
+		header.putInt(metadata.length);
+		header.put(metadata);
+		header.putInt(n_images);
+		header.flip();
+		crc.update(header.array(), 4, header.limit() - 4);
+		buffers[0] = header;
+		long start = channel.size();
+		long [] image_offsets = new long[n_images];
+		int [] image_lengths = new int[n_images];
+		long offset = start + header.limit();
+		for(int i=0;i<n_images;i++) {
+			JpegBuffer image = images.get(i);
+			int image_length = image.getLength();
+			ByteBuffer length = ByteBuffer.allocate(4);
+			length.putInt(image_length);
+			length.flip();
+			crc.update(length.array(), 0, 4);
+			crc.update(image.getArray(), 0, image_length);
+			buffers[2*i+1] = length;
+			buffers[2*i+2] = ByteBuffer.wrap(image.getArray(), 0, image_length);
+			image_offsets[i] = offset + 4;
+			image_lengths[i] = image_length;
+			offset += 4 + image_length;
+		}
+		ByteBuffer trailer = ByteBuffer.allocate(crc_size_c);
+		trailer.putInt((int)crc.getValue());
+		trailer.flip();
+		buffers[buffers.length-1] = trailer;
+
+		writeFully(buffers, start);
+		channel.force(false);
+
+		Entry entry = new Entry(id, metadata, image_offsets, image_lengths);
+		pending.put(id, entry);
+		if( MyDebug.LOG )
+			Log.d(TAG, "appended entry " + id + " with " + n_images + " images, spool size " + channel.size());
+		return entry;
+	}
+
+	/** Reads the images of an entry.
+	 */
+	public synchronized List<byte []> readImages(Entry entry) throws IOException {
+		checkOpen();
+		List<byte []> images = new ArrayList<>();
+		for(int i=0;i<entry.image_offsets.length;i++) {
+			byte [] image = new byte[entry.image_lengths[i]];
+			readFully(ByteBuffer.wrap(image), entry.image_offsets[i]);
+			images.add(image);
+		}
+		return images;
+	}
+
+	/** Marks an entry as done, so it won't be returned by open() in future. When this returns, the
+	 *  record has been written to the storage device. If this was the last pending entry, the
+	 *  journal is truncated.
+	 */
+	public synchronized void complete(Entry entry) throws IOException {
+		checkOpen();
+		if( pending.remove(entry.id) == null ) {
+			Log.e(TAG, "entry " + entry.id + " isn't pending");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		if( pending.isEmpty() ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no entries pending, truncate spool");
+			channel.truncate(0);
+			channel.force(false);
+			return;
+		}
+		writeMarker(record_complete_c, entry.id, channel.size());
+		channel.force(false);
+	}
+
+	/** Returns the number of entries appended but not yet completed.
+	 */
+	public synchronized int getNPending() {
+		return pending.size();
+	}
+
+	/** Returns the size of the journal file.
+	 */
+	public synchronized long getSize() throws IOException {
+		checkOpen();
+		return channel.size();
+	}
+
+	private void checkOpen() throws IOException {
+		if( channel == null ) {
+			// not a programming error, as the spool may be closed whilst other threads are still saving
+			throw new IOException("spool isn't open");
+		}
+	}
+
+	/** Writes a record with no payload for the entry id, at position. Returns the size of the record.
+	 */
+	private int writeMarker(byte type, long id, long position) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(header_size_c + crc_size_c);
+		record.putInt(record_magic_c);
+		record.put(type);
+		record.putLong(id);
+		record.putInt(0);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, header_size_c - 4);
+		record.putInt((int)crc.getValue());
+		record.flip();
+		writeFully(new ByteBuffer[]{record}, position);
+		return header_size_c + crc_size_c;
+	}
+
+	/** Reads the records in the journal, to find the pending entries, and truncates any records
+	 *  that weren't written completely.
+	 */
+	private void recover() throws IOException {
+		pending.clear();
+		next_id = 0;
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(header_size_c);
+		ByteBuffer int_buffer = ByteBuffer.allocate(4);
+		ByteBuffer chunk = ByteBuffer.allocate(64*1024);
+		CRC32 crc = new CRC32();
+		while( position < size ) {
+			if( size - position < header_size_c + crc_size_c ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "truncated record header at " + position);
+				break;
+			}
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			int magic = header.getInt();
+			byte type = header.get();
+			long id = header.getLong();
+			int payload_length = header.getInt();
+			if( magic != record_magic_c || payload_length < 0 || payload_length > size - position - header_size_c - crc_size_c ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "invalid record header at " + position);
+				break;
+			}
+			crc.reset();
+			crc.update(header.array(), 4, header_size_c - 4);
+			long payload_start = position + header_size_c;
+			long payload_end = payload_start + payload_length;
+
+			Entry entry = null;
+			if( type == record_entry_c ) {
+				entry = readEntry(id, payload_start, payload_end, crc, int_buffer, chunk);
+				if( entry == null ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "invalid entry at " + position);
+					break;
+				}
+			}
+			else if( (type != record_complete_c && type != record_recovered_c) || payload_length != 0 ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "invalid record type " + type + " at " + position);
+				break;
+			}
+
+			int_buffer.clear();
+			readFully(int_buffer, payload_end);
+			int_buffer.flip();
+			if( int_buffer.getInt() != (int)crc.getValue() ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "checksum mismatch for record at " + position);
+				break;
+			}
+			position = payload_end + crc_size_c;
+
+			if( entry != null ) {
+				pending.put(id, entry);
+			}
+			else if( type == record_complete_c ) {
+				pending.remove(id);
+			}
+			else {
+				Entry recovered = pending.get(id);
+				if( recovered != null ) {
+					recovered.n_recoveries++;
+				}
+			}
+			next_id = Math.max(next_id, id+1);
+		}
+		if( position < size ) {
+			// stopped at an invalid record - anything from here on can't be trusted
+			if( MyDebug.LOG )
+				Log.d(TAG, "truncate spool from " + size + " to " + position);
+		}
+		if( pending.isEmpty() ) {
+			position = 0;
+		}
+		if( position < size ) {
+			channel.truncate(position);
+			channel.force(false);
+		}
+	}
+
+	/** Reads the payload of an entry record, in [start, end), updating crc. Returns null if the
+	 *  payload isn't valid.
+	 */
+	private Entry readEntry(long id, long start, long end, CRC32 crc, ByteBuffer int_buffer, ByteBuffer chunk) throws IOException {
+		long position = start;
+		if( end - position < 4 )
+			return null;
+		int metadata_length = readInt(position, crc, int_buffer);
+		position += 4;
+		if( metadata_length < 0 || metadata_length > end - position - 4 )
+			return null;
+		byte [] metadata = new byte[metadata_length];
+		readFully(ByteBuffer.wrap(metadata), position);
+		crc.update(metadata, 0, metadata_length);
+		position += metadata_length;
+		int n_images = readInt(position, crc, int_buffer);
+		position += 4;
+		if( n_images < 0 || n_images > (end - position)/4 )
+			return null;
+		long [] image_offsets = new long[n_images];
+		int [] image_lengths = new int[n_images];
+		for(int i=0;i<n_images;i++) {
+			if( end - position < 4 )
+				return null;
+			int length = readInt(position, crc, int_buffer);
+			position += 4;
+			if( length < 0 || length > end - position )
+				return null;
+			image_offsets[i] = position;
+			image_lengths[i] = length;
+			// the images aren't held in memory, only checksummed
+			long image_end = position + length;
+			while( position < image_end ) {
+				chunk.clear();
+				chunk.limit((int)Math.min(chunk.capacity(), image_end - position));
+				readFully(chunk, position);
+				crc.update(chunk.array(), 0, chunk.limit());
+				position += chunk.limit();
+			}
+		}
+		if( position != end )
+			return null;
+		return new Entry(id, metadata, image_offsets, image_lengths);
+	}
+
+	private int readInt(long position, CRC32 crc, ByteBuffer int_buffer) throws IOException {
+		int_buffer.clear();
+		readFully(int_buffer, position);
+		crc.update(int_buffer.array(), 0, 4);
+		int_buffer.flip();
+		return int_buffer.getInt();
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while( buffer.hasRemaining() ) {
+			int n_read = channel.read(buffer, position);
+			if( n_read < 0 ) {
+				throw new IOException("unexpected end of spool");
+			}
+			position += n_read;
+		}
+	}
+
+	private void writeFully(ByteBuffer [] buffers, long position) throws IOException {
+		channel.position(position);
+		int index = 0;
+		while( index < buffers.length ) {
+			channel.write(buffers, index, buffers.length - index);
+			while( index < buffers.length && !buffers[index].hasRemaining() ) {
+				index++;
+			}
+		}
+	}
+}
@@ -0,0 +1,650 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Reads and writes the Exif tags of a jpeg directly on the jpeg data, so that tags can be read and
+ *  modified without writing the jpeg to a file for ExifInterface, and then reading it back or
+ *  rewriting it.
+ *  parse() reads the APP1/Exif segment of a jpeg (or starts with no tags, if the jpeg doesn't have
+ *  one). The tags can then be read and modified, and writeJpeg() writes a jpeg with the new APP1
+ *  segment, replacing any APP1/Exif segment the jpeg already had, in a single pass. For a jpeg that's
+ *  still being encoded, insertingStream() instead adds the segment as the jpeg is written.
+ *  The tags of the primary image (IFD0), Exif, GPS and Interoperability IFDs are supported, along
+ *  with the thumbnail (IFD1). Values are stored as their raw bytes, so tags that aren't modified
+ *  are written back unchanged (though note that a MakerNote that refers to offsets within the TIFF
+ *  data may no longer be valid, as the data may be moved).
+ */
+public class ExifRewriter {
+	private static final String TAG = "ExifRewriter";
+
+	public enum Ifd {
+		IFD_0, // primary image
+		IFD_EXIF,
+		IFD_GPS,
+		IFD_INTEROP
+	}
+
+	// IFD0
+	public static final int TAG_IMAGE_WIDTH = 0x0100;
+	public static final int TAG_IMAGE_LENGTH = 0x0101;
+	public static final int TAG_ORIENTATION = 0x0112;
+	public static final int TAG_DATETIME = 0x0132;
+	public static final int TAG_ARTIST = 0x013B;
+	public static final int TAG_COPYRIGHT = 0x8298;
+	// IFD1
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+	// Exif IFD
+	public static final int TAG_EXPOSURE_TIME = 0x829A;
+	public static final int TAG_DATETIME_ORIGINAL = 0x9003;
+	public static final int TAG_DATETIME_DIGITIZED = 0x9004;
+	public static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+	public static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+	// GPS IFD
+	public static final int TAG_GPS_TIMESTAMP = 0x0007;
+	public static final int TAG_GPS_IMG_DIRECTION_REF = 0x0010;
+	public static final int TAG_GPS_IMG_DIRECTION = 0x0011;
+	public static final int TAG_GPS_DATESTAMP = 0x001D;
+	// pointers to other IFDs - these aren't stored as tags, but regenerated when writing
+	private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+	private static final int TAG_GPS_IFD_POINTER = 0x8825;
+	private static final int TAG_INTEROP_IFD_POINTER = 0xA005;
+
+	public static final int TYPE_BYTE = 1;
+	public static final int TYPE_ASCII = 2;
+	public static final int TYPE_SHORT = 3;
+	public static final int TYPE_LONG = 4;
+	public static final int TYPE_RATIONAL = 5;
+	public static final int TYPE_UNDEFINED = 7;
+	private static final int [] type_sizes = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+	public static final int ORIENTATION_UNDEFINED = 0;
+	public static final int ORIENTATION_NORMAL = 1;
+
+	private static final int max_segment_length_c = 65535; // segment length (including the length field itself) is stored as 16-bit
+	private static final byte [] exif_header = {'E', 'x', 'i', 'f', 0, 0};
+	private static final Charset ascii_charset = Charset.forName("US-ASCII");
+
+	/** A single tag value, stored as raw bytes in the byte order of this ExifRewriter.
+	 */
+	private static class Entry {
+		final int type;
+		final int count;
+		final byte [] value;
+
+		Entry(int type, int count, byte [] value) {
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+	}
+
+	private final ByteOrder byte_order;
+	private final List<TreeMap<Integer, Entry>> ifds = new ArrayList<>(); // indexed by Ifd; TIFF requires tags in ascending order
+	private final TreeMap<Integer, Entry> ifd1 = new TreeMap<>(); // thumbnail IFD, excluding the offset and length of the thumbnail
+	private byte [] thumbnail; // jpeg thumbnail, or null if none
+
+	private ExifRewriter(ByteOrder byte_order) {
+		this.byte_order = byte_order;
+		for(int i=0;i<Ifd.values().length;i++) {
+			ifds.add(new TreeMap<Integer, Entry>());
+		}
+	}
+
+	/** Reads the Exif tags from the jpeg data. If the jpeg doesn't have an APP1/Exif segment, the
+	 *  returned object has no tags (so tags can still be added).
+	 * @throws IOException If the data isn't a jpeg, or the Exif data is malformed.
+	 */
+	public static ExifRewriter parse(byte [] jpeg) throws IOException {
+		return parse(jpeg, jpeg.length);
+	}
+
+	/** As parse(byte []), for a jpeg held in the first length bytes of the array.
+	 */
+	public static ExifRewriter parse(byte [] jpeg, int length) throws IOException {
+		int [] app1 = findExifSegment(jpeg, length);
+		if( app1 == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no exif segment");
+			return new ExifRewriter(ByteOrder.BIG_ENDIAN);
+		}
+		int tiff_start = app1[0] + 4 + exif_header.length; // skip marker, length and exif header
+		int tiff_length = app1[1] - 2 - exif_header.length;
+		if( tiff_length < 8 ) {
+			throw new IOException("exif segment too short");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(jpeg, tiff_start, tiff_length).slice();
+		ByteOrder byte_order;
+		if( buffer.get(0) == 'I' && buffer.get(1) == 'I' )
+			byte_order = ByteOrder.LITTLE_ENDIAN;
+		else if( buffer.get(0) == 'M' && buffer.get(1) == 'M' )
+			byte_order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException("unknown tiff byte order");
+		buffer.order(byte_order);
+		if( (buffer.getShort(2) & 0xffff) != 0x2A ) {
+			throw new IOException("invalid tiff header");
+		}
+
+		ExifRewriter exif = new ExifRewriter(byte_order);
+		int ifd0_offset = buffer.getInt(4);
+		int ifd1_offset = exif.readIfd(buffer, ifd0_offset, exif.ifds.get(Ifd.IFD_0.ordinal()), true);
+		if( ifd1_offset != 0 ) {
+			try {
+				exif.readIfd(buffer, ifd1_offset, exif.ifd1, false);
+				exif.readThumbnail(buffer);
+			}
+			catch(IOException e) {
+				// not critical, so just drop the thumbnail
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to read thumbnail ifd: " + e.getMessage());
+				exif.removeThumbnail();
+			}
+		}
+		return exif;
+	}
+
+	/** Returns the start and length (excluding the marker, but including the length field) of the
+	 *  APP1/Exif segment, or null if there isn't one.
+	 */
+	private static int [] findExifSegment(byte [] jpeg, int jpeg_length) throws IOException {
+		if( jpeg_length < 4 || (jpeg[0] & 0xff) != 0xFF || (jpeg[1] & 0xff) != 0xD8 ) {
+			throw new IOException("not a jpeg");
+		}
+		int pos = 2;
+		while( pos + 4 <= jpeg_length ) {
+			if( (jpeg[pos] & 0xff) != 0xFF ) {
+				throw new IOException("invalid jpeg marker at " + pos);
+			}
+			int marker = jpeg[pos+1] & 0xff;
+			if( marker == 0xFF ) {
+				// fill byte
+				pos++;
+				continue;
+			}
+			if( marker == 0xDA || marker == 0xD9 ) {
+				// start of scan or end of image - Exif must come before this
+				break;
+			}
+			int length = ((jpeg[pos+2] & 0xff) << 8) | (jpeg[pos+3] & 0xff);
+			if( length < 2 || pos + 2 + length > jpeg_length ) {
+				throw new IOException("invalid jpeg segment length at " + pos);
+			}
+			if( marker == 0xE1 && isExifSegment(jpeg, pos, length) ) {
+				return new int[]{pos, length};
+			}
+			pos += 2 + length;
+		}
+		return null;
+	}
+
+	private static boolean isExifSegment(byte [] jpeg, int pos, int length) {
+		if( length < 2 + exif_header.length )
+			return false;
+		for(int i=0;i<exif_header.length;i++) {
+			if( jpeg[pos+4+i] != exif_header[i] )
+				return false;
+		}
+		return true;
+	}
+
+	/** Reads the entries of an IFD into the map.
+	 * @param follow_pointers Whether to read the Exif, GPS and Interoperability IFDs that this IFD
+	 *                        points to.
+	 * @return The offset of the next IFD, or 0 if none.
+	 */
+	private int readIfd(ByteBuffer buffer, int offset, TreeMap<Integer, Entry> map, boolean follow_pointers) throws IOException {
+		if( offset < 8 || offset + 2 > buffer.limit() ) {
+			throw new IOException("invalid ifd offset " + offset);
+		}
+		int n_entries = buffer.getShort(offset) & 0xffff;
+		if( offset + 2 + 12*n_entries + 4 > buffer.limit() ) {
+			throw new IOException("ifd at " + offset + " too long: " + n_entries);
+		}
+		for(int i=0;i<n_entries;i++) {
+			int entry_offset = offset + 2 + 12*i;
+			int tag = buffer.getShort(entry_offset) & 0xffff;
+			int type = buffer.getShort(entry_offset+2) & 0xffff;
+			int count = buffer.getInt(entry_offset+4);
+			if( follow_pointers && (tag == TAG_EXIF_IFD_POINTER || tag == TAG_GPS_IFD_POINTER || tag == TAG_INTEROP_IFD_POINTER) ) {
+				int sub_offset = buffer.getInt(entry_offset+8);
+				Ifd sub_ifd = tag == TAG_EXIF_IFD_POINTER ? Ifd.IFD_EXIF : tag == TAG_GPS_IFD_POINTER ? Ifd.IFD_GPS : Ifd.IFD_INTEROP;
+				// n.b., don't follow pointers from the sub-IFDs other than the Exif IFD, to avoid loops
+				readIfd(buffer, sub_offset, ifds.get(sub_ifd.ordinal()), sub_ifd == Ifd.IFD_EXIF);
+				continue;
+			}
+			if( type <= 0 || type >= type_sizes.length || count < 0 ) {
+				// unknown type, so we don't know its size - skip
+				if( MyDebug.LOG )
+					Log.d(TAG, "skip tag " + tag + " with unknown type " + type);
+				continue;
+			}
+			long size = (long)count * type_sizes[type];
+			int value_offset = size <= 4 ? entry_offset+8 : buffer.getInt(entry_offset+8);
+			if( value_offset < 0 || value_offset + size > buffer.limit() ) {
+				throw new IOException("invalid value offset for tag " + tag);
+			}
+			byte [] value = new byte[(int)size];
+			for(int j=0;j<size;j++) {
+				value[j] = buffer.get(value_offset+j);
+			}
+			map.put(tag, new Entry(type, count, value));
+		}
+		return buffer.getInt(offset + 2 + 12*n_entries);
+	}
+
+	private void readThumbnail(ByteBuffer buffer) throws IOException {
+		Entry offset_entry = ifd1.remove(TAG_JPEG_INTERCHANGE_FORMAT);
+		Entry length_entry = ifd1.remove(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+		if( offset_entry == null || length_entry == null ) {
+			// no jpeg thumbnail (could be an uncompressed thumbnail, which we don't support)
+			removeThumbnail();
+			return;
+		}
+		long offset = getLong(offset_entry, 0);
+		long length = getLong(length_entry, 0);
+		if( offset < 8 || length <= 0 || offset + length > buffer.limit() ) {
+			throw new IOException("invalid thumbnail offset " + offset + " length " + length);
+		}
+		thumbnail = new byte[(int)length];
+		for(int i=0;i<length;i++) {
+			thumbnail[i] = buffer.get((int)offset+i);
+		}
+	}
+
+	private long getLong(Entry entry, int index) {
+		ByteBuffer value = ByteBuffer.wrap(entry.value).order(byte_order);
+		if( entry.type == TYPE_SHORT )
+			return value.getShort(2*index) & 0xffff;
+		else if( entry.type == TYPE_LONG )
+			return value.getInt(4*index) & 0xffffffffL;
+		else if( entry.type == TYPE_BYTE )
+			return value.get(index) & 0xff;
+		return -1;
+	}
+
+	public ByteOrder getByteOrder() {
+		return byte_order;
+	}
+
+	public boolean hasAttribute(Ifd ifd, int tag) {
+		return ifds.get(ifd.ordinal()).containsKey(tag);
+	}
+
+	/** Returns the value of an ASCII tag, or null if the tag isn't present or isn't ASCII.
+	 */
+	public String getAscii(Ifd ifd, int tag) {
+		Entry entry = ifds.get(ifd.ordinal()).get(tag);
+		if( entry == null || entry.type != TYPE_ASCII )
+			return null;
+		int length = entry.value.length;
+		while( length > 0 && entry.value[length-1] == 0 ) {
+			// remove null terminator
+			length--;
+		}
+		return new String(entry.value, 0, length, ascii_charset);
+	}
+
+	/** Returns the value of a BYTE, SHORT or LONG tag, or -1 if the tag isn't present or is of a
+	 *  different type.
+	 */
+	public long getInt(Ifd ifd, int tag) {
+		Entry entry = ifds.get(ifd.ordinal()).get(tag);
+		if( entry == null || entry.count < 1 )
+			return -1;
+		return getLong(entry, 0);
+	}
+
+	/** Returns the numerator and denominator of a RATIONAL tag, or null if the tag isn't present or
+	 *  isn't RATIONAL.
+	 * @param index The index of the value, for tags with multiple values.
+	 */
+	public long [] getRational(Ifd ifd, int tag, int index) {
+		Entry entry = ifds.get(ifd.ordinal()).get(tag);
+		if( entry == null || entry.type != TYPE_RATIONAL || index >= entry.count )
+			return null;
+		ByteBuffer value = ByteBuffer.wrap(entry.value).order(byte_order);
+		return new long[]{value.getInt(8*index) & 0xffffffffL, value.getInt(8*index+4) & 0xffffffffL};
+	}
+
+	/** Returns the orientation tag, or ORIENTATION_UNDEFINED if not present.
+	 */
+	public int getOrientation() {
+		long orientation = getInt(Ifd.IFD_0, TAG_ORIENTATION);
+		return orientation == -1 ? ORIENTATION_UNDEFINED : (int)orientation;
+	}
+
+	public void setAscii(Ifd ifd, int tag, String string) {
+		byte [] bytes = string.getBytes(ascii_charset);
+		byte [] value = new byte[bytes.length+1]; // include null terminator
+		System.arraycopy(bytes, 0, value, 0, bytes.length);
+		ifds.get(ifd.ordinal()).put(tag, new Entry(TYPE_ASCII, value.length, value));
+	}
+
+	public void setShort(Ifd ifd, int tag, int short_value) {
+		ByteBuffer value = ByteBuffer.allocate(2).order(byte_order);
+		value.putShort(0, (short)short_value);
+		ifds.get(ifd.ordinal()).put(tag, new Entry(TYPE_SHORT, 1, value.array()));
+	}
+
+	public void setLong(Ifd ifd, int tag, long long_value) {
+		ByteBuffer value = ByteBuffer.allocate(4).order(byte_order);
+		value.putInt(0, (int)long_value);
+		ifds.get(ifd.ordinal()).put(tag, new Entry(TYPE_LONG, 1, value.array()));
+	}
+
+	/** Sets a RATIONAL tag.
+	 * @param values Pairs of numerator and denominator.
+	 */
+	public void setRational(Ifd ifd, int tag, long... values) {
+		if( values.length == 0 || values.length % 2 != 0 ) {
+			Log.e(TAG, "rational values should be pairs of numerator and denominator: " + values.length);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		ByteBuffer value = ByteBuffer.allocate(4*values.length).order(byte_order);
+		for(int i=0;i<values.length;i++) {
+			value.putInt(4*i, (int)values[i]);
+		}
+		ifds.get(ifd.ordinal()).put(tag, new Entry(TYPE_RATIONAL, values.length/2, value.array()));
+	}
+
+	public void removeAttribute(Ifd ifd, int tag) {
+		ifds.get(ifd.ordinal()).remove(tag);
+	}
+
+	public boolean hasThumbnail() {
+		return thumbnail != null;
+	}
+
+	/** Returns the jpeg thumbnail, or null if none.
+	 */
+	public byte [] getThumbnail() {
+		return thumbnail;
+	}
+
+	public void removeThumbnail() {
+		thumbnail = null;
+		ifd1.clear();
+	}
+
+	/** Returns the size of an IFD, including the data for values that don't fit in the entries.
+	 */
+	private static int getIfdSize(TreeMap<Integer, Entry> map, int n_extra_entries) {
+		int size = 2 + 12*(map.size() + n_extra_entries) + 4;
+		for(Entry entry : map.values()) {
+			if( entry.value.length > 4 ) {
+				size += entry.value.length + (entry.value.length % 2); // keep word alignment
+			}
+		}
+		return size;
+	}
+
+	/** Writes an IFD at the buffer's position.
+	 * @param pointers Extra entries of LONG values to write, as pairs of tag and value, or null.
+	 */
+	private static void writeIfd(ByteBuffer buffer, TreeMap<Integer, Entry> map, int [] pointers, int next_ifd_offset) {
+		TreeMap<Integer, Entry> all = map;
+		if( pointers != null ) {
+			all = new TreeMap<>(map);
+			for(int i=0;i<pointers.length;i+=2) {
+				ByteBuffer value = ByteBuffer.allocate(4).order(buffer.order());
+				value.putInt(0, pointers[i+1]);
+				all.put(pointers[i], new Entry(TYPE_LONG, 1, value.array()));
+			}
+		}
+		int ifd_offset = buffer.position();
+		int data_offset = ifd_offset + 2 + 12*all.size() + 4;
+		buffer.putShort((short)all.size());
+		for(Map.Entry<Integer, Entry> map_entry : all.entrySet()) {
+			Entry entry = map_entry.getValue();
+			buffer.putShort((short)(int)map_entry.getKey());
+			buffer.putShort((short)entry.type);
+			buffer.putInt(entry.count);
+			if( entry.value.length <= 4 ) {
+				buffer.put(entry.value);
+				for(int i=entry.value.length;i<4;i++) {
+					buffer.put((byte)0);
+				}
+			}
+			else {
+				buffer.putInt(data_offset);
+				int pos = buffer.position();
+				buffer.position(data_offset);
+				buffer.put(entry.value);
+				if( entry.value.length % 2 != 0 ) {
+					buffer.put((byte)0);
+				}
+				data_offset = buffer.position();
+				buffer.position(pos);
+			}
+		}
+		buffer.putInt(next_ifd_offset);
+		buffer.position(data_offset);
+	}
+
+	/** Returns the TIFF data (the Exif data following the Exif header).
+	 */
+	private byte [] getTiffData() {
+		TreeMap<Integer, Entry> ifd0 = ifds.get(Ifd.IFD_0.ordinal());
+		TreeMap<Integer, Entry> ifd_exif = ifds.get(Ifd.IFD_EXIF.ordinal());
+		TreeMap<Integer, Entry> ifd_gps = ifds.get(Ifd.IFD_GPS.ordinal());
+		TreeMap<Integer, Entry> ifd_interop = ifds.get(Ifd.IFD_INTEROP.ordinal());
+		boolean has_interop = ifd_interop.size() > 0;
+		// the Exif IFD is needed to point to the Interoperability IFD
+		boolean has_exif = ifd_exif.size() > 0 || has_interop;
+		boolean has_gps = ifd_gps.size() > 0;
+		boolean has_thumbnail = thumbnail != null;
+
+		int n_ifd0_pointers = (has_exif ? 1 : 0) + (has_gps ? 1 : 0);
+		int ifd0_offset = 8;
+		int exif_offset = ifd0_offset + getIfdSize(ifd0, n_ifd0_pointers);
+		int interop_offset = exif_offset + (has_exif ? getIfdSize(ifd_exif, has_interop ? 1 : 0) : 0);
+		int gps_offset = interop_offset + (has_interop ? getIfdSize(ifd_interop, 0) : 0);
+		int ifd1_offset = gps_offset + (has_gps ? getIfdSize(ifd_gps, 0) : 0);
+		int thumbnail_offset = ifd1_offset + (has_thumbnail ? getIfdSize(ifd1, 2) : 0);
+		int total_size = thumbnail_offset + (has_thumbnail ? thumbnail.length : 0);
+
+		ByteBuffer buffer = ByteBuffer.allocate(total_size).order(byte_order);
+		buffer.put((byte)(byte_order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+		buffer.put((byte)(byte_order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+		buffer.putShort((short)0x2A);
+		buffer.putInt(ifd0_offset);
+
+		int [] ifd0_pointers = new int[2*n_ifd0_pointers];
+		int n_pointers = 0;
+		if( has_exif ) {
+			ifd0_pointers[n_pointers++] = TAG_EXIF_IFD_POINTER;
+			ifd0_pointers[n_pointers++] = exif_offset;
+		}
+		if( has_gps ) {
+			ifd0_pointers[n_pointers++] = TAG_GPS_IFD_POINTER;
+			ifd0_pointers[n_pointers++] = gps_offset;
+		}
+		writeIfd(buffer, ifd0, ifd0_pointers, has_thumbnail ? ifd1_offset : 0);
+		if( has_exif ) {
+			writeIfd(buffer, ifd_exif, has_interop ? new int[]{TAG_INTEROP_IFD_POINTER, interop_offset} : null, 0);
+		}
+		if( has_interop ) {
+			writeIfd(buffer, ifd_interop, null, 0);
+		}
+		if( has_gps ) {
+			writeIfd(buffer, ifd_gps, null, 0);
+		}
+		if( has_thumbnail ) {
+			writeIfd(buffer, ifd1, new int[]{TAG_JPEG_INTERCHANGE_FORMAT, thumbnail_offset, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, thumbnail.length}, 0);
+			buffer.put(thumbnail);
+		}
+		return buffer.array();
+	}
+
+	/** Returns the APP1 segment for the Exif tags, including the marker.
+	 * @throws IOException If the Exif data is too large for a jpeg segment, even without the
+	 *                     thumbnail.
+	 */
+	public byte [] getApp1Segment() throws IOException {
+		byte [] tiff = getTiffData();
+		int length = 2 + exif_header.length + tiff.length;
+		if( length > max_segment_length_c && thumbnail != null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "exif too large, remove thumbnail: " + length);
+			removeThumbnail();
+			tiff = getTiffData();
+			length = 2 + exif_header.length + tiff.length;
+		}
+		if( length > max_segment_length_c ) {
+			throw new IOException("exif too large: " + length);
+		}
+		byte [] segment = new byte[2 + length];
+		segment[0] = (byte)0xFF;
+		segment[1] = (byte)0xE1;
+		segment[2] = (byte)(length >> 8);
+		segment[3] = (byte)length;
+		System.arraycopy(exif_header, 0, segment, 4, exif_header.length);
+		System.arraycopy(tiff, 0, segment, 4 + exif_header.length, tiff.length);
+		return segment;
+	}
+
+	/** Writes the jpeg to the output, with its APP1/Exif segment (if any) replaced by the supplied
+	 *  segment. The new APP1 segment is written straight after the start of image marker, or after an
+	 *  APP0/JFIF segment if the jpeg starts with one.
+	 * @param app1 The APP1 segment, see getApp1Segment().
+	 * @throws IOException If the data isn't a jpeg, or on failure to write. The jpeg is checked
+	 *                     before anything is written to the output.
+	 */
+	public static void writeJpeg(byte [] jpeg, byte [] app1, OutputStream output) throws IOException {
+		writeJpeg(jpeg, jpeg.length, app1, output);
+	}
+
+	/** As writeJpeg(byte [], byte [], OutputStream), for a jpeg held in the first length bytes of the
+	 *  array.
+	 */
+	public static void writeJpeg(byte [] jpeg, int length, byte [] app1, OutputStream output) throws IOException {
+		int [] old_app1 = findExifSegment(jpeg, length); // also checks this is a jpeg
+		int insert_pos = 2;
+		if( length >= 6 && (jpeg[2] & 0xff) == 0xFF && (jpeg[3] & 0xff) == 0xE0 ) {
+			// keep the JFIF segment first
+			int app0_length = ((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff);
+			insert_pos = 4 + app0_length;
+		}
+		if( insert_pos > length || (old_app1 != null && old_app1[0] < insert_pos) ) {
+			throw new IOException("invalid jpeg segment at start");
+		}
+		output.write(jpeg, 0, insert_pos);
+		output.write(app1);
+		if( old_app1 == null ) {
+			output.write(jpeg, insert_pos, length - insert_pos);
+		}
+		else {
+			int old_app1_end = old_app1[0] + 2 + old_app1[1];
+			output.write(jpeg, insert_pos, old_app1[0] - insert_pos);
+			output.write(jpeg, old_app1_end, length - old_app1_end);
+		}
+	}
+
+	/** Returns a stream that writes a jpeg to output with the supplied APP1 segment added, at the same
+	 *  position as writeJpeg(), without holding the jpeg in memory. This is for a jpeg that doesn't
+	 *  already have an APP1/Exif segment, such as one from Bitmap.compress().
+	 *  The returned stream should be closed once the jpeg has been written, which also closes output.
+	 * @param app1 The APP1 segment, see getApp1Segment().
+	 */
+	public static OutputStream insertingStream(OutputStream output, byte [] app1) {
+		return new InsertingOutputStream(output, app1);
+	}
+
+	private static class InsertingOutputStream extends FilterOutputStream {
+		private final byte [] app1;
+		private final byte [] header = new byte[6]; // start of image marker, and the marker and length of the first segment
+		private int header_length;
+		private int app0_remaining = -1; // bytes of the APP0 segment still to pass through before inserting, or -1 if not known yet
+		private boolean inserted;
+
+		InsertingOutputStream(OutputStream output, byte [] app1) {
+			super(output);
+			this.app1 = app1;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if( inserted ) {
+				out.write(b);
+			}
+			else if( app0_remaining >= 0 ) {
+				out.write(b);
+				app0_remaining--;
+				if( app0_remaining == 0 ) {
+					insert();
+				}
+			}
+			else {
+				header[header_length++] = (byte)b;
+				if( header_length == header.length ) {
+					writeHeader();
+				}
+			}
+		}
+
+		@Override
+		public void write(byte [] b, int off, int len) throws IOException {
+			while( len > 0 && !inserted ) {
+				write(b[off] & 0xff);
+				off++;
+				len--;
+			}
+			if( len > 0 ) {
+				out.write(b, off, len);
+			}
+		}
+
+		private void writeHeader() throws IOException {
+			if( (header[0] & 0xff) != 0xFF || (header[1] & 0xff) != 0xD8 ) {
+				throw new IOException("not a jpeg");
+			}
+			if( (header[2] & 0xff) == 0xFF && (header[3] & 0xff) == 0xE0 ) {
+				// keep the JFIF segment first
+				int app0_length = ((header[4] & 0xff) << 8) | (header[5] & 0xff);
+				if( app0_length < 2 ) {
+					throw new IOException("invalid jpeg segment at start");
+				}
+				out.write(header, 0, header.length);
+				app0_remaining = app0_length - 2;
+				if( app0_remaining == 0 ) {
+					insert();
+				}
+			}
+			else {
+				out.write(header, 0, 2);
+				insert();
+				out.write(header, 2, header.length - 2);
+			}
+		}
+
+		private void insert() throws IOException {
+			out.write(app1);
+			inserted = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if( !inserted ) {
+					throw new IOException("jpeg ended before the exif segment was written");
+				}
+			}
+			finally {
+				super.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,549 @@
+package io.wizkers.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Merges differently exposed images using exposure fusion (Mertens, Kautz and Van Reeth, "Exposure
+ *  Fusion", 2007), as an alternative to HDRProcessor's standard algorithm. Each pixel of each image
+ *  is weighted by its contrast, saturation and well-exposedness, and the images are blended with
+ *  these weights using Laplacian pyramids, so there is no need to estimate response functions or
+ *  tonemap the result.
+ *  The pyramids are built one level at a time: for each image we only keep the current level of its
+ *  Gaussian pyramid and weights (and level 1, which is needed again at the end), and the full
+ *  resolution level of the result is written directly to the output rather than stored. This avoids
+ *  storing a full pyramid per image, but memory is not bounded by a band of rows: the caller must
+ *  supply all of the images and the output at full resolution, and we allocate two full resolution
+ *  float buffers (for the sums of the weights, and temporarily the weights of one image), plus about
+ *  one frame's worth of floats per image for level 1 and the levels above. Each pass over a level is
+ *  split into bands of rows, which are processed in parallel on a ForkJoinPool.
+ */
+public class ExposureFusion {
+	private static final String TAG = "ExposureFusion";
+
+	public static final int default_min_level_size_c = 8;
+	private static final float sigma_c = 0.2f; // for well-exposedness
+	private static final float weight_epsilon_c = 1.0e-3f; // so that flat or grey regions don't have 0 weight
+	private static final int min_rows_per_task_c = 8; // don't split passes into bands smaller than this
+	private static final float [] exposedness_table = new float[256];
+
+	static {
+		for(int i=0;i<256;i++) {
+			float diff = i/255.0f - 0.5f;
+			exposedness_table[i] = (float)Math.exp( - diff*diff / (2.0f*sigma_c*sigma_c) );
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int min_level_size;
+
+	/**
+	 * @param pool           The pool to run the processing on. If null, a new pool is created with
+	 *                       parallelism equal to the number of available processors.
+	 * @param min_level_size Levels are added to the pyramids until the width or height is no more
+	 *                       than this.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public ExposureFusion(ForkJoinPool pool, int min_level_size) {
+		if( min_level_size <= 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "invalid min_level_size: " + min_level_size);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.pool = pool != null ? pool : new ForkJoinPool();
+		this.min_level_size = min_level_size;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/** Returns the number of pyramid levels used for an image of the supplied size, including the
+	 *  full resolution level.
+	 */
+	public int getNLevels(int width, int height) {
+		int n_levels = 1;
+		while( width > min_level_size && height > min_level_size ) {
+			width = (width+1)/2;
+			height = (height+1)/2;
+			n_levels++;
+		}
+		return n_levels;
+	}
+
+	/** An operation on a range of rows, which may run in parallel with other ranges.
+	 */
+	private interface RowOperation {
+		void run(int start_y, int stop_y);
+	}
+
+	private static class RowTask extends RecursiveAction {
+		private final RowOperation operation;
+		private final int start_y, stop_y;
+
+		RowTask(RowOperation operation, int start_y, int stop_y) {
+			this.operation = operation;
+			this.start_y = start_y;
+			this.stop_y = stop_y;
+		}
+
+		@Override
+		protected void compute() {
+			operation.run(start_y, stop_y);
+		}
+	}
+
+	/** Runs the operation over rows [0, height), split into bands that are run in parallel, and
+	 *  waits for them to complete.
+	 */
+	private void runRows(int height, RowOperation operation) {
+		int n_tasks = Math.max(1, Math.min(2*pool.getParallelism(), height/min_rows_per_task_c));
+		RowTask [] tasks = new RowTask[n_tasks];
+		for(int i=0;i<n_tasks;i++) {
+			tasks[i] = new RowTask(operation, (i*height)/n_tasks, ((i+1)*height)/n_tasks);
+			pool.execute(tasks[i]);
+		}
+		for(int i=0;i<n_tasks;i++) {
+			tasks[i].join();
+		}
+	}
+
+	/** The images to merge, with their alignment.
+	 */
+	private static class Images {
+		final int [][] argb;
+		final int width, height;
+		final int [] offsets_x, offsets_y;
+
+		Images(int [][] argb, int width, int height, int [] offsets_x, int [] offsets_y) {
+			this.argb = argb;
+			this.width = width;
+			this.height = height;
+			this.offsets_x = offsets_x;
+			this.offsets_y = offsets_y;
+		}
+
+		/** Returns the pixel from image i corresponding to (x, y) in the base image. Pixels outside
+		 *  of the image are clamped to the nearest edge.
+		 */
+		int getPixel(int i, int x, int y) {
+			int sx = Math.max(0, Math.min(width-1, x + offsets_x[i]));
+			int sy = Math.max(0, Math.min(height-1, y + offsets_y[i]));
+			return argb[i][sy*width + sx];
+		}
+
+		/** Returns the unnormalised weight of image i at (x, y) in the base image, or 0 if the
+		 *  aligned image doesn't cover this pixel.
+		 */
+		float getWeight(int i, int x, int y) {
+			int sx = x + offsets_x[i];
+			int sy = y + offsets_y[i];
+			if( sx < 0 || sx >= width || sy < 0 || sy >= height )
+				return 0.0f;
+			final int [] image = argb[i];
+			int row = sy*width;
+			int color = image[row + sx];
+			int r = (color >> 16) & 0xff;
+			int g = (color >> 8) & 0xff;
+			int b = color & 0xff;
+
+			// contrast: absolute value of the laplacian of the greyscale image
+			int grey = r + g + b;
+			int left = getGrey(image[row + Math.max(0, sx-1)]);
+			int right = getGrey(image[row + Math.min(width-1, sx+1)]);
+			int top = getGrey(image[Math.max(0, sy-1)*width + sx]);
+			int bottom = getGrey(image[Math.min(height-1, sy+1)*width + sx]);
+			float contrast = Math.abs(left + right + top + bottom - 4*grey) / (3.0f*255.0f);
+
+			// saturation: standard deviation of the colour channels
+			float mean = grey / 3.0f;
+			float dr = r - mean, dg = g - mean, db = b - mean;
+			float saturation = (float)Math.sqrt( (dr*dr + dg*dg + db*db) / 3.0f ) / 255.0f;
+
+			float exposedness = exposedness_table[r] * exposedness_table[g] * exposedness_table[b];
+			return (contrast + weight_epsilon_c) * (saturation + weight_epsilon_c) * exposedness;
+		}
+
+		private static int getGrey(int color) {
+			return ((color >> 16) & 0xff) + ((color >> 8) & 0xff) + (color & 0xff);
+		}
+
+		/** Returns the weight of image i at (x, y), normalised so that the weights of all images sum
+		 *  to 1.
+		 */
+		float getNormalisedWeight(int i, int x, int y, float weight_sum) {
+			if( weight_sum <= 0.0f ) {
+				// no image covers this pixel with a non-zero weight
+				return 1.0f / argb.length;
+			}
+			return getWeight(i, x, y) / weight_sum;
+		}
+	}
+
+	/** Stores the source indices and weights for upsampling a level of the pyramid along one
+	 *  dimension. Each output coordinate is a weighted sum of 3 source coordinates.
+	 */
+	private static class UpsampleTable {
+		final int [] indices;
+		final float [] weights;
+
+		UpsampleTable(int dst_size, int src_size) {
+			indices = new int[3*dst_size];
+			weights = new float[3*dst_size];
+			for(int x=0;x<dst_size;x++) {
+				int i = x/2;
+				if( x % 2 == 0 ) {
+					// equivalent to the [1 4 6 4 1]/8 filter applied to the source with zeroes inserted
+					indices[3*x] = Math.max(0, i-1);
+					indices[3*x+1] = i;
+					indices[3*x+2] = Math.min(src_size-1, i+1);
+					weights[3*x] = 1.0f/8.0f;
+					weights[3*x+1] = 6.0f/8.0f;
+					weights[3*x+2] = 1.0f/8.0f;
+				}
+				else {
+					indices[3*x] = i;
+					indices[3*x+1] = Math.min(src_size-1, i+1);
+					indices[3*x+2] = i;
+					weights[3*x] = 0.5f;
+					weights[3*x+1] = 0.5f;
+					weights[3*x+2] = 0.0f;
+				}
+			}
+		}
+	}
+
+	private static final float [] kernel_c = {1.0f/16.0f, 4.0f/16.0f, 6.0f/16.0f, 4.0f/16.0f, 1.0f/16.0f};
+
+	/** Returns the upsampled value of channel c at (x, y), for a source level with n_channels
+	 *  channels.
+	 */
+	private static float upsample(float [] src, int src_width, int n_channels, int c, UpsampleTable table_x, UpsampleTable table_y, int x, int y) {
+		float sum = 0.0f;
+		for(int a=0;a<3;a++) {
+			float wy = table_y.weights[3*y+a];
+			if( wy == 0.0f )
+				continue;
+			int row = table_y.indices[3*y+a]*src_width;
+			float row_sum = 0.0f;
+			for(int b=0;b<3;b++) {
+				row_sum += table_x.weights[3*x+b] * src[(row + table_x.indices[3*x+b])*n_channels + c];
+			}
+			sum += wy * row_sum;
+		}
+		return sum;
+	}
+
+	/** Reduces a level of the pyramid with a 5x5 binomial filter, with edges clamped.
+	 */
+	private void downsample(final float [] src, final int src_width, final int src_height, final int n_channels, final float [] dst, final int dst_width, int dst_height) {
+		runRows(dst_height, new RowOperation() {
+			@Override
+			public void run(int start_y, int stop_y) {
+				float [] row_sum = new float[n_channels];
+				for(int y=start_y;y<stop_y;y++) {
+					for(int x=0;x<dst_width;x++) {
+						int dst_index = (y*dst_width + x)*n_channels;
+						for(int c=0;c<n_channels;c++) {
+							dst[dst_index + c] = 0.0f;
+						}
+						for(int a=0;a<5;a++) {
+							int sy = Math.max(0, Math.min(src_height-1, 2*y+a-2));
+							for(int c=0;c<n_channels;c++) {
+								row_sum[c] = 0.0f;
+							}
+							for(int b=0;b<5;b++) {
+								int sx = Math.max(0, Math.min(src_width-1, 2*x+b-2));
+								int src_index = (sy*src_width + sx)*n_channels;
+								for(int c=0;c<n_channels;c++) {
+									row_sum[c] += kernel_c[b] * src[src_index + c];
+								}
+							}
+							for(int c=0;c<n_channels;c++) {
+								dst[dst_index + c] += kernel_c[a] * row_sum[c];
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** As downsample(), but reading the full resolution aligned image i.
+	 */
+	private void downsampleImage(final Images images, final int i, final float [] dst, final int dst_width, int dst_height) {
+		runRows(dst_height, new RowOperation() {
+			@Override
+			public void run(int start_y, int stop_y) {
+				for(int y=start_y;y<stop_y;y++) {
+					for(int x=0;x<dst_width;x++) {
+						float r = 0.0f, g = 0.0f, b = 0.0f;
+						for(int a=0;a<5;a++) {
+							int sy = Math.max(0, Math.min(images.height-1, 2*y+a-2));
+							float row_r = 0.0f, row_g = 0.0f, row_b = 0.0f;
+							for(int k=0;k<5;k++) {
+								int sx = Math.max(0, Math.min(images.width-1, 2*x+k-2));
+								int color = images.getPixel(i, sx, sy);
+								row_r += kernel_c[k] * ((color >> 16) & 0xff);
+								row_g += kernel_c[k] * ((color >> 8) & 0xff);
+								row_b += kernel_c[k] * (color & 0xff);
+							}
+							r += kernel_c[a] * row_r;
+							g += kernel_c[a] * row_g;
+							b += kernel_c[a] * row_b;
+						}
+						int dst_index = 3*(y*dst_width + x);
+						dst[dst_index] = r;
+						dst[dst_index+1] = g;
+						dst[dst_index+2] = b;
+					}
+				}
+			}
+		});
+	}
+
+	/** Adds the Laplacian level (level minus the upsampled next level) multiplied by the weights to
+	 *  result.
+	 */
+	private void accumulateLaplacian(final float [] result, final float [] level, final float [] weights, final int width, int height, final float [] next_level, final int next_width, final UpsampleTable table_x, final UpsampleTable table_y) {
+		runRows(height, new RowOperation() {
+			@Override
+			public void run(int start_y, int stop_y) {
+				for(int y=start_y;y<stop_y;y++) {
+					for(int x=0;x<width;x++) {
+						int index = y*width + x;
+						float weight = weights[index];
+						for(int c=0;c<3;c++) {
+							float laplacian = level[3*index+c] - upsample(next_level, next_width, 3, c, table_x, table_y, x, y);
+							result[3*index+c] += weight * laplacian;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** Adds the upsampled next level of the result to this level, to collapse the pyramid.
+	 */
+	private void addUpsampled(final float [] result, final int width, int height, final float [] next_level, final int next_width, final UpsampleTable table_x, final UpsampleTable table_y) {
+		runRows(height, new RowOperation() {
+			@Override
+			public void run(int start_y, int stop_y) {
+				for(int y=start_y;y<stop_y;y++) {
+					for(int x=0;x<width;x++) {
+						int index = 3*(y*width + x);
+						for(int c=0;c<3;c++) {
+							result[index+c] += upsample(next_level, next_width, 3, c, table_x, table_y, x, y);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private static int clampToByte(float value) {
+		int i = (int)(value + 0.5f);
+		return i < 0 ? 0 : i > 255 ? 255 : i;
+	}
+
+	/** Merges the images.
+	 * @param argb       The images, in ARGB format, each of size width*height.
+	 * @param offsets_x  The offsets for each image, as for HDRProcessor.autoAlignment(): image i is
+	 *                   evaluated at (x + offsets_x[i], y + offsets_y[i]) for pixel (x, y) of the
+	 *                   output. Pixels not covered by an image are given 0 weight for that image.
+	 * @param output     The output image, in ARGB format, of size width*height. Must not be one of the
+	 *                   input images.
+	 */
+	public void process(int [][] argb, final int width, final int height, int [] offsets_x, int [] offsets_y, final int [] output) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "process");
+			Log.d(TAG, "n_images: " + argb.length);
+			Log.d(TAG, "width: " + width);
+			Log.d(TAG, "height: " + height);
+		}
+		final int n_images = argb.length;
+		if( n_images == 0 || output.length != width*height ) {
+			Log.e(TAG, "invalid n_images " + n_images + " or output length " + output.length);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		for(int i=0;i<n_images;i++) {
+			if( argb[i] == output ) {
+				Log.e(TAG, "output must not be an input image");
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+			}
+		}
+		long time_s = System.currentTimeMillis();
+		final Images images = new Images(argb, width, height, offsets_x, offsets_y);
+		final int n_levels = getNLevels(width, height);
+		if( MyDebug.LOG )
+			Log.d(TAG, "n_levels: " + n_levels);
+
+		// sum of the weights at full resolution, so that we can normalise the weights
+		final float [] weight_sum = new float[width*height];
+		runRows(height, new RowOperation() {
+			@Override
+			public void run(int start_y, int stop_y) {
+				for(int y=start_y;y<stop_y;y++) {
+					for(int x=0;x<width;x++) {
+						float sum = 0.0f;
+						for(int i=0;i<n_images;i++) {
+							sum += images.getWeight(i, x, y);
+						}
+						weight_sum[y*width + x] = sum;
+					}
+				}
+			}
+		});
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after computing weights: " + (System.currentTimeMillis() - time_s));
+
+		if( n_levels == 1 ) {
+			// too small for a pyramid, so just blend the images
+			runRows(height, new RowOperation() {
+				@Override
+				public void run(int start_y, int stop_y) {
+					for(int y=start_y;y<stop_y;y++) {
+						for(int x=0;x<width;x++) {
+							float r = 0.0f, g = 0.0f, b = 0.0f;
+							for(int i=0;i<n_images;i++) {
+								float weight = images.getNormalisedWeight(i, x, y, weight_sum[y*width + x]);
+								int color = images.getPixel(i, x, y);
+								r += weight * ((color >> 16) & 0xff);
+								g += weight * ((color >> 8) & 0xff);
+								b += weight * (color & 0xff);
+							}
+							output[y*width + x] = 0xff000000 | (clampToByte(r) << 16) | (clampToByte(g) << 8) | clampToByte(b);
+						}
+					}
+				}
+			});
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time for process: " + (System.currentTimeMillis() - time_s));
+			return;
+		}
+
+		// level sizes
+		final int [] widths = new int[n_levels];
+		final int [] heights = new int[n_levels];
+		widths[0] = width;
+		heights[0] = height;
+		for(int l=1;l<n_levels;l++) {
+			widths[l] = (widths[l-1]+1)/2;
+			heights[l] = (heights[l-1]+1)/2;
+		}
+
+		// level 1 of the Gaussian pyramids of each image and its normalised weights
+		float [][] levels = new float[n_images][];
+		float [][] weights = new float[n_images][];
+		{
+			final float [] weight_buffer = new float[width*height];
+			for(int i=0;i<n_images;i++) {
+				final int index = i;
+				runRows(height, new RowOperation() {
+					@Override
+					public void run(int start_y, int stop_y) {
+						for(int y=start_y;y<stop_y;y++) {
+							for(int x=0;x<width;x++) {
+								weight_buffer[y*width + x] = images.getNormalisedWeight(index, x, y, weight_sum[y*width + x]);
+							}
+						}
+					}
+				});
+				weights[i] = new float[widths[1]*heights[1]];
+				downsample(weight_buffer, width, height, 1, weights[i], widths[1], heights[1]);
+				levels[i] = new float[3*widths[1]*heights[1]];
+				downsampleImage(images, i, levels[i], widths[1], heights[1]);
+			}
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after level 1: " + (System.currentTimeMillis() - time_s));
+
+		// level 1 of the images is needed again at the end, for the full resolution Laplacian levels
+		final float [][] levels_1 = levels.clone();
+
+		// the blended Laplacian pyramid, for levels 1 and above
+		float [][] results = new float[n_levels][];
+		for(int l=1;l<n_levels-1;l++) {
+			final int level_width = widths[l];
+			final int level_height = heights[l];
+			final int next_width = widths[l+1];
+			final int next_height = heights[l+1];
+			UpsampleTable table_x = new UpsampleTable(level_width, next_width);
+			UpsampleTable table_y = new UpsampleTable(level_height, next_height);
+			results[l] = new float[3*level_width*level_height];
+			for(int i=0;i<n_images;i++) {
+				float [] next_level = new float[3*next_width*next_height];
+				downsample(levels[i], level_width, level_height, 3, next_level, next_width, next_height);
+				accumulateLaplacian(results[l], levels[i], weights[i], level_width, level_height, next_level, next_width, table_x, table_y);
+				float [] next_weights = new float[next_width*next_height];
+				downsample(weights[i], level_width, level_height, 1, next_weights, next_width, next_height);
+				levels[i] = next_level;
+				weights[i] = next_weights;
+			}
+		}
+		{
+			// top level is the blended Gaussian level
+			final int top = n_levels-1;
+			float [] result = new float[3*widths[top]*heights[top]];
+			for(int i=0;i<n_images;i++) {
+				for(int j=0;j<widths[top]*heights[top];j++) {
+					float weight = weights[i][j];
+					for(int c=0;c<3;c++) {
+						result[3*j+c] += weight * levels[i][3*j+c];
+					}
+				}
+			}
+			results[top] = result;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after building pyramids: " + (System.currentTimeMillis() - time_s));
+
+		// collapse down to level 1
+		for(int l=n_levels-2;l>=1;l--) {
+			UpsampleTable table_x = new UpsampleTable(widths[l], widths[l+1]);
+			UpsampleTable table_y = new UpsampleTable(heights[l], heights[l+1]);
+			addUpsampled(results[l], widths[l], heights[l], results[l+1], widths[l+1], table_x, table_y);
+			results[l+1] = null;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after collapsing pyramid: " + (System.currentTimeMillis() - time_s));
+
+		// level 0: blend the full resolution Laplacian levels, and add the collapsed result from
+		// level 1, writing directly to the output
+		final float [] result_1 = results[1];
+		final int width_1 = widths[1];
+		final UpsampleTable table_x = new UpsampleTable(width, widths[1]);
+		final UpsampleTable table_y = new UpsampleTable(height, heights[1]);
+		runRows(height, new RowOperation() {
+			@Override
+			public void run(int start_y, int stop_y) {
+				float [] sum = new float[3];
+				for(int y=start_y;y<stop_y;y++) {
+					for(int x=0;x<width;x++) {
+						for(int c=0;c<3;c++) {
+							sum[c] = upsample(result_1, width_1, 3, c, table_x, table_y, x, y);
+						}
+						for(int i=0;i<n_images;i++) {
+							float weight = images.getNormalisedWeight(i, x, y, weight_sum[y*width + x]);
+							if( weight == 0.0f )
+								continue;
+							int color = images.getPixel(i, x, y);
+							sum[0] += weight * (((color >> 16) & 0xff) - upsample(levels_1[i], width_1, 3, 0, table_x, table_y, x, y));
+							sum[1] += weight * (((color >> 8) & 0xff) - upsample(levels_1[i], width_1, 3, 1, table_x, table_y, x, y));
+							sum[2] += weight * ((color & 0xff) - upsample(levels_1[i], width_1, 3, 2, table_x, table_y, x, y));
+						}
+						output[y*width + x] = 0xff000000 | (clampToByte(sum[0]) << 16) | (clampToByte(sum[1]) << 8) | clampToByte(sum[2]);
+					}
+				}
+			}
+		});
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for process: " + (System.currentTimeMillis() - time_s));
+	}
+}
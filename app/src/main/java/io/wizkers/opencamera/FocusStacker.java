@@ -0,0 +1,399 @@
+package io.wizkers.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Merges a focus bracketed burst into a single image where everything is in focus. The images are
+ *  aligned (see align()), then for each image we compute a map of sharpness for square tiles of the
+ *  image (using the same laplacian filter as calculate_sharpness.rs). Each output pixel is a weighted
+ *  average of the aligned input pixels, where the weights are interpolated from the sharpness of the
+ *  nearest tiles, and strongly favour the sharpest image.
+ *  The images are processed in bands of rows, read from a RowSource and written to a RowSink, so
+ *  that memory requirements depend on the band height and number of images, but not the image
+ *  height - so we never need to hold all the images decompressed in memory. The sharpness maps and
+ *  output for each band are computed in parallel on a ForkJoinPool.
+ */
+public class FocusStacker {
+	private static final String TAG = "FocusStacker";
+
+	public static final int default_tile_size_c = 16;
+	public static final int default_band_height_c = 128;
+	private static final float sharpness_epsilon_c = 1.0e-3f; // so that flat regions are averaged rather than having 0 weight
+	private static final int min_rows_per_task_c = 8; // don't split the output into bands smaller than this
+
+	/** Supplies rows of an input image.
+	 */
+	public interface RowSource {
+		/** Reads rows [start_y, start_y+n_rows) of image index into argb, in ARGB format, with width
+		 *  pixels per row. The rows will always be within the image. May be called from multiple
+		 *  threads at once, though never for the same image index.
+		 * @return False if the rows couldn't be read, in which case process() stops and returns false.
+		 */
+		boolean readRows(int index, int start_y, int n_rows, int [] argb);
+	}
+
+	/** Receives rows of the output image.
+	 */
+	public interface RowSink {
+		/** Called with rows [start_y, start_y+n_rows) of the output image, in ARGB format, with width
+		 *  pixels per row. Rows are supplied in order, and argb is only valid until this method
+		 *  returns.
+		 */
+		void writeRows(int start_y, int n_rows, int [] argb);
+	}
+
+	private final ForkJoinPool pool;
+	private final int tile_size;
+
+	/**
+	 * @param pool      The pool to run the processing on. If null, a new pool is created with
+	 *                  parallelism equal to the number of available processors.
+	 * @param tile_size The width and height of the tiles for which sharpness is computed.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public FocusStacker(ForkJoinPool pool, int tile_size) {
+		if( tile_size <= 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "invalid tile_size: " + tile_size);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.pool = pool != null ? pool : new ForkJoinPool();
+		this.tile_size = tile_size;
+	}
+
+	/** Returns the luminance value used for computing sharpness.
+	 */
+	private static int getLuminance(int color) {
+		int r = (color >> 16) & 0xff;
+		int g = (color >> 8) & 0xff;
+		int b = color & 0xff;
+		return (r + 2*g + b + 2) >> 2;
+	}
+
+	/** Computes the offsets to align the supplied images, using MTBPyramidAligner. The images will
+	 *  typically be reduced resolution versions of the images to be merged, in which case the
+	 *  offsets should be scaled up accordingly.
+	 * @param argb       The images, in ARGB format, each of size width*height.
+	 * @param base_index The index of the image that the other images are aligned to.
+	 * @param offsets_x  Returns the offsets, as for HDRProcessor.autoAlignment(): image i should be
+	 *                   evaluated at (x + offsets_x[i], y + offsets_y[i]) for pixel (x, y) of the
+	 *                   base image.
+	 */
+	public void align(int [][] argb, int width, int height, int base_index, int [] offsets_x, int [] offsets_y) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "align");
+		byte [][] luminances = new byte[argb.length][];
+		int [] median_values = new int[argb.length];
+		int [] histogram = new int[256];
+		for(int i=0;i<argb.length;i++) {
+			luminances[i] = new byte[width*height];
+			MTBPyramidAligner.computeLuminance(argb[i], 0, luminances[i], 0, width*height);
+			for(int j=0;j<256;j++) {
+				histogram[j] = 0;
+			}
+			for(int j=0;j<width*height;j++) {
+				histogram[luminances[i][j] & 0xff]++;
+			}
+			int count = 0;
+			for(int j=0;j<256;j++) {
+				count += histogram[j];
+				if( 2*count >= width*height ) {
+					median_values[i] = j;
+					break;
+				}
+			}
+		}
+		// as for HDRProcessor.autoAlignment() with try_harder, allow offsets up to 1/150th of the image size
+		int max_ideal_size = Math.max(width, height) / 150;
+		int initial_step_size = 1;
+		while( initial_step_size < max_ideal_size ) {
+			initial_step_size *= 2;
+		}
+		MTBPyramidAligner aligner = new MTBPyramidAligner(pool);
+		aligner.align(luminances, width, height, median_values, base_index, initial_step_size, 1, offsets_x, offsets_y);
+	}
+
+	/** Holds the state for processing a band of rows.
+	 */
+	private static class Band {
+		final int width, height;
+		final int [] offsets_x, offsets_y;
+		// rows of the output (aligned) image covered by this band
+		int y0, y1;
+		// tile rows for which sharpness is computed, [tile_y0, tile_y1)
+		int tile_y0, tile_y1;
+		// aligned rows for which luminance is computed, [lum_y0, lum_y1)
+		int lum_y0, lum_y1;
+		// rows of each input image that have been read, starting at row src_y0[i]
+		final int [] src_y0;
+		final int [][] rows;
+		final byte [][] luminances; // aligned luminance, starting at lum_y0
+		final float [][] sharpness; // sharpness for each tile, starting at tile_y0
+
+		Band(int n_images, int width, int height, int [] offsets_x, int [] offsets_y, int max_rows, int max_tile_rows, int n_tiles_x) {
+			this.width = width;
+			this.height = height;
+			this.offsets_x = offsets_x;
+			this.offsets_y = offsets_y;
+			this.src_y0 = new int[n_images];
+			this.rows = new int[n_images][width*max_rows];
+			this.luminances = new byte[n_images][width*max_rows];
+			this.sharpness = new float[n_images][max_tile_rows*n_tiles_x];
+		}
+
+		/** Returns the pixel from image i corresponding to (x, y) in the base image, where y is in
+		 *  [lum_y0, lum_y1). Pixels outside of the image are clamped to the nearest edge.
+		 */
+		int getPixel(int i, int x, int y) {
+			int sx = Math.max(0, Math.min(width-1, x + offsets_x[i]));
+			int sy = Math.max(0, Math.min(height-1, y + offsets_y[i]));
+			return rows[i][(sy - src_y0[i])*width + sx];
+		}
+	}
+
+	private static class ReadTask extends RecursiveAction {
+		private final RowSource source;
+		private final Band band;
+		private final int index;
+		boolean failed;
+
+		ReadTask(RowSource source, Band band, int index) {
+			this.source = source;
+			this.band = band;
+			this.index = index;
+		}
+
+		@Override
+		protected void compute() {
+			// the source rows needed for aligned rows [lum_y0, lum_y1)
+			int sy0 = Math.max(0, Math.min(band.height-1, band.lum_y0 + band.offsets_y[index]));
+			int sy1 = Math.max(0, Math.min(band.height-1, band.lum_y1 - 1 + band.offsets_y[index])) + 1;
+			band.src_y0[index] = sy0;
+			if( !source.readRows(index, sy0, sy1 - sy0, band.rows[index]) ) {
+				failed = true;
+				return;
+			}
+			byte [] luminance = band.luminances[index];
+			for(int y=band.lum_y0;y<band.lum_y1;y++) {
+				int row = (y - band.lum_y0)*band.width;
+				for(int x=0;x<band.width;x++) {
+					luminance[row + x] = (byte)getLuminance(band.getPixel(index, x, y));
+				}
+			}
+		}
+	}
+
+	/** Computes the sharpness for a row of tiles of one image.
+	 */
+	private static class SharpnessTask extends RecursiveAction {
+		private final Band band;
+		private final int index;
+		private final int tile_y;
+		private final int tile_size;
+		private final int n_tiles_x;
+
+		SharpnessTask(Band band, int index, int tile_y, int tile_size, int n_tiles_x) {
+			this.band = band;
+			this.index = index;
+			this.tile_y = tile_y;
+			this.tile_size = tile_size;
+			this.n_tiles_x = n_tiles_x;
+		}
+
+		@Override
+		protected void compute() {
+			final int width = band.width;
+			final byte [] luminance = band.luminances[index];
+			final float [] sharpness = band.sharpness[index];
+			final int start_y = tile_y*tile_size;
+			final int stop_y = Math.min(band.height, start_y + tile_size);
+			for(int tile_x=0;tile_x<n_tiles_x;tile_x++) {
+				final int start_x = tile_x*tile_size;
+				final int stop_x = Math.min(width, start_x + tile_size);
+				long sum = 0;
+				for(int y=start_y;y<stop_y;y++) {
+					// neighbouring rows are clamped to the image, which are always within the
+					// luminance rows for the band
+					int row = (y - band.lum_y0)*width;
+					int row_above = (Math.max(0, y-1) - band.lum_y0)*width;
+					int row_below = (Math.min(band.height-1, y+1) - band.lum_y0)*width;
+					for(int x=start_x;x<stop_x;x++) {
+						int centre = luminance[row + x] & 0xff;
+						int left = luminance[row + Math.max(0, x-1)] & 0xff;
+						int right = luminance[row + Math.min(width-1, x+1)] & 0xff;
+						int top = luminance[row_above + x] & 0xff;
+						int bottom = luminance[row_below + x] & 0xff;
+						// laplacian filter, as in calculate_sharpness.rs
+						sum += Math.abs(left + right + top + bottom - 4*centre);
+					}
+				}
+				sharpness[(tile_y - band.tile_y0)*n_tiles_x + tile_x] = sum / (float)((stop_x - start_x)*(stop_y - start_y));
+			}
+		}
+	}
+
+	/** Computes the output for a range of rows in the band.
+	 */
+	private static class MergeTask extends RecursiveAction {
+		private final Band band;
+		private final int start_y, stop_y;
+		private final int tile_size;
+		private final int n_tiles_x, n_tiles_y;
+		private final int [] output; // output for the band, starting at band.y0
+
+		MergeTask(Band band, int start_y, int stop_y, int tile_size, int n_tiles_x, int n_tiles_y, int [] output) {
+			this.band = band;
+			this.start_y = start_y;
+			this.stop_y = stop_y;
+			this.tile_size = tile_size;
+			this.n_tiles_x = n_tiles_x;
+			this.n_tiles_y = n_tiles_y;
+			this.output = output;
+		}
+
+		@Override
+		protected void compute() {
+			final int n_images = band.rows.length;
+			final float [] weights = new float[n_images];
+			for(int y=start_y;y<stop_y;y++) {
+				// interpolate between the centres of the tiles
+				float ty = (y + 0.5f)/tile_size - 0.5f;
+				int iy0 = (int)Math.floor(ty);
+				float beta = ty - iy0;
+				int iy1 = Math.min(n_tiles_y-1, iy0+1) - band.tile_y0;
+				iy0 = Math.max(0, iy0) - band.tile_y0;
+				int out_row = (y - band.y0)*band.width;
+				for(int x=0;x<band.width;x++) {
+					float tx = (x + 0.5f)/tile_size - 0.5f;
+					int ix0 = (int)Math.floor(tx);
+					float alpha = tx - ix0;
+					int ix1 = Math.min(n_tiles_x-1, ix0+1);
+					ix0 = Math.max(0, ix0);
+
+					float sum_weight = 0.0f;
+					for(int i=0;i<n_images;i++) {
+						final float [] sharpness = band.sharpness[i];
+						float s0 = (1.0f-alpha)*sharpness[iy0*n_tiles_x + ix0] + alpha*sharpness[iy0*n_tiles_x + ix1];
+						float s1 = (1.0f-alpha)*sharpness[iy1*n_tiles_x + ix0] + alpha*sharpness[iy1*n_tiles_x + ix1];
+						float s = (1.0f-beta)*s0 + beta*s1 + sharpness_epsilon_c;
+						// raise to a high power, so the sharpest image dominates
+						s *= s;
+						s *= s;
+						weights[i] = s;
+						sum_weight += s;
+					}
+					float r = 0.0f, g = 0.0f, b = 0.0f;
+					for(int i=0;i<n_images;i++) {
+						int color = band.getPixel(i, x, y);
+						float w = weights[i];
+						r += w * ((color >> 16) & 0xff);
+						g += w * ((color >> 8) & 0xff);
+						b += w * (color & 0xff);
+					}
+					int out_r = Math.min(255, (int)(r/sum_weight + 0.5f));
+					int out_g = Math.min(255, (int)(g/sum_weight + 0.5f));
+					int out_b = Math.min(255, (int)(b/sum_weight + 0.5f));
+					output[out_row + x] = 0xff000000 | (out_r << 16) | (out_g << 8) | out_b;
+				}
+			}
+		}
+	}
+
+	/** Merges the images. The results do not depend on the band height.
+	 * @param n_images    The number of images.
+	 * @param offsets_x   The offsets for each image, as computed by align(), at the full resolution.
+	 * @param source      Supplies the rows of the input images.
+	 * @param sink        Receives the rows of the output image.
+	 * @param band_height The number of output rows to process at a time. Memory requirements are
+	 *                    roughly n_images*width*(band_height+2*tile_size+2)*5 bytes.
+	 * @return Whether the images were merged. Returns false if the source failed to read any rows, in
+	 *         which case the sink will only have received the bands before the failure.
+	 */
+	public boolean process(int n_images, int width, int height, int [] offsets_x, int [] offsets_y, RowSource source, RowSink sink, int band_height) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "process");
+			Log.d(TAG, "n_images: " + n_images);
+			Log.d(TAG, "width: " + width);
+			Log.d(TAG, "height: " + height);
+			Log.d(TAG, "band_height: " + band_height);
+		}
+		if( n_images <= 0 || band_height <= 0 ) {
+			Log.e(TAG, "invalid n_images " + n_images + " or band_height " + band_height);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		long time_s = System.currentTimeMillis();
+		final int n_tiles_x = (width + tile_size - 1)/tile_size;
+		final int n_tiles_y = (height + tile_size - 1)/tile_size;
+		// tile rows needed for a band: output rows [y0, y1) need tile rows from y0/tile_size-1 to
+		// ceil(y1/tile_size) inclusive, for interpolation
+		final int max_tile_rows = (band_height + tile_size - 1)/tile_size + 3;
+		// plus 1 row either side for the laplacian filter; also need to allow for offsets that push
+		// rows off the top or bottom of the image, where rows are clamped
+		final int max_rows = Math.min(height, max_tile_rows*tile_size + 2);
+		Band band = new Band(n_images, width, height, offsets_x, offsets_y, max_rows, max_tile_rows, n_tiles_x);
+		int [] output = new int[width*Math.min(height, band_height)];
+		int n_merge_tasks = Math.max(1, Math.min(2*pool.getParallelism(), band_height/min_rows_per_task_c));
+		ReadTask [] read_tasks = new ReadTask[n_images];
+		SharpnessTask [] sharpness_tasks = new SharpnessTask[n_images*max_tile_rows];
+		MergeTask [] merge_tasks = new MergeTask[n_merge_tasks];
+
+		for(int y0=0;y0<height;y0+=band_height) {
+			band.y0 = y0;
+			band.y1 = Math.min(height, y0 + band_height);
+			band.tile_y0 = Math.max(0, y0/tile_size - 1);
+			band.tile_y1 = Math.min(n_tiles_y, (band.y1 + tile_size - 1)/tile_size + 1);
+			band.lum_y0 = Math.max(0, band.tile_y0*tile_size - 1);
+			band.lum_y1 = Math.min(height, band.tile_y1*tile_size + 1);
+
+			for(int i=0;i<n_images;i++) {
+				read_tasks[i] = new ReadTask(source, band, i);
+				pool.execute(read_tasks[i]);
+			}
+			boolean read_failed = false;
+			for(int i=0;i<n_images;i++) {
+				read_tasks[i].join();
+				if( read_tasks[i].failed )
+					read_failed = true;
+			}
+			if( read_failed ) {
+				Log.e(TAG, "failed to read rows for band starting at " + y0);
+				return false;
+			}
+
+			int n_sharpness_tasks = 0;
+			for(int i=0;i<n_images;i++) {
+				for(int tile_y=band.tile_y0;tile_y<band.tile_y1;tile_y++) {
+					SharpnessTask task = new SharpnessTask(band, i, tile_y, tile_size, n_tiles_x);
+					sharpness_tasks[n_sharpness_tasks++] = task;
+					pool.execute(task);
+				}
+			}
+			for(int i=0;i<n_sharpness_tasks;i++) {
+				sharpness_tasks[i].join();
+			}
+
+			int band_rows = band.y1 - band.y0;
+			int this_n_merge_tasks = Math.min(n_merge_tasks, band_rows);
+			for(int i=0;i<this_n_merge_tasks;i++) {
+				int start_y = band.y0 + (i*band_rows)/this_n_merge_tasks;
+				int stop_y = band.y0 + ((i+1)*band_rows)/this_n_merge_tasks;
+				merge_tasks[i] = new MergeTask(band, start_y, stop_y, tile_size, n_tiles_x, n_tiles_y, output);
+				pool.execute(merge_tasks[i]);
+			}
+			for(int i=0;i<this_n_merge_tasks;i++) {
+				merge_tasks[i].join();
+			}
+
+			sink.writeRows(band.y0, band_rows, output);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for process: " + (System.currentTimeMillis() - time_s));
+		return true;
+	}
+}
@@ -4,6 +4,8 @@ import java.io.File;
 //import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 //import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -50,9 +52,10 @@ public class HDRProcessor {
 	public int [] offsets_y = null;
 	public int sharp_index = 0;
 
-	private enum HDRAlgorithm {
+	public enum HDRAlgorithm {
 		HDRALGORITHM_STANDARD,
-		HDRALGORITHM_SINGLE_IMAGE
+		HDRALGORITHM_SINGLE_IMAGE,
+		HDRALGORITHM_EXPOSURE_FUSION // see ExposureFusion
 	}
 
 	public enum TonemappingAlgorithm {
@@ -62,11 +65,126 @@ public class HDRProcessor {
 		TONEMAPALGORITHM_FILMIC,
 		TONEMAPALGORITHM_ACES
 	}
+
+	/** Which implementation to use for merging and tonemapping the images in processHDR().
+	 */
+	public enum HDRBackend {
+		HDRBACKEND_RENDERSCRIPT,
+		HDRBACKEND_CPU // see HDRProcessorCPU
+	}
+
+	private HDRBackend hdr_backend = HDRBackend.HDRBACKEND_RENDERSCRIPT;
+	private HDRProcessorCPU hdr_processor_cpu; // lazily created if using HDRBACKEND_CPU
+	private boolean use_pyramid_alignment; // whether to use MTBPyramidAligner for HDR alignment
+	private MTBPyramidAligner mtb_pyramid_aligner; // lazily created if use_pyramid_alignment is true
+	private AvgAccumulator.Format avg_format = AvgAccumulator.Format.FORMAT_FLOAT32; // format for the averaged image for noise reduction
+	private boolean use_clahe_cpu; // whether to use CLAHEProcessor for local histogram equalisation
+	private CLAHEProcessor clahe_processor; // lazily created if use_clahe_cpu is true
+	private boolean use_tonemap_lut = true; // whether to tonemap HDR images using a TonemapLUT
+	private ExposureFusion exposure_fusion; // lazily created for HDRALGORITHM_EXPOSURE_FUSION
+	private BitmapDecodePool bitmap_pool; // if non-null, input bitmaps that are no longer needed are released to this pool rather than recycled
 	
 	public HDRProcessor(Context context) {
 		this.context = context;
 	}
 
+	public void setHDRBackend(HDRBackend hdr_backend) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setHDRBackend: " + hdr_backend);
+		this.hdr_backend = hdr_backend;
+	}
+
+	public HDRBackend getHDRBackend() {
+		return this.hdr_backend;
+	}
+
+	/** Whether to align HDR images using MTBPyramidAligner, instead of the RenderScript
+	 *  implementation of median threshold bitmap alignment.
+	 */
+	public void setUsePyramidAlignment(boolean use_pyramid_alignment) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setUsePyramidAlignment: " + use_pyramid_alignment);
+		this.use_pyramid_alignment = use_pyramid_alignment;
+	}
+
+	public boolean getUsePyramidAlignment() {
+		return this.use_pyramid_alignment;
+	}
+
+	/** Whether to use CLAHEProcessor for the local histogram equalisation done for HDR and DRO,
+	 *  instead of the RenderScript implementation.
+	 */
+	public void setUseCLAHECPU(boolean use_clahe_cpu) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setUseCLAHECPU: " + use_clahe_cpu);
+		this.use_clahe_cpu = use_clahe_cpu;
+	}
+
+	public boolean getUseCLAHECPU() {
+		return this.use_clahe_cpu;
+	}
+
+	/** Whether to tonemap HDR images using a lookup table (see TonemapLUT), rather than evaluating
+	 *  the tonemapping curve for each pixel. Applies to both HDR backends.
+	 */
+	public void setUseTonemapLUT(boolean use_tonemap_lut) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setUseTonemapLUT: " + use_tonemap_lut);
+		this.use_tonemap_lut = use_tonemap_lut;
+	}
+
+	/** Sets a pool that input bitmaps are released to, so their memory can be reused for decoding
+	 *  later images, rather than the bitmaps being recycled. May be null.
+	 */
+	public void setBitmapPool(BitmapDecodePool bitmap_pool) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setBitmapPool: " + bitmap_pool);
+		this.bitmap_pool = bitmap_pool;
+	}
+
+	/** Frees an input bitmap that's no longer needed, either by releasing it to the bitmap pool, or
+	 *  by recycling it.
+	 */
+	private void releaseBitmap(Bitmap bitmap) {
+		if( bitmap_pool != null )
+			bitmap_pool.release(bitmap);
+		else
+			bitmap.recycle();
+	}
+
+	/** Sets the format used to store the averaged image when processAvg() is called, see
+	 *  AvgAccumulator. FORMAT_FIXED16 halves the memory needed compared to FORMAT_FLOAT32.
+	 *  FORMAT_FLOAT16 isn't supported by RenderScript at our target API, so is only available in
+	 *  AvgAccumulator, and mustn't be passed here.
+	 */
+	public void setAvgFormat(AvgAccumulator.Format avg_format) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setAvgFormat: " + avg_format);
+		if( avg_format == AvgAccumulator.Format.FORMAT_FLOAT16 ) {
+			Log.e(TAG, "FORMAT_FLOAT16 not supported");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.avg_format = avg_format;
+	}
+
+	public AvgAccumulator.Format getAvgFormat() {
+		return this.avg_format;
+	}
+
+	/** Whether the allocation stores an averaged image in 16-bit fixed point, rather than floats.
+	 */
+	private static boolean isFixed16(Allocation allocation) {
+		return allocation.getElement().getDataType() == Element.DataType.UNSIGNED_16;
+	}
+
+	/** Sets the HDRProcessorCPU to use when the backend is HDRBACKEND_CPU, e.g., to control the
+	 *  number of threads or tile size. If not set (or set to null), a default will be created.
+	 */
+	public void setHDRProcessorCPU(HDRProcessorCPU hdr_processor_cpu) {
+		this.hdr_processor_cpu = hdr_processor_cpu;
+	}
+
 	private void freeScripts() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "freeScripts");
@@ -101,7 +219,7 @@ public class HDRProcessor {
 	}
 
 	/** Given a set of data Xi and Yi, this function estimates a relation between X and Y
-	 *  using linear least squares.
+	 *  using linear least squares (see ResponseFunctionFitter).
 	 *  We use it to modify the pixels of images taken at the brighter or darker exposure
 	 *  levels, to estimate what the pixel should be at the "base" exposure.
 	 *  We estimate as y = parameter_A * x + parameter_B.
@@ -119,139 +237,17 @@ public class HDRProcessor {
 			return new ResponseFunction(1.0f, 0.0f);
 		}
 
-		/** Computes the response function.
+		/** Computes the response function for image id, from the samples collected by the fitter.
 		 * We pass the context, so this inner class can be made static.
-		 * @param x_samples List of Xi samples. Must be at least 3 samples.
-		 * @param y_samples List of Yi samples. Must be same length as x_samples.
-		 * @param weights List of weights. Must be same length as x_samples.
 		 */
-		ResponseFunction(Context context, int id, List<Double> x_samples, List<Double> y_samples, List<Double> weights) {
+		ResponseFunction(Context context, int id, ResponseFunctionFitter fitter) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "ResponseFunction");
 
-			if( x_samples.size() != y_samples.size() ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "unequal number of samples");
-				// throw RuntimeException, as this is a programming error
-				throw new RuntimeException();
-			}
-			else if( x_samples.size() != weights.size() ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "unequal number of samples");
-				// throw RuntimeException, as this is a programming error
-				throw new RuntimeException();
-			}
-			else if( x_samples.size() <= 3 ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "not enough samples");
-				// throw RuntimeException, as this is a programming error
-				throw new RuntimeException();
-			}
-
-			// linear Y = AX + B
-			boolean done = false;
-			double sum_wx = 0.0;
-			double sum_wx2 = 0.0;
-			double sum_wxy = 0.0;
-			double sum_wy = 0.0;
-			double sum_w = 0.0;
-			for(int i=0;i<x_samples.size();i++) {
-				double x = x_samples.get(i);
-				double y = y_samples.get(i);
-				double w = weights.get(i);
-				sum_wx += w * x;
-				sum_wx2 += w * x * x;
-				sum_wxy += w * x * y;
-				sum_wy += w * y;
-				sum_w += w;
-			}
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "sum_wx = " + sum_wx);
-				Log.d(TAG, "sum_wx2 = " + sum_wx2);
-				Log.d(TAG, "sum_wxy = " + sum_wxy);
-				Log.d(TAG, "sum_wy = " + sum_wy);
-				Log.d(TAG, "sum_w = " + sum_w);
-			}
-			// need to solve:
-			// A . sum_wx + B . sum_w - sum_wy = 0
-			// A . sum_wx2 + B . sum_wx - sum_wxy = 0
-			// =>
-			// A . sum_wx^2 + B . sum_w . sum_wx - sum_wy . sum_wx = 0
-			// A . sum_w . sum_wx2 + B . sum_w . sum_wx - sum_w . sum_wxy = 0
-			// A ( sum_wx^2 - sum_w . sum_wx2 ) = sum_wy . sum_wx - sum_w . sum_wxy
-			// then plug A into:
-			// B . sum_w = sum_wy - A . sum_wx
-			double A_numer = sum_wy * sum_wx - sum_w * sum_wxy;
-			double A_denom = sum_wx * sum_wx - sum_w * sum_wx2;
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "A_numer = " + A_numer);
-				Log.d(TAG, "A_denom = " + A_denom);
-			}
-			if( Math.abs(A_denom) < 1.0e-5 ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "denom too small");
-				// will fall back to linear Y = AX
-			}
-			else {
-				parameter_A = (float)(A_numer / A_denom);
-				parameter_B = (float)((sum_wy - parameter_A * sum_wx) / sum_w);
-				if( MyDebug.LOG ) {
-					Log.d(TAG, "parameter_A = " + parameter_A);
-					Log.d(TAG, "parameter_B = " + parameter_B);
-				}
-				// we don't want a function that is not monotonic, or can be negative!
-				if( parameter_A < 1.0e-5 ) {
-					if( MyDebug.LOG )
-						Log.e(TAG, "parameter A too small or negative: " + parameter_A);
-				}
-				else if( parameter_B < 1.0e-5 ) {
-					if( MyDebug.LOG )
-						Log.e(TAG, "parameter B too small or negative: " + parameter_B);
-				}
-				else {
-					done = true;
-				}
-			}
-			
-			if( !done ) {
-				if( MyDebug.LOG )
-					Log.e(TAG, "falling back to linear Y = AX");
-				// linear Y = AX
-				double numer = 0.0;
-				double denom = 0.0;
-				for(int i=0;i<x_samples.size();i++) {
-					double x = x_samples.get(i);
-					double y = y_samples.get(i);
-					double w = weights.get(i);
-					numer += w*x*y;
-					denom += w*x*x;
-				}
-				if( MyDebug.LOG ) {
-					Log.d(TAG, "numer = " + numer);
-					Log.d(TAG, "denom = " + denom);
-				}
-				
-				if( denom < 1.0e-5 ) {
-					if( MyDebug.LOG )
-						Log.e(TAG, "denom too small");
-					parameter_A = 1.0f;
-				}
-				else {
-					parameter_A = (float)(numer / denom);
-					// we don't want a function that is not monotonic!
-					if( parameter_A < 1.0e-5 ) {
-						if( MyDebug.LOG )
-							Log.e(TAG, "parameter A too small or negative: " + parameter_A);
-						parameter_A = 1.0e-5f;
-					}
-				}
-				parameter_B = 0.0f;
-			}
-
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "parameter_A = " + parameter_A);
-				Log.d(TAG, "parameter_B = " + parameter_B);
-			}
+			float [] result = new float[2];
+			fitter.fit(id, result);
+			parameter_A = result[0];
+			parameter_B = result[1];
 
 			if( MyDebug.LOG ) {
 				// log samples to a CSV file
@@ -268,11 +264,14 @@ public class HDRProcessor {
 					//writer.append("Parameter," + parameter + "\n");
 					writer.append("Parameters," + parameter_A + "," + parameter_B + "\n");
 					writer.append("X,Y,Weight\n");
-					for(int i=0;i<x_samples.size();i++) {
-						//Log.d(TAG, "log: " + i + " / " + x_samples.size());
-						double x = x_samples.get(i);
-						double y = y_samples.get(i);
-						double w = weights.get(i);
+					double [] x_samples = fitter.getXSamples(id);
+					double [] y_samples = fitter.getYSamples(id);
+					double [] weights = fitter.getWeights(id);
+					for(int i=0;i<fitter.getNSamples(id);i++) {
+						//Log.d(TAG, "log: " + i + " / " + fitter.getNSamples(id));
+						double x = x_samples[i];
+						double y = y_samples[i];
+						double w = weights[i];
 						writer.append(x + "," + y + "," + w + "\n");
 					}
 				}
@@ -330,8 +329,20 @@ public class HDRProcessor {
 	 */
 	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 	public void processHDR(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, TonemappingAlgorithm tonemapping_algorithm) throws HDRProcessorException {
-		if( MyDebug.LOG )
+		processHDR(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, tonemapping_algorithm, HDRAlgorithm.HDRALGORITHM_STANDARD);
+	}
+
+	/** As processHDR() above, but allows choosing the algorithm used to merge multiple images.
+	 * @param hdr_algorithm Either HDRALGORITHM_STANDARD, or HDRALGORITHM_EXPOSURE_FUSION to merge the
+	 *                      images with ExposureFusion, in which case tonemapping_algorithm is ignored.
+	 *                      If there is only 1 image, HDRALGORITHM_SINGLE_IMAGE is always used.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public void processHDR(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, TonemappingAlgorithm tonemapping_algorithm, HDRAlgorithm hdr_algorithm) throws HDRProcessorException {
+		if( MyDebug.LOG ) {
 			Log.d(TAG, "processHDR");
+			Log.d(TAG, "hdr_algorithm: " + hdr_algorithm);
+		}
 		if( !assume_sorted && !release_bitmaps ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "take a copy of bitmaps array");
@@ -359,7 +370,12 @@ public class HDRProcessor {
 			}
 		}
 		
-		final HDRAlgorithm algorithm = n_bitmaps == 1 ? HDRAlgorithm.HDRALGORITHM_SINGLE_IMAGE : HDRAlgorithm.HDRALGORITHM_STANDARD;
+		if( n_bitmaps > 1 && hdr_algorithm == HDRAlgorithm.HDRALGORITHM_SINGLE_IMAGE ) {
+			Log.e(TAG, "HDRALGORITHM_SINGLE_IMAGE requested for multiple images");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		final HDRAlgorithm algorithm = n_bitmaps == 1 ? HDRAlgorithm.HDRALGORITHM_SINGLE_IMAGE : hdr_algorithm;
 		
 		switch( algorithm ) {
 		case HDRALGORITHM_SINGLE_IMAGE:
@@ -373,6 +389,9 @@ public class HDRProcessor {
 		case HDRALGORITHM_STANDARD:
 			processHDRCore(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, tonemapping_algorithm);
 			break;
+		case HDRALGORITHM_EXPOSURE_FUSION:
+			processExposureFusion(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles);
+			break;
 		default:
 			if( MyDebug.LOG )
 				Log.e(TAG, "unknown algorithm " + algorithm);
@@ -381,126 +400,42 @@ public class HDRProcessor {
 		}
 	}
 
-	/** Creates a ResponseFunction to estimate how pixels from the in_bitmap should be adjusted to
-	 *  match the exposure level of out_bitmap.
-	 *  The supplied offsets offset_x, offset_y give the offset for in_bitmap as computed by
+	/** Collects the samples needed to create the ResponseFunctions that estimate how pixels from
+	 *  each bitmap should be adjusted to match the exposure level of the base bitmap. Each sampled
+	 *  row is read once per bitmap with getPixels(), so samples for all of the bitmaps are
+	 *  collected in a single pass.
+	 *  The supplied offsets offsets_x, offsets_y give the offsets for each bitmap as computed by
 	 *  autoAlignment().
 	 */
-	private ResponseFunction createFunctionFromBitmaps(int id, Bitmap in_bitmap, Bitmap out_bitmap, int offset_x, int offset_y) {
+	public static ResponseFunctionFitter createResponseFunctionFitter(List<Bitmap> bitmaps, int base_bitmap, int [] offsets_x, int [] offsets_y) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "createFunctionFromBitmaps");
-		List<Double> x_samples = new ArrayList<>();
-		List<Double> y_samples = new ArrayList<>();
-		List<Double> weights = new ArrayList<>();
+			Log.d(TAG, "createResponseFunctionFitter");
+		final int n_bitmaps = bitmaps.size();
+		final int width = bitmaps.get(base_bitmap).getWidth();
+		final int height = bitmaps.get(base_bitmap).getHeight();
+		ResponseFunctionFitter fitter = new ResponseFunctionFitter(width, height, base_bitmap, offsets_x, offsets_y);
 
-		final int n_samples_c = 100;
-		final int n_w_samples = (int)Math.sqrt(n_samples_c);
-		final int n_h_samples = n_samples_c/n_w_samples;
-
-		double avg_in = 0.0;
-		double avg_out = 0.0;
-		for(int y=0;y<n_h_samples;y++) {
-			double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
-			int y_coord = (int)(alpha * in_bitmap.getHeight());
-			for(int x=0;x<n_w_samples;x++) {
-				double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
-				int x_coord = (int)(beta * in_bitmap.getWidth());
-				/*if( MyDebug.LOG )
-					Log.d(TAG, "sample response from " + x_coord + " , " + y_coord);*/
-				if( x_coord + offset_x < 0 || x_coord + offset_x >= in_bitmap.getWidth() || y_coord + offset_y < 0 || y_coord + offset_y >= in_bitmap.getHeight() ) {
-					continue;
-				}
-				int in_col = in_bitmap.getPixel(x_coord + offset_x, y_coord + offset_y);
-				int out_col = out_bitmap.getPixel(x_coord, y_coord);
-				double in_value = averageRGB(in_col);
-				double out_value = averageRGB(out_col);
-				avg_in += in_value;
-				avg_out += out_value;
-				x_samples.add(in_value);
-				y_samples.add(out_value);
-			}
-		}
-		if( x_samples.size() == 0 ) {
-			Log.e(TAG, "no samples for response function!");
-			// shouldn't happen, but could do with a very large offset - just make up a dummy sample
-			double in_value = 255.0;
-			double out_value = 255.0;
-			avg_in += in_value;
-			avg_out += out_value;
-			x_samples.add(in_value);
-			y_samples.add(out_value);
-		}
-		avg_in /= x_samples.size();
-		avg_out /= x_samples.size();
-		boolean is_dark_exposure = avg_in < avg_out;
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "avg_in: " + avg_in);
-			Log.d(TAG, "avg_out: " + avg_out);
-			Log.d(TAG, "is_dark_exposure: " + is_dark_exposure);
+		int [][] buffers = new int[n_bitmaps][];
+		int [][] image_rows = new int[n_bitmaps][];
+		for(int i=0;i<n_bitmaps;i++) {
+			buffers[i] = new int[width];
 		}
-		{
-			// calculate weights
-			double min_value = x_samples.get(0);
-			double max_value = x_samples.get(0);
-			for(int i=1;i<x_samples.size();i++) {
-				double value = x_samples.get(i);
-				if( value < min_value )
-					min_value = value;
-				if( value > max_value )
-					max_value = value;
-			}
-			double med_value = 0.5*(min_value + max_value);
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "min_value: " + min_value);
-				Log.d(TAG, "max_value: " + max_value);
-				Log.d(TAG, "med_value: " + med_value);
-			}
-			double min_value_y = y_samples.get(0);
-			double max_value_y = y_samples.get(0);
-			for(int i=1;i<y_samples.size();i++) {
-				double value = y_samples.get(i);
-				if( value < min_value_y )
-					min_value_y = value;
-				if( value > max_value_y )
-					max_value_y = value;
-			}
-			double med_value_y = 0.5*(min_value_y + max_value_y);
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "min_value_y: " + min_value_y);
-				Log.d(TAG, "max_value_y: " + max_value_y);
-				Log.d(TAG, "med_value_y: " + med_value_y);
-			}
-			for(int i=0;i<x_samples.size();i++) {
-				double value = x_samples.get(i);
-				double value_y = y_samples.get(i);
-				if( is_dark_exposure ) {
-					// for dark exposure, also need to worry about the y values (which will be brighter than x) being overexposed
-					double weight = (value <= med_value) ? value - min_value : max_value - value;
-					double weight_y = (value_y <= med_value_y) ? value_y - min_value_y : max_value_y - value_y;
-					if( weight_y < weight )
-						weight = weight_y;
-					weights.add(weight);
-				}
-				else {
-					double weight = (value <= med_value) ? value - min_value : max_value - value;
-					weights.add(weight);
+		for(int row=0;row<fitter.getNSampleRows();row++) {
+			int y = fitter.getSampleRowY(row);
+			bitmaps.get(base_bitmap).getPixels(buffers[base_bitmap], 0, width, 0, y, width, 1);
+			for(int i=0;i<n_bitmaps;i++) {
+				if( i == base_bitmap || !fitter.isRowInside(i, y) ) {
+					image_rows[i] = null;
+					continue;
 				}
+				bitmaps.get(i).getPixels(buffers[i], 0, width, 0, y + offsets_y[i], width, 1);
+				image_rows[i] = buffers[i];
 			}
+			fitter.addSampleRow(buffers[base_bitmap], image_rows);
 		}
-		
-		return new ResponseFunction(context, id, x_samples, y_samples, weights);
+		return fitter;
 	}
 
-	/** Calculates average of RGB values for the supplied color.
-	 */
-	private double averageRGB(int color) {
-		int r = (color & 0xFF0000) >> 16;
-		int g = (color & 0xFF00) >> 8;
-		int b = (color & 0xFF);
-		return (r + g + b)/3.0;
-		//return 0.27*r + 0.67*g + 0.06*b;
-	}
-	
 	/** Core implementation of HDR algorithm.
 	 *  Requires Android 4.4 (API level 19, Kitkat), due to using Renderscript without the support libraries.
 	 *  And we now need Android 5.0 (API level 21, Lollipop) for forEach_Dot with LaunchOptions.
@@ -556,10 +491,11 @@ public class HDRProcessor {
 		final boolean use_hdr_n = n_bitmaps != 3;
 
 		// compute response_functions
+		ResponseFunctionFitter fitter = createResponseFunctionFitter(bitmaps, base_bitmap, offsets_x, offsets_y);
 		for(int i=0;i<n_bitmaps;i++) {
 			ResponseFunction function = null;
 			if( i != base_bitmap ) {
-				function = createFunctionFromBitmaps(i, bitmaps.get(i), bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
+				function = new ResponseFunction(context, i, fitter);
 			}
 			else if( use_hdr_n ) {
 				// for hdr_n, need to still create the identity response function
@@ -630,110 +566,7 @@ public class HDRProcessor {
 			Log.d(TAG, "time after calculating average luminance: " + (System.currentTimeMillis() - time_s));
 			*/
 
-		// write new hdr image
-
-		// create RenderScript
-		/*if( processHDRScript == null ) {
-			processHDRScript = new ScriptC_process_hdr(rs);
-		}*/
-		ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
-
-		// set allocations
-		processHDRScript.set_bitmap0(allocations[0]);
-		if( n_bitmaps > 2 ) {
-			processHDRScript.set_bitmap2(allocations[2]);
-		}
-
-		// set offsets
-		processHDRScript.set_offset_x0(offsets_x[0]);
-		processHDRScript.set_offset_y0(offsets_y[0]);
-		// no offset for middle image
-		if( n_bitmaps > 2 ) {
-			processHDRScript.set_offset_x2(offsets_x[2]);
-			processHDRScript.set_offset_y2(offsets_y[2]);
-		}
-
-		// set response functions
-		processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
-		processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
-		// no response function for middle image
-		if( n_bitmaps > 2 ) {
-            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
-            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
-        }
-
-		if( use_hdr_n ) {
-			// now need to set values for image 1
-			processHDRScript.set_bitmap1(allocations[1]);
-			processHDRScript.set_offset_x1(offsets_x[1]);
-			processHDRScript.set_offset_y1(offsets_y[1]);
-			processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
-			processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
-		}
-
-		if( n_bitmaps > 3 ) {
-			processHDRScript.set_bitmap3(allocations[3]);
-			processHDRScript.set_offset_x3(offsets_x[3]);
-			processHDRScript.set_offset_y3(offsets_y[3]);
-			processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
-			processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
-
-    		if( n_bitmaps > 4 ) {
-                processHDRScript.set_bitmap4(allocations[4]);
-                processHDRScript.set_offset_x4(offsets_x[4]);
-                processHDRScript.set_offset_y4(offsets_y[4]);
-                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
-                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
-
-                if( n_bitmaps > 5 ) {
-                    processHDRScript.set_bitmap5(allocations[5]);
-                    processHDRScript.set_offset_x5(offsets_x[5]);
-                    processHDRScript.set_offset_y5(offsets_y[5]);
-                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
-                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
-
-                    if( n_bitmaps > 6 ) {
-                        processHDRScript.set_bitmap6(allocations[6]);
-                        processHDRScript.set_offset_x6(offsets_x[6]);
-                        processHDRScript.set_offset_y6(offsets_y[6]);
-                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
-                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
-                    }
-                }
-            }
-		}
-
-		// set globals
-
-		// set tonemapping algorithm
-		switch( tonemapping_algorithm ) {
-			case TONEMAPALGORITHM_CLAMP:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: clamp");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
-				break;
-            case TONEMAPALGORITHM_EXPONENTIAL:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: exponential");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
-				break;
-			case TONEMAPALGORITHM_REINHARD:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: reinhard");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
-				break;
-			case TONEMAPALGORITHM_FILMIC:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: filmic");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
-				break;
-			case TONEMAPALGORITHM_ACES:
-				if( MyDebug.LOG )
-					Log.d(TAG, "tonemapping algorithm: aces");
-				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
-				break;
-		}
-
+		// compute tonemapping parameters
 		float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
 		//float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
 		if( MyDebug.LOG )
@@ -792,7 +625,8 @@ public class HDRProcessor {
 		// (tonemap_scale_c==255 means therefore that colours will only be made darker).
 		if( MyDebug.LOG )
 			Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
-		processHDRScript.set_tonemap_scale(tonemap_scale_c);
+		float linear_scale = 1.0f; // for exponential and Reinhard
+		float filmic_W = 0.0f; // for filmic
 
         // algorithm specific parameters
 		switch( tonemapping_algorithm ) {
@@ -805,11 +639,10 @@ public class HDRProcessor {
                 // so 1 = S . (1 - exp( - E * Vmax ))
                 // => S = 1 / (1 - exp( - E * Vmax ))
                 // Note that Vmax should be set to a minimum of 255, else we'll make darker images brighter.
-                float E = processHDRScript.get_exposure();
-                float linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
+                float E = HDRProcessorCPU.exposure_c;
+                linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
 			case TONEMAPALGORITHM_REINHARD: {
@@ -832,40 +665,228 @@ public class HDRProcessor {
                 // max_possible_value >= 255.
                 // Note that the original Reinhard tonemapping paper describes a non-linear scaling by (1 + CV/Vmax^2),
                 // though this is poorer performance (in terms of calculation time).
-                float linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
+                linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
                 if( MyDebug.LOG )
                     Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
                 break;
             }
 			case TONEMAPALGORITHM_FILMIC:
-			{
-				// For filmic, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
-				// We want f(Vmax) = 1, so EVmax = W
-                float E = processHDRScript.get_filmic_exposure_bias();
-				float W = E * max_possible_value;
+			{
+				// For filmic, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
+				// We want f(Vmax) = 1, so EVmax = W
+                float E = HDRProcessorCPU.filmic_exposure_bias_c;
+				filmic_W = E * max_possible_value;
+				if( MyDebug.LOG )
+					Log.d(TAG, "filmic W: " + filmic_W);
+				break;
+			}
+		}
+
+		Allocation output_allocation;
+		boolean free_output_allocation = false;
+		if( release_bitmaps ) {
+			// must use allocations[base_bitmap] as the output, as that's the image guaranteed to have no offset (otherwise we'll have
+			// problems due to the output being equal to one of the inputs)
+			output_allocation = allocations[base_bitmap];
+		}
+		else {
+			output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
+			free_output_allocation = true;
+		}
+
+		HDRProcessorCPU.TonemapParameters tonemap = new HDRProcessorCPU.TonemapParameters(tonemapping_algorithm, tonemap_scale_c, linear_scale, filmic_W);
+		TonemapLUT tonemap_lut = null;
+		if( use_tonemap_lut ) {
+			// max_possible_value is the white level for all of the algorithms
+			tonemap_lut = TonemapLUT.getCached(tonemap, max_possible_value);
+			tonemap.setLUT(tonemap_lut);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after creating tonemap lookup table: " + (System.currentTimeMillis() - time_s));
+		}
+
+		if( hdr_backend == HDRBackend.HDRBACKEND_CPU ) {
+			processHDRCoreCPU(bitmaps, output_allocation, base_bitmap, response_functions, tonemap, time_s);
+		}
+		else {
+			processHDRCoreScript(allocations, output_allocation, base_bitmap, use_hdr_n, response_functions, tonemapping_algorithm, tonemap_scale_c, linear_scale, filmic_W, tonemap_lut, time_s);
+		}
+
+		if( release_bitmaps ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "release bitmaps");
+			// bitmaps.get(base_bitmap) will store HDR image, so free up the rest of the memory asap - we no longer need the remaining bitmaps
+			for(int i=0;i<bitmaps.size();i++) {
+				if (i != base_bitmap) {
+					Bitmap bitmap = bitmaps.get(i);
+					releaseBitmap(bitmap);
+				}
+			}
+		}
+
+		if( hdr_alpha != 0.0f ) {
+			adjustHistogram(output_allocation, output_allocation, width, height, hdr_alpha, n_tiles, time_s);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after adjustHistogram: " + (System.currentTimeMillis() - time_s));
+		}
+
+		if( release_bitmaps ) {
+			// must be the base_bitmap we copy to - see note above about using allocations[base_bitmap] as the output
+			allocations[base_bitmap].copyTo(bitmaps.get(base_bitmap));
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+
+			// make it so that we store the output bitmap as first in the list
+			bitmaps.set(0, bitmaps.get(base_bitmap));
+			for(int i=1;i<bitmaps.size();i++) {
+				bitmaps.set(i, null);
+			}
+		}
+		else {
+			output_allocation.copyTo(output_bitmap);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+		}
+
+		if( free_output_allocation )
+			output_allocation.destroy();
+		for(int i=0;i<n_bitmaps;i++) {
+			allocations[i].destroy();
+			allocations[i] = null;
+		}
+		freeScripts();
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+	}
+
+	/** Merges and tonemaps the images using process_hdr.rs, storing the result in output_allocation.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private void processHDRCoreScript(Allocation [] allocations, Allocation output_allocation, int base_bitmap, boolean use_hdr_n, ResponseFunction [] response_functions, TonemappingAlgorithm tonemapping_algorithm, float tonemap_scale_c, float linear_scale, float filmic_W, TonemapLUT tonemap_lut, long time_s) {
+		final int n_bitmaps = allocations.length;
+
+		// create RenderScript
+		/*if( processHDRScript == null ) {
+			processHDRScript = new ScriptC_process_hdr(rs);
+		}*/
+		ScriptC_process_hdr processHDRScript = new ScriptC_process_hdr(rs);
+
+		// set allocations
+		processHDRScript.set_bitmap0(allocations[0]);
+		if( n_bitmaps > 2 ) {
+			processHDRScript.set_bitmap2(allocations[2]);
+		}
+
+		// set offsets
+		processHDRScript.set_offset_x0(offsets_x[0]);
+		processHDRScript.set_offset_y0(offsets_y[0]);
+		// no offset for middle image
+		if( n_bitmaps > 2 ) {
+			processHDRScript.set_offset_x2(offsets_x[2]);
+			processHDRScript.set_offset_y2(offsets_y[2]);
+		}
+
+		// set response functions
+		processHDRScript.set_parameter_A0(response_functions[0].parameter_A);
+		processHDRScript.set_parameter_B0(response_functions[0].parameter_B);
+		// no response function for middle image
+		if( n_bitmaps > 2 ) {
+            processHDRScript.set_parameter_A2(response_functions[2].parameter_A);
+            processHDRScript.set_parameter_B2(response_functions[2].parameter_B);
+        }
+
+		if( use_hdr_n ) {
+			// now need to set values for image 1
+			processHDRScript.set_bitmap1(allocations[1]);
+			processHDRScript.set_offset_x1(offsets_x[1]);
+			processHDRScript.set_offset_y1(offsets_y[1]);
+			processHDRScript.set_parameter_A1(response_functions[1].parameter_A);
+			processHDRScript.set_parameter_B1(response_functions[1].parameter_B);
+		}
+
+		if( n_bitmaps > 3 ) {
+			processHDRScript.set_bitmap3(allocations[3]);
+			processHDRScript.set_offset_x3(offsets_x[3]);
+			processHDRScript.set_offset_y3(offsets_y[3]);
+			processHDRScript.set_parameter_A3(response_functions[3].parameter_A);
+			processHDRScript.set_parameter_B3(response_functions[3].parameter_B);
+
+    		if( n_bitmaps > 4 ) {
+                processHDRScript.set_bitmap4(allocations[4]);
+                processHDRScript.set_offset_x4(offsets_x[4]);
+                processHDRScript.set_offset_y4(offsets_y[4]);
+                processHDRScript.set_parameter_A4(response_functions[4].parameter_A);
+                processHDRScript.set_parameter_B4(response_functions[4].parameter_B);
+
+                if( n_bitmaps > 5 ) {
+                    processHDRScript.set_bitmap5(allocations[5]);
+                    processHDRScript.set_offset_x5(offsets_x[5]);
+                    processHDRScript.set_offset_y5(offsets_y[5]);
+                    processHDRScript.set_parameter_A5(response_functions[5].parameter_A);
+                    processHDRScript.set_parameter_B5(response_functions[5].parameter_B);
+
+                    if( n_bitmaps > 6 ) {
+                        processHDRScript.set_bitmap6(allocations[6]);
+                        processHDRScript.set_offset_x6(offsets_x[6]);
+                        processHDRScript.set_offset_y6(offsets_y[6]);
+                        processHDRScript.set_parameter_A6(response_functions[6].parameter_A);
+                        processHDRScript.set_parameter_B6(response_functions[6].parameter_B);
+                    }
+                }
+            }
+		}
+
+		// set globals
+
+		// set tonemapping algorithm
+		switch( tonemapping_algorithm ) {
+			case TONEMAPALGORITHM_CLAMP:
+				if( MyDebug.LOG )
+					Log.d(TAG, "tonemapping algorithm: clamp");
+				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_clamp_c() );
+				break;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+				if( MyDebug.LOG )
+					Log.d(TAG, "tonemapping algorithm: exponential");
+				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_exponential_c() );
+				break;
+			case TONEMAPALGORITHM_REINHARD:
+				if( MyDebug.LOG )
+					Log.d(TAG, "tonemapping algorithm: reinhard");
+				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_reinhard_c() );
+				break;
+			case TONEMAPALGORITHM_FILMIC:
 				if( MyDebug.LOG )
-					Log.d(TAG, "filmic W: " + W);
-				processHDRScript.set_W(W);
+					Log.d(TAG, "tonemapping algorithm: filmic");
+				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
+				break;
+			case TONEMAPALGORITHM_ACES:
+				if( MyDebug.LOG )
+					Log.d(TAG, "tonemapping algorithm: aces");
+				processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
 				break;
-			}
 		}
 
-		if( MyDebug.LOG )
-			Log.d(TAG, "call processHDRScript");
-		Allocation output_allocation;
-		boolean free_output_allocation = false;
-		if( release_bitmaps ) {
-			// must use allocations[base_bitmap] as the output, as that's the image guaranteed to have no offset (otherwise we'll have
-			// problems due to the output being equal to one of the inputs)
-			output_allocation = allocations[base_bitmap];
-		}
-		else {
-			output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
-			free_output_allocation = true;
+		processHDRScript.set_tonemap_scale(tonemap_scale_c);
+		processHDRScript.set_linear_scale(linear_scale);
+		if( tonemapping_algorithm == TonemappingAlgorithm.TONEMAPALGORITHM_FILMIC ) {
+			processHDRScript.set_W(filmic_W);
+		}
+		Allocation tonemap_lut_allocation = null;
+		if( tonemap_lut != null ) {
+			float [] table = tonemap_lut.getTable();
+			tonemap_lut_allocation = Allocation.createSized(rs, Element.F32(rs), table.length);
+			tonemap_lut_allocation.copyFrom(table);
+			processHDRScript.set_tonemap_lut(tonemap_lut_allocation);
+			processHDRScript.set_tonemap_lut_scale(tonemap_lut.getScale());
+			processHDRScript.set_tonemap_lut_max(tonemap_lut.getMaxValue());
+			processHDRScript.set_tonemap_lut_size(table.length);
+			processHDRScript.set_use_tonemap_lut(1);
 		}
-		if( MyDebug.LOG )
+
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "call processHDRScript");
 			Log.d(TAG, "### time before processHDRScript: " + (System.currentTimeMillis() - time_s));
+		}
 		if( use_hdr_n ) {
 			processHDRScript.set_n_bitmaps_g(n_bitmaps);
 			processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);
@@ -877,18 +898,139 @@ public class HDRProcessor {
 		processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);*/
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time after processHDRScript: " + (System.currentTimeMillis() - time_s));
+		if( tonemap_lut_allocation != null ) {
+			tonemap_lut_allocation.destroy();
+		}
+	}
 
-		if( release_bitmaps ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "release bitmaps");
-			// bitmaps.get(base_bitmap) will store HDR image, so free up the rest of the memory asap - we no longer need the remaining bitmaps
-			for(int i=0;i<bitmaps.size();i++) {
-				if (i != base_bitmap) {
-					Bitmap bitmap = bitmaps.get(i);
-					bitmap.recycle();
-				}
+	/** Merges and tonemaps the images using HDRProcessorCPU, storing the result in output_allocation.
+	 *  Note that this requires an additional int [] buffer per image, for the pixels that are passed
+	 *  to HDRProcessorCPU.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private void processHDRCoreCPU(List<Bitmap> bitmaps, Allocation output_allocation, int base_bitmap, ResponseFunction [] response_functions, HDRProcessorCPU.TonemapParameters tonemap, long time_s) {
+		final int n_bitmaps = bitmaps.size();
+		final int width = bitmaps.get(0).getWidth();
+		final int height = bitmaps.get(0).getHeight();
+		if( hdr_processor_cpu == null ) {
+			hdr_processor_cpu = new HDRProcessorCPU(null, HDRProcessorCPU.default_tile_size_c);
+		}
+
+		int [][] images = new int[n_bitmaps][];
+		float [] parameter_A = new float[n_bitmaps];
+		float [] parameter_B = new float[n_bitmaps];
+		for(int i=0;i<n_bitmaps;i++) {
+			images[i] = new int[width*height];
+			bitmaps.get(i).getPixels(images[i], 0, width, 0, 0, width, height);
+			// a null response function means the identity
+			parameter_A[i] = response_functions[i] != null ? response_functions[i].parameter_A : 1.0f;
+			parameter_B[i] = response_functions[i] != null ? response_functions[i].parameter_B : 0.0f;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after reading pixels: " + (System.currentTimeMillis() - time_s));
+
+		// safe to write the output to the base image's buffer, see HDRProcessorCPU.processHDR()
+		int [] output = images[base_bitmap];
+		hdr_processor_cpu.processHDR(images, width, height, base_bitmap, offsets_x, offsets_y, parameter_A, parameter_B, tonemap, output);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after HDRProcessorCPU: " + (System.currentTimeMillis() - time_s));
+
+		// convert from ARGB (as used by Bitmap.getPixels()) to the byte order of the RGBA_8888 allocation (R, G, B, A),
+		// so we can copy directly into the allocation without needing an extra bitmap
+		for(int i=0;i<output.length;i++) {
+			int color = output[i];
+			output[i] = (color & 0xff00ff00) | ((color >> 16) & 0xff) | ((color & 0xff) << 16);
+		}
+		output_allocation.copyFromUnchecked(output);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after copying to allocation: " + (System.currentTimeMillis() - time_s));
+	}
+
+	/** Alternative to processHDRCore() that merges the images with ExposureFusion, rather than
+	 *  estimating response functions and tonemapping. The images are aligned as for processHDRCore(),
+	 *  and the local contrast enhancement is still applied if hdr_alpha is non-zero.
+	 *  Unlike processHDRCoreCPU(), this can't read the images in bands of rows, as ExposureFusion needs
+	 *  every image at full resolution: the pixels of each image are copied to an int array, plus one
+	 *  for the output (see ExposureFusion for its own buffers). If release_bitmaps is true, each bitmap
+	 *  other than the base one is released as soon as its pixels have been copied, rather than after
+	 *  copying all of them.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private void processExposureFusion(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "processExposureFusion");
+
+		long time_s = System.currentTimeMillis();
+
+		final int n_bitmaps = bitmaps.size();
+		final int width = bitmaps.get(0).getWidth();
+		final int height = bitmaps.get(0).getHeight();
+		offsets_x = new int[n_bitmaps];
+		offsets_y = new int[n_bitmaps];
+
+		initRenderscript();
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after creating renderscript: " + (System.currentTimeMillis() - time_s));
+		Allocation [] allocations = new Allocation[n_bitmaps];
+		for(int i=0;i<n_bitmaps;i++) {
+			allocations[i] = Allocation.createFromBitmap(rs, bitmaps.get(i));
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after creating allocations from bitmaps: " + (System.currentTimeMillis() - time_s));
+		final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // as for processHDRCore()
+
+		// if assume_sorted if false, this function will also sort the allocations and bitmaps from darkest to brightest.
+		autoAlignment(offsets_x, offsets_y, allocations, width, height, bitmaps, base_bitmap, assume_sorted, sort_cb, true, false, 1, true, true, width, height, time_s);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after autoAlignment: " + (System.currentTimeMillis() - time_s));
+		// the allocations were only needed for alignment, except the base one if it's used for the output
+		for(int i=0;i<n_bitmaps;i++) {
+			if( !(release_bitmaps && i == base_bitmap) ) {
+				allocations[i].destroy();
+				allocations[i] = null;
+			}
+		}
+
+		if( exposure_fusion == null ) {
+			exposure_fusion = new ExposureFusion(null, ExposureFusion.default_min_level_size_c);
+		}
+		int [][] images = new int[n_bitmaps][];
+		for(int i=0;i<n_bitmaps;i++) {
+			images[i] = new int[width*height];
+			bitmaps.get(i).getPixels(images[i], 0, width, 0, 0, width, height);
+			if( release_bitmaps && i != base_bitmap ) {
+				// we have the pixels, so free up the memory of the bitmaps we won't write the output to,
+				// before copying the next one
+				if( MyDebug.LOG )
+					Log.d(TAG, "release bitmap: " + i);
+				releaseBitmap(bitmaps.get(i));
 			}
 		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after reading pixels: " + (System.currentTimeMillis() - time_s));
+
+		int [] output = new int[width*height];
+		exposure_fusion.process(images, width, height, offsets_x, offsets_y, output);
+		//noinspection UnusedAssignment
+		images = null;
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after ExposureFusion: " + (System.currentTimeMillis() - time_s));
+
+		Allocation output_allocation;
+		if( release_bitmaps ) {
+			output_allocation = allocations[base_bitmap];
+		}
+		else {
+			output_allocation = Allocation.createFromBitmap(rs, output_bitmap);
+		}
+		// convert from ARGB to the byte order of the RGBA_8888 allocation, as in processHDRCoreCPU()
+		for(int i=0;i<output.length;i++) {
+			int color = output[i];
+			output[i] = (color & 0xff00ff00) | ((color >> 16) & 0xff) | ((color & 0xff) << 16);
+		}
+		output_allocation.copyFromUnchecked(output);
+		//noinspection UnusedAssignment
+		output = null;
 
 		if( hdr_alpha != 0.0f ) {
 			adjustHistogram(output_allocation, output_allocation, width, height, hdr_alpha, n_tiles, time_s);
@@ -897,11 +1039,7 @@ public class HDRProcessor {
 		}
 
 		if( release_bitmaps ) {
-			// must be the base_bitmap we copy to - see note above about using allocations[base_bitmap] as the output
-			allocations[base_bitmap].copyTo(bitmaps.get(base_bitmap));
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
-
+			output_allocation.copyTo(bitmaps.get(base_bitmap));
 			// make it so that we store the output bitmap as first in the list
 			bitmaps.set(0, bitmaps.get(base_bitmap));
 			for(int i=1;i<bitmaps.size();i++) {
@@ -910,19 +1048,13 @@ public class HDRProcessor {
 		}
 		else {
 			output_allocation.copyTo(output_bitmap);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
-		}
-
-		if( free_output_allocation )
-			output_allocation.destroy();
-		for(int i=0;i<n_bitmaps;i++) {
-			allocations[i].destroy();
-			allocations[i] = null;
 		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after copying to bitmap: " + (System.currentTimeMillis() - time_s));
+		output_allocation.destroy();
 		freeScripts();
 		if( MyDebug.LOG )
-			Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
+			Log.d(TAG, "### time for processExposureFusion: " + (System.currentTimeMillis() - time_s));
 	}
 
 	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -1345,10 +1477,14 @@ public class HDRProcessor {
 			}
 		}
 
+		// if allocation_out already exists, keep using its format
+		boolean fixed16 = allocation_out != null ? isFixed16(allocation_out) : avg_format != AvgAccumulator.Format.FORMAT_FLOAT32;
+		if( MyDebug.LOG )
+			Log.d(TAG, "fixed16: " + fixed16);
 		if( allocation_out == null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "need to create allocation_out");
-			allocation_out = Allocation.createTyped(rs, Type.createXY(rs, Element.F32_3(rs), width, height));
+			allocation_out = Allocation.createTyped(rs, Type.createXY(rs, fixed16 ? Element.U16_4(rs) : Element.F32_3(rs), width, height));
 			if( MyDebug.LOG )
 				Log.d(TAG, "### time after create allocation_out: " + (System.currentTimeMillis() - time_s));
 		}
@@ -1433,10 +1569,18 @@ public class HDRProcessor {
 			Log.d(TAG, "call processAvgScript");
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time before processAvgScript: " + (System.currentTimeMillis() - time_s));
-		if( floating_point )
-			processAvgScript.forEach_avg_f(allocation_avg, allocation_out);
-		else
-			processAvgScript.forEach_avg(allocation_avg, allocation_out);
+		if( floating_point ) {
+			if( fixed16 )
+				processAvgScript.forEach_avg_fixed16(allocation_avg, allocation_out);
+			else
+				processAvgScript.forEach_avg_f(allocation_avg, allocation_out);
+		}
+		else {
+			if( fixed16 )
+				processAvgScript.forEach_avg_to_fixed16(allocation_avg, allocation_out);
+			else
+				processAvgScript.forEach_avg(allocation_avg, allocation_out);
+		}
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time after processAvgScript: " + (System.currentTimeMillis() - time_s));
 
@@ -1451,13 +1595,13 @@ public class HDRProcessor {
         if( bitmap_avg != null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "release bitmap_avg");
-			bitmap_avg.recycle();
+			releaseBitmap(bitmap_avg);
 			bitmap_avg = null;
 		}
         if( bitmap_new != null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "release bitmap_new");
-			bitmap_new.recycle();
+			releaseBitmap(bitmap_new);
 			bitmap_new = null;
 		}
 
@@ -1657,16 +1801,6 @@ public class HDRProcessor {
 			Log.d(TAG, "mtb_height: " + mtb_height);
 		}
 
-		// create RenderScript
-		if( createMTBScript == null ) {
-			createMTBScript = new ScriptC_create_mtb(rs);
-			if( MyDebug.LOG )
-				Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
-		}
-		//ScriptC_create_mtb createMTBScript = new ScriptC_create_mtb(rs);
-		if( MyDebug.LOG )
-			Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
-
 		LuminanceInfo [] luminanceInfos = null;
 		if( use_mtb ) {
 			luminanceInfos = new LuminanceInfo[allocations.length];
@@ -1737,6 +1871,41 @@ public class HDRProcessor {
 				Log.d(TAG, "median_brightness: " + median_brightness);
 		}
 
+		// The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
+		// For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
+		// On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
+		// inital_step_size of 64.
+		// Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
+		// sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
+		// to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
+		// to misidentify cases as needing a large offset.
+		int max_dim = Math.max(full_width, full_height); // n.b., use the full width and height here, not the mtb_width, height
+		int max_ideal_size = max_dim / (try_harder ? 150 : 300);
+		int initial_step_size = 1;
+		while( initial_step_size < max_ideal_size ) {
+			initial_step_size *= 2;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "max_dim: " + max_dim);
+			Log.d(TAG, "max_ideal_size: " + max_ideal_size);
+			Log.d(TAG, "initial_step_size: " + initial_step_size);
+		}
+
+		if( use_mtb && use_pyramid_alignment ) {
+			autoAlignmentPyramid(offsets_x, offsets_y, bitmaps, luminanceInfos, base_bitmap, mtb_x, mtb_y, mtb_width, mtb_height, initial_step_size, min_step_size, time_s);
+			return new BrightnessDetails(median_brightness);
+		}
+
+		// create RenderScript
+		if( createMTBScript == null ) {
+			createMTBScript = new ScriptC_create_mtb(rs);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
+		}
+		//ScriptC_create_mtb createMTBScript = new ScriptC_create_mtb(rs);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
+
 		for(int i=0;i<allocations.length;i++) {
 			int median_value = -1;
 			if( use_mtb ) {
@@ -1815,26 +1984,6 @@ public class HDRProcessor {
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time after all createMTBScript: " + (System.currentTimeMillis() - time_s));
 
-		// The initial step_size N should be a power of 2; the maximum offset we can achieve by the algorithm is N-1.
-		// For pictures resolution 4160x3120, this gives max_ideal_size 27, and initial_step_size 32.
-		// On tests testHDR1 to testHDR35, the max required offset was 24 pixels (for testHDR33) even when using
-		// inital_step_size of 64.
-		// Note, there isn't really a performance cost in allowing higher initial step sizes (as larger sizes have less
-		// sampling - since we sample every step_size pixels - though there might be some overhead for every extra call
-		// to renderscript that we do). But high step sizes have a risk of producing really bad results if we were
-		// to misidentify cases as needing a large offset.
-		int max_dim = Math.max(full_width, full_height); // n.b., use the full width and height here, not the mtb_width, height
-		int max_ideal_size = max_dim / (try_harder ? 150 : 300);
-		int initial_step_size = 1;
-		while( initial_step_size < max_ideal_size ) {
-			initial_step_size *= 2;
-		}
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "max_dim: " + max_dim);
-			Log.d(TAG, "max_ideal_size: " + max_ideal_size);
-			Log.d(TAG, "initial_step_size: " + initial_step_size);
-		}
-
 		if( mtb_allocations[base_bitmap] == null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "base image not suitable for image alignment");
@@ -1966,6 +2115,48 @@ public class HDRProcessor {
 		return new BrightnessDetails(median_brightness);
 	}
 
+	/** Alternative to the RenderScript alignment in autoAlignment() for use_mtb==true, using
+	 *  MTBPyramidAligner.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private void autoAlignmentPyramid(int [] offsets_x, int [] offsets_y, List<Bitmap> bitmaps, LuminanceInfo [] luminanceInfos, int base_bitmap, int mtb_x, int mtb_y, int mtb_width, int mtb_height, int initial_step_size, int min_step_size, long time_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "autoAlignmentPyramid");
+		if( mtb_pyramid_aligner == null ) {
+			mtb_pyramid_aligner = new MTBPyramidAligner(null);
+		}
+
+		final int n_bitmaps = bitmaps.size();
+		byte [][] luminances = new byte[n_bitmaps][];
+		int [] median_values = new int[n_bitmaps];
+		int [] row = new int[mtb_width];
+		for(int i=0;i<n_bitmaps;i++) {
+			if( luminanceInfos[i].noisy ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "unable to compute median luminance safely");
+				// leave luminances[i] as null, so this image isn't aligned
+				continue;
+			}
+			median_values[i] = luminanceInfos[i].median_value;
+			luminances[i] = new byte[mtb_width*mtb_height];
+			Bitmap bitmap = bitmaps.get(i);
+			for(int y=0;y<mtb_height;y++) {
+				bitmap.getPixels(row, 0, mtb_width, mtb_x, mtb_y+y, mtb_width, 1);
+				MTBPyramidAligner.computeLuminance(row, 0, luminances[i], y*mtb_width, mtb_width);
+			}
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after computing luminances: " + (System.currentTimeMillis() - time_s));
+
+		mtb_pyramid_aligner.align(luminances, mtb_width, mtb_height, median_values, base_bitmap, initial_step_size, min_step_size, offsets_x, offsets_y);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "### time after MTBPyramidAligner: " + (System.currentTimeMillis() - time_s));
+			for(int i=0;i<n_bitmaps;i++) {
+				Log.d(TAG, "resultant offsets for image " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+			}
+		}
+	}
+
 	private static class LuminanceInfo {
 		final int median_value;
 		final boolean noisy;
@@ -2127,7 +2318,10 @@ public class HDRProcessor {
 		//final boolean adjust_histogram_local = false;
 		final boolean adjust_histogram_local = true;
 
-		if( adjust_histogram_local ) {
+		if( adjust_histogram_local && use_clahe_cpu ) {
+			adjustHistogramCPU(allocation_in, allocation_out, width, height, hdr_alpha, n_tiles, time_s);
+		}
+		else if( adjust_histogram_local ) {
 			// Contrast Limited Adaptive Histogram Equalisation
 			// Note we don't fully equalise the histogram, rather the resultant image is the mid-point of the non-equalised and fully-equalised images
 			// See https://en.wikipedia.org/wiki/Adaptive_histogram_equalization#Contrast_Limited_AHE
@@ -2289,6 +2483,34 @@ public class HDRProcessor {
 		}
 	}
 
+	/** As adjustHistogram(), but using CLAHEProcessor.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private void adjustHistogramCPU(Allocation allocation_in, Allocation allocation_out, int width, int height, float hdr_alpha, int n_tiles, long time_s) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "adjustHistogramCPU");
+		if( clahe_processor == null ) {
+			clahe_processor = new CLAHEProcessor(null);
+		}
+		// the allocation is in RGBA_8888 format, so reading the bytes as little endian ints gives
+		// ABGR rather than ARGB - but this doesn't matter, as CLAHEProcessor treats the red and blue
+		// channels in the same way
+		byte [] bytes = new byte[4*width*height];
+		allocation_in.copyTo(bytes);
+		int [] pixels = new int[width*height];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(pixels);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after reading pixels: " + (System.currentTimeMillis() - time_s));
+
+		clahe_processor.adjustHistogram(pixels, pixels, width, height, hdr_alpha, n_tiles);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after CLAHEProcessor: " + (System.currentTimeMillis() - time_s));
+
+		allocation_out.copyFromUnchecked(pixels);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after copying to allocation: " + (System.currentTimeMillis() - time_s));
+	}
+
 	/**
 	 * @param avg If true, compute the color value as the average of the rgb values. If false,
 	 *            compute the color value as the maximum of the rgb values.
@@ -2319,14 +2541,20 @@ public class HDRProcessor {
 				Log.d(TAG, "call histogramScript");
 			if( MyDebug.LOG )
 				Log.d(TAG, "time before histogramScript: " + (System.currentTimeMillis() - time_s));
+			// floating point allocations may also be stored in 16-bit fixed point, see processAvgCore()
+			boolean fixed16 = floating_point && isFixed16(allocation_in);
 			if( avg ) {
-				if( floating_point )
+				if( fixed16 )
+					histogramScript.forEach_histogram_compute_avg_fixed16(allocation_in);
+				else if( floating_point )
 					histogramScript.forEach_histogram_compute_avg_f(allocation_in);
 				else
 					histogramScript.forEach_histogram_compute_avg(allocation_in);
 			}
 			else {
-				if( floating_point )
+				if( fixed16 )
+					histogramScript.forEach_histogram_compute_fixed16(allocation_in);
+				else if( floating_point )
 					histogramScript.forEach_histogram_compute_f(allocation_in);
 				else
 					histogramScript.forEach_histogram_compute(allocation_in);
@@ -2559,7 +2787,7 @@ public class HDRProcessor {
 
 	/** Final stage of the noise reduction algorithm.
 	 *  Note that the returned bitmap will be scaled up by the factor returned by getAvgSampleSize().
-	 * @param input         The allocation in floating point format.
+	 * @param input         The allocation in floating point (or 16-bit fixed point) format, as returned by processAvg().
 	 * @param width         Width of the input.
 	 * @param height        Height of the input.
 	 * @param iso           ISO used for the original images.
@@ -2618,6 +2846,10 @@ public class HDRProcessor {
 		}*/
 		ScriptC_avg_brighten avgBrightenScript = new ScriptC_avg_brighten(rs);
 		avgBrightenScript.set_bitmap(input);
+		boolean fixed16 = isFixed16(input);
+		if( MyDebug.LOG )
+			Log.d(TAG, "fixed16: " + fixed16);
+		avgBrightenScript.set_fixed16(fixed16 ? 1 : 0);
 		float black_level = 0.0f;
 		{
 			// quick and dirty dehaze algorithm
@@ -2728,7 +2960,10 @@ public class HDRProcessor {
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time after creating allocation_out: " + (System.currentTimeMillis() - time_s));
 
-        avgBrightenScript.forEach_avg_brighten_f(input, allocation_out);
+		if( fixed16 )
+			avgBrightenScript.forEach_avg_brighten_fixed16(input, allocation_out);
+		else
+			avgBrightenScript.forEach_avg_brighten_f(input, allocation_out);
 		if( MyDebug.LOG )
 			Log.d(TAG, "### time after avg_brighten: " + (System.currentTimeMillis() - time_s));
 
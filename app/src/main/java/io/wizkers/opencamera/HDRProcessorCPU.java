@@ -0,0 +1,421 @@
+package io.wizkers.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Pure Java implementation of the HDR merging and tonemapping done by process_hdr.rs, for use as
+ *  an alternative to RenderScript. Images are supplied as ARGB int [] planes (in the format
+ *  returned by Bitmap.getPixels()). The output is split into square tiles, which are processed in
+ *  parallel on a ForkJoinPool.
+ */
+public class HDRProcessorCPU {
+	private static final String TAG = "HDRProcessorCPU";
+
+	// constants - should be kept in sync with process_hdr.rs
+	public static final float exposure_c = 1.2f; // for exponential tonemapping
+	public static final float filmic_exposure_bias_c = 2.0f / 255.0f; // for filmic tonemapping
+	private static final float safe_range_c = 96.0f;
+	private static final float wiener_C_lo_c = 2000.0f;
+	private static final float wiener_C_hi_c = 8000.0f;
+
+	public static final int default_tile_size_c = 256;
+
+	private final ForkJoinPool pool;
+	private final int tile_size;
+
+	/** Parameters for the tonemapping, as computed in HDRProcessor.processHDRCore().
+	 */
+	public static class TonemapParameters {
+		final HDRProcessor.TonemappingAlgorithm algorithm;
+		final float tonemap_scale; // for Reinhard
+		final float linear_scale; // for exponential and Reinhard
+		final float W; // for filmic
+		final float white_scale; // for filmic
+		TonemapLUT lut; // if non-null, use this lookup table instead of evaluating the curve for each pixel
+
+		public TonemapParameters(HDRProcessor.TonemappingAlgorithm algorithm, float tonemap_scale, float linear_scale, float W) {
+			this.algorithm = algorithm;
+			this.tonemap_scale = tonemap_scale;
+			this.linear_scale = linear_scale;
+			this.W = W;
+			this.white_scale = algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_FILMIC ? 255.0f / uncharted2Tonemap(W) : 1.0f;
+		}
+
+		/** Sets a lookup table to use for tonemapping, which should have been created with these
+		 *  parameters. If null, the tonemapping curve is evaluated for each pixel.
+		 */
+		public void setLUT(TonemapLUT lut) {
+			this.lut = lut;
+		}
+	}
+
+	/**
+	 * @param pool      The pool to run the tiles on. If null, a new pool is created with parallelism
+	 *                  equal to the number of available processors.
+	 * @param tile_size The width and height of the tiles that the output image is split into.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public HDRProcessorCPU(ForkJoinPool pool, int tile_size) {
+		if( tile_size <= 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "invalid tile_size: " + tile_size);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.pool = pool != null ? pool : new ForkJoinPool();
+		this.tile_size = tile_size;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	public int getTileSize() {
+		return tile_size;
+	}
+
+	/** Merges a set of images into a single tonemapped image. This gives the same results (up to
+	 *  floating point differences) as the hdr_n kernel in process_hdr.rs (which in turn gives the
+	 *  same results as the hdr kernel, for 3 images).
+	 * @param images      The input images, sorted from darkest to brightest. Must be between 2 and 7
+	 *                    images, each of size width*height.
+	 * @param base_index  The index of the image to use for the base exposure (the image that is
+	 *                    read for pixels that fall outside of another image due to its offset). This
+	 *                    image must have an offset of 0.
+	 * @param offsets_x   The offsets for each image, as computed by auto-alignment.
+	 * @param offsets_y   The offsets for each image, as computed by auto-alignment.
+	 * @param parameter_A The response function parameters for each image.
+	 * @param parameter_B The response function parameters for each image.
+	 * @param tonemap     The tonemapping parameters.
+	 * @param output      Array of size width*height to store the result. This may be equal to
+	 *                    images[base_index].
+	 */
+	public void processHDR(int [][] images, int width, int height, int base_index, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, TonemapParameters tonemap, int [] output) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "processHDR");
+		final int n_bitmaps = images.length;
+		if( n_bitmaps < 2 || n_bitmaps > 7 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "n_bitmaps not supported: " + n_bitmaps);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		else if( offsets_x[base_index] != 0 || offsets_y[base_index] != 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "base image must have zero offset");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		for(int i=0;i<n_bitmaps;i++) {
+			if( images[i].length < width*height ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "image " + i + " is too small: " + images[i].length);
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+			}
+		}
+
+		long time_s = System.currentTimeMillis();
+		MergeJob job = new MergeJob(images, width, height, base_index, offsets_x, offsets_y, parameter_A, parameter_B, tonemap, output);
+		pool.invoke(new TileTask(job, 0, job.n_tiles_x * job.n_tiles_y));
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for processHDR: " + (System.currentTimeMillis() - time_s) + " (" + job.n_tiles_x + "x" + job.n_tiles_y + " tiles, parallelism " + pool.getParallelism() + ")");
+	}
+
+	/** Stores the (read-only) state shared by all the tiles for a single merge.
+	 */
+	private class MergeJob {
+		final int [][] images;
+		final int width;
+		final int height;
+		final int base_index;
+		final int [] offsets_x;
+		final int [] offsets_y;
+		final float [] parameter_A;
+		final float [] parameter_B;
+		final TonemapParameters tonemap;
+		final int [] output;
+		final int n_tiles_x;
+		final int n_tiles_y;
+
+		MergeJob(int [][] images, int width, int height, int base_index, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, TonemapParameters tonemap, int [] output) {
+			this.images = images;
+			this.width = width;
+			this.height = height;
+			this.base_index = base_index;
+			this.offsets_x = offsets_x;
+			this.offsets_y = offsets_y;
+			this.parameter_A = parameter_A;
+			this.parameter_B = parameter_B;
+			this.tonemap = tonemap;
+			this.output = output;
+			this.n_tiles_x = (width + tile_size - 1) / tile_size;
+			this.n_tiles_y = (height + tile_size - 1) / tile_size;
+		}
+
+		void processTile(int tile) {
+			final int n_bitmaps = images.length;
+			final int mid_indx = (n_bitmaps-1)/2; // as in process_hdr.rs, parameters for out of bounds pixels are taken from this image
+			final int x0 = (tile % n_tiles_x) * tile_size;
+			final int y0 = (tile / n_tiles_x) * tile_size;
+			final int x1 = Math.min(x0 + tile_size, width);
+			final int y1 = Math.min(y0 + tile_size, height);
+			// per-tile scratch arrays, so that we don't allocate per pixel
+			int [] pixels = new int[n_bitmaps];
+			float [] this_A = new float[n_bitmaps];
+			float [] this_B = new float[n_bitmaps];
+			for(int y=y0;y<y1;y++) {
+				for(int x=x0;x<x1;x++) {
+					final int indx = y*width + x;
+					final int in = images[base_index][indx];
+					for(int i=0;i<n_bitmaps;i++) {
+						int ix = x + offsets_x[i];
+						int iy = y + offsets_y[i];
+						if( ix >= 0 && iy >= 0 && ix < width && iy < height ) {
+							pixels[i] = images[i][iy*width + ix];
+							this_A[i] = parameter_A[i];
+							this_B[i] = parameter_B[i];
+						}
+						else {
+							pixels[i] = in;
+							this_A[i] = parameter_A[mid_indx];
+							this_B[i] = parameter_B[mid_indx];
+						}
+					}
+					// n.b., safe to write to output even if it's the same array as images[base_index], as
+					// no other pixel reads this position of the base image
+					output[indx] = mergePixel(n_bitmaps, pixels, this_A, this_B, tonemap);
+				}
+			}
+		}
+	}
+
+	/** Recursively splits a range of tiles until we have a single tile to process.
+	 */
+	private static class TileTask extends RecursiveAction {
+		private final MergeJob job;
+		private final int tile_start;
+		private final int tile_end;
+
+		TileTask(MergeJob job, int tile_start, int tile_end) {
+			this.job = job;
+			this.tile_start = tile_start;
+			this.tile_end = tile_end;
+		}
+
+		@Override
+		protected void compute() {
+			if( tile_end - tile_start <= 1 ) {
+				if( tile_start < tile_end )
+					job.processTile(tile_start);
+			}
+			else {
+				int mid = (tile_start + tile_end) / 2;
+				invokeAll(new TileTask(job, tile_start, mid), new TileTask(job, mid, tile_end));
+			}
+		}
+	}
+
+	private static float weightForDiff(float diff) {
+		if( diff > safe_range_c ) {
+			// scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+			return 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+		}
+		return 1.0f;
+	}
+
+	/** Java version of the hdr_n kernel in process_hdr.rs - see that file for more details of the
+	 *  algorithm.
+	 * @return The tonemapped pixel, in ARGB format.
+	 */
+	static int mergePixel(int n_bitmaps, int [] pixels, float [] parameter_A, float [] parameter_B, TonemapParameters tonemap) {
+		final int mid_indx = (n_bitmaps-1)/2; // round down to dark image for even number of bitmaps
+		final boolean even = n_bitmaps % 2 == 0;
+
+		float hdr_r = 0.0f, hdr_g = 0.0f, hdr_b = 0.0f;
+		float sum_weight = 0.0f;
+
+		int pixel = pixels[mid_indx];
+		float r = (pixel >> 16) & 0xff;
+		float g = (pixel >> 8) & 0xff;
+		float b = pixel & 0xff;
+		float avg = (r+g+b) / 3.0f;
+		float diff = Math.abs( avg - 127.5f );
+		float weight = weightForDiff(diff);
+
+		// response function
+		r = parameter_A[mid_indx] * r + parameter_B[mid_indx];
+		g = parameter_A[mid_indx] * g + parameter_B[mid_indx];
+		b = parameter_A[mid_indx] * b + parameter_B[mid_indx];
+
+		hdr_r += weight * r;
+		hdr_g += weight * g;
+		hdr_b += weight * b;
+		sum_weight += weight;
+
+		if( even ) {
+			int pixel1 = pixels[mid_indx+1];
+			float r1 = (pixel1 >> 16) & 0xff;
+			float g1 = (pixel1 >> 8) & 0xff;
+			float b1 = pixel1 & 0xff;
+			float avg1 = (r1+g1+b1) / 3.0f;
+			float weight1 = weightForDiff( Math.abs( avg1 - 127.5f ) );
+			r1 = parameter_A[mid_indx+1] * r1 + parameter_B[mid_indx+1];
+			g1 = parameter_A[mid_indx+1] * g1 + parameter_B[mid_indx+1];
+			b1 = parameter_A[mid_indx+1] * b1 + parameter_B[mid_indx+1];
+
+			hdr_r += weight1 * r1;
+			hdr_g += weight1 * g1;
+			hdr_b += weight1 * b1;
+			sum_weight += weight1;
+
+			avg = (avg+avg1)/2.0f;
+			weight = (weight+weight1)/2.0f;
+		}
+
+		if( weight < 1.0f ) {
+			final float base_r = r, base_g = g, base_b = b;
+			int adj_indx = mid_indx;
+			int step_dir = avg <= 127.5f ? 1 : -1;
+			if( even && step_dir == 1 ) {
+				adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+			}
+
+			int n_adj = (n_bitmaps-1)/2;
+			for(int k=0;k<n_adj;k++) {
+				// now look at a neighbour image
+				weight = 1.0f - weight;
+				adj_indx += step_dir;
+
+				pixel = pixels[adj_indx];
+				r = (pixel >> 16) & 0xff;
+				g = (pixel >> 8) & 0xff;
+				b = pixel & 0xff;
+				if( k+1 < n_adj ) {
+					// there will be at least one more adjacent image to look at
+					avg = (r+g+b) / 3.0f;
+					diff = Math.abs( avg - 127.5f );
+					weight *= weightForDiff(diff);
+				}
+				r = parameter_A[adj_indx] * r + parameter_B[adj_indx];
+				g = parameter_A[adj_indx] * g + parameter_B[adj_indx];
+				b = parameter_A[adj_indx] * b + parameter_B[adj_indx];
+
+				float value = Math.max(r, Math.max(g, b));
+				if( value <= 250.0f ) {
+					// deghosting
+					float wiener_C = wiener_C_lo_c; // higher value means more HDR but less ghosting
+					float x = Math.abs( value - 127.5f ) - 96.0f;
+					if( x > 0.0f ) {
+						final float scale = (wiener_C_hi_c-wiener_C_lo_c)/(127.5f-96.0f);
+						wiener_C = wiener_C_lo_c + x*scale;
+					}
+					float diff_r = base_r - r;
+					float diff_g = base_g - g;
+					float diff_b = base_b - b;
+					float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+					float ghost_weight = L/(L+wiener_C);
+					r = ghost_weight * base_r + (1.0f-ghost_weight) * r;
+					g = ghost_weight * base_g + (1.0f-ghost_weight) * g;
+					b = ghost_weight * base_b + (1.0f-ghost_weight) * b;
+				}
+
+				hdr_r += weight * r;
+				hdr_g += weight * g;
+				hdr_b += weight * b;
+				sum_weight += weight;
+
+				if( diff <= safe_range_c ) {
+					break;
+				}
+			}
+		}
+
+		hdr_r /= sum_weight;
+		hdr_g /= sum_weight;
+		hdr_b /= sum_weight;
+
+		if( tonemap.lut != null )
+			return tonemap.lut.tonemap(hdr_r, hdr_g, hdr_b);
+		return tonemap(hdr_r, hdr_g, hdr_b, tonemap);
+	}
+
+	static float uncharted2Tonemap(float x) {
+		final float A = 0.15f;
+		final float B = 0.50f;
+		final float C = 0.10f;
+		final float D = 0.20f;
+		final float E = 0.02f;
+		final float F = 0.30f;
+		return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+	}
+
+	private static int clampToByte(float value) {
+		int i = (int)(value + 0.5f);
+		return i < 0 ? 0 : i > 255 ? 255 : i;
+	}
+
+	static float aces(float x) {
+		final float a = 2.51f;
+		final float b = 0.03f;
+		final float c = 2.43f;
+		final float d = 0.59f;
+		final float e = 0.14f;
+		return 255.0f * (x*(a*x+b))/(x*(c*x+d)+e);
+	}
+
+	/** Java version of tonemap() in process_hdr.rs.
+	 * @return The tonemapped pixel, in ARGB format.
+	 */
+	static int tonemap(float hdr_r, float hdr_g, float hdr_b, TonemapParameters tonemap) {
+		int out_r, out_g, out_b;
+		switch( tonemap.algorithm ) {
+			case TONEMAPALGORITHM_CLAMP:
+				out_r = clampToByte(hdr_r);
+				out_g = clampToByte(hdr_g);
+				out_b = clampToByte(hdr_b);
+				break;
+			case TONEMAPALGORITHM_EXPONENTIAL:
+			{
+				float scale = tonemap.linear_scale * 255.0f;
+				out_r = clampToByte( scale * (1.0f - (float)Math.exp( - exposure_c * hdr_r / 255.0f )) );
+				out_g = clampToByte( scale * (1.0f - (float)Math.exp( - exposure_c * hdr_g / 255.0f )) );
+				out_b = clampToByte( scale * (1.0f - (float)Math.exp( - exposure_c * hdr_b / 255.0f )) );
+				break;
+			}
+			case TONEMAPALGORITHM_REINHARD:
+			{
+				float value = Math.max(hdr_r, Math.max(hdr_g, hdr_b));
+				float scale = 255.0f / ( tonemap.tonemap_scale + value );
+				scale *= tonemap.linear_scale;
+				// shouldn't need to clamp - linear_scale should be such that values don't map to more than 255 - but
+				// we clamp anyway, to be safe against floating point differences
+				out_r = clampToByte(scale * hdr_r);
+				out_g = clampToByte(scale * hdr_g);
+				out_b = clampToByte(scale * hdr_b);
+				break;
+			}
+			case TONEMAPALGORITHM_FILMIC:
+				// Filmic Uncharted 2
+				out_r = clampToByte( tonemap.white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_r) );
+				out_g = clampToByte( tonemap.white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_g) );
+				out_b = clampToByte( tonemap.white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_b) );
+				break;
+			case TONEMAPALGORITHM_ACES:
+				out_r = clampToByte( aces(hdr_r/255.0f) );
+				out_g = clampToByte( aces(hdr_g/255.0f) );
+				out_b = clampToByte( aces(hdr_b/255.0f) );
+				break;
+			default:
+				if( MyDebug.LOG )
+					Log.e(TAG, "unknown tonemapping algorithm: " + tonemap.algorithm);
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+		}
+		return 0xff000000 | (out_r << 16) | (out_g << 8) | out_b;
+	}
+}
@@ -3,7 +3,11 @@ package io.wizkers.opencamera;
 import io.wizkers.opencamera.CameraController.CameraController;
 import io.wizkers.opencamera.CameraController.RawImage;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -11,6 +15,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -19,6 +25,11 @@ import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -28,15 +39,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Rect;
 import android.location.Location;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Process;
 import android.renderscript.Allocation;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
@@ -56,6 +70,37 @@ public class ImageSaver extends Thread {
 
 	private final MainActivity main_activity;
 	private final HDRProcessor hdrProcessor;
+	private final BitmapDecodePool decode_pool; // for decoding jpegs, and reusing the memory of bitmaps no longer needed
+	private FocusStacker focus_stacker; // lazily created for focus stacking
+	private JpegLosslessTransform jpeg_lossless_transform; // lazily created for mirroring jpegs without decoding them
+	private AffineResampler affine_resampler; // lazily created for rotating, auto-stabilising and mirroring bitmaps
+	private JpegStripEditor jpeg_strip_editor; // lazily created for stamping jpegs without decoding them
+	/* Background requests for JPEGs are journalled to the spool when queued (see spoolRequest()), so that if the
+	 * application is killed before they're saved, they're saved when the application next starts (see recoverSpool()).
+	 * Whilst waiting on the queue, a spooled request doesn't hold its images on the heap, and isn't admitted to
+	 * memory_budget until the saver thread starts on it, so the number of photos waiting is limited by the storage
+	 * rather than the heap.
+	 * The spool is opened on the saver thread, so is null until then, or if it's not available.
+	 */
+	private volatile CaptureSpool spool;
+	private final ExecutorService spool_executor = Executors.newSingleThreadExecutor(); // journals requests to spool before adding them to the queue, see addRequest()
+	private final static String spool_filename_c = "capture_spool";
+	private final static int spool_format_version_c = 2;
+	private final static int spool_max_recoveries_c = 1; // if a request still hasn't been saved after this many restarts, give up on it
+	private boolean hdr_thumbnail_preview = true; // whether to show a low resolution HDR image as the thumbnail, before processing the full resolution HDR image
+	private boolean thread_priority_lowered; // whether lowerThreadPriority() has been called for the current request; only accessed on the saver thread
+	private int saved_thread_priority;
+
+	// histograms of the time taken by each stage of saving, always recorded so we can see why saves are slow on some
+	// devices, see getLatencyRecorder()
+	private final SaveLatencyRecorder latency_recorder = new SaveLatencyRecorder();
+	private final static String latency_report_filename_c = "save_latency.txt";
+
+	// for testing; must be volatile for test project reading the state
+	public volatile long test_hdr_preview_time_ms = -1; // for the last HDR photo, time to show the low resolution thumbnail, or -1 if not shown
+	public volatile long test_hdr_full_time_ms = -1; // for the last HDR photo, time to save the full resolution HDR image
+	public volatile int test_n_avg_data; // number of AvgData created by processImageAverageFrame() that haven't yet been destroyed
+	public volatile int test_fail_average_frame = -1; // if set, the image with this index is treated as failing to decode by processImageAverageFrame()
 
 	/* We use a separate count n_images_to_save, rather than just relying on the queue size, so we can take() an image from queue,
 	 * but only decrement the count when we've finished saving the image.
@@ -71,18 +116,60 @@ public class ImageSaver extends Thread {
 	private final static int queue_cost_jpeg_c = 1;
 	private final static int queue_cost_dng_c = 6;
 	//private final static int queue_cost_dng_c = 1;
+	/* As well as the number of slots on the queue, we estimate the memory needed to save each request (including any
+	 * decoded bitmaps and HDR/NR intermediates), and only allow taking a new photo if the memory needed for the queued
+	 * requests fits within memory_budget - see queueWouldBlock(). Requests are admitted to memory_budget in addRequest(),
+	 * and released once the last of their images has been written, see releaseBudget().
+	 * The budget is a proportion of the Java heap size, which bounds the memory for the queued requests. From Android 8
+	 * bitmaps are allocated on the native heap instead, so getFreeMemoryBytes() checks the memory actually available.
+	 */
+	private final SaveMemoryBudget memory_budget;
+	private final ActivityManager.MemoryInfo memory_info = new ActivityManager.MemoryInfo(); // only accessed in queueWouldBlock(), which is synchronized
+	private long memory_info_time_ms;
+
+	/* Saving a single JPEG is split into stages (see saveSingleImageNow()): decoding and post-processing (including HDR,
+	 * NR and focus stacking) happen on the saver thread, which also chooses the filename, so that filenames follow the
+	 * order of requests. The image is then compressed on encode_executor, and written out along with its EXIF tags,
+	 * media scanned, and shown as the thumbnail on write_executor. write_executor is single threaded, so images are
+	 * written and indexed in the same order they were queued. The saver thread can start on the next request whilst
+	 * earlier images are still being compressed and written.
+	 * At most pipeline_depth images may be in the encode or write stages at once (each may hold a full size bitmap), this
+	 * is enforced by output_permits: once full, the saver thread blocks, and so in turn the queue fills up.
+	 * n_pending_outputs is the number of images in the encode or write stages; waitUntilDone() also waits for this to be 0.
+	 * Access to n_pending_outputs should always be synchronized to this (i.e., the ImageSaver class)
+	 */
+	private final int pipeline_depth; // if 0, images are saved entirely on the thread calling saveSingleImageNow()
+	private final Semaphore output_permits;
+	private final ExecutorService encode_executor;
+	private final ExecutorService write_executor;
+	private int n_pending_outputs = 0;
+	/* RAW requests saved in the background bypass the queue and the saver thread, and are instead written as DNGs on
+	 * raw_executor (see addRawRequest()), so that writing a large DNG doesn't hold up processing the JPEGs of the
+	 * following photos, and vice versa. At most raw_queue_capacity RAW requests may be waiting or being written at once,
+	 * which is enforced by raw_permits (and queueWouldBlock() won't allow another photo with RAW once this is reached).
+	 * RAW requests are included in n_images_to_save; n_raw_to_save is the number of those that are RAW.
+	 * Access to n_raw_to_save should always be synchronized to this (i.e., the ImageSaver class)
+	 */
+	private final int raw_queue_capacity;
+	private final Semaphore raw_permits;
+	private final ExecutorService raw_executor; // null if RAW isn't supported
+	private int n_raw_to_save = 0;
+	private final static int raw_buffer_size_c = 256*1024; // DngCreator writes in small chunks, so buffer the output
 
 	static class Request {
 		enum Type {
 			JPEG,
 			RAW,
+			AVERAGE_FRAME, // a single image for an AVERAGE request, that is averaged as soon as it arrives
+			AVERAGE_ABORT, // an AVERAGE request whose capture was abandoned, so the running average is discarded
 			DUMMY
 		}
 		Type type = Type.JPEG;
 		enum ProcessType {
 			NORMAL,
 			HDR,
-			AVERAGE
+			AVERAGE,
+			FOCUS_STACK // merge focus bracketed images, see FocusStacker
 		}
 		final ProcessType process_type; // for jpeg
 		final boolean force_suffix; // affects filename suffixes for saving jpeg_images: if true, filenames will always be appended with a suffix like _0, even if there's only 1 image in jpeg_images
@@ -98,7 +185,7 @@ public class ImageSaver extends Thread {
 		 * image, this uses fake HDR or "DRO").
 		 * If process_type==NORMAL, then multiple images are saved sequentially.
 		 */
-		final List<byte []> jpeg_images;
+		List<JpegBuffer> jpeg_images; // null whilst a spooled request is waiting on the queue, see spoolRequest()
 		final RawImage raw_image; // for raw
 		final boolean image_capture_intent;
 		final Uri image_capture_intent_uri;
@@ -126,13 +213,21 @@ public class ImageSaver extends Thread {
 		final String custom_tag_artist;
 		final String custom_tag_copyright;
 		int sample_factor = 1; // sampling factor for thumbnail, higher means lower quality
+		ImageAverageState avg_state; // for process_type AVERAGE and type AVERAGE_FRAME, if the images are being averaged as they arrive (may be null otherwise)
+		boolean thumbnail_preview_shown; // for process_type HDR, whether a low resolution version of the result has already been shown as the thumbnail
+		HDRProcessor.HDRAlgorithm hdr_algorithm = HDRProcessor.HDRAlgorithm.HDRALGORITHM_STANDARD; // for process_type HDR, the algorithm for merging multiple images
+		long exposure_time; // exposure time of the (first) image from its capture result, in nanoseconds, or 0 if not known; not applicable for RAW image
+		long budget_bytes; // the estimate of memory admitted to memory_budget for this request
+		long queue_time; // when the request was added to the queue (see SaveLatencyRecorder.now()), or 0 if not saved in background
+		CaptureSpool.Entry spool_entry; // if not null, the request has been journalled to spool
+		volatile boolean output_failed; // set if any image of the request failed to be written, see finishSingleImageOutput()
 		
 		Request(Type type,
 			ProcessType process_type,
 			boolean force_suffix,
 			int suffix_offset,
 			SaveBase save_base,
-			List<byte []> jpeg_images,
+			List<JpegBuffer> jpeg_images,
 			RawImage raw_image,
 			boolean image_capture_intent, Uri image_capture_intent_uri,
 			boolean using_camera2, int image_quality,
@@ -182,6 +277,26 @@ public class ImageSaver extends Thread {
 		}
 	}
 
+	/** The state for averaging images as they arrive, rather than waiting for all of the images to
+	 *  be received (see startImageAverage()). Only accessed on the saver thread.
+	 */
+	static class ImageAverageState {
+		final int iso;
+		int n_images; // number of images received by addImageAverage()
+		int n_frames; // number of images that processImageAverageFrame() has been called for
+		int n_processed; // number of images that have been averaged successfully
+		int inSampleSize;
+		int width;
+		int height;
+		Bitmap first_bitmap; // the first image, until the second image arrives
+		HDRProcessor.AvgData avg_data;
+		long time_s; // time when the first image started being processed, or 0 if not yet started
+
+		ImageAverageState(int iso) {
+			this.iso = iso;
+		}
+	}
+
 	ImageSaver(MainActivity main_activity) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "ImageSaver");
@@ -190,8 +305,32 @@ public class ImageSaver extends Thread {
 		ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
 		this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
 		this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+		this.memory_budget = new SaveMemoryBudget(SaveMemoryBudget.computeBudget(Runtime.getRuntime().maxMemory()));
+
+		this.pipeline_depth = computePipelineDepth(activityManager.getLargeMemoryClass(), Runtime.getRuntime().availableProcessors());
+		this.output_permits = new Semaphore(pipeline_depth);
+		if( pipeline_depth > 0 ) {
+			this.encode_executor = Executors.newFixedThreadPool(pipeline_depth);
+			this.write_executor = Executors.newSingleThreadExecutor();
+		}
+		else {
+			this.encode_executor = null;
+			this.write_executor = null;
+		}
+		this.raw_queue_capacity = computeRawQueueSize(activityManager.getLargeMemoryClass());
+		this.raw_permits = new Semaphore(raw_queue_capacity);
+		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			this.raw_executor = Executors.newSingleThreadExecutor();
+		}
+		else {
+			this.raw_executor = null;
+		}
 
+		// retain up to a sixth of the heap for reuse, which is enough for one or two full size bitmaps on devices with a
+		// large heap; the pool is cleared when the saver becomes idle, see clearDecodePoolIfIdle()
+		this.decode_pool = new BitmapDecodePool(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory()/6);
 		this.hdrProcessor = new HDRProcessor(main_activity);
+		hdrProcessor.setBitmapPool(decode_pool);
 
 		p.setAntiAlias(true);
 	}
@@ -241,6 +380,45 @@ public class ImageSaver extends Thread {
 		return max_queue_size;
 	}
 
+	/** Compute how many RAW images may be waiting to be written at once, based on the device's memory (large heap).
+	 *  Note that the RAW images themselves are held in native buffers of the camera's ImageReader rather than on the Java
+	 *  heap, and this also sets the number of those buffers (see getMaxDNG()), which the camera has to allocate when the
+	 *  capture session is configured. So this is the same number of RAW images as the ImageSaver queue allowed before
+	 *  RAW images had their own queue, rather than being raised for a larger Java heap.
+	 */
+	public static int computeRawQueueSize(int large_heap_memory) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
+		int raw_queue_size = (computeQueueSize(large_heap_memory)+1)/queue_cost_dng_c;
+		if( MyDebug.LOG )
+			Log.d(TAG, "raw_queue_size = " + raw_queue_size);
+		return raw_queue_size;
+	}
+
+	/** Compute how many images can be compressed and written at once, in parallel with the saver thread, based on the
+	 *  device's memory (large heap) and number of CPUs. Returns 0 if images should instead be saved entirely on the saver
+	 *  thread.
+	 */
+	public static int computePipelineDepth(int large_heap_memory, int n_cpus) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "large max memory = " + large_heap_memory + "MB, n_cpus = " + n_cpus);
+		int max_pipeline_depth;
+		if( large_heap_memory >= 256 ) {
+			// each image in the pipeline may hold a full size bitmap (e.g., 48MB for 12 megapixels), so allow one image per
+			// 192MB, which leaves most of the memory reserved for post-processing (see computeQueueSize())
+			max_pipeline_depth = large_heap_memory/192;
+		}
+		else {
+			// not enough memory to hold another bitmap whilst post-processing the next image
+			max_pipeline_depth = 0;
+		}
+		// otherwise scale with the number of CPUs, leaving one CPU for the saver thread
+		int pipeline_depth = Math.max(Math.min(max_pipeline_depth, n_cpus-1), 0);
+		if( MyDebug.LOG )
+			Log.d(TAG, "pipeline_depth = " + pipeline_depth);
+		return pipeline_depth;
+	}
+
 	/** Computes the cost for a particular request.
 	 *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
 	 *  of the two requests: one RAW, one JPEG).
@@ -274,7 +452,12 @@ public class ImageSaver extends Thread {
 			Log.d(TAG, "n_jpegs: " + n_jpegs);
 		}
 		int cost;
-		if( has_raw ) {
+		if( has_raw && raw_executor != null ) {
+			// the RAW request doesn't go on the queue, see addRawRequest(); but even in RAW only mode, we still include the
+			// cost of a JPEG, as we still take a JPEG photo
+			cost = computeRequestCost(false, 1);
+		}
+		else if( has_raw ) {
 			// even in RAW only mode, we still include the cost of a JPEG, as we still take a JPEG photo
 			cost = computeRequestCost(true, 0) + computeRequestCost(false, 1);
 		}
@@ -285,14 +468,118 @@ public class ImageSaver extends Thread {
 		return cost;
 	}
 
-	/** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
+	/** Computes an estimate of the memory needed to save a new photo, see SaveMemoryBudget.
+	 * @param has_raw Whether this is RAW+JPEG or RAW only.
+	 * @param kind The kind of processing for the JPEGs.
+	 * @param n_jpegs If has_raw is false, the number of JPEGs that will be taken.
+	 * @param picture_size The resolution of the photo; if null, 0 is returned.
+	 */
+	static long computePhotoBytes(boolean has_raw, SaveMemoryBudget.RequestKind kind, int n_jpegs, CameraController.Size picture_size) {
+		if( picture_size == null ) {
+			return 0;
+		}
+		long bytes;
+		if( has_raw ) {
+			// as for computePhotoCost(), include the JPEG, as we still take a JPEG photo
+			bytes = SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.RAW, 1, picture_size.width, picture_size.height, -1);
+			bytes += SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.JPEG, 1, picture_size.width, picture_size.height, -1);
+		}
+		else {
+			bytes = SaveMemoryBudget.estimateRequestBytes(kind, n_jpegs, picture_size.width, picture_size.height, -1);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "photo bytes: " + bytes);
+		return bytes;
+	}
+
+	/** Returns an estimate of the memory needed to save the request, see SaveMemoryBudget.
+	 */
+	private long estimateRequestBytes(Request request) {
+		if( request.type == Request.Type.DUMMY || request.type == Request.Type.AVERAGE_ABORT ) {
+			return 0;
+		}
+		else if( request.type == Request.Type.RAW ) {
+			if( request.raw_image == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+				return 0;
+			}
+			return SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.RAW, 1, request.raw_image.getWidth(), request.raw_image.getHeight(), -1);
+		}
+		else if( request.jpeg_images.size() == 0 ) {
+			return 0;
+		}
+		long encoded_bytes = 0;
+		for(JpegBuffer image : request.jpeg_images) {
+			encoded_bytes += image.getLength();
+		}
+		// read the resolution without decompressing
+		JpegBuffer first_image = request.jpeg_images.get(0);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(first_image.getArray(), 0, first_image.getLength(), options);
+		if( options.outWidth <= 0 || options.outHeight <= 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read jpeg resolution");
+			return encoded_bytes;
+		}
+		SaveMemoryBudget.RequestKind kind;
+		if( request.type == Request.Type.AVERAGE_FRAME ) {
+			// frame is decoded and added to the running average, which is accounted for by the final request
+			kind = SaveMemoryBudget.RequestKind.JPEG;
+		}
+		else {
+			switch( request.process_type ) {
+				case HDR:
+					kind = SaveMemoryBudget.RequestKind.HDR;
+					break;
+				case AVERAGE:
+					kind = SaveMemoryBudget.RequestKind.AVERAGE;
+					break;
+				case FOCUS_STACK:
+					kind = SaveMemoryBudget.RequestKind.FOCUS_STACK;
+					break;
+				default:
+					kind = SaveMemoryBudget.RequestKind.JPEG;
+					break;
+			}
+		}
+		return SaveMemoryBudget.estimateRequestBytes(kind, request.jpeg_images.size(), options.outWidth, options.outHeight, encoded_bytes);
+	}
+
+	/** Returns the memory that's currently free for saving images. Before Android 8, bitmaps are allocated on the Java
+	 *  heap, so this is the heap that's free, including memory that the heap can still grow by. From Android 8, bitmaps
+	 *  (and RAW images) are allocated on the native heap, which isn't limited by the Java heap size, so this is instead
+	 *  the memory available to the system before it starts killing processes. In both cases, the encoded JPEGs are on the
+	 *  Java heap, but these are small compared to the decoded bitmaps.
+	 */
+	private long getFreeMemoryBytes() {
+		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
+			long time_ms = System.currentTimeMillis();
+			if( memory_info_time_ms == 0 || time_ms > memory_info_time_ms + 1000 ) {
+				// this is polled by the UI, so don't make the system call every time
+				ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
+				activityManager.getMemoryInfo(memory_info);
+				memory_info_time_ms = time_ms;
+			}
+			return Math.max(memory_info.availMem - memory_info.threshold, 0);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/** Whether taking an extra photo would overflow the queue, resulting in the UI hanging, or would need more memory
+	 *  than available in the memory budget.
+	 * @param has_raw Whether this is RAW+JPEG or RAW only.
 	 * @param photo_cost The result returned by computePhotoCost().
+	 * @param photo_bytes The result returned by computePhotoBytes().
 	 */
-	synchronized boolean queueWouldBlock(int photo_cost) {
+	synchronized boolean queueWouldBlock(boolean has_raw, int photo_cost, long photo_bytes) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "queueWouldBlock");
+			Log.d(TAG, "has_raw: " + has_raw);
 			Log.d(TAG, "photo_cost: " + photo_cost);
+			Log.d(TAG, "photo_bytes: " + photo_bytes);
 			Log.d(TAG, "n_images_to_save: " + n_images_to_save);
+			Log.d(TAG, "n_raw_to_save: " + n_raw_to_save);
 			Log.d(TAG, "queue_capacity: " + queue_capacity);
 		}
 		// we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
@@ -303,18 +590,44 @@ public class ImageSaver extends Thread {
 			// to disallow ever taking photos!
 			return false;
 		}
-		else if( n_images_to_save + photo_cost > queue_capacity + 1 ) {
+		else if( n_images_to_save - n_raw_to_save + photo_cost > queue_capacity + 1 ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "queue would block");
 			return true;
 		}
+		else if( has_raw && raw_executor != null && n_raw_to_save >= raw_queue_capacity ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "raw queue would block");
+			return true;
+		}
+		else if( !memory_budget.wouldAdmit(photo_bytes, getFreeMemoryBytes()) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "not enough memory in budget");
+			return true;
+		}
 		return false;
 	}
 
 	/** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
+	 * @param picture_size The resolution of the photos, used to limit the number by the memory budget; may be null.
 	 */
-	int getMaxDNG() {
-		int max_dng = (queue_capacity+1)/queue_cost_dng_c;
+	int getMaxDNG(CameraController.Size picture_size) {
+		int max_dng;
+		if( raw_executor != null ) {
+			max_dng = raw_queue_capacity;
+			if( picture_size != null ) {
+				// the JPEGs are saved separately, so only the RAW images are held until the DNGs are written
+				long raw_bytes = SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.RAW, 1, picture_size.width, picture_size.height, -1);
+				max_dng = Math.min(max_dng, memory_budget.getMaxRequests(raw_bytes));
+			}
+		}
+		else {
+			max_dng = (queue_capacity+1)/queue_cost_dng_c;
+			if( picture_size != null ) {
+				long dng_bytes = computePhotoBytes(true, SaveMemoryBudget.RequestKind.JPEG, 1, picture_size);
+				max_dng = Math.min(max_dng, memory_budget.getMaxRequests(dng_bytes));
+			}
+		}
 		max_dng++; // increase by 1, as the user can still take one extra photo if the queue is exactly full
 		if( MyDebug.LOG )
 			Log.d(TAG, "max_dng = " + max_dng);
@@ -325,18 +638,112 @@ public class ImageSaver extends Thread {
 		return n_images_to_save;
 	}
 
+	/** Returns the pool used for decoding jpegs, e.g., to read its metrics (see DrawPreview).
+	 */
+	public BitmapDecodePool getDecodePool() {
+		return decode_pool;
+	}
+
+	/** Once there are no more images to save, free the bitmaps retained by decode_pool, so they don't take memory away
+	 *  from the rest of the application.
+	 */
+	private synchronized void clearDecodePoolIfIdle() {
+		if( n_images_to_save == 0 && n_pending_outputs == 0 ) {
+			decode_pool.clear();
+		}
+	}
+
+	/** Returns the memory budget, e.g., to read the metrics of the requests admitted (see DrawPreview).
+	 */
+	public SaveMemoryBudget getMemoryBudget() {
+		return memory_budget;
+	}
+
+	/** Returns the histograms of the time taken by each stage of saving photos.
+	 */
+	public SaveLatencyRecorder getLatencyRecorder() {
+		return latency_recorder;
+	}
+
+	/** Writes a report of the histograms of the time taken to save photos to the application's external files folder
+	 *  (so it can be read without root access), if any photos have been saved. The report is written on a background
+	 *  thread, so this can be called from the UI thread.
+	 */
+	void writeLatencyReport() {
+		if( !latency_recorder.hasData() ) {
+			return;
+		}
+		new Thread(new Runnable() {
+			public void run() {
+				// synchronize so that reports from pausing and resuming quickly don't write the file at the same time
+				synchronized( latency_recorder ) {
+					writeLatencyReportNow();
+				}
+			}
+		}).start();
+	}
+
+	private void writeLatencyReportNow() {
+		File dir = main_activity.getExternalFilesDir(null);
+		if( dir == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "external files folder not available");
+			return;
+		}
+		File file = new File(dir, latency_report_filename_c);
+		if( MyDebug.LOG )
+			Log.d(TAG, "writeLatencyReportNow: " + file);
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			latency_recorder.writeReport(writer);
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to write latency report: " + e.getMessage());
+			e.printStackTrace();
+		}
+		finally {
+			if( writer != null ) {
+				try {
+					writer.close();
+				}
+				catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
 	void onDestroy() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "onDestroy");
 		if( hdrProcessor != null ) {
 			hdrProcessor.onDestroy();
 		}
+		if( write_executor != null ) {
+			// any images already queued are still saved
+			encode_executor.shutdown();
+			write_executor.shutdown();
+		}
+		if( raw_executor != null ) {
+			raw_executor.shutdown();
+		}
+		decode_pool.onDestroy();
+		CaptureSpool spool = this.spool;
+		// any requests still waiting to be journalled are added to the queue without being spooled
+		spool_executor.shutdown();
+		if( spool != null ) {
+			// any requests not yet saved remain in the spool, and will be saved when the application next starts
+			spool.close();
+		}
 	}
 	@Override
 
 	public void run() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "starting ImageSaver thread...");
+		recoverSpool();
 		while( true ) {
 			try {
 				if( MyDebug.LOG )
@@ -346,51 +753,7 @@ public class ImageSaver extends Thread {
 				// even though we still have a last image to be saved.
 				if( MyDebug.LOG )
 					Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
-				boolean success;
-				switch (request.type) {
-					case RAW:
-						if (MyDebug.LOG)
-							Log.d(TAG, "request is raw");
-						success = saveImageNowRaw(request);
-						break;
-					case JPEG:
-						if (MyDebug.LOG)
-							Log.d(TAG, "request is jpeg");
-						success = saveImageNow(request);
-						break;
-					case DUMMY:
-						if (MyDebug.LOG)
-							Log.d(TAG, "request is dummy");
-						success = true;
-						break;
-					default:
-						if (MyDebug.LOG)
-							Log.e(TAG, "request is unknown type!");
-						success = false;
-						break;
-				}
-				if( MyDebug.LOG ) {
-					if( success )
-						Log.d(TAG, "ImageSaver thread successfully saved image");
-					else
-						Log.e(TAG, "ImageSaver thread failed to save image");
-				}
-				synchronized( this ) {
-					n_images_to_save--;
-					if( MyDebug.LOG )
-						Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
-					if( MyDebug.LOG && n_images_to_save < 0 ) {
-						Log.e(TAG, "images to save has become negative");
-						throw new RuntimeException();
-					}
-					notifyAll();
-
-					main_activity.runOnUiThread(new Runnable() {
-						public void run() {
-							main_activity.imageQueueChanged();
-						}
-					});
-				}
+				processRequest(request);
 			}
 			catch(InterruptedException e) {
 				e.printStackTrace();
@@ -399,118 +762,618 @@ public class ImageSaver extends Thread {
 			}
 		}
 	}
-	
-	/** Saves a photo.
-	 *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
-	 *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
-	 *  If do_in_background is false, the photo is saved on the current thread, and the function returns whether the photo was saved
-	 *  successfully.
+
+	/** Saves a request on the saver thread, then decrements n_images_to_save.
 	 */
-	boolean saveImageJpeg(boolean do_in_background,
-			boolean is_hdr,
-			boolean force_suffix,
-			int suffix_offset,
-			boolean save_expo,
-			List<byte []> images,
-			boolean image_capture_intent, Uri image_capture_intent_uri,
-			boolean using_camera2, int image_quality,
-			boolean do_auto_stabilise, double level_angle,
-			boolean is_front_facing,
-			boolean mirror,
-			Date current_date,
-			int iso,
-			String preference_stamp, String preference_textstamp, int font_size, int color, String pref_style, String preference_stamp_dateformat, String preference_stamp_timeformat, String preference_stamp_gpsformat, String preference_units_distance,
-			boolean store_location, Location location, boolean store_geo_direction, double geo_direction,
-			String custom_tag_artist,
-			String custom_tag_copyright,
-			int sample_factor) {
+	private void processRequest(Request request) {
+		if( request.queue_time != 0 ) {
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.QUEUE_WAIT, request.queue_time);
+		}
+		boolean success;
+		if( request.spool_entry != null && !loadSpooledRequest(request) ) {
+			success = false;
+		}
+		else {
+			success = saveRequest(request);
+		}
 		if( MyDebug.LOG ) {
-			Log.d(TAG, "saveImageJpeg");
-			Log.d(TAG, "do_in_background? " + do_in_background);
-			Log.d(TAG, "number of images: " + images.size());
+			if( success )
+				Log.d(TAG, "ImageSaver thread successfully saved image");
+			else
+				Log.e(TAG, "ImageSaver thread failed to save image");
 		}
-		return saveImage(do_in_background,
-				false,
-				is_hdr,
-				force_suffix,
-				suffix_offset,
-				save_expo,
-				images,
-				null,
-				image_capture_intent, image_capture_intent_uri,
-				using_camera2, image_quality,
-				do_auto_stabilise, level_angle,
-				is_front_facing,
-				mirror,
-				current_date,
-				iso,
-				preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_units_distance,
-				store_location, location, store_geo_direction, geo_direction,
-				custom_tag_artist,
-				custom_tag_copyright,
-				sample_factor);
+		restoreThreadPriority();
+		completeSpooledRequest(request, success);
+		finishRequest(request);
 	}
 
-	/** Saves a RAW photo.
-	 *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
-	 *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
-	 *  If do_in_background is false, the photo is saved on the current thread, and the function returns whether the photo was saved
-	 *  successfully.
+	/** Releases the resources of a request that has been saved, and decrements n_images_to_save.
 	 */
-	boolean saveImageRaw(boolean do_in_background,
-			RawImage raw_image,
-			Date current_date) {
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "saveImageRaw");
-			Log.d(TAG, "do_in_background? " + do_in_background);
+	private void finishRequest(Request request) {
+		releaseImages(request);
+		releaseBudget(request);
+		synchronized( this ) {
+			if( request.type == Request.Type.RAW && raw_executor != null ) {
+				n_raw_to_save--;
+			}
+			n_images_to_save--;
+			if( MyDebug.LOG )
+				Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
+			if( MyDebug.LOG && n_images_to_save < 0 ) {
+				Log.e(TAG, "images to save has become negative");
+				throw new RuntimeException();
+			}
+			notifyAll();
+
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
 		}
-		return saveImage(do_in_background,
-				true,
-				false,
-				false,
-				0,
-				false,
-				null,
-				raw_image,
-				false, null,
-				false, 0,
-				false, 0.0,
-				false,
-				false,
-				current_date,
-				0,
-				null, null, 0, 0, null, null, null, null, null,
-				false, null, false, 0.0,
-				null, null,
-				1);
+		clearDecodePoolIfIdle();
 	}
 
-	private Request pending_image_average_request = null;
-
-	void startImageAverage(boolean do_in_background,
-			Request.SaveBase save_base,
-			boolean image_capture_intent, Uri image_capture_intent_uri,
-			boolean using_camera2, int image_quality,
-			boolean do_auto_stabilise, double level_angle,
-			boolean is_front_facing,
-			boolean mirror,
-			Date current_date,
-			int iso,
-			String preference_stamp, String preference_textstamp, int font_size, int color, String pref_style, String preference_stamp_dateformat, String preference_stamp_timeformat, String preference_stamp_gpsformat, String preference_units_distance,
-			boolean store_location, Location location, boolean store_geo_direction, double geo_direction,
-			String custom_tag_artist,
-			String custom_tag_copyright,
-			int sample_factor) {
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "startImageAverage");
-			Log.d(TAG, "do_in_background? " + do_in_background);
+	/** Releases the images of a request once they're no longer needed, see JpegBuffer.
+	 */
+	private static void releaseImages(Request request) {
+		if( request.jpeg_images != null ) {
+			JpegBuffer.releaseAll(request.jpeg_images);
+			request.jpeg_images = null;
 		}
-		pending_image_average_request = new Request(Request.Type.JPEG,
-				Request.ProcessType.AVERAGE,
-				false,
-				0,
-				save_base,
-				new ArrayList<byte[]>(),
+	}
+
+	/** Saves a request according to its type, returning whether it was successful.
+	 */
+	private boolean saveRequest(Request request) {
+		boolean success;
+		switch (request.type) {
+			case RAW:
+				if (MyDebug.LOG)
+					Log.d(TAG, "request is raw");
+				success = saveImageNowRaw(request);
+				break;
+			case JPEG:
+				if (MyDebug.LOG)
+					Log.d(TAG, "request is jpeg");
+				success = saveImageNow(request);
+				break;
+			case AVERAGE_FRAME:
+				if (MyDebug.LOG)
+					Log.d(TAG, "request is average frame");
+				if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+					success = processImageAverageFrame(request);
+				}
+				else {
+					Log.e(TAG, "average frame requests require Android 5");
+					// throw runtime exception, as this is a programming error
+					throw new RuntimeException();
+				}
+				break;
+			case AVERAGE_ABORT:
+				if (MyDebug.LOG)
+					Log.d(TAG, "request is average abort");
+				if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+					abortImageAverageNow(request);
+				}
+				else {
+					Log.e(TAG, "average abort requests require Android 5");
+					// throw runtime exception, as this is a programming error
+					throw new RuntimeException();
+				}
+				success = true;
+				break;
+			case DUMMY:
+				if (MyDebug.LOG)
+					Log.d(TAG, "request is dummy");
+				success = true;
+				break;
+			default:
+				if (MyDebug.LOG)
+					Log.e(TAG, "request is unknown type!");
+				success = false;
+				break;
+		}
+		return success;
+	}
+
+	/** Opens the spool, then saves any requests that were journalled by a previous instance but never saved (e.g., if
+	 *  the application was killed whilst photos were still waiting to be saved). Called at the start of the saver thread.
+	 */
+	private void recoverSpool() {
+		CaptureSpool new_spool = new CaptureSpool(new File(main_activity.getFilesDir(), spool_filename_c), CaptureSpool.default_min_free_bytes_c);
+		List<CaptureSpool.Entry> entries;
+		try {
+			entries = new_spool.open();
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to open spool: " + e.getMessage());
+			e.printStackTrace();
+			return;
+		}
+		if( entries == null ) {
+			// still in use by a previous instance, e.g., if the activity was recreated whilst that instance was still
+			// saving - requests will be held on the heap instead
+			if( MyDebug.LOG )
+				Log.d(TAG, "spool is in use");
+			return;
+		}
+		List<Request> requests = new ArrayList<>();
+		for(CaptureSpool.Entry entry : entries) {
+			Request request = entry.getNRecoveries() < spool_max_recoveries_c ? readSpoolMetadata(entry.getMetadata()) : null;
+			if( request == null ) {
+				Log.e(TAG, "discard spooled request: " + entry.getId() + " recoveries: " + entry.getNRecoveries());
+				try {
+					new_spool.complete(entry);
+				}
+				catch(IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+			request.spool_entry = entry;
+			requests.add(request);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "recovered spooled requests: " + requests.size());
+		spool = new_spool;
+		if( requests.size() == 0 ) {
+			return;
+		}
+		synchronized( this ) {
+			n_images_to_save += requests.size();
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
+		}
+		for(Request request : requests) {
+			processRequest(request);
+		}
+	}
+
+	/** Whether a request can be journalled to the spool.
+	 */
+	private static boolean isSpoolable(Request request) {
+		// RAW images and frames being averaged as they arrive hold state that can't be written to the spool, and there's
+		// no point saving a photo for an image capture intent once the application was killed, as the caller won't get it
+		return request.type == Request.Type.JPEG && request.avg_state == null && !request.image_capture_intent &&
+				request.jpeg_images != null && request.jpeg_images.size() > 0;
+	}
+
+	/** Journals a request being added to the queue to the spool, if possible, and releases its images from the heap.
+	 *  Returns whether the request was spooled. Called on spool_executor.
+	 */
+	private boolean spoolRequest(Request request) {
+		CaptureSpool spool = this.spool;
+		if( spool == null || !isSpoolable(request) ) {
+			return false;
+		}
+		long bytes = 0;
+		for(JpegBuffer image : request.jpeg_images) {
+			bytes += image.getLength();
+		}
+		if( !spool.hasSpaceFor(bytes) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "not enough storage to spool request");
+			return false;
+		}
+		try {
+			request.spool_entry = spool.appendBuffers(writeSpoolMetadata(request), request.jpeg_images);
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to spool request: " + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+		releaseImages(request);
+		return true;
+	}
+
+	/** Releases the memory admitted to memory_budget for a request, once any of its images in the output pipeline have
+	 *  been written.
+	 */
+	private void releaseBudget(Request request) {
+		final long budget_bytes = request.budget_bytes;
+		request.budget_bytes = 0;
+		if( budget_bytes == 0 ) {
+			return;
+		}
+		if( canQueueSingleImageOutput() ) {
+			// write_executor runs in order, so this runs once the last output for the request has been written - until
+			// then, the encoded images and bitmaps are still on the heap
+			synchronized( this ) {
+				n_pending_outputs++;
+			}
+			write_executor.execute(new Runnable() {
+				public void run() {
+					try {
+						memory_budget.release(budget_bytes);
+					}
+					finally {
+						synchronized( ImageSaver.this ) {
+							n_pending_outputs--;
+							ImageSaver.this.notifyAll();
+						}
+					}
+					main_activity.runOnUiThread(new Runnable() {
+						public void run() {
+							// taking a photo may no longer block, see queueWouldBlock()
+							main_activity.imageQueueChanged();
+						}
+					});
+				}
+			});
+		}
+		else {
+			memory_budget.release(budget_bytes);
+		}
+	}
+
+	/** Reads back the images of a spooled request, and admits the request to memory_budget. Returns false if the images
+	 *  couldn't be read, in which case the request remains in the spool.
+	 */
+	private boolean loadSpooledRequest(Request request) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "loadSpooledRequest: " + request.spool_entry.getId());
+		try {
+			request.jpeg_images = JpegBuffer.wrapAll(spool.readImages(request.spool_entry));
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read spooled request: " + e.getMessage());
+			e.printStackTrace();
+			request.spool_entry = null;
+			return false;
+		}
+		request.budget_bytes = estimateRequestBytes(request);
+		if( request.queue_time == 0 ) {
+			// recovered from a previous run (see recoverSpool()), so not yet admitted
+			memory_budget.admit(request.budget_bytes);
+		}
+		else {
+			// already admitted by addRequest()
+			memory_budget.readmit(request.budget_bytes);
+		}
+		return true;
+	}
+
+	/** Marks a spooled request as done, once its images have been written successfully. If saving failed, the
+	 *  request is left in the spool, so that it's tried again when the application next starts (up to
+	 *  spool_max_recoveries_c times, see recoverSpool()).
+	 */
+	private void completeSpooledRequest(final Request request, boolean success) {
+		final CaptureSpool.Entry entry = request.spool_entry;
+		if( entry == null ) {
+			return;
+		}
+		if( !success ) {
+			Log.e(TAG, "failed to save spooled request, leave in spool: " + entry.getId());
+			return;
+		}
+		if( canQueueSingleImageOutput() ) {
+			// write_executor runs in order, so this runs once any images for the request in the output pipeline have
+			// been written
+			synchronized( this ) {
+				n_pending_outputs++;
+			}
+			write_executor.execute(new Runnable() {
+				public void run() {
+					try {
+						completeSpoolEntry(request);
+					}
+					finally {
+						synchronized( ImageSaver.this ) {
+							n_pending_outputs--;
+							ImageSaver.this.notifyAll();
+						}
+					}
+				}
+			});
+		}
+		else {
+			completeSpoolEntry(request);
+		}
+	}
+
+	private void completeSpoolEntry(Request request) {
+		CaptureSpool.Entry entry = request.spool_entry;
+		if( request.output_failed ) {
+			Log.e(TAG, "failed to write spooled request, leave in spool: " + entry.getId());
+			return;
+		}
+		try {
+			spool.complete(entry);
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to complete spooled request: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/** Returns the settings of a request, to be journalled to the spool with its images.
+	 */
+	private static byte [] writeSpoolMetadata(Request request) throws IOException {
+		ByteArrayOutputStream byte_stream = new ByteArrayOutputStream();
+		DataOutputStream stream = new DataOutputStream(byte_stream);
+		stream.writeInt(spool_format_version_c);
+		stream.writeInt(request.process_type.ordinal());
+		stream.writeBoolean(request.force_suffix);
+		stream.writeInt(request.suffix_offset);
+		stream.writeInt(request.save_base.ordinal());
+		stream.writeBoolean(request.using_camera2);
+		stream.writeInt(request.image_quality);
+		stream.writeBoolean(request.do_auto_stabilise);
+		stream.writeDouble(request.level_angle);
+		stream.writeBoolean(request.is_front_facing);
+		stream.writeBoolean(request.mirror);
+		stream.writeLong(request.current_date.getTime());
+		stream.writeInt(request.iso);
+		writeSpoolString(stream, request.preference_stamp);
+		writeSpoolString(stream, request.preference_textstamp);
+		stream.writeInt(request.font_size);
+		stream.writeInt(request.color);
+		writeSpoolString(stream, request.pref_style);
+		writeSpoolString(stream, request.preference_stamp_dateformat);
+		writeSpoolString(stream, request.preference_stamp_timeformat);
+		writeSpoolString(stream, request.preference_stamp_gpsformat);
+		writeSpoolString(stream, request.preference_units_distance);
+		stream.writeBoolean(request.store_location);
+		stream.writeBoolean(request.location != null);
+		if( request.location != null ) {
+			Location location = request.location;
+			writeSpoolString(stream, location.getProvider());
+			stream.writeLong(location.getTime());
+			stream.writeDouble(location.getLatitude());
+			stream.writeDouble(location.getLongitude());
+			stream.writeBoolean(location.hasAltitude());
+			stream.writeDouble(location.getAltitude());
+			stream.writeBoolean(location.hasAccuracy());
+			stream.writeFloat(location.getAccuracy());
+			stream.writeBoolean(location.hasBearing());
+			stream.writeFloat(location.getBearing());
+		}
+		stream.writeBoolean(request.store_geo_direction);
+		stream.writeDouble(request.geo_direction);
+		writeSpoolString(stream, request.custom_tag_artist);
+		writeSpoolString(stream, request.custom_tag_copyright);
+		stream.writeInt(request.sample_factor);
+		stream.writeInt(request.hdr_algorithm.ordinal());
+		stream.writeLong(request.exposure_time);
+		stream.close();
+		return byte_stream.toByteArray();
+	}
+
+	/** Returns a request from the settings written by writeSpoolMetadata(), or null if they can't be read (e.g., if
+	 *  written by a different version of the application). The images are read separately, see loadSpooledRequest().
+	 */
+	private static Request readSpoolMetadata(byte [] metadata) {
+		DataInputStream stream = new DataInputStream(new ByteArrayInputStream(metadata));
+		try {
+			if( stream.readInt() != spool_format_version_c ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "unknown spool format");
+				return null;
+			}
+			Request.ProcessType process_type = Request.ProcessType.values()[stream.readInt()];
+			boolean force_suffix = stream.readBoolean();
+			int suffix_offset = stream.readInt();
+			Request.SaveBase save_base = Request.SaveBase.values()[stream.readInt()];
+			boolean using_camera2 = stream.readBoolean();
+			int image_quality = stream.readInt();
+			boolean do_auto_stabilise = stream.readBoolean();
+			double level_angle = stream.readDouble();
+			boolean is_front_facing = stream.readBoolean();
+			boolean mirror = stream.readBoolean();
+			Date current_date = new Date(stream.readLong());
+			int iso = stream.readInt();
+			String preference_stamp = readSpoolString(stream);
+			String preference_textstamp = readSpoolString(stream);
+			int font_size = stream.readInt();
+			int color = stream.readInt();
+			String pref_style = readSpoolString(stream);
+			String preference_stamp_dateformat = readSpoolString(stream);
+			String preference_stamp_timeformat = readSpoolString(stream);
+			String preference_stamp_gpsformat = readSpoolString(stream);
+			String preference_units_distance = readSpoolString(stream);
+			boolean store_location = stream.readBoolean();
+			Location location = null;
+			if( stream.readBoolean() ) {
+				location = new Location(readSpoolString(stream));
+				location.setTime(stream.readLong());
+				location.setLatitude(stream.readDouble());
+				location.setLongitude(stream.readDouble());
+				boolean has_altitude = stream.readBoolean();
+				double altitude = stream.readDouble();
+				if( has_altitude )
+					location.setAltitude(altitude);
+				boolean has_accuracy = stream.readBoolean();
+				float accuracy = stream.readFloat();
+				if( has_accuracy )
+					location.setAccuracy(accuracy);
+				boolean has_bearing = stream.readBoolean();
+				float bearing = stream.readFloat();
+				if( has_bearing )
+					location.setBearing(bearing);
+			}
+			boolean store_geo_direction = stream.readBoolean();
+			double geo_direction = stream.readDouble();
+			String custom_tag_artist = readSpoolString(stream);
+			String custom_tag_copyright = readSpoolString(stream);
+			int sample_factor = stream.readInt();
+			HDRProcessor.HDRAlgorithm hdr_algorithm = HDRProcessor.HDRAlgorithm.values()[stream.readInt()];
+			long exposure_time = stream.readLong();
+			Request request = new Request(Request.Type.JPEG,
+					process_type,
+					force_suffix,
+					suffix_offset,
+					save_base,
+					null,
+					null,
+					false, null,
+					using_camera2, image_quality,
+					do_auto_stabilise, level_angle,
+					is_front_facing,
+					mirror,
+					current_date,
+					iso,
+					preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_units_distance,
+					store_location, location, store_geo_direction, geo_direction,
+					custom_tag_artist,
+					custom_tag_copyright,
+					sample_factor);
+			request.hdr_algorithm = hdr_algorithm;
+			request.exposure_time = exposure_time;
+			return request;
+		}
+		catch(IOException | ArrayIndexOutOfBoundsException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read spool metadata: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static void writeSpoolString(DataOutputStream stream, String string) throws IOException {
+		stream.writeBoolean(string != null);
+		if( string != null )
+			stream.writeUTF(string);
+	}
+
+	private static String readSpoolString(DataInputStream stream) throws IOException {
+		return stream.readBoolean() ? stream.readUTF() : null;
+	}
+	
+	/** Saves a photo.
+	 *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
+	 *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
+	 *  If do_in_background is false, the photo is saved on the current thread, and the function returns whether the photo was saved
+	 *  successfully.
+	 */
+	boolean saveImageJpeg(boolean do_in_background,
+			boolean is_hdr,
+			HDRProcessor.HDRAlgorithm hdr_algorithm,
+			boolean is_focus_stack,
+			boolean force_suffix,
+			int suffix_offset,
+			boolean save_expo,
+			List<JpegBuffer> images,
+			boolean image_capture_intent, Uri image_capture_intent_uri,
+			boolean using_camera2, int image_quality,
+			boolean do_auto_stabilise, double level_angle,
+			boolean is_front_facing,
+			boolean mirror,
+			Date current_date,
+			int iso,
+			long exposure_time,
+			String preference_stamp, String preference_textstamp, int font_size, int color, String pref_style, String preference_stamp_dateformat, String preference_stamp_timeformat, String preference_stamp_gpsformat, String preference_units_distance,
+			boolean store_location, Location location, boolean store_geo_direction, double geo_direction,
+			String custom_tag_artist,
+			String custom_tag_copyright,
+			int sample_factor) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "saveImageJpeg");
+			Log.d(TAG, "do_in_background? " + do_in_background);
+			Log.d(TAG, "number of images: " + images.size());
+		}
+		return saveImage(do_in_background,
+				false,
+				is_hdr,
+				hdr_algorithm,
+				is_focus_stack,
+				force_suffix,
+				suffix_offset,
+				save_expo,
+				images,
+				null,
+				image_capture_intent, image_capture_intent_uri,
+				using_camera2, image_quality,
+				do_auto_stabilise, level_angle,
+				is_front_facing,
+				mirror,
+				current_date,
+				iso,
+				exposure_time,
+				preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_units_distance,
+				store_location, location, store_geo_direction, geo_direction,
+				custom_tag_artist,
+				custom_tag_copyright,
+				sample_factor);
+	}
+
+	/** Saves a RAW photo.
+	 *  If do_in_background is true, the photo will be saved in a background thread. If the queue is full, the function will wait
+	 *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
+	 *  If do_in_background is false, the photo is saved on the current thread, and the function returns whether the photo was saved
+	 *  successfully.
+	 */
+	boolean saveImageRaw(boolean do_in_background,
+			RawImage raw_image,
+			Date current_date) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "saveImageRaw");
+			Log.d(TAG, "do_in_background? " + do_in_background);
+		}
+		return saveImage(do_in_background,
+				true,
+				false,
+				HDRProcessor.HDRAlgorithm.HDRALGORITHM_STANDARD,
+				false,
+				false,
+				0,
+				false,
+				null,
+				raw_image,
+				false, null,
+				false, 0,
+				false, 0.0,
+				false,
+				false,
+				current_date,
+				0,
+				0,
+				null, null, 0, 0, null, null, null, null, null,
+				false, null, false, 0.0,
+				null, null,
+				1);
+	}
+
+	private Request pending_image_average_request = null;
+
+	void startImageAverage(boolean do_in_background,
+			Request.SaveBase save_base,
+			boolean image_capture_intent, Uri image_capture_intent_uri,
+			boolean using_camera2, int image_quality,
+			boolean do_auto_stabilise, double level_angle,
+			boolean is_front_facing,
+			boolean mirror,
+			Date current_date,
+			int iso,
+			long exposure_time,
+			String preference_stamp, String preference_textstamp, int font_size, int color, String pref_style, String preference_stamp_dateformat, String preference_stamp_timeformat, String preference_stamp_gpsformat, String preference_units_distance,
+			boolean store_location, Location location, boolean store_geo_direction, double geo_direction,
+			String custom_tag_artist,
+			String custom_tag_copyright,
+			int sample_factor) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "startImageAverage");
+			Log.d(TAG, "do_in_background? " + do_in_background);
+		}
+		if( pending_image_average_request != null ) {
+			// previous capture never completed
+			Log.e(TAG, "startImageAverage called with a pending_image_average_request");
+			abortImageAverage();
+		}
+		pending_image_average_request = new Request(Request.Type.JPEG,
+				Request.ProcessType.AVERAGE,
+				false,
+				0,
+				save_base,
+				new ArrayList<JpegBuffer>(),
 				null,
 				image_capture_intent, image_capture_intent_uri,
 				using_camera2, image_quality,
@@ -524,16 +1387,61 @@ public class ImageSaver extends Thread {
 				custom_tag_artist,
 				custom_tag_copyright,
 				sample_factor);
+		pending_image_average_request.exposure_time = exposure_time;
+		if( do_in_background && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			// average the images on the saver thread as they arrive, rather than waiting for finishImageAverage(); this
+			// means we only need to keep one decoded image at a time, and the processing overlaps with the capture
+			pending_image_average_request.avg_state = new ImageAverageState(iso);
+		}
 	}
 
-	void addImageAverage(byte [] image) {
+	/** Adds an image to the request started by startImageAverage(). The ImageSaver takes ownership of the image, see
+	 *  JpegBuffer.
+	 */
+	void addImageAverage(JpegBuffer image) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "addImageAverage");
 		if( pending_image_average_request == null ) {
 			Log.e(TAG, "addImageAverage called but no pending_image_average_request");
+			image.release();
 			return;
 		}
-		pending_image_average_request.jpeg_images.add(image);
+		ImageAverageState avg_state = pending_image_average_request.avg_state;
+		if( avg_state == null ) {
+			pending_image_average_request.jpeg_images.add(image);
+		}
+		else {
+			avg_state.n_images++;
+			// the first image is still needed for the exif data of the NR image, and others are only needed if saving all the base images
+			if( avg_state.n_images == 1 || pending_image_average_request.save_base == Request.SaveBase.SAVEBASE_ALL ) {
+				// the image is owned by both requests
+				pending_image_average_request.jpeg_images.add(image.retain());
+			}
+			List<JpegBuffer> frame_images = new ArrayList<>();
+			frame_images.add(image);
+			Request frame_request = new Request(Request.Type.AVERAGE_FRAME,
+				Request.ProcessType.AVERAGE,
+				false,
+				0,
+				Request.SaveBase.SAVEBASE_NONE,
+				frame_images,
+				null,
+				false, null,
+				false, 0,
+				false, 0.0,
+				false,
+				false,
+				null,
+				pending_image_average_request.iso,
+				null, null, 0, 0, null, null, null, null, null,
+				false, null, false, 0.0,
+				null, null,
+				1);
+			frame_request.avg_state = avg_state;
+			if( MyDebug.LOG )
+				Log.d(TAG, "add average frame request: " + avg_state.n_images);
+			addRequest(frame_request, computeRequestCost(false, 1));
+		}
 		if( MyDebug.LOG )
 			Log.d(TAG, "image average request images: " + pending_image_average_request.jpeg_images.size());
 	}
@@ -549,15 +1457,39 @@ public class ImageSaver extends Thread {
 		if( do_in_background ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "add background request");
-			int cost = computeRequestCost(false, pending_image_average_request.jpeg_images.size());
+			// if averaging as the images arrive, the cost of the images was already accounted for by the frame requests
+			int cost = pending_image_average_request.avg_state != null ? 1 : computeRequestCost(false, pending_image_average_request.jpeg_images.size());
 			addRequest(pending_image_average_request, cost);
 		}
 		else {
 			// wait for queue to be empty
 			waitUntilDone();
 			saveImageNow(pending_image_average_request);
+			releaseImages(pending_image_average_request);
+		}
+		pending_image_average_request = null;
+	}
+
+	/** Abandons the request started by startImageAverage(), if any, e.g., if the capture failed or the camera was closed
+	 *  before all the images arrived. Any images already averaged on the saver thread are discarded once the saver thread
+	 *  has finished with them, see abortImageAverageNow().
+	 */
+	void abortImageAverage() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "abortImageAverage");
+		Request request = pending_image_average_request;
+		if( request == null ) {
+			return;
 		}
 		pending_image_average_request = null;
+		if( request.avg_state != null ) {
+			// must be done on the saver thread, after the frame requests already queued
+			request.type = Request.Type.AVERAGE_ABORT;
+			addRequest(request, 1);
+		}
+		else {
+			releaseImages(request);
+		}
 	}
 
 	/** Internal saveImage method to handle both JPEG and RAW.
@@ -565,10 +1497,12 @@ public class ImageSaver extends Thread {
 	private boolean saveImage(boolean do_in_background,
 			boolean is_raw,
 			boolean is_hdr,
+			HDRProcessor.HDRAlgorithm hdr_algorithm,
+			boolean is_focus_stack,
 			boolean force_suffix,
 			int suffix_offset,
 			boolean save_expo,
-			List<byte []> jpeg_images,
+			List<JpegBuffer> jpeg_images,
 			RawImage raw_image,
 			boolean image_capture_intent, Uri image_capture_intent_uri,
 			boolean using_camera2, int image_quality,
@@ -577,6 +1511,7 @@ public class ImageSaver extends Thread {
 			boolean mirror,
 			Date current_date,
 			int iso,
+			long exposure_time,
 			String preference_stamp, String preference_textstamp, int font_size, int color, String pref_style, String preference_stamp_dateformat, String preference_stamp_timeformat, String preference_stamp_gpsformat, String preference_units_distance,
 			boolean store_location, Location location, boolean store_geo_direction, double geo_direction,
 			String custom_tag_artist,
@@ -591,7 +1526,7 @@ public class ImageSaver extends Thread {
 		//do_in_background = false;
 		
 		Request request = new Request(is_raw ? Request.Type.RAW : Request.Type.JPEG,
-				is_hdr ? Request.ProcessType.HDR : Request.ProcessType.NORMAL,
+				is_hdr ? Request.ProcessType.HDR : is_focus_stack ? Request.ProcessType.FOCUS_STACK : Request.ProcessType.NORMAL,
 				force_suffix,
 				suffix_offset,
 				save_expo ? Request.SaveBase.SAVEBASE_ALL : Request.SaveBase.SAVEBASE_NONE,
@@ -609,6 +1544,8 @@ public class ImageSaver extends Thread {
 				custom_tag_artist,
 				custom_tag_copyright,
 				sample_factor);
+		request.hdr_algorithm = hdr_algorithm;
+		request.exposure_time = exposure_time;
 
 		if( do_in_background ) {
 			if( MyDebug.LOG )
@@ -626,6 +1563,7 @@ public class ImageSaver extends Thread {
 			else {
 				success = saveImageNow(request);
 			}
+			releaseImages(request);
 		}
 
 		if( MyDebug.LOG )
@@ -633,9 +1571,10 @@ public class ImageSaver extends Thread {
 		return success;
 	}
 	
-	/** Adds a request to the background queue, blocking if the queue is already full
+	/** Adds a request to the background queue. If the spool is open, the request is journalled and added to the queue on
+	 *  spool_executor, otherwise this blocks if the queue is already full.
 	 */
-	private void addRequest(Request request, int cost) {
+	private void addRequest(final Request request, int cost) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "addRequest, cost: " + cost);
 		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && main_activity.isDestroyed() ) {
@@ -643,8 +1582,59 @@ public class ImageSaver extends Thread {
 			// crash if needing to use RenderScript.
 			// MainDestroy.onDestroy() does call waitUntilDone(), but this is extra protection in case an image comes in after that.
 			Log.e(TAG, "application is destroyed, image lost!");
+			releaseImages(request);
+			return;
+		}
+		request.budget_bytes = estimateRequestBytes(request);
+		if( MyDebug.LOG )
+			Log.d(TAG, "budget_bytes: " + request.budget_bytes);
+		memory_budget.admit(request.budget_bytes);
+		request.queue_time = SaveLatencyRecorder.now();
+		if( request.type == Request.Type.RAW && raw_executor != null ) {
+			addRawRequest(request);
 			return;
 		}
+		synchronized( this ) {
+			// we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
+			// also see FindBugs warning due to inconsistent synchronisation
+			n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
+
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
+		}
+		if( spool != null && !spool_executor.isShutdown() ) {
+			// journal on spool_executor, so that writing the images to storage doesn't hold up the caller (normally the
+			// camera); whilst the spool is open, all requests go through spool_executor, so they're still added to the
+			// queue in order
+			spool_executor.execute(new Runnable() {
+				public void run() {
+					if( spoolRequest(request) ) {
+						// spooled requests are admitted again once the saver thread starts on them, see loadSpooledRequest()
+						memory_budget.release(request.budget_bytes);
+						request.budget_bytes = 0;
+					}
+					putRequest(request);
+				}
+			});
+		}
+		else {
+			putRequest(request);
+		}
+		if( cost > 0 ) {
+			// add "dummy" requests to simulate the cost
+			for(int i=0;i<cost-1;i++) {
+				addDummyRequest();
+			}
+		}
+	}
+
+	/** Adds a request to the queue, blocking if the queue is already full. n_images_to_save should already have been
+	 *  incremented for the request.
+	 */
+	private void putRequest(Request request) {
 		// this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
 		// the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
 		boolean done = false;
@@ -652,18 +1642,6 @@ public class ImageSaver extends Thread {
 			try {
 				if( MyDebug.LOG )
 					Log.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
-				synchronized( this ) {
-					// see above for why we don't synchronize the queue.put call
-					// but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
-					// also see FindBugs warning due to inconsistent synchronisation
-					n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
-
-					main_activity.runOnUiThread(new Runnable() {
-						public void run() {
-							main_activity.imageQueueChanged();
-						}
-					});
-				}
 				if( queue.size() + 1 >= queue_capacity ) {
 					Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
 					//throw new RuntimeException();
@@ -683,12 +1661,41 @@ public class ImageSaver extends Thread {
 					Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
 			}
 		}
-		if( cost > 0 ) {
-			// add "dummy" requests to simulate the cost
-			for(int i=0;i<cost-1;i++) {
-				addDummyRequest();
-			}
+	}
+
+	/** Adds a RAW request to be written on raw_executor, blocking if raw_queue_capacity RAW requests are already waiting
+	 *  or being written.
+	 */
+	private void addRawRequest(final Request request) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "addRawRequest");
+		raw_permits.acquireUninterruptibly();
+		synchronized( this ) {
+			n_images_to_save++;
+			n_raw_to_save++;
+			if( MyDebug.LOG )
+				Log.d(TAG, "raw images still to save is now: " + n_raw_to_save);
+
+			main_activity.runOnUiThread(new Runnable() {
+				public void run() {
+					main_activity.imageQueueChanged();
+				}
+			});
 		}
+		raw_executor.execute(new Runnable() {
+			public void run() {
+				latency_recorder.recordSince(SaveLatencyRecorder.Stage.QUEUE_WAIT, request.queue_time);
+				boolean success = saveImageNowRaw(request);
+				if( MyDebug.LOG ) {
+					if( success )
+						Log.d(TAG, "RAW lane successfully saved image");
+					else
+						Log.e(TAG, "RAW lane failed to save image");
+				}
+				finishRequest(request);
+				raw_permits.release();
+			}
+		});
 	}
 
 	private void addDummyRequest() {
@@ -725,7 +1732,7 @@ public class ImageSaver extends Thread {
 				Log.d(TAG, "queue is size " + queue.size());
 				Log.d(TAG, "images still to save " + n_images_to_save);
 			}
-			while( n_images_to_save > 0 ) {
+			while( n_images_to_save > 0 || n_pending_outputs > 0 ) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "wait until done...");
 				try {
@@ -739,6 +1746,7 @@ public class ImageSaver extends Thread {
 				if( MyDebug.LOG ) {
 					Log.d(TAG, "waitUntilDone: queue is size " + queue.size());
 					Log.d(TAG, "waitUntilDone: images still to save " + n_images_to_save);
+					Log.d(TAG, "waitUntilDone: pending outputs " + n_pending_outputs);
 				}
 			}
 		}
@@ -763,7 +1771,7 @@ public class ImageSaver extends Thread {
 	 *                bitmap to be mutable (for photostamp to work).
 	 */
 	@SuppressWarnings("deprecation")
-	private Bitmap loadBitmap(byte [] jpeg_image, boolean mutable, int inSampleSize) {
+	private Bitmap loadBitmap(JpegBuffer jpeg_image, boolean mutable, int inSampleSize) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "loadBitmap");
 			Log.d(TAG, "mutable?: " + mutable);
@@ -777,33 +1785,18 @@ public class ImageSaver extends Thread {
 			// setting is ignored in Android 5 onwards
 			options.inPurgeable = true;
 		}
-		Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
-		if( bitmap == null ) {
-			Log.e(TAG, "failed to decode bitmap");
-		}
+		long start_time = SaveLatencyRecorder.now();
+		Bitmap bitmap = decode_pool.decode(jpeg_image, options);
+		latency_recorder.recordSince(SaveLatencyRecorder.Stage.DECODE, start_time);
 		return bitmap;
 	}
 
-	/** Helper class for loadBitmaps().
-	 */
-	private static class LoadBitmapThread extends Thread {
-		Bitmap bitmap;
-		final BitmapFactory.Options options;
-		final byte [] jpeg;
-		LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg) {
-			this.options = options;
-			this.jpeg = jpeg;
-		}
-
-		public void run() {
-			this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
-		}
-	}
-
-	/** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
+	/** Converts the array of jpegs to Bitmaps, decoding in parallel on decode_pool. The bitmap with index mutable_id will
+	 *  be marked as mutable (or set to -1 to have no mutable bitmaps). Note that other bitmaps may also be mutable, if
+	 *  decode_pool reused the memory of a released bitmap.
 	 */
 	@SuppressWarnings("deprecation")
-	private List<Bitmap> loadBitmaps(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
+	private List<Bitmap> loadBitmaps(List<JpegBuffer> jpeg_images, int mutable_id, int inSampleSize) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "loadBitmaps");
 			Log.d(TAG, "mutable_id: " + mutable_id);
@@ -819,65 +1812,150 @@ public class ImageSaver extends Thread {
 			mutable_options.inPurgeable = true;
 			options.inPurgeable = true;
 		}
-		LoadBitmapThread [] threads = new LoadBitmapThread[jpeg_images.size()];
+		List<BitmapFactory.Options> options_list = new ArrayList<>();
 		for(int i=0;i<jpeg_images.size();i++) {
-			threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg_images.get(i) );
+			options_list.add( i==mutable_id ? mutable_options : options );
+		}
+		long start_time = SaveLatencyRecorder.now();
+		List<Bitmap> bitmaps = decode_pool.decodeAll(jpeg_images, options_list);
+		latency_recorder.recordSince(SaveLatencyRecorder.Stage.DECODE, start_time);
+		if( MyDebug.LOG ) {
+			if( bitmaps == null ) {
+				Log.e(TAG, "failed to decode bitmaps");
+			}
+			else {
+				for(int i=0;i<bitmaps.size();i++) {
+					Bitmap bitmap = bitmaps.get(i);
+					Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
+				}
+			}
 		}
-		// start threads
+		return bitmaps;
+	}
+	
+	/** Decodes a single image of an AVERAGE request, and adds it to the average. Run in the saver
+	 *  thread, in the order the images were received, so the images are averaged whilst the
+	 *  remaining images are still being captured.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private boolean processImageAverageFrame(Request request) {
+		ImageAverageState avg_state = request.avg_state;
 		if( MyDebug.LOG )
-			Log.d(TAG, "start threads");
-		for(int i=0;i<jpeg_images.size();i++) {
-			threads[i].start();
+			Log.d(TAG, "processImageAverageFrame: " + avg_state.n_processed);
+		long this_time_s = System.currentTimeMillis();
+		if( avg_state.time_s == 0 ) {
+			main_activity.savingImage(true);
+			avg_state.time_s = this_time_s;
+			avg_state.inSampleSize = hdrProcessor.getAvgSampleSize(avg_state.iso);
+		}
+		int frame = avg_state.n_frames++;
+		Bitmap new_bitmap = frame == test_fail_average_frame ? null : loadBitmap(request.jpeg_images.get(0), false, avg_state.inSampleSize);
+		if( new_bitmap == null ) {
+			Log.e(TAG, "failed to decode image average frame: " + frame);
+			// skip this image, finishImageAverageNow() will use the images we do have
+			return false;
 		}
-		// wait for threads to complete
-		boolean ok = true;
 		if( MyDebug.LOG )
-			Log.d(TAG, "wait for threads to complete");
+			Log.d(TAG, "*** time for loading bitmap: " + (System.currentTimeMillis() - this_time_s));
+		this_time_s = System.currentTimeMillis();
 		try {
-			for(int i=0;i<jpeg_images.size();i++) {
-				threads[i].join();
+			if( avg_state.first_bitmap == null && avg_state.avg_data == null ) {
+				// need two images to initialise the allocation
+				avg_state.first_bitmap = new_bitmap;
+				avg_state.width = new_bitmap.getWidth();
+				avg_state.height = new_bitmap.getHeight();
+			}
+			else if( avg_state.avg_data == null ) {
+				avg_state.avg_data = hdrProcessor.processAvg(avg_state.first_bitmap, new_bitmap, 1.0f, avg_state.iso);
+				test_n_avg_data++;
+				// processAvg recycles both bitmaps
+				avg_state.first_bitmap = null;
+				if( MyDebug.LOG )
+					Log.d(TAG, "*** time for processing first two bitmaps: " + (System.currentTimeMillis() - this_time_s));
+			}
+			else {
+				float avg_factor = (float)avg_state.n_processed;
+				hdrProcessor.updateAvg(avg_state.avg_data, avg_state.width, avg_state.height, new_bitmap, avg_factor, avg_state.iso);
+				// updateAvg recycles new_bitmap
+				if( MyDebug.LOG )
+					Log.d(TAG, "*** time for updating extra bitmap: " + (System.currentTimeMillis() - this_time_s));
 			}
 		}
-		catch(InterruptedException e) {
-			if( MyDebug.LOG )
-				Log.e(TAG, "threads interrupted");
+		catch(HDRProcessorException e) {
 			e.printStackTrace();
-			ok = false;
+			throw new RuntimeException();
 		}
-		if( MyDebug.LOG )
-			Log.d(TAG, "threads completed");
+		avg_state.n_processed++;
+		return true;
+	}
 
-		List<Bitmap> bitmaps = new ArrayList<>();
-		for(int i=0;i<jpeg_images.size() && ok;i++) {
-			Bitmap bitmap = threads[i].bitmap;
-			if( bitmap == null ) {
-				Log.e(TAG, "failed to decode bitmap in thread: " + i);
-				ok = false;
-			}
-			else {
-				if( MyDebug.LOG )
-					Log.d(TAG, "bitmap " + i + ": " + bitmap + " is mutable? " + bitmap.isMutable());
+	/** Discards the running average of an AVERAGE request abandoned by abortImageAverage(). Run in the saver thread.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private void abortImageAverageNow(Request request) {
+		ImageAverageState avg_state = request.avg_state;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "abortImageAverageNow");
+			Log.d(TAG, "n_images: " + avg_state.n_images);
+			Log.d(TAG, "n_processed: " + avg_state.n_processed);
+		}
+		if( avg_state.first_bitmap != null ) {
+			decode_pool.release(avg_state.first_bitmap);
+			avg_state.first_bitmap = null;
+		}
+		if( avg_state.avg_data != null ) {
+			avg_state.avg_data.destroy();
+			avg_state.avg_data = null;
+			test_n_avg_data--;
+		}
+		if( avg_state.time_s != 0 ) {
+			// processImageAverageFrame() called savingImage(true), and there won't be an output to call savingImage(false)
+			main_activity.savingImage(false);
+		}
+	}
+
+	/** Completes an AVERAGE request whose images have already been averaged by
+	 *  processImageAverageFrame(), returning the noise reduced bitmap.
+	 */
+	private Bitmap finishImageAverageNow(Request request) {
+		ImageAverageState avg_state = request.avg_state;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "finishImageAverageNow");
+			Log.d(TAG, "n_images: " + avg_state.n_images);
+			Log.d(TAG, "n_processed: " + avg_state.n_processed);
+		}
+		Bitmap nr_bitmap;
+		if( avg_state.avg_data == null ) {
+			// shouldn't happen, but could do if we failed to decode all but one of the images
+			Log.e(TAG, "not enough images to average");
+			if( avg_state.first_bitmap != null ) {
+				decode_pool.release(avg_state.first_bitmap);
+				avg_state.first_bitmap = null;
 			}
-			bitmaps.add(bitmap);
+			nr_bitmap = loadBitmap(request.jpeg_images.get(0), true, 1);
 		}
-		
-		if( !ok ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "cleanup from failure");
-			for(int i=0;i<jpeg_images.size();i++) {
-				if( threads[i].bitmap != null ) {
-					threads[i].bitmap.recycle();
-					threads[i].bitmap = null;
-				}
+		else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			long this_time_s = System.currentTimeMillis();
+			long start_time = SaveLatencyRecorder.now();
+			nr_bitmap = hdrProcessor.avgBrighten(avg_state.avg_data.allocation_out, avg_state.width, avg_state.height, avg_state.iso);
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.PROCESS, start_time);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - this_time_s));
+			}
+			avg_state.avg_data.destroy();
+			avg_state.avg_data = null;
+			test_n_avg_data--;
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "*** total time for saving NR image: " + (System.currentTimeMillis() - avg_state.time_s));
 			}
-			bitmaps.clear();
-	        System.gc();
-	        return null;
 		}
-
-		return bitmaps;
+		else {
+			Log.e(TAG, "shouldn't have offered NoiseReduction as an option if not on Android 5");
+			throw new RuntimeException();
+		}
+		return nr_bitmap;
 	}
-	
+
 	/** May be run in saver thread or picture callback thread (depending on whether running in background).
 	 */
 	private boolean saveImageNow(final Request request) {
@@ -903,7 +1981,10 @@ public class ImageSaver extends Thread {
 				Log.d(TAG, "average");
 
 			saveBaseImages(request, "_");
-			main_activity.savingImage(true);
+			if( request.avg_state == null ) {
+				// if averaging as the images arrive, this was already called for the first image
+				main_activity.savingImage(true);
+			}
 
 			/*List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, 0);
 			if (bitmaps == null) {
@@ -936,9 +2017,14 @@ public class ImageSaver extends Thread {
 				throw new RuntimeException();
 			}*/
 			Bitmap nr_bitmap;
-			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			if( request.avg_state != null ) {
+				// images have already been averaged by processImageAverageFrame()
+				nr_bitmap = finishImageAverageNow(request);
+			}
+			else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
 				try {
 					long time_s = System.currentTimeMillis();
+					long start_time = SaveLatencyRecorder.now();
 					// initialise allocation from first two bitmaps
 					//int inSampleSize = hdrProcessor.getAvgSampleSize(request.jpeg_images.size());
 					int inSampleSize = hdrProcessor.getAvgSampleSize(request.iso);
@@ -953,7 +2039,7 @@ public class ImageSaver extends Thread {
 					List<Bitmap> bitmaps = null;
 					Bitmap bitmap0, bitmap1;
 					if( use_smp ) {
-						/*List<byte []> sub_jpeg_list = new ArrayList<>();
+						/*List<JpegBuffer> sub_jpeg_list = new ArrayList<>();
 						sub_jpeg_list.add(request.jpeg_images.get(0));
 						sub_jpeg_list.add(request.jpeg_images.get(1));
 						bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
@@ -965,7 +2051,7 @@ public class ImageSaver extends Thread {
 							Log.d(TAG, "n_remaining: " + n_remaining);
 							Log.d(TAG, "n_load: " + n_load);
 						}
-						List<byte []> sub_jpeg_list = new ArrayList<>();
+						List<JpegBuffer> sub_jpeg_list = new ArrayList<>();
 						for(int j=0;j<n_load;j++) {
 							sub_jpeg_list.add(request.jpeg_images.get(j));
 						}
@@ -1019,7 +2105,7 @@ public class ImageSaver extends Thread {
 									Log.d(TAG, "n_remaining: " + n_remaining);
 									Log.d(TAG, "n_load: " + n_load);
 								}
-								List<byte []> sub_jpeg_list = new ArrayList<>();
+								List<JpegBuffer> sub_jpeg_list = new ArrayList<>();
 								for(int j=i;j<i+n_load;j++) {
 									sub_jpeg_list.add(request.jpeg_images.get(j));
 								}
@@ -1055,6 +2141,8 @@ public class ImageSaver extends Thread {
 					}
 					avg_data.destroy();
 					avg_data = null;
+					// n.b., this includes decoding the images, as this is interleaved with averaging them
+					latency_recorder.recordSince(SaveLatencyRecorder.Stage.PROCESS, start_time);
 					if( MyDebug.LOG ) {
 						Log.d(TAG, "*** total time for saving NR image: " + (System.currentTimeMillis() - time_s));
 					}
@@ -1080,7 +2168,7 @@ public class ImageSaver extends Thread {
 			success = saveSingleImageNow(request, request.jpeg_images.get(0), nr_bitmap, suffix, true, true);
 			if( MyDebug.LOG && !success )
 				Log.e(TAG, "saveSingleImageNow failed for nr image");
-			nr_bitmap.recycle();
+			// n.b., nr_bitmap is recycled by saveSingleImageNow()
 	        System.gc();
 		}
 		else if( request.process_type == Request.ProcessType.HDR ) {
@@ -1094,6 +2182,23 @@ public class ImageSaver extends Thread {
 			}
 
         	long time_s = System.currentTimeMillis();
+			test_hdr_preview_time_ms = -1;
+			test_hdr_full_time_ms = -1;
+			int base_bitmap = (request.jpeg_images.size()-1)/2;
+			if( MyDebug.LOG )
+				Log.d(TAG, "base_bitmap: " + base_bitmap);
+			if( hdr_thumbnail_preview && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
+				// Android 7+ only, as we need to read the exif orientation direct from the jpeg data
+				request.thumbnail_preview_shown = showHDRThumbnailPreview(request, base_bitmap);
+				if( request.thumbnail_preview_shown ) {
+					test_hdr_preview_time_ms = System.currentTimeMillis() - time_s;
+					if( MyDebug.LOG )
+						Log.d(TAG, "HDR performance: time after showing thumbnail preview: " + test_hdr_preview_time_ms);
+					// the user has seen the result, so the full resolution image can be processed at a lower priority
+					// than the camera and UI
+					lowerThreadPriority();
+				}
+			}
 			if( request.jpeg_images.size() > 1 ) {
 				// if there's only 1 image, we're in DRO mode, and shouldn't save the base image
 				// note that in earlier Open Camera versions, we used "_EXP" as the suffix. We now use just "_" from 1.42 onwards, so Google
@@ -1112,9 +2217,6 @@ public class ImageSaver extends Thread {
 			// see documentation for HDRProcessor.processHDR() - because we're using release_bitmaps==true, we need to make sure that
 			// the bitmap that will hold the output HDR image is mutable (in case of options like photo stamp)
 			// see test testTakePhotoHDRPhotoStamp.
-			int base_bitmap = (request.jpeg_images.size()-1)/2;
-			if( MyDebug.LOG )
-				Log.d(TAG, "base_bitmap: " + base_bitmap);
 			List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
 			if( bitmaps == null ) {
 				if( MyDebug.LOG )
@@ -1129,7 +2231,9 @@ public class ImageSaver extends Thread {
 				Log.d(TAG, "before HDR first bitmap: " + bitmaps.get(0) + " is mutable? " + bitmaps.get(0).isMutable());
 			try {
 				if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-					hdrProcessor.processHDR(bitmaps, true, null, true, null, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+					long start_time = SaveLatencyRecorder.now();
+					hdrProcessor.processHDR(bitmaps, true, null, true, null, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, request.hdr_algorithm); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+					latency_recorder.recordSince(SaveLatencyRecorder.Stage.PROCESS, start_time);
 				}
 				else {
 					Log.e(TAG, "shouldn't have offered HDR as an option if not on Android 5");
@@ -1174,12 +2278,58 @@ public class ImageSaver extends Thread {
 			success = saveSingleImageNow(request, request.jpeg_images.get(base_image_id), hdr_bitmap, suffix, true, true);
 			if( MyDebug.LOG && !success )
 				Log.e(TAG, "saveSingleImageNow failed for hdr image");
+			test_hdr_full_time_ms = System.currentTimeMillis() - time_s;
     		if( MyDebug.LOG ) {
-    			Log.d(TAG, "HDR performance: time after saving HDR image: " + (System.currentTimeMillis() - time_s));
+    			Log.d(TAG, "HDR performance: time after saving HDR image: " + test_hdr_full_time_ms);
     		}
-			hdr_bitmap.recycle();
+			// n.b., hdr_bitmap is recycled by saveSingleImageNow()
 	        System.gc();
 		}
+		else if( request.process_type == Request.ProcessType.FOCUS_STACK ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "focus stack");
+			long time_s = System.currentTimeMillis();
+			// still save the focus bracketed images, as with expo bracketing
+			saveBaseImages(request, "_");
+			if( MyDebug.LOG )
+				Log.d(TAG, "focus stack performance: time after saving base images: " + (System.currentTimeMillis() - time_s));
+
+			main_activity.savingImage(true);
+			Bitmap stack_bitmap;
+			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+				long start_time = SaveLatencyRecorder.now();
+				stack_bitmap = createFocusStack(request.jpeg_images);
+				latency_recorder.recordSince(SaveLatencyRecorder.Stage.PROCESS, start_time);
+			}
+			else {
+				Log.e(TAG, "shouldn't have offered focus stacking as an option if not on Android 5");
+				throw new RuntimeException();
+			}
+			main_activity.savingImage(false);
+			if( stack_bitmap == null ) {
+				Log.e(TAG, "failed to create focus stack");
+				main_activity.getPreview().showToast(null, R.string.failed_to_process_focus_stack);
+				System.gc();
+				if( request.save_base != Request.SaveBase.SAVEBASE_ALL ) {
+					// save the focus bracketed images instead, so the user doesn't lose the photo
+					if( MyDebug.LOG )
+						Log.d(TAG, "save focus bracketed images instead");
+					return saveImages(request, "_", request.image_capture_intent, true, true);
+				}
+				return false;
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "focus stack performance: time after creating focus stack: " + (System.currentTimeMillis() - time_s));
+
+			int base_image_id = ((request.jpeg_images.size()-1)/2);
+			success = saveSingleImageNow(request, request.jpeg_images.get(base_image_id), stack_bitmap, "_STACK", true, true);
+			if( MyDebug.LOG && !success )
+				Log.e(TAG, "saveSingleImageNow failed for focus stack image");
+			if( MyDebug.LOG )
+				Log.d(TAG, "focus stack performance: time after saving focus stack image: " + (System.currentTimeMillis() - time_s));
+			// n.b., stack_bitmap is recycled by saveSingleImageNow()
+			System.gc();
+		}
 		else {
 			// see note above how we used to use "_EXP" for the suffix for multiple images
 			//String suffix = "_EXP";
@@ -1205,7 +2355,7 @@ public class ImageSaver extends Thread {
 		int mid_image = request.jpeg_images.size()/2;
 		for(int i=0;i<request.jpeg_images.size();i++) {
 			// note, even if one image fails, we still try saving the other images - might as well give the user as many images as we can...
-			byte [] image = request.jpeg_images.get(i);
+			JpegBuffer image = request.jpeg_images.get(i);
 			boolean multiple_jpegs = request.jpeg_images.size() > 1 && !first_only;
 			String filename_suffix = (multiple_jpegs || request.force_suffix) ? suffix + (i + request.suffix_offset) : "";
 			boolean share_image = share && (i == mid_image);
@@ -1217,7 +2367,238 @@ public class ImageSaver extends Thread {
 			if( first_only )
 				break; // only requested the first
 		}
-		return success;
+		return success;
+	}
+
+	/** Sets whether to show a low resolution version of HDR images as the thumbnail, before the
+	 *  full resolution image has been processed.
+	 */
+	public void setHDRThumbnailPreview(boolean hdr_thumbnail_preview) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setHDRThumbnailPreview: " + hdr_thumbnail_preview);
+		this.hdr_thumbnail_preview = hdr_thumbnail_preview;
+	}
+
+	/** Runs the HDR algorithm on reduced resolution versions of the images, and shows the result as
+	 *  the thumbnail. This means the user sees the result quickly, rather than waiting for the full
+	 *  resolution HDR image. The full resolution image is unaffected.
+	 *  Note that auto-stabilise and photo stamps aren't applied to the preview.
+	 * @return Whether the thumbnail was shown.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.N)
+	private boolean showHDRThumbnailPreview(Request request, int base_bitmap) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "showHDRThumbnailPreview");
+		long time_s = System.currentTimeMillis();
+		if( main_activity.getPreview().getCameraController() == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "camera closed");
+			return false;
+		}
+		// use the same sample size as for the thumbnail in saveSingleImageNow()
+		CameraController.Size size = main_activity.getPreview().getCameraController().getPictureSize();
+		int ratio = (int) Math.ceil((double) size.width / main_activity.getPreview().getView().getWidth());
+		int sample_size = Integer.highestOneBit(ratio);
+		sample_size *= request.sample_factor;
+		if( MyDebug.LOG )
+			Log.d(TAG, "sample_size: " + sample_size);
+
+		List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, sample_size);
+		if( bitmaps == null ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to load bitmaps for thumbnail preview");
+			return false;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after decompressing: " + (System.currentTimeMillis() - time_s));
+		try {
+			hdrProcessor.processHDR(bitmaps, true, null, true, null, 0.5f, 4, HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, request.hdr_algorithm); // this will recycle all the bitmaps except bitmaps.get(0), which will contain the hdr image
+		}
+		catch(HDRProcessorException e) {
+			// the full resolution processing will report the error
+			Log.e(TAG, "HDRProcessorException from processHDR for thumbnail preview: " + e.getCode());
+			e.printStackTrace();
+			for(Bitmap bitmap : bitmaps) {
+				decode_pool.release(bitmap);
+			}
+			return false;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after HDR: " + (System.currentTimeMillis() - time_s));
+		Bitmap thumbnail = bitmaps.get(0);
+		bitmaps.clear();
+		JpegBuffer data = request.jpeg_images.get(base_bitmap);
+		thumbnail = rotateForExif(thumbnail, data);
+		if( request.mirror ) {
+			thumbnail = mirrorImage(data, thumbnail);
+		}
+
+		final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
+		final Bitmap thumbnail_f = thumbnail;
+		main_activity.runOnUiThread(new Runnable() {
+			public void run() {
+				applicationInterface.updateThumbnail(thumbnail_f, false);
+			}
+		});
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after showing thumbnail: " + (System.currentTimeMillis() - time_s));
+		return true;
+	}
+
+	/** Runs the saver thread at background priority, until the current request has been processed.
+	 *  Only has an effect when called on the saver thread.
+	 */
+	private void lowerThreadPriority() {
+		if( Thread.currentThread() != this || thread_priority_lowered )
+			return;
+		saved_thread_priority = Process.getThreadPriority(Process.myTid());
+		if( MyDebug.LOG )
+			Log.d(TAG, "lower thread priority from: " + saved_thread_priority);
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		thread_priority_lowered = true;
+	}
+
+	/** Undoes lowerThreadPriority().
+	 */
+	private void restoreThreadPriority() {
+		if( !thread_priority_lowered )
+			return;
+		if( MyDebug.LOG )
+			Log.d(TAG, "restore thread priority to: " + saved_thread_priority);
+		Process.setThreadPriority(saved_thread_priority);
+		thread_priority_lowered = false;
+	}
+
+	/** Merges focus bracketed images into a single image with FocusStacker. The input images are
+	 *  decompressed a band of rows at a time, so that we don't need to hold all of the full resolution
+	 *  images in memory. Note that the output is still a full resolution bitmap, as it's then saved
+	 *  with saveSingleImageNow() (for rotation, stamps etc), and Bitmap.compress() has no way of
+	 *  encoding a jpeg a band at a time.
+	 * @return The merged image, or null if any of the images couldn't be decoded or have different
+	 *         sizes.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private Bitmap createFocusStack(List<JpegBuffer> jpeg_images) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "createFocusStack");
+		final int n_images = jpeg_images.size();
+		long time_s = System.currentTimeMillis();
+
+		// read the resolution without decompressing
+		int width = -1, height = -1;
+		{
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			for(int i=0;i<n_images;i++) {
+				JpegBuffer jpeg = jpeg_images.get(i);
+				BitmapFactory.decodeByteArray(jpeg.getArray(), 0, jpeg.getLength(), options);
+				if( i == 0 ) {
+					width = options.outWidth;
+					height = options.outHeight;
+				}
+				else if( options.outWidth != width || options.outHeight != height ) {
+					Log.e(TAG, "images not of same resolution");
+					return null;
+				}
+			}
+			if( width <= 0 || height <= 0 ) {
+				Log.e(TAG, "failed to decode image bounds");
+				return null;
+			}
+		}
+		if( focus_stacker == null ) {
+			focus_stacker = new FocusStacker(null, FocusStacker.default_tile_size_c);
+		}
+
+		// align using reduced resolution images
+		final int align_max_width_c = 1024;
+		int sample_size = 1;
+		while( width/sample_size > align_max_width_c ) {
+			sample_size *= 2;
+		}
+		int [][] small_images = new int[n_images][];
+		int small_width = -1, small_height = -1;
+		{
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inSampleSize = sample_size;
+			for(int i=0;i<n_images;i++) {
+				JpegBuffer jpeg = jpeg_images.get(i);
+				Bitmap small_bitmap = BitmapFactory.decodeByteArray(jpeg.getArray(), 0, jpeg.getLength(), options);
+				if( small_bitmap == null ) {
+					Log.e(TAG, "failed to decode image " + i);
+					return null;
+				}
+				if( i == 0 ) {
+					small_width = small_bitmap.getWidth();
+					small_height = small_bitmap.getHeight();
+				}
+				small_images[i] = new int[small_width*small_height];
+				small_bitmap.getPixels(small_images[i], 0, small_width, 0, 0, small_width, small_height);
+				small_bitmap.recycle();
+			}
+		}
+		int [] offsets_x = new int[n_images];
+		int [] offsets_y = new int[n_images];
+		focus_stacker.align(small_images, small_width, small_height, (n_images-1)/2, offsets_x, offsets_y);
+		//noinspection UnusedAssignment
+		small_images = null;
+		for(int i=0;i<n_images;i++) {
+			offsets_x[i] *= sample_size;
+			offsets_y[i] *= sample_size;
+			if( MyDebug.LOG )
+				Log.d(TAG, "image " + i + " offset: " + offsets_x[i] + " , " + offsets_y[i]);
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after alignment: " + (System.currentTimeMillis() - time_s));
+
+		final BitmapRegionDecoder [] decoders = new BitmapRegionDecoder[n_images];
+		try {
+			for(int i=0;i<n_images;i++) {
+				JpegBuffer jpeg = jpeg_images.get(i);
+				decoders[i] = BitmapRegionDecoder.newInstance(jpeg.getArray(), 0, jpeg.getLength(), false);
+			}
+			final int final_width = width;
+			final Bitmap output_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			boolean ok = focus_stacker.process(n_images, width, height, offsets_x, offsets_y, new FocusStacker.RowSource() {
+				@Override
+				public boolean readRows(int index, int start_y, int n_rows, int [] argb) {
+					BitmapFactory.Options options = new BitmapFactory.Options();
+					options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+					Bitmap region = decoders[index].decodeRegion(new Rect(0, start_y, final_width, start_y + n_rows), options);
+					if( region == null ) {
+						Log.e(TAG, "failed to decode rows " + start_y + " to " + (start_y + n_rows) + " of image " + index);
+						return false;
+					}
+					region.getPixels(argb, 0, final_width, 0, 0, final_width, n_rows);
+					region.recycle();
+					return true;
+				}
+			}, new FocusStacker.RowSink() {
+				@Override
+				public void writeRows(int start_y, int n_rows, int [] argb) {
+					output_bitmap.setPixels(argb, 0, final_width, 0, start_y, final_width, n_rows);
+				}
+			}, FocusStacker.default_band_height_c);
+			if( MyDebug.LOG )
+				Log.d(TAG, "### time after merging: " + (System.currentTimeMillis() - time_s));
+			if( !ok ) {
+				output_bitmap.recycle();
+				return null;
+			}
+			return output_bitmap;
+		}
+		catch(IOException e) {
+			Log.e(TAG, "failed to create region decoder");
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			for(BitmapRegionDecoder decoder : decoders) {
+				if( decoder != null ) {
+					decoder.recycle();
+				}
+			}
+		}
 	}
 
 	/** Saves all the images in request.jpeg_images, depending on the save_base option.
@@ -1235,17 +2616,104 @@ public class ImageSaver extends Thread {
 		}
 	}
 
-	/** Performs the auto-stabilise algorithm on the image.
+	/** Applies the rotation for the exif orientation, auto-stabilise (if request.do_auto_stabilise) and
+	 *  mirroring (if mirror) to the image. These are composed into a single transform, so that the output
+	 *  is computed in one resampling pass (in parallel with AffineResampler on Android 5+, otherwise with
+	 *  Canvas), rather than creating a new full size bitmap for each step.
 	 * @param data The jpeg data.
 	 * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
+	 * @param mirror Whether to mirror the image.
+	 * @return The transformed bitmap. Will be null if the input bitmap is null and the jpeg couldn't be
+	 *         decoded.
+	 */
+	private Bitmap transformGeometry(final Request request, JpegBuffer data, Bitmap bitmap, boolean mirror) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "transformGeometry");
+			Log.d(TAG, "do_auto_stabilise: " + request.do_auto_stabilise);
+			Log.d(TAG, "mirror: " + mirror);
+		}
+		if( bitmap == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "need to decode bitmap to transform");
+			// bitmap doesn't need to be mutable here, as this won't be the final bitmap
+			bitmap = loadBitmap(data, false, 1);
+			if( bitmap == null ) {
+				if( request.do_auto_stabilise ) {
+					main_activity.getPreview().showToast(null, R.string.failed_to_auto_stabilise);
+				}
+				// otherwise don't bother warning to the user - we simply won't mirror the image
+				System.gc();
+				return null;
+			}
+		}
+
+		AffineResampler.Transform transform = new AffineResampler.Transform(bitmap.getWidth(), bitmap.getHeight());
+		int exif_rotation = getExifRotation(data);
+		if( exif_rotation != 0 ) {
+			transform.rotate(exif_rotation);
+		}
+		if( request.do_auto_stabilise ) {
+			addAutoStabilise(transform, request.level_angle, request.is_front_facing);
+		}
+		if( mirror ) {
+			transform.mirror();
+		}
+		if( transform.isIdentity() ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no transform required");
+			return bitmap;
+		}
+
+		long time_s = System.currentTimeMillis();
+		// We need the bitmap to be mutable for photostamp to work.
+		Bitmap new_bitmap = Bitmap.createBitmap(transform.getWidth(), transform.getHeight(), Bitmap.Config.ARGB_8888);
+		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+			if( affine_resampler == null ) {
+				affine_resampler = new AffineResampler(null, AffineResampler.default_tile_size_c);
+			}
+			final Bitmap input_bitmap = bitmap;
+			final Bitmap output_bitmap = new_bitmap;
+			affine_resampler.process(transform, new AffineResampler.PixelSource() {
+				@Override
+				public void readPixels(int x, int y, int width, int height, int [] argb) {
+					input_bitmap.getPixels(argb, 0, width, x, y, width, height);
+				}
+			}, new AffineResampler.PixelSink() {
+				@Override
+				public void writePixels(int x, int y, int width, int height, int [] argb) {
+					synchronized( output_bitmap ) {
+						output_bitmap.setPixels(argb, 0, width, x, y, width, height);
+					}
+				}
+			});
+		}
+		else {
+			double [] values = transform.getMatrix();
+			float [] matrix_values = new float[9];
+			for(int i=0;i<6;i++) {
+				matrix_values[i] = (float)values[i];
+			}
+			matrix_values[8] = 1.0f;
+			Matrix matrix = new Matrix();
+			matrix.setValues(matrix_values);
+			Canvas canvas = new Canvas(new_bitmap);
+			canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+		}
+		decode_pool.release(bitmap);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "transformed bitmap size " + new_bitmap.getWidth() + ", " + new_bitmap.getHeight());
+			Log.d(TAG, "transform time: " + (System.currentTimeMillis() - time_s));
+		}
+		return new_bitmap;
+	}
+
+	/** Adds the scale, rotation and crop for the auto-stabilise algorithm to the transform.
 	 * @param level_angle The angle in degrees to rotate the image.
 	 * @param is_front_facing Whether the camera is front-facing.
-	 * @param exifTempFile Temporary file that can be used to read exif tags (for orientation)
-     * @return A bitmap representing the auto-stabilised jpeg.
-     */
-	private Bitmap autoStabilise(byte [] data, Bitmap bitmap, double level_angle, boolean is_front_facing, File exifTempFile) {
+	 */
+	private void addAutoStabilise(AffineResampler.Transform transform, double level_angle, boolean is_front_facing) {
 		if( MyDebug.LOG ) {
-			Log.d(TAG, "autoStabilise");
+			Log.d(TAG, "addAutoStabilise");
 			Log.d(TAG, "level_angle: " + level_angle);
 			Log.d(TAG, "is_front_facing: " + is_front_facing);
 		}
@@ -1255,154 +2723,104 @@ public class ImageSaver extends Thread {
 			level_angle -= 180;
 		if( MyDebug.LOG )
 			Log.d(TAG, "auto stabilising... angle: " + level_angle);
-		if( bitmap == null ) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "need to decode bitmap to auto-stabilise");
-			// bitmap doesn't need to be mutable here, as this won't be the final bitmap retured from the auto-stabilise code
-			bitmap = loadBitmap(data, false, 1);
-			if( bitmap == null ) {
-				main_activity.getPreview().showToast(null, R.string.failed_to_auto_stabilise);
-				System.gc();
-			}
-			if( bitmap != null ) {
-				// rotate the bitmap if necessary for exif tags
-				if( MyDebug.LOG )
-					Log.d(TAG, "rotate bitmap for exif tags?");
-				bitmap = rotateForExif(bitmap, data, exifTempFile);
-			}
+		int width = transform.getWidth();
+		int height = transform.getHeight();
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "bitmap size " + width + ", " + height);
 		}
-		if( bitmap != null ) {
-			int width = bitmap.getWidth();
-			int height = bitmap.getHeight();
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "level_angle: " + level_angle);
-				Log.d(TAG, "decoded bitmap size " + width + ", " + height);
-				Log.d(TAG, "bitmap size: " + width*height*4);
-			}
-    			/*for(int y=0;y<height;y++) {
-    				for(int x=0;x<width;x++) {
-    					int col = bitmap.getPixel(x, y);
-    					col = col & 0xffff0000; // mask out red component
-    					bitmap.setPixel(x, y, col);
-    				}
-    			}*/
-			Matrix matrix = new Matrix();
-			double level_angle_rad_abs = Math.abs( Math.toRadians(level_angle) );
-			int w1 = width, h1 = height;
-			double w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
-			double h0 = (w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs));
-			// apply a scale so that the overall image size isn't increased
-			float orig_size = w1*h1;
-			float rotated_size = (float)(w0*h0);
-			float scale = (float)Math.sqrt(orig_size/rotated_size);
-			if( main_activity.test_low_memory ) {
-				if( MyDebug.LOG ) {
-					Log.d(TAG, "TESTING LOW MEMORY");
-					Log.d(TAG, "scale was: " + scale);
-				}
-				// test 20MP on Galaxy Nexus or Nexus 7; 29MP on Nexus 6 and 36MP OnePlus 3T
-				if( width*height >= 7500 )
-					scale *= 1.5f;
-				else
-					scale *= 2.0f;
-			}
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "w0 = " + w0 + " , h0 = " + h0);
-				Log.d(TAG, "w1 = " + w1 + " , h1 = " + h1);
-				Log.d(TAG, "scale = sqrt " + orig_size + " / " + rotated_size + " = " + scale);
-			}
-			matrix.postScale(scale, scale);
-			w0 *= scale;
-			h0 *= scale;
-			w1 *= scale;
-			h1 *= scale;
+		double level_angle_rad_abs = Math.abs( Math.toRadians(level_angle) );
+		int w1 = width, h1 = height;
+		double w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
+		double h0 = (w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs));
+		// apply a scale so that the overall image size isn't increased
+		float orig_size = w1*h1;
+		float rotated_size = (float)(w0*h0);
+		float scale = (float)Math.sqrt(orig_size/rotated_size);
+		if( main_activity.test_low_memory ) {
 			if( MyDebug.LOG ) {
-				Log.d(TAG, "after scaling: w0 = " + w0 + " , h0 = " + h0);
-				Log.d(TAG, "after scaling: w1 = " + w1 + " , h1 = " + h1);
-			}
-			if( is_front_facing ) {
-				matrix.postRotate((float)-level_angle);
-			}
-			else {
-				matrix.postRotate((float)level_angle);
-			}
-			Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
-			// careful, as new_bitmap is sometimes not a copy!
-			if( new_bitmap != bitmap ) {
-				bitmap.recycle();
-				bitmap = new_bitmap;
+				Log.d(TAG, "TESTING LOW MEMORY");
+				Log.d(TAG, "scale was: " + scale);
 			}
-			System.gc();
+			// test 20MP on Galaxy Nexus or Nexus 7; 29MP on Nexus 6 and 36MP OnePlus 3T
+			if( width*height >= 7500 )
+				scale *= 1.5f;
+			else
+				scale *= 2.0f;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "w0 = " + w0 + " , h0 = " + h0);
+			Log.d(TAG, "w1 = " + w1 + " , h1 = " + h1);
+			Log.d(TAG, "scale = sqrt " + orig_size + " / " + rotated_size + " = " + scale);
+		}
+		transform.scale(scale);
+		w0 *= scale;
+		h0 *= scale;
+		w1 *= scale;
+		h1 *= scale;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "after scaling: w0 = " + w0 + " , h0 = " + h0);
+			Log.d(TAG, "after scaling: w1 = " + w1 + " , h1 = " + h1);
+		}
+		if( is_front_facing ) {
+			transform.rotate((float)-level_angle);
+		}
+		else {
+			transform.rotate((float)level_angle);
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "rotated and scaled size " + transform.getWidth() + ", " + transform.getHeight());
+		}
+		double tan_theta = Math.tan(level_angle_rad_abs);
+		double sin_theta = Math.sin(level_angle_rad_abs);
+		double denom = ( h0/w0 + tan_theta );
+		double alt_denom = ( w0/h0 + tan_theta );
+		if( denom == 0.0 || denom < 1.0e-14 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "zero denominator?!");
+		}
+		else if( alt_denom == 0.0 || alt_denom < 1.0e-14 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "zero alt denominator?!");
+		}
+		else {
+			int w2 = (int)(( h0 + 2.0*h1*sin_theta*tan_theta - w0*tan_theta ) / denom);
+			int h2 = (int)(w2*h0/w0);
+			int alt_h2 = (int)(( w0 + 2.0*w1*sin_theta*tan_theta - h0*tan_theta ) / alt_denom);
+			int alt_w2 = (int)(alt_h2*w0/h0);
 			if( MyDebug.LOG ) {
-				Log.d(TAG, "rotated and scaled bitmap size " + bitmap.getWidth() + ", " + bitmap.getHeight());
-				Log.d(TAG, "rotated and scaled bitmap size: " + bitmap.getWidth()*bitmap.getHeight()*4);
-			}
-			double tan_theta = Math.tan(level_angle_rad_abs);
-			double sin_theta = Math.sin(level_angle_rad_abs);
-			double denom = ( h0/w0 + tan_theta );
-			double alt_denom = ( w0/h0 + tan_theta );
-			if( denom == 0.0 || denom < 1.0e-14 ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "zero denominator?!");
+				Log.d(TAG, "w2 = " + w2 + " , h2 = " + h2);
+				Log.d(TAG, "alt_w2 = " + alt_w2 + " , alt_h2 = " + alt_h2);
 			}
-			else if( alt_denom == 0.0 || alt_denom < 1.0e-14 ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "zero alt denominator?!");
-			}
-			else {
-				int w2 = (int)(( h0 + 2.0*h1*sin_theta*tan_theta - w0*tan_theta ) / denom);
-				int h2 = (int)(w2*h0/w0);
-				int alt_h2 = (int)(( w0 + 2.0*w1*sin_theta*tan_theta - h0*tan_theta ) / alt_denom);
-				int alt_w2 = (int)(alt_h2*w0/h0);
-				if( MyDebug.LOG ) {
-					//Log.d(TAG, "h0 " + h0 + " 2.0*h1*sin_theta*tan_theta " + 2.0*h1*sin_theta*tan_theta + " w0*tan_theta " + w0*tan_theta + " / h0/w0 " + h0/w0 + " tan_theta " + tan_theta);
-					Log.d(TAG, "w2 = " + w2 + " , h2 = " + h2);
-					Log.d(TAG, "alt_w2 = " + alt_w2 + " , alt_h2 = " + alt_h2);
-				}
-				if( alt_w2 < w2 ) {
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "chose alt!");
-					}
-					w2 = alt_w2;
-					h2 = alt_h2;
-				}
-				if( w2 <= 0 )
-					w2 = 1;
-				else if( w2 >= bitmap.getWidth() )
-					w2 = bitmap.getWidth()-1;
-				if( h2 <= 0 )
-					h2 = 1;
-				else if( h2 >= bitmap.getHeight() )
-					h2 = bitmap.getHeight()-1;
-				int x0 = (bitmap.getWidth()-w2)/2;
-				int y0 = (bitmap.getHeight()-h2)/2;
+			if( alt_w2 < w2 ) {
 				if( MyDebug.LOG ) {
-					Log.d(TAG, "x0 = " + x0 + " , y0 = " + y0);
-				}
-				// We need the bitmap to be mutable for photostamp to work - contrary to the documentation for Bitmap.createBitmap
-				// (which says it returns an immutable bitmap), we seem to always get a mutable bitmap anyway. A mutable bitmap
-				// would result in an exception "java.lang.IllegalStateException: Immutable bitmap passed to Canvas constructor"
-				// from the Canvas(bitmap) constructor call in the photostamp code, and I've yet to see this from Google Play.
-				new_bitmap = Bitmap.createBitmap(bitmap, x0, y0, w2, h2);
-				if( new_bitmap != bitmap ) {
-					bitmap.recycle();
-					bitmap = new_bitmap;
+					Log.d(TAG, "chose alt!");
 				}
-				if( MyDebug.LOG )
-					Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
-				System.gc();
+				w2 = alt_w2;
+				h2 = alt_h2;
+			}
+			if( w2 <= 0 )
+				w2 = 1;
+			else if( w2 >= transform.getWidth() )
+				w2 = transform.getWidth()-1;
+			if( h2 <= 0 )
+				h2 = 1;
+			else if( h2 >= transform.getHeight() )
+				h2 = transform.getHeight()-1;
+			int x0 = (transform.getWidth()-w2)/2;
+			int y0 = (transform.getHeight()-h2)/2;
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "x0 = " + x0 + " , y0 = " + y0);
 			}
+			transform.crop(x0, y0, w2, h2);
 		}
-		return bitmap;
 	}
 
 	/** Mirrors the image.
 	 * @param data The jpeg data.
 	 * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
-	 * @param exifTempFile Temporary file that can be used to read exif tags (for orientation)
 	 * @return A bitmap representing the mirrored jpeg.
 	 */
-	private Bitmap mirrorImage(byte [] data, Bitmap bitmap, File exifTempFile) {
+	private Bitmap mirrorImage(JpegBuffer data, Bitmap bitmap) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "mirrorImage");
 		}
@@ -1419,7 +2837,7 @@ public class ImageSaver extends Thread {
 				// rotate the bitmap if necessary for exif tags
 				if( MyDebug.LOG )
 					Log.d(TAG, "rotate bitmap for exif tags?");
-				bitmap = rotateForExif(bitmap, data, exifTempFile);
+				bitmap = rotateForExif(bitmap, data);
 			}
 		}
 		if( bitmap != null ) {
@@ -1430,7 +2848,7 @@ public class ImageSaver extends Thread {
 			Bitmap new_bitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height, matrix, true);
 			// careful, as new_bitmap is sometimes not a copy!
 			if( new_bitmap != bitmap ) {
-				bitmap.recycle();
+				decode_pool.release(bitmap);
 				bitmap = new_bitmap;
 			}
 			if( MyDebug.LOG )
@@ -1439,21 +2857,135 @@ public class ImageSaver extends Thread {
 		return bitmap;
 	}
 
+	/** Whether the request has any photo stamp options.
+	 */
+	private static boolean hasStamp(final Request request) {
+		boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+		boolean text_stamp = request.preference_textstamp.length() > 0;
+		return dategeo_stamp || text_stamp;
+	}
+
+	/** A line of text for the photo stamp, right aligned at x, with its baseline at y.
+	 */
+	private static class StampLine {
+		final String text;
+		final int x;
+		final int y;
+
+		StampLine(String text, int x, int y) {
+			this.text = text;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/** Returns the lines of text for the photo stamp options, for an image of the supplied size, and
+	 *  sets up the paint p for drawing them.
+	 */
+	private List<StampLine> getStampLines(final Request request, int width, int height) {
+		boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
+		boolean text_stamp = request.preference_textstamp.length() > 0;
+		int font_size = request.font_size;
+		String preference_stamp_dateformat = request.preference_stamp_dateformat;
+		String preference_stamp_timeformat = request.preference_stamp_timeformat;
+		String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
+		// we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
+		// instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
+		int smallest_size = (width<height) ? width : height;
+		float scale = ((float)smallest_size) / (72.0f*4.0f);
+		int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "scale: " + scale);
+			Log.d(TAG, "font_size: " + font_size);
+			Log.d(TAG, "font_size_pixel: " + font_size_pixel);
+		}
+		p.setTextSize(font_size_pixel);
+		p.setTextAlign(Align.RIGHT);
+		int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
+		int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
+		int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
+		int ypos = height - offset_y;
+		List<StampLine> lines = new ArrayList<>();
+		if( dategeo_stamp ) {
+			// doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
+			String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
+			String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "date_stamp: " + date_stamp);
+				Log.d(TAG, "time_stamp: " + time_stamp);
+			}
+			if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
+				String datetime_stamp = "";
+				if( date_stamp.length() > 0 )
+					datetime_stamp += date_stamp;
+				if( time_stamp.length() > 0 ) {
+					if( datetime_stamp.length() > 0 )
+						datetime_stamp += " ";
+					datetime_stamp += time_stamp;
+				}
+				lines.add(new StampLine(datetime_stamp, width - offset_x, ypos));
+			}
+			ypos -= diff_y;
+			String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
+			if( gps_stamp.length() > 0 ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "stamp with location_string: " + gps_stamp);
+				lines.add(new StampLine(gps_stamp, width - offset_x, ypos));
+				ypos -= diff_y;
+			}
+		}
+		if( text_stamp ) {
+			lines.add(new StampLine(request.preference_textstamp, width - offset_x, ypos));
+		}
+		return lines;
+	}
+
+	/** Draws the lines of the photo stamp, see getStampLines().
+	 */
+	private void drawStamp(final Request request, List<StampLine> lines, Canvas canvas) {
+		final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
+		String pref_style = request.pref_style;
+		if( MyDebug.LOG )
+			Log.d(TAG, "pref_style: " + pref_style);
+		boolean draw_shadowed = false;
+		if( pref_style.equals("preference_stamp_style_shadowed") ) {
+			draw_shadowed = true;
+		}
+		else if( pref_style.equals("preference_stamp_style_plain") ) {
+			draw_shadowed = false;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "draw_shadowed: " + draw_shadowed);
+		p.setColor(Color.WHITE);
+		for(StampLine line : lines) {
+			applicationInterface.drawTextWithBackground(canvas, p, line.text, request.color, Color.BLACK, line.x, line.y, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
+		}
+	}
+
+	/** Returns a rectangle containing everything drawn by drawStamp() for the lines.
+	 */
+	private Rect getStampBounds(List<StampLine> lines) {
+		Paint.FontMetricsInt font_metrics = p.getFontMetricsInt();
+		final int margin = 4; // for antialiasing, and the outline if shadowed
+		Rect bounds = new Rect();
+		for(StampLine line : lines) {
+			int text_width = (int)Math.ceil(p.measureText(line.text));
+			bounds.union(line.x - text_width - margin, line.y + font_metrics.top - margin, line.x + margin, line.y + font_metrics.bottom + margin);
+		}
+		return bounds;
+	}
+
 	/** Applies any photo stamp options (if they exist).
 	 * @param data The jpeg data.
 	 * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
-	 * @param exifTempFile Temporary file that can be used to read exif tags (for orientation)
 	 * @return A bitmap representing the stamped jpeg. Will be null if the input bitmap is null and
 	 *         no photo stamp is applied.
 	 */
-	private Bitmap stampImage(final Request request, byte [] data, Bitmap bitmap, File exifTempFile) {
+	private Bitmap stampImage(final Request request, JpegBuffer data, Bitmap bitmap) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "stampImage");
 		}
-		final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
-		boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
-		boolean text_stamp = request.preference_textstamp.length() > 0;
-		if( dategeo_stamp || text_stamp ) {
+		if( hasStamp(request) ) {
 			if( bitmap == null ) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "decode bitmap in order to stamp info");
@@ -1466,7 +2998,7 @@ public class ImageSaver extends Thread {
 					// rotate the bitmap if necessary for exif tags
 					if( MyDebug.LOG )
 						Log.d(TAG, "rotate bitmap for exif tags?");
-					bitmap = rotateForExif(bitmap, data, exifTempFile);
+					bitmap = rotateForExif(bitmap, data);
 				}
 			}
 			if( bitmap != null ) {
@@ -1474,170 +3006,231 @@ public class ImageSaver extends Thread {
 					Log.d(TAG, "stamp info to bitmap: " + bitmap);
 				if( MyDebug.LOG )
 					Log.d(TAG, "bitmap is mutable?: " + bitmap.isMutable());
-				int font_size = request.font_size;
-				int color = request.color;
-				String pref_style = request.pref_style;
-				if( MyDebug.LOG )
-					Log.d(TAG, "pref_style: " + pref_style);
-				String preference_stamp_dateformat = request.preference_stamp_dateformat;
-				String preference_stamp_timeformat = request.preference_stamp_timeformat;
-				String preference_stamp_gpsformat = request.preference_stamp_gpsformat;
 				int width = bitmap.getWidth();
 				int height = bitmap.getHeight();
 				if( MyDebug.LOG ) {
 					Log.d(TAG, "decoded bitmap size " + width + ", " + height);
 					Log.d(TAG, "bitmap size: " + width*height*4);
 				}
+				List<StampLine> lines = getStampLines(request, width, height);
 				Canvas canvas = new Canvas(bitmap);
-				p.setColor(Color.WHITE);
-				// we don't use the density of the screen, because we're stamping to the image, not drawing on the screen (we don't want the font height to depend on the device's resolution)
-				// instead we go by 1 pt == 1/72 inch height, and scale for an image height (or width if in portrait) of 4" (this means the font height is also independent of the photo resolution)
-				int smallest_size = (width<height) ? width : height;
-				float scale = ((float)smallest_size) / (72.0f*4.0f);
-				int font_size_pixel = (int)(font_size * scale + 0.5f); // convert pt to pixels
-				if( MyDebug.LOG ) {
-					Log.d(TAG, "scale: " + scale);
-					Log.d(TAG, "font_size: " + font_size);
-					Log.d(TAG, "font_size_pixel: " + font_size_pixel);
-				}
-				p.setTextSize(font_size_pixel);
-				int offset_x = (int)(8 * scale + 0.5f); // convert pt to pixels
-				int offset_y = (int)(8 * scale + 0.5f); // convert pt to pixels
-				int diff_y = (int)((font_size+4) * scale + 0.5f); // convert pt to pixels
-				int ypos = height - offset_y;
-				p.setTextAlign(Align.RIGHT);
-				boolean draw_shadowed = false;
-				if( pref_style.equals("preference_stamp_style_shadowed") ) {
-					draw_shadowed = true;
-				}
-				else if( pref_style.equals("preference_stamp_style_plain") ) {
-					draw_shadowed = false;
-				}
-				if( MyDebug.LOG )
-					Log.d(TAG, "draw_shadowed: " + draw_shadowed);
-				if( dategeo_stamp ) {
-					if( MyDebug.LOG )
-						Log.d(TAG, "stamp date");
-					// doesn't respect user preferences such as 12/24 hour - see note about in draw() about DateFormat.getTimeInstance()
-					String date_stamp = TextFormatter.getDateString(preference_stamp_dateformat, request.current_date);
-					String time_stamp = TextFormatter.getTimeString(preference_stamp_timeformat, request.current_date);
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "date_stamp: " + date_stamp);
-						Log.d(TAG, "time_stamp: " + time_stamp);
-					}
-					if( date_stamp.length() > 0 || time_stamp.length() > 0 ) {
-						String datetime_stamp = "";
-						if( date_stamp.length() > 0 )
-							datetime_stamp += date_stamp;
-						if( time_stamp.length() > 0 ) {
-							if( datetime_stamp.length() > 0 )
-								datetime_stamp += " ";
-							datetime_stamp += time_stamp;
-						}
-						applicationInterface.drawTextWithBackground(canvas, p, datetime_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-					}
-					ypos -= diff_y;
-					String gps_stamp = main_activity.getTextFormatter().getGPSString(preference_stamp_gpsformat, request.preference_units_distance, request.store_location, request.location, request.store_geo_direction, request.geo_direction);
-					if( gps_stamp.length() > 0 ) {
-						if( MyDebug.LOG )
-							Log.d(TAG, "stamp with location_string: " + gps_stamp);
-						applicationInterface.drawTextWithBackground(canvas, p, gps_stamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-						ypos -= diff_y;
-					}
-				}
-				if( text_stamp ) {
-					if( MyDebug.LOG )
-						Log.d(TAG, "stamp text");
-					applicationInterface.drawTextWithBackground(canvas, p, request.preference_textstamp, color, Color.BLACK, width - offset_x, ypos, MyApplicationInterface.Alignment.ALIGNMENT_BOTTOM, null, draw_shadowed);
-					ypos -= diff_y;
-				}
+				drawStamp(request, lines, canvas);
 			}
 		}
 		return bitmap;
 	}
 
-	private static class PostProcessBitmapResult {
-		final Bitmap bitmap;
-		final File exifTempFile;
+	/** Applies the photo stamp options to the jpeg data, decoding and compressing only the part of
+	 *  the image that the stamp covers, see JpegStripEditor. The jpeg should already be in its normal
+	 *  orientation (e.g., from transformJpegLosslessly()).
+	 * @return The stamped jpeg data, or null if this isn't possible for the jpeg, in which case the
+	 *         caller should fall back to stampImage().
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private JpegBuffer stampJpeg(final Request request, JpegBuffer data) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "stampJpeg");
+		long time_s = System.currentTimeMillis();
+		BitmapFactory.Options bounds_options = new BitmapFactory.Options();
+		bounds_options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data.getArray(), 0, data.getLength(), bounds_options);
+		if( bounds_options.outWidth <= 0 || bounds_options.outHeight <= 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read jpeg size");
+			return null;
+		}
+		final List<StampLine> lines = getStampLines(request, bounds_options.outWidth, bounds_options.outHeight);
+		Rect bounds = getStampBounds(lines);
+		if( MyDebug.LOG )
+			Log.d(TAG, "stamp bounds: " + bounds);
+		try {
+			if( jpeg_strip_editor == null ) {
+				jpeg_strip_editor = new JpegStripEditor(null);
+			}
+			byte [] stamped = jpeg_strip_editor.edit(data.getArray(), data.getLength(), bounds.left, bounds.top, bounds.width(), bounds.height(), new JpegStripEditor.PixelEditor() {
+				@Override
+				public void edit(int [] argb, int x, int y, int width, int height) {
+					Bitmap strip = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+					strip.setPixels(argb, 0, width, 0, 0, width, height);
+					Canvas canvas = new Canvas(strip);
+					canvas.translate(-x, -y);
+					drawStamp(request, lines, canvas);
+					strip.getPixels(argb, 0, width, 0, 0, width, height);
+					strip.recycle();
+				}
+			});
+			if( stamped == null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "can't stamp jpeg without decoding");
+				return null;
+			}
+			else if( stamped == data.getArray() ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "stamp is outside the image");
+				return data;
+			}
 
-		PostProcessBitmapResult(Bitmap bitmap, File exifTempFile) {
-			this.bitmap = bitmap;
-			this.exifTempFile = exifTempFile;
+			// the thumbnail would no longer match
+			ExifRewriter exif = ExifRewriter.parse(stamped);
+			if( exif.hasThumbnail() ) {
+				exif.removeThumbnail();
+				ByteArrayOutputStream outputStream = new ByteArrayOutputStream(stamped.length + 65536);
+				ExifRewriter.writeJpeg(stamped, exif.getApp1Segment(), outputStream);
+				stamped = outputStream.toByteArray();
+			}
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "Save single image performance: time after stamping jpeg: " + (System.currentTimeMillis() - time_s));
+			}
+			return JpegBuffer.wrap(stamped);
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to stamp jpeg: " + e.getMessage());
+			e.printStackTrace();
 		}
+		return null;
 	}
 
-	/** Performs post-processing on the data, or bitmap if non-null, for saveSingleImageNow.
+	/** Whether the post-processing for the request can be done without decoding the whole jpeg data,
+	 *  by transformJpegLosslessly() and stampJpeg().
+	 */
+	private boolean canTransformLosslessly(final Request request) {
+		// auto-stabilise requires decoding, in which case we mirror the decoded bitmap
+		return (request.mirror || hasStamp(request)) && !request.do_auto_stabilise;
+	}
+
+	/** Rotates the jpeg data according to its exif orientation, and mirrors it if requested, without
+	 *  decoding to a bitmap and recompressing, see JpegLosslessTransform. The exif tags are updated for
+	 *  the new orientation.
+	 * @return The transformed jpeg data, or null if the jpeg can't be transformed losslessly, in which
+	 *         case the caller should fall back to decoding the jpeg.
 	 */
-	private PostProcessBitmapResult postProcessBitmap(final Request request, byte [] data, Bitmap bitmap) {
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	private JpegBuffer transformJpegLosslessly(JpegBuffer data, boolean mirror) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "postProcessBitmap");
-    	long time_s = System.currentTimeMillis();
+			Log.d(TAG, "transformJpegLosslessly");
+		long time_s = System.currentTimeMillis();
+		try {
+			ExifRewriter exif = ExifRewriter.parse(data.getArray(), data.getLength());
+			JpegLosslessTransform.Transform transform = JpegLosslessTransform.Transform.fromExifOrientation(exif.getOrientation());
+			if( mirror ) {
+				transform = transform.thenFlipHorizontal();
+			}
+			if( transform == JpegLosslessTransform.Transform.NONE && exif.getOrientation() <= ExifRewriter.ORIENTATION_NORMAL ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "no transform required");
+				return data;
+			}
+			if( jpeg_lossless_transform == null ) {
+				jpeg_lossless_transform = new JpegLosslessTransform(null);
+			}
+			byte [] transformed = jpeg_lossless_transform.transform(data.getArray(), data.getLength(), transform);
+			if( transformed == null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "can't transform losslessly");
+				return null;
+			}
 
-		boolean dategeo_stamp = request.preference_stamp.equals("preference_stamp_yes");
-		boolean text_stamp = request.preference_textstamp.length() > 0;
-		File exifTempFile = null;
-		if( bitmap != null || request.do_auto_stabilise || request.mirror || dategeo_stamp || text_stamp ) {
-			// either we have a bitmap, or will need to decode the bitmap to do post-processing
-			// need to rotate the bitmap according to the exif orientation (which some devices use, e.g., Samsung)
-			// so need to write to a temp file for this - we also use this later on to transfer the exif tags
-			// on Android 7+, we can now read exif tags direct from the jpeg data
-			if( Build.VERSION.SDK_INT < Build.VERSION_CODES.N ) {
-				try {
-					if( MyDebug.LOG )
-						Log.d(TAG, "write temp file to record EXIF data");
-					exifTempFile = File.createTempFile("opencamera_exif", "");
-					OutputStream tempOutputStream = new FileOutputStream(exifTempFile);
-					try {
-						tempOutputStream.write(data);
-					}
-					finally {
-						tempOutputStream.close();
-					}
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "Save single image performance: time after saving temp photo for EXIF: " + (System.currentTimeMillis() - time_s));
-					}
-				}
-				catch(IOException e) {
-					if (MyDebug.LOG)
-						Log.e(TAG, "exception writing to temp file");
-					e.printStackTrace();
+			// the image is now in the normal orientation, and the thumbnail would no longer match
+			exif.removeAttribute(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ORIENTATION);
+			if( transform.swapsDimensions() ) {
+				long width = exif.getInt(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION);
+				long height = exif.getInt(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_Y_DIMENSION);
+				if( width != -1 && height != -1 ) {
+					exif.setLong(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION, height);
+					exif.setLong(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_Y_DIMENSION, width);
 				}
 			}
-
-			if( bitmap != null ) {
-				// rotate the bitmap if necessary for exif tags
-				if( MyDebug.LOG )
-					Log.d(TAG, "rotate pre-existing bitmap for exif tags?");
-				bitmap = rotateForExif(bitmap, data, exifTempFile);
+			exif.removeThumbnail();
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream(transformed.length + 65536);
+			ExifRewriter.writeJpeg(transformed, exif.getApp1Segment(), outputStream);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "Save single image performance: time after lossless transform " + transform + ": " + (System.currentTimeMillis() - time_s));
 			}
+			return JpegBuffer.wrap(outputStream.toByteArray());
 		}
-		if( request.do_auto_stabilise ) {
-			bitmap = autoStabilise(data, bitmap, request.level_angle, request.is_front_facing, exifTempFile);
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to transform jpeg losslessly: " + e.getMessage());
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/** Performs post-processing on the data, or bitmap if non-null, for saveSingleImageNow.
+	 * @param mirror Whether to mirror the image (this is false if the data has already been mirrored).
+	 * @param stamp Whether to apply the photo stamp options (this is false if the data has already
+	 *              been stamped).
+	 */
+	private Bitmap postProcessBitmap(final Request request, JpegBuffer data, Bitmap bitmap, boolean mirror, boolean stamp) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "postProcessBitmap");
+    	long time_s = System.currentTimeMillis();
+
+		if( bitmap != null || request.do_auto_stabilise || mirror ) {
+			// if we have a bitmap, we need to rotate it according to the exif orientation (which some devices use, e.g., Samsung)
+			// n.b., the exif tags are read directly from the jpeg data, see getExifRotation()
+			long start_time = SaveLatencyRecorder.now();
+			bitmap = transformGeometry(request, data, bitmap, mirror);
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.STABILISE, start_time);
 		}
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
 		}
-		if( request.mirror ) {
-			bitmap = mirrorImage(data, bitmap, exifTempFile);
+		if( stamp ) {
+			long start_time = SaveLatencyRecorder.now();
+			bitmap = stampImage(request, data, bitmap);
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.STAMP, start_time);
 		}
-		bitmap = stampImage(request, data, bitmap, exifTempFile);
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
 		}
-		return new PostProcessBitmapResult(bitmap, exifTempFile);
+		return bitmap;
+	}
+
+	/** The state of a single image being saved by saveSingleImageNow(). If the output pipeline is in use, this is
+	 *  passed from the saver thread to the encode and write stages.
+	 */
+	private static class SingleImageOutput {
+		final Request request;
+		final JpegBuffer data; // retained until finishSingleImageOutput()
+		Bitmap bitmap; // if non-null, the bitmap to save, otherwise data is saved
+		File picFile;
+		Uri saveUri; // if non-null, then picFile is a temporary file, which afterwards we should redirect to saveUri
+		byte [] encoded; // if non-null, bitmap has already been compressed to this jpeg data
+		final boolean raw_only;
+		final boolean update_thumbnail;
+		final boolean share_image;
+		final long time_s;
+		boolean success;
+
+		SingleImageOutput(Request request, JpegBuffer data, boolean raw_only, boolean update_thumbnail, boolean share_image, long time_s) {
+			this.request = request;
+			this.data = data.retain();
+			this.raw_only = raw_only;
+			this.update_thumbnail = update_thumbnail;
+			this.share_image = share_image;
+			this.time_s = time_s;
+		}
 	}
 
 	/** May be run in saver thread or picture callback thread (depending on whether running in background).
 	 *  The requests.images field is ignored, instead we save the supplied data or bitmap.
 	 *  If bitmap is null, then the supplied jpeg data is saved. If bitmap is non-null, then the bitmap is
-	 *  saved, but the supplied data is still used to read EXIF data from.
+	 *  saved, but the supplied data is still used to read EXIF data from. The bitmap will be recycled by
+	 *  this method (possibly after it has returned, if the output pipeline is used), so the caller should
+	 *  not use or recycle it afterwards.
+	 *  When called on the saver thread, the filename is chosen before returning (so filenames follow the
+	 *  order of requests), but compressing and writing the image may be done on the output pipeline, see
+	 *  queueSingleImageOutput(). In that case this method returns true, and any failure is reported to the
+	 *  user when it happens.
 	 *  @param update_thumbnail - Whether to update the thumbnail (and show the animation).
 	 *  @param share_image - Whether this image should be marked as the one to share (if multiple images can
 	 *  be saved from a single shot (e.g., saving exposure images with HDR).
 	 */
 	@SuppressLint("SimpleDateFormat")
 	@SuppressWarnings("deprecation")
-	private boolean saveSingleImageNow(final Request request, byte [] data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image) {
+	private boolean saveSingleImageNow(final Request request, JpegBuffer data, Bitmap bitmap, String filename_suffix, boolean update_thumbnail, boolean share_image) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "saveSingleImageNow");
 
@@ -1655,7 +3248,6 @@ public class ImageSaver extends Thread {
 		}
     	long time_s = System.currentTimeMillis();
 		
-        boolean success = false;
 		final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
 		boolean raw_only = applicationInterface.isRawOnly();
 		if( MyDebug.LOG )
@@ -1664,20 +3256,38 @@ public class ImageSaver extends Thread {
 		
 		main_activity.savingImage(true);
 
-		File exifTempFile = null;
-
 		if( !raw_only ) {
-			PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap);
-			bitmap = postProcessBitmapResult.bitmap;
-			exifTempFile = postProcessBitmapResult.exifTempFile;
+			boolean mirror = request.mirror;
+			boolean stamp = hasStamp(request);
+			// JpegLosslessTransform and JpegStripEditor require Android 5 for ForkJoinPool
+			if( bitmap == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && canTransformLosslessly(request) ) {
+				long start_time = SaveLatencyRecorder.now();
+				JpegBuffer transformed = transformJpegLosslessly(data, mirror);
+				latency_recorder.recordSince(SaveLatencyRecorder.Stage.STABILISE, start_time);
+				if( transformed != null ) {
+					// n.b., the transformed data is also used for the thumbnail and exif tags
+					data = transformed;
+					mirror = false;
+					if( stamp ) {
+						start_time = SaveLatencyRecorder.now();
+						JpegBuffer stamped = stampJpeg(request, data);
+						latency_recorder.recordSince(SaveLatencyRecorder.Stage.STAMP, start_time);
+						if( stamped != null ) {
+							data = stamped;
+							stamp = false;
+						}
+					}
+				}
+			}
+			bitmap = postProcessBitmap(request, data, bitmap, mirror, stamp);
 		}
 
-		File picFile = null;
-		Uri saveUri = null; // if non-null, then picFile is a temporary file, which afterwards we should redirect to saveUri
+		final SingleImageOutput output = new SingleImageOutput(request, data, raw_only, update_thumbnail, share_image, time_s);
+
         try {
         	if( raw_only ) {
         		// don't save the JPEG
-				success = true;
+				output.success = true;
 			}
 			else if( request.image_capture_intent ) {
     			if( MyDebug.LOG )
@@ -1687,7 +3297,7 @@ public class ImageSaver extends Thread {
     			    // Save the bitmap to the specified URI (use a try/catch block)
         			if( MyDebug.LOG )
         				Log.d(TAG, "save to: " + request.image_capture_intent_uri);
-        			saveUri = request.image_capture_intent_uri;
+        			output.saveUri = request.image_capture_intent_uri;
     			}
     			else
     			{
@@ -1704,7 +3314,7 @@ public class ImageSaver extends Thread {
 							// rotate the bitmap if necessary for exif tags
 							if( MyDebug.LOG )
 								Log.d(TAG, "rotate bitmap for exif tags?");
-							bitmap = rotateForExif(bitmap, data, exifTempFile);
+							bitmap = rotateForExif(bitmap, data);
 						}
     				}
     				if( bitmap != null ) {
@@ -1740,132 +3350,294 @@ public class ImageSaver extends Thread {
         			}
         			if( bitmap != null )
         				main_activity.setResult(Activity.RESULT_OK, new Intent("inline-data").putExtra("data", bitmap));
-					if( exifTempFile != null && !exifTempFile.delete() ) {
+        			main_activity.finish();
+    			}
+			}
+			else if( storageUtils.isUsingSAF() ) {
+				output.saveUri = storageUtils.createOutputMediaFileSAF(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, "jpg", request.current_date);
+			}
+			else {
+    			output.picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, "jpg", request.current_date);
+	    		if( MyDebug.LOG )
+	    			Log.d(TAG, "save to: " + output.picFile.getAbsolutePath());
+			}
+			
+			if( output.saveUri != null && output.picFile == null ) {
+	    		if( MyDebug.LOG )
+	    			Log.d(TAG, "saveUri: " + output.saveUri);
+				output.picFile = File.createTempFile("picFile", "jpg", main_activity.getCacheDir());
+	    		if( MyDebug.LOG )
+	    			Log.d(TAG, "temp picFile: " + output.picFile.getAbsolutePath());
+			}
+		}
+        catch(IOException e) {
+    		if( MyDebug.LOG )
+    			Log.e(TAG, "I/O error creating file: " + e.getMessage());
+            e.printStackTrace();
+            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+        }
+        catch(SecurityException e) {
+    		if( MyDebug.LOG )
+    			Log.e(TAG, "security exception creating file: " + e.getMessage());
+            e.printStackTrace();
+            main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+        }
+		output.bitmap = bitmap;
+
+		if( output.picFile != null && !request.image_capture_intent && canQueueSingleImageOutput() ) {
+			// filename is now decided, so the rest can be done on the output pipeline
+			queueSingleImageOutput(output);
+			return true;
+		}
+
+		if( output.picFile != null ) {
+			writeSingleImageOutput(output);
+		}
+		finishSingleImageOutput(output);
+        return output.success;
+	}
+
+	/** Whether saveSingleImageNow() can hand the image over to the output pipeline.
+	 */
+	private boolean canQueueSingleImageOutput() {
+		// only use the pipeline from the saver thread - if not saving in background, the caller expects the image to
+		// have been saved when saveSingleImageNow() returns
+		return pipeline_depth > 0 && Thread.currentThread() == this && !write_executor.isShutdown();
+	}
+
+	/** Compresses the image on encode_executor, then writes it on write_executor. write_executor is single
+	 *  threaded, so images are written, scanned and added as the last image in the order they were queued,
+	 *  even if they finish compressing in a different order. Blocks if pipeline_depth images are already in
+	 *  the pipeline.
+	 */
+	private void queueSingleImageOutput(final SingleImageOutput output) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "queueSingleImageOutput");
+		output_permits.acquireUninterruptibly();
+		synchronized( this ) {
+			n_pending_outputs++;
+			if( MyDebug.LOG )
+				Log.d(TAG, "pending outputs is now: " + n_pending_outputs);
+		}
+		final Future<?> encode_future = encode_executor.submit(new Runnable() {
+			public void run() {
+				encodeSingleImageOutput(output);
+			}
+		});
+		write_executor.execute(new Runnable() {
+			public void run() {
+				try {
+					encode_future.get();
+				}
+				catch(InterruptedException e) {
+					e.printStackTrace();
+					if( MyDebug.LOG )
+						Log.e(TAG, "interrupted while waiting for image to be compressed");
+				}
+				catch(ExecutionException e) {
+					// if the bitmap failed to compress (e.g., out of memory), writeSingleImageOutput() will try again
+					e.printStackTrace();
+					if( MyDebug.LOG )
+						Log.e(TAG, "failed to compress image: " + e.getMessage());
+				}
+				try {
+					writeSingleImageOutput(output);
+					finishSingleImageOutput(output);
+				}
+				finally {
+					// must always be done, otherwise the saver thread blocks on output_permits, and waitUntilDone()
+					// never returns
+					output_permits.release();
+					synchronized( ImageSaver.this ) {
+						n_pending_outputs--;
 						if( MyDebug.LOG )
-							Log.e(TAG, "failed to delete temp " + exifTempFile.getAbsolutePath());
+							Log.d(TAG, "pending outputs is now: " + n_pending_outputs);
+						ImageSaver.this.notifyAll();
 					}
-					exifTempFile = null;
-        			main_activity.finish();
-    			}
+				}
+				clearDecodePoolIfIdle();
 			}
-			else if( storageUtils.isUsingSAF() ) {
-				saveUri = storageUtils.createOutputMediaFileSAF(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, "jpg", request.current_date);
+		});
+	}
+
+	/** Encode stage of the output pipeline: compresses the bitmap (if any) to jpeg data in memory.
+	 */
+	private void encodeSingleImageOutput(SingleImageOutput output) {
+		if( output.bitmap == null ) {
+			// jpeg data is saved as is
+			return;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "compress bitmap, quality " + output.request.image_quality);
+		long start_time = SaveLatencyRecorder.now();
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		output.bitmap.compress(Bitmap.CompressFormat.JPEG, output.request.image_quality, outputStream);
+		output.encoded = outputStream.toByteArray();
+		latency_recorder.recordSince(SaveLatencyRecorder.Stage.COMPRESS, start_time);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "Save single image performance: time after compressing photo: " + (System.currentTimeMillis() - output.time_s));
+		}
+	}
+
+	/** Writes the image to output.picFile, sets the EXIF tags, and then scans the file, or copies it to
+	 *  output.saveUri.
+	 */
+	private void writeSingleImageOutput(SingleImageOutput output) {
+		final Request request = output.request;
+		final JpegBuffer data = output.data;
+		final Bitmap bitmap = output.bitmap;
+		final File picFile = output.picFile;
+		final Uri saveUri = output.saveUri;
+		final long time_s = output.time_s;
+		StorageUtils storageUtils = main_activity.getStorageUtils();
+		try {
+			JpegBuffer jpeg; // null if the bitmap still needs to be compressed
+			if( output.encoded != null ) {
+				jpeg = JpegBuffer.wrap(output.encoded);
+			}
+			else if( bitmap != null ) {
+				jpeg = null;
 			}
 			else {
-    			picFile = storageUtils.createOutputMediaFile(StorageUtils.MEDIA_TYPE_IMAGE, filename_suffix, "jpg", request.current_date);
-	    		if( MyDebug.LOG )
-	    			Log.d(TAG, "save to: " + picFile.getAbsolutePath());
+				jpeg = data;
 			}
-			
-			if( saveUri != null && picFile == null ) {
-	    		if( MyDebug.LOG )
-	    			Log.d(TAG, "saveUri: " + saveUri);
-				picFile = File.createTempFile("picFile", "jpg", main_activity.getCacheDir());
-	    		if( MyDebug.LOG )
-	    			Log.d(TAG, "temp picFile: " + picFile.getAbsolutePath());
+
+			// prepare the exif tags before opening the file, so that the file is written in one pass
+			byte [] exif_segment = null;
+			boolean exif_done = false;
+			long start_time = SaveLatencyRecorder.now();
+			try {
+				exif_segment = getExifSegment(request, data, bitmap);
+				exif_done = true;
 			}
-			
-			if( picFile != null ) {
-				OutputStream outputStream = new FileOutputStream(picFile);
-				try {
-		            if( bitmap != null ) {
-						if( MyDebug.LOG )
-							Log.d(TAG, "compress bitmap, quality " + request.image_quality);
-	    	            bitmap.compress(Bitmap.CompressFormat.JPEG, request.image_quality, outputStream);
-		            }
-		            else {
-		            	outputStream.write(data);
-		            }
+			catch(IOException e) {
+				// fall back to ExifInterface once the file has been written
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to rewrite exif tags: " + e.getMessage());
+				e.printStackTrace();
+			}
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.EXIF, start_time);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "Save single image performance: time after preparing EXIF: " + (System.currentTimeMillis() - time_s));
+			}
+
+			start_time = SaveLatencyRecorder.now();
+			OutputStream outputStream = new FileOutputStream(picFile);
+			try {
+				if( jpeg == null ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "compress bitmap, quality " + request.image_quality);
+					// compress straight to the file, rather than to memory, as this is used when there isn't enough
+					// memory for the output pipeline; the exif tags are added as the jpeg is written
+					OutputStream bitmapStream = new BufferedOutputStream(outputStream);
+					if( exif_segment != null ) {
+						bitmapStream = ExifRewriter.insertingStream(bitmapStream, exif_segment);
+					}
+					bitmap.compress(Bitmap.CompressFormat.JPEG, request.image_quality, bitmapStream);
+					bitmapStream.close();
 				}
-				finally {
-					outputStream.close();
+				else if( exif_segment != null ) {
+					ExifRewriter.writeJpeg(jpeg.getArray(), jpeg.getLength(), exif_segment, outputStream);
 				}
+				else {
+					jpeg.writeTo(outputStream);
+				}
+			}
+			finally {
+				outputStream.close();
+			}
+			// compressing straight to the file is mostly the time to compress
+			latency_recorder.recordSince(jpeg == null ? SaveLatencyRecorder.Stage.COMPRESS : SaveLatencyRecorder.Stage.WRITE, start_time);
+			output.encoded = null;
+    		if( MyDebug.LOG )
+    			Log.d(TAG, "saveImageNow saved photo");
+    		if( MyDebug.LOG ) {
+    			Log.d(TAG, "Save single image performance: time after saving photo: " + (System.currentTimeMillis() - time_s));
+    		}
+
+    		if( saveUri == null ) { // if saveUri is non-null, then we haven't succeeded until we've copied to the saveUri
+    			output.success = true;
+    		}
+			if( exif_done ) {
+				// exif tags already written
+			}
+        	else if( bitmap != null ) {
+        		// need to update EXIF data!
+				if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "set Exif tags from data");
+					start_time = SaveLatencyRecorder.now();
+					setExifFromData(request, data, picFile);
+					latency_recorder.recordSince(SaveLatencyRecorder.Stage.EXIF, start_time);
+				}
+				else {
+					if( MyDebug.LOG )
+						Log.d(TAG, "set Exif tags from temp file");
+					start_time = SaveLatencyRecorder.now();
+					setExifFromTempFile(request, data, picFile);
+					latency_recorder.recordSince(SaveLatencyRecorder.Stage.EXIF, start_time);
+				}
+        	}
+        	else {
+				start_time = SaveLatencyRecorder.now();
+        		updateExif(request, picFile);
+				latency_recorder.recordSince(SaveLatencyRecorder.Stage.EXIF, start_time);
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "Save single image performance: time after updateExif: " + (System.currentTimeMillis() - time_s));
+				}
+			}
+
+            if( saveUri == null ) {
+            	// broadcast for SAF is done later, when we've actually written out the file
+				start_time = SaveLatencyRecorder.now();
+            	storageUtils.broadcastFile(picFile, true, false, output.update_thumbnail);
+				latency_recorder.recordSince(SaveLatencyRecorder.Stage.MEDIA_SCAN, start_time);
+            	main_activity.test_last_saved_image = picFile.getAbsolutePath();
+            }
+            if( request.image_capture_intent ) {
 	    		if( MyDebug.LOG )
-	    			Log.d(TAG, "saveImageNow saved photo");
-	    		if( MyDebug.LOG ) {
-	    			Log.d(TAG, "Save single image performance: time after saving photo: " + (System.currentTimeMillis() - time_s));
-	    		}
-
-	    		if( saveUri == null ) { // if saveUri is non-null, then we haven't succeeded until we've copied to the saveUri
-	    			success = true;
-	    		}
-	            if( picFile != null ) {
-	            	if( bitmap != null ) {
-	            		// need to update EXIF data!
-						if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
-							if( MyDebug.LOG )
-								Log.d(TAG, "set Exif tags from data");
-							setExifFromData(request, data, picFile);
-						}
-						else {
-							if( MyDebug.LOG )
-								Log.d(TAG, "set Exif tags from file");
-							if( exifTempFile != null ) {
-								setExifFromFile(request, exifTempFile, picFile);
-								if( MyDebug.LOG ) {
-									Log.d(TAG, "Save single image performance: time after copying EXIF: " + (System.currentTimeMillis() - time_s));
-								}
-							}
-							else {
-								if( MyDebug.LOG )
-									Log.d(TAG, "can't set Exif tags without file pre-Android 7");
-							}
-						}
-	            	}
-	            	else {
-	            		updateExif(request, picFile);
-						if( MyDebug.LOG ) {
-							Log.d(TAG, "Save single image performance: time after updateExif: " + (System.currentTimeMillis() - time_s));
-						}
-					}
+	    			Log.d(TAG, "finish activity due to being called from intent");
+            	main_activity.setResult(Activity.RESULT_OK);
+            	main_activity.finish();
+            }
+            if( storageUtils.isUsingSAF() ) {
+            	// most Gallery apps don't seem to recognise the SAF-format Uri, so just clear the field
+            	storageUtils.clearLastMediaScanned();
+            }
 
-    	            if( saveUri == null ) {
-    	            	// broadcast for SAF is done later, when we've actually written out the file
-    	            	storageUtils.broadcastFile(picFile, true, false, update_thumbnail);
-    	            	main_activity.test_last_saved_image = picFile.getAbsolutePath();
-    	            }
-	            }
-	            if( request.image_capture_intent ) {
-    	    		if( MyDebug.LOG )
-    	    			Log.d(TAG, "finish activity due to being called from intent");
-	            	main_activity.setResult(Activity.RESULT_OK);
-	            	main_activity.finish();
-	            }
-	            if( storageUtils.isUsingSAF() ) {
-	            	// most Gallery apps don't seem to recognise the SAF-format Uri, so just clear the field
-	            	storageUtils.clearLastMediaScanned();
-	            }
-
-	            if( saveUri != null ) {
-	            	copyFileToUri(main_activity, saveUri, picFile);
-	    		    success = true;
-	    		    /* We still need to broadcastFile for SAF for two reasons:
-	    		    	1. To call storageUtils.announceUri() to broadcast NEW_PICTURE etc.
-	    		           Whilst in theory we could do this directly, it seems external apps that use such broadcasts typically
-	    		           won't know what to do with a SAF based Uri (e.g, Owncloud crashes!) so better to broadcast the Uri
-	    		           corresponding to the real file, if it exists.
-	    		        2. Whilst the new file seems to be known by external apps such as Gallery without having to call media
-	    		           scanner, I've had reports this doesn't happen when saving to external SD cards. So better to explicitly
-	    		           scan.
-	    		    */
-		    	    File real_file = storageUtils.getFileFromDocumentUriSAF(saveUri, false);
+            if( saveUri != null ) {
+				start_time = SaveLatencyRecorder.now();
+            	copyFileToUri(main_activity, saveUri, picFile);
+				latency_recorder.recordSince(SaveLatencyRecorder.Stage.WRITE, start_time);
+    		    output.success = true;
+    		    /* We still need to broadcastFile for SAF for two reasons:
+    		    	1. To call storageUtils.announceUri() to broadcast NEW_PICTURE etc.
+    		           Whilst in theory we could do this directly, it seems external apps that use such broadcasts typically
+    		           won't know what to do with a SAF based Uri (e.g, Owncloud crashes!) so better to broadcast the Uri
+    		           corresponding to the real file, if it exists.
+    		        2. Whilst the new file seems to be known by external apps such as Gallery without having to call media
+    		           scanner, I've had reports this doesn't happen when saving to external SD cards. So better to explicitly
+    		           scan.
+    		    */
+	    	    File real_file = storageUtils.getFileFromDocumentUriSAF(saveUri, false);
+				if( MyDebug.LOG )
+					Log.d(TAG, "real_file: " + real_file);
+                if( real_file != null ) {
+					if( MyDebug.LOG )
+						Log.d(TAG, "broadcast file");
+					start_time = SaveLatencyRecorder.now();
+	            	storageUtils.broadcastFile(real_file, true, false, true);
+					latency_recorder.recordSince(SaveLatencyRecorder.Stage.MEDIA_SCAN, start_time);
+	            	main_activity.test_last_saved_image = real_file.getAbsolutePath();
+                }
+                else if( !request.image_capture_intent ) {
 					if( MyDebug.LOG )
-						Log.d(TAG, "real_file: " + real_file);
-                    if( real_file != null ) {
-    					if( MyDebug.LOG )
-    						Log.d(TAG, "broadcast file");
-    	            	storageUtils.broadcastFile(real_file, true, false, true);
-    	            	main_activity.test_last_saved_image = real_file.getAbsolutePath();
-                    }
-                    else if( !request.image_capture_intent ) {
-    					if( MyDebug.LOG )
-    						Log.d(TAG, "announce SAF uri");
-                    	// announce the SAF Uri
-                    	// (shouldn't do this for a capture intent - e.g., causes crash when calling from Google Keep)
-    	    		    storageUtils.announceUri(saveUri, true, false);
-                    }
-	            }
-	        }
+						Log.d(TAG, "announce SAF uri");
+                	// announce the SAF Uri
+                	// (shouldn't do this for a capture intent - e.g., causes crash when calling from Google Keep)
+	    		    storageUtils.announceUri(saveUri, true, false);
+                }
+            }
 		}
         catch(FileNotFoundException e) {
     		if( MyDebug.LOG )
@@ -1886,24 +3658,35 @@ public class ImageSaver extends Thread {
             e.printStackTrace();
             main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
         }
+	}
 
-		if( exifTempFile != null && !exifTempFile.delete() ) {
-			if( MyDebug.LOG )
-				Log.e(TAG, "failed to delete temp " + exifTempFile.getAbsolutePath());
-		}
+	/** Final stage of saveSingleImageNow(): records the saved image, updates the thumbnail, and frees the
+	 *  bitmap and temporary files.
+	 */
+	private void finishSingleImageOutput(final SingleImageOutput output) {
+		final Request request = output.request;
+		final JpegBuffer data = output.data;
+		final Bitmap bitmap = output.bitmap;
+		final File picFile = output.picFile;
+		final Uri saveUri = output.saveUri;
+		final boolean success = output.success;
+		final long time_s = output.time_s;
+		final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
+		StorageUtils storageUtils = main_activity.getStorageUtils();
 
-		if( raw_only ) {
+		if( output.raw_only ) {
         	// no saved image to record
 		}
         else if( success && saveUri == null ) {
-        	applicationInterface.addLastImage(picFile, share_image);
+        	applicationInterface.addLastImage(picFile, output.share_image);
         }
         else if( success && storageUtils.isUsingSAF() ){
-        	applicationInterface.addLastImageSAF(saveUri, share_image);
+        	applicationInterface.addLastImageSAF(saveUri, output.share_image);
         }
 
+		Bitmap thumbnail = null;
 		// I have received crashes where camera_controller was null - could perhaps happen if this thread was running just as the camera is closing?
-        if( success && main_activity.getPreview().getCameraController() != null && update_thumbnail ) {
+        if( success && main_activity.getPreview().getCameraController() != null && output.update_thumbnail ) {
         	// update thumbnail - this should be done after restarting preview, so that the preview is started asap
         	CameraController.Size size = main_activity.getPreview().getCameraController().getPictureSize();
     		int ratio = (int) Math.ceil((double) size.width / main_activity.getPreview().getView().getWidth());
@@ -1915,7 +3698,6 @@ public class ImageSaver extends Thread {
     			Log.d(TAG, "    ratio        : " + ratio);
     			Log.d(TAG, "    sample_size  : " + sample_size);
     		}
-    		Bitmap thumbnail;
 			if( bitmap == null ) {
 				BitmapFactory.Options options = new BitmapFactory.Options();
 				options.inMutable = false;
@@ -1924,7 +3706,7 @@ public class ImageSaver extends Thread {
 					options.inPurgeable = true;
 				}
 				options.inSampleSize = sample_size;
-    			thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    			thumbnail = BitmapFactory.decodeByteArray(data.getArray(), 0, data.getLength(), options);
 				if( MyDebug.LOG ) {
 					Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
 					Log.d(TAG, "thumbnail height: " + thumbnail.getHeight());
@@ -1932,7 +3714,7 @@ public class ImageSaver extends Thread {
 				// now get the rotation from the Exif data
 				if( MyDebug.LOG )
 					Log.d(TAG, "rotate thumbnail for exif tags?");
-				thumbnail = rotateForExif(thumbnail, data, picFile);
+				thumbnail = rotateForExif(thumbnail, data);
 			}
 			else {
     			int width = bitmap.getWidth();
@@ -1971,7 +3753,8 @@ public class ImageSaver extends Thread {
 	    		final Bitmap thumbnail_f = thumbnail;
 		    	main_activity.runOnUiThread(new Runnable() {
 					public void run() {
-						applicationInterface.updateThumbnail(thumbnail_f, false);
+						// if we've already shown a preview of this image, don't repeat the thumbnail animation
+						applicationInterface.updateThumbnail(thumbnail_f, false, !request.thumbnail_preview_shown);
 					}
 				});
         		if( MyDebug.LOG ) {
@@ -1980,8 +3763,9 @@ public class ImageSaver extends Thread {
 			}
         }
 
-        if( bitmap != null ) {
-		    bitmap.recycle();
+        if( bitmap != null && bitmap != thumbnail ) {
+        	// n.b., if createBitmap() didn't make a copy for the thumbnail, the bitmap is still in use by the thumbnail
+		    decode_pool.release(bitmap);
         }
 
         if( picFile != null && saveUri != null ) {
@@ -1992,6 +3776,14 @@ public class ImageSaver extends Thread {
         			Log.e(TAG, "failed to delete temp picFile: " + picFile);
         	}
         }
+
+		if( success && request.queue_time != 0 ) {
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.TOTAL, request.queue_time);
+		}
+		if( !success ) {
+			request.output_failed = true;
+		}
+		data.release();
         
         System.gc();
         
@@ -2000,20 +3792,22 @@ public class ImageSaver extends Thread {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
 		}
-        return success;
 	}
 
-	/** As setExifFromFile, but can read the Exif tags directly from the jpeg data rather than a file.
+	/** Used to transfer exif tags with ExifInterface, if we had to convert the jpeg info to a bitmap (for
+	 *  post-processing such as auto-stabilise or photo stamp), and the tags couldn't be transferred by
+	 *  getExifSegment(). Also then applies the Exif tags according to the preferences in the request.
+	 *  See setExifFromTempFile() for devices before Android 7.
 	 */
     @RequiresApi(api = Build.VERSION_CODES.N)
-    private void setExifFromData(final Request request, byte [] data, File to_file) throws IOException {
+    private void setExifFromData(final Request request, JpegBuffer data, File to_file) throws IOException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "setExifFromData");
             Log.d(TAG, "to_file: " + to_file);
         }
         InputStream inputStream = null;
         try {
-			inputStream = new ByteArrayInputStream(data);
+			inputStream = data.asInputStream();
 			ExifInterface exif = new ExifInterface(inputStream);
 			ExifInterface exif_new = new ExifInterface(to_file.getAbsolutePath());
 			setExif(request, exif, exif_new);
@@ -2025,13 +3819,31 @@ public class ImageSaver extends Thread {
 		}
     }
 
-	/** Used to transfer exif tags, if we had to convert the jpeg info to a bitmap (for post-processing such as
-	 *  auto-stabilise or photo stamp). Also then applies the Exif tags according to the preferences in the request.
-	 *  Note that we use several ExifInterface tags that are now deprecated in API level 23 and 24. These are replaced with new tags that have
-	 *  the same string value (e.g., TAG_APERTURE replaced with TAG_F_NUMBER, but both have value "FNumber"). We use the deprecated versions
-	 *  to avoid complicating the code (we'd still have to read the deprecated values for older devices).
+	/** As setExifFromData(), but for devices before Android 7, where ExifInterface can only read the
+	 *  tags from a file: so the jpeg data is written to a temporary file first.
 	 */
-	@SuppressWarnings("deprecation")
+	private void setExifFromTempFile(final Request request, JpegBuffer data, File to_file) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "write temp file to record EXIF data");
+		File exifTempFile = File.createTempFile("opencamera_exif", "");
+		try {
+			OutputStream tempOutputStream = new FileOutputStream(exifTempFile);
+			try {
+				data.writeTo(tempOutputStream);
+			}
+			finally {
+				tempOutputStream.close();
+			}
+			setExifFromFile(request, exifTempFile, to_file);
+		}
+		finally {
+			if( !exifTempFile.delete() ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to delete temp " + exifTempFile.getAbsolutePath());
+			}
+		}
+	}
+
 	private void setExifFromFile(final Request request, File from_file, File to_file) throws IOException {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "setExifFromFile");
@@ -2343,7 +4155,7 @@ public class ImageSaver extends Thread {
 			exif_new.saveAttributes();
 	}
 
-	/** May be run in saver thread or picture callback thread (depending on whether running in background).
+	/** May be run on raw_executor or picture callback thread (depending on whether running in background).
 	 */
 	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
 	private boolean saveImageNowRaw(Request request) {
@@ -2385,11 +4197,14 @@ public class ImageSaver extends Thread {
     		else {
     		    output = main_activity.getContentResolver().openOutputStream(saveUri);
     		}
+			output = new BufferedOutputStream(output, raw_buffer_size_c);
+			long start_time = SaveLatencyRecorder.now();
             raw_image.writeImage(output);
 			raw_image.close();
 			raw_image = null;
     		output.close();
     		output = null;
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.WRITE, start_time);
 			success = true;
 
     		/*Location location = null;
@@ -2414,6 +4229,7 @@ public class ImageSaver extends Thread {
             	applicationInterface.addLastImageSAF(saveUri, raw_only);
             }
 
+			start_time = SaveLatencyRecorder.now();
     		if( saveUri == null ) {
         		//Uri media_uri = storageUtils.broadcastFileRaw(picFile, current_date, location);
     		    //storageUtils.announceUri(media_uri, true, false);    			
@@ -2436,6 +4252,10 @@ public class ImageSaver extends Thread {
 	    		    storageUtils.announceUri(saveUri, true, false);
                 }
             }
+			latency_recorder.recordSince(SaveLatencyRecorder.Stage.MEDIA_SCAN, start_time);
+			if( request.queue_time != 0 ) {
+				latency_recorder.recordSince(SaveLatencyRecorder.Stage.TOTAL, request.queue_time);
+			}
         }
         catch(FileNotFoundException e) {
     		if( MyDebug.LOG )
@@ -2472,104 +4292,106 @@ public class ImageSaver extends Thread {
         return success;
 	}
 
-	/** Rotates the supplied bitmap according to the orientation tag stored in the exif data. On
-	 *  Android 7 onwards, we use the jpeg data; on earlier versions the supplied exifTimeFile is
-	 *  used. If no rotation is required, the input bitmap is returned.
-	 * @param data Jpeg data containing the Exif information to use.
-	 * @param exifTempFile Ignored on Android 7+. If this is null on older versions, the bitmap is
-	 *                     returned without rotation.
+	/** Returns the orientation tag stored in the exif data, or ExifInterface.ORIENTATION_UNDEFINED if
+	 *  not present. The tags are read directly from the jpeg data with ExifRewriter; if that fails, on
+	 *  Android 7 onwards we fall back to ExifInterface.
 	 */
-    private Bitmap rotateForExif(Bitmap bitmap, byte [] data, File exifTempFile) {
-		if( MyDebug.LOG )
-			Log.d(TAG, "rotateForExif");
-		InputStream inputStream = null;
+	private int getExifOrientation(JpegBuffer data) {
 		try {
-			ExifInterface exif;
-
-			if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "Android 7: use data stream to read exif tags");
-				inputStream = new ByteArrayInputStream(data);
-				exif = new ExifInterface(inputStream);
+			return ExifRewriter.parse(data.getArray(), data.getLength()).getOrientation();
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to read exif orientation from data: " + e.getMessage());
+			e.printStackTrace();
+		}
+		if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "Android 7: use data stream to read exif tags");
+			InputStream inputStream = null;
+			try {
+				inputStream = data.asInputStream();
+				ExifInterface exif = new ExifInterface(inputStream);
+				return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
 			}
-			else {
+			catch(IOException exception) {
 				if( MyDebug.LOG )
-					Log.d(TAG, "pre-Android 7: use file to read exif tags: " + exifTempFile);
-				if( exifTempFile != null ) {
-					exif = new ExifInterface(exifTempFile.getAbsolutePath());
-				}
-				else {
-					if( MyDebug.LOG )
-						Log.d(TAG, "but no file available to read exif tags from");
-					return bitmap;
-				}
-			}
-
-			int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "    exif orientation string: " + exif_orientation_s);
-    		boolean needs_tf = false;
-			int exif_orientation = 0;
-			// from http://jpegclub.org/exif_orientation.html
-			// and http://stackoverflow.com/questions/20478765/how-to-get-the-correct-orientation-of-the-image-selected-from-the-default-image
-			switch (exif_orientation_s) {
-				case ExifInterface.ORIENTATION_UNDEFINED:
-				case ExifInterface.ORIENTATION_NORMAL:
-					// leave unchanged
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_180:
-					needs_tf = true;
-					exif_orientation = 180;
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_90:
-					needs_tf = true;
-					exif_orientation = 90;
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_270:
-					needs_tf = true;
-					exif_orientation = 270;
-					break;
-				default:
-					// just leave unchanged for now
-					if (MyDebug.LOG)
-						Log.e(TAG, "    unsupported exif orientation: " + exif_orientation_s);
-					break;
+					Log.e(TAG, "exif orientation ioexception");
+				exception.printStackTrace();
 			}
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "    exif orientation: " + exif_orientation);
-
-			if( needs_tf ) {
+			catch(NoClassDefFoundError exception) {
+				// have had Google Play crashes from new ExifInterface() for Galaxy Ace4 (vivalto3g), Galaxy S Duos3 (vivalto3gvn)
 				if( MyDebug.LOG )
-					Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
-				Matrix m = new Matrix();
-				m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
-				Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0,bitmap.getWidth(), bitmap.getHeight(), m, true);
-				if( rotated_bitmap != bitmap ) {
-					bitmap.recycle();
-					bitmap = rotated_bitmap;
+					Log.e(TAG, "exif orientation NoClassDefFoundError");
+				exception.printStackTrace();
+			}
+			finally {
+				if( inputStream != null ) {
+					try {
+						inputStream.close();
+					}
+					catch(IOException e) {
+						e.printStackTrace();
+					}
 				}
 			}
 		}
-		catch(IOException exception) {
-			if( MyDebug.LOG )
-				Log.e(TAG, "exif orientation ioexception");
-			exception.printStackTrace();
+		return ExifInterface.ORIENTATION_UNDEFINED;
+	}
+
+	/** Returns the clockwise rotation in degrees (0, 90, 180 or 270) needed for the orientation tag
+	 *  stored in the exif data.
+	 * @param data Jpeg data containing the Exif information to use.
+	 */
+	private int getExifRotation(JpegBuffer data) {
+		int exif_orientation_s = getExifOrientation(data);
+		if( MyDebug.LOG )
+			Log.d(TAG, "    exif orientation string: " + exif_orientation_s);
+		int exif_orientation = 0;
+		// from http://jpegclub.org/exif_orientation.html
+		// and http://stackoverflow.com/questions/20478765/how-to-get-the-correct-orientation-of-the-image-selected-from-the-default-image
+		switch (exif_orientation_s) {
+			case ExifInterface.ORIENTATION_UNDEFINED:
+			case ExifInterface.ORIENTATION_NORMAL:
+				// leave unchanged
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_180:
+				exif_orientation = 180;
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_90:
+				exif_orientation = 90;
+				break;
+			case ExifInterface.ORIENTATION_ROTATE_270:
+				exif_orientation = 270;
+				break;
+			default:
+				// just leave unchanged for now
+				if (MyDebug.LOG)
+					Log.e(TAG, "    unsupported exif orientation: " + exif_orientation_s);
+				break;
 		}
-		catch(NoClassDefFoundError exception) {
-			// have had Google Play crashes from new ExifInterface() for Galaxy Ace4 (vivalto3g), Galaxy S Duos3 (vivalto3gvn)
+		if( MyDebug.LOG )
+			Log.d(TAG, "    exif orientation: " + exif_orientation);
+		return exif_orientation;
+	}
+
+	/** Rotates the supplied bitmap according to the orientation tag stored in the exif data. If no
+	 *  rotation is required, the input bitmap is returned.
+	 * @param data Jpeg data containing the Exif information to use.
+	 */
+    private Bitmap rotateForExif(Bitmap bitmap, JpegBuffer data) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "rotateForExif");
+		int exif_orientation = getExifRotation(data);
+		if( exif_orientation != 0 ) {
 			if( MyDebug.LOG )
-				Log.e(TAG, "exif orientation NoClassDefFoundError");
-			exception.printStackTrace();
-		}
-		finally {
-			if( inputStream != null ) {
-				try {
-					inputStream.close();
-				}
-				catch(IOException e) {
-					e.printStackTrace();
-				}
-				inputStream = null;
+				Log.d(TAG, "    need to rotate bitmap due to exif orientation tag");
+			Matrix m = new Matrix();
+			m.setRotate(exif_orientation, bitmap.getWidth() * 0.5f, bitmap.getHeight() * 0.5f);
+			Bitmap rotated_bitmap = Bitmap.createBitmap(bitmap, 0, 0,bitmap.getWidth(), bitmap.getHeight(), m, true);
+			if( rotated_bitmap != bitmap ) {
+				bitmap.recycle();
+				bitmap = rotated_bitmap;
 			}
 		}
 		return bitmap;
@@ -2616,6 +4438,115 @@ public class ImageSaver extends Thread {
 		}
 	}
 
+	/** Whether any of the exif tags need to be modified according to the preferences in request, when
+	 *  saving the jpeg data unchanged.
+	 */
+	private boolean needExifUpdate(Request request) {
+		if( request.store_geo_direction )
+			return true;
+		if( request.custom_tag_artist != null && request.custom_tag_artist.length() > 0 )
+			return true;
+		if( request.custom_tag_copyright != null && request.custom_tag_copyright.length() > 0 )
+			return true;
+		return needGPSTimestampHack(request.type == Request.Type.JPEG, request.using_camera2, request.store_location);
+	}
+
+	/** Returns the APP1/Exif segment to write with the saved image, with the tags read from the jpeg
+	 *  data and modified according to the preferences in request. This replaces reading back the saved
+	 *  file with ExifInterface, see writeSingleImageOutput().
+	 * @param bitmap If non-null, the bitmap being saved instead of the jpeg data, so the tags are
+	 *               transferred from the jpeg data, less those that no longer apply to the bitmap.
+	 * @return The segment, or null if the jpeg data is being saved and its tags don't need to be
+	 *         modified.
+	 * @throws IOException If the exif data couldn't be read or written.
+	 */
+	private byte [] getExifSegment(Request request, JpegBuffer data, Bitmap bitmap) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "getExifSegment");
+		if( bitmap == null && !needExifUpdate(request) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no exif data to update");
+			return null;
+		}
+		ExifRewriter exif = ExifRewriter.parse(data.getArray(), data.getLength());
+		if( bitmap != null ) {
+			// the bitmap has already been rotated for the orientation, and may have a different resolution (e.g., due
+			// to auto-stabilise); also the thumbnail no longer matches the image
+			exif.removeAttribute(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ORIENTATION);
+			exif.removeAttribute(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_IMAGE_WIDTH);
+			exif.removeAttribute(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_IMAGE_LENGTH);
+			if( exif.hasAttribute(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION) )
+				exif.setLong(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION, bitmap.getWidth());
+			if( exif.hasAttribute(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_Y_DIMENSION) )
+				exif.setLong(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_Y_DIMENSION, bitmap.getHeight());
+			exif.removeThumbnail();
+			modifyExif(exif, request);
+		}
+		else if( request.store_geo_direction || (request.custom_tag_artist != null && request.custom_tag_artist.length() > 0) || (request.custom_tag_copyright != null && request.custom_tag_copyright.length() > 0) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "add additional exif info");
+			modifyExif(exif, request);
+		}
+		else {
+			if( MyDebug.LOG )
+				Log.d(TAG, "remove GPS timestamp hack");
+			fixGPSTimestamp(exif, request.current_date);
+		}
+		return exif.getApp1Segment();
+	}
+
+	/** As modifyExif(ExifInterface, ...), but for an ExifRewriter.
+	 */
+	private void modifyExif(ExifRewriter exif, Request request) {
+		if( request.store_geo_direction ) {
+			long geo_angle_hundredths = getGeoAngleHundredths(request.geo_direction);
+			exif.setRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION, geo_angle_hundredths, 100);
+			exif.setAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION_REF, "M");
+		}
+		if( request.exposure_time > 0 && !exif.hasAttribute(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_EXPOSURE_TIME) ) {
+			// some devices don't write the exposure time, but we have it from the capture result
+			if( MyDebug.LOG )
+				Log.d(TAG, "write exposure time: " + request.exposure_time);
+			exif.setRational(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_EXPOSURE_TIME, request.exposure_time/1000, 1000000);
+		}
+		String exif_datetime = exif.getAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_DATETIME);
+		if( exif_datetime != null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "write datetime tags: " + exif_datetime);
+			exif.setAscii(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_DATETIME_ORIGINAL, exif_datetime);
+			exif.setAscii(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_DATETIME_DIGITIZED, exif_datetime);
+		}
+		// unlike ExifInterface, not restricted to Android 7+
+		if( request.custom_tag_artist != null && request.custom_tag_artist.length() > 0 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "apply TAG_ARTIST: " + request.custom_tag_artist);
+			exif.setAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ARTIST, request.custom_tag_artist);
+		}
+		if( request.custom_tag_copyright != null && request.custom_tag_copyright.length() > 0 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "apply TAG_COPYRIGHT: " + request.custom_tag_copyright);
+			exif.setAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_COPYRIGHT, request.custom_tag_copyright);
+		}
+		if( needGPSTimestampHack(request.type == Request.Type.JPEG, request.using_camera2, request.store_location) ) {
+			fixGPSTimestamp(exif, request.current_date);
+		}
+	}
+
+	/** As fixGPSTimestamp(ExifInterface, ...), but for an ExifRewriter.
+	 */
+	private void fixGPSTimestamp(ExifRewriter exif, Date current_date) {
+		String datestamp = formatUTC(current_date, "yyyy:MM:dd");
+		String timestamp = formatUTC(current_date, "HH:mm:ss");
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "fixGPSTimestamp");
+			Log.d(TAG, "datestamp: " + datestamp);
+			Log.d(TAG, "timestamp: " + timestamp);
+		}
+		String [] hms = timestamp.split(":");
+		exif.setAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_DATESTAMP, datestamp);
+		exif.setRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_TIMESTAMP, Long.parseLong(hms[0]), 1, Long.parseLong(hms[1]), 1, Long.parseLong(hms[2]), 1);
+	}
+
 	/** Makes various modifications to the exif data, if necessary.
 	 */
     private void modifyExif(ExifInterface exif, boolean is_jpeg, boolean using_camera2, Date current_date, boolean store_location, boolean store_geo_direction, double geo_direction, String custom_tag_artist, String custom_tag_copyright) {
@@ -2629,14 +4560,8 @@ public class ImageSaver extends Thread {
 
 	private void setGPSDirectionExif(ExifInterface exif, boolean store_geo_direction, double geo_direction) {
     	if( store_geo_direction ) {
-			float geo_angle = (float)Math.toDegrees(geo_direction);
-			if( geo_angle < 0.0f ) {
-				geo_angle += 360.0f;
-			}
-			if( MyDebug.LOG )
-				Log.d(TAG, "save geo_angle: " + geo_angle);
 			// see http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/GPS.html
-			String GPSImgDirection_string = Math.round(geo_angle*100) + "/100";
+			String GPSImgDirection_string = getGeoAngleHundredths(geo_direction) + "/100";
 			if( MyDebug.LOG )
 				Log.d(TAG, "GPSImgDirection_string: " + GPSImgDirection_string);
 		   	exif.setAttribute(TAG_GPS_IMG_DIRECTION, GPSImgDirection_string);
@@ -2644,6 +4569,20 @@ public class ImageSaver extends Thread {
     	}
 	}
 
+	/** Returns the geo direction in degrees clockwise from north, in hundredths of a degree, for
+	 *  TAG_GPS_IMG_DIRECTION.
+	 * @param geo_direction The geo direction in radians.
+	 */
+	private static long getGeoAngleHundredths(double geo_direction) {
+		float geo_angle = (float)Math.toDegrees(geo_direction);
+		if( geo_angle < 0.0f ) {
+			geo_angle += 360.0f;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "save geo_angle: " + geo_angle);
+		return Math.round(geo_angle*100);
+	}
+
 	/** Whether custom exif tags need to be applied to the image file.
 	 */
 	private boolean hasCustomExif(String custom_tag_artist, String custom_tag_copyright) {
@@ -2695,13 +4634,8 @@ public class ImageSaver extends Thread {
 		// working , and was simply invalidating it such that Gallery then fell back to looking elsewhere for the datetime?
 		// So now hopefully fixed properly...
 		// Note, this problem also occurs on OnePlus 3T and Gallery ICS, if we don't have this function called
-		SimpleDateFormat date_fmt = new SimpleDateFormat("yyyy:MM:dd", Locale.US);
-		date_fmt.setTimeZone(TimeZone.getTimeZone("UTC")); // needs to be UTC time
-		String datestamp = date_fmt.format(current_date);
-
-		SimpleDateFormat time_fmt = new SimpleDateFormat("HH:mm:ss", Locale.US);
-		time_fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-		String timestamp = time_fmt.format(current_date);
+		String datestamp = formatUTC(current_date, "yyyy:MM:dd");
+		String timestamp = formatUTC(current_date, "HH:mm:ss");
 
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "datestamp: " + datestamp);
@@ -2714,6 +4648,14 @@ public class ImageSaver extends Thread {
 			Log.d(TAG, "fixGPSTimestamp exit");
 	}
 	
+	/** Formats the date in UTC time (as needed for the GPS date and time stamps).
+	 */
+	private static String formatUTC(Date date, String pattern) {
+		SimpleDateFormat fmt = new SimpleDateFormat(pattern, Locale.US);
+		fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return fmt.format(date);
+	}
+
 	private boolean needGPSTimestampHack(boolean is_jpeg, boolean using_camera2, boolean store_location) {
 		if( is_jpeg && using_camera2 ) {
     		return store_location;
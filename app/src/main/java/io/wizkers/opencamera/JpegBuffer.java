@@ -0,0 +1,166 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Holds the encoded data of a JPEG, as it's passed from the camera to the ImageSaver. The data may
+ *  be held in an array from a JpegBufferPool, in which case the array may be longer than the JPEG
+ *  (see getLength()), and is returned to the pool once the buffer is no longer needed.
+ *  Buffers are reference counted: a new buffer has a count of 1, anything that needs to keep the
+ *  data beyond the call it was passed in should call retain(), and every owner should call release()
+ *  when done with it. A buffer that isn't released is simply garbage collected, so this only matters
+ *  for performance; but the data mustn't be accessed after the final release().
+ *  Existing code that works with byte arrays can use wrap() and toByteArray(), which only avoid
+ *  copying the data for buffers created with wrap() (e.g., BasicApplicationInterface uses these to
+ *  pass byte arrays to subclasses that were written for them).
+ */
+public class JpegBuffer {
+	private static final String TAG = "JpegBuffer";
+
+	private final JpegBufferPool pool; // the pool the array is returned to, or null if not pooled
+	private final byte [] array;
+	private final int length;
+	private final AtomicInteger ref_count = new AtomicInteger(1);
+	private volatile long timestamp; // sensor timestamp of the frame, in nanoseconds, or 0 if not known
+
+	JpegBuffer(JpegBufferPool pool, byte [] array, int length) {
+		if( length < 0 || length > array.length ) {
+			Log.e(TAG, "invalid length " + length + " for array of length " + array.length);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.pool = pool;
+		this.array = array;
+		this.length = length;
+	}
+
+	/** Returns a buffer holding the supplied data, which isn't copied or pooled.
+	 */
+	public static JpegBuffer wrap(byte [] data) {
+		return new JpegBuffer(null, data, data.length);
+	}
+
+	/** Returns a list of buffers holding the supplied data, see wrap().
+	 */
+	public static List<JpegBuffer> wrapAll(List<byte []> data) {
+		List<JpegBuffer> buffers = new ArrayList<>();
+		for(byte [] image : data) {
+			buffers.add(wrap(image));
+		}
+		return buffers;
+	}
+
+	/** Returns the data of each buffer as a byte array, see toByteArray().
+	 */
+	public static List<byte []> toByteArrays(List<JpegBuffer> buffers) {
+		List<byte []> data = new ArrayList<>();
+		for(JpegBuffer buffer : buffers) {
+			data.add(buffer.toByteArray());
+		}
+		return data;
+	}
+
+	/** Calls release() on each of the buffers.
+	 */
+	public static void releaseAll(List<JpegBuffer> buffers) {
+		for(JpegBuffer buffer : buffers) {
+			buffer.release();
+		}
+	}
+
+	/** Returns the array holding the data. Only the first getLength() bytes are valid.
+	 */
+	public byte [] getArray() {
+		return array;
+	}
+
+	/** Returns the length of the JPEG in bytes.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/** Returns the sensor timestamp of the frame the JPEG was captured from (see
+	 *  CameraController.getCaptureResult()), or 0 if not known.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public boolean isPooled() {
+		return pool != null;
+	}
+
+	/** Returns the data as a byte array of the exact length. For buffers that were created with
+	 *  wrap(), this is the original array; otherwise the data is copied, as a pooled array is reused
+	 *  once the buffer is released.
+	 */
+	public byte [] toByteArray() {
+		if( pool == null && array.length == length ) {
+			return array;
+		}
+		byte [] data = new byte[length];
+		System.arraycopy(array, 0, data, 0, length);
+		return data;
+	}
+
+	/** Returns a read-only ByteBuffer viewing the data, without copying.
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(array, 0, length).slice().asReadOnlyBuffer();
+	}
+
+	/** Returns a stream for reading the data, without copying.
+	 */
+	public InputStream asInputStream() {
+		return new ByteArrayInputStream(array, 0, length);
+	}
+
+	public void writeTo(OutputStream output) throws IOException {
+		output.write(array, 0, length);
+	}
+
+	/** Increments the reference count, for an additional owner of the buffer.
+	 * @return This buffer.
+	 */
+	public JpegBuffer retain() {
+		int count = ref_count.incrementAndGet();
+		if( count <= 1 ) {
+			Log.e(TAG, "retained a buffer that had already been released");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		return this;
+	}
+
+	/** Decrements the reference count; once no owners remain, the array is returned to the pool.
+	 *  The caller should not access the data afterwards.
+	 */
+	public void release() {
+		int count = ref_count.decrementAndGet();
+		if( count < 0 ) {
+			Log.e(TAG, "released a buffer too many times");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		if( count == 0 && pool != null ) {
+			pool.recycle(array);
+		}
+	}
+
+	int getRefCount() {
+		return ref_count.get();
+	}
+}
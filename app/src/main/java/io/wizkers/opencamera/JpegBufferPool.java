@@ -0,0 +1,146 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/** A pool of byte arrays for holding JPEGs as they're received from the camera, so that taking
+ *  photos (especially bursts) doesn't repeatedly allocate and garbage collect arrays of several
+ *  megabytes. Arrays are allocated in size classes (see getClassSize()), so that an array released
+ *  for one photo can be reused for the next photo even though its JPEG will be a slightly different
+ *  size.
+ *  Arrays are returned to the pool by JpegBuffer.release(). Released arrays are kept whilst the
+ *  bytes retained is below the limit, with the least recently released arrays being discarded
+ *  first. An array is only reused for a JPEG that needs at most max_slack_c more than its size
+ *  class.
+ *  Counts of pool hits and misses, and the bytes retained, are kept as metrics.
+ */
+public class JpegBufferPool {
+	private static final String TAG = "JpegBufferPool";
+
+	private static final int min_class_size_c = 64*1024;
+	private static final int n_classes_per_octave_c = 8; // so arrays are at most 12.5% larger than needed
+	private static final float max_slack_c = 1.25f; // the largest array (relative to the size class) that is reused
+
+	private final long max_bytes;
+	private final LinkedList<byte []> pool = new LinkedList<>(); // in order of release, least recent first; access must be synchronized on this
+	private long retained_bytes;
+
+	// metrics; access must be synchronized on this
+	private int n_hits;
+	private int n_misses;
+
+	/**
+	 * @param max_bytes The maximum number of bytes of released arrays to retain for reuse.
+	 */
+	public JpegBufferPool(long max_bytes) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "max_bytes: " + max_bytes);
+		this.max_bytes = max_bytes;
+	}
+
+	/** Returns the size of the arrays allocated for JPEGs of the supplied length.
+	 */
+	public static int getClassSize(int length) {
+		if( length <= min_class_size_c ) {
+			return min_class_size_c;
+		}
+		int step = Integer.highestOneBit(length-1)/n_classes_per_octave_c;
+		return ((length + step - 1)/step)*step;
+	}
+
+	/** Returns a buffer of the supplied length, reusing a released array if possible. The contents of
+	 *  the array are undefined, so the caller should fill it (see JpegBuffer.getArray()).
+	 */
+	public JpegBuffer acquire(int length) {
+		int class_size = getClassSize(length);
+		byte [] array = acquireArray(class_size);
+		if( array == null ) {
+			array = new byte[class_size];
+		}
+		return new JpegBuffer(this, array, length);
+	}
+
+	/** Returns a buffer holding a copy of the first length bytes of data.
+	 */
+	public JpegBuffer acquireCopy(byte [] data, int length) {
+		JpegBuffer buffer = acquire(length);
+		System.arraycopy(data, 0, buffer.getArray(), 0, length);
+		return buffer;
+	}
+
+	/** Removes and returns the smallest released array that can hold class_size bytes without being
+	 *  too large, or returns null if there isn't one.
+	 */
+	private synchronized byte [] acquireArray(int class_size) {
+		long max_size = (long)(class_size * max_slack_c);
+		byte [] best = null;
+		for(byte [] array : pool) {
+			if( array.length >= class_size && array.length <= max_size && (best == null || array.length < best.length) ) {
+				best = array;
+			}
+		}
+		if( best == null ) {
+			n_misses++;
+			return null;
+		}
+		for(Iterator<byte []> iter = pool.iterator(); iter.hasNext(); ) {
+			// n.b., remove by identity rather than LinkedList.remove(Object), which uses equals()
+			if( iter.next() == best ) {
+				iter.remove();
+				break;
+			}
+		}
+		retained_bytes -= best.length;
+		n_hits++;
+		return best;
+	}
+
+	/** Called by JpegBuffer.release() to return an array that's no longer needed.
+	 */
+	synchronized void recycle(byte [] array) {
+		if( array.length > max_bytes ) {
+			return;
+		}
+		pool.addLast(array);
+		retained_bytes += array.length;
+		while( retained_bytes > max_bytes ) {
+			byte [] eldest = pool.removeFirst();
+			retained_bytes -= eldest.length;
+		}
+	}
+
+	/** Discards all of the released arrays.
+	 */
+	public synchronized void clear() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "clear: " + pool.size() + " arrays, " + retained_bytes + " bytes");
+		pool.clear();
+		retained_bytes = 0;
+	}
+
+	public synchronized long getRetainedBytes() {
+		return retained_bytes;
+	}
+
+	public synchronized int getNRetained() {
+		return pool.size();
+	}
+
+	public synchronized int getNHits() {
+		return n_hits;
+	}
+
+	public synchronized int getNMisses() {
+		return n_misses;
+	}
+
+	/** Returns the proportion of buffers that reused a released array, or 0 if no buffers have been
+	 *  acquired.
+	 */
+	public synchronized float getHitRate() {
+		int n = n_hits + n_misses;
+		return n == 0 ? 0.0f : n_hits / (float)n;
+	}
+}
@@ -0,0 +1,1148 @@
+package io.wizkers.opencamera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Rotates, flips or transposes a jpeg losslessly, without decoding it to pixels: the entropy coded
+ *  data is decoded only as far as the quantised DCT coefficients, the blocks are rearranged and the
+ *  coefficients within each block transposed or negated as needed, and the result is entropy coded
+ *  again (with Huffman tables optimised for the new data). This is similar to jpegtran with the
+ *  -perfect and -optimize options.
+ *  Only baseline (and extended sequential 8-bit) Huffman coded jpegs with a single scan are
+ *  supported. A transform is also only possible if it doesn't move the partial MCUs at the right or
+ *  bottom edge of the image to the left or top edge, i.e., the image dimension that ends up flipped
+ *  must be a multiple of the MCU size.
+ *  If the jpeg has restart intervals, these are decoded in parallel on a ForkJoinPool, and the
+ *  output is written with a restart interval of one MCU row, so that it can be encoded in parallel
+ *  too.
+ */
+public class JpegLosslessTransform {
+	private static final String TAG = "JpegLosslessTransform";
+
+	/** The 8 transforms of the image that can be made of rotations and flips. The transforms are
+	 *  applied as an optional transpose, followed by optional horizontal and vertical flips.
+	 */
+	public enum Transform {
+		NONE(false, false, false),
+		FLIP_HORIZONTAL(false, true, false),
+		FLIP_VERTICAL(false, false, true),
+		ROTATE_180(false, true, true),
+		TRANSPOSE(true, false, false),
+		ROTATE_90(true, true, false), // clockwise
+		ROTATE_270(true, false, true), // clockwise
+		TRANSVERSE(true, true, true);
+
+		final boolean transpose;
+		final boolean flip_h;
+		final boolean flip_v;
+
+		Transform(boolean transpose, boolean flip_h, boolean flip_v) {
+			this.transpose = transpose;
+			this.flip_h = flip_h;
+			this.flip_v = flip_v;
+		}
+
+		static Transform get(boolean transpose, boolean flip_h, boolean flip_v) {
+			for(Transform transform : values()) {
+				if( transform.transpose == transpose && transform.flip_h == flip_h && transform.flip_v == flip_v )
+					return transform;
+			}
+			// shouldn't happen, as all combinations are covered
+			throw new RuntimeException();
+		}
+
+		/** Returns the transform that displays an image with the supplied Exif orientation tag
+		 *  correctly. Unknown or undefined orientations return NONE.
+		 */
+		public static Transform fromExifOrientation(int orientation) {
+			switch( orientation ) {
+				case 2:
+					return FLIP_HORIZONTAL;
+				case 3:
+					return ROTATE_180;
+				case 4:
+					return FLIP_VERTICAL;
+				case 5:
+					return TRANSPOSE;
+				case 6:
+					return ROTATE_90;
+				case 7:
+					return TRANSVERSE;
+				case 8:
+					return ROTATE_270;
+				default:
+					return NONE;
+			}
+		}
+
+		/** Returns the transform equivalent to applying this transform, followed by a horizontal
+		 *  flip.
+		 */
+		public Transform thenFlipHorizontal() {
+			return get(transpose, !flip_h, flip_v);
+		}
+
+		/** Whether the transform swaps the width and height of the image.
+		 */
+		public boolean swapsDimensions() {
+			return transpose;
+		}
+	}
+
+	static final int [] zigzag = { // zigzag index to natural index
+		0,  1,  8, 16,  9,  2,  3, 10,
+		17, 24, 32, 25, 18, 11,  4,  5,
+		12, 19, 26, 33, 40, 48, 41, 34,
+		27, 20, 13,  6,  7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36,
+		29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46,
+		53, 60, 61, 54, 47, 55, 62, 63
+	};
+	static final int max_dc_category_c = 11; // for 8-bit baseline jpegs
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param pool The pool to run the processing on. If null, a new pool is created with
+	 *             parallelism equal to the number of available processors.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public JpegLosslessTransform(ForkJoinPool pool) {
+		this.pool = pool != null ? pool : new ForkJoinPool();
+	}
+
+	static class Component {
+		int id;
+		int h, v; // sampling factors
+		int tq; // quantization table
+		int td, ta; // DC and AC Huffman tables, from the scan header
+		int blocks_w, blocks_h; // size of the grid of blocks, padded to a whole number of MCUs
+		short [] coefficients; // quantised coefficients, 64 per block in natural order, blocks in raster order
+		int first_block_row; // the block row stored at the start of coefficients, if only some rows are decoded
+	}
+
+	/** Huffman table for decoding.
+	 */
+	static class DecodeTable {
+		final int [] counts = new int[17]; // number of codes of each length
+		final int [] values;
+		final int [] lookup = new int[256]; // for codes of up to 8 bits: (length << 8) | symbol, indexed by the next 8 bits; or 0
+		final int [] maxcode = new int[17];
+		final int [] mincode = new int[17];
+		final int [] valptr = new int[17];
+
+		DecodeTable(int [] counts, int [] values) throws IOException {
+			System.arraycopy(counts, 0, this.counts, 0, 17);
+			this.values = values;
+			int code = 0;
+			int k = 0;
+			for(int length=1;length<=16;length++) {
+				valptr[length] = k;
+				mincode[length] = code;
+				for(int i=0;i<counts[length];i++) {
+					if( length <= 8 ) {
+						int shift = 8 - length;
+						for(int fill=0;fill<(1<<shift);fill++) {
+							lookup[(code << shift) | fill] = (length << 8) | values[k];
+						}
+					}
+					code++;
+					k++;
+				}
+				if( code > (1 << length) ) {
+					throw new IOException("invalid huffman table");
+				}
+				maxcode[length] = counts[length] > 0 ? code-1 : -1;
+				code <<= 1;
+			}
+		}
+	}
+
+	/** Huffman table for encoding.
+	 */
+	static class EncodeTable {
+		final int [] counts = new int[17];
+		final int [] values;
+		final int [] codes = new int[256];
+		final int [] sizes = new int[256];
+
+		/** Creates a table with the supplied code lengths and symbols, as stored in a DHT segment.
+		 *  Symbols that aren't in the table have a size of 0.
+		 */
+		EncodeTable(int [] counts, int [] values) {
+			System.arraycopy(counts, 0, this.counts, 0, 17);
+			this.values = values;
+			setCodes();
+		}
+
+		/** Creates an optimal table for the supplied symbol frequencies, limited to codes of 16 bits,
+		 *  following jpeg_gen_optimal_table() in libjpeg (see section K.2 of the jpeg standard).
+		 */
+		EncodeTable(long [] frequencies) {
+			long [] freq = new long[257];
+			System.arraycopy(frequencies, 0, freq, 0, 256);
+			freq[256] = 1; // reserve one code point, so that no code is all 1s
+			int [] codesize = new int[257];
+			int [] others = new int[257];
+			for(int i=0;i<257;i++) {
+				others[i] = -1;
+			}
+			for(;;) {
+				// find the two smallest nonzero frequencies, taking the larger symbol in case of ties
+				int c1 = -1;
+				long v = Long.MAX_VALUE;
+				for(int i=0;i<257;i++) {
+					if( freq[i] != 0 && freq[i] <= v ) {
+						v = freq[i];
+						c1 = i;
+					}
+				}
+				int c2 = -1;
+				v = Long.MAX_VALUE;
+				for(int i=0;i<257;i++) {
+					if( freq[i] != 0 && freq[i] <= v && i != c1 ) {
+						v = freq[i];
+						c2 = i;
+					}
+				}
+				if( c2 < 0 )
+					break;
+				freq[c1] += freq[c2];
+				freq[c2] = 0;
+				codesize[c1]++;
+				while( others[c1] >= 0 ) {
+					c1 = others[c1];
+					codesize[c1]++;
+				}
+				others[c1] = c2;
+				codesize[c2]++;
+				while( others[c2] >= 0 ) {
+					c2 = others[c2];
+					codesize[c2]++;
+				}
+			}
+			int [] bits = new int[33];
+			for(int i=0;i<257;i++) {
+				if( codesize[i] > 0 )
+					bits[codesize[i]]++;
+			}
+			// limit code lengths to 16 bits
+			for(int i=32;i>16;i--) {
+				while( bits[i] > 0 ) {
+					int j = i - 2;
+					while( bits[j] == 0 )
+						j--;
+					bits[i] -= 2;
+					bits[i-1]++;
+					bits[j+1] += 2;
+					bits[j]--;
+				}
+			}
+			// remove the reserved code point
+			int i = 16;
+			while( bits[i] == 0 )
+				i--;
+			bits[i]--;
+			System.arraycopy(bits, 0, counts, 0, 17);
+
+			int n_values = 0;
+			for(int length=1;length<=16;length++)
+				n_values += counts[length];
+			values = new int[n_values];
+			int p = 0;
+			for(int length=1;length<=32 && p<n_values;length++) {
+				for(int j=0;j<256 && p<n_values;j++) {
+					if( codesize[j] == length )
+						values[p++] = j;
+				}
+			}
+
+			setCodes();
+		}
+
+		private void setCodes() {
+			int code = 0;
+			int k = 0;
+			for(int length=1;length<=16;length++) {
+				for(int j=0;j<counts[length];j++) {
+					codes[values[k]] = code;
+					sizes[values[k]] = length;
+					code++;
+					k++;
+				}
+				code <<= 1;
+			}
+		}
+	}
+
+	/** Reads bits from an entropy coded segment, removing stuffed zero bytes.
+	 */
+	static class BitReader {
+		private final byte [] data;
+		private int pos;
+		private final int end;
+		private int bit_buffer;
+		private int n_bits;
+
+		BitReader(byte [] data, int start, int end) {
+			this.data = data;
+			this.pos = start;
+			this.end = end;
+		}
+
+		/** Ensures at least 25 bits are available. Past the end of the segment, zero bits are read.
+		 */
+		private void fill() {
+			while( n_bits <= 24 ) {
+				int b = 0;
+				if( pos < end ) {
+					b = data[pos++] & 0xff;
+					if( b == 0xFF ) {
+						pos++; // skip the stuffed zero byte
+					}
+				}
+				bit_buffer = (bit_buffer << 8) | b;
+				n_bits += 8;
+			}
+		}
+
+		int readBits(int n) {
+			if( n == 0 )
+				return 0;
+			fill();
+			n_bits -= n;
+			return (bit_buffer >>> n_bits) & ((1 << n) - 1);
+		}
+
+		int decode(DecodeTable table) throws IOException {
+			fill();
+			int entry = table.lookup[(bit_buffer >>> (n_bits - 8)) & 0xff];
+			if( entry != 0 ) {
+				n_bits -= entry >> 8;
+				return entry & 0xff;
+			}
+			for(int length=9;length<=16;length++) {
+				int code = (bit_buffer >>> (n_bits - length)) & ((1 << length) - 1);
+				if( code <= table.maxcode[length] ) {
+					n_bits -= length;
+					return table.values[table.valptr[length] + code - table.mincode[length]];
+				}
+			}
+			throw new IOException("invalid huffman code");
+		}
+
+		/** Reads an extra bits value of the supplied category, and returns the signed value.
+		 */
+		int receiveExtend(int s) {
+			int value = readBits(s);
+			if( s > 0 && value < (1 << (s-1)) ) {
+				value += (-1 << s) + 1;
+			}
+			return value;
+		}
+	}
+
+	/** Writes bits to an entropy coded segment, stuffing zero bytes after 0xFF.
+	 */
+	static class BitWriter {
+		byte [] buffer;
+		int length;
+		private int bit_buffer;
+		private int n_bits;
+
+		BitWriter(int initial_capacity) {
+			buffer = new byte[Math.max(initial_capacity, 64)];
+		}
+
+		private void put(int b) {
+			if( length == buffer.length ) {
+				byte [] new_buffer = new byte[2*buffer.length];
+				System.arraycopy(buffer, 0, new_buffer, 0, length);
+				buffer = new_buffer;
+			}
+			buffer[length++] = (byte)b;
+		}
+
+		void write(int code, int size) {
+			bit_buffer = (bit_buffer << size) | (code & ((1 << size) - 1));
+			n_bits += size;
+			while( n_bits >= 8 ) {
+				int b = (bit_buffer >>> (n_bits - 8)) & 0xff;
+				put(b);
+				if( b == 0xFF ) {
+					put(0);
+				}
+				n_bits -= 8;
+			}
+		}
+
+		/** Pads the final byte with 1 bits.
+		 */
+		void flush() {
+			if( n_bits > 0 ) {
+				write(0x7F, 8 - n_bits);
+			}
+		}
+	}
+
+	/** The frame being transformed.
+	 */
+	static class Frame {
+		int sof_marker;
+		int width, height;
+		Component [] components;
+		int hmax, vmax;
+		int mcus_x, mcus_y;
+		int restart_interval;
+		final int [][] quant_tables = new int[4][]; // natural order
+		final int [] quant_precision = new int[4];
+		final DecodeTable [] dc_tables = new DecodeTable[4];
+		final DecodeTable [] ac_tables = new DecodeTable[4];
+		final List<byte []> copied_segments = new ArrayList<>(); // APPn and COM segments, including the marker
+		byte [] data;
+		int data_length; // the jpeg is held in the first data_length bytes of data
+		final List<int []> entropy_segments = new ArrayList<>(); // start and end of each restart interval
+	}
+
+	private static int readShort(byte [] data, int pos) {
+		return ((data[pos] & 0xff) << 8) | (data[pos+1] & 0xff);
+	}
+
+	/** Transforms the jpeg.
+	 * @return The transformed jpeg, or null if the jpeg can't be transformed losslessly (because it
+	 *         isn't a supported type of jpeg, or the transform isn't possible for its dimensions).
+	 *         All segments other than those describing the image data (e.g., Exif data) are copied
+	 *         unchanged, so the caller should update any Exif orientation tag and thumbnail.
+	 * @throws IOException If the jpeg is malformed.
+	 */
+	public byte [] transform(byte [] jpeg, Transform transform) throws IOException {
+		return transform(jpeg, jpeg.length, transform);
+	}
+
+	/** As transform(byte [], Transform), for a jpeg held in the first length bytes of the array.
+	 */
+	public byte [] transform(byte [] jpeg, int length, Transform transform) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "transform: " + transform);
+		long time_s = System.currentTimeMillis();
+		Frame frame = parse(jpeg, length);
+		if( frame == null ) {
+			return null;
+		}
+		int out_width = transform.transpose ? frame.height : frame.width;
+		int out_height = transform.transpose ? frame.width : frame.height;
+		int out_hmax = transform.transpose ? frame.vmax : frame.hmax;
+		int out_vmax = transform.transpose ? frame.hmax : frame.vmax;
+		if( (transform.flip_h && out_width % (8*out_hmax) != 0) || (transform.flip_v && out_height % (8*out_vmax) != 0) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "can't transform " + frame.width + "x" + frame.height + " losslessly, not a whole number of MCUs");
+			return null;
+		}
+
+		decode(frame);
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after decoding: " + (System.currentTimeMillis() - time_s));
+		byte [] result = encode(frame, transform);
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after encoding: " + (System.currentTimeMillis() - time_s));
+		return result;
+	}
+
+	/** Parses the segments of the jpeg, up to the end of the scan.
+	 * @return The frame, or null if the jpeg isn't supported.
+	 */
+	static Frame parse(byte [] jpeg, int jpeg_length) throws IOException {
+		if( jpeg_length < 4 || (jpeg[0] & 0xff) != 0xFF || (jpeg[1] & 0xff) != 0xD8 ) {
+			throw new IOException("not a jpeg");
+		}
+		Frame frame = new Frame();
+		frame.data = jpeg;
+		frame.data_length = jpeg_length;
+		int pos = 2;
+		for(;;) {
+			if( pos + 4 > jpeg_length ) {
+				throw new IOException("unexpected end of jpeg");
+			}
+			if( (jpeg[pos] & 0xff) != 0xFF ) {
+				throw new IOException("invalid jpeg marker at " + pos);
+			}
+			int marker = jpeg[pos+1] & 0xff;
+			if( marker == 0xFF ) {
+				// fill byte
+				pos++;
+				continue;
+			}
+			if( marker == 0xD9 ) {
+				throw new IOException("no scan in jpeg");
+			}
+			int length = readShort(jpeg, pos+2);
+			int start = pos + 4;
+			int end = pos + 2 + length;
+			if( length < 2 || end > jpeg_length ) {
+				throw new IOException("invalid jpeg segment length at " + pos);
+			}
+			if( (marker >= 0xE0 && marker <= 0xEF) || marker == 0xFE ) {
+				// APPn or COM
+				byte [] segment = new byte[2 + length];
+				System.arraycopy(jpeg, pos, segment, 0, segment.length);
+				frame.copied_segments.add(segment);
+			}
+			else if( marker == 0xDB ) {
+				parseQuantTables(frame, jpeg, start, end);
+			}
+			else if( marker == 0xC4 ) {
+				parseHuffmanTables(frame, jpeg, start, end);
+			}
+			else if( marker == 0xDD ) {
+				frame.restart_interval = readShort(jpeg, start);
+			}
+			else if( marker == 0xC0 || marker == 0xC1 ) {
+				if( !parseFrameHeader(frame, marker, jpeg, start, end) )
+					return null;
+			}
+			else if( marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "unsupported jpeg type: " + Integer.toHexString(marker));
+				return null;
+			}
+			else if( marker == 0xDA ) {
+				if( !parseScan(frame, jpeg, jpeg_length, start, end) )
+					return null;
+				return frame;
+			}
+			else {
+				if( MyDebug.LOG )
+					Log.d(TAG, "unsupported jpeg marker: " + Integer.toHexString(marker));
+				return null;
+			}
+			pos = end;
+		}
+	}
+
+	private static void parseQuantTables(Frame frame, byte [] jpeg, int pos, int end) throws IOException {
+		while( pos < end ) {
+			int precision = (jpeg[pos] & 0xff) >> 4;
+			int id = jpeg[pos] & 0x0f;
+			pos++;
+			if( id > 3 || precision > 1 || pos + 64*(precision+1) > end ) {
+				throw new IOException("invalid quantization table");
+			}
+			int [] table = new int[64];
+			for(int k=0;k<64;k++) {
+				if( precision == 0 ) {
+					table[zigzag[k]] = jpeg[pos++] & 0xff;
+				}
+				else {
+					table[zigzag[k]] = readShort(jpeg, pos);
+					pos += 2;
+				}
+			}
+			frame.quant_tables[id] = table;
+			frame.quant_precision[id] = precision;
+		}
+	}
+
+	private static void parseHuffmanTables(Frame frame, byte [] jpeg, int pos, int end) throws IOException {
+		while( pos < end ) {
+			if( pos + 17 > end ) {
+				throw new IOException("invalid huffman table");
+			}
+			int table_class = (jpeg[pos] & 0xff) >> 4;
+			int id = jpeg[pos] & 0x0f;
+			pos++;
+			int [] counts = new int[17];
+			int n_values = 0;
+			for(int length=1;length<=16;length++) {
+				counts[length] = jpeg[pos++] & 0xff;
+				n_values += counts[length];
+			}
+			if( table_class > 1 || id > 3 || n_values > 256 || pos + n_values > end ) {
+				throw new IOException("invalid huffman table");
+			}
+			int [] values = new int[n_values];
+			for(int i=0;i<n_values;i++) {
+				values[i] = jpeg[pos++] & 0xff;
+			}
+			DecodeTable table = new DecodeTable(counts, values);
+			if( table_class == 0 )
+				frame.dc_tables[id] = table;
+			else
+				frame.ac_tables[id] = table;
+		}
+	}
+
+	/** Returns false if the frame isn't supported.
+	 */
+	private static boolean parseFrameHeader(Frame frame, int marker, byte [] jpeg, int pos, int end) throws IOException {
+		if( end - pos < 6 ) {
+			throw new IOException("invalid frame header");
+		}
+		int precision = jpeg[pos] & 0xff;
+		frame.sof_marker = marker;
+		frame.height = readShort(jpeg, pos+1);
+		frame.width = readShort(jpeg, pos+3);
+		int n_components = jpeg[pos+5] & 0xff;
+		if( precision != 8 || frame.height == 0 || frame.width == 0 || n_components == 0 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "unsupported frame: precision " + precision + " size " + frame.width + "x" + frame.height);
+			return false;
+		}
+		if( end - pos < 6 + 3*n_components ) {
+			throw new IOException("invalid frame header");
+		}
+		frame.components = new Component[n_components];
+		pos += 6;
+		for(int i=0;i<n_components;i++) {
+			Component component = new Component();
+			component.id = jpeg[pos] & 0xff;
+			component.h = (jpeg[pos+1] & 0xff) >> 4;
+			component.v = jpeg[pos+1] & 0x0f;
+			component.tq = jpeg[pos+2] & 0xff;
+			if( component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4 || component.tq > 3 ) {
+				throw new IOException("invalid frame component");
+			}
+			frame.components[i] = component;
+			pos += 3;
+		}
+		if( n_components == 1 ) {
+			// for a single component, each MCU is a single block, whatever the sampling factors
+			frame.components[0].h = 1;
+			frame.components[0].v = 1;
+		}
+		for(Component component : frame.components) {
+			frame.hmax = Math.max(frame.hmax, component.h);
+			frame.vmax = Math.max(frame.vmax, component.v);
+		}
+		frame.mcus_x = (frame.width + 8*frame.hmax - 1) / (8*frame.hmax);
+		frame.mcus_y = (frame.height + 8*frame.vmax - 1) / (8*frame.vmax);
+		for(Component component : frame.components) {
+			component.blocks_w = frame.mcus_x * component.h;
+			component.blocks_h = frame.mcus_y * component.v;
+		}
+		return true;
+	}
+
+	/** Parses the scan header, and finds the restart intervals of the entropy coded data. Returns false
+	 *  if the scan isn't supported.
+	 */
+	private static boolean parseScan(Frame frame, byte [] jpeg, int jpeg_length, int pos, int end) throws IOException {
+		if( frame.components == null ) {
+			throw new IOException("scan before frame header");
+		}
+		int n_components = jpeg[pos] & 0xff;
+		if( n_components != frame.components.length || end - pos != 4 + 2*n_components ) {
+			// a scan containing only some of the components means there are multiple scans
+			if( MyDebug.LOG )
+				Log.d(TAG, "unsupported scan with " + n_components + " of " + frame.components.length + " components");
+			return false;
+		}
+		Component [] scan_components = new Component[n_components];
+		for(int i=0;i<n_components;i++) {
+			int id = jpeg[pos+1+2*i] & 0xff;
+			int tables = jpeg[pos+2+2*i] & 0xff;
+			Component component = null;
+			for(Component c : frame.components) {
+				if( c.id == id )
+					component = c;
+			}
+			if( component == null ) {
+				throw new IOException("unknown scan component " + id);
+			}
+			component.td = tables >> 4;
+			component.ta = tables & 0x0f;
+			if( component.td > 3 || component.ta > 3 || frame.dc_tables[component.td] == null || frame.ac_tables[component.ta] == null || frame.quant_tables[component.tq] == null ) {
+				throw new IOException("missing tables for component " + id);
+			}
+			scan_components[i] = component;
+		}
+		int ss = jpeg[end-3] & 0xff;
+		int se = jpeg[end-2] & 0xff;
+		int approx = jpeg[end-1] & 0xff;
+		if( ss != 0 || se != 63 || approx != 0 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "unsupported spectral selection or approximation");
+			return false;
+		}
+		// use the order of components in the scan
+		frame.components = scan_components;
+
+		// find the restart intervals
+		int segment_start = end;
+		int i = end;
+		for(;;) {
+			if( i + 1 >= jpeg_length ) {
+				throw new IOException("unexpected end of scan");
+			}
+			if( (jpeg[i] & 0xff) != 0xFF ) {
+				i++;
+				continue;
+			}
+			int marker = jpeg[i+1] & 0xff;
+			if( marker == 0x00 ) {
+				i += 2;
+			}
+			else if( marker >= 0xD0 && marker <= 0xD7 ) {
+				frame.entropy_segments.add(new int[]{segment_start, i});
+				i += 2;
+				segment_start = i;
+			}
+			else if( marker == 0xFF ) {
+				// fill byte
+				i++;
+			}
+			else {
+				frame.entropy_segments.add(new int[]{segment_start, i});
+				if( marker != 0xD9 ) {
+					// another scan, or DNL
+					if( MyDebug.LOG )
+						Log.d(TAG, "unsupported marker after scan: " + Integer.toHexString(marker));
+					return false;
+				}
+				break;
+			}
+		}
+
+		int n_mcus = frame.mcus_x * frame.mcus_y;
+		int expected_segments = frame.restart_interval == 0 ? 1 : (n_mcus + frame.restart_interval - 1) / frame.restart_interval;
+		if( frame.entropy_segments.size() != expected_segments ) {
+			throw new IOException("expected " + expected_segments + " restart intervals, found " + frame.entropy_segments.size());
+		}
+		return true;
+	}
+
+	/** Calls run(i) for i in [start, stop).
+	 */
+	interface RangeOperation {
+		void run(int start, int stop) throws IOException;
+	}
+
+	private static class RangeTask extends RecursiveAction {
+		private final RangeOperation operation;
+		private final int start, stop;
+		IOException exception;
+
+		RangeTask(RangeOperation operation, int start, int stop) {
+			this.operation = operation;
+			this.start = start;
+			this.stop = stop;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				operation.run(start, stop);
+			}
+			catch(IOException e) {
+				exception = e;
+			}
+		}
+	}
+
+	/** Runs the operation over [0, n), split into ranges that are run in parallel, and waits for them
+	 *  to complete.
+	 */
+	void runRanges(int n, RangeOperation operation) throws IOException {
+		int n_tasks = Math.max(1, Math.min(2*pool.getParallelism(), n));
+		RangeTask [] tasks = new RangeTask[n_tasks];
+		for(int i=0;i<n_tasks;i++) {
+			tasks[i] = new RangeTask(operation, (i*n)/n_tasks, ((i+1)*n)/n_tasks);
+			pool.execute(tasks[i]);
+		}
+		for(int i=0;i<n_tasks;i++) {
+			tasks[i].join();
+		}
+		for(int i=0;i<n_tasks;i++) {
+			if( tasks[i].exception != null )
+				throw tasks[i].exception;
+		}
+	}
+
+	/** Decodes the entropy coded data to the coefficients of each component.
+	 */
+	void decode(final Frame frame) throws IOException {
+		for(Component component : frame.components) {
+			component.first_block_row = 0;
+			component.coefficients = new short[component.blocks_w * component.blocks_h * 64];
+		}
+		final int n_mcus = frame.mcus_x * frame.mcus_y;
+		final int mcus_per_segment = frame.restart_interval == 0 ? n_mcus : frame.restart_interval;
+		runRanges(frame.entropy_segments.size(), new RangeOperation() {
+			@Override
+			public void run(int start, int stop) throws IOException {
+				for(int segment=start;segment<stop;segment++) {
+					int [] range = frame.entropy_segments.get(segment);
+					int mcu_start = segment * mcus_per_segment;
+					int mcu_stop = Math.min(mcu_start + mcus_per_segment, n_mcus);
+					decodeSegment(frame, new BitReader(frame.data, range[0], range[1]), mcu_start, mcu_stop);
+				}
+			}
+		});
+	}
+
+	/** Decodes the MCUs [mcu_start, mcu_stop) from the reader. Blocks outside the rows stored in each
+	 *  component's coefficients are decoded but discarded.
+	 */
+	static void decodeSegment(Frame frame, BitReader reader, int mcu_start, int mcu_stop) throws IOException {
+		int [] predictors = new int[frame.components.length];
+		short [] discarded = new short[64];
+		for(int mcu=mcu_start;mcu<mcu_stop;mcu++) {
+			int mcu_x = mcu % frame.mcus_x;
+			int mcu_y = mcu / frame.mcus_x;
+			for(int c=0;c<frame.components.length;c++) {
+				Component component = frame.components[c];
+				DecodeTable dc_table = frame.dc_tables[component.td];
+				DecodeTable ac_table = frame.ac_tables[component.ta];
+				for(int v=0;v<component.v;v++) {
+					for(int h=0;h<component.h;h++) {
+						int block_x = mcu_x * component.h + h;
+						int block_y = mcu_y * component.v + v;
+						int row = block_y - component.first_block_row;
+						int offset = (row * component.blocks_w + block_x) * 64;
+						short [] coefficients = component.coefficients;
+						if( row < 0 || offset >= coefficients.length ) {
+							coefficients = discarded;
+							offset = 0;
+						}
+
+						int s = reader.decode(dc_table);
+						if( s > max_dc_category_c ) {
+							throw new IOException("invalid dc category " + s);
+						}
+						predictors[c] += reader.receiveExtend(s);
+						coefficients[offset] = (short)predictors[c];
+						for(int k=1;k<64;) {
+							int rs = reader.decode(ac_table);
+							int r = rs >> 4;
+							s = rs & 15;
+							if( s == 0 ) {
+								if( r != 15 )
+									break; // end of block
+								k += 16;
+								continue;
+							}
+							k += r;
+							if( k > 63 ) {
+								throw new IOException("invalid ac coefficient index");
+							}
+							coefficients[offset + zigzag[k]] = (short)reader.receiveExtend(s);
+							k++;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** Stores the state for encoding the transformed frame.
+	 */
+	static class OutputFrame {
+		Transform transform;
+		int mcus_x, mcus_y;
+		int [] comp_h, comp_v; // sampling factors of each component
+		int [] blocks_w, blocks_h; // size of the grid of blocks of each component
+		int [] perm = new int[64]; // output coefficient i is sign[i] * input coefficient perm[i], in natural order
+		int [] sign = new int[64];
+		int mcus_per_segment;
+		int n_segments;
+		EncodeTable [] dc_tables = new EncodeTable[4];
+		EncodeTable [] ac_tables = new EncodeTable[4];
+	}
+
+	static int category(int value) {
+		if( value < 0 )
+			value = -value;
+		int n_bits = 0;
+		while( value != 0 ) {
+			n_bits++;
+			value >>= 1;
+		}
+		return n_bits;
+	}
+
+	/** Encodes the MCUs of an output segment. If writer is null, the symbol frequencies are counted
+	 *  instead.
+	 */
+	static void encodeSegment(Frame frame, OutputFrame out, int segment, long [][] dc_freq, long [][] ac_freq, BitWriter writer) throws IOException {
+		Transform transform = out.transform;
+		int n_mcus = out.mcus_x * out.mcus_y;
+		int mcu_start = segment * out.mcus_per_segment;
+		int mcu_stop = Math.min(mcu_start + out.mcus_per_segment, n_mcus);
+		int [] predictors = new int[frame.components.length];
+		short [] block = new short[64];
+		for(int mcu=mcu_start;mcu<mcu_stop;mcu++) {
+			int mcu_x = mcu % out.mcus_x;
+			int mcu_y = mcu / out.mcus_x;
+			for(int c=0;c<frame.components.length;c++) {
+				Component component = frame.components[c];
+				for(int v=0;v<out.comp_v[c];v++) {
+					for(int h=0;h<out.comp_h[c];h++) {
+						// find the input block
+						int block_x = mcu_x * out.comp_h[c] + h;
+						int block_y = mcu_y * out.comp_v[c] + v;
+						if( transform.flip_h )
+							block_x = out.blocks_w[c] - 1 - block_x;
+						if( transform.flip_v )
+							block_y = out.blocks_h[c] - 1 - block_y;
+						int in_x = transform.transpose ? block_y : block_x;
+						int in_y = transform.transpose ? block_x : block_y;
+						int offset = ((in_y - component.first_block_row) * component.blocks_w + in_x) * 64;
+						for(int i=0;i<64;i++) {
+							block[i] = (short)(out.sign[i] * component.coefficients[offset + out.perm[i]]);
+						}
+
+						int diff = block[0] - predictors[c];
+						predictors[c] = block[0];
+						int s = category(diff);
+						if( s > max_dc_category_c ) {
+							throw new IOException("dc difference too large for baseline jpeg: " + diff);
+						}
+						if( writer == null ) {
+							dc_freq[component.td][s]++;
+						}
+						else {
+							EncodeTable table = out.dc_tables[component.td];
+							writer.write(table.codes[s], table.sizes[s]);
+							writer.write(diff < 0 ? diff - 1 : diff, s);
+						}
+						EncodeTable ac_table = out.ac_tables[component.ta];
+						int run = 0;
+						for(int k=1;k<64;k++) {
+							int value = block[zigzag[k]];
+							if( value == 0 ) {
+								run++;
+								continue;
+							}
+							while( run > 15 ) {
+								if( writer == null )
+									ac_freq[component.ta][0xF0]++;
+								else
+									writer.write(ac_table.codes[0xF0], ac_table.sizes[0xF0]);
+								run -= 16;
+							}
+							s = category(value);
+							int symbol = (run << 4) | s;
+							if( writer == null ) {
+								ac_freq[component.ta][symbol]++;
+							}
+							else {
+								writer.write(ac_table.codes[symbol], ac_table.sizes[symbol]);
+								writer.write(value < 0 ? value - 1 : value, s);
+							}
+							run = 0;
+						}
+						if( run > 0 ) {
+							// end of block
+							if( writer == null )
+								ac_freq[component.ta][0]++;
+							else
+								writer.write(ac_table.codes[0], ac_table.sizes[0]);
+						}
+					}
+				}
+			}
+		}
+		if( writer != null ) {
+			writer.flush();
+		}
+	}
+
+	/** Encodes the transformed coefficients, and returns the jpeg.
+	 */
+	byte [] encode(final Frame frame, Transform transform) throws IOException {
+		final int n_components = frame.components.length;
+		final OutputFrame out = new OutputFrame();
+		out.transform = transform;
+		out.mcus_x = transform.transpose ? frame.mcus_y : frame.mcus_x;
+		out.mcus_y = transform.transpose ? frame.mcus_x : frame.mcus_y;
+		out.comp_h = new int[n_components];
+		out.comp_v = new int[n_components];
+		out.blocks_w = new int[n_components];
+		out.blocks_h = new int[n_components];
+		for(int c=0;c<n_components;c++) {
+			Component component = frame.components[c];
+			out.comp_h[c] = transform.transpose ? component.v : component.h;
+			out.comp_v[c] = transform.transpose ? component.h : component.v;
+			out.blocks_w[c] = transform.transpose ? component.blocks_h : component.blocks_w;
+			out.blocks_h[c] = transform.transpose ? component.blocks_w : component.blocks_h;
+		}
+		for(int row=0;row<8;row++) {
+			for(int col=0;col<8;col++) {
+				int i = row*8 + col;
+				out.perm[i] = transform.transpose ? col*8 + row : i;
+				// flipping negates the odd frequencies in that direction
+				boolean negate = (transform.flip_h && col % 2 == 1) ^ (transform.flip_v && row % 2 == 1);
+				out.sign[i] = negate ? -1 : 1;
+			}
+		}
+		// if the input had restart intervals, use one MCU row per interval, so the output can be encoded in parallel
+		out.mcus_per_segment = frame.restart_interval == 0 ? out.mcus_x * out.mcus_y : out.mcus_x;
+		out.n_segments = frame.restart_interval == 0 ? 1 : out.mcus_y;
+
+		// count the symbol frequencies, to build optimal huffman tables
+		final long [][][] dc_freqs = new long[out.n_segments][][];
+		final long [][][] ac_freqs = new long[out.n_segments][][];
+		runRanges(out.n_segments, new RangeOperation() {
+			@Override
+			public void run(int start, int stop) throws IOException {
+				long [][] dc_freq = new long[4][256];
+				long [][] ac_freq = new long[4][256];
+				for(int segment=start;segment<stop;segment++) {
+					encodeSegment(frame, out, segment, dc_freq, ac_freq, null);
+				}
+				dc_freqs[start] = dc_freq;
+				ac_freqs[start] = ac_freq;
+			}
+		});
+		long [][] dc_freq = new long[4][256];
+		long [][] ac_freq = new long[4][256];
+		for(int segment=0;segment<out.n_segments;segment++) {
+			if( dc_freqs[segment] == null )
+				continue;
+			for(int t=0;t<4;t++) {
+				for(int s=0;s<256;s++) {
+					dc_freq[t][s] += dc_freqs[segment][t][s];
+					ac_freq[t][s] += ac_freqs[segment][t][s];
+				}
+			}
+		}
+		for(Component component : frame.components) {
+			if( out.dc_tables[component.td] == null )
+				out.dc_tables[component.td] = new EncodeTable(dc_freq[component.td]);
+			if( out.ac_tables[component.ta] == null )
+				out.ac_tables[component.ta] = new EncodeTable(ac_freq[component.ta]);
+		}
+
+		// encode
+		final byte [][] segment_data = new byte[out.n_segments][];
+		final int [] segment_lengths = new int[out.n_segments];
+		final int estimated_segment_length = frame.data_length / out.n_segments;
+		runRanges(out.n_segments, new RangeOperation() {
+			@Override
+			public void run(int start, int stop) throws IOException {
+				for(int segment=start;segment<stop;segment++) {
+					BitWriter writer = new BitWriter(estimated_segment_length + estimated_segment_length/8);
+					encodeSegment(frame, out, segment, null, null, writer);
+					segment_data[segment] = writer.buffer;
+					segment_lengths[segment] = writer.length;
+				}
+			}
+		});
+
+		// write the jpeg
+		int out_width = transform.transpose ? frame.height : frame.width;
+		int out_height = transform.transpose ? frame.width : frame.height;
+		int total_length = 1024;
+		for(byte [] segment : frame.copied_segments)
+			total_length += segment.length;
+		for(int segment=0;segment<out.n_segments;segment++)
+			total_length += segment_lengths[segment] + 2;
+		ByteArrayOutputStream output = new ByteArrayOutputStream(total_length);
+		output.write(0xFF);
+		output.write(0xD8);
+		for(byte [] segment : frame.copied_segments) {
+			output.write(segment);
+		}
+		writeQuantTables(output, frame, transform.transpose);
+		writeFrameHeader(output, frame, out, out_width, out_height);
+		writeHuffmanTables(output, out);
+		if( out.n_segments > 1 ) {
+			writeMarker(output, 0xDD, 4);
+			writeShort(output, out.mcus_per_segment);
+		}
+		writeMarker(output, 0xDA, 6 + 2*n_components);
+		output.write(n_components);
+		for(Component component : frame.components) {
+			output.write(component.id);
+			output.write((component.td << 4) | component.ta);
+		}
+		output.write(0);
+		output.write(63);
+		output.write(0);
+		for(int segment=0;segment<out.n_segments;segment++) {
+			if( segment > 0 ) {
+				output.write(0xFF);
+				output.write(0xD0 + ((segment-1) % 8));
+			}
+			output.write(segment_data[segment], 0, segment_lengths[segment]);
+			segment_data[segment] = null;
+		}
+		output.write(0xFF);
+		output.write(0xD9);
+		return output.toByteArray();
+	}
+
+	private static void writeShort(ByteArrayOutputStream output, int value) {
+		output.write(value >> 8);
+		output.write(value & 0xff);
+	}
+
+	private static void writeMarker(ByteArrayOutputStream output, int marker, int length) {
+		output.write(0xFF);
+		output.write(marker);
+		writeShort(output, length);
+	}
+
+	private static void writeQuantTables(ByteArrayOutputStream output, Frame frame, boolean transpose) {
+		for(int id=0;id<4;id++) {
+			int [] table = frame.quant_tables[id];
+			if( table == null )
+				continue;
+			int precision = frame.quant_precision[id];
+			writeMarker(output, 0xDB, 3 + 64*(precision+1));
+			output.write((precision << 4) | id);
+			for(int k=0;k<64;k++) {
+				int i = zigzag[k];
+				int value = transpose ? table[(i % 8)*8 + i/8] : table[i];
+				if( precision == 0 ) {
+					output.write(value);
+				}
+				else {
+					writeShort(output, value);
+				}
+			}
+		}
+	}
+
+	private static void writeFrameHeader(ByteArrayOutputStream output, Frame frame, OutputFrame out, int width, int height) {
+		int n_components = frame.components.length;
+		writeMarker(output, frame.sof_marker, 8 + 3*n_components);
+		output.write(8);
+		writeShort(output, height);
+		writeShort(output, width);
+		output.write(n_components);
+		for(int c=0;c<n_components;c++) {
+			Component component = frame.components[c];
+			output.write(component.id);
+			output.write((out.comp_h[c] << 4) | out.comp_v[c]);
+			output.write(component.tq);
+		}
+	}
+
+	private static void writeHuffmanTables(ByteArrayOutputStream output, OutputFrame out) {
+		for(int table_class=0;table_class<2;table_class++) {
+			EncodeTable [] tables = table_class == 0 ? out.dc_tables : out.ac_tables;
+			for(int id=0;id<4;id++) {
+				EncodeTable table = tables[id];
+				if( table == null )
+					continue;
+				writeMarker(output, 0xC4, 2 + 17 + table.values.length);
+				output.write((table_class << 4) | id);
+				for(int length=1;length<=16;length++) {
+					output.write(table.counts[length]);
+				}
+				for(int value : table.values) {
+					output.write(value);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,482 @@
+package io.wizkers.opencamera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Edits a rectangle of a jpeg (e.g., to stamp text onto a photo) without decoding and compressing
+ *  the whole image. Only the MCUs covering the rectangle are decoded to pixels, and only the MCUs
+ *  whose pixels are changed by the edit are compressed again, with the jpeg's own quantization
+ *  tables.
+ *  If the jpeg has restart intervals, only the intervals containing changed MCUs are entropy coded
+ *  again (with the jpeg's own Huffman tables), and all other entropy coded data is copied unchanged,
+ *  so the time taken depends on the size of the rectangle rather than the size of the image.
+ *  Otherwise (or if the jpeg's Huffman tables can't code the new data), the whole scan is entropy
+ *  coded again as by JpegLosslessTransform, which is still much cheaper than decoding and
+ *  compressing all of the pixels.
+ *  The same jpegs as for JpegLosslessTransform are supported, with either one (greyscale) or three
+ *  (YCbCr) components. Pixels are converted with the JFIF colour conversion, with nearest neighbour
+ *  upsampling and box filtered downsampling of the chroma, so any unchanged pixels in a changed MCU
+ *  only suffer rounding errors.
+ */
+public class JpegStripEditor {
+	private static final String TAG = "JpegStripEditor";
+
+	/** Edits the pixels of the image.
+	 */
+	public interface PixelEditor {
+		/** Edits the region [x, x+width) x [y, y+height) of the image in place, in ARGB format, with
+		 *  width pixels per row. The region is the requested rectangle expanded to whole MCUs, and
+		 *  clipped to the image. Called on the thread that called edit().
+		 */
+		void edit(int [] argb, int x, int y, int width, int height);
+	}
+
+	private static final float [] dct_matrix = new float[64]; // dct_matrix[u*8+x] = C(u)/2 * cos((2x+1)u pi/16)
+
+	static {
+		for(int u=0;u<8;u++) {
+			double c = u == 0 ? Math.sqrt(0.5) : 1.0;
+			for(int x=0;x<8;x++) {
+				dct_matrix[u*8+x] = (float)(0.5 * c * Math.cos((2*x+1) * u * Math.PI / 16.0));
+			}
+		}
+	}
+
+	private final JpegLosslessTransform codec;
+
+	/**
+	 * @param pool The pool to run the processing on. If null, a new pool is created with
+	 *             parallelism equal to the number of available processors.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public JpegStripEditor(ForkJoinPool pool) {
+		this.codec = new JpegLosslessTransform(pool);
+	}
+
+	/** Edits a rectangle of the jpeg.
+	 * @param editor Called with the pixels covering the rectangle [x, x+width) x [y, y+height).
+	 * @return The edited jpeg, or the supplied jpeg if the edit didn't change any pixels, or null if
+	 *         the jpeg isn't a supported type (in which case the caller should fall back to decoding
+	 *         the whole jpeg). All segments other than those describing the image data (e.g., Exif
+	 *         data) are copied unchanged.
+	 * @throws IOException If the jpeg is malformed.
+	 */
+	public byte [] edit(byte [] jpeg, int x, int y, int width, int height, PixelEditor editor) throws IOException {
+		return edit(jpeg, jpeg.length, x, y, width, height, editor);
+	}
+
+	/** As edit(byte [], int, int, int, int, PixelEditor), for a jpeg held in the first length bytes
+	 *  of the array.
+	 */
+	public byte [] edit(byte [] jpeg, int length, int x, int y, int width, int height, PixelEditor editor) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "edit: " + x + " , " + y + " , " + width + " x " + height);
+		long time_s = System.currentTimeMillis();
+		final JpegLosslessTransform.Frame frame = JpegLosslessTransform.parse(jpeg, length);
+		if( frame == null ) {
+			return null;
+		}
+		if( frame.components.length != 1 && frame.components.length != 3 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "unsupported number of components: " + frame.components.length);
+			return null;
+		}
+		int x0 = Math.max(x, 0);
+		int y0 = Math.max(y, 0);
+		int x1 = Math.min(x + width, frame.width);
+		int y1 = Math.min(y + height, frame.height);
+		if( x0 >= x1 || y0 >= y1 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "rectangle is outside the image");
+			return jpeg;
+		}
+
+		// the MCUs covering the rectangle
+		final int mcu_width = 8*frame.hmax;
+		final int mcu_height = 8*frame.vmax;
+		final int mcu_x0 = x0 / mcu_width;
+		final int mcu_y0 = y0 / mcu_height;
+		final int mcus_w = (x1 + mcu_width - 1) / mcu_width - mcu_x0;
+		final int mcus_h = (y1 + mcu_height - 1) / mcu_height - mcu_y0;
+
+		// decode the restart intervals containing those MCUs, storing only the rows of blocks they cover
+		final int n_mcus = frame.mcus_x * frame.mcus_y;
+		final int mcus_per_segment = frame.restart_interval == 0 ? n_mcus : frame.restart_interval;
+		final int first_segment = (mcu_y0 * frame.mcus_x + mcu_x0) / mcus_per_segment;
+		final int last_segment = ((mcu_y0 + mcus_h - 1) * frame.mcus_x + mcu_x0 + mcus_w - 1) / mcus_per_segment;
+		final int first_mcu_row = (first_segment * mcus_per_segment) / frame.mcus_x;
+		int last_mcu_row = (Math.min((last_segment + 1) * mcus_per_segment, n_mcus) - 1) / frame.mcus_x;
+		for(JpegLosslessTransform.Component component : frame.components) {
+			component.first_block_row = first_mcu_row * component.v;
+			component.coefficients = new short[component.blocks_w * (last_mcu_row + 1 - first_mcu_row) * component.v * 64];
+		}
+		codec.runRanges(last_segment + 1 - first_segment, new JpegLosslessTransform.RangeOperation() {
+			@Override
+			public void run(int start, int stop) throws IOException {
+				for(int segment=first_segment+start;segment<first_segment+stop;segment++) {
+					int [] range = frame.entropy_segments.get(segment);
+					int mcu_start = segment * mcus_per_segment;
+					int mcu_stop = Math.min(mcu_start + mcus_per_segment, n_mcus);
+					JpegLosslessTransform.decodeSegment(frame, new JpegLosslessTransform.BitReader(frame.data, range[0], range[1]), mcu_start, mcu_stop);
+				}
+			}
+		});
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after entropy decoding: " + (System.currentTimeMillis() - time_s));
+
+		// convert to pixels, and edit
+		final int region_x = mcu_x0 * mcu_width;
+		final int region_y = mcu_y0 * mcu_height;
+		final int region_width = Math.min((mcu_x0 + mcus_w) * mcu_width, frame.width) - region_x;
+		final int region_height = Math.min((mcu_y0 + mcus_h) * mcu_height, frame.height) - region_y;
+		final int [] argb = new int[region_width * region_height];
+		codec.runRanges(mcus_w * mcus_h, new JpegLosslessTransform.RangeOperation() {
+			@Override
+			public void run(int start, int stop) {
+				float [] workspace = new float[64];
+				float [] temp = new float[64];
+				for(int i=start;i<stop;i++) {
+					decodeMCU(frame, mcu_x0 + i % mcus_w, mcu_y0 + i / mcus_w, argb, region_x, region_y, region_width, region_height, workspace, temp);
+				}
+			}
+		});
+		final int [] original = argb.clone();
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after decoding pixels: " + (System.currentTimeMillis() - time_s));
+		editor.edit(argb, region_x, region_y, region_width, region_height);
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after editing: " + (System.currentTimeMillis() - time_s));
+
+		// compress the MCUs that changed
+		final boolean [] changed_segments = new boolean[frame.entropy_segments.size()];
+		codec.runRanges(mcus_w * mcus_h, new JpegLosslessTransform.RangeOperation() {
+			@Override
+			public void run(int start, int stop) {
+				float [] workspace = new float[64];
+				float [] temp = new float[64];
+				for(int i=start;i<stop;i++) {
+					int mcu_x = mcu_x0 + i % mcus_w;
+					int mcu_y = mcu_y0 + i / mcus_w;
+					if( isMCUChanged(frame, mcu_x, mcu_y, original, argb, region_x, region_y, region_width) ) {
+						encodeMCU(frame, mcu_x, mcu_y, argb, region_x, region_y, region_width, workspace, temp);
+						// different tasks may set the same segment, but only ever to true
+						changed_segments[(mcu_y * frame.mcus_x + mcu_x) / mcus_per_segment] = true;
+					}
+				}
+			}
+		});
+		final List<Integer> segments = new ArrayList<>();
+		for(int segment=first_segment;segment<=last_segment;segment++) {
+			if( changed_segments[segment] )
+				segments.add(segment);
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "changed restart intervals: " + segments.size() + " of " + changed_segments.length);
+			Log.d(TAG, "time after compressing pixels: " + (System.currentTimeMillis() - time_s));
+		}
+		if( segments.size() == 0 ) {
+			return jpeg;
+		}
+
+		// entropy code the changed restart intervals with the original huffman tables
+		final JpegLosslessTransform.OutputFrame out = new JpegLosslessTransform.OutputFrame();
+		out.transform = JpegLosslessTransform.Transform.NONE;
+		out.mcus_x = frame.mcus_x;
+		out.mcus_y = frame.mcus_y;
+		int n_components = frame.components.length;
+		out.comp_h = new int[n_components];
+		out.comp_v = new int[n_components];
+		out.blocks_w = new int[n_components];
+		out.blocks_h = new int[n_components];
+		for(int c=0;c<n_components;c++) {
+			JpegLosslessTransform.Component component = frame.components[c];
+			out.comp_h[c] = component.h;
+			out.comp_v[c] = component.v;
+			out.blocks_w[c] = component.blocks_w;
+			out.blocks_h[c] = component.blocks_h;
+		}
+		for(int i=0;i<64;i++) {
+			out.perm[i] = i;
+			out.sign[i] = 1;
+		}
+		out.mcus_per_segment = mcus_per_segment;
+		out.n_segments = changed_segments.length;
+		long [][] dc_freq = new long[4][256];
+		long [][] ac_freq = new long[4][256];
+		for(int segment : segments) {
+			JpegLosslessTransform.encodeSegment(frame, out, segment, dc_freq, ac_freq, null);
+		}
+		boolean tables_ok = true;
+		for(JpegLosslessTransform.Component component : frame.components) {
+			if( out.dc_tables[component.td] == null ) {
+				JpegLosslessTransform.DecodeTable table = frame.dc_tables[component.td];
+				out.dc_tables[component.td] = new JpegLosslessTransform.EncodeTable(table.counts, table.values);
+			}
+			if( out.ac_tables[component.ta] == null ) {
+				JpegLosslessTransform.DecodeTable table = frame.ac_tables[component.ta];
+				out.ac_tables[component.ta] = new JpegLosslessTransform.EncodeTable(table.counts, table.values);
+			}
+			for(int s=0;s<256;s++) {
+				if( (dc_freq[component.td][s] > 0 && out.dc_tables[component.td].sizes[s] == 0) ||
+						(ac_freq[component.ta][s] > 0 && out.ac_tables[component.ta].sizes[s] == 0) ) {
+					tables_ok = false;
+				}
+			}
+		}
+		if( !tables_ok ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "huffman tables can't code the edit, so entropy code the whole scan");
+			byte [] result = encodeAll(frame);
+			if( MyDebug.LOG )
+				Log.d(TAG, "time after encoding: " + (System.currentTimeMillis() - time_s));
+			return result;
+		}
+
+		final byte [][] segment_data = new byte[segments.size()][];
+		final int [] segment_lengths = new int[segments.size()];
+		codec.runRanges(segments.size(), new JpegLosslessTransform.RangeOperation() {
+			@Override
+			public void run(int start, int stop) throws IOException {
+				for(int i=start;i<stop;i++) {
+					int [] range = frame.entropy_segments.get(segments.get(i));
+					JpegLosslessTransform.BitWriter writer = new JpegLosslessTransform.BitWriter(range[1] - range[0] + 1024);
+					JpegLosslessTransform.encodeSegment(frame, out, segments.get(i), null, null, writer);
+					segment_data[i] = writer.buffer;
+					segment_lengths[i] = writer.length;
+				}
+			}
+		});
+
+		// splice the new restart intervals into the jpeg
+		int total_length = length;
+		for(int i=0;i<segments.size();i++) {
+			int [] range = frame.entropy_segments.get(segments.get(i));
+			total_length += segment_lengths[i] - (range[1] - range[0]);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream(total_length);
+		int pos = 0;
+		for(int i=0;i<segments.size();i++) {
+			int [] range = frame.entropy_segments.get(segments.get(i));
+			output.write(jpeg, pos, range[0] - pos);
+			output.write(segment_data[i], 0, segment_lengths[i]);
+			pos = range[1];
+		}
+		output.write(jpeg, pos, length - pos);
+		if( MyDebug.LOG )
+			Log.d(TAG, "time after encoding: " + (System.currentTimeMillis() - time_s));
+		return output.toByteArray();
+	}
+
+	/** Decodes the rest of the frame, then entropy codes the whole scan with optimised Huffman tables.
+	 */
+	private byte [] encodeAll(JpegLosslessTransform.Frame frame) throws IOException {
+		int n_components = frame.components.length;
+		short [][] edited = new short[n_components][];
+		int [] first_block_rows = new int[n_components];
+		for(int c=0;c<n_components;c++) {
+			edited[c] = frame.components[c].coefficients;
+			first_block_rows[c] = frame.components[c].first_block_row;
+		}
+		codec.decode(frame);
+		for(int c=0;c<n_components;c++) {
+			JpegLosslessTransform.Component component = frame.components[c];
+			System.arraycopy(edited[c], 0, component.coefficients, first_block_rows[c] * component.blocks_w * 64, edited[c].length);
+		}
+		return codec.encode(frame, JpegLosslessTransform.Transform.NONE);
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	/** Converts the MCU at (mcu_x, mcu_y) to pixels, storing those inside the image in argb, which
+	 *  holds the region starting at region_x, region_y.
+	 */
+	private static void decodeMCU(JpegLosslessTransform.Frame frame, int mcu_x, int mcu_y, int [] argb, int region_x, int region_y, int region_width, int region_height, float [] workspace, float [] temp) {
+		int n_components = frame.components.length;
+		int [][] samples = new int[n_components][];
+		for(int c=0;c<n_components;c++) {
+			JpegLosslessTransform.Component component = frame.components[c];
+			int [] quant_table = frame.quant_tables[component.tq];
+			int samples_width = 8*component.h;
+			samples[c] = new int[samples_width * 8*component.v];
+			for(int v=0;v<component.v;v++) {
+				for(int h=0;h<component.h;h++) {
+					int block_x = mcu_x * component.h + h;
+					int block_y = mcu_y * component.v + v - component.first_block_row;
+					int offset = (block_y * component.blocks_w + block_x) * 64;
+					for(int i=0;i<64;i++) {
+						workspace[i] = component.coefficients[offset + i] * quant_table[i];
+					}
+					idct(workspace, temp, samples[c], v*8*samples_width + h*8, samples_width);
+				}
+			}
+		}
+
+		int start_x = mcu_x * 8*frame.hmax;
+		int start_y = mcu_y * 8*frame.vmax;
+		int stop_x = Math.min(start_x + 8*frame.hmax, frame.width);
+		int stop_y = Math.min(start_y + 8*frame.vmax, frame.height);
+		for(int y=start_y;y<stop_y;y++) {
+			int j = y - start_y;
+			int row = (y - region_y) * region_width - region_x;
+			for(int x=start_x;x<stop_x;x++) {
+				int i = x - start_x;
+				JpegLosslessTransform.Component component = frame.components[0];
+				int luma = samples[0][((j*component.v)/frame.vmax) * 8*component.h + (i*component.h)/frame.hmax];
+				if( n_components == 1 ) {
+					argb[row + x] = 0xff000000 | (luma << 16) | (luma << 8) | luma;
+					continue;
+				}
+				component = frame.components[1];
+				float cb = samples[1][((j*component.v)/frame.vmax) * 8*component.h + (i*component.h)/frame.hmax] - 128.0f;
+				component = frame.components[2];
+				float cr = samples[2][((j*component.v)/frame.vmax) * 8*component.h + (i*component.h)/frame.hmax] - 128.0f;
+				int r = clamp(Math.round(luma + 1.402f*cr));
+				int g = clamp(Math.round(luma - 0.344136f*cb - 0.714136f*cr));
+				int b = clamp(Math.round(luma + 1.772f*cb));
+				argb[row + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	/** Whether any pixels of the MCU at (mcu_x, mcu_y) differ between original and edited.
+	 */
+	private static boolean isMCUChanged(JpegLosslessTransform.Frame frame, int mcu_x, int mcu_y, int [] original, int [] edited, int region_x, int region_y, int region_width) {
+		int start_x = mcu_x * 8*frame.hmax;
+		int start_y = mcu_y * 8*frame.vmax;
+		int stop_x = Math.min(start_x + 8*frame.hmax, frame.width);
+		int stop_y = Math.min(start_y + 8*frame.vmax, frame.height);
+		for(int y=start_y;y<stop_y;y++) {
+			int row = (y - region_y) * region_width - region_x;
+			for(int x=start_x;x<stop_x;x++) {
+				if( original[row + x] != edited[row + x] )
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** Converts the pixels of the MCU at (mcu_x, mcu_y) back to quantised coefficients. Pixels
+	 *  outside the image are taken from the nearest pixel inside the image.
+	 */
+	private static void encodeMCU(JpegLosslessTransform.Frame frame, int mcu_x, int mcu_y, int [] argb, int region_x, int region_y, int region_width, float [] workspace, float [] temp) {
+		int start_x = mcu_x * 8*frame.hmax;
+		int start_y = mcu_y * 8*frame.vmax;
+		for(int c=0;c<frame.components.length;c++) {
+			JpegLosslessTransform.Component component = frame.components[c];
+			int [] quant_table = frame.quant_tables[component.tq];
+			// each sample of this component is the average of a block of step_x x step_y pixels
+			int step_x = frame.hmax / component.h;
+			int step_y = frame.vmax / component.v;
+			for(int v=0;v<component.v;v++) {
+				for(int h=0;h<component.h;h++) {
+					for(int j=0;j<8;j++) {
+						for(int i=0;i<8;i++) {
+							float sum = 0.0f;
+							for(int dy=0;dy<step_y;dy++) {
+								int y = Math.min(start_y + ((v*8 + j)*step_y + dy), frame.height-1);
+								int row = (y - region_y) * region_width - region_x;
+								for(int dx=0;dx<step_x;dx++) {
+									int x = Math.min(start_x + ((h*8 + i)*step_x + dx), frame.width-1);
+									sum += getComponent(argb[row + x], c, frame.components.length);
+								}
+							}
+							workspace[j*8+i] = sum / (step_x*step_y) - 128.0f;
+						}
+					}
+					int block_x = mcu_x * component.h + h;
+					int block_y = mcu_y * component.v + v - component.first_block_row;
+					int offset = (block_y * component.blocks_w + block_x) * 64;
+					fdct(workspace, temp);
+					for(int i=0;i<64;i++) {
+						int value = Math.round(workspace[i] / quant_table[i]);
+						// keep within the range for baseline jpegs
+						int max_value = i == 0 ? 2047 : 1023;
+						value = Math.max(-max_value, Math.min(max_value, value));
+						component.coefficients[offset + i] = (short)value;
+					}
+				}
+			}
+		}
+	}
+
+	/** Returns component c (Y, Cb or Cr) of the colour.
+	 */
+	private static float getComponent(int color, int c, int n_components) {
+		int r = (color >> 16) & 0xff;
+		int g = (color >> 8) & 0xff;
+		int b = color & 0xff;
+		if( n_components == 1 ) {
+			// greyscale, so r, g and b should be equal, but they may not be after editing
+			return 0.299f*r + 0.587f*g + 0.114f*b;
+		}
+		switch( c ) {
+			case 0:
+				return 0.299f*r + 0.587f*g + 0.114f*b;
+			case 1:
+				return -0.168736f*r - 0.331264f*g + 0.5f*b + 128.0f;
+			default:
+				return 0.5f*r - 0.418688f*g - 0.081312f*b + 128.0f;
+		}
+	}
+
+	/** Computes the inverse DCT of the dequantised coefficients in natural order, and stores the
+	 *  level shifted samples at output[offset], with stride samples per row.
+	 */
+	private static void idct(float [] coefficients, float [] temp, int [] output, int offset, int stride) {
+		// temp[k][x] = sum_l F[k][l] A[l][x]
+		for(int k=0;k<8;k++) {
+			for(int x=0;x<8;x++) {
+				float sum = 0.0f;
+				for(int l=0;l<8;l++) {
+					sum += coefficients[k*8+l] * dct_matrix[l*8+x];
+				}
+				temp[k*8+x] = sum;
+			}
+		}
+		// f[y][x] = sum_k A[k][y] temp[k][x]
+		for(int y=0;y<8;y++) {
+			for(int x=0;x<8;x++) {
+				float sum = 0.0f;
+				for(int k=0;k<8;k++) {
+					sum += dct_matrix[k*8+y] * temp[k*8+x];
+				}
+				output[offset + y*stride + x] = clamp(Math.round(sum + 128.0f));
+			}
+		}
+	}
+
+	/** Computes the forward DCT of the level shifted samples in place, giving coefficients in
+	 *  natural order.
+	 */
+	private static void fdct(float [] samples, float [] temp) {
+		// temp[y][l] = sum_x f[y][x] A[l][x]
+		for(int y=0;y<8;y++) {
+			for(int l=0;l<8;l++) {
+				float sum = 0.0f;
+				for(int x=0;x<8;x++) {
+					sum += samples[y*8+x] * dct_matrix[l*8+x];
+				}
+				temp[y*8+l] = sum;
+			}
+		}
+		// F[k][l] = sum_y A[k][y] temp[y][l]
+		for(int k=0;k<8;k++) {
+			for(int l=0;l<8;l++) {
+				float sum = 0.0f;
+				for(int y=0;y<8;y++) {
+					sum += dct_matrix[k*8+y] * temp[y*8+l];
+				}
+				samples[k*8+l] = sum;
+			}
+		}
+	}
+}
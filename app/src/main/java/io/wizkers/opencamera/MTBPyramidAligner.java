@@ -0,0 +1,311 @@
+package io.wizkers.opencamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/** Pure Java alternative to the median threshold bitmap (MTB) alignment done by create_mtb.rs and
+ *  align_mtb.rs. Rather than sampling every step_size'th pixel of the full resolution MTBs, we build
+ *  an image pyramid and search coarse-to-fine, with each level searching offsets of -1, 0, +1 pixels
+ *  (at that level's resolution) around the offset found at the previous level. The MTBs are stored
+ *  as packed bits, so the error for a candidate offset is computed with XOR and popcount on 64 pixels
+ *  at a time, and the 9 candidates for each level are evaluated in parallel. As with align_mtb.rs,
+ *  all 9 candidates are scored over the same interior region of the base image, so that candidates
+ *  aren't favoured for overlapping fewer pixels.
+ */
+public class MTBPyramidAligner {
+	private static final String TAG = "MTBPyramidAligner";
+
+	private static final int noise_threshold_c = 4; // should match create_mtb.rs
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param pool The pool to evaluate candidate offsets on. If null, a new pool is created with
+	 *             parallelism equal to the number of available processors.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	public MTBPyramidAligner(ForkJoinPool pool) {
+		this.pool = pool != null ? pool : new ForkJoinPool();
+	}
+
+	/** A median threshold bitmap, stored as packed bits. Bit (x % 64) of word
+	 *  (y * words_per_row + x / 64) represents pixel (x, y). Bits beyond the width of a row are
+	 *  always 0.
+	 */
+	static class MTB {
+		final int width;
+		final int height;
+		final int words_per_row;
+		final long [] threshold_bits; // set if the pixel is brighter than the median
+		final long [] valid_bits; // set if the pixel is not within noise_threshold_c of the median
+
+		MTB(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.words_per_row = (width + 63) / 64;
+			this.threshold_bits = new long[words_per_row * height];
+			this.valid_bits = new long[words_per_row * height];
+		}
+	}
+
+	/** Converts a row of ARGB pixels to the luminance values (maximum of r, g, b) used for MTBs, as
+	 *  in create_mtb.rs.
+	 */
+	public static void computeLuminance(int [] argb, int argb_offset, byte [] luminance, int luminance_offset, int count) {
+		for(int i=0;i<count;i++) {
+			int color = argb[argb_offset + i];
+			int r = (color >> 16) & 0xff;
+			int g = (color >> 8) & 0xff;
+			int b = color & 0xff;
+			luminance[luminance_offset + i] = (byte)Math.max(r, Math.max(g, b));
+		}
+	}
+
+	/** Returns a greyscale image of half the width and height, by averaging 2x2 blocks.
+	 */
+	static byte [] downsample(byte [] luminance, int width, int height) {
+		int new_width = width/2;
+		int new_height = height/2;
+		byte [] result = new byte[new_width * new_height];
+		for(int y=0;y<new_height;y++) {
+			int row0 = 2*y*width;
+			int row1 = row0 + width;
+			for(int x=0;x<new_width;x++) {
+				int sum = (luminance[row0 + 2*x] & 0xff) + (luminance[row0 + 2*x + 1] & 0xff)
+						+ (luminance[row1 + 2*x] & 0xff) + (luminance[row1 + 2*x + 1] & 0xff);
+				result[y*new_width + x] = (byte)((sum + 2)/4);
+			}
+		}
+		return result;
+	}
+
+	/** Creates the MTB for a greyscale image, using the same thresholds as create_mtb.rs.
+	 */
+	static MTB createMTB(byte [] luminance, int width, int height, int median_value) {
+		MTB mtb = new MTB(width, height);
+		for(int y=0;y<height;y++) {
+			int row = y*mtb.words_per_row;
+			for(int x=0;x<width;x++) {
+				int value = luminance[y*width + x] & 0xff;
+				long bit = 1L << (x & 63);
+				int word = row + (x >> 6);
+				if( Math.abs(value - median_value) > noise_threshold_c ) {
+					mtb.valid_bits[word] |= bit;
+					if( value > median_value )
+						mtb.threshold_bits[word] |= bit;
+				}
+			}
+		}
+		return mtb;
+	}
+
+	/** Returns the 64 bits of a row starting at pixel x = word*64 + off_x, where pixels outside of
+	 *  the row are treated as 0.
+	 */
+	private static long getShiftedWord(long [] bits, int row_start, int words_per_row, int word, int off_x) {
+		int start = word*64 + off_x;
+		int src_word = start >> 6; // n.b., arithmetic shift, so rounds down for negative values
+		int bit = start & 63;
+		long result = 0;
+		if( src_word >= 0 && src_word < words_per_row ) {
+			result = bits[row_start + src_word] >>> bit;
+		}
+		if( bit != 0 && src_word+1 >= 0 && src_word+1 < words_per_row ) {
+			result |= bits[row_start + src_word + 1] << (64 - bit);
+		}
+		return result;
+	}
+
+	/** Returns the number of pixels that differ between mtb0 at (x, y) and mtb1 at
+	 *  (x + off_x, y + off_y), ignoring pixels that are noisy in either bitmap, or outside of mtb1.
+	 */
+	static long computeError(MTB mtb0, MTB mtb1, int off_x, int off_y) {
+		return computeError(mtb0, mtb1, off_x, off_y, 0, 0, mtb0.width, mtb0.height);
+	}
+
+	/** As computeError(MTB, MTB, int, int), but only compares the pixels of mtb0 in the region
+	 *  [x0, x1) x [y0, y1). To compare candidate offsets, they should all be scored over the same
+	 *  region, within which every candidate offset stays inside mtb1.
+	 */
+	static long computeError(MTB mtb0, MTB mtb1, int off_x, int off_y, int x0, int y0, int x1, int y1) {
+		long error = 0;
+		int first_word = x0 >> 6;
+		int last_word = (x1 - 1) >> 6;
+		long first_mask = -1L << (x0 & 63);
+		long last_mask = (x1 & 63) == 0 ? -1L : (-1L >>> (64 - (x1 & 63)));
+		for(int y=y0;y<y1;y++) {
+			int src_y = y + off_y;
+			if( src_y < 0 || src_y >= mtb1.height )
+				continue;
+			int row0 = y*mtb0.words_per_row;
+			int row1 = src_y*mtb1.words_per_row;
+			for(int word=first_word;word<=last_word;word++) {
+				long bits1 = getShiftedWord(mtb1.threshold_bits, row1, mtb1.words_per_row, word, off_x);
+				long valid1 = getShiftedWord(mtb1.valid_bits, row1, mtb1.words_per_row, word, off_x);
+				long diff = (mtb0.threshold_bits[row0 + word] ^ bits1) & mtb0.valid_bits[row0 + word] & valid1;
+				if( word == first_word )
+					diff &= first_mask;
+				if( word == last_word )
+					diff &= last_mask;
+				error += Long.bitCount(diff);
+			}
+		}
+		return error;
+	}
+
+	private static class CandidateTask extends RecursiveAction {
+		private final MTB mtb0;
+		private final MTB mtb1;
+		private final int off_x;
+		private final int off_y;
+		private final int margin_x;
+		private final int margin_y;
+		long error;
+
+		CandidateTask(MTB mtb0, MTB mtb1, int off_x, int off_y, int margin_x, int margin_y) {
+			this.mtb0 = mtb0;
+			this.mtb1 = mtb1;
+			this.off_x = off_x;
+			this.off_y = off_y;
+			this.margin_x = margin_x;
+			this.margin_y = margin_y;
+		}
+
+		@Override
+		protected void compute() {
+			error = computeError(mtb0, mtb1, off_x, off_y, margin_x, margin_y, mtb0.width - margin_x, mtb0.height - margin_y);
+		}
+	}
+
+	/** Returns the pyramid of MTBs for an image, where entry i has been downsampled by
+	 *  scales[i].
+	 */
+	private static MTB [] createPyramid(byte [] luminance, int width, int height, int median_value, int [] scales) {
+		MTB [] pyramid = new MTB[scales.length];
+		int scale = 1;
+		// scales are ordered from coarsest to finest, so work backwards
+		for(int i=scales.length-1;i>=0;i--) {
+			while( scale < scales[i] ) {
+				luminance = downsample(luminance, width, height);
+				width /= 2;
+				height /= 2;
+				scale *= 2;
+			}
+			pyramid[i] = createMTB(luminance, width, height, median_value);
+		}
+		return pyramid;
+	}
+
+	/** Computes the offsets to align the supplied images. The contract is the same as for
+	 *  HDRProcessor.autoAlignment(): offsets_x[i], offsets_y[i] are such that evaluating image i at
+	 *  (x + offsets_x[i], y + offsets_y[i]) corresponds to (x, y) on the base image.
+	 * @param luminances        Greyscale images (see computeLuminance()), each of size width*height.
+	 *                          An entry may be null if that image isn't suitable for alignment, in
+	 *                          which case its offset will be left at 0.
+	 * @param median_values     The median luminance for each image.
+	 * @param base_index        The index of the image that the other images are aligned to.
+	 * @param initial_step_size As in HDRProcessor.autoAlignment(), the largest offset that may be
+	 *                          found is initial_step_size-1. Should be a power of 2.
+	 * @param min_step_size     The resolution of the returned offsets. Should be a power of 2.
+	 */
+	public void align(byte [][] luminances, int width, int height, int [] median_values, int base_index, int initial_step_size, int min_step_size, int [] offsets_x, int [] offsets_y) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "align");
+			Log.d(TAG, "width: " + width);
+			Log.d(TAG, "height: " + height);
+			Log.d(TAG, "initial_step_size: " + initial_step_size);
+			Log.d(TAG, "min_step_size: " + min_step_size);
+		}
+		long time_s = System.currentTimeMillis();
+		for(int i=0;i<luminances.length;i++) {
+			offsets_x[i] = 0;
+			offsets_y[i] = 0;
+		}
+		if( luminances[base_index] == null ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "base image not suitable for image alignment");
+			return;
+		}
+
+		// same sequence of step sizes as HDRProcessor.autoAlignment()
+		int n_levels = 0;
+		for(int step_size=initial_step_size;step_size>min_step_size;step_size/=2) {
+			n_levels++;
+		}
+		int [] step_sizes = new int[n_levels];
+		int [] scales = new int[n_levels];
+		for(int i=0,step_size=initial_step_size;i<n_levels;i++) {
+			step_size /= 2;
+			step_sizes[i] = step_size;
+			// don't downsample so far that the images are too small to compare - n.b., this only
+			// limits the resolution of the level, the step sizes still follow the halving sequence
+			int scale = step_size;
+			while( scale > 1 && (width/scale < 8 || height/scale < 8) ) {
+				scale /= 2;
+			}
+			scales[i] = scale;
+		}
+
+		MTB [] pyramid0 = createPyramid(luminances[base_index], width, height, median_values[base_index], scales);
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time after creating base pyramid: " + (System.currentTimeMillis() - time_s));
+
+		CandidateTask [] tasks = new CandidateTask[9];
+		for(int i=0;i<luminances.length;i++) {
+			if( i == base_index ) {
+				// don't need to align the "base" reference image
+				continue;
+			}
+			if( luminances[i] == null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "image " + i + " not suitable for image alignment");
+				continue;
+			}
+			MTB [] pyramid1 = createPyramid(luminances[i], width, height, median_values[i], scales);
+
+			for(int level=0;level<n_levels;level++) {
+				int scale = scales[level];
+				int step_size = step_sizes[level];
+				// offsets found so far are always a multiple of 2*step_size, hence of scale
+				int level_off_x = offsets_x[i]/scale;
+				int level_off_y = offsets_y[i]/scale;
+				int level_step = step_size/scale; // can be > 1 if we clamped the scale above
+				// score all candidates over the same region, where every candidate stays inside the image
+				MTB level_mtb0 = pyramid0[level];
+				int margin_x = Math.min(Math.abs(level_off_x) + level_step, (level_mtb0.width-1)/2);
+				int margin_y = Math.min(Math.abs(level_off_y) + level_step, (level_mtb0.height-1)/2);
+				for(int c=0;c<9;c++) {
+					int dx = c % 3 - 1;
+					int dy = c / 3 - 1;
+					tasks[c] = new CandidateTask(level_mtb0, pyramid1[level], level_off_x + dx*level_step, level_off_y + dy*level_step, margin_x, margin_y);
+					pool.execute(tasks[c]);
+				}
+				int best_id = -1;
+				long best_error = -1;
+				for(int c=0;c<9;c++) {
+					tasks[c].join();
+					if( MyDebug.LOG )
+						Log.d(TAG, "    errors[" + c + "]: " + tasks[c].error);
+					// n.b., as with align_mtb.rs, ties are resolved in favour of the first candidate
+					if( best_id == -1 || tasks[c].error < best_error ) {
+						best_error = tasks[c].error;
+						best_id = c;
+					}
+				}
+				offsets_x[i] += (best_id % 3 - 1) * step_size;
+				offsets_y[i] += (best_id / 3 - 1) * step_size;
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "image " + i + " step_size " + step_size + " scale " + scale + " best_id " + best_id + " error: " + best_error);
+					Log.d(TAG, "offsets_x is now: " + offsets_x[i]);
+					Log.d(TAG, "offsets_y is now: " + offsets_y[i]);
+				}
+			}
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "### time for align: " + (System.currentTimeMillis() - time_s));
+	}
+}
@@ -149,6 +149,7 @@ public class MainActivity extends Activity {
 	public volatile boolean test_have_angle;
 	public volatile float test_angle;
 	public volatile String test_last_saved_image;
+	public volatile int test_n_saving_images; // number of calls to savingImage(true) not yet balanced by savingImage(false)
 
 	private static final float WATER_DENSITY_FRESHWATER = 1.0f;
 	private static final float WATER_DENSITY_SALTWATER = 1.03f;
@@ -1324,6 +1325,7 @@ public class MainActivity extends Activity {
 		soundPoolManager.releaseSound();
 		applicationInterface.clearLastImages(); // this should happen when pausing the preview, but call explicitly just to be safe
 		applicationInterface.getDrawPreview().clearGhostImage();
+		applicationInterface.getImageSaver().writeLatencyReport();
 		preview.onPause();
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "onPause: total time to pause: " + (System.currentTimeMillis() - debug_time));
@@ -1597,6 +1599,7 @@ public class MainActivity extends Activity {
 				case "preference_keep_display_on":
 				case "preference_max_brightness":
 				case "preference_hdr_save_expo":
+				case "preference_hdr_algorithm":
 				case "preference_front_camera_mirror":
 				case "preference_stamp":
 				case "preference_stamp_dateformat":
@@ -1900,6 +1903,7 @@ public class MainActivity extends Activity {
 		}
 
 		imageQueueChanged(); // needed at least for changing photo mode, but might as well call it always
+		applicationInterface.updateHDRProcessorSettings();
 
 		if( !keep_popup ) {
 			mainUI.destroyPopup(); // important as we don't want to use a cached popup
@@ -1936,6 +1940,18 @@ public class MainActivity extends Activity {
 							Log.d(TAG, "camera2_fake_flash changed");
 						need_reopen = true;
 					}
+					// similarly need to reopen if zero shutter lag changed, as it can only be set before the preview is started
+					if( applicationInterface.getZeroShutterLagBudget() != preview.getCameraController().getZeroShutterLag() ) {
+						if( MyDebug.LOG )
+							Log.d(TAG, "zero shutter lag changed");
+						need_reopen = true;
+					}
+					// and if preview analysis changed, as the analysis stream is part of the capture session
+					if( applicationInterface.usePreviewAnalysis() != preview.getCameraController().getPreviewAnalysis() ) {
+						if( MyDebug.LOG )
+							Log.d(TAG, "preview analysis changed");
+						need_reopen = true;
+					}
 				}
 			}
 		}
@@ -2497,6 +2513,10 @@ public class MainActivity extends Activity {
 	void savingImage(final boolean started) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "savingImage: " + started);
+		if( started )
+			test_n_saving_images++;
+		else
+			test_n_saving_images--;
 
 		this.runOnUiThread(new Runnable() {
 			public void run() {
@@ -13,6 +13,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import io.wizkers.opencamera.CameraController.CameraController;
+import io.wizkers.opencamera.CameraController.CaptureResultCache;
 import io.wizkers.opencamera.CameraController.RawImage;
 import io.wizkers.opencamera.Preview.ApplicationInterface;
 import io.wizkers.opencamera.Preview.BasicApplicationInterface;
@@ -143,6 +144,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		
 		this.imageSaver = new ImageSaver(main_activity);
 		this.imageSaver.start();
+		updateHDRProcessorSettings();
 
         if( savedInstanceState != null ) {
 			// load the things we saved in onSaveInstanceState().
@@ -966,7 +968,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		}
 
 		int photo_cost = imageSaver.computePhotoCost(n_raw > 0, n_jpegs);
-    	if( imageSaver.queueWouldBlock(photo_cost) ) {
+		long photo_bytes = ImageSaver.computePhotoBytes(n_raw > 0, getSaveRequestKind(), n_jpegs, main_activity.getPreview().getCurrentPictureSize());
+    	if( imageSaver.queueWouldBlock(n_raw > 0, photo_cost, photo_bytes) ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
 			return false;
@@ -1153,6 +1156,23 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		return sharedPreferences.getBoolean(PreferenceKeys.FocusBracketingAddInfinityPreferenceKey, false);
 	}
 
+	/** Returns the algorithm to use for merging images in HDR photo mode.
+	 */
+	public HDRProcessor.HDRAlgorithm getHDRAlgorithmPref() {
+		String value = sharedPreferences.getString(PreferenceKeys.HDRAlgorithmPreferenceKey, "preference_hdr_algorithm_standard");
+		if( value.equals("preference_hdr_algorithm_exposure_fusion") )
+			return HDRProcessor.HDRAlgorithm.HDRALGORITHM_EXPOSURE_FUSION;
+		return HDRProcessor.HDRAlgorithm.HDRALGORITHM_STANDARD;
+	}
+
+	/** Whether to merge focus bracketed images into a single image, see FocusStacker.
+	 */
+	public boolean isFocusBracketingStackPref() {
+		if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP )
+			return false;
+		return sharedPreferences.getBoolean(PreferenceKeys.FocusBracketingStackPreferenceKey, false);
+	}
+
 	/** Returns the current photo mode.
 	 *  Note, this always should return the true photo mode - if we're in video mode and taking a photo snapshot while
 	 *  video recording, the caller should override. We don't override here, as this preference may be used to affect how
@@ -1237,9 +1257,26 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		return false;
 	}
 
+	/** Returns the kind of processing the ImageSaver will do for photos in the current photo mode, for estimating the
+	 *  memory needed.
+	 */
+	private SaveMemoryBudget.RequestKind getSaveRequestKind() {
+		switch( getPhotoMode() ) {
+			case DRO:
+			case HDR:
+				return SaveMemoryBudget.RequestKind.HDR;
+			case NoiseReduction:
+				return SaveMemoryBudget.RequestKind.AVERAGE;
+			case FocusBracketing:
+				return isFocusBracketingStackPref() ? SaveMemoryBudget.RequestKind.FOCUS_STACK : SaveMemoryBudget.RequestKind.JPEG;
+			default:
+				return SaveMemoryBudget.RequestKind.JPEG;
+		}
+	}
+
 	@Override
 	public int getMaxRawImages() {
-    	return imageSaver.getMaxDNG();
+    	return imageSaver.getMaxDNG(main_activity.getPreview().getCurrentPictureSize());
 	}
 
     @Override
@@ -1260,6 +1297,57 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		return sharedPreferences.getBoolean(PreferenceKeys.Camera2PhotoVideoRecordingPreferenceKey, true);
 	}
 
+	@Override
+	public long getZeroShutterLagBudget() {
+		String value = sharedPreferences.getString(PreferenceKeys.Camera2ZeroShutterLagPreferenceKey, "0");
+		long budget_mb = 0;
+		try {
+			budget_mb = Long.parseLong(value);
+		}
+		catch(NumberFormatException exception) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "zero shutter lag budget invalid format: " + value);
+		}
+		return budget_mb * 1024 * 1024;
+	}
+
+	/** Applies the debugging options for how HDRProcessor processes images. Called on creation,
+	 *  and from MainActivity.updateForSettings().
+	 */
+	void updateHDRProcessorSettings() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "updateHDRProcessorSettings");
+		HDRProcessor hdrProcessor = imageSaver.getHDRProcessor();
+		boolean hdr_cpu = sharedPreferences.getBoolean(PreferenceKeys.HDRCPUPreferenceKey, false);
+		hdrProcessor.setHDRBackend(hdr_cpu ? HDRProcessor.HDRBackend.HDRBACKEND_CPU : HDRProcessor.HDRBackend.HDRBACKEND_RENDERSCRIPT);
+		hdrProcessor.setUsePyramidAlignment(sharedPreferences.getBoolean(PreferenceKeys.HDRPyramidAlignmentPreferenceKey, false));
+		boolean nr_fixed16 = sharedPreferences.getBoolean(PreferenceKeys.NRFixed16PreferenceKey, false);
+		hdrProcessor.setAvgFormat(nr_fixed16 ? AvgAccumulator.Format.FORMAT_FIXED16 : AvgAccumulator.Format.FORMAT_FLOAT32);
+		hdrProcessor.setUseCLAHECPU(sharedPreferences.getBoolean(PreferenceKeys.CLAHECPUPreferenceKey, false));
+	}
+
+	@Override
+	public int getBurstCapturesInFlight() {
+		String value = sharedPreferences.getString(PreferenceKeys.Camera2BurstInFlightPreferenceKey, "2");
+		int n_captures = 2;
+		try {
+			n_captures = Integer.parseInt(value);
+		}
+		catch(NumberFormatException exception) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "burst captures in flight invalid format: " + value);
+		}
+		return n_captures;
+	}
+
+	@Override
+	public boolean usePreviewAnalysis() {
+		// the analysis stream is only needed if something is shown from it, see DrawPreview
+		return !sharedPreferences.getString(PreferenceKeys.HistogramPreferenceKey, "preference_histogram_off").equals("preference_histogram_off") ||
+				!sharedPreferences.getString(PreferenceKeys.ZebraStripesPreferenceKey, "0").equals("0") ||
+				sharedPreferences.getBoolean(PreferenceKeys.FocusPeakingPreferenceKey, false);
+	}
+
 	@Override
     public boolean isTestAlwaysFocus() {
 		if( MyDebug.LOG ) {
@@ -1704,6 +1792,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
 	@Override
 	public void onPhotoError() {
+		// the remaining images of a noise reduction capture won't arrive
+		imageSaver.abortImageAverage();
 	    main_activity.getPreview().showToast(null, R.string.failed_to_take_picture);
 	}
 
@@ -1848,16 +1938,21 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 	public void cameraClosed() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "cameraClosed");
+		imageSaver.abortImageAverage();
 		main_activity.getMainUI().clearSeekBar();
 		main_activity.getMainUI().destroyPopup(); // need to close popup - and when camera reopened, it may have different settings
 		drawPreview.clearContinuousFocusMove();
 	}
 	
 	void updateThumbnail(Bitmap thumbnail, boolean is_video) {
+		updateThumbnail(thumbnail, is_video, true);
+	}
+
+	void updateThumbnail(Bitmap thumbnail, boolean is_video, boolean want_thumbnail_animation) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "updateThumbnail");
 		main_activity.updateGalleryIcon(thumbnail);
-		drawPreview.updateThumbnail(thumbnail, is_video, true);
+		drawPreview.updateThumbnail(thumbnail, is_video, want_thumbnail_animation);
 		if( !is_video && this.getPausePreviewPref() ) {
 			drawPreview.showLastImage();
 		}
@@ -2189,7 +2284,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		return image_capture_intent;
 	}
 	
-	private boolean saveImage(boolean is_hdr, boolean save_expo, List<byte []> images, Date current_date) {
+	/** Passes the images to the ImageSaver, which takes ownership of them (see JpegBuffer).
+	 */
+	private boolean saveImage(boolean is_hdr, boolean is_focus_stack, boolean save_expo, List<JpegBuffer> images, Date current_date) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "saveImage");
 
@@ -2238,11 +2335,26 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		String custom_tag_copyright = sharedPreferences.getString(PreferenceKeys.ExifCopyrightPreferenceKey, "");
 
 		int iso = 800; // default value if we can't get ISO
-		if( main_activity.getPreview().getCameraController() != null ) {
-			if( main_activity.getPreview().getCameraController().captureResultHasIso() ) {
-				iso = main_activity.getPreview().getCameraController().captureResultIso();
+		long exposure_time = 0; // 0 if not known
+		CameraController camera_controller = main_activity.getPreview().getCameraController();
+		if( camera_controller != null ) {
+			// use the capture result of the frame that produced the (first) image, if still available; otherwise fall
+			// back to the latest capture result
+			CaptureResultCache.Record record = new CaptureResultCache.Record();
+			if( images.get(0).getTimestamp() != 0 && camera_controller.getCaptureResult(images.get(0).getTimestamp(), record) ) {
 				if( MyDebug.LOG )
-					Log.d(TAG, "iso: " + iso);
+					Log.d(TAG, "found capture result for frame: " + record.get(CaptureResultCache.FIELD_FRAME_NUMBER));
+				if( record.has(CaptureResultCache.FIELD_ISO) )
+					iso = (int)record.get(CaptureResultCache.FIELD_ISO);
+				if( record.has(CaptureResultCache.FIELD_EXPOSURE_TIME) )
+					exposure_time = record.get(CaptureResultCache.FIELD_EXPOSURE_TIME);
+			}
+			else if( camera_controller.captureResultHasIso() ) {
+				iso = camera_controller.captureResultIso();
+			}
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "iso: " + iso);
+				Log.d(TAG, "exposure_time: " + exposure_time);
 			}
 		}
 
@@ -2296,6 +2408,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 					mirror,
 					current_date,
 					iso,
+					exposure_time,
 					preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_units_distance,
 					store_location, location, store_geo_direction, geo_direction,
 					custom_tag_artist, custom_tag_copyright,
@@ -2306,6 +2419,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		}
 		else {
 			success = imageSaver.saveImageJpeg(do_in_background, is_hdr,
+					is_hdr ? getHDRAlgorithmPref() : HDRProcessor.HDRAlgorithm.HDRALGORITHM_STANDARD,
+					is_focus_stack,
 					// fast burst shots come is as separate requests, so we need to make sure we get the filename suffixes right
 					photo_mode == PhotoMode.FastBurst,
 					photo_mode == PhotoMode.FastBurst ? n_capture_images : 0, // n.b., n_capture_images will be 1 for first image, not 0, but this is fine for naming of burst images
@@ -2317,6 +2432,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 					mirror,
 					current_date,
 					iso,
+					exposure_time,
 					preference_stamp, preference_textstamp, font_size, color, pref_style, preference_stamp_dateformat, preference_stamp_timeformat, preference_stamp_gpsformat, preference_units_distance,
 					store_location, location, store_geo_direction, geo_direction,
 					custom_tag_artist, custom_tag_copyright,
@@ -2330,7 +2446,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 	}
 
     @Override
-	public boolean onPictureTaken(byte [] data, Date current_date) {
+	public boolean onPictureTaken(JpegBuffer data, Date current_date) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "onPictureTaken");
 
@@ -2338,11 +2454,11 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		if( MyDebug.LOG )
 			Log.d(TAG, "n_capture_images is now " + n_capture_images);
 
-		List<byte []> images = new ArrayList<>();
+		List<JpegBuffer> images = new ArrayList<>();
 		images.add(data);
 
 		boolean is_hdr = false;
-		// note, multi-image HDR and expo is handled under onBurstPictureTaken; here we look for DRO, as that's the photo mode to set
+		// note, multi-image HDR and expo is handled under onBurstPictureBuffersTaken; here we look for DRO, as that's the photo mode to set
 		// single image HDR
 		PhotoMode photo_mode = getPhotoMode();
 		if( main_activity.getPreview().isVideo() ) {
@@ -2354,7 +2470,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 		if( photo_mode == PhotoMode.DRO ) {
 			is_hdr = true;
 		}
-		boolean success = saveImage(is_hdr, false, images, current_date);
+		boolean success = saveImage(is_hdr, false, false, images, current_date);
 
 		if( MyDebug.LOG )
 			Log.d(TAG, "onPictureTaken complete, success: " + success);
@@ -2363,9 +2479,9 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 	}
     
     @Override
-	public boolean onBurstPictureTaken(List<byte []> images, Date current_date) {
+	public boolean onBurstPictureBuffersTaken(List<JpegBuffer> images, Date current_date) {
 		if( MyDebug.LOG )
-			Log.d(TAG, "onBurstPictureTaken: received " + images.size() + " images");
+			Log.d(TAG, "onBurstPictureBuffersTaken: received " + images.size() + " images");
 
 		boolean success;
 		PhotoMode photo_mode = getPhotoMode();
@@ -2382,16 +2498,19 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 			if( MyDebug.LOG )
 				Log.d(TAG, "save_expo: " + save_expo);
 
-			success = saveImage(true, save_expo, images, current_date);
+			success = saveImage(true, false, save_expo, images, current_date);
 		}
 		else {
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "exposure/focus bracketing mode mode");
 				if( photo_mode != PhotoMode.ExpoBracketing && photo_mode != PhotoMode.FocusBracketing )
-					Log.e(TAG, "onBurstPictureTaken called with unexpected photo mode?!: " + photo_mode);
+					Log.e(TAG, "onBurstPictureBuffersTaken called with unexpected photo mode?!: " + photo_mode);
 			}
-			
-			success = saveImage(false, true, images, current_date);
+
+			boolean is_focus_stack = photo_mode == PhotoMode.FocusBracketing && isFocusBracketingStackPref();
+			if( MyDebug.LOG )
+				Log.d(TAG, "is_focus_stack: " + is_focus_stack);
+			success = saveImage(false, is_focus_stack, true, images, current_date);
 		}
 		return success;
     }
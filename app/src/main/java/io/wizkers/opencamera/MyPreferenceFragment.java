@@ -323,6 +323,17 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
 			Preference pref = findPreference("preference_hdr_save_expo");
 			PreferenceGroup pg = (PreferenceGroup)this.findPreference("preference_screen_photo_settings");
         	pg.removePreference(pref);
+
+			pref = findPreference("preference_hdr_algorithm");
+        	pg.removePreference(pref);
+
+			pref = findPreference("preference_hdr_cpu");
+			pg = (PreferenceGroup)this.findPreference("preference_category_photo_debugging");
+			pg.removePreference(pref);
+
+			pref = findPreference("preference_hdr_pyramid_alignment");
+			pg = (PreferenceGroup)this.findPreference("preference_category_photo_debugging");
+			pg.removePreference(pref);
 		}
 
 		final boolean supports_expo_bracketing = bundle.getBoolean("supports_expo_bracketing");
@@ -341,6 +352,10 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
 			Preference pref = findPreference("preference_nr_save");
 			PreferenceGroup pg = (PreferenceGroup)this.findPreference("preference_screen_photo_settings");
         	pg.removePreference(pref);
+
+			pref = findPreference("preference_nr_fixed16");
+			pg = (PreferenceGroup)this.findPreference("preference_category_photo_debugging");
+			pg.removePreference(pref);
 		}
 
 		final boolean supports_exposure_compensation = bundle.getBoolean("supports_exposure_compensation");
@@ -486,6 +501,13 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
         	pg.removePreference(pref);
         }
         
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+        	// HDR and DRO photo modes require Lollipop, see MainActivity.supportsHDR() and supportsDRO()
+        	Preference pref = findPreference("preference_clahe_cpu");
+        	PreferenceGroup pg = (PreferenceGroup)this.findPreference("preference_category_photo_debugging");
+        	pg.removePreference(pref);
+        }
+
         if( Build.VERSION.SDK_INT < Build.VERSION_CODES.N ) {
         	// the required ExifInterface tags requires Android N or greater
         	Preference pref = findPreference("preference_category_exif_tags");
@@ -512,6 +534,16 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
         	Preference pref = findPreference("preference_show_iso");
         	PreferenceGroup pg = (PreferenceGroup)this.findPreference("preference_screen_gui");
         	pg.removePreference(pref);
+
+			// preview analysis requires Camera2 API
+			pref = findPreference("preference_histogram");
+			pg.removePreference(pref);
+
+			pref = findPreference("preference_zebra_stripes");
+			pg.removePreference(pref);
+
+			pref = findPreference("preference_focus_peaking");
+			pg.removePreference(pref);
         }
 
         if( !using_android_l ) {
@@ -526,6 +558,14 @@ public class MyPreferenceFragment extends PreferenceFragment implements OnShared
 			pref = findPreference("preference_camera2_photo_video_recording");
 			pg = (PreferenceGroup)this.findPreference("preference_category_photo_debugging");
 			pg.removePreference(pref);
+
+			pref = findPreference("preference_camera2_zero_shutter_lag");
+			pg = (PreferenceGroup)this.findPreference("preference_category_photo_debugging");
+			pg.removePreference(pref);
+
+			pref = findPreference("preference_camera2_burst_in_flight");
+			pg = (PreferenceGroup)this.findPreference("preference_category_photo_debugging");
+			pg.removePreference(pref);
         }
         else {
         	if( !supports_photo_video_recording ) {
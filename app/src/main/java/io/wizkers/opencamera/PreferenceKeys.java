@@ -89,6 +89,8 @@ public class PreferenceKeys {
 
 	public static final String FocusBracketingAddInfinityPreferenceKey = "preference_focus_bracketing_add_infinity";
 
+	public static final String FocusBracketingStackPreferenceKey = "preference_focus_bracketing_stack";
+
 	public static final String VolumeKeysPreferenceKey = "preference_volume_keys";
 
 	public static final String AudioControlPreferenceKey = "preference_audio_control";
@@ -103,6 +105,8 @@ public class PreferenceKeys {
 
 	public static final String HDRSaveExpoPreferenceKey = "preference_hdr_save_expo";
 
+	public static final String HDRAlgorithmPreferenceKey = "preference_hdr_algorithm";
+
 	public static final String NRSaveExpoPreferenceKey = "preference_nr_save";
 
 	public static final String FastBurstNImagesPreferenceKey = "preference_fast_burst_n_images";
@@ -155,6 +159,18 @@ public class PreferenceKeys {
 
 	public static final String Camera2PhotoVideoRecordingPreferenceKey = "preference_camera2_photo_video_recording";
 
+	public static final String Camera2ZeroShutterLagPreferenceKey = "preference_camera2_zero_shutter_lag";
+
+	public static final String Camera2BurstInFlightPreferenceKey = "preference_camera2_burst_in_flight";
+
+	public static final String HDRCPUPreferenceKey = "preference_hdr_cpu";
+
+	public static final String HDRPyramidAlignmentPreferenceKey = "preference_hdr_pyramid_alignment";
+
+	public static final String NRFixed16PreferenceKey = "preference_nr_fixed16";
+
+	public static final String CLAHECPUPreferenceKey = "preference_clahe_cpu";
+
 	public static final String UIPlacementPreferenceKey = "preference_ui_placement";
 
 	public static final String TouchCapturePreferenceKey = "preference_touch_capture";
@@ -237,6 +253,8 @@ public class PreferenceKeys {
 
 	public static final String ShowFreeMemoryPreferenceKey = "preference_free_memory";
 
+	public static final String ShowSaveLatencyPreferenceKey = "preference_show_save_latency";
+
 	public static final String ShowTimePreferenceKey = "preference_show_time";
 
 	public static final String ShowBatteryPreferenceKey = "preference_show_battery";
@@ -245,6 +263,12 @@ public class PreferenceKeys {
 
 	public static final String ShowCropGuidePreferenceKey = "preference_crop_guide";
 
+	public static final String HistogramPreferenceKey = "preference_histogram";
+
+	public static final String ZebraStripesPreferenceKey = "preference_zebra_stripes";
+
+	public static final String FocusPeakingPreferenceKey = "preference_focus_peaking";
+
 	public static final String FaceDetectionPreferenceKey = "preference_face_detection";
 
 	public static final String GhostImagePreferenceKey = "preference_ghost_image";
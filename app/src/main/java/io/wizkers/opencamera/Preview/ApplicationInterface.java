@@ -13,6 +13,7 @@ import android.util.Pair;
 import android.view.MotionEvent;
 
 import io.wizkers.opencamera.CameraController.RawImage;
+import io.wizkers.opencamera.JpegBuffer;
 
 /** Provides communication between the Preview and the rest of the application
  *  - so in theory one can drop the Preview/ (and CameraController/) classes
@@ -114,6 +115,9 @@ public interface ApplicationInterface {
 	boolean useCamera2FakeFlash(); // whether to enable CameraController.setUseCamera2FakeFlash() for Camera2 API
 	boolean useCamera2FastBurst(); // whether to enable Camera2's captureBurst() for faster taking of expo-bracketing photos (generally should be true, but some devices have problems with captureBurst())
 	boolean usePhotoVideoRecording(); // whether to enable support for taking photos when recording video (if not supported, this won't be called)
+	long getZeroShutterLagBudget(); // the memory in bytes for CameraController.setZeroShutterLag() for Camera2 API, or 0 to disable
+	int getBurstCapturesInFlight(); // the number of captures for CameraController.setBurstCapturesInFlight() for Camera2 API
+	boolean usePreviewAnalysis(); // whether to enable CameraController.setPreviewAnalysis() for Camera2 API
 
 	// for testing purposes:
 	boolean isTestAlwaysFocus(); // if true, pretend autofocus always successful
@@ -173,8 +177,8 @@ public interface ApplicationInterface {
 	
 	// callbacks
 	void onDrawPreview(Canvas canvas);
-	boolean onPictureTaken(byte [] data, Date current_date);
-	boolean onBurstPictureTaken(List<byte []> images, Date current_date);
+	boolean onPictureTaken(JpegBuffer data, Date current_date); // should call data.release() when done with the image
+	boolean onBurstPictureBuffersTaken(List<JpegBuffer> images, Date current_date); // should call release() on each image when done with it
 	boolean onRawPictureTaken(RawImage raw_image, Date current_date);
 	void onCaptureStarted(); // called immediately before we start capturing the picture
 	void onPictureCompleted(); // called after all picture callbacks have been called and returned
@@ -11,6 +11,7 @@ import android.view.MotionEvent;
 
 import io.wizkers.opencamera.CameraController.CameraController;
 import io.wizkers.opencamera.CameraController.RawImage;
+import io.wizkers.opencamera.JpegBuffer;
 
 /** A partial implementation of ApplicationInterface that provides "default" implementations. So
  *  sub-classing this is easier than implementing ApplicationInterface directly - you only have to
@@ -358,6 +359,21 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 		return true;
 	}
 
+	@Override
+	public long getZeroShutterLagBudget() {
+		return 0;
+	}
+
+	@Override
+	public int getBurstCapturesInFlight() {
+		return 2;
+	}
+
+	@Override
+	public boolean usePreviewAnalysis() {
+		return false;
+	}
+
 	@Override
 	public boolean isTestAlwaysFocus() {
 		return false;
@@ -583,8 +599,31 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 
 	}
 
+	/** Copies the image to a byte array and calls onPictureTaken(byte [], Date), so that subclasses written for byte
+	 *  arrays still work. Subclasses should override this instead, to avoid the copy.
+	 */
+	@Override
+	public boolean onPictureTaken(JpegBuffer data, Date current_date) {
+		byte [] bytes = data.toByteArray();
+		data.release();
+		return onPictureTaken(bytes, current_date);
+	}
+
+	public boolean onPictureTaken(byte [] data, Date current_date) {
+		return false;
+	}
+
+	/** Copies the images to byte arrays and calls onBurstPictureTaken(), so that subclasses written for byte arrays
+	 *  still work. Subclasses should override this instead, to avoid the copies.
+	 */
 	@Override
-	public boolean onBurstPictureTaken(List<byte[]> images, Date current_date) {
+	public boolean onBurstPictureBuffersTaken(List<JpegBuffer> images, Date current_date) {
+		List<byte []> data = JpegBuffer.toByteArrays(images);
+		JpegBuffer.releaseAll(images);
+		return onBurstPictureTaken(data, current_date);
+	}
+
+	public boolean onBurstPictureTaken(List<byte []> images, Date current_date) {
 		return false;
 	}
 
@@ -1,6 +1,7 @@
 package io.wizkers.opencamera.Preview;
 
 import io.wizkers.opencamera.CameraController.RawImage;
+import io.wizkers.opencamera.JpegBuffer;
 import io.wizkers.opencamera.MyDebug;
 import io.wizkers.opencamera.R;
 import io.wizkers.opencamera.TakePhoto;
@@ -455,7 +456,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 		}
 	}
 
-	private Matrix getCameraToPreviewMatrix() {
+	/** Returns the matrix that maps camera coordinates (from (-1000, -1000) to (1000, 1000)) to the preview view. The
+	 *  matrix is reused, so callers shouldn't modify or keep it.
+	 */
+	public Matrix getCameraToPreviewMatrix() {
 		calculateCameraToPreviewMatrix();
 		return camera_to_preview_matrix;
 	}
@@ -1510,6 +1514,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 	    		if( applicationInterface.useCamera2FakeFlash() ) {
 	    			camera_controller_local.setUseCamera2FakeFlash(true);
 	    		}
+	    		camera_controller_local.setZeroShutterLag(applicationInterface.getZeroShutterLagBudget());
+	    		camera_controller_local.setPreviewAnalysis(applicationInterface.usePreviewAnalysis());
 	        }
 	        else
 				camera_controller_local = new CameraController1(cameraId, cameraErrorCallback);
@@ -5622,7 +5628,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				}
 			}
 			
-			public void onPictureTaken(byte[] data) {
+			public void onPictureTaken(JpegBuffer data) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "onPictureTaken");
     	    	// n.b., this is automatically run in a different thread
@@ -5647,16 +5653,16 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				}
 			}
 
-			public void onBurstPictureTaken(List<byte[]> images) {
+			public void onBurstPictureTaken(List<JpegBuffer> images) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "onBurstPictureTaken");
     	    	// n.b., this is automatically run in a different thread
 				initDate();
 
 				success = true;
-				if( !applicationInterface.onBurstPictureTaken(images, current_date) ) {
+				if( !applicationInterface.onBurstPictureBuffersTaken(images, current_date) ) {
 					if( MyDebug.LOG )
-						Log.e(TAG, "applicationInterface.onBurstPictureTaken failed");
+						Log.e(TAG, "applicationInterface.onBurstPictureBuffersTaken failed");
 					success = false;
 				}
     	    }
@@ -5692,6 +5698,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				if( MyDebug.LOG )
 					Log.d(TAG, "use_camera2_fast_burst? " + use_camera2_fast_burst);
 				camera_controller.setUseExpoFastBurst( use_camera2_fast_burst );
+				camera_controller.setBurstCapturesInFlight( applicationInterface.getBurstCapturesInFlight() );
 			}
     		if( MyDebug.LOG )
     			Log.d(TAG, "about to call takePicture");
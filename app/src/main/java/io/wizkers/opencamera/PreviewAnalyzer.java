@@ -0,0 +1,359 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/** Analyses low resolution YUV frames from the preview, for the on screen histogram, zebra stripes
+ *  (marking overexposed areas) and focus peaking (marking in focus edges, found with a Sobel
+ *  filter).
+ *  Frames are passed to analyze() on a single analysis thread, and the results are read with
+ *  acquireResult() on a single UI thread. Results are triple buffered, so neither thread waits for
+ *  the other (other than briefly swapping buffers), and the analysis can overwrite a result whilst
+ *  the UI thread is still drawing the previous one. All buffers are reused, so no memory is
+ *  allocated per frame, unless the size of the frames changes.
+ *  The zebra stripes and focus peaking are returned as an overlay of ARGB colours at the
+ *  resolution of the frames, which is transparent elsewhere.
+ *  The rate of analysed frames and the time taken per frame are kept as metrics.
+ */
+public class PreviewAnalyzer {
+	private static final String TAG = "PreviewAnalyzer";
+
+	public static final int ZEBRA_COLOR = 0xa0000000;
+	public static final int PEAKING_COLOR = 0xffff0000;
+	public static final int DEFAULT_ZEBRA_THRESHOLD = 245; // luma at or above this is marked as overexposed
+	public static final int DEFAULT_PEAKING_THRESHOLD = 256; // Sobel magnitude (|gx|+|gy|) above this is marked as in focus
+
+	private static final int zebra_stripe_width_c = 4; // width of the stripes, in pixels of the frame
+	private static final double metrics_smoothing_c = 0.1; // weight of each new frame in the smoothed metrics
+
+	/** The result of analysing a frame. Results are owned by the PreviewAnalyzer, and only valid until
+	 *  the next call to acquireResult().
+	 */
+	public static class Result {
+		private int width;
+		private int height;
+		private long timestamp;
+		private long sequence;
+		private boolean has_histogram;
+		private final int [] histogram_luma = new int[256];
+		private final int [] histogram_red = new int[256];
+		private final int [] histogram_green = new int[256];
+		private final int [] histogram_blue = new int[256];
+		private boolean has_overlay;
+		private int [] overlay = new int[0];
+		private int n_overexposed;
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		/** Returns the timestamp of the frame, as passed to analyze().
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/** Returns a number that increases with each frame, so callers can tell if the result has
+		 *  changed.
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		public boolean hasHistogram() {
+			return has_histogram;
+		}
+
+		public int [] getHistogramLuma() {
+			return histogram_luma;
+		}
+
+		public int [] getHistogramRed() {
+			return histogram_red;
+		}
+
+		public int [] getHistogramGreen() {
+			return histogram_green;
+		}
+
+		public int [] getHistogramBlue() {
+			return histogram_blue;
+		}
+
+		/** Whether the result has an overlay, i.e., if zebra stripes or focus peaking are enabled.
+		 */
+		public boolean hasOverlay() {
+			return has_overlay;
+		}
+
+		/** Returns the overlay of ARGB colours, of getWidth()*getHeight() pixels (the array may be
+		 *  longer).
+		 */
+		public int [] getOverlay() {
+			return overlay;
+		}
+
+		/** Returns the number of pixels at or above the zebra threshold.
+		 */
+		public int getNOverexposed() {
+			return n_overexposed;
+		}
+	}
+
+	// options, may be set from any thread
+	private volatile boolean histogram_enabled;
+	private volatile boolean zebra_enabled;
+	private volatile int zebra_threshold = DEFAULT_ZEBRA_THRESHOLD;
+	private volatile boolean peaking_enabled;
+	private volatile int peaking_threshold = DEFAULT_PEAKING_THRESHOLD;
+
+	// only accessed on the analysis thread
+	private byte [] luma = new byte[0];
+	private byte [] chroma_u = new byte[0];
+	private byte [] chroma_v = new byte[0];
+	private Result back = new Result(); // the result being written by analyze()
+	private long last_start_ns;
+
+	// access must be synchronized on this
+	private Result ready = new Result(); // the latest complete result, if has_ready
+	private boolean has_ready;
+	private long n_frames;
+	private double mean_interval_ns;
+	private double mean_cost_ns;
+
+	// only accessed on the UI thread
+	private Result front; // the result returned by acquireResult()
+
+	public void setHistogramEnabled(boolean histogram_enabled) {
+		this.histogram_enabled = histogram_enabled;
+	}
+
+	/**
+	 * @param zebra_enabled Whether to mark overexposed pixels with zebra stripes.
+	 * @param zebra_threshold The luma (0-255) at or above which pixels are marked.
+	 */
+	public void setZebra(boolean zebra_enabled, int zebra_threshold) {
+		this.zebra_enabled = zebra_enabled;
+		this.zebra_threshold = zebra_threshold;
+	}
+
+	/**
+	 * @param peaking_enabled Whether to mark in focus edges.
+	 * @param peaking_threshold The Sobel magnitude (|gx|+|gy|, up to 2040) above which pixels are marked.
+	 */
+	public void setFocusPeaking(boolean peaking_enabled, int peaking_threshold) {
+		this.peaking_enabled = peaking_enabled;
+		this.peaking_threshold = peaking_threshold;
+	}
+
+	/** Whether any analysis is enabled; if not, analyze() does nothing.
+	 */
+	public boolean isEnabled() {
+		return histogram_enabled || zebra_enabled || peaking_enabled;
+	}
+
+	/** Analyses a frame in YUV_420_888 format, and publishes the result for acquireResult(). Must only
+	 *  be called from a single thread. The buffers are read with absolute or bulk gets, so their
+	 *  positions may be modified.
+	 * @param y_plane         The luma plane, with a pixel stride of 1.
+	 * @param u_plane         The U (Cb) plane, subsampled by 2 in each direction.
+	 * @param v_plane         The V (Cr) plane, subsampled by 2 in each direction.
+	 * @param uv_pixel_stride The pixel stride of the chroma planes, e.g., 2 if they're interleaved.
+	 */
+	public void analyze(int width, int height, ByteBuffer y_plane, int y_row_stride, ByteBuffer u_plane, ByteBuffer v_plane, int uv_row_stride, int uv_pixel_stride, long timestamp) {
+		final boolean histogram_enabled = this.histogram_enabled;
+		final boolean zebra_enabled = this.zebra_enabled;
+		final boolean peaking_enabled = this.peaking_enabled;
+		if( !histogram_enabled && !zebra_enabled && !peaking_enabled ) {
+			return;
+		}
+		final int zebra_threshold = this.zebra_threshold;
+		final int peaking_threshold = this.peaking_threshold;
+		long start_ns = System.nanoTime();
+
+		int n_pixels = width*height;
+		int chroma_width = (width+1)/2;
+		int chroma_height = (height+1)/2;
+		if( luma.length < n_pixels ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "allocate buffers for " + width + " x " + height);
+			luma = new byte[n_pixels];
+			chroma_u = new byte[chroma_width*chroma_height];
+			chroma_v = new byte[chroma_width*chroma_height];
+		}
+		for(int y=0;y<height;y++) {
+			y_plane.position(y*y_row_stride);
+			y_plane.get(luma, y*width, width);
+		}
+		if( histogram_enabled ) {
+			for(int cy=0,c=0;cy<chroma_height;cy++) {
+				int row = cy*uv_row_stride;
+				for(int cx=0;cx<chroma_width;cx++,c++) {
+					int index = row + cx*uv_pixel_stride;
+					chroma_u[c] = u_plane.get(index);
+					chroma_v[c] = v_plane.get(index);
+				}
+			}
+		}
+
+		Result result = back;
+		result.width = width;
+		result.height = height;
+		result.timestamp = timestamp;
+		result.has_histogram = histogram_enabled;
+		result.has_overlay = zebra_enabled || peaking_enabled;
+		if( result.has_overlay && result.overlay.length < n_pixels ) {
+			result.overlay = new int[n_pixels];
+		}
+
+		if( histogram_enabled ) {
+			computeHistograms(result, width, height, chroma_width);
+		}
+
+		int n_overexposed = 0;
+		if( result.has_overlay ) {
+			final int [] overlay = result.overlay;
+			final byte [] luma = this.luma;
+			for(int y=0,i=0;y<height;y++) {
+				boolean interior_row = y > 0 && y < height-1;
+				for(int x=0;x<width;x++,i++) {
+					int pixel = 0;
+					int value = luma[i] & 0xff;
+					if( value >= zebra_threshold ) {
+						n_overexposed++;
+						if( zebra_enabled && ((x + y)/zebra_stripe_width_c) % 2 == 0 ) {
+							pixel = ZEBRA_COLOR;
+						}
+					}
+					if( pixel == 0 && peaking_enabled && interior_row && x > 0 && x < width-1 ) {
+						int above = i-width;
+						int below = i+width;
+						int tl = luma[above-1] & 0xff, tc = luma[above] & 0xff, tr = luma[above+1] & 0xff;
+						int ml = luma[i-1] & 0xff, mr = luma[i+1] & 0xff;
+						int bl = luma[below-1] & 0xff, bc = luma[below] & 0xff, br = luma[below+1] & 0xff;
+						int gx = (tr + 2*mr + br) - (tl + 2*ml + bl);
+						int gy = (bl + 2*bc + br) - (tl + 2*tc + tr);
+						if( Math.abs(gx) + Math.abs(gy) > peaking_threshold ) {
+							pixel = PEAKING_COLOR;
+						}
+					}
+					overlay[i] = pixel;
+				}
+			}
+		}
+		else {
+			for(int i=0;i<n_pixels;i++) {
+				if( (luma[i] & 0xff) >= zebra_threshold )
+					n_overexposed++;
+			}
+		}
+		result.n_overexposed = n_overexposed;
+
+		long end_ns = System.nanoTime();
+		publish(start_ns, end_ns);
+	}
+
+	/** Computes the histograms of luma and of RGB, converting from YUV with the BT.601 full range
+	 *  coefficients (as used by JPEG) in fixed point.
+	 */
+	private void computeHistograms(Result result, int width, int height, int chroma_width) {
+		final int [] histogram_luma = result.histogram_luma;
+		final int [] histogram_red = result.histogram_red;
+		final int [] histogram_green = result.histogram_green;
+		final int [] histogram_blue = result.histogram_blue;
+		for(int j=0;j<256;j++) {
+			histogram_luma[j] = 0;
+			histogram_red[j] = 0;
+			histogram_green[j] = 0;
+			histogram_blue[j] = 0;
+		}
+		final byte [] luma = this.luma;
+		for(int y=0,i=0;y<height;y++) {
+			int chroma_row = (y/2)*chroma_width;
+			for(int x=0;x<width;x++,i++) {
+				int value = luma[i] & 0xff;
+				int c = chroma_row + x/2;
+				int u = (chroma_u[c] & 0xff) - 128;
+				int v = (chroma_v[c] & 0xff) - 128;
+				// coefficients are scaled by 256: 1.402, 0.344, 0.714, 1.772
+				int r = value + ((359*v) >> 8);
+				int g = value - ((88*u + 183*v) >> 8);
+				int b = value + ((454*u) >> 8);
+				histogram_luma[value]++;
+				histogram_red[Math.max(0, Math.min(255, r))]++;
+				histogram_green[Math.max(0, Math.min(255, g))]++;
+				histogram_blue[Math.max(0, Math.min(255, b))]++;
+			}
+		}
+	}
+
+	/** Makes the result in back available to acquireResult(), and updates the metrics.
+	 */
+	private synchronized void publish(long start_ns, long end_ns) {
+		Result result = back;
+		result.sequence = ++n_frames;
+		back = ready;
+		ready = result;
+		has_ready = true;
+
+		long cost_ns = end_ns - start_ns;
+		if( n_frames == 1 ) {
+			mean_cost_ns = cost_ns;
+		}
+		else {
+			mean_cost_ns += metrics_smoothing_c * (cost_ns - mean_cost_ns);
+			long interval_ns = start_ns - last_start_ns;
+			if( n_frames == 2 )
+				mean_interval_ns = interval_ns;
+			else
+				mean_interval_ns += metrics_smoothing_c * (interval_ns - mean_interval_ns);
+		}
+		last_start_ns = start_ns;
+	}
+
+	/** Returns the latest result, or null if no frames have been analysed yet. The result is only valid
+	 *  until the next call. Must only be called from a single thread.
+	 */
+	public Result acquireResult() {
+		synchronized( this ) {
+			if( has_ready ) {
+				Result result = ready;
+				ready = front != null ? front : new Result();
+				front = result;
+				has_ready = false;
+			}
+		}
+		return front;
+	}
+
+	public synchronized long getNFrames() {
+		return n_frames;
+	}
+
+	/** Returns the smoothed rate of analysed frames per second, or 0 if not known.
+	 */
+	public synchronized double getFps() {
+		return mean_interval_ns > 0 ? 1.0e9/mean_interval_ns : 0.0;
+	}
+
+	/** Returns the smoothed time taken to analyse each frame, in nanoseconds.
+	 */
+	public synchronized double getMeanCost() {
+		return mean_cost_ns;
+	}
+
+	/** Returns a single line summary of the metrics, e.g., for display on screen, or null if no frames
+	 *  have been analysed.
+	 */
+	public synchronized String getSummary() {
+		if( n_frames == 0 )
+			return null;
+		return String.format(Locale.US, "preview analysis: %.1f fps, %.1fms per frame", getFps(), mean_cost_ns/1.0e6);
+	}
+}
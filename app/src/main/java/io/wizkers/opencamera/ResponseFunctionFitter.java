@@ -0,0 +1,335 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+/** Estimates the response functions used by HDRProcessor, i.e., how pixels from each image should
+ *  be adjusted to match the exposure level of the base image, as y = parameter_A * x + parameter_B.
+ *  Samples are taken on a regular grid. They are fed in one row at a time, so that the caller can
+ *  read each sampled row of each image once with a bulk read (e.g., Bitmap.getPixels()), and
+ *  samples for all of the images are collected in a single pass. All samples are stored in
+ *  preallocated primitive arrays.
+ */
+public class ResponseFunctionFitter {
+	private static final String TAG = "ResponseFunctionFitter";
+
+	private static final int n_samples_c = 100;
+	private static final int n_w_samples = (int)Math.sqrt(n_samples_c);
+	private static final int n_h_samples = n_samples_c/n_w_samples;
+
+	private final int width;
+	private final int height;
+	private final int base_index;
+	private final int [] offsets_x;
+	private final int [] offsets_y;
+	// samples for each image
+	private final double [][] x_samples;
+	private final double [][] y_samples;
+	private final double [][] weights;
+	private final int [] n_samples;
+	private final double [] sum_in;
+	private final double [] sum_out;
+
+	/**
+	 * @param width      The width of the images.
+	 * @param height     The height of the images.
+	 * @param base_index The index of the image whose exposure the others should be mapped to.
+	 * @param offsets_x  The offsets for each image, as computed by auto-alignment.
+	 * @param offsets_y  The offsets for each image, as computed by auto-alignment.
+	 */
+	public ResponseFunctionFitter(int width, int height, int base_index, int [] offsets_x, int [] offsets_y) {
+		final int n_images = offsets_x.length;
+		this.width = width;
+		this.height = height;
+		this.base_index = base_index;
+		this.offsets_x = offsets_x;
+		this.offsets_y = offsets_y;
+		// +1 to allow for the dummy sample, see fit()
+		this.x_samples = new double[n_images][n_samples_c+1];
+		this.y_samples = new double[n_images][n_samples_c+1];
+		this.weights = new double[n_images][n_samples_c+1];
+		this.n_samples = new int[n_images];
+		this.sum_in = new double[n_images];
+		this.sum_out = new double[n_images];
+	}
+
+	/** Returns the number of sample rows, i.e., the number of times addSampleRow() should be called.
+	 */
+	public int getNSampleRows() {
+		return n_h_samples;
+	}
+
+	/** Returns the y coordinate of the base image for the supplied sample row.
+	 */
+	public int getSampleRowY(int row) {
+		double alpha = ((double)row+1.0) / ((double)n_h_samples+1.0);
+		return (int)(alpha * height);
+	}
+
+	private int getSampleX(int column) {
+		double beta = ((double)column+1.0) / ((double)n_w_samples+1.0);
+		return (int)(beta * width);
+	}
+
+	/** Calculates average of RGB values for the supplied color.
+	 */
+	private static double averageRGB(int color) {
+		int r = (color & 0xFF0000) >> 16;
+		int g = (color & 0xFF00) >> 8;
+		int b = (color & 0xFF);
+		return (r + g + b)/3.0;
+		//return 0.27*r + 0.67*g + 0.06*b;
+	}
+
+	/** Adds the samples for a row. Should be called once for each sample row, with row from 0 to
+	 *  getNSampleRows()-1.
+	 * @param base_row   The pixels of the base image at y = getSampleRowY(row), in ARGB format.
+	 * @param image_rows For each image i, the pixels of row (y + offsets_y[i]) of that image (in ARGB
+	 *                   format), or null if that row is outside of the image. The entry for the
+	 *                   base image is ignored.
+	 */
+	public void addSampleRow(int [] base_row, int [][] image_rows) {
+		for(int i=0;i<image_rows.length;i++) {
+			if( i == base_index || image_rows[i] == null )
+				continue;
+			for(int column=0;column<n_w_samples;column++) {
+				int x_coord = getSampleX(column);
+				if( x_coord + offsets_x[i] < 0 || x_coord + offsets_x[i] >= width ) {
+					continue;
+				}
+				double in_value = averageRGB(image_rows[i][x_coord + offsets_x[i]]);
+				double out_value = averageRGB(base_row[x_coord]);
+				sum_in[i] += in_value;
+				sum_out[i] += out_value;
+				x_samples[i][n_samples[i]] = in_value;
+				y_samples[i][n_samples[i]] = out_value;
+				n_samples[i]++;
+			}
+		}
+	}
+
+	/** Whether the row of image i that corresponds to sample row y on the base image is inside the
+	 *  image.
+	 */
+	public boolean isRowInside(int i, int y) {
+		return y + offsets_y[i] >= 0 && y + offsets_y[i] < height;
+	}
+
+	public int getNSamples(int i) {
+		return n_samples[i];
+	}
+
+	public double [] getXSamples(int i) {
+		return x_samples[i];
+	}
+
+	public double [] getYSamples(int i) {
+		return y_samples[i];
+	}
+
+	/** Only valid after fit() has been called for image i.
+	 */
+	public double [] getWeights(int i) {
+		return weights[i];
+	}
+
+	/** Computes the response function for image i, from the samples added by addSampleRow().
+	 * @param result Array of length 2, which will store parameter_A and parameter_B respectively.
+	 */
+	public void fit(int i, float [] result) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "fit: " + i);
+		if( n_samples[i] == 0 ) {
+			Log.e(TAG, "no samples for response function!");
+			// shouldn't happen, but could do with a very large offset - just make up a dummy sample
+			double in_value = 255.0;
+			double out_value = 255.0;
+			sum_in[i] += in_value;
+			sum_out[i] += out_value;
+			x_samples[i][0] = in_value;
+			y_samples[i][0] = out_value;
+			n_samples[i] = 1;
+		}
+		final int n = n_samples[i];
+		final double [] xs = x_samples[i];
+		final double [] ys = y_samples[i];
+		final double [] ws = weights[i];
+		double avg_in = sum_in[i] / n;
+		double avg_out = sum_out[i] / n;
+		boolean is_dark_exposure = avg_in < avg_out;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "avg_in: " + avg_in);
+			Log.d(TAG, "avg_out: " + avg_out);
+			Log.d(TAG, "is_dark_exposure: " + is_dark_exposure);
+		}
+
+		// calculate weights
+		double min_value = xs[0];
+		double max_value = xs[0];
+		double min_value_y = ys[0];
+		double max_value_y = ys[0];
+		for(int j=1;j<n;j++) {
+			min_value = Math.min(min_value, xs[j]);
+			max_value = Math.max(max_value, xs[j]);
+			min_value_y = Math.min(min_value_y, ys[j]);
+			max_value_y = Math.max(max_value_y, ys[j]);
+		}
+		double med_value = 0.5*(min_value + max_value);
+		double med_value_y = 0.5*(min_value_y + max_value_y);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "min_value: " + min_value);
+			Log.d(TAG, "max_value: " + max_value);
+			Log.d(TAG, "med_value: " + med_value);
+			Log.d(TAG, "min_value_y: " + min_value_y);
+			Log.d(TAG, "max_value_y: " + max_value_y);
+			Log.d(TAG, "med_value_y: " + med_value_y);
+		}
+		for(int j=0;j<n;j++) {
+			double value = xs[j];
+			double weight = (value <= med_value) ? value - min_value : max_value - value;
+			if( is_dark_exposure ) {
+				// for dark exposure, also need to worry about the y values (which will be brighter than x) being overexposed
+				double value_y = ys[j];
+				double weight_y = (value_y <= med_value_y) ? value_y - min_value_y : max_value_y - value_y;
+				if( weight_y < weight )
+					weight = weight_y;
+			}
+			ws[j] = weight;
+		}
+
+		fitLinear(xs, ys, ws, n, result);
+	}
+
+	/** Given a set of data Xi and Yi, this function estimates a relation between X and Y
+	 *  using weighted linear least squares, as Y = A X + B. If this fails to give a sensible
+	 *  result, we fall back to Y = A X.
+	 * @param x_samples Array of Xi samples. Must be more than 3 samples.
+	 * @param y_samples Array of Yi samples.
+	 * @param weights   Array of weights.
+	 * @param n         The number of samples to read from the arrays.
+	 * @param result    Array of length 2, which will store A and B respectively.
+	 */
+	public static void fitLinear(double [] x_samples, double [] y_samples, double [] weights, int n, float [] result) {
+		if( n <= 3 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "not enough samples");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		else if( x_samples.length < n || y_samples.length < n || weights.length < n ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "unequal number of samples");
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+
+		float parameter_A = 0.0f;
+		float parameter_B = 0.0f;
+
+		// linear Y = AX + B
+		boolean done = false;
+		double sum_wx = 0.0;
+		double sum_wx2 = 0.0;
+		double sum_wxy = 0.0;
+		double sum_wy = 0.0;
+		double sum_w = 0.0;
+		for(int i=0;i<n;i++) {
+			double x = x_samples[i];
+			double y = y_samples[i];
+			double w = weights[i];
+			sum_wx += w * x;
+			sum_wx2 += w * x * x;
+			sum_wxy += w * x * y;
+			sum_wy += w * y;
+			sum_w += w;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "sum_wx = " + sum_wx);
+			Log.d(TAG, "sum_wx2 = " + sum_wx2);
+			Log.d(TAG, "sum_wxy = " + sum_wxy);
+			Log.d(TAG, "sum_wy = " + sum_wy);
+			Log.d(TAG, "sum_w = " + sum_w);
+		}
+		// need to solve:
+		// A . sum_wx + B . sum_w - sum_wy = 0
+		// A . sum_wx2 + B . sum_wx - sum_wxy = 0
+		// =>
+		// A . sum_wx^2 + B . sum_w . sum_wx - sum_wy . sum_wx = 0
+		// A . sum_w . sum_wx2 + B . sum_w . sum_wx - sum_w . sum_wxy = 0
+		// A ( sum_wx^2 - sum_w . sum_wx2 ) = sum_wy . sum_wx - sum_w . sum_wxy
+		// then plug A into:
+		// B . sum_w = sum_wy - A . sum_wx
+		double A_numer = sum_wy * sum_wx - sum_w * sum_wxy;
+		double A_denom = sum_wx * sum_wx - sum_w * sum_wx2;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "A_numer = " + A_numer);
+			Log.d(TAG, "A_denom = " + A_denom);
+		}
+		if( Math.abs(A_denom) < 1.0e-5 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "denom too small");
+			// will fall back to linear Y = AX
+		}
+		else {
+			parameter_A = (float)(A_numer / A_denom);
+			parameter_B = (float)((sum_wy - parameter_A * sum_wx) / sum_w);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "parameter_A = " + parameter_A);
+				Log.d(TAG, "parameter_B = " + parameter_B);
+			}
+			// we don't want a function that is not monotonic, or can be negative!
+			if( parameter_A < 1.0e-5 ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "parameter A too small or negative: " + parameter_A);
+			}
+			else if( parameter_B < 1.0e-5 ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "parameter B too small or negative: " + parameter_B);
+			}
+			else {
+				done = true;
+			}
+		}
+
+		if( !done ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "falling back to linear Y = AX");
+			// linear Y = AX
+			double numer = 0.0;
+			double denom = 0.0;
+			for(int i=0;i<n;i++) {
+				double x = x_samples[i];
+				double y = y_samples[i];
+				double w = weights[i];
+				numer += w*x*y;
+				denom += w*x*x;
+			}
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "numer = " + numer);
+				Log.d(TAG, "denom = " + denom);
+			}
+
+			if( denom < 1.0e-5 ) {
+				if( MyDebug.LOG )
+					Log.e(TAG, "denom too small");
+				parameter_A = 1.0f;
+			}
+			else {
+				parameter_A = (float)(numer / denom);
+				// we don't want a function that is not monotonic!
+				if( parameter_A < 1.0e-5 ) {
+					if( MyDebug.LOG )
+						Log.e(TAG, "parameter A too small or negative: " + parameter_A);
+					parameter_A = 1.0e-5f;
+				}
+			}
+			parameter_B = 0.0f;
+		}
+
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "parameter_A = " + parameter_A);
+			Log.d(TAG, "parameter_B = " + parameter_B);
+		}
+		result[0] = parameter_A;
+		result[1] = parameter_B;
+	}
+}
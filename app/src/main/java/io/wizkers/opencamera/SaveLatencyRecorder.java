@@ -0,0 +1,184 @@
+package io.wizkers.opencamera;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Records how long each stage of saving a photo takes, as a histogram per stage, so that slow saves
+ *  can be diagnosed on devices in the field, rather than only from debug logging.
+ *  Each histogram has fixed buckets with power of two bounds in milliseconds: bucket 0 counts
+ *  durations less than 1ms, bucket i (for i>0) counts durations in [2^(i-1), 2^i) ms, and the last
+ *  bucket counts everything longer. Recording a duration only updates atomic counters, without
+ *  locking or allocating, so the recorder can always be enabled, and may be called from any thread.
+ *  Reading the statistics whilst durations are being recorded may return a mixture of old and new
+ *  values, which is fine for display.
+ */
+public class SaveLatencyRecorder {
+	public enum Stage {
+		QUEUE_WAIT("queue"), // from the request being added to the queue, to processing starting
+		DECODE("decode"), // decompressing jpegs to bitmaps
+		PROCESS("hdr/nr"), // merging images for HDR, noise reduction or focus stacking
+		STABILISE("stabilise"), // rotating, levelling or mirroring
+		STAMP("stamp"), // drawing the date, location or text stamp
+		COMPRESS("compress"), // compressing bitmaps to jpegs
+		WRITE("write"), // writing the image file (including DNGs, and copying to a SAF uri)
+		EXIF("exif"), // preparing or updating the exif tags
+		MEDIA_SCAN("scan"), // requesting the file to be scanned by the media scanner
+		TOTAL("total"); // from the request being added to the queue, to the image being saved
+
+		private final String name;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	public static final int n_buckets_c = 18; // so the last bucket counts durations of over 65s
+	private static final int n_stages_c = Stage.values().length;
+
+	private final AtomicLongArray bucket_counts = new AtomicLongArray(n_stages_c * n_buckets_c);
+	private final AtomicLongArray total_ms = new AtomicLongArray(n_stages_c);
+	private final AtomicLongArray max_ms = new AtomicLongArray(n_stages_c);
+
+	/** Returns the current time, to be passed to recordSince().
+	 */
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/** Records the duration of a stage that started at start_time, as returned by now().
+	 */
+	public void recordSince(Stage stage, long start_time) {
+		record(stage, (now() - start_time)/1000000);
+	}
+
+	/** Records the duration of a stage, in milliseconds.
+	 */
+	public void record(Stage stage, long duration_ms) {
+		duration_ms = Math.max(duration_ms, 0);
+		int index = stage.ordinal();
+		bucket_counts.incrementAndGet(index * n_buckets_c + getBucket(duration_ms));
+		total_ms.addAndGet(index, duration_ms);
+		long max = max_ms.get(index);
+		while( duration_ms > max && !max_ms.compareAndSet(index, max, duration_ms) ) {
+			max = max_ms.get(index);
+		}
+	}
+
+	/** Returns the index of the bucket for a duration in milliseconds.
+	 */
+	public static int getBucket(long duration_ms) {
+		if( duration_ms <= 0 )
+			return 0;
+		return Math.min(64 - Long.numberOfLeadingZeros(duration_ms), n_buckets_c-1);
+	}
+
+	/** Returns the exclusive upper bound of a bucket in milliseconds, or Long.MAX_VALUE for the
+	 *  last bucket.
+	 */
+	public static long getBucketUpperBound(int bucket) {
+		if( bucket >= n_buckets_c-1 )
+			return Long.MAX_VALUE;
+		return 1L << bucket;
+	}
+
+	public long getBucketCount(Stage stage, int bucket) {
+		return bucket_counts.get(stage.ordinal() * n_buckets_c + bucket);
+	}
+
+	/** Returns the number of durations recorded for the stage.
+	 */
+	public long getCount(Stage stage) {
+		long count = 0;
+		for(int i=0;i<n_buckets_c;i++) {
+			count += getBucketCount(stage, i);
+		}
+		return count;
+	}
+
+	/** Returns the mean duration in milliseconds, or 0 if nothing has been recorded for the stage.
+	 */
+	public long getMean(Stage stage) {
+		long count = getCount(stage);
+		return count == 0 ? 0 : total_ms.get(stage.ordinal()) / count;
+	}
+
+	public long getMax(Stage stage) {
+		return max_ms.get(stage.ordinal());
+	}
+
+	/** Returns an upper bound for the supplied percentile (in the range [0, 100]) of durations in
+	 *  milliseconds, i.e., the upper bound of the bucket containing that percentile, limited to the
+	 *  maximum duration recorded. Returns 0 if nothing has been recorded for the stage.
+	 */
+	public long getPercentile(Stage stage, float percentile) {
+		long count = getCount(stage);
+		if( count == 0 )
+			return 0;
+		long rank = Math.max((long)Math.ceil(count * percentile / 100.0), 1);
+		long cumulative = 0;
+		for(int i=0;i<n_buckets_c;i++) {
+			cumulative += getBucketCount(stage, i);
+			if( cumulative >= rank ) {
+				return Math.min(getBucketUpperBound(i), getMax(stage));
+			}
+		}
+		return getMax(stage);
+	}
+
+	/** Whether anything has been recorded.
+	 */
+	public boolean hasData() {
+		return getCount(Stage.TOTAL) > 0 || getCount(Stage.QUEUE_WAIT) > 0;
+	}
+
+	/** Clears all the histograms.
+	 */
+	public void reset() {
+		for(int i=0;i<bucket_counts.length();i++) {
+			bucket_counts.set(i, 0);
+		}
+		for(int i=0;i<n_stages_c;i++) {
+			total_ms.set(i, 0);
+			max_ms.set(i, 0);
+		}
+	}
+
+	/** Returns a single line summary of a stage, e.g., for display on screen, or null if nothing has
+	 *  been recorded for the stage.
+	 */
+	public String getSummary(Stage stage) {
+		long count = getCount(stage);
+		if( count == 0 )
+			return null;
+		return String.format(Locale.US, "%s: %d, p50 %dms, p95 %dms, max %dms", stage.getName(), count, getPercentile(stage, 50.0f), getPercentile(stage, 95.0f), getMax(stage));
+	}
+
+	/** Writes a report of all the stages, including the bucket counts.
+	 */
+	public void writeReport(Writer writer) throws IOException {
+		writer.write("stage, count, mean ms, p50 ms, p90 ms, p99 ms, max ms\n");
+		for(Stage stage : Stage.values()) {
+			writer.write(String.format(Locale.US, "%s, %d, %d, %d, %d, %d, %d\n", stage.getName(), getCount(stage), getMean(stage), getPercentile(stage, 50.0f), getPercentile(stage, 90.0f), getPercentile(stage, 99.0f), getMax(stage)));
+		}
+		writer.write("\nbuckets (upper bound ms)");
+		for(int i=0;i<n_buckets_c;i++) {
+			writer.write(", ");
+			writer.write(i == n_buckets_c-1 ? "inf" : String.valueOf(getBucketUpperBound(i)));
+		}
+		writer.write("\n");
+		for(Stage stage : Stage.values()) {
+			writer.write(stage.getName());
+			for(int i=0;i<n_buckets_c;i++) {
+				writer.write(", ");
+				writer.write(String.valueOf(getBucketCount(stage, i)));
+			}
+			writer.write("\n");
+		}
+	}
+}
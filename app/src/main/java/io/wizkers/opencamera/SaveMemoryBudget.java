@@ -0,0 +1,202 @@
+package io.wizkers.opencamera;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/** Admission control for the ImageSaver queue, based on an estimate of the peak memory (in bytes)
+ *  needed to save each request: the encoded JPEG or RAW data held by the request, plus the bitmaps
+ *  decoded for post-processing, plus intermediate buffers for HDR, noise reduction or focus
+ *  stacking. A new request is admitted if the estimates of all requests still being saved, including
+ *  the new one, fit within the budget, and the new request also fits within the memory that's
+ *  currently free (see ImageSaver.getFreeMemoryBytes(): from Android 8, bitmaps are allocated on the
+ *  native heap, so this isn't only the free Java heap). A request is always admitted if no other
+ *  requests are being saved, so that it's always possible to take a photo.
+ *  Metrics of the requests admitted are kept, see getSummary().
+ */
+public class SaveMemoryBudget {
+	private static final String TAG = "SaveMemoryBudget";
+
+	public enum RequestKind {
+		JPEG, // one or more JPEGs, saved individually
+		HDR, // JPEGs merged to a single HDR or DRO image
+		AVERAGE, // JPEGs averaged for noise reduction
+		FOCUS_STACK, // JPEGs merged by FocusStacker
+		RAW // a single RAW image saved as DNG
+	}
+
+	private static final float jpeg_bytes_per_pixel_c = 0.5f; // conservative estimate of the size of a high quality JPEG, for when the actual size isn't yet known
+	private static final int bitmap_bytes_per_pixel_c = 4; // ARGB_8888
+	private static final int raw_bytes_per_pixel_c = 2; // RAW_SENSOR is 16-bit
+	private static final int avg_bytes_per_pixel_c = 12; // worst case for the running average, of 3 floats per pixel (see AvgAccumulator)
+	private static final long min_reserve_c = 32*1024*1024;
+
+	private final long budget_bytes;
+	private long admitted_bytes; // sum of the estimates for requests that have been admitted but not yet released
+
+	// metrics
+	private int n_admitted; // number of requests admitted
+	private int n_over_budget; // number of requests admitted that took the admitted total over the budget
+	private long peak_admitted_bytes;
+
+	/**
+	 * @param budget_bytes The memory available for saving images, see computeBudget().
+	 */
+	public SaveMemoryBudget(long budget_bytes) {
+		if( budget_bytes <= 0 ) {
+			Log.e(TAG, "invalid budget_bytes " + budget_bytes);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.budget_bytes = budget_bytes;
+	}
+
+	/** Computes a budget for saving images, given the maximum heap size (Runtime.maxMemory()). The
+	 *  remainder is reserved for the rest of the application (e.g., the UI and the preview).
+	 */
+	public static long computeBudget(long max_heap_bytes) {
+		long reserve = Math.max(max_heap_bytes/4, min_reserve_c);
+		long budget = Math.max(max_heap_bytes - reserve, max_heap_bytes/2);
+		if( MyDebug.LOG )
+			Log.d(TAG, "max heap " + max_heap_bytes + " budget " + budget);
+		return budget;
+	}
+
+	/** Returns an estimate of the size of a JPEG with the supplied resolution.
+	 */
+	public static long estimateJpegBytes(int width, int height) {
+		return (long)(jpeg_bytes_per_pixel_c * (long)width * (long)height);
+	}
+
+	/** Returns an estimate of the peak memory needed to save a request.
+	 * @param kind          The kind of request.
+	 * @param n_images      The number of images in the request.
+	 * @param width         The resolution of the images.
+	 * @param height        The resolution of the images.
+	 * @param encoded_bytes The total size of the encoded images held by the request, or -1 if not
+	 *                      known, in which case this is estimated from the resolution.
+	 */
+	public static long estimateRequestBytes(RequestKind kind, int n_images, int width, int height, long encoded_bytes) {
+		long n_pixels = (long)width * (long)height;
+		long bitmap_bytes = bitmap_bytes_per_pixel_c * n_pixels;
+		if( encoded_bytes < 0 ) {
+			if( kind == RequestKind.RAW )
+				encoded_bytes = n_images * raw_bytes_per_pixel_c * n_pixels;
+			else
+				encoded_bytes = n_images * estimateJpegBytes(width, height);
+		}
+		switch( kind ) {
+			case JPEG:
+				// images are decoded one at a time for post-processing (auto-level, stamping etc), and the decoded bitmap
+				// is held until it's been compressed
+				return encoded_bytes + bitmap_bytes;
+			case HDR:
+				// all of the images are decoded, plus the output bitmap
+				return encoded_bytes + (n_images+1) * bitmap_bytes;
+			case AVERAGE:
+				// images are decoded one at a time and added to the running average, plus the output bitmap
+				return encoded_bytes + 2 * bitmap_bytes + avg_bytes_per_pixel_c * n_pixels;
+			case FOCUS_STACK:
+				// luminance of each image is held for alignment, and the images are decoded a strip at a time; the strips
+				// are small compared to the output bitmap, so allow for one extra bitmap
+				return encoded_bytes + n_images * n_pixels + 2 * bitmap_bytes;
+			case RAW:
+				// the DNG is written directly from the raw data
+				return encoded_bytes;
+			default:
+				if( MyDebug.LOG )
+					Log.e(TAG, "unknown request kind: " + kind);
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+		}
+	}
+
+	/** Whether a request with the supplied estimate would be admitted. This doesn't change the
+	 *  metrics, as it's polled by the UI.
+	 * @param bytes      The estimate for the request, see estimateRequestBytes().
+	 * @param free_bytes The memory currently free for saving images.
+	 */
+	public synchronized boolean wouldAdmit(long bytes, long free_bytes) {
+		boolean admit;
+		if( admitted_bytes == 0 ) {
+			// always allow one request
+			admit = true;
+		}
+		else {
+			admit = admitted_bytes + bytes <= budget_bytes && bytes <= free_bytes;
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "wouldAdmit: " + admit + " bytes " + bytes + " admitted " + admitted_bytes + " budget " + budget_bytes + " free " + free_bytes);
+		}
+		return admit;
+	}
+
+	/** Records that a request with the supplied estimate has been admitted. Should be matched by a
+	 *  call to release() when the request has been saved.
+	 */
+	public synchronized void admit(long bytes) {
+		n_admitted++;
+		readmit(bytes);
+		if( admitted_bytes > budget_bytes ) {
+			n_over_budget++;
+		}
+	}
+
+	/** As admit(), but for a request that was already counted by admit(), and has since been released
+	 *  whilst it's not holding any memory (e.g., whilst it's spooled to storage).
+	 */
+	public synchronized void readmit(long bytes) {
+		admitted_bytes += bytes;
+		peak_admitted_bytes = Math.max(peak_admitted_bytes, admitted_bytes);
+	}
+
+	/** Records that a request previously passed to admit() has been saved.
+	 */
+	public synchronized void release(long bytes) {
+		admitted_bytes -= bytes;
+		if( admitted_bytes < 0 ) {
+			Log.e(TAG, "admitted bytes has become negative: " + admitted_bytes);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+	}
+
+	/** Returns the maximum number of requests with the supplied estimate that can be admitted at once.
+	 */
+	public int getMaxRequests(long bytes) {
+		if( bytes <= 0 )
+			return Integer.MAX_VALUE;
+		// the first request is always admitted
+		return (int)Math.max(budget_bytes/bytes, 1);
+	}
+
+	public long getBudget() {
+		return budget_bytes;
+	}
+
+	public synchronized long getAdmittedBytes() {
+		return admitted_bytes;
+	}
+
+	public synchronized long getPeakAdmittedBytes() {
+		return peak_admitted_bytes;
+	}
+
+	public synchronized int getNAdmitted() {
+		return n_admitted;
+	}
+
+	public synchronized int getNOverBudget() {
+		return n_over_budget;
+	}
+
+	/** Returns a single line summary of the metrics, e.g., for display on screen, or null if no
+	 *  requests have been admitted.
+	 */
+	public synchronized String getSummary() {
+		if( n_admitted == 0 )
+			return null;
+		final long MB = 1024*1024;
+		return String.format(Locale.US, "save memory: %d, now %dMB, peak %dMB, budget %dMB, over %d", n_admitted, admitted_bytes/MB, peak_admitted_bytes/MB, budget_bytes/MB, n_over_budget);
+	}
+}
@@ -0,0 +1,226 @@
+package io.wizkers.opencamera;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/** A lookup table for the tonemapping curve of process_hdr.rs and HDRProcessorCPU, for a given set
+ *  of tonemapping parameters and white level (the maximum expected HDR value). This avoids evaluating
+ *  exp() or the rational functions of the tonemapping algorithms for every pixel, instead linearly
+ *  interpolating between entries of the table.
+ *  For Reinhard, the table stores the scale to apply to all channels as a function of the maximum of
+ *  the red, green and blue values; for the other algorithms, the table stores the output value for
+ *  each channel. HDR values outside of [0, white level] fall back to evaluating the curve directly.
+ *  Tables are cached (see getCached()), since the same parameters are often used for a sequence of
+ *  photos.
+ */
+public class TonemapLUT {
+	private static final String TAG = "TonemapLUT";
+
+	public static final int default_size_c = 4096;
+	private static final int cache_size_c = 8;
+
+	private final HDRProcessorCPU.TonemapParameters tonemap;
+	private final float max_value;
+	private final float scale; // table entries per unit of HDR value
+	private final float [] table;
+
+	/** Key for the cache of lookup tables.
+	 */
+	private static class Key {
+		private final HDRProcessor.TonemappingAlgorithm algorithm;
+		private final float tonemap_scale;
+		private final float linear_scale;
+		private final float W;
+		private final float max_value;
+		private final int size;
+
+		Key(HDRProcessorCPU.TonemapParameters tonemap, float max_value, int size) {
+			this.algorithm = tonemap.algorithm;
+			this.tonemap_scale = tonemap.tonemap_scale;
+			this.linear_scale = tonemap.linear_scale;
+			this.W = tonemap.W;
+			this.max_value = max_value;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if( !(o instanceof Key) )
+				return false;
+			Key that = (Key)o;
+			return this.algorithm == that.algorithm &&
+					Float.compare(this.tonemap_scale, that.tonemap_scale) == 0 &&
+					Float.compare(this.linear_scale, that.linear_scale) == 0 &&
+					Float.compare(this.W, that.W) == 0 &&
+					Float.compare(this.max_value, that.max_value) == 0 &&
+					this.size == that.size;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = algorithm.hashCode();
+			result = 31*result + Float.floatToIntBits(tonemap_scale);
+			result = 31*result + Float.floatToIntBits(linear_scale);
+			result = 31*result + Float.floatToIntBits(W);
+			result = 31*result + Float.floatToIntBits(max_value);
+			result = 31*result + size;
+			return result;
+		}
+	}
+
+	// least recently used cache of lookup tables; access must be synchronized on the map
+	private static final Map<Key, TonemapLUT> cache = new LinkedHashMap<Key, TonemapLUT>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, TonemapLUT> eldest) {
+			return size() > cache_size_c;
+		}
+	};
+
+	/**
+	 * @param tonemap   The tonemapping parameters.
+	 * @param max_value The white level, i.e., the maximum HDR value that the table covers. Should be
+	 *                  greater than 0.
+	 * @param size      The number of entries in the table. Should be at least 2.
+	 */
+	public TonemapLUT(HDRProcessorCPU.TonemapParameters tonemap, float max_value, int size) {
+		if( max_value <= 0.0f || size < 2 ) {
+			Log.e(TAG, "invalid max_value " + max_value + " or size " + size);
+			// throw RuntimeException, as this is a programming error
+			throw new RuntimeException();
+		}
+		this.tonemap = tonemap;
+		this.max_value = max_value;
+		this.scale = (size-1)/max_value;
+		this.table = new float[size];
+		for(int i=0;i<size;i++) {
+			table[i] = evaluate(i/scale);
+		}
+	}
+
+	/** Returns a lookup table for the supplied parameters and white level, with default_size_c
+	 *  entries. Tables are cached, so a table for the same parameters will be reused if it was
+	 *  recently requested.
+	 */
+	public static TonemapLUT getCached(HDRProcessorCPU.TonemapParameters tonemap, float max_value) {
+		Key key = new Key(tonemap, max_value, default_size_c);
+		synchronized( cache ) {
+			TonemapLUT lut = cache.get(key);
+			if( lut == null ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "create new lookup table for " + tonemap.algorithm + " max_value " + max_value);
+				lut = new TonemapLUT(tonemap, max_value, default_size_c);
+				cache.put(key, lut);
+			}
+			return lut;
+		}
+	}
+
+	/** Removes all lookup tables from the cache.
+	 */
+	public static void clearCache() {
+		synchronized( cache ) {
+			cache.clear();
+		}
+	}
+
+	public static int getCacheSize() {
+		synchronized( cache ) {
+			return cache.size();
+		}
+	}
+
+	/** Evaluates the tonemapping curve directly. For Reinhard this returns the scale to apply to
+	 *  each channel, given the maximum of the channels; otherwise this returns the (unclamped,
+	 *  unrounded) output value for a channel.
+	 */
+	public float evaluate(float x) {
+		switch( tonemap.algorithm ) {
+			case TONEMAPALGORITHM_CLAMP:
+				return x;
+			case TONEMAPALGORITHM_EXPONENTIAL:
+				return tonemap.linear_scale * 255.0f * (1.0f - (float)Math.exp( - HDRProcessorCPU.exposure_c * x / 255.0f ));
+			case TONEMAPALGORITHM_REINHARD:
+				return ( 255.0f / ( tonemap.tonemap_scale + x ) ) * tonemap.linear_scale;
+			case TONEMAPALGORITHM_FILMIC:
+				return tonemap.white_scale * HDRProcessorCPU.uncharted2Tonemap(HDRProcessorCPU.filmic_exposure_bias_c * x);
+			case TONEMAPALGORITHM_ACES:
+				return HDRProcessorCPU.aces(x/255.0f);
+			default:
+				if( MyDebug.LOG )
+					Log.e(TAG, "unknown tonemapping algorithm: " + tonemap.algorithm);
+				// throw RuntimeException, as this is a programming error
+				throw new RuntimeException();
+		}
+	}
+
+	/** As evaluate(), but interpolating from the lookup table where possible.
+	 */
+	public float lookup(float x) {
+		if( !(x >= 0.0f && x < max_value) ) {
+			// n.b., also catches NaN
+			return evaluate(x);
+		}
+		float fi = x * scale;
+		int i = (int)fi;
+		if( i >= table.length-1 ) {
+			// can happen due to floating point rounding
+			return table[table.length-1];
+		}
+		float alpha = fi - i;
+		return (1.0f-alpha)*table[i] + alpha*table[i+1];
+	}
+
+	private static int clampToByte(float value) {
+		int i = (int)(value + 0.5f);
+		return i < 0 ? 0 : i > 255 ? 255 : i;
+	}
+
+	/** Equivalent to HDRProcessorCPU.tonemap(), but using the lookup table.
+	 * @return The tonemapped pixel, in ARGB format.
+	 */
+	public int tonemap(float hdr_r, float hdr_g, float hdr_b) {
+		int out_r, out_g, out_b;
+		if( tonemap.algorithm == HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD ) {
+			float value = Math.max(hdr_r, Math.max(hdr_g, hdr_b));
+			float scale = lookup(value);
+			out_r = clampToByte(scale * hdr_r);
+			out_g = clampToByte(scale * hdr_g);
+			out_b = clampToByte(scale * hdr_b);
+		}
+		else {
+			out_r = clampToByte(lookup(hdr_r));
+			out_g = clampToByte(lookup(hdr_g));
+			out_b = clampToByte(lookup(hdr_b));
+		}
+		return 0xff000000 | (out_r << 16) | (out_g << 8) | out_b;
+	}
+
+	/** Calls HDRProcessorCPU.tonemap() with this table's parameters, i.e., without using the lookup
+	 *  table. Useful for comparing results and performance.
+	 */
+	public int tonemapDirect(float hdr_r, float hdr_g, float hdr_b) {
+		return HDRProcessorCPU.tonemap(hdr_r, hdr_g, hdr_b, tonemap);
+	}
+
+	public HDRProcessorCPU.TonemapParameters getParameters() {
+		return tonemap;
+	}
+
+	public float getMaxValue() {
+		return max_value;
+	}
+
+	/** Returns the number of table entries per unit of HDR value.
+	 */
+	public float getScale() {
+		return scale;
+	}
+
+	/** Returns the table, e.g., to copy to a RenderScript allocation. Must not be modified.
+	 */
+	public float [] getTable() {
+		return table;
+	}
+}
@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Locale;
 
 import io.wizkers.opencamera.GyroSensor;
@@ -13,8 +15,10 @@ import io.wizkers.opencamera.MainActivity;
 import io.wizkers.opencamera.MyApplicationInterface;
 import io.wizkers.opencamera.MyDebug;
 import io.wizkers.opencamera.PreferenceKeys;
+import io.wizkers.opencamera.PreviewAnalyzer;
 import io.wizkers.opencamera.Preview.ApplicationInterface;
 import io.wizkers.opencamera.R;
+import io.wizkers.opencamera.SaveLatencyRecorder;
 import io.wizkers.opencamera.CameraController.CameraController;
 import io.wizkers.opencamera.Preview.Preview;
 
@@ -57,6 +61,7 @@ public class DrawPreview {
 	private MyApplicationInterface.PhotoMode photoMode;
 	private boolean show_time_pref;
 	private boolean show_free_memory_pref;
+	private boolean show_save_latency_pref;
 	private boolean show_iso_pref;
 	private boolean show_video_max_amp_pref;
 	private boolean show_zoom_pref;
@@ -83,6 +88,9 @@ public class DrawPreview {
 	private String ghost_image_pref;
 	private String ghost_selected_image_pref = "";
 	private Bitmap ghost_selected_image_bitmap;
+	private String histogram_pref;
+	private int zebra_stripes_pref; // luma threshold for zebra stripes, or 0 if disabled
+	private boolean focus_peaking_pref;
 
 	// avoid doing things that allocate memory every frame!
 	private final Paint p = new Paint();
@@ -109,6 +117,18 @@ public class DrawPreview {
 	private String free_memory_gb_string;
 	private long last_free_memory_time;
 
+	private final List<String> save_latency_strings = new ArrayList<>(); // cached for UI performance
+	private long last_save_latency_time;
+
+	// for preview analysis, see drawPreviewAnalysis()
+	private Bitmap analysis_bitmap; // overlay of zebra stripes and focus peaking, only reallocated if the size of the analysed frames changes
+	private long analysis_sequence = -1; // sequence of the analysis result in analysis_bitmap
+	private final Matrix analysis_matrix = new Matrix();
+	private final RectF analysis_src_rect = new RectF();
+	private final RectF analysis_dst_rect = new RectF(-1000.0f, -1000.0f, 1000.0f, 1000.0f); // in camera coordinates
+	private long last_analysis_matrix_time;
+	private final static int histogram_n_bars_c = 64;
+
 	private String current_time_string;
 	private long last_current_time_time;
 
@@ -291,6 +311,10 @@ public class DrawPreview {
 			ghost_selected_image_bitmap = null;
 		}
 		ghost_selected_image_pref = "";
+		if( analysis_bitmap != null ) {
+			analysis_bitmap.recycle();
+			analysis_bitmap = null;
+		}
 	}
 
 	private Context getContext() {
@@ -415,6 +439,7 @@ public class DrawPreview {
 
 		show_time_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowTimePreferenceKey, true);
 		show_free_memory_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowFreeMemoryPreferenceKey, true);
+		show_save_latency_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowSaveLatencyPreferenceKey, false);
 		show_iso_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowISOPreferenceKey, true);
 		show_video_max_amp_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowVideoMaxAmpPreferenceKey, false);
 		show_zoom_pref = sharedPreferences.getBoolean(PreferenceKeys.ShowZoomPreferenceKey, true);
@@ -450,6 +475,18 @@ public class DrawPreview {
 		preference_grid_pref = sharedPreferences.getString(PreferenceKeys.ShowGridPreferenceKey, "preference_grid_none");
 
 		ghost_image_pref = sharedPreferences.getString(PreferenceKeys.GhostImagePreferenceKey, "preference_ghost_image_off");
+
+		histogram_pref = sharedPreferences.getString(PreferenceKeys.HistogramPreferenceKey, "preference_histogram_off");
+		String zebra_stripes_value = sharedPreferences.getString(PreferenceKeys.ZebraStripesPreferenceKey, "0");
+		try {
+			zebra_stripes_pref = Integer.parseInt(zebra_stripes_value);
+		}
+		catch(NumberFormatException exception) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to parse zebra stripes value: " + zebra_stripes_value);
+			zebra_stripes_pref = 0;
+		}
+		focus_peaking_pref = sharedPreferences.getBoolean(PreferenceKeys.FocusPeakingPreferenceKey, false);
 		if( ghost_image_pref.equals("preference_ghost_image_selected") ) {
 			String new_ghost_selected_image_pref = sharedPreferences.getString(PreferenceKeys.GhostSelectedImageSAFPreferenceKey, "");
 			if( MyDebug.LOG )
@@ -768,6 +805,107 @@ public class DrawPreview {
 		}
 	}
 
+	/** Draws the results of the preview analysis (zebra stripes, focus peaking and the histogram), if enabled. The
+	 *  analysis is done on a background thread, so this only draws the latest result.
+	 */
+	private void drawPreviewAnalysis(Canvas canvas, int ui_rotation, long time_ms) {
+		Preview preview = main_activity.getPreview();
+		CameraController camera_controller = preview.getCameraController();
+		PreviewAnalyzer preview_analyzer = camera_controller != null ? camera_controller.getPreviewAnalyzer() : null;
+		if( preview_analyzer == null ) {
+			return;
+		}
+		boolean want_histogram = !histogram_pref.equals("preference_histogram_off");
+		preview_analyzer.setHistogramEnabled(want_histogram);
+		preview_analyzer.setZebra(zebra_stripes_pref > 0, zebra_stripes_pref > 0 ? zebra_stripes_pref : PreviewAnalyzer.DEFAULT_ZEBRA_THRESHOLD);
+		preview_analyzer.setFocusPeaking(focus_peaking_pref, PreviewAnalyzer.DEFAULT_PEAKING_THRESHOLD);
+		PreviewAnalyzer.Result result = preview_analyzer.acquireResult();
+		if( result == null || !preview.isPreviewStarted() || preview.isPreviewPaused() ) {
+			return;
+		}
+
+		if( result.hasOverlay() && (zebra_stripes_pref > 0 || focus_peaking_pref) ) {
+			int width = result.getWidth();
+			int height = result.getHeight();
+			boolean new_bitmap = false;
+			if( analysis_bitmap == null || analysis_bitmap.getWidth() != width || analysis_bitmap.getHeight() != height ) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "create analysis bitmap: " + width + " x " + height);
+				if( analysis_bitmap != null ) {
+					analysis_bitmap.recycle();
+				}
+				analysis_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+				analysis_sequence = -1;
+				new_bitmap = true;
+			}
+			if( result.getSequence() != analysis_sequence ) {
+				analysis_bitmap.setPixels(result.getOverlay(), 0, width, 0, 0, width, height);
+				analysis_sequence = result.getSequence();
+			}
+			if( new_bitmap || time_ms > last_analysis_matrix_time + 1000 ) {
+				// don't compute the matrix every frame, for UI performance
+				analysis_src_rect.set(0.0f, 0.0f, width, height);
+				analysis_matrix.setRectToRect(analysis_src_rect, analysis_dst_rect, Matrix.ScaleToFit.FILL);
+				analysis_matrix.postConcat(preview.getCameraToPreviewMatrix());
+				last_analysis_matrix_time = time_ms;
+			}
+			canvas.drawBitmap(analysis_bitmap, analysis_matrix, p);
+		}
+
+		if( want_histogram && result.hasHistogram() ) {
+			final float histogram_width = (128.0f * scale + 0.5f); // convert dps to pixels
+			final float histogram_height = (64.0f * scale + 0.5f); // convert dps to pixels
+			final float margin = (16.0f * scale + 0.5f); // convert dps to pixels
+			float left = margin;
+			float bottom = canvas.getHeight() - margin;
+			canvas.save();
+			canvas.rotate(ui_rotation, left + histogram_width/2.0f, bottom - histogram_height/2.0f);
+			p.setColor(Color.BLACK);
+			p.setAlpha(96);
+			draw_rect.set(left, bottom - histogram_height, left + histogram_width, bottom);
+			canvas.drawRect(draw_rect, p);
+			if( histogram_pref.equals("preference_histogram_rgb") ) {
+				drawHistogram(canvas, result.getHistogramRed(), Color.RED, left, bottom, histogram_width, histogram_height);
+				drawHistogram(canvas, result.getHistogramGreen(), Color.GREEN, left, bottom, histogram_width, histogram_height);
+				drawHistogram(canvas, result.getHistogramBlue(), Color.BLUE, left, bottom, histogram_width, histogram_height);
+			}
+			else {
+				drawHistogram(canvas, result.getHistogramLuma(), Color.WHITE, left, bottom, histogram_width, histogram_height);
+			}
+			p.setAlpha(255); // reset
+			canvas.restore();
+		}
+	}
+
+	/** Draws a histogram of 256 bins as bars, scaled so that the largest bar fills the height.
+	 */
+	private void drawHistogram(Canvas canvas, int [] histogram, int color, float left, float bottom, float width, float height) {
+		final int bins_per_bar = histogram.length / histogram_n_bars_c;
+		int max_value = 0;
+		for(int i=0;i<histogram_n_bars_c;i++) {
+			int value = 0;
+			for(int j=0;j<bins_per_bar;j++) {
+				value += histogram[i*bins_per_bar + j];
+			}
+			max_value = Math.max(max_value, value);
+		}
+		if( max_value == 0 ) {
+			return;
+		}
+		p.setColor(color);
+		p.setAlpha(160);
+		final float bar_width = width / histogram_n_bars_c;
+		for(int i=0;i<histogram_n_bars_c;i++) {
+			int value = 0;
+			for(int j=0;j<bins_per_bar;j++) {
+				value += histogram[i*bins_per_bar + j];
+			}
+			float bar_height = (height * value) / max_value;
+			draw_rect.set(left + i*bar_width, bottom - bar_height, left + (i+1)*bar_width, bottom);
+			canvas.drawRect(draw_rect, p);
+		}
+	}
+
 	private void drawCropGuides(Canvas canvas) {
 		Preview preview = main_activity.getPreview();
 		CameraController camera_controller = preview.getCameraController();
@@ -937,6 +1075,50 @@ public class DrawPreview {
 			}
 		}
 
+		if( show_save_latency_pref ) {
+			if( last_save_latency_time == 0 || time_ms > last_save_latency_time + 1000 ) {
+				// don't compute the percentiles every frame, for UI performance
+				SaveLatencyRecorder latency_recorder = applicationInterface.getImageSaver().getLatencyRecorder();
+				save_latency_strings.clear();
+				for(SaveLatencyRecorder.Stage stage : SaveLatencyRecorder.Stage.values()) {
+					String summary = latency_recorder.getSummary(stage);
+					if( summary != null ) {
+						save_latency_strings.add(summary);
+					}
+				}
+				String memory_summary = applicationInterface.getImageSaver().getMemoryBudget().getSummary();
+				if( memory_summary != null ) {
+					save_latency_strings.add(memory_summary);
+				}
+				String decode_summary = applicationInterface.getImageSaver().getDecodePool().getSummary();
+				if( decode_summary != null ) {
+					save_latency_strings.add(decode_summary);
+				}
+				if( camera_controller != null ) {
+					String shutter_lag_summary = camera_controller.getShutterLagSummary();
+					if( shutter_lag_summary != null ) {
+						save_latency_strings.add(shutter_lag_summary);
+					}
+					PreviewAnalyzer preview_analyzer = camera_controller.getPreviewAnalyzer();
+					String analysis_summary = preview_analyzer != null ? preview_analyzer.getSummary() : null;
+					if( analysis_summary != null ) {
+						save_latency_strings.add(analysis_summary);
+					}
+				}
+				last_save_latency_time = time_ms;
+			}
+			for(String save_latency_string : save_latency_strings) {
+				int height = applicationInterface.drawTextWithBackground(canvas, p, save_latency_string, Color.WHITE, Color.BLACK, location_x, location_y, MyApplicationInterface.Alignment.ALIGNMENT_TOP, null, true);
+				height += gap_y;
+				if( ui_rotation == 90 ) {
+					location_y -= height;
+				}
+				else {
+					location_y += height;
+				}
+			}
+		}
+
 		// Now draw additional info on the lower left corner if needed
 		int y_offset = (int) (27 * scale + 0.5f);
 		p.setTextSize(24 * scale + 0.5f); // convert dps to pixels
@@ -2013,6 +2195,8 @@ public class DrawPreview {
 
 		drawCropGuides(canvas);
 
+		drawPreviewAnalysis(canvas, ui_rotation, time_ms);
+
 		if( last_thumbnail != null && !last_thumbnail_is_video && camera_controller != null && ( show_last_image || ( allow_ghost_last_image && ghost_image_pref.equals("preference_ghost_image_last") ) ) ) {
 			// If changing this code, ensure that pause preview still works when:
 			// - Taking a photo in portrait or landscape - and check rotating the device while preview paused
@@ -617,6 +617,37 @@ public class PopupView extends LinearLayout {
         		});
 
         		this.addView(checkBox);
+
+				if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+					Switch stackCheckBox = new Switch(main_activity);
+					stackCheckBox.setText(getResources().getString(R.string.focus_bracketing_stack));
+					{
+						// align the checkbox a bit better
+						stackCheckBox.setGravity(Gravity.RIGHT);
+						LayoutParams params = new LayoutParams(
+								LayoutParams.MATCH_PARENT,
+								LayoutParams.MATCH_PARENT
+						);
+						final int right_padding = (int) (20 * scale + 0.5f); // convert dps to pixels
+						params.setMargins(0, 0, right_padding, 0);
+						stackCheckBox.setLayoutParams(params);
+					}
+
+					boolean stack = sharedPreferences.getBoolean(PreferenceKeys.FocusBracketingStackPreferenceKey, false);
+					if( stack )
+						stackCheckBox.setChecked(stack);
+					stackCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+						public void onCheckedChanged(CompoundButton buttonView,
+								boolean isChecked) {
+							final SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(main_activity);
+							SharedPreferences.Editor editor = sharedPreferences.edit();
+							editor.putBoolean(PreferenceKeys.FocusBracketingStackPreferenceKey, isChecked);
+							editor.apply();
+						}
+					});
+
+					this.addView(stackCheckBox);
+				}
 			}
 
 			if( preview.isVideo() ) {
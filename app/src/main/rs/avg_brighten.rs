@@ -3,6 +3,20 @@
 #pragma rs_fp_relaxed
 
 rs_allocation bitmap;
+int fixed16 = 0; // whether bitmap is stored in 16-bit fixed point with 8 fractional bits (see process_avg.rs), rather than as floats
+
+static float3 read_pixel(uint32_t x, uint32_t y) {
+    if( fixed16 ) {
+        return convert_float3(rsGetElementAt_ushort4(bitmap, x, y).rgb) / 256.0f;
+    }
+    return rsGetElementAt_float3(bitmap, x, y);
+}
+
+static float4 read_pixel4(uint32_t x, uint32_t y) {
+    float4 out = 0.0;
+    out.rgb = read_pixel(x, y);
+    return out;
+}
 
 float median_filter_strength = 1.0f; // from 0 to 1
 
@@ -51,12 +65,12 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
         // performs better than spatial filter; reduces black/white speckles in: testAvg23,
         // testAvg28, testAvg31, testAvg33
         // note that one has to typically zoom to 400% to see the improvement
-        float4 p0 = rsGetElementAt_float4(bitmap, x, y-1);
-        float4 p1 = rsGetElementAt_float4(bitmap, x-1, y);
+        float4 p0 = read_pixel4(x, y-1);
+        float4 p1 = read_pixel4(x-1, y);
         float4 p2 = 0.0;
         p2.rgb = rgb;
-        float4 p3 = rsGetElementAt_float4(bitmap, x+1, y);
-        float4 p4 = rsGetElementAt_float4(bitmap, x, y+1);
+        float4 p3 = read_pixel4(x+1, y);
+        float4 p4 = read_pixel4(x, y+1);
 
         // use alpha channel to store luminance
         p0.a = max(max(p0.r, p0.g), p0.b);
@@ -149,7 +163,7 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
             for(int cx=sx;cx<=ex;cx++) {
                 //if( cx >= 0 && cx < width && cy >= 0 && cy < height )
                 {
-                    float3 this_pixel = rsGetElementAt_float3(bitmap, cx, cy);
+                    float3 this_pixel = read_pixel(cx, cy);
                     //colour_sum += this_pixel;
                     {
                         /*float this_value = fmax(this_pixel.r, this_pixel.g);
@@ -221,7 +235,7 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
             for(int cx=sx;cx<=ex;cx++) {
                 //if( cx >= 0 && cx < width && cy >= 0 && cy < height )
                 {
-                    float3 this_pixel = rsGetElementAt_float3(bitmap, cx, cy);
+                    float3 this_pixel = read_pixel(cx, cy);
                     {
                         float this_value = fmax(this_pixel.r, this_pixel.g);
                         this_value = fmax(this_value, this_pixel.b);
@@ -267,16 +281,16 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
         // sharpen
         // helps: testAvg12, testAvg16, testAvg23, testAvg30, testAvg32
         if( x >= 1 && x < width-1 && y >= 1 && y < height-1 ) {
-            float3 p00 = rsGetElementAt_float3(bitmap, x-1, y-1);
-            float3 p10 = rsGetElementAt_float3(bitmap, x, y-1);
-            float3 p20 = rsGetElementAt_float3(bitmap, x+1, y-1);
+            float3 p00 = read_pixel(x-1, y-1);
+            float3 p10 = read_pixel(x, y-1);
+            float3 p20 = read_pixel(x+1, y-1);
 
-            float3 p01 = rsGetElementAt_float3(bitmap, x-1, y);
-            float3 p21 = rsGetElementAt_float3(bitmap, x+1, y);
+            float3 p01 = read_pixel(x-1, y);
+            float3 p21 = read_pixel(x+1, y);
 
-            float3 p02 = rsGetElementAt_float3(bitmap, x-1, y+1);
-            float3 p12 = rsGetElementAt_float3(bitmap, x, y+1);
-            float3 p22 = rsGetElementAt_float3(bitmap, x+1, y+1);
+            float3 p02 = read_pixel(x-1, y+1);
+            float3 p12 = read_pixel(x, y+1);
+            float3 p22 = read_pixel(x+1, y+1);
 
             float3 blurred = (p00 + p10 + p20 + p01 + 8.0f*rgb + p21 + p02 + p12 + p22)/16.0f;
             float3 shift = 1.5f * (rgb-blurred);
@@ -401,3 +415,8 @@ uchar4 __attribute__((kernel)) avg_brighten_f(float3 rgb, uint32_t x, uint32_t y
 
     return out;
 }
+
+uchar4 __attribute__((kernel)) avg_brighten_fixed16(ushort4 in_fixed, uint32_t x, uint32_t y) {
+    float3 rgb = convert_float3(in_fixed.rgb) / 256.0f;
+    return avg_brighten_f(rgb, x, y);
+}
@@ -32,6 +32,12 @@ void __attribute__((kernel)) histogram_compute_f(float3 in_f, uint32_t x, uint32
 	rsAtomicInc(&histogram[value]);
 }
 
+void __attribute__((kernel)) histogram_compute_fixed16(ushort4 in_fixed, uint32_t x, uint32_t y) {
+    // for 16-bit fixed point with 8 fractional bits, see process_avg.rs
+    float3 in_f = convert_float3(in_fixed.rgb) / 256.0f;
+    histogram_compute_f(in_f, x, y);
+}
+
 void __attribute__((kernel)) histogram_compute_avg(uchar4 in, uint32_t x, uint32_t y) {
     float3 in_f = convert_float3(in.rgb);
     float avg = (in_f.r + in_f.g + in_f.b)/3.0;
@@ -48,3 +54,8 @@ void __attribute__((kernel)) histogram_compute_avg_f(float3 in_f, uint32_t x, ui
 
 	rsAtomicInc(&histogram[value]);
 }
+
+void __attribute__((kernel)) histogram_compute_avg_fixed16(ushort4 in_fixed, uint32_t x, uint32_t y) {
+    float3 in_f = convert_float3(in_fixed.rgb) / 256.0f;
+    histogram_compute_avg_f(in_f, x, y);
+}
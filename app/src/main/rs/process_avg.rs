@@ -131,6 +131,26 @@ float3 __attribute__((kernel)) avg(uchar4 pixel_avg, uint32_t x, uint32_t y) {
     return avg_f(pixel_avg_f, x, y);
 }
 
+// Versions of the above where the averaged image is stored in 16-bit fixed point with 8 fractional
+// bits, rather than as floats, halving the memory needed. See AvgAccumulator for a reference
+// implementation.
+
+static ushort4 float_to_fixed16(float3 value) {
+    ushort4 out;
+    out.rgb = convert_ushort3(clamp(value*256.0f + 0.5f, 0.0f, 65535.0f));
+    out.a = 0;
+    return out;
+}
+
+ushort4 __attribute__((kernel)) avg_fixed16(ushort4 pixel_avg_fixed, uint32_t x, uint32_t y) {
+    float3 pixel_avg_f = convert_float3(pixel_avg_fixed.rgb) / 256.0f;
+    return float_to_fixed16(avg_f(pixel_avg_f, x, y));
+}
+
+ushort4 __attribute__((kernel)) avg_to_fixed16(uchar4 pixel_avg, uint32_t x, uint32_t y) {
+    return float_to_fixed16(avg(pixel_avg, x, y));
+}
+
 /*float3 __attribute__((kernel)) convert_to_f(uchar4 pixel_avg, uint32_t x, uint32_t y) {
     return convert_float3(pixel_avg.rgb);
 }*/
@@ -56,6 +56,22 @@ float W = 11.2f;
 // for various:
 float linear_scale = 1.0f;
 
+// optional lookup table for the tonemapping curve, see TonemapLUT.java:
+// for Reinhard this stores the scale as a function of the maximum of r, g, b; for other algorithms it
+// stores the output value for each channel
+rs_allocation tonemap_lut;
+int use_tonemap_lut = 0;
+float tonemap_lut_scale = 0.0f; // table entries per unit of HDR value
+float tonemap_lut_max = 0.0f; // HDR values must be less than this to use the table
+int tonemap_lut_size = 0;
+
+static float lookupTonemap(float x) {
+	float fi = x * tonemap_lut_scale;
+	int i = min((int)fi, tonemap_lut_size-2);
+	float alpha = fi - i;
+	return (1.0f-alpha)*rsGetElementAt_float(tonemap_lut, i) + alpha*rsGetElementAt_float(tonemap_lut, i+1);
+}
+
 static float Uncharted2Tonemap(float x) {
 	const float A = 0.15f;
 	const float B = 0.50f;
@@ -69,6 +85,27 @@ static float Uncharted2Tonemap(float x) {
 static uchar4 tonemap(float3 hdr) {
 	// tonemap
 	uchar4 out;
+	if( use_tonemap_lut ) {
+		float max_value = fmax(fmax(hdr.r, hdr.g), hdr.b);
+		float min_value = fmin(fmin(hdr.r, hdr.g), hdr.b);
+		if( min_value >= 0.0f && max_value < tonemap_lut_max ) {
+			float3 out_f;
+			if( tonemap_algorithm == tonemap_algorithm_reinhard_c ) {
+				out_f = lookupTonemap(max_value) * hdr;
+			}
+			else {
+				out_f.r = lookupTonemap(hdr.r);
+				out_f.g = lookupTonemap(hdr.g);
+				out_f.b = lookupTonemap(hdr.b);
+			}
+			out.r = (uchar)clamp(out_f.r+0.5f, 0.0f, 255.0f);
+			out.g = (uchar)clamp(out_f.g+0.5f, 0.0f, 255.0f);
+			out.b = (uchar)clamp(out_f.b+0.5f, 0.0f, 255.0f);
+			out.a = 255;
+			return out;
+		}
+		// else fall back to evaluating the curve
+	}
     switch( tonemap_algorithm )
 	{
 	    case tonemap_algorithm_clamp_c:
@@ -2,11 +2,31 @@ package io.wizkers.opencamera.test;
 
 import android.media.CamcorderProfile;
 
+import io.wizkers.opencamera.AffineResampler;
+import io.wizkers.opencamera.AvgAccumulator;
+import io.wizkers.opencamera.CLAHEProcessor;
+import io.wizkers.opencamera.CaptureSpool;
 import io.wizkers.opencamera.CameraController.CameraController;
 import io.wizkers.opencamera.CameraController.CameraController2;
+import io.wizkers.opencamera.CameraController.CaptureResultCache;
+import io.wizkers.opencamera.CameraController.ZslRingBuffer;
+import io.wizkers.opencamera.ExifRewriter;
+import io.wizkers.opencamera.ExposureFusion;
+import io.wizkers.opencamera.FocusStacker;
 import io.wizkers.opencamera.HDRProcessor;
+import io.wizkers.opencamera.HDRProcessorCPU;
 import io.wizkers.opencamera.ImageSaver;
+import io.wizkers.opencamera.JpegBuffer;
+import io.wizkers.opencamera.JpegBufferPool;
+import io.wizkers.opencamera.JpegLosslessTransform;
+import io.wizkers.opencamera.JpegStripEditor;
 import io.wizkers.opencamera.LocationSupplier;
+import io.wizkers.opencamera.MTBPyramidAligner;
+import io.wizkers.opencamera.PreviewAnalyzer;
+import io.wizkers.opencamera.ResponseFunctionFitter;
+import io.wizkers.opencamera.SaveLatencyRecorder;
+import io.wizkers.opencamera.SaveMemoryBudget;
+import io.wizkers.opencamera.TonemapLUT;
 import io.wizkers.opencamera.Preview.Preview;
 import io.wizkers.opencamera.Preview.VideoQualityHandler;
 import io.wizkers.opencamera.TextFormatter;
@@ -14,12 +34,23 @@ import io.wizkers.opencamera.UI.DrawPreview;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -32,6 +63,8 @@ class Log {
 /**
  * Note, need to run with MyDebug.LOG set to false, due to Android's Log.d not being mocked (good
  * practice to test release code anyway).
+ * The image processing classes tested here (e.g., HDRProcessorCPU, AffineResampler, FocusStacker)
+ * work on pixel arrays rather than Bitmaps, and don't use RenderScript, so can be tested on the JVM.
  */
 public class UnitTest {
 	private static final String TAG = "UnitTest";
@@ -489,6 +522,43 @@ public class UnitTest {
 		assertTrue(ImageSaver.computeQueueSize(512) <= 70);
 	}
 
+	@Test
+	public void testImageSaverPipelineDepth() {
+		Log.d(TAG, "testImageSaverPipelineDepth");
+
+		// not enough memory to hold an extra bitmap
+		assertEquals(0, ImageSaver.computePipelineDepth(64, 8));
+		assertEquals(0, ImageSaver.computePipelineDepth(128, 8));
+
+		// single CPU should be left for the saver thread
+		assertEquals(0, ImageSaver.computePipelineDepth(512, 1));
+
+		assertTrue(ImageSaver.computePipelineDepth(256, 8) >= 1);
+		assertTrue(ImageSaver.computePipelineDepth(512, 8) >= ImageSaver.computePipelineDepth(256, 8));
+		assertTrue(ImageSaver.computePipelineDepth(512, 2) <= 1);
+		assertTrue(ImageSaver.computePipelineDepth(512, 8) <= 3);
+
+		// should scale with the number of CPUs, if there's enough memory
+		assertTrue(ImageSaver.computePipelineDepth(1024, 8) > ImageSaver.computePipelineDepth(512, 8));
+		assertTrue(ImageSaver.computePipelineDepth(1024, 8) > ImageSaver.computePipelineDepth(1024, 4));
+		assertTrue(ImageSaver.computePipelineDepth(1024, 8) <= 7);
+	}
+
+	@Test
+	public void testImageSaverRawQueueSize() {
+		Log.d(TAG, "testImageSaverRawQueueSize");
+
+		// should allow as many DNGs as the image saver queue did before RAW had its own queue, i.e.,
+		// (computeQueueSize()+1)/computeRequestCost(true, 0); but no more, as this also sets the number of buffers the
+		// camera allocates for RAW images
+		assertEquals((ImageSaver.computeQueueSize(64)+1)/ImageSaver.computeRequestCost(true, 0), ImageSaver.computeRawQueueSize(64));
+		assertEquals((ImageSaver.computeQueueSize(256)+1)/ImageSaver.computeRequestCost(true, 0), ImageSaver.computeRawQueueSize(256));
+		assertEquals((ImageSaver.computeQueueSize(512)+1)/ImageSaver.computeRequestCost(true, 0), ImageSaver.computeRawQueueSize(512));
+
+		assertTrue(ImageSaver.computeRawQueueSize(256) >= ImageSaver.computeRawQueueSize(128));
+		assertTrue(ImageSaver.computeRawQueueSize(512) >= ImageSaver.computeRawQueueSize(256));
+	}
+
 	@Test
 	public void testImageSaverRequestCost() {
 		Log.d(TAG, "testImageSaverRequestCost");
@@ -498,6 +568,140 @@ public class UnitTest {
 
 	}
 
+	@Test
+	public void testSaveMemoryBudget() {
+		Log.d(TAG, "testSaveMemoryBudget");
+
+		final long MB = 1024*1024;
+		final int width = 4000, height = 3000; // 12 megapixels
+		final long bitmap_bytes = 4L*width*height;
+
+		assertTrue(SaveMemoryBudget.computeBudget(512*MB) >= 256*MB);
+		assertTrue(SaveMemoryBudget.computeBudget(512*MB) < 512*MB);
+		assertTrue(SaveMemoryBudget.computeBudget(128*MB) >= 64*MB);
+		assertTrue(SaveMemoryBudget.computeBudget(128*MB) < 128*MB);
+
+		// actual encoded size is used when known
+		long jpeg_bytes = SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.JPEG, 1, width, height, 5*MB);
+		assertEquals(5*MB + bitmap_bytes, jpeg_bytes);
+		assertEquals(SaveMemoryBudget.estimateJpegBytes(width, height) + bitmap_bytes, SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.JPEG, 1, width, height, -1));
+
+		// HDR needs all the images decoded
+		long hdr_bytes = SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.HDR, 3, width, height, 15*MB);
+		assertTrue(hdr_bytes >= 15*MB + 3*bitmap_bytes);
+		assertTrue(SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.AVERAGE, 1, width, height, 5*MB) > jpeg_bytes);
+		assertTrue(SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.FOCUS_STACK, 3, width, height, 15*MB) > 15*MB + bitmap_bytes);
+		assertEquals(2L*width*height, SaveMemoryBudget.estimateRequestBytes(SaveMemoryBudget.RequestKind.RAW, 1, width, height, -1));
+
+		SaveMemoryBudget budget = new SaveMemoryBudget(3*hdr_bytes);
+		long free_heap = 1024*MB;
+		// first request always admitted, even if larger than the budget
+		assertTrue(budget.wouldAdmit(10*hdr_bytes, free_heap));
+		for(int i=0;i<3;i++) {
+			assertTrue(budget.wouldAdmit(hdr_bytes, free_heap));
+			budget.admit(hdr_bytes);
+		}
+		assertFalse(budget.wouldAdmit(hdr_bytes, free_heap));
+		assertEquals(3*hdr_bytes, budget.getAdmittedBytes());
+		budget.release(hdr_bytes);
+		assertTrue(budget.wouldAdmit(hdr_bytes, free_heap));
+		// refused if not enough free heap
+		assertFalse(budget.wouldAdmit(hdr_bytes, hdr_bytes-1));
+		budget.release(hdr_bytes);
+		budget.release(hdr_bytes);
+		assertEquals(0, budget.getAdmittedBytes());
+
+		// metrics count requests admitted, not calls to wouldAdmit()
+		assertEquals(3, budget.getNAdmitted());
+		assertEquals(0, budget.getNOverBudget());
+		assertEquals(3*hdr_bytes, budget.getPeakAdmittedBytes());
+		budget.admit(10*hdr_bytes);
+		assertEquals(1, budget.getNOverBudget());
+		budget.release(10*hdr_bytes);
+		// readmitting a request that was released whilst spooled isn't counted again
+		budget.admit(hdr_bytes);
+		budget.release(hdr_bytes);
+		budget.readmit(hdr_bytes);
+		assertEquals(hdr_bytes, budget.getAdmittedBytes());
+		assertEquals(5, budget.getNAdmitted());
+		budget.release(hdr_bytes);
+		assertNotNull(budget.getSummary());
+		assertNull(new SaveMemoryBudget(hdr_bytes).getSummary());
+		assertEquals(3, budget.getMaxRequests(hdr_bytes));
+		assertEquals(1, budget.getMaxRequests(10*hdr_bytes));
+	}
+
+	@Test
+	public void testSaveLatencyRecorder() throws IOException, InterruptedException {
+		Log.d(TAG, "testSaveLatencyRecorder");
+
+		assertEquals(0, SaveLatencyRecorder.getBucket(0));
+		assertEquals(1, SaveLatencyRecorder.getBucket(1));
+		assertEquals(2, SaveLatencyRecorder.getBucket(2));
+		assertEquals(2, SaveLatencyRecorder.getBucket(3));
+		assertEquals(3, SaveLatencyRecorder.getBucket(4));
+		assertEquals(10, SaveLatencyRecorder.getBucket(1000));
+		assertEquals(SaveLatencyRecorder.n_buckets_c-1, SaveLatencyRecorder.getBucket(Long.MAX_VALUE));
+		for(int i=0;i<SaveLatencyRecorder.n_buckets_c-1;i++) {
+			// each bucket's upper bound is the first duration in the next bucket
+			assertEquals(i+1, SaveLatencyRecorder.getBucket(SaveLatencyRecorder.getBucketUpperBound(i)));
+			assertEquals(i, SaveLatencyRecorder.getBucket(SaveLatencyRecorder.getBucketUpperBound(i)-1));
+		}
+
+		SaveLatencyRecorder recorder = new SaveLatencyRecorder();
+		assertFalse(recorder.hasData());
+		assertNull(recorder.getSummary(SaveLatencyRecorder.Stage.WRITE));
+		assertEquals(0, recorder.getPercentile(SaveLatencyRecorder.Stage.WRITE, 50.0f));
+		for(int i=1;i<=100;i++) {
+			recorder.record(SaveLatencyRecorder.Stage.WRITE, i);
+		}
+		recorder.record(SaveLatencyRecorder.Stage.TOTAL, -5); // clamped to 0
+		assertTrue(recorder.hasData());
+		assertEquals(100, recorder.getCount(SaveLatencyRecorder.Stage.WRITE));
+		assertEquals(50, recorder.getMean(SaveLatencyRecorder.Stage.WRITE));
+		assertEquals(100, recorder.getMax(SaveLatencyRecorder.Stage.WRITE));
+		assertEquals(64, recorder.getPercentile(SaveLatencyRecorder.Stage.WRITE, 50.0f));
+		assertEquals(100, recorder.getPercentile(SaveLatencyRecorder.Stage.WRITE, 95.0f));
+		assertEquals(2, recorder.getPercentile(SaveLatencyRecorder.Stage.WRITE, 1.0f));
+		assertEquals(1, recorder.getCount(SaveLatencyRecorder.Stage.TOTAL));
+		assertEquals(0, recorder.getMax(SaveLatencyRecorder.Stage.TOTAL));
+		assertEquals(0, recorder.getCount(SaveLatencyRecorder.Stage.DECODE));
+		assertEquals("write: 100, p50 64ms, p95 100ms, max 100ms", recorder.getSummary(SaveLatencyRecorder.Stage.WRITE));
+
+		StringWriter writer = new StringWriter();
+		recorder.writeReport(writer);
+		String report = writer.toString();
+		assertTrue(report.contains("write, 100, 50, 64, 100, 100, 100\n"));
+
+		recorder.reset();
+		assertFalse(recorder.hasData());
+		assertEquals(0, recorder.getCount(SaveLatencyRecorder.Stage.WRITE));
+		assertEquals(0, recorder.getMax(SaveLatencyRecorder.Stage.WRITE));
+
+		// recording from multiple threads mustn't lose any durations
+		final SaveLatencyRecorder shared_recorder = new SaveLatencyRecorder();
+		final int n_threads = 4;
+		final int n_per_thread = 10000;
+		Thread [] threads = new Thread[n_threads];
+		for(int i=0;i<n_threads;i++) {
+			final int offset = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int j=0;j<n_per_thread;j++) {
+						shared_recorder.record(SaveLatencyRecorder.Stage.COMPRESS, (j % 1000) + offset);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(n_threads*n_per_thread, shared_recorder.getCount(SaveLatencyRecorder.Stage.COMPRESS));
+		assertEquals(999 + n_threads-1, shared_recorder.getMax(SaveLatencyRecorder.Stage.COMPRESS));
+	}
+
 	private class float4 {
 		final float r, g, b, a;
 
@@ -710,4 +914,1917 @@ public class UnitTest {
 		assertEquals(1.0f/(0.369070f*(0.2f-0.1f) + 0.1f), focus_distances.get(1), 1.0e-5);
 		assertEquals(1.0f/0.2f, focus_distances.get(0), 1.0e-5);
 	}
+
+	/** Tests the HDRProcessorCPU merge: the result should be independent of the tile size and
+	 *  number of threads, and mid-grey images should be unchanged.
+	 */
+	@Test
+	public void testHDRProcessorCPU() {
+		Log.d(TAG, "testHDRProcessorCPU");
+
+		final int width = 97, height = 61; // deliberately not a multiple of the tile sizes
+		Random random = new Random(0);
+		HDRProcessor.TonemappingAlgorithm [] algorithms = HDRProcessor.TonemappingAlgorithm.values();
+		for(int n_bitmaps=2;n_bitmaps<=7;n_bitmaps++) {
+			int base_index = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2;
+			int [][] images = new int[n_bitmaps][];
+			int [] offsets_x = new int[n_bitmaps];
+			int [] offsets_y = new int[n_bitmaps];
+			float [] parameter_A = new float[n_bitmaps];
+			float [] parameter_B = new float[n_bitmaps];
+			for(int i=0;i<n_bitmaps;i++) {
+				images[i] = new int[width*height];
+				for(int j=0;j<width*height;j++) {
+					images[i][j] = 0xff000000 | (random.nextInt(256) << 16) | (random.nextInt(256) << 8) | random.nextInt(256);
+				}
+				if( i != base_index ) {
+					offsets_x[i] = random.nextInt(9) - 4;
+					offsets_y[i] = random.nextInt(9) - 4;
+				}
+				// darker images have larger A
+				parameter_A[i] = (float)Math.pow(2.0, base_index - i);
+				parameter_B[i] = random.nextFloat() * 4.0f;
+			}
+			HDRProcessor.TonemappingAlgorithm algorithm = algorithms[n_bitmaps % algorithms.length];
+			HDRProcessorCPU.TonemapParameters tonemap = new HDRProcessorCPU.TonemapParameters(algorithm, 100.0f, 1.5f, 2.0f);
+			Log.d(TAG, "n_bitmaps: " + n_bitmaps + " algorithm: " + algorithm);
+
+			int [] expected = null;
+			int [] tile_sizes = {1000, 16, 7};
+			int [] n_threads = {1, 4, 3};
+			for(int test=0;test<tile_sizes.length;test++) {
+				ForkJoinPool pool = new ForkJoinPool(n_threads[test]);
+				HDRProcessorCPU processor = new HDRProcessorCPU(pool, tile_sizes[test]);
+				int [] output = new int[width*height];
+				processor.processHDR(images, width, height, base_index, offsets_x, offsets_y, parameter_A, parameter_B, tonemap, output);
+				pool.shutdown();
+				if( expected == null ) {
+					expected = output;
+				}
+				else {
+					assertArrayEquals(expected, output);
+				}
+			}
+
+			// also test writing in place to the base image
+			int [] base_copy = images[base_index].clone();
+			ForkJoinPool pool = new ForkJoinPool(2);
+			HDRProcessorCPU processor = new HDRProcessorCPU(pool, 32);
+			processor.processHDR(images, width, height, base_index, offsets_x, offsets_y, parameter_A, parameter_B, tonemap, images[base_index]);
+			pool.shutdown();
+			assertArrayEquals(expected, images[base_index]);
+			images[base_index] = base_copy;
+		}
+
+		// mid-grey images with identity response functions should be unchanged with clamp tonemapping
+		int [][] images = new int[3][];
+		for(int i=0;i<3;i++) {
+			images[i] = new int[width*height];
+			Arrays.fill(images[i], 0xff808080);
+		}
+		int [] output = new int[width*height];
+		ForkJoinPool pool = new ForkJoinPool(2);
+		HDRProcessorCPU processor = new HDRProcessorCPU(pool, 16);
+		HDRProcessorCPU.TonemapParameters tonemap = new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, 255.0f, 1.0f, 0.0f);
+		processor.processHDR(images, width, height, 1, new int[]{0, 0, 0}, new int[]{0, 0, 0}, new float[]{1.0f, 1.0f, 1.0f}, new float[]{0.0f, 0.0f, 0.0f}, tonemap, output);
+		pool.shutdown();
+		for(int j=0;j<width*height;j++) {
+			assertEquals(0xff808080, output[j]);
+		}
+	}
+
+	/** Tests MTBPyramidAligner on synthetic images with known offsets and different exposures.
+	 */
+	@Test
+	public void testMTBPyramidAligner() {
+		Log.d(TAG, "testMTBPyramidAligner");
+
+		final int width = 300, height = 200;
+		final int block_size = 6;
+		// random blocks, plus a gradient, so there is structure at all pyramid levels
+		Random random = new Random(0);
+		final int scene_width = width + 64, scene_height = height + 64;
+		int [] scene = new int[scene_width*scene_height];
+		int [] blocks = new int[(scene_width/block_size + 1) * (scene_height/block_size + 1)];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = random.nextInt(160);
+		}
+		for(int y=0;y<scene_height;y++) {
+			for(int x=0;x<scene_width;x++) {
+				scene[y*scene_width + x] = blocks[(y/block_size) * (scene_width/block_size + 1) + x/block_size] + (x*60)/scene_width;
+			}
+		}
+
+		final int [] exp_offsets_x = {5, 0, -11};
+		final int [] exp_offsets_y = {-3, 0, 7};
+		final float [] exposures = {0.5f, 1.0f, 1.5f};
+		final int n_images = exp_offsets_x.length;
+		final int base_index = 1;
+		byte [][] luminances = new byte[n_images][];
+		int [] median_values = new int[n_images];
+		for(int i=0;i<n_images;i++) {
+			// image i at (x + offset_x, y + offset_y) should correspond to the base image at (x, y)
+			luminances[i] = new byte[width*height];
+			int [] argb = new int[width];
+			int [] sorted = new int[width*height];
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					int sx = x - exp_offsets_x[i] + 32;
+					int sy = y - exp_offsets_y[i] + 32;
+					int value = Math.min(255, (int)(scene[sy*scene_width + sx] * exposures[i]));
+					argb[x] = 0xff000000 | (value << 16) | ((value/2) << 8) | (value/3);
+					sorted[y*width + x] = value;
+				}
+				MTBPyramidAligner.computeLuminance(argb, 0, luminances[i], y*width, width);
+			}
+			Arrays.sort(sorted);
+			median_values[i] = sorted[sorted.length/2];
+			Log.d(TAG, "median_value " + i + ": " + median_values[i]);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		MTBPyramidAligner aligner = new MTBPyramidAligner(pool);
+		int [] offsets_x = new int[n_images];
+		int [] offsets_y = new int[n_images];
+		aligner.align(luminances, width, height, median_values, base_index, 32, 1, offsets_x, offsets_y);
+		for(int i=0;i<n_images;i++) {
+			Log.d(TAG, "offsets " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+			assertEquals(exp_offsets_x[i], offsets_x[i]);
+			assertEquals(exp_offsets_y[i], offsets_y[i]);
+		}
+
+		// with a larger min_step_size, offsets should be the nearest multiple found at that resolution
+		aligner.align(luminances, width, height, median_values, base_index, 32, 4, offsets_x, offsets_y);
+		for(int i=0;i<n_images;i++) {
+			Log.d(TAG, "offsets " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+			assertEquals(0, offsets_x[i] % 4);
+			assertEquals(0, offsets_y[i] % 4);
+			assertTrue(Math.abs(exp_offsets_x[i] - offsets_x[i]) <= 2);
+			assertTrue(Math.abs(exp_offsets_y[i] - offsets_y[i]) <= 2);
+		}
+
+		// images not suitable for alignment should be left with zero offset
+		luminances[0] = null;
+		aligner.align(luminances, width, height, median_values, base_index, 32, 1, offsets_x, offsets_y);
+		assertEquals(0, offsets_x[0]);
+		assertEquals(0, offsets_y[0]);
+		assertEquals(exp_offsets_x[2], offsets_x[2]);
+		assertEquals(exp_offsets_y[2], offsets_y[2]);
+		pool.shutdown();
+	}
+
+	/** Returns a greyscale image of random blocks, with independent noise added to each pixel.
+	 */
+	private static byte [] makeNoisyBlocks(int width, int height, int block_size, long scene_seed, long noise_seed) {
+		Random scene_random = new Random(scene_seed);
+		int blocks_per_row = width/block_size + 1;
+		int [] blocks = new int[blocks_per_row * (height/block_size + 1)];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = 48 + scene_random.nextInt(160);
+		}
+		Random noise_random = new Random(noise_seed);
+		byte [] luminance = new byte[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int value = blocks[(y/block_size) * blocks_per_row + x/block_size] + (int)Math.round(8.0*noise_random.nextGaussian());
+				luminance[y*width + x] = (byte)Math.max(0, Math.min(255, value));
+			}
+		}
+		return luminance;
+	}
+
+	/** Tests that MTBPyramidAligner doesn't find offsets for frames of the same scene, including small
+	 *  images where the pyramid levels are clamped, and noisy frames.
+	 */
+	@Test
+	public void testMTBPyramidAlignerStatic() {
+		Log.d(TAG, "testMTBPyramidAlignerStatic");
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		MTBPyramidAligner aligner = new MTBPyramidAligner(pool);
+		int [] offsets_x = new int[2];
+		int [] offsets_y = new int[2];
+		int [] median_values = {128, 128};
+
+		// small identical images, where the coarser levels can't be downsampled by the full step size
+		for(int seed=0;seed<10;seed++) {
+			final int width = 64, height = 48;
+			byte [] luminance = makeNoisyBlocks(width, height, 4, seed, 100 + seed);
+			byte [][] luminances = {luminance, luminance.clone()};
+			aligner.align(luminances, width, height, median_values, 0, 32, 1, offsets_x, offsets_y);
+			Log.d(TAG, "small offsets " + seed + ": " + offsets_x[1] + " , " + offsets_y[1]);
+			assertEquals(0, offsets_x[1]);
+			assertEquals(0, offsets_y[1]);
+		}
+
+		// frames of the same scene with independent noise
+		for(int seed=0;seed<10;seed++) {
+			final int width = 320, height = 240;
+			byte [][] luminances = {
+					makeNoisyBlocks(width, height, 8, seed, 200 + 2*seed),
+					makeNoisyBlocks(width, height, 8, seed, 201 + 2*seed)
+			};
+			aligner.align(luminances, width, height, median_values, 0, 32, 1, offsets_x, offsets_y);
+			Log.d(TAG, "noisy offsets " + seed + ": " + offsets_x[1] + " , " + offsets_y[1]);
+			assertEquals(0, offsets_x[1]);
+			assertEquals(0, offsets_y[1]);
+		}
+		pool.shutdown();
+	}
+
+	@Test
+	public void testResponseFunctionFitter() {
+		Log.d(TAG, "testResponseFunctionFitter");
+
+		final int width = 200;
+		final int height = 150;
+		final int base_index = 1;
+		final int [] offsets_x = {3, 0, -120};
+		final int [] offsets_y = {-20, 0, 5};
+		// the base image is brighter than the other images, with base = 2 * value + 10
+
+		ResponseFunctionFitter fitter = new ResponseFunctionFitter(width, height, base_index, offsets_x, offsets_y);
+		int [] base_row = new int[width];
+		int [][] image_rows = new int[3][];
+		for(int row=0;row<fitter.getNSampleRows();row++) {
+			int y = fitter.getSampleRowY(row);
+			for(int x=0;x<width;x++) {
+				int value = 2*((x*7 + y*13) % 101) + 10;
+				base_row[x] = 0xff000000 | (value << 16) | (value << 8) | value;
+			}
+			for(int i=0;i<3;i++) {
+				if( i == base_index || !fitter.isRowInside(i, y) ) {
+					image_rows[i] = null;
+					continue;
+				}
+				image_rows[i] = new int[width];
+				for(int x=0;x<width;x++) {
+					// pixel (x + offsets_x[i], y + offsets_y[i]) of image i corresponds to (x, y) on the base image
+					int base_x = x - offsets_x[i];
+					int value = base_x >= 0 ? (base_x*7 + y*13) % 101 : 0;
+					image_rows[i][x] = 0xff000000 | (value << 16) | (value << 8) | value;
+				}
+			}
+			fitter.addSampleRow(base_row, image_rows);
+		}
+
+		float [] result = new float[2];
+		// image 0 is within the image for all sample columns, but one sample row is outside
+		assertEquals(90, fitter.getNSamples(0));
+		fitter.fit(0, result);
+		Log.d(TAG, "image 0: " + result[0] + " , " + result[1]);
+		assertEquals(2.0f, result[0], 1.0e-4f);
+		assertEquals(10.0f, result[1], 1.0e-3f);
+
+		// image 2 has a large x offset, so many samples are skipped
+		assertTrue(fitter.getNSamples(2) > 3);
+		assertTrue(fitter.getNSamples(2) < 90);
+		fitter.fit(2, result);
+		Log.d(TAG, "image 2: " + result[0] + " , " + result[1]);
+		assertEquals(2.0f, result[0], 1.0e-4f);
+		assertEquals(10.0f, result[1], 1.0e-3f);
+
+		// weights should be non-negative
+		double [] weights = fitter.getWeights(0);
+		for(int j=0;j<fitter.getNSamples(0);j++) {
+			assertTrue(weights[j] >= 0.0);
+		}
+
+		// degenerate data should fall back to the identity-like Y = AX
+		double [] xs = new double[10];
+		double [] ys = new double[10];
+		double [] ws = new double[10];
+		Arrays.fill(xs, 100.0);
+		Arrays.fill(ys, 100.0);
+		ResponseFunctionFitter.fitLinear(xs, ys, ws, 10, result);
+		assertEquals(1.0f, result[0], 1.0e-5f);
+		assertEquals(0.0f, result[1], 1.0e-5f);
+
+		// negative offset would give B < 0, so should fall back to Y = AX
+		for(int j=0;j<10;j++) {
+			xs[j] = 50.0 + 10.0*j;
+			ys[j] = xs[j] - 40.0;
+			ws[j] = 1.0;
+		}
+		ResponseFunctionFitter.fitLinear(xs, ys, ws, 10, result);
+		assertEquals(0.0f, result[1], 1.0e-5f);
+		assertTrue(result[0] > 0.0f && result[0] < 1.0f);
+	}
+
+	@Test
+	public void testAvgAccumulatorConversions() {
+		Log.d(TAG, "testAvgAccumulatorConversions");
+
+		// float16 special values
+		assertEquals(0x3c00, AvgAccumulator.toFloat16(1.0f) & 0xffff);
+		assertEquals(0xc000, AvgAccumulator.toFloat16(-2.0f) & 0xffff);
+		assertEquals(0x0000, AvgAccumulator.toFloat16(0.0f) & 0xffff);
+		assertEquals(0x7bff, AvgAccumulator.toFloat16(65504.0f) & 0xffff);
+		assertEquals(0x7c00, AvgAccumulator.toFloat16(65536.0f) & 0xffff);
+		assertEquals(0x7c00, AvgAccumulator.toFloat16(Float.POSITIVE_INFINITY) & 0xffff);
+		assertEquals(0x0001, AvgAccumulator.toFloat16((float)Math.pow(2.0, -24)) & 0xffff);
+		assertEquals(0x0400, AvgAccumulator.toFloat16((float)Math.pow(2.0, -14)) & 0xffff);
+		assertTrue(Float.isNaN(AvgAccumulator.fromFloat16(AvgAccumulator.toFloat16(Float.NaN))));
+		// round to nearest even: 2049 is halfway between 2048 and 2050
+		assertEquals(2048.0f, AvgAccumulator.fromFloat16(AvgAccumulator.toFloat16(2049.0f)), 0.0f);
+		assertEquals(2052.0f, AvgAccumulator.fromFloat16(AvgAccumulator.toFloat16(2051.0f)), 0.0f);
+		// every half precision value should convert back exactly
+		for(int i=0;i<0x7c00;i++) {
+			float value = AvgAccumulator.fromFloat16((short)i);
+			assertEquals(i, AvgAccumulator.toFloat16(value) & 0xffff);
+		}
+
+		// fixed point range
+		assertEquals(0, AvgAccumulator.toFixed16(-1.0f) & 0xffff);
+		assertEquals(255*256, AvgAccumulator.toFixed16(255.0f) & 0xffff);
+		assertEquals(0xffff, AvgAccumulator.toFixed16(300.0f) & 0xffff);
+
+		// error bounds for the range of values we store
+		for(AvgAccumulator.Format format : AvgAccumulator.Format.values()) {
+			float bound = AvgAccumulator.getStoreErrorBound(format);
+			float max_error = 0.0f;
+			for(int i=0;i<=25500;i++) {
+				float value = i/100.0f;
+				float stored;
+				if( format == AvgAccumulator.Format.FORMAT_FIXED16 )
+					stored = AvgAccumulator.fromFixed16(AvgAccumulator.toFixed16(value));
+				else if( format == AvgAccumulator.Format.FORMAT_FLOAT16 )
+					stored = AvgAccumulator.fromFloat16(AvgAccumulator.toFloat16(value));
+				else
+					stored = value;
+				max_error = Math.max(max_error, Math.abs(stored - value));
+			}
+			Log.d(TAG, format + ": max_error " + max_error + " bound " + bound);
+			assertTrue(max_error <= bound);
+		}
+	}
+
+	@Test
+	public void testAvgAccumulator() {
+		Log.d(TAG, "testAvgAccumulator");
+
+		final int width = 97;
+		final int height = 61;
+		final int n_images = 8;
+		final float wiener_C = 4000.0f;
+		final float wiener_C_cutoff = 8.0f * wiener_C;
+		Random random = new Random(1234);
+		int [][] images = new int[n_images][width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int base_r = (x * 255) / width;
+				int base_g = (y * 255) / height;
+				int base_b = ((x + y) * 7) % 256;
+				for(int i=0;i<n_images;i++) {
+					int r = Math.max(0, Math.min(255, base_r + (int)(random.nextGaussian() * 12.0)));
+					int g = Math.max(0, Math.min(255, base_g + (int)(random.nextGaussian() * 12.0)));
+					int b = Math.max(0, Math.min(255, base_b + (int)(random.nextGaussian() * 12.0)));
+					images[i][y*width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+				}
+			}
+		}
+
+		AvgAccumulator.Format [] formats = AvgAccumulator.Format.values();
+		AvgAccumulator [] accumulators = new AvgAccumulator[formats.length];
+		for(int f=0;f<formats.length;f++) {
+			accumulators[f] = new AvgAccumulator(formats[f], width, height);
+			accumulators[f].set(images[0]);
+			for(int i=1;i<n_images;i++) {
+				// as with ImageSaver, avg_factor is 1 for the first two images, then increases by 1 for each image
+				float avg_factor = Math.max(i, 1);
+				// use some offsets, to check pixels outside the new image are handled
+				accumulators[f].merge(images[i], i % 3 - 1, i % 2, avg_factor, wiener_C, wiener_C_cutoff);
+			}
+		}
+		assertEquals(16, AvgAccumulator.getAllocationBytesPerPixel(AvgAccumulator.Format.FORMAT_FLOAT32));
+		assertEquals(8, AvgAccumulator.getAllocationBytesPerPixel(AvgAccumulator.Format.FORMAT_FIXED16));
+		assertEquals(8, AvgAccumulator.getAllocationBytesPerPixel(AvgAccumulator.Format.FORMAT_FLOAT16));
+		assertEquals(2*accumulators[1].getBytesPerPixel(), accumulators[0].getBytesPerPixel());
+
+		// compare the reduced precision formats with 32-bit float
+		for(int f=1;f<formats.length;f++) {
+			// rounding errors from each store are scaled down by later merges, so the total error is at most
+			// n_images times the error of a single store
+			float bound = n_images * AvgAccumulator.getStoreErrorBound(formats[f]);
+			float max_error = 0.0f;
+			double sum_error = 0.0;
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					for(int c=0;c<3;c++) {
+						float error = Math.abs(accumulators[f].get(x, y, c) - accumulators[0].get(x, y, c));
+						max_error = Math.max(max_error, error);
+						sum_error += error;
+					}
+				}
+			}
+			double mean_error = sum_error / (3*width*height);
+			Log.d(TAG, formats[f] + ": max_error " + max_error + " mean_error " + mean_error + " bound " + bound);
+			assertTrue(max_error <= bound);
+			// final results are rounded to 8 bits, so mean error should be well below 1 level
+			assertTrue(mean_error < 0.05);
+		}
+	}
+
+	@Test
+	public void testCLAHEProcessor() {
+		Log.d(TAG, "testCLAHEProcessor");
+
+		// smooth gradients plus noise, so that tiles have different histograms
+		final int width = 203, height = 151;
+		int [] image = new int[width*height];
+		Random random = new Random(12345);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int r = Math.min(255, (x*160)/width + random.nextInt(32));
+				int g = Math.min(255, (y*200)/height + random.nextInt(16));
+				int b = Math.min(255, ((x+y)*64)/(width+height) + random.nextInt(8));
+				image[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+
+		CLAHEProcessor single = new CLAHEProcessor(new ForkJoinPool(1));
+		CLAHEProcessor parallel = new CLAHEProcessor(new ForkJoinPool(4));
+		int [] n_tiles_values = {1, 2, 4, 8, 16};
+		for(int n_tiles : n_tiles_values) {
+			Log.d(TAG, "n_tiles: " + n_tiles);
+			int [] expected = new int[width*height];
+			single.adjustHistogram(image, expected, width, height, 0.5f, n_tiles);
+			int [] output = new int[width*height];
+			parallel.adjustHistogram(image, output, width, height, 0.5f, n_tiles);
+			assertArrayEquals(expected, output);
+
+			// can also process in place
+			int [] in_place = image.clone();
+			parallel.adjustHistogram(in_place, in_place, width, height, 0.5f, n_tiles);
+			assertArrayEquals(expected, in_place);
+
+			// hdr_alpha of 0 means no change
+			parallel.adjustHistogram(image, output, width, height, 0.0f, n_tiles);
+			assertArrayEquals(image, output);
+		}
+
+		// with a single tile, the adjustment is a global function of the maximum of r, g, b, so
+		// should preserve the ordering of values
+		int [] output = new int[width*height];
+		parallel.adjustHistogram(image, output, width, height, 1.0f, 1);
+		int [] mapping = new int[256];
+		Arrays.fill(mapping, -1);
+		for(int i=0;i<width*height;i++) {
+			int in = Math.max((image[i] >> 16) & 0xff, Math.max((image[i] >> 8) & 0xff, image[i] & 0xff));
+			int out = Math.max((output[i] >> 16) & 0xff, Math.max((output[i] >> 8) & 0xff, output[i] & 0xff));
+			// rounding of each channel may differ by one from the scaled maximum
+			if( mapping[in] == -1 )
+				mapping[in] = out;
+			assertTrue(Math.abs(mapping[in] - out) <= 1);
+		}
+		int prev = -1;
+		for(int i=0;i<256;i++) {
+			if( mapping[i] != -1 ) {
+				assertTrue(mapping[i] >= prev - 1);
+				prev = Math.max(prev, mapping[i]);
+			}
+		}
+
+		// more tiles than pixels, so some tiles are empty; and a black image
+		int [] small = new int[3*2];
+		small[0] = 0xff102030;
+		small[4] = 0xff808080;
+		int [] small_output = new int[3*2];
+		parallel.adjustHistogram(small, small_output, 3, 2, 0.5f, 4);
+		for(int i=0;i<small.length;i++) {
+			if( small[i] == 0 )
+				assertEquals(0xff000000, small_output[i]);
+		}
+		int [] black = new int[16*16];
+		int [] black_output = new int[16*16];
+		parallel.adjustHistogram(black, black_output, 16, 16, 0.5f, 2);
+		for(int i=0;i<black.length;i++) {
+			assertEquals(0xff000000, black_output[i]);
+		}
+	}
+
+	@Test
+	public void testTonemapLUT() {
+		Log.d(TAG, "testTonemapLUT");
+
+		final float max_value = 1020.0f;
+		final float tonemap_scale = 255.0f;
+		// parameters as computed in HDRProcessor.processHDRCore() for max_possible_value of max_value
+		HDRProcessorCPU.TonemapParameters [] tonemaps = {
+				new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_CLAMP, tonemap_scale, 1.0f, 0.0f),
+				new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_EXPONENTIAL, tonemap_scale, (float)(1.0 / (1.0 - Math.exp(-HDRProcessorCPU.exposure_c * max_value / 255.0))), 0.0f),
+				new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, tonemap_scale, (max_value + tonemap_scale) / max_value, 0.0f),
+				new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, 20.0f, (max_value + 20.0f) / max_value, 0.0f),
+				new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_FILMIC, tonemap_scale, 1.0f, HDRProcessorCPU.filmic_exposure_bias_c * max_value),
+				new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_ACES, tonemap_scale, 1.0f, 0.0f)
+		};
+		Random random = new Random(0);
+		for(HDRProcessorCPU.TonemapParameters tonemap : tonemaps) {
+			TonemapLUT lut = new TonemapLUT(tonemap, max_value, TonemapLUT.default_size_c);
+			boolean reinhard = tonemap == tonemaps[2] || tonemap == tonemaps[3];
+
+			// bound the interpolation error, in units of output levels
+			float max_error = 0.0f;
+			final int n_steps = 100000;
+			for(int i=0;i<=n_steps;i++) {
+				float x = (i * max_value) / n_steps;
+				float error = Math.abs(lut.lookup(x) - lut.evaluate(x));
+				if( reinhard ) {
+					// table stores the scale, which is multiplied by values up to x
+					error *= x;
+				}
+				max_error = Math.max(max_error, error);
+			}
+			Log.d(TAG, "max interpolation error: " + max_error);
+			assertTrue(max_error < 0.01f);
+
+			// values outside of the table fall back to evaluating the curve
+			assertEquals(lut.evaluate(-1.0f), lut.lookup(-1.0f), 0.0f);
+			assertEquals(lut.evaluate(2.0f*max_value), lut.lookup(2.0f*max_value), 0.0f);
+
+			// compare the final results with HDRProcessorCPU.tonemap()
+			final int n_pixels = 100000;
+			int n_diffs = 0;
+			for(int i=0;i<n_pixels;i++) {
+				float hdr_r = random.nextFloat() * max_value;
+				float hdr_g = random.nextFloat() * max_value;
+				float hdr_b = random.nextFloat() * max_value;
+				int expected = lut.tonemapDirect(hdr_r, hdr_g, hdr_b);
+				int result = lut.tonemap(hdr_r, hdr_g, hdr_b);
+				if( expected != result ) {
+					n_diffs++;
+					for(int c=0;c<3;c++) {
+						assertTrue(Math.abs(((expected >> (8*c)) & 0xff) - ((result >> (8*c)) & 0xff)) <= 1);
+					}
+				}
+			}
+			Log.d(TAG, "n_diffs: " + n_diffs);
+			assertTrue(n_diffs <= n_pixels/100);
+		}
+
+		// test the cache
+		TonemapLUT.clearCache();
+		assertEquals(0, TonemapLUT.getCacheSize());
+		TonemapLUT lut0 = TonemapLUT.getCached(tonemaps[2], max_value);
+		assertSame(lut0, TonemapLUT.getCached(tonemaps[2], max_value));
+		// same parameters in a different object should also match
+		HDRProcessorCPU.TonemapParameters copy = new HDRProcessorCPU.TonemapParameters(HDRProcessor.TonemappingAlgorithm.TONEMAPALGORITHM_REINHARD, tonemap_scale, (max_value + tonemap_scale) / max_value, 0.0f);
+		assertSame(lut0, TonemapLUT.getCached(copy, max_value));
+		TonemapLUT lut1 = TonemapLUT.getCached(tonemaps[1], max_value);
+		assertNotSame(lut0, lut1);
+		assertNotSame(lut0, TonemapLUT.getCached(tonemaps[2], 2.0f*max_value));
+		assertEquals(3, TonemapLUT.getCacheSize());
+		// add more entries, but keep lut0 recently used, so that lut1 is evicted first
+		for(int i=0;i<20;i++) {
+			assertSame(lut0, TonemapLUT.getCached(tonemaps[2], max_value));
+			TonemapLUT.getCached(tonemaps[5], 256.0f + i);
+		}
+		assertTrue(TonemapLUT.getCacheSize() < 20);
+		assertSame(lut0, TonemapLUT.getCached(tonemaps[2], max_value));
+		assertNotSame(lut1, TonemapLUT.getCached(tonemaps[1], max_value));
+		TonemapLUT.clearCache();
+	}
+
+	@Test
+	public void testFocusStackerAlign() {
+		Log.d(TAG, "testFocusStackerAlign");
+
+		// smooth pattern plus noise, with the images cropped from a larger scene at different positions
+		final int width = 768, height = 512;
+		final int margin = 16;
+		final int scene_width = width + 2*margin;
+		final int scene_height = height + 2*margin;
+		int [] scene = new int[scene_width*scene_height];
+		Random random = new Random(0);
+		for(int y=0;y<scene_height;y++) {
+			for(int x=0;x<scene_width;x++) {
+				double value = 128.0 + 60.0*Math.sin(x/23.0) * Math.cos(y/17.0) + 40.0*Math.sin((x+2*y)/41.0) + random.nextInt(9) - 4;
+				int v = Math.max(0, Math.min(255, (int)value));
+				scene[y*scene_width+x] = 0xff000000 | (v << 16) | (v << 8) | v;
+			}
+		}
+		final int [] expected_offsets_x = {3, 0, -5};
+		final int [] expected_offsets_y = {-2, 0, 4};
+		int [][] images = new int[3][width*height];
+		for(int i=0;i<3;i++) {
+			// image i at (x + offset_x, y + offset_y) should match the base image at (x, y)
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					images[i][y*width+x] = scene[(y + margin - expected_offsets_y[i])*scene_width + (x + margin - expected_offsets_x[i])];
+				}
+			}
+		}
+		FocusStacker focusStacker = new FocusStacker(new ForkJoinPool(2), FocusStacker.default_tile_size_c);
+		int [] offsets_x = new int[3];
+		int [] offsets_y = new int[3];
+		focusStacker.align(images, width, height, 1, offsets_x, offsets_y);
+		for(int i=0;i<3;i++) {
+			Log.d(TAG, "offset " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+			assertEquals(expected_offsets_x[i], offsets_x[i]);
+			assertEquals(expected_offsets_y[i], offsets_y[i]);
+		}
+	}
+
+	@Test
+	public void testFocusStacker() {
+		Log.d(TAG, "testFocusStacker");
+
+		// random texture, where each image is only sharp in one vertical strip
+		final int width = 150, height = 100;
+		final int n_images = 3;
+		final int tile_size = 8;
+		Random random = new Random(0);
+		final int [] sharp = new int[width*height];
+		for(int i=0;i<width*height;i++) {
+			sharp[i] = 0xff000000 | (random.nextInt(256) << 16) | (random.nextInt(256) << 8) | random.nextInt(256);
+		}
+		final int [] blurred = new int[width*height];
+		final int radius = 2;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int r = 0, g = 0, b = 0, count = 0;
+				for(int dy=-radius;dy<=radius;dy++) {
+					for(int dx=-radius;dx<=radius;dx++) {
+						int sx = Math.max(0, Math.min(width-1, x+dx));
+						int sy = Math.max(0, Math.min(height-1, y+dy));
+						int color = sharp[sy*width+sx];
+						r += (color >> 16) & 0xff;
+						g += (color >> 8) & 0xff;
+						b += color & 0xff;
+						count++;
+					}
+				}
+				blurred[y*width+x] = 0xff000000 | ((r/count) << 16) | ((g/count) << 8) | (b/count);
+			}
+		}
+		final int [][] images = new int[n_images][width*height];
+		for(int i=0;i<n_images;i++) {
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					boolean in_focus = (x*n_images)/width == i;
+					images[i][y*width+x] = in_focus ? sharp[y*width+x] : blurred[y*width+x];
+				}
+			}
+		}
+		FocusStacker.RowSource source = new FocusStacker.RowSource() {
+			@Override
+			public boolean readRows(int index, int start_y, int n_rows, int [] argb) {
+				assertTrue(start_y >= 0);
+				assertTrue(start_y + n_rows <= height);
+				System.arraycopy(images[index], start_y*width, argb, 0, n_rows*width);
+				return true;
+			}
+		};
+
+		// results should be the same for any band height, and number of threads
+		final int [] band_heights = {height, 1, 16, 37};
+		final int [][] offsets = {{0, 0, 0}, {2, 0, -3}};
+		for(int [] offsets_values : offsets) {
+			int [] expected = null;
+			for(int band_height : band_heights) {
+				for(int n_threads=1;n_threads<=4;n_threads+=3) {
+					final int [] output = new int[width*height];
+					final int [] next_row = new int[1];
+					FocusStacker.RowSink sink = new FocusStacker.RowSink() {
+						@Override
+						public void writeRows(int start_y, int n_rows, int [] argb) {
+							// rows should be supplied in order
+							assertEquals(next_row[0], start_y);
+							next_row[0] += n_rows;
+							System.arraycopy(argb, 0, output, start_y*width, n_rows*width);
+						}
+					};
+					FocusStacker focusStacker = new FocusStacker(new ForkJoinPool(n_threads), tile_size);
+					// use the same offsets for x and y
+					assertTrue( focusStacker.process(n_images, width, height, offsets_values, offsets_values, source, sink, band_height) );
+					assertEquals(height, next_row[0]);
+					if( expected == null )
+						expected = output;
+					else
+						assertArrayEquals(expected, output);
+				}
+			}
+		}
+
+		// with no offsets, the result should be close to the sharp image, other than near the boundaries of the strips
+		final int [] output = new int[width*height];
+		FocusStacker focusStacker = new FocusStacker(new ForkJoinPool(2), tile_size);
+		focusStacker.process(n_images, width, height, new int[n_images], new int[n_images], source, new FocusStacker.RowSink() {
+			@Override
+			public void writeRows(int start_y, int n_rows, int [] argb) {
+				System.arraycopy(argb, 0, output, start_y*width, n_rows*width);
+			}
+		}, 32);
+		double output_error = 0.0, blurred_error = 0.0;
+		int count = 0;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int strip = (x*n_images)/width;
+				int strip_start = (strip*width)/n_images;
+				int strip_end = ((strip+1)*width)/n_images;
+				if( x < strip_start + 2*tile_size || x >= strip_end - 2*tile_size )
+					continue;
+				int expected = sharp[y*width+x];
+				for(int c=0;c<3;c++) {
+					output_error += Math.abs(((output[y*width+x] >> (8*c)) & 0xff) - ((expected >> (8*c)) & 0xff));
+					blurred_error += Math.abs(((blurred[y*width+x] >> (8*c)) & 0xff) - ((expected >> (8*c)) & 0xff));
+				}
+				count++;
+			}
+		}
+		output_error /= 3*count;
+		blurred_error /= 3*count;
+		Log.d(TAG, "output_error: " + output_error);
+		Log.d(TAG, "blurred_error: " + blurred_error);
+		assertTrue(output_error < 1.0);
+		assertTrue(blurred_error > 20.0);
+
+		// if the source fails to read any rows, we should stop, without writing the band that failed
+		final int fail_y = 40;
+		final int [] next_row = new int[1];
+		boolean ok = focusStacker.process(n_images, width, height, new int[n_images], new int[n_images], new FocusStacker.RowSource() {
+			@Override
+			public boolean readRows(int index, int start_y, int n_rows, int [] argb) {
+				if( index == 1 && start_y + n_rows > fail_y )
+					return false;
+				System.arraycopy(images[index], start_y*width, argb, 0, n_rows*width);
+				return true;
+			}
+		}, new FocusStacker.RowSink() {
+			@Override
+			public void writeRows(int start_y, int n_rows, int [] argb) {
+				assertTrue(start_y + n_rows <= fail_y);
+				next_row[0] = start_y + n_rows;
+			}
+		}, 16);
+		assertFalse(ok);
+		assertTrue(next_row[0] < fail_y);
+	}
+
+	@Test
+	public void testExposureFusion() {
+		Log.d(TAG, "testExposureFusion");
+
+		final int width = 97, height = 61;
+		Random random = new Random(0);
+		final int [] image = new int[width*height];
+		for(int i=0;i<width*height;i++) {
+			image[i] = 0xff000000 | (random.nextInt(256) << 16) | (random.nextInt(256) << 8) | random.nextInt(256);
+		}
+
+		ExposureFusion exposureFusion = new ExposureFusion(null, ExposureFusion.default_min_level_size_c);
+		assertEquals(4, exposureFusion.getNLevels(width, height));
+		assertEquals(1, exposureFusion.getNLevels(8, 100));
+
+		// fusing copies of the same image should reconstruct the image
+		final int [][] copies = {image, image.clone(), image.clone()};
+		final int [] zero_offsets = new int[3];
+		int [] output = new int[width*height];
+		exposureFusion.process(copies, width, height, zero_offsets, zero_offsets, output);
+		for(int i=0;i<width*height;i++) {
+			for(int c=0;c<3;c++) {
+				int diff = Math.abs(((output[i] >> (8*c)) & 0xff) - ((image[i] >> (8*c)) & 0xff));
+				assertTrue(diff <= 1);
+			}
+		}
+
+		// results should be the same for any number of threads, and with offsets
+		final int [] offsets_x = {3, 0, -2};
+		final int [] offsets_y = {-1, 0, 4};
+		final int [][] images = new int[3][width*height];
+		for(int i=0;i<3;i++) {
+			for(int j=0;j<width*height;j++) {
+				images[i][j] = 0xff000000 | (random.nextInt(256) << 16) | (random.nextInt(256) << 8) | random.nextInt(256);
+			}
+		}
+		int [] expected = null;
+		for(int n_threads=1;n_threads<=4;n_threads++) {
+			output = new int[width*height];
+			new ExposureFusion(new ForkJoinPool(n_threads), ExposureFusion.default_min_level_size_c).process(images, width, height, offsets_x, offsets_y, output);
+			if( expected == null )
+				expected = output;
+			else
+				assertArrayEquals(expected, output);
+		}
+
+		// a dark image, a well exposed image, and an image that is overexposed in the left half: the
+		// left half of the result should come from the well exposed image, and the result should
+		// never be overexposed
+		final int [] dark = new int[width*height];
+		final int [] mid = new int[width*height];
+		final int [] bright = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int value = 96 + ((x + y) % 64);
+				mid[y*width+x] = 0xff000000 | (value << 16) | (value << 8) | value;
+				int dark_value = value/4;
+				dark[y*width+x] = 0xff000000 | (dark_value << 16) | (dark_value << 8) | dark_value;
+				int bright_value = x < width/2 ? 255 : Math.min(255, value + 40);
+				bright[y*width+x] = 0xff000000 | (bright_value << 16) | (bright_value << 8) | bright_value;
+			}
+		}
+		output = new int[width*height];
+		exposureFusion.process(new int[][]{dark, mid, bright}, width, height, zero_offsets, zero_offsets, output);
+		double error = 0.0;
+		int count = 0;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width/2-8;x++) {
+				int value = output[y*width+x] & 0xff;
+				assertTrue(value < 255);
+				error += Math.abs(value - (mid[y*width+x] & 0xff));
+				count++;
+			}
+		}
+		error /= count;
+		Log.d(TAG, "error in overexposed region: " + error);
+		assertTrue(error < 20.0);
+
+		// small images don't use a pyramid
+		final int [] small = {0xff102030, 0xff405060, 0xff708090, 0xffa0b0c0};
+		output = new int[4];
+		exposureFusion.process(new int[][]{small, small.clone()}, 2, 2, new int[2], new int[2], output);
+		assertArrayEquals(small, output);
+	}
+
+	/** Returns a jpeg with an APP0/JFIF segment, the supplied segment (if non-null), and some fake
+	 *  scan data.
+	 */
+	private static byte [] makeTestJpeg(byte [] segment) throws IOException {
+		ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+		jpeg.write(new byte[]{(byte)0xFF, (byte)0xD8}); // SOI
+		jpeg.write(new byte[]{(byte)0xFF, (byte)0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0}); // APP0
+		if( segment != null )
+			jpeg.write(segment);
+		jpeg.write(new byte[]{(byte)0xFF, (byte)0xDA, 0, 4, 1, 2, 3, 4, 5, (byte)0xFF, 0, 6, (byte)0xFF, (byte)0xD9}); // SOS, scan data, EOI
+		return jpeg.toByteArray();
+	}
+
+	private static int countExifSegments(byte [] jpeg) {
+		int count = 0;
+		for(int i=0;i+6<=jpeg.length;i++) {
+			if( jpeg[i] == 'E' && jpeg[i+1] == 'x' && jpeg[i+2] == 'i' && jpeg[i+3] == 'f' && jpeg[i+4] == 0 && jpeg[i+5] == 0 )
+				count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testCaptureSpool() throws IOException {
+		Log.d(TAG, "testCaptureSpool");
+
+		File file = File.createTempFile("capture_spool", null);
+		file.deleteOnExit();
+		CaptureSpool spool = new CaptureSpool(file, 0);
+		List<CaptureSpool.Entry> entries = spool.open();
+		assertNotNull(entries);
+		assertEquals(0, entries.size());
+		assertTrue(spool.hasSpaceFor(1024));
+		assertFalse(new CaptureSpool(file, Long.MAX_VALUE).hasSpaceFor(1024));
+
+		// the spool can only be open by one instance at a time
+		assertNull(new CaptureSpool(file, 0).open());
+
+		Random random = new Random(1234);
+		List<List<byte []>> images = new ArrayList<>();
+		List<CaptureSpool.Entry> appended = new ArrayList<>();
+		for(int i=0;i<4;i++) {
+			List<byte []> entry_images = new ArrayList<>();
+			for(int j=0;j<i;j++) {
+				byte [] image = new byte[1000 + random.nextInt(100000)];
+				random.nextBytes(image);
+				entry_images.add(image);
+			}
+			images.add(entry_images);
+			appended.add(spool.append(new byte[]{(byte)i, 1, 2}, entry_images));
+		}
+		assertEquals(4, spool.getNPending());
+		for(int i=0;i<4;i++) {
+			CaptureSpool.Entry entry = appended.get(i);
+			assertEquals(i, entry.getNImages());
+			List<byte []> read_images = spool.readImages(entry);
+			assertEquals(i, read_images.size());
+			for(int j=0;j<i;j++) {
+				assertArrayEquals(images.get(i).get(j), read_images.get(j));
+			}
+		}
+		spool.complete(appended.get(1));
+		assertEquals(3, spool.getNPending());
+		spool.close();
+
+		// entries that weren't completed are recovered, in order
+		spool = new CaptureSpool(file, 0);
+		entries = spool.open();
+		assertNotNull(entries);
+		assertEquals(3, entries.size());
+		int [] expected_indices = new int[]{0, 2, 3};
+		for(int i=0;i<3;i++) {
+			int index = expected_indices[i];
+			CaptureSpool.Entry entry = entries.get(i);
+			assertEquals(appended.get(index).getId(), entry.getId());
+			assertArrayEquals(new byte[]{(byte)index, 1, 2}, entry.getMetadata());
+			assertEquals(0, entry.getNRecoveries());
+			assertEquals(appended.get(index).getImageBytes(), entry.getImageBytes());
+			List<byte []> read_images = spool.readImages(entry);
+			for(int j=0;j<index;j++) {
+				assertArrayEquals(images.get(index).get(j), read_images.get(j));
+			}
+		}
+		// new entries continue after the recovered ones
+		CaptureSpool.Entry new_entry = spool.append(new byte[0], images.get(3));
+		assertTrue(new_entry.getId() > entries.get(2).getId());
+		long size = spool.getSize();
+		spool.close();
+
+		// a record that was only partly written is discarded
+		RandomAccessFile random_access_file = new RandomAccessFile(file, "rw");
+		random_access_file.setLength(size - 10);
+		random_access_file.close();
+		spool = new CaptureSpool(file, 0);
+		entries = spool.open();
+		assertNotNull(entries);
+		assertEquals(3, entries.size());
+		assertEquals(appended.get(3).getId(), entries.get(2).getId());
+		// the recoveries are counted
+		for(CaptureSpool.Entry entry : entries) {
+			assertEquals(1, entry.getNRecoveries());
+		}
+		spool.complete(entries.get(0));
+		spool.complete(entries.get(2));
+		spool.close();
+
+		// corrupted data is also discarded
+		spool = new CaptureSpool(file, 0);
+		entries = spool.open();
+		assertNotNull(entries);
+		assertEquals(1, entries.size());
+		assertEquals(appended.get(2).getId(), entries.get(0).getId());
+		assertEquals(2, entries.get(0).getNRecoveries());
+		new_entry = spool.append(new byte[0], images.get(3));
+		size = spool.getSize();
+		spool.close();
+		random_access_file = new RandomAccessFile(file, "rw");
+		random_access_file.seek(size - 1000);
+		random_access_file.write(random_access_file.read() ^ 0xff);
+		random_access_file.close();
+		spool = new CaptureSpool(file, 0);
+		entries = spool.open();
+		assertNotNull(entries);
+		assertEquals(1, entries.size());
+		assertEquals(appended.get(2).getId(), entries.get(0).getId());
+
+		// once all entries are completed, the spool is emptied
+		spool.complete(entries.get(0));
+		assertEquals(0, spool.getNPending());
+		assertEquals(0, spool.getSize());
+		spool.close();
+		assertEquals(0, file.length());
+		spool = new CaptureSpool(file, 0);
+		entries = spool.open();
+		assertNotNull(entries);
+		assertEquals(0, entries.size());
+		spool.close();
+		assertTrue(file.delete());
+	}
+
+	@Test
+	public void testJpegBufferPool() throws IOException {
+		Log.d(TAG, "testJpegBufferPool");
+
+		// size classes
+		assertEquals(64*1024, JpegBufferPool.getClassSize(1));
+		assertEquals(64*1024, JpegBufferPool.getClassSize(64*1024));
+		assertEquals(72*1024, JpegBufferPool.getClassSize(64*1024+1));
+		assertEquals(4*1024*1024, JpegBufferPool.getClassSize(4*1024*1024));
+		assertEquals(4*1024*1024 + 512*1024, JpegBufferPool.getClassSize(4*1024*1024+1));
+		for(int length=1;length<20000000;length=length*3/2+7) {
+			int class_size = JpegBufferPool.getClassSize(length);
+			assertTrue(class_size >= length);
+			assertTrue(length <= 64*1024 || class_size <= length*1.125+1);
+		}
+
+		JpegBufferPool pool = new JpegBufferPool(10*1024*1024);
+		JpegBuffer buffer = pool.acquire(3000000);
+		assertTrue(buffer.isPooled());
+		assertEquals(3000000, buffer.getLength());
+		assertEquals(JpegBufferPool.getClassSize(3000000), buffer.getArray().length);
+		assertEquals(0, pool.getNHits());
+		assertEquals(1, pool.getNMisses());
+		byte [] array = buffer.getArray();
+
+		// the array is only returned to the pool once all owners have released it
+		assertSame(buffer, buffer.retain());
+		buffer.release();
+		assertEquals(0, pool.getNRetained());
+		buffer.release();
+		assertEquals(1, pool.getNRetained());
+		assertEquals(array.length, pool.getRetainedBytes());
+		try {
+			buffer.release();
+			fail();
+		}
+		catch(RuntimeException e) {
+			// expected
+		}
+
+		// a slightly different size reuses the array, but a much smaller one doesn't
+		JpegBuffer small = pool.acquire(1000000);
+		assertNotSame(array, small.getArray());
+		JpegBuffer reused = pool.acquire(3000000 - 1000);
+		assertSame(array, reused.getArray());
+		assertEquals(3000000 - 1000, reused.getLength());
+		assertEquals(1, pool.getNHits());
+		assertEquals(2, pool.getNMisses());
+		assertEquals(1.0f/3.0f, pool.getHitRate(), 1.0e-5f);
+		assertEquals(0, pool.getNRetained());
+
+		// the least recently released arrays are discarded beyond the limit
+		List<JpegBuffer> buffers = new ArrayList<>();
+		for(int i=0;i<4;i++) {
+			buffers.add(pool.acquire(3000000));
+		}
+		JpegBuffer.releaseAll(buffers);
+		assertEquals(3, pool.getNRetained());
+		assertTrue(pool.getRetainedBytes() <= 10*1024*1024);
+		assertNotSame(buffers.get(0).getArray(), pool.acquire(3000000).getArray());
+		pool.clear();
+		assertEquals(0, pool.getNRetained());
+		assertEquals(0, pool.getRetainedBytes());
+
+		// copies only contain the requested length
+		byte [] data = new byte[100000];
+		new Random(1234).nextBytes(data);
+		JpegBuffer copy = pool.acquireCopy(data, data.length);
+		assertTrue(copy.getArray().length > data.length);
+		assertArrayEquals(data, copy.toByteArray());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		copy.writeTo(output);
+		assertArrayEquals(data, output.toByteArray());
+		assertEquals(data.length, copy.asByteBuffer().remaining());
+		assertEquals(data[0], (byte)copy.asInputStream().read());
+		// pooled arrays are copied even if they're the exact length, as the array is reused once released
+		byte [] class_data = Arrays.copyOf(data, JpegBufferPool.getClassSize(data.length));
+		JpegBuffer class_copy = pool.acquireCopy(class_data, class_data.length);
+		assertEquals(class_data.length, class_copy.getArray().length);
+		assertNotSame(class_copy.getArray(), class_copy.toByteArray());
+		assertArrayEquals(class_data, class_copy.toByteArray());
+
+		// wrapped arrays aren't copied or pooled
+		JpegBuffer wrapped = JpegBuffer.wrap(data);
+		assertFalse(wrapped.isPooled());
+		assertSame(data, wrapped.toByteArray());
+		wrapped.release();
+		assertEquals(0, pool.getNRetained());
+
+		// pooled buffers can be spooled, without the unused end of the array
+		File file = File.createTempFile("capture_spool", null);
+		file.deleteOnExit();
+		CaptureSpool spool = new CaptureSpool(file, 0);
+		assertNotNull(spool.open());
+		List<JpegBuffer> images = new ArrayList<>();
+		images.add(copy);
+		CaptureSpool.Entry entry = spool.appendBuffers(new byte[0], images);
+		assertEquals(data.length, entry.getImageBytes());
+		assertArrayEquals(data, spool.readImages(entry).get(0));
+		spool.complete(entry);
+		spool.close();
+		assertTrue(file.delete());
+	}
+
+	@Test
+	public void testCaptureResultCache() throws InterruptedException {
+		Log.d(TAG, "testCaptureResultCache");
+
+		final long ms = 1000000L;
+		CaptureResultCache cache = new CaptureResultCache(8);
+		assertEquals(8, cache.getCapacity());
+		CaptureResultCache.Record record = new CaptureResultCache.Record();
+		assertFalse(cache.getLatest(record));
+		assertFalse(cache.hasLatest(CaptureResultCache.FIELD_ISO));
+		assertFalse(cache.get(0, record));
+		assertFalse(cache.getByTimestamp(0, record));
+
+		CaptureResultCache.Record writer = new CaptureResultCache.Record();
+		for(int i=0;i<12;i++) {
+			writer.clear();
+			writer.set(CaptureResultCache.FIELD_FRAME_NUMBER, i);
+			writer.set(CaptureResultCache.FIELD_TIMESTAMP, 1000*ms + i*33*ms);
+			boolean modified = i >= 10;
+			writer.set(CaptureResultCache.FIELD_FLAGS, modified ? CaptureResultCache.FLAG_MODIFIED : 0);
+			writer.set(CaptureResultCache.FIELD_ISO, 100 + i);
+			if( i % 2 == 0 )
+				writer.set(CaptureResultCache.FIELD_EXPOSURE_TIME, i*ms);
+			writer.setFloat(CaptureResultCache.FIELD_FOCUS_DISTANCE, 0.25f*i);
+			cache.put(writer, !modified);
+		}
+
+		// the oldest frames were overwritten
+		assertFalse(cache.get(3, record));
+		assertFalse(cache.getByTimestamp(1000*ms + 3*33*ms, record));
+		assertTrue(cache.get(4, record));
+		assertEquals(4, record.get(CaptureResultCache.FIELD_FRAME_NUMBER));
+		assertEquals(104, record.get(CaptureResultCache.FIELD_ISO));
+		assertEquals(4*ms, record.get(CaptureResultCache.FIELD_EXPOSURE_TIME));
+		assertEquals(1.0f, record.getFloat(CaptureResultCache.FIELD_FOCUS_DISTANCE), 0.0f);
+		assertFalse(record.has(CaptureResultCache.FIELD_WB_RED));
+		assertFalse(record.hasFlag(CaptureResultCache.FLAG_MODIFIED));
+
+		assertTrue(cache.getByTimestamp(1000*ms + 7*33*ms, record));
+		assertEquals(7, record.get(CaptureResultCache.FIELD_FRAME_NUMBER));
+		assertFalse(record.has(CaptureResultCache.FIELD_EXPOSURE_TIME));
+		assertEquals(CaptureResultCache.NOT_AVAILABLE, record.get(CaptureResultCache.FIELD_EXPOSURE_TIME));
+
+		// frames with modified settings are cached, but aren't the latest
+		assertTrue(cache.get(11, record));
+		assertTrue(record.hasFlag(CaptureResultCache.FLAG_MODIFIED));
+		assertTrue(cache.getLatest(record));
+		assertEquals(9, record.get(CaptureResultCache.FIELD_FRAME_NUMBER));
+		assertEquals(109, cache.getLatest(CaptureResultCache.FIELD_ISO));
+		assertFalse(cache.hasLatest(CaptureResultCache.FIELD_EXPOSURE_TIME));
+		assertEquals(2.25f, cache.getLatestFloat(CaptureResultCache.FIELD_FOCUS_DISTANCE), 0.0f);
+		// negative floats survive the round trip
+		writer.setFloat(CaptureResultCache.FIELD_WB_BLUE, -1.5f);
+		assertEquals(-1.5f, writer.getFloat(CaptureResultCache.FIELD_WB_BLUE), 0.0f);
+
+		cache.clear();
+		assertFalse(cache.getLatest(record));
+		assertFalse(cache.get(9, record));
+
+		// readers on another thread should never see a record that mixes the fields of two frames
+		final CaptureResultCache shared_cache = new CaptureResultCache(4);
+		final int n_frames = 200000;
+		final boolean [] torn = new boolean[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				CaptureResultCache.Record read_record = new CaptureResultCache.Record();
+				for(int i=0;i<n_frames;i++) {
+					if( shared_cache.getLatest(read_record) ) {
+						long frame_number = read_record.get(CaptureResultCache.FIELD_FRAME_NUMBER);
+						if( read_record.get(CaptureResultCache.FIELD_ISO) != frame_number || read_record.get(CaptureResultCache.FIELD_EXPOSURE_TIME) != 2*frame_number ) {
+							torn[0] = true;
+						}
+					}
+				}
+			}
+		});
+		reader.start();
+		for(int i=0;i<n_frames;i++) {
+			writer.clear();
+			writer.set(CaptureResultCache.FIELD_FRAME_NUMBER, i);
+			writer.set(CaptureResultCache.FIELD_ISO, i);
+			writer.set(CaptureResultCache.FIELD_EXPOSURE_TIME, 2*i);
+			shared_cache.put(writer, true);
+		}
+		reader.join();
+		assertFalse(torn[0]);
+	}
+
+	@Test
+	public void testZslRingBuffer() {
+		Log.d(TAG, "testZslRingBuffer");
+
+		final long ms = 1000000L;
+		JpegBufferPool pool = new JpegBufferPool(64*1024*1024);
+		final int class_size = JpegBufferPool.getClassSize(100000);
+		// room for 4 frames
+		ZslRingBuffer ring = new ZslRingBuffer(4*class_size + 1000, 10);
+		assertNull(ring.getSummary());
+		List<JpegBuffer> jpegs = new ArrayList<>();
+		for(int i=0;i<6;i++) {
+			JpegBuffer jpeg = pool.acquire(100000);
+			jpeg.getArray()[0] = (byte)i;
+			jpegs.add(jpeg);
+			// results normally arrive before the frame, but may be after
+			if( i % 2 == 0 ) {
+				ring.setResult(i*33*ms, 10*ms, 100 + i, i == 4);
+				ring.addFrame(i*33*ms, jpeg);
+			}
+			else {
+				ring.addFrame(i*33*ms, jpeg);
+				ring.setResult(i*33*ms, 10*ms, 100 + i, false);
+			}
+		}
+		// the two oldest frames were released back to the pool (and the first was reused for the last frame)
+		assertEquals(4, ring.getNFrames());
+		assertEquals(4*class_size, ring.getBytes());
+		assertEquals(1, pool.getNHits());
+		assertEquals(1, pool.getNRetained());
+
+		// closest frame to the press
+		ZslRingBuffer.Frame frame = ring.takeClosest(100*ms, 100*ms);
+		assertNotNull(frame);
+		assertEquals(99*ms, frame.getTimestamp());
+		assertSame(jpegs.get(3), frame.getJpeg());
+		assertTrue(frame.hasResult());
+		assertEquals(10*ms, frame.getExposureTime());
+		assertEquals(103, frame.getIso());
+		assertFalse(frame.isFocusMoving());
+		assertEquals(3, ring.getNFrames());
+		assertEquals(-ms, ring.getLastLag());
+		frame.getJpeg().release();
+
+		// frames where the focus was moving are avoided if possible
+		frame = ring.takeClosest(132*ms, 100*ms);
+		assertNotNull(frame);
+		assertEquals(165*ms, frame.getTimestamp());
+		assertEquals(33*ms, ring.getLastLag());
+		frame.getJpeg().release();
+		frame = ring.takeClosest(132*ms, 50*ms);
+		assertNotNull(frame);
+		assertEquals(132*ms, frame.getTimestamp());
+		assertTrue(frame.isFocusMoving());
+		frame.getJpeg().release();
+
+		// frames too far from the press aren't used
+		assertNull(ring.takeClosest(500*ms, 100*ms));
+		assertEquals(1, ring.getNMissed());
+		assertEquals(3, ring.getNTaken());
+		assertEquals(33*ms, ring.getMaxAbsLag());
+		assertEquals((ms + 33*ms)/3, ring.getMeanAbsLag());
+		ring.recordLag(200*ms);
+		assertEquals(4, ring.getNTaken());
+		assertEquals(200*ms, ring.getMaxAbsLag());
+		assertNotNull(ring.getSummary());
+
+		ring.clear();
+		assertEquals(0, ring.getNFrames());
+		assertEquals(0, ring.getBytes());
+		assertEquals(5, pool.getNRetained());
+
+		// the maximum number of frames is also respected
+		ring = new ZslRingBuffer(64*1024*1024, 2);
+		for(int i=0;i<3;i++) {
+			ring.addFrame(i, pool.acquire(100000));
+		}
+		assertEquals(2, ring.getNFrames());
+		assertNull(ring.takeClosest(0, 0));
+		assertNotNull(ring.takeClosest(1, 0));
+	}
+
+	@Test
+	public void testPreviewAnalyzer() {
+		Log.d(TAG, "testPreviewAnalyzer");
+
+		// left half bright, right half dark, with padding at the end of each row, and interleaved
+		// chroma as for NV21
+		final int width = 16, height = 8;
+		final int y_row_stride = 20, uv_row_stride = 16, uv_pixel_stride = 2;
+		ByteBuffer y_plane = ByteBuffer.allocate(y_row_stride*height);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<y_row_stride;x++) {
+				y_plane.put(y*y_row_stride + x, (byte)(x < width/2 ? 250 : x < width ? 50 : 0));
+			}
+		}
+		ByteBuffer uv_plane = ByteBuffer.allocate(uv_row_stride*height/2);
+		for(int i=0;i<uv_plane.capacity();i++) {
+			uv_plane.put(i, (byte)128);
+		}
+		ByteBuffer u_plane = uv_plane.duplicate();
+		ByteBuffer v_plane = uv_plane.duplicate();
+
+		PreviewAnalyzer analyzer = new PreviewAnalyzer();
+		assertFalse(analyzer.isEnabled());
+		analyzer.analyze(width, height, y_plane, y_row_stride, u_plane, v_plane, uv_row_stride, uv_pixel_stride, 1000);
+		assertNull(analyzer.acquireResult());
+		assertEquals(0, analyzer.getNFrames());
+		assertNull(analyzer.getSummary());
+
+		// histograms only
+		analyzer.setHistogramEnabled(true);
+		assertTrue(analyzer.isEnabled());
+		analyzer.analyze(width, height, y_plane, y_row_stride, u_plane, v_plane, uv_row_stride, uv_pixel_stride, 1000);
+		PreviewAnalyzer.Result result = analyzer.acquireResult();
+		assertNotNull(result);
+		assertEquals(1, result.getSequence());
+		assertEquals(1000, result.getTimestamp());
+		assertEquals(width, result.getWidth());
+		assertEquals(height, result.getHeight());
+		assertTrue(result.hasHistogram());
+		assertFalse(result.hasOverlay());
+		assertEquals(width*height/2, result.getNOverexposed());
+		assertEquals(width*height/2, result.getHistogramLuma()[250]);
+		assertEquals(width*height/2, result.getHistogramLuma()[50]);
+		// neutral chroma, so RGB equals luma
+		assertEquals(width*height/2, result.getHistogramRed()[250]);
+		assertEquals(width*height/2, result.getHistogramGreen()[50]);
+		assertEquals(width*height/2, result.getHistogramBlue()[50]);
+
+		// without a new frame, the same result is returned
+		assertSame(result, analyzer.acquireResult());
+
+		// red chroma
+		for(int i=1;i<uv_plane.capacity();i+=2) {
+			uv_plane.put(i, (byte)(128+64));
+		}
+		u_plane.position(0);
+		v_plane.position(1);
+		analyzer.analyze(width, height, y_plane, y_row_stride, u_plane.slice(), v_plane.slice(), uv_row_stride, uv_pixel_stride, 2000);
+		result = analyzer.acquireResult();
+		assertEquals(2, result.getSequence());
+		assertEquals(width*height/2, result.getHistogramRed()[255]); // clamped
+		assertEquals(width*height/2, result.getHistogramRed()[50+89]);
+		assertEquals(width*height/2, result.getHistogramGreen()[50-45]);
+		assertEquals(width*height/2, result.getHistogramBlue()[50]);
+		assertEquals(width*height/2, result.getHistogramLuma()[50]);
+
+		// zebra stripes and focus peaking
+		analyzer.setHistogramEnabled(false);
+		analyzer.setZebra(true, PreviewAnalyzer.DEFAULT_ZEBRA_THRESHOLD);
+		analyzer.setFocusPeaking(true, PreviewAnalyzer.DEFAULT_PEAKING_THRESHOLD);
+		// several frames before acquiring, only the latest should be returned
+		for(int i=0;i<3;i++) {
+			analyzer.analyze(width, height, y_plane, y_row_stride, u_plane, v_plane, uv_row_stride, uv_pixel_stride, 3000 + i);
+		}
+		PreviewAnalyzer.Result previous = result;
+		result = analyzer.acquireResult();
+		assertNotSame(previous, result);
+		assertEquals(5, result.getSequence());
+		assertEquals(3002, result.getTimestamp());
+		assertFalse(result.hasHistogram());
+		assertTrue(result.hasOverlay());
+		assertEquals(width*height/2, result.getNOverexposed());
+		int [] overlay = result.getOverlay();
+		assertEquals(PreviewAnalyzer.ZEBRA_COLOR, overlay[0]);
+		assertEquals(0, overlay[4]); // gap between stripes
+		assertEquals(PreviewAnalyzer.ZEBRA_COLOR, overlay[width + 7]); // (7+1)/4 is even
+		assertEquals(PreviewAnalyzer.PEAKING_COLOR, overlay[3*width + 8]); // dark side of the edge
+		assertEquals(0, overlay[3*width + 12]); // flat
+		assertEquals(0, overlay[8]); // no peaking on the border
+
+		// zebra threshold above the image
+		analyzer.setZebra(true, 255);
+		analyzer.setFocusPeaking(false, PreviewAnalyzer.DEFAULT_PEAKING_THRESHOLD);
+		analyzer.analyze(width, height, y_plane, y_row_stride, u_plane, v_plane, uv_row_stride, uv_pixel_stride, 4000);
+		result = analyzer.acquireResult();
+		assertEquals(0, result.getNOverexposed());
+		for(int i=0;i<width*height;i++) {
+			assertEquals(0, result.getOverlay()[i]);
+		}
+
+		assertEquals(6, analyzer.getNFrames());
+		assertTrue(analyzer.getFps() >= 0.0);
+		assertTrue(analyzer.getMeanCost() > 0.0);
+		assertNotNull(analyzer.getSummary());
+	}
+
+	@Test
+	public void testExifRewriter() throws IOException {
+		Log.d(TAG, "testExifRewriter");
+
+		// little endian tiff data, with IFD0, Exif IFD, and a thumbnail in IFD1
+		ByteBuffer tiff = ByteBuffer.allocate(148).order(ByteOrder.LITTLE_ENDIAN);
+		tiff.put((byte)'I').put((byte)'I').putShort((short)0x2A).putInt(8);
+		// IFD0 at 8
+		tiff.putShort((short)4);
+		tiff.putShort((short)0x010F).putShort((short)ExifRewriter.TYPE_ASCII).putInt(6).putInt(62); // Make
+		tiff.putShort((short)ExifRewriter.TAG_ORIENTATION).putShort((short)ExifRewriter.TYPE_SHORT).putInt(1).putShort((short)6).putShort((short)0);
+		tiff.putShort((short)ExifRewriter.TAG_DATETIME).putShort((short)ExifRewriter.TYPE_ASCII).putInt(20).putInt(68);
+		tiff.putShort((short)0x8769).putShort((short)ExifRewriter.TYPE_LONG).putInt(1).putInt(88); // Exif IFD pointer
+		tiff.putInt(114); // IFD1
+		tiff.put("Maker".getBytes()).put((byte)0);
+		tiff.put("2026:10:18 12:34:56".getBytes()).put((byte)0);
+		// Exif IFD at 88
+		tiff.putShort((short)1);
+		tiff.putShort((short)0x829A).putShort((short)ExifRewriter.TYPE_RATIONAL).putInt(1).putInt(106); // ExposureTime
+		tiff.putInt(0);
+		tiff.putInt(1).putInt(100);
+		// IFD1 at 114
+		tiff.putShort((short)2);
+		tiff.putShort((short)0x0201).putShort((short)ExifRewriter.TYPE_LONG).putInt(1).putInt(144);
+		tiff.putShort((short)0x0202).putShort((short)ExifRewriter.TYPE_LONG).putInt(1).putInt(4);
+		tiff.putInt(0);
+		final byte [] thumbnail = {(byte)0xFF, (byte)0xD8, (byte)0xFF, (byte)0xD9};
+		tiff.put(thumbnail);
+		assertEquals(148, tiff.position());
+
+		int app1_length = 2 + 6 + tiff.capacity();
+		ByteArrayOutputStream app1 = new ByteArrayOutputStream();
+		app1.write(new byte[]{(byte)0xFF, (byte)0xE1, (byte)(app1_length >> 8), (byte)app1_length, 'E', 'x', 'i', 'f', 0, 0});
+		app1.write(tiff.array());
+		byte [] jpeg = makeTestJpeg(app1.toByteArray());
+
+		ExifRewriter exif = ExifRewriter.parse(jpeg);
+		assertEquals(ByteOrder.LITTLE_ENDIAN, exif.getByteOrder());
+		assertEquals(6, exif.getOrientation());
+		assertEquals("Maker", exif.getAscii(ExifRewriter.Ifd.IFD_0, 0x010F));
+		assertEquals("2026:10:18 12:34:56", exif.getAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_DATETIME));
+		assertArrayEquals(new long[]{1, 100}, exif.getRational(ExifRewriter.Ifd.IFD_EXIF, 0x829A, 0));
+		assertArrayEquals(thumbnail, exif.getThumbnail());
+
+		// set the tags that the ImageSaver sets
+		exif.removeAttribute(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ORIENTATION);
+		exif.setAscii(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_DATETIME_ORIGINAL, "2026:10:18 12:34:56");
+		exif.setAscii(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_DATETIME_DIGITIZED, "2026:10:18 12:34:56");
+		exif.setAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ARTIST, "An Artist");
+		exif.setAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_COPYRIGHT, "A Copyright");
+		exif.setRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION, 12345, 100);
+		exif.setAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION_REF, "M");
+		exif.setAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_DATESTAMP, "2026:10:18");
+		exif.setRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_TIMESTAMP, 12, 1, 34, 1, 56, 1);
+		exif.setLong(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION, 4000);
+		exif.setShort(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_Y_DIMENSION, 3000);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ExifRewriter.writeJpeg(jpeg, exif.getApp1Segment(), output);
+		byte [] new_jpeg = output.toByteArray();
+		// the APP0 segment should remain first, followed by the new APP1 segment, and the old APP1 segment removed
+		assertArrayEquals(Arrays.copyOfRange(jpeg, 0, 20), Arrays.copyOfRange(new_jpeg, 0, 20));
+		assertEquals((byte)0xFF, new_jpeg[20]);
+		assertEquals((byte)0xE1, new_jpeg[21]);
+		assertEquals(1, countExifSegments(new_jpeg));
+		// the scan data should be unchanged
+		assertArrayEquals(Arrays.copyOfRange(jpeg, jpeg.length-14, jpeg.length), Arrays.copyOfRange(new_jpeg, new_jpeg.length-14, new_jpeg.length));
+
+		ExifRewriter new_exif = ExifRewriter.parse(new_jpeg);
+		assertEquals(ByteOrder.LITTLE_ENDIAN, new_exif.getByteOrder());
+		assertEquals(ExifRewriter.ORIENTATION_UNDEFINED, new_exif.getOrientation());
+		assertEquals("Maker", new_exif.getAscii(ExifRewriter.Ifd.IFD_0, 0x010F));
+		assertEquals("2026:10:18 12:34:56", new_exif.getAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_DATETIME));
+		assertEquals("2026:10:18 12:34:56", new_exif.getAscii(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_DATETIME_ORIGINAL));
+		assertEquals("2026:10:18 12:34:56", new_exif.getAscii(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_DATETIME_DIGITIZED));
+		assertEquals("An Artist", new_exif.getAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ARTIST));
+		assertEquals("A Copyright", new_exif.getAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_COPYRIGHT));
+		assertArrayEquals(new long[]{1, 100}, new_exif.getRational(ExifRewriter.Ifd.IFD_EXIF, 0x829A, 0));
+		assertArrayEquals(new long[]{12345, 100}, new_exif.getRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION, 0));
+		assertEquals("M", new_exif.getAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION_REF));
+		assertEquals("2026:10:18", new_exif.getAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_DATESTAMP));
+		assertArrayEquals(new long[]{12, 1}, new_exif.getRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_TIMESTAMP, 0));
+		assertArrayEquals(new long[]{34, 1}, new_exif.getRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_TIMESTAMP, 1));
+		assertArrayEquals(new long[]{56, 1}, new_exif.getRational(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_TIMESTAMP, 2));
+		assertEquals(4000, new_exif.getInt(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_X_DIMENSION));
+		assertEquals(3000, new_exif.getInt(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_PIXEL_Y_DIMENSION));
+		assertArrayEquals(thumbnail, new_exif.getThumbnail());
+
+		// rewrite again with the thumbnail removed
+		new_exif.removeThumbnail();
+		output = new ByteArrayOutputStream();
+		ExifRewriter.writeJpeg(new_jpeg, new_exif.getApp1Segment(), output);
+		assertEquals(1, countExifSegments(output.toByteArray()));
+		new_exif = ExifRewriter.parse(output.toByteArray());
+		assertFalse(new_exif.hasThumbnail());
+		assertEquals("An Artist", new_exif.getAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ARTIST));
+
+		// a jpeg without exif data
+		jpeg = makeTestJpeg(null);
+		exif = ExifRewriter.parse(jpeg);
+		assertEquals(ExifRewriter.ORIENTATION_UNDEFINED, exif.getOrientation());
+		assertNull(exif.getAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_DATETIME));
+		exif.setShort(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ORIENTATION, 3);
+		exif.setAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION_REF, "M");
+		output = new ByteArrayOutputStream();
+		ExifRewriter.writeJpeg(jpeg, exif.getApp1Segment(), output);
+		new_jpeg = output.toByteArray();
+		assertEquals(1, countExifSegments(new_jpeg));
+		new_exif = ExifRewriter.parse(new_jpeg);
+		assertEquals(ByteOrder.BIG_ENDIAN, new_exif.getByteOrder());
+		assertEquals(3, new_exif.getOrientation());
+		assertEquals("M", new_exif.getAscii(ExifRewriter.Ifd.IFD_GPS, ExifRewriter.TAG_GPS_IMG_DIRECTION_REF));
+		assertFalse(new_exif.hasAttribute(ExifRewriter.Ifd.IFD_EXIF, ExifRewriter.TAG_DATETIME_ORIGINAL));
+
+		// inserting the segment as the jpeg is written should give the same result, however the jpeg is split into writes
+		byte [] app1_segment = exif.getApp1Segment();
+		byte [] jpeg_no_app0 = new byte[jpeg.length - 18];
+		jpeg_no_app0[0] = (byte)0xFF;
+		jpeg_no_app0[1] = (byte)0xD8;
+		System.arraycopy(jpeg, 20, jpeg_no_app0, 2, jpeg.length - 20);
+		for(byte [] test_jpeg : new byte[][]{jpeg, jpeg_no_app0}) {
+			output = new ByteArrayOutputStream();
+			ExifRewriter.writeJpeg(test_jpeg, app1_segment, output);
+			byte [] expected_jpeg = output.toByteArray();
+			for(int chunk_size : new int[]{1, 3, 7, test_jpeg.length}) {
+				output = new ByteArrayOutputStream();
+				OutputStream inserting = ExifRewriter.insertingStream(output, app1_segment);
+				for(int i=0;i<test_jpeg.length;i+=chunk_size) {
+					inserting.write(test_jpeg, i, Math.min(chunk_size, test_jpeg.length - i));
+				}
+				inserting.close();
+				assertArrayEquals(expected_jpeg, output.toByteArray());
+			}
+		}
+		try {
+			OutputStream inserting = ExifRewriter.insertingStream(new ByteArrayOutputStream(), app1_segment);
+			inserting.write(new byte[]{1, 2, 3, 4, 5, 6});
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+
+		// exif data too large for a segment
+		StringBuilder long_string = new StringBuilder();
+		for(int i=0;i<70000;i++) {
+			long_string.append('a');
+		}
+		exif.setAscii(ExifRewriter.Ifd.IFD_0, ExifRewriter.TAG_ARTIST, long_string.toString());
+		try {
+			exif.getApp1Segment();
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+
+		// not a jpeg
+		try {
+			ExifRewriter.parse(new byte[]{1, 2, 3, 4});
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+	}
+
+	private static byte [] hexToBytes(String hex) {
+		byte [] bytes = new byte[hex.length()/2];
+		for(int i=0;i<bytes.length;i++) {
+			bytes[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+		}
+		return bytes;
+	}
+
+	/** Returns the width and height from the frame header of a jpeg.
+	 */
+	private static int [] getJpegSize(byte [] jpeg) {
+		for(int i=0;i+8<jpeg.length;i++) {
+			if( (jpeg[i] & 0xff) == 0xFF && (jpeg[i+1] & 0xff) == 0xC0 ) {
+				int height = ((jpeg[i+5] & 0xff) << 8) | (jpeg[i+6] & 0xff);
+				int width = ((jpeg[i+7] & 0xff) << 8) | (jpeg[i+8] & 0xff);
+				return new int[]{width, height};
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testJpegLosslessTransform() throws IOException {
+		Log.d(TAG, "testJpegLosslessTransform");
+
+		JpegLosslessTransform jpegLosslessTransform = new JpegLosslessTransform(null);
+
+		assertEquals(JpegLosslessTransform.Transform.NONE, JpegLosslessTransform.Transform.fromExifOrientation(0));
+		assertEquals(JpegLosslessTransform.Transform.NONE, JpegLosslessTransform.Transform.fromExifOrientation(1));
+		assertEquals(JpegLosslessTransform.Transform.ROTATE_180, JpegLosslessTransform.Transform.fromExifOrientation(3));
+		assertEquals(JpegLosslessTransform.Transform.ROTATE_90, JpegLosslessTransform.Transform.fromExifOrientation(6));
+		assertEquals(JpegLosslessTransform.Transform.ROTATE_270, JpegLosslessTransform.Transform.fromExifOrientation(8));
+		assertEquals(JpegLosslessTransform.Transform.FLIP_HORIZONTAL, JpegLosslessTransform.Transform.NONE.thenFlipHorizontal());
+		assertEquals(JpegLosslessTransform.Transform.TRANSPOSE, JpegLosslessTransform.Transform.ROTATE_90.thenFlipHorizontal());
+		assertEquals(JpegLosslessTransform.Transform.TRANSVERSE, JpegLosslessTransform.Transform.ROTATE_270.thenFlipHorizontal());
+
+		// 32x32 jpeg with 4:2:0 subsampling and restart intervals (with optimised huffman tables, so that transforming
+		// it with NONE gives the same data)
+		final byte [] jpeg = hexToBytes(
+				"ffd8ffe000104a46494600010200000100010000ffdb0043000302020302020303030304030304050805050404050a07" +
+				"0706080c0a0c0c0b0a0b0b0d0e12100d0e110e0b0b1016101113141515150c0f171816141812141514ffdb0043010304" +
+				"0405040509050509140d0b0d141414141414141414141414141414141414141414141414141414141414141414141414" +
+				"1414141414141414141414141414ffc00011080020002003012200021101031101ffc400160001010100000000000000" +
+				"000000000000080607ffc4001801000301010000000000000000000000000507080406ffc4002d100002000306040602" +
+				"03000000000000000102031121000405071231134151610622427181a123b13391f0ffc4002811000201020503030500" +
+				"00000000000000010211062103041222310005f0073251234142a1b1ffdd00040002ffda000c03010002110311003f00" +
+				"11f87b27f8fa7f07d5b47c1f23e14384224684b0d3ab0dfdba9b25bc1f94e90eefc68907c88351a6fdbded7383e53ead" +
+				"37abd41e2457a2430253ec3a01fea9b66edddcf238791c2c7c740eee356e30aaa2da9a2e64d9545d8c806795ad3fea13" +
+				"160062401d19708c9cba3520dca2476a48e9d2a7e4d7ead6786e4fddd5140b94186e1b490498847692898b2730dca862" +
+				"c163412e7482d061f961a815f37ef9fc52d6783e55e80adc3f20613e17e35120681b7269395676159da872a0b26845e4" +
+				"1d8b02ff00105c4706310b0fc945c9a969af501b6fd4fdf9fcebffd01cf8732a3561f768221c9a2b898d3ba8a9fbd36b" +
+				"ac232b98b2c75849a989484c5641507aabefcfaf69591de1fcad55b95dc082e1d21121946c588512f916bac2f2a024e7" +
+				"01827f1cf48042aee05772c69d676389589195c2d0fed448209b0d2226f6873882470c55bec4957d3b5eee1bfcf23a34" +
+				"e0d94caaa21c3840c12014865748207adb9ca7fa1dc8b3c232ac9881b86ac4694d464ad2efc9056949cfdcd92b85e543" +
+				"16f341912b36d094d406fce8a254de7fd8b3c232a14aaa240200277de7cc93d7a9f4fbdb90cdd5e41d2a74e9e04f1f00" +
+				"0bc44d85e24000a9666aa69baf7dbbfaffd9"
+		);
+		assertArrayEquals(jpeg, jpegLosslessTransform.transform(jpeg, JpegLosslessTransform.Transform.NONE));
+		final JpegLosslessTransform.Transform [][] inverses = {
+				{JpegLosslessTransform.Transform.FLIP_HORIZONTAL, JpegLosslessTransform.Transform.FLIP_HORIZONTAL},
+				{JpegLosslessTransform.Transform.FLIP_VERTICAL, JpegLosslessTransform.Transform.FLIP_VERTICAL},
+				{JpegLosslessTransform.Transform.ROTATE_180, JpegLosslessTransform.Transform.ROTATE_180},
+				{JpegLosslessTransform.Transform.TRANSPOSE, JpegLosslessTransform.Transform.TRANSPOSE},
+				{JpegLosslessTransform.Transform.ROTATE_90, JpegLosslessTransform.Transform.ROTATE_270},
+				{JpegLosslessTransform.Transform.ROTATE_270, JpegLosslessTransform.Transform.ROTATE_90},
+				{JpegLosslessTransform.Transform.TRANSVERSE, JpegLosslessTransform.Transform.TRANSVERSE}
+		};
+		for(JpegLosslessTransform.Transform [] inverse : inverses) {
+			Log.d(TAG, "transform: " + inverse[0]);
+			byte [] transformed = jpegLosslessTransform.transform(jpeg, inverse[0]);
+			assertNotNull(transformed);
+			assertFalse(Arrays.equals(jpeg, transformed));
+			assertArrayEquals(jpeg, jpegLosslessTransform.transform(transformed, inverse[1]));
+		}
+		byte [] rotated = jpeg;
+		for(int i=0;i<4;i++) {
+			rotated = jpegLosslessTransform.transform(rotated, JpegLosslessTransform.Transform.ROTATE_90);
+		}
+		assertArrayEquals(jpeg, rotated);
+		byte [] transposed = jpegLosslessTransform.transform(jpeg, JpegLosslessTransform.Transform.TRANSPOSE);
+		rotated = jpegLosslessTransform.transform(jpeg, JpegLosslessTransform.Transform.ROTATE_90);
+		assertArrayEquals(transposed, jpegLosslessTransform.transform(rotated, JpegLosslessTransform.Transform.FLIP_HORIZONTAL));
+
+		// 24x16 jpeg with 4:2:0 subsampling, without restart intervals - the width isn't a whole number of 16 pixel
+		// MCUs, so transforms that would move the right edge to the left or top aren't possible
+		final byte [] jpeg2 = hexToBytes(
+				"ffd8ffe000104a46494600010200000100010000ffdb0043000302020302020303030304030304050805050404050a07" +
+				"0706080c0a0c0c0b0a0b0b0d0e12100d0e110e0b0b1016101113141515150c0f171816141812141514ffdb0043010304" +
+				"0405040509050509140d0b0d141414141414141414141414141414141414141414141414141414141414141414141414" +
+				"1414141414141414141414141414ffc00011080010001803012200021101031101ffc400170001010101000000000000" +
+				"00000000000008000607ffc400160101010100000000000000000000000000040708ffc4002a1000010204020a030100" +
+				"00000000000000010203000712210405061113223151617181a12341b1f0ffc400261100020004050305000000000000" +
+				"000000010203041121000506123107224113617381e1ffda000c03010002110311003f0011e8f49fdbd3f07a8e8f93c8" +
+				"f69b6838f3496d1cd438f6e6612da1f29d0de1f6ce33b88151b71e9de37393ca7aa9c56299da3abb21b0356be83901fd" +
+				"7306cbb339187230a3c740eee37771a2aa8b6e6a5cd4d9545d8d4035e66ba7fa84c5801128060cb9449cc22acce09c7d" +
+				"56d469a527c9bfa8a19f96ca851504bcc959a41532deeb6902fbdfbf7e2d1402635148a4421c227b6d03cfc318db8a17" +
+				"a8f201e746e5dafdbd01df5fbfd18fffd9"
+		);
+		assertArrayEquals(jpeg2, jpegLosslessTransform.transform(jpeg2, JpegLosslessTransform.Transform.NONE));
+		assertNull(jpegLosslessTransform.transform(jpeg2, JpegLosslessTransform.Transform.FLIP_HORIZONTAL));
+		assertNull(jpegLosslessTransform.transform(jpeg2, JpegLosslessTransform.Transform.ROTATE_180));
+		assertNull(jpegLosslessTransform.transform(jpeg2, JpegLosslessTransform.Transform.ROTATE_270));
+		assertNull(jpegLosslessTransform.transform(jpeg2, JpegLosslessTransform.Transform.TRANSVERSE));
+		byte [] flipped = jpegLosslessTransform.transform(jpeg2, JpegLosslessTransform.Transform.FLIP_VERTICAL);
+		assertArrayEquals(new int[]{24, 16}, getJpegSize(flipped));
+		assertArrayEquals(jpeg2, jpegLosslessTransform.transform(flipped, JpegLosslessTransform.Transform.FLIP_VERTICAL));
+		rotated = jpegLosslessTransform.transform(jpeg2, JpegLosslessTransform.Transform.ROTATE_90);
+		assertArrayEquals(new int[]{16, 24}, getJpegSize(rotated));
+		assertArrayEquals(jpeg2, jpegLosslessTransform.transform(rotated, JpegLosslessTransform.Transform.ROTATE_270));
+
+		// not a jpeg
+		try {
+			jpegLosslessTransform.transform(new byte[]{1, 2, 3, 4}, JpegLosslessTransform.Transform.NONE);
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+	}
+
+	/** Returns the pixels of the jpeg, as decoded by JpegStripEditor.
+	 */
+	private static int [] getJpegStripPixels(JpegStripEditor jpegStripEditor, byte [] jpeg, int width, int height) throws IOException {
+		final int [] pixels = new int[width*height];
+		byte [] result = jpegStripEditor.edit(jpeg, 0, 0, width, height, new JpegStripEditor.PixelEditor() {
+			@Override
+			public void edit(int [] argb, int x, int y, int width, int height) {
+				assertEquals(pixels.length, argb.length);
+				System.arraycopy(argb, 0, pixels, 0, argb.length);
+			}
+		});
+		// no pixels were changed, so the jpeg should be returned unchanged
+		assertSame(jpeg, result);
+		return pixels;
+	}
+
+	@Test
+	public void testJpegStripEditor() throws IOException {
+		Log.d(TAG, "testJpegStripEditor");
+
+		JpegStripEditor jpegStripEditor = new JpegStripEditor(null);
+
+		// 32x32 jpeg with 4:2:0 subsampling, standard huffman tables, and a restart interval of one MCU
+		final byte [] jpeg = hexToBytes(
+				"ffd8ffe000104a46494600010200000100010000ffdb0043000302020302020303030304030304050805050404050a07" +
+				"0706080c0a0c0c0b0a0b0b0d0e12100d0e110e0b0b1016101113141515150c0f171816141812141514ffdb0043010304" +
+				"0405040509050509140d0b0d141414141414141414141414141414141414141414141414141414141414141414141414" +
+				"1414141414141414141414141414ffc00011080020002003012200021101031101ffc4001f0000010501010101010100" +
+				"000000000000000102030405060708090a0bffc400b5100002010303020403050504040000017d010203000411051221" +
+				"31410613516107227114328191a1082342b1c11552d1f02433627282090a161718191a25262728292a3435363738393a" +
+				"434445464748494a535455565758595a636465666768696a737475767778797a838485868788898a9293949596979899" +
+				"9aa2a3a4a5a6a7a8a9aab2b3b4b5b6b7b8b9bac2c3c4c5c6c7c8c9cad2d3d4d5d6d7d8d9dae1e2e3e4e5e6e7e8e9eaf1" +
+				"f2f3f4f5f6f7f8f9faffc4001f0100030101010101010101010000000000000102030405060708090a0bffc400b51100" +
+				"020102040403040705040400010277000102031104052131061241510761711322328108144291a1b1c109233352f015" +
+				"6272d10a162434e125f11718191a262728292a35363738393a434445464748494a535455565758595a63646566676869" +
+				"6a737475767778797a82838485868788898a92939495969798999aa2a3a4a5a6a7a8a9aab2b3b4b5b6b7b8b9bac2c3c4" +
+				"c5c6c7c8c9cad2d3d4d5d6d7d8d9dae2e3e4e5e6e7e8e9eaf2f3f4f5f6f7f8f9faffdd00040001ffda000c0301000211" +
+				"0311003f00f9cf40d0beefcb5e93a0685f77e5a8b40d0beefcb5e93a0685f77e5afe97e26e20f8b53f3dca311b1fffd0" +
+				"9740d0beefcb5e93a0685f77e5a8b40d0beefcb5e93a0685f77e5af1389b883e2d4facca311b1fffd16681a17ddf96bd" +
+				"2340d0beefcb51e81a17ddf96bd2340d0beefcb55c4dc41f16a7e339462363ffd2fa3b40d0beefcb5dc18a3f0fe8779a" +
+				"8caaa56da16902bb840ec07cab9ec49c01ee4565eb3e20d03e1be82759f126a31697a72c8b179b22b31776e8aa8a0b31" +
+				"e09c2838018f4048f8abf6bcfdb735ed6bc2e7c3de0656f0e697a9b246d753c43fb4254552652ac19921019a3036e5fe" +
+				"5dc186485fc0de1730e25c5c68e1a3ee3767277514baebd5dba2f9d8f532dc066788ca713986123cb1a71769cb48296d" +
+				"157b6af99a5649bd7547ffd9"
+		);
+		final int [] pixels = getJpegStripPixels(jpegStripEditor, jpeg, 32, 32);
+
+		// rectangles outside the image don't change anything
+		JpegStripEditor.PixelEditor fill_editor = new JpegStripEditor.PixelEditor() {
+			@Override
+			public void edit(int [] argb, int x, int y, int width, int height) {
+				Arrays.fill(argb, 0xffffffff);
+			}
+		};
+		assertSame(jpeg, jpegStripEditor.edit(jpeg, 32, 0, 16, 16, fill_editor));
+		assertSame(jpeg, jpegStripEditor.edit(jpeg, 0, -16, 32, 16, fill_editor));
+
+		// stamp a white square in the bottom right MCU
+		final int [] region = new int[4];
+		byte [] stamped = jpegStripEditor.edit(jpeg, 20, 20, 8, 8, new JpegStripEditor.PixelEditor() {
+			@Override
+			public void edit(int [] argb, int x, int y, int width, int height) {
+				region[0] = x;
+				region[1] = y;
+				region[2] = width;
+				region[3] = height;
+				for(int j=20;j<28;j++) {
+					for(int i=20;i<28;i++) {
+						argb[(j-y)*width + (i-x)] = 0xffffffff;
+					}
+				}
+			}
+		});
+		// the region should be expanded to whole MCUs
+		assertArrayEquals(new int[]{16, 16, 16, 16}, region);
+		assertNotNull(stamped);
+		assertFalse(Arrays.equals(jpeg, stamped));
+		// the first three restart intervals (up to the third restart marker) should be copied unchanged
+		int n_restarts = 0;
+		int pos = 0;
+		while( n_restarts < 3 ) {
+			if( (jpeg[pos] & 0xff) == 0xFF && (jpeg[pos+1] & 0xff) >= 0xD0 && (jpeg[pos+1] & 0xff) <= 0xD7 )
+				n_restarts++;
+			pos++;
+		}
+		assertArrayEquals(Arrays.copyOf(jpeg, pos+1), Arrays.copyOf(stamped, pos+1));
+		int [] stamped_pixels = getJpegStripPixels(jpegStripEditor, stamped, 32, 32);
+		for(int y=0;y<32;y++) {
+			for(int x=0;x<32;x++) {
+				int pixel = stamped_pixels[y*32 + x];
+				if( x >= 20 && x < 28 && y >= 20 && y < 28 ) {
+					// allow for the chroma subsampling and quantization at the edges of the square
+					assertTrue(((pixel >> 16) & 0xff) > 200);
+					assertTrue(((pixel >> 8) & 0xff) > 200);
+					assertTrue((pixel & 0xff) > 200);
+				}
+				else if( x < 16 || y < 16 ) {
+					assertEquals(pixels[y*32 + x], pixel);
+				}
+			}
+		}
+
+		// without restart intervals, the whole scan is coded again, but only the edited MCU should change
+				final byte [] jpeg_no_restarts = hexToBytes(
+				"ffd8ffe000104a46494600010200000100010000ffdb0043000302020302020303030304030304050805050404050a07" +
+				"0706080c0a0c0c0b0a0b0b0d0e12100d0e110e0b0b1016101113141515150c0f171816141812141514ffdb0043010304" +
+				"0405040509050509140d0b0d141414141414141414141414141414141414141414141414141414141414141414141414" +
+				"1414141414141414141414141414ffc00011080010001803012200021101031101ffc400170001010101000000000000" +
+				"00000000000008000607ffc400160101010100000000000000000000000000040708ffc4002a1000010204020a030100" +
+				"00000000000000010203000712210405061113223151617181a12341b1f0ffc400261100020004050305000000000000" +
+				"000000010203041121000506123107224113617381e1ffda000c03010002110311003f0011e8f49fdbd3f07a8e8f93c8" +
+				"f69b6838f3496d1cd438f6e6612da1f29d0de1f6ce33b88151b71e9de37393ca7aa9c56299da3abb21b0356be83901fd" +
+				"7306cbb339187230a3c740eee37771a2aa8b6e6a5cd4d9545d8d4035e66ba7fa84c5801128060cb9449cc22acce09c7d" +
+				"56d469a527c9bfa8a19f96ca851504bcc959a41532deeb6902fbdfbf7e2d1402635148a4421c227b6d03cfc318db8a17" +
+				"a8f201e746e5dafdbd01df5fbfd18fffd9"
+		);
+		final int [] pixels_no_restarts = getJpegStripPixels(jpegStripEditor, jpeg_no_restarts, 24, 16);
+		stamped = jpegStripEditor.edit(jpeg_no_restarts, 0, 0, 8, 8, new JpegStripEditor.PixelEditor() {
+			@Override
+			public void edit(int [] argb, int x, int y, int width, int height) {
+				assertEquals(0, x);
+				assertEquals(0, y);
+				assertEquals(16, width);
+				assertEquals(16, height);
+				for(int j=0;j<8;j++) {
+					for(int i=0;i<8;i++) {
+						argb[j*width + i] = 0xffffffff;
+					}
+				}
+			}
+		});
+		assertNotNull(stamped);
+		assertArrayEquals(new int[]{24, 16}, getJpegSize(stamped));
+		stamped_pixels = getJpegStripPixels(jpegStripEditor, stamped, 24, 16);
+		for(int y=0;y<16;y++) {
+			for(int x=16;x<24;x++) {
+				assertEquals(pixels_no_restarts[y*24 + x], stamped_pixels[y*24 + x]);
+			}
+		}
+		for(int y=0;y<8;y++) {
+			for(int x=0;x<8;x++) {
+				assertTrue((stamped_pixels[y*24 + x] & 0xff) > 200);
+			}
+		}
+
+		// not a jpeg
+		try {
+			jpegStripEditor.edit(new byte[]{1, 2, 3, 4}, 0, 0, 1, 1, fill_editor);
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+	}
+
+	/** Returns the output of applying the transform to the image argb, with AffineResampler.
+	 */
+	private static int [] resample(AffineResampler affineResampler, AffineResampler.Transform transform, final int [] argb) {
+		final int input_width = transform.getInputWidth();
+		final int output_width = transform.getWidth();
+		final int [] output = new int[output_width*transform.getHeight()];
+		affineResampler.process(transform, new AffineResampler.PixelSource() {
+			@Override
+			public void readPixels(int x, int y, int width, int height, int [] pixels) {
+				for(int j=0;j<height;j++) {
+					System.arraycopy(argb, (y+j)*input_width + x, pixels, j*width, width);
+				}
+			}
+		}, new AffineResampler.PixelSink() {
+			@Override
+			public void writePixels(int x, int y, int width, int height, int [] pixels) {
+				for(int j=0;j<height;j++) {
+					System.arraycopy(pixels, j*width, output, (y+j)*output_width + x, width);
+				}
+			}
+		});
+		return output;
+	}
+
+	@Test
+	public void testAffineResampler() {
+		Log.d(TAG, "testAffineResampler");
+
+		// output sizes should match Bitmap.createBitmap() with the equivalent matrix
+		assertTrue(new AffineResampler.Transform(40, 30).isIdentity());
+		assertTrue(new AffineResampler.Transform(40, 30).rotate(0).isIdentity());
+		assertFalse(new AffineResampler.Transform(40, 30).mirror().isIdentity());
+		assertTrue(new AffineResampler.Transform(40, 30).mirror().mirror().isIdentity());
+		assertTrue(new AffineResampler.Transform(40, 30).rotate(90).rotate(180).rotate(90).isIdentity());
+		AffineResampler.Transform transform = new AffineResampler.Transform(40, 30).rotate(90);
+		assertEquals(30, transform.getWidth());
+		assertEquals(40, transform.getHeight());
+		transform = new AffineResampler.Transform(40, 30).rotate(-270);
+		assertEquals(30, transform.getWidth());
+		assertEquals(40, transform.getHeight());
+		transform = new AffineResampler.Transform(40, 30).scale(0.5);
+		assertEquals(20, transform.getWidth());
+		assertEquals(15, transform.getHeight());
+		transform = new AffineResampler.Transform(400, 300).rotate(10.0);
+		assertEquals(Math.round(400*Math.cos(Math.toRadians(10.0)) + 300*Math.sin(Math.toRadians(10.0))), transform.getWidth());
+		assertEquals(Math.round(400*Math.sin(Math.toRadians(10.0)) + 300*Math.cos(Math.toRadians(10.0))), transform.getHeight());
+		transform.crop(10, 20, 100, 50);
+		assertEquals(100, transform.getWidth());
+		assertEquals(50, transform.getHeight());
+
+		// use a tile size that doesn't divide the image size, to test the partial tiles
+		AffineResampler affineResampler = new AffineResampler(new ForkJoinPool(2), 7);
+		final int width = 23, height = 17;
+		int [] argb = new int[width*height];
+		Random random = new Random(0);
+		for(int i=0;i<argb.length;i++) {
+			argb[i] = random.nextInt();
+		}
+
+		// rotations by multiples of 90 degrees, mirroring and cropping should give exact copies of the pixels
+		transform = new AffineResampler.Transform(width, height).rotate(90);
+		int [] output = resample(affineResampler, transform, argb);
+		for(int y=0;y<width;y++) {
+			for(int x=0;x<height;x++) {
+				assertEquals(argb[(height-1-x)*width + y], output[y*height + x]);
+			}
+		}
+		transform = new AffineResampler.Transform(width, height).rotate(180);
+		output = resample(affineResampler, transform, argb);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				assertEquals(argb[(height-1-y)*width + (width-1-x)], output[y*width + x]);
+			}
+		}
+		transform = new AffineResampler.Transform(width, height).mirror();
+		output = resample(affineResampler, transform, argb);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				assertEquals(argb[y*width + (width-1-x)], output[y*width + x]);
+			}
+		}
+		// rotate 90 then mirror is a transpose
+		transform = new AffineResampler.Transform(width, height).rotate(90).mirror().crop(2, 3, 10, 8);
+		output = resample(affineResampler, transform, argb);
+		for(int y=0;y<8;y++) {
+			for(int x=0;x<10;x++) {
+				assertEquals(argb[(x+2)*width + (y+3)], output[y*10 + x]);
+			}
+		}
+
+		// a constant image should stay constant under any transform
+		int [] constant = new int[width*height];
+		Arrays.fill(constant, 0xff4080c0);
+		transform = new AffineResampler.Transform(width, height).rotate(90).scale(0.93).rotate(-7.5).crop(2, 2, 10, 10).mirror();
+		output = resample(affineResampler, transform, constant);
+		for(int value : output) {
+			assertEquals(0xff4080c0, value);
+		}
+
+		// scaling a gradient by 0.5 samples halfway between pairs of input pixels
+		int [] gradient = new int[32*4];
+		for(int y=0;y<4;y++) {
+			for(int x=0;x<32;x++) {
+				gradient[y*32 + x] = 0xff000000 | ((8*x) << 16) | (8*x);
+			}
+		}
+		transform = new AffineResampler.Transform(32, 4).scale(0.5);
+		output = resample(affineResampler, transform, gradient);
+		for(int y=0;y<2;y++) {
+			for(int x=0;x<16;x++) {
+				int value = output[y*16 + x];
+				assertEquals(0xff, (value >>> 24));
+				assertEquals(16*x+4, (value >> 16) & 0xff, 1);
+				assertEquals(0, (value >> 8) & 0xff);
+				assertEquals(16*x+4, value & 0xff, 1);
+			}
+		}
+	}
 }